@@ -37,6 +37,12 @@ public class Device {
 	public boolean eval = false;
 	public boolean act = false;
 	
+	// live resources of the device, updated by the coordinator
+	public int cores = 0;
+	public long memory = 0;
+	public long freeMemory = 0;
+	public float load = -1;
+	
 	public Device(UUID id, String name, String arch, String os, String ip){
 		this.id = id;
 		this.name = name;
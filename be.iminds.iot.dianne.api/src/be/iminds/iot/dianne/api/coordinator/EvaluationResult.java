@@ -35,8 +35,15 @@ import be.iminds.iot.dianne.api.nn.eval.Evaluation;
 public class EvaluationResult {
 
 	public final Map<UUID, Evaluation> evaluations;
+	// in case the evaluation was sharded over the evaluators, the merged evaluation
+	public final Evaluation merged;
 	
 	public EvaluationResult(Map<UUID, Evaluation> evaluations){
+		this(evaluations, null);
+	}
+	
+	public EvaluationResult(Map<UUID, Evaluation> evaluations, Evaluation merged){
 		this.evaluations = evaluations;
+		this.merged = merged;
 	}
 }
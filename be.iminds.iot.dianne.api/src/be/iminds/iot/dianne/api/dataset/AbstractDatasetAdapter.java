@@ -141,7 +141,26 @@ public abstract class AbstractDatasetAdapter implements Dataset {
 	};
 	
 	protected abstract void adaptSample(Sample original, Sample adapted);
-	
+
+	/**
+	 * Adapt a sample fetched from the adapted dataset, allows to run the adapter
+	 * separately from fetching the original sample (i.e. in a different thread)
+	 */
+	public Sample adapt(Sample original, Sample adapted){
+		if(adapted == null){
+			adapted = new Sample();
+		}
+		adaptSample(original, adapted);
+		return adapted;
+	}
+
+	/**
+	 * @return the dataset that is adapted by this adapter
+	 */
+	public Dataset getAdaptedDataset(){
+		return data;
+	}
+
 	@Override
 	public String[] getLabels(){
 		return data.getLabels();
@@ -82,13 +82,41 @@ public class Batch extends Sample {
 		if(other == null){
 			other = new Batch(samples.length, samples[0].input.dims(), samples[0].target.dims());
 		} 
+		Tensor in = other.input;
+		Tensor tar = other.target;
 		other.input = input.copyInto(other.input);
 		other.target = target.copyInto(other.target);
-		other.init(samples.length);
+		
+		// only recreate the sample views when the batched tensors changed
+		if(other.input != in || other.target != tar
+				|| other.samples == null || other.samples.length != samples.length
+				|| !other.samples[0].input.sameDim(samples[0].input)
+				|| !other.samples[0].target.sameDim(samples[0].target)){
+			other.releaseSamples();
+			other.init(samples.length);
+		}
 		return other;
 	}
 	
 	public Batch clone(){
 		return copyInto(null);
 	}
+	
+	/**
+	 * Release the batched input and target tensors and all sample views
+	 */
+	@Override
+	public void release(){
+		releaseSamples();
+		super.release();
+	}
+	
+	private void releaseSamples(){
+		if(samples == null)
+			return;
+		
+		for(Sample s : samples){
+			s.release();
+		}
+	}
 }
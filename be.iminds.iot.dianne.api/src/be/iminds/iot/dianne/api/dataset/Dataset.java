@@ -139,7 +139,11 @@ public interface Dataset {
 	 */
 	default RawBatch getRawBatch(final int...indices){
 		Batch b = getBatch(indices);
-		return new RawBatch(b.input.dims(), b.input.get(), b.target.dims(), b.target.get());
+		try {
+			return new RawBatch(b.input.dims(), b.input.get(), b.target.dims(), b.target.get());
+		} finally {
+			b.release();
+		}
 	}
 	
 	/**
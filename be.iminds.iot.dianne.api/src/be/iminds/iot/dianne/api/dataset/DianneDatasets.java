@@ -58,6 +58,17 @@ public interface DianneDatasets {
 	 * @param d dataset that is no longer used
 	 */
 	void releaseDataset(Dataset d);
+	
+	/**
+	 * Pack all samples of a dataset in a single memory mapped file, that is served
+	 * as a new dataset. This avoids decoding or parsing the samples each time, so pack
+	 * a dataset with adapters from configureDataset to store resized or converted samples.
+	 * @param dataset name of the dataset to pack
+	 * @param packed name of the packed dataset
+	 * @param format encoding of the inputs, "float", "uint8" for inputs between 0 and 1 or "uint8:min:max"
+	 * @return the packed Dataset service
+	 */
+	Dataset packDataset(String dataset, String packed, String format);
 
 	/**
 	 * Checks whether a dataset has labels to be used for classification
@@ -73,4 +73,14 @@ public class Sample {
 	public Sample clone(){
 		return copyInto(null);
 	}
+	
+	/**
+	 * Release the input and target tensors of this sample
+	 */
+	public void release(){
+		if(input != null)
+			input.release();
+		if(target != null)
+			target.release();
+	}
 }
@@ -35,6 +35,7 @@ import be.iminds.iot.dianne.api.nn.module.Output;
 import be.iminds.iot.dianne.api.nn.module.Preprocessor;
 import be.iminds.iot.dianne.api.nn.module.Trainable;
 import be.iminds.iot.dianne.api.nn.module.dto.NeuralNetworkInstanceDTO;
+import be.iminds.iot.dianne.api.repository.CompressedTensor;
 import be.iminds.iot.dianne.tensor.Tensor;
 
 /**
@@ -45,6 +46,17 @@ import be.iminds.iot.dianne.tensor.Tensor;
  */
 public interface NeuralNetwork {
 
+	/**
+	 * How the activation buffers of a compiled neural network are allocated:
+	 * 
+	 * NONE : each module keeps its own output and gradInput
+	 * INFERENCE : module outputs are reused once all next modules are done, elementwise activations 
+	 * 		are executed in place. Only forward passes are possible.
+	 * TRAINING : module outputs are kept for the backward pass, gradInputs are reused once all
+	 * 		previous modules are done.
+	 */
+	public enum MemoryPlan {NONE, INFERENCE, TRAINING}
+
 	/**
 	 * Get the Neural Network Instance UUID
 	 * @return
@@ -383,6 +395,13 @@ public interface NeuralNetwork {
 	 */
 	void storeDeltaParameters(Map<UUID, Tensor> previous, String... tag);
 	
+	/**
+	 * Store an already calculated and compressed delta in the repository
+	 * @param delta
+	 * @param tag
+	 */
+	void storeCompressedDeltaParameters(Map<UUID, CompressedTensor> delta, String... tag);
+	
 	/**
 	 * Load parameters from the repository into the network instance
 	 * @param tag
@@ -391,6 +410,17 @@ public interface NeuralNetwork {
 	 */
 	Map<UUID, Tensor> loadParameters(String... tag) throws Exception;
 	
+	/**
+	 * Load only the parameters that changed in the repository since the last call 
+	 * to loadChangedParameters with the same tags. The parameters of the other modules
+	 * are left as is, so this should only be used when these are not changed locally,
+	 * e.g. to periodically sync an agent with the parameters of a learner.
+	 * 
+	 * @param tag
+	 * @return the parameters that changed
+	 */
+	Map<UUID, Tensor> loadChangedParameters(String... tag);
+	
 	/**
 	 * Reset deltaparameters to zero
 	 */
@@ -414,4 +444,63 @@ public interface NeuralNetwork {
 	default void resetMemory(){
 		resetMemory(0);
 	}
+	
+	/**
+	 * Reset the gradients of the memories, keeping the memories themselves
+	 */
+	void resetMemoryGradients();
+	
+	/**
+	 * Enable or disable compiled execution. In compiled mode a forward or backward pass is 
+	 * executed synchronously on the calling thread, following an execution order of the 
+	 * modules that is calculated once, instead of dispatching each module on a separate thread.
+	 * 
+	 * Compiled execution is only possible when all modules are deployed locally, otherwise
+	 * the neural network stays in asynchronous mode.
+	 * 
+	 * @param compiled whether to use compiled execution
+	 * @return whether compiled execution is now active
+	 */
+	boolean setCompiled(boolean compiled);
+	
+	/**
+	 * @return whether compiled execution is active
+	 */
+	boolean isCompiled();
+	
+	/**
+	 * Enable dynamic batching of forward calls. Concurrent forward calls of a single input 
+	 * sample are queued and combined into one batched forward pass of at most maxBatchSize
+	 * samples. A request waits at most maxDelay microseconds for other requests to join its batch.
+	 * 
+	 * Batching is not possible for neural networks with memories.
+	 * 
+	 * @param maxBatchSize maximum number of requests in one batch, 1 disables batching
+	 * @param maxDelay maximum time in microseconds to wait for other requests
+	 * @return whether batching is now active
+	 */
+	boolean setBatching(int maxBatchSize, long maxDelay);
+	
+	/**
+	 * @return statistics of the dynamic batching, or null when batching is not active
+	 */
+	NeuralNetworkBatchStatistics getBatchStatistics();
+	
+	/**
+	 * Share the activation buffers between the modules of a compiled neural network. A liveness 
+	 * analysis over the execution order assigns module results to a pool of buffers, a buffer is
+	 * reused as soon as all modules reading it are done.
+	 * 
+	 * Memory planning is only possible in compiled mode and is reset when compiled mode is disabled.
+	 * 
+	 * @param plan the memory plan to use
+	 * @return whether the memory plan is now active
+	 */
+	boolean setMemoryPlan(MemoryPlan plan);
+	
+	/**
+	 * @return statistics of the activation memory of the latest forward and backward pass, 
+	 * or null when not in compiled mode
+	 */
+	NeuralNetworkMemoryStatistics getMemoryStatistics();
 }
@@ -0,0 +1,66 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.api.nn;
+
+/**
+ * Statistics of the dynamic batching of forward calls on a neural network
+ * 
+ * @author tverbele
+ *
+ */
+public class NeuralNetworkBatchStatistics {
+
+	// number of requests handled
+	public long requests;
+	
+	// number of forward passes executed
+	public long batches;
+	
+	// batchSizes[i] is the number of forward passes with i requests
+	public long[] batchSizes;
+	
+	// average time a request waits in the queue before its batch starts (ms)
+	public double queueWait;
+	
+	// latency percentiles of the requests (ms)
+	public double p50;
+	public double p99;
+	
+	@Override
+	public String toString(){
+		StringBuilder b = new StringBuilder();
+		b.append("Requests: ").append(requests)
+		 .append(" - batches: ").append(batches)
+		 .append(" - avg batch size: ").append(batches == 0 ? 0 : String.format("%.2f", (double)requests/batches)).append("\n");
+		b.append("Queue wait: ").append(String.format("%.3f", queueWait)).append(" ms")
+		 .append(" - latency p50: ").append(String.format("%.3f", p50)).append(" ms")
+		 .append(" - p99: ").append(String.format("%.3f", p99)).append(" ms\n");
+		b.append("Batch sizes:");
+		for(int i=1;i<batchSizes.length;i++){
+			if(batchSizes[i] > 0){
+				b.append(" ").append(i).append(":").append(batchSizes[i]);
+			}
+		}
+		return b.toString();
+	}
+}
@@ -0,0 +1,69 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.api.nn;
+
+/**
+ * Statistics of the activation memory of a compiled neural network, with and without 
+ * sharing buffers between modules.
+ * 
+ * @author tverbele
+ *
+ */
+public class NeuralNetworkMemoryStatistics {
+
+	// memory plan that is active
+	public NeuralNetwork.MemoryPlan plan;
+	
+	// bytes of the module outputs in case each module keeps its own output
+	public long activations;
+	
+	// bytes of the module outputs with the active memory plan
+	public long plannedActivations;
+	
+	// bytes of the module gradInputs in case each module keeps its own gradInput
+	public long gradients;
+	
+	// bytes of the module gradInputs with the active memory plan
+	public long plannedGradients;
+	
+	// number of shared buffers
+	public int buffers;
+	
+	// number of modules executed in place on their input
+	public int inPlace;
+	
+	@Override
+	public String toString(){
+		StringBuilder b = new StringBuilder();
+		b.append("Memory plan: ").append(plan)
+		 .append(" - shared buffers: ").append(buffers)
+		 .append(" - in place: ").append(inPlace).append("\n");
+		b.append("Activations: ").append(kb(activations)).append(" -> ").append(kb(plannedActivations)).append("\n");
+		b.append("Gradients: ").append(kb(gradients)).append(" -> ").append(kb(plannedGradients));
+		return b.toString();
+	}
+	
+	private static String kb(long bytes){
+		return String.format("%.1f kB", bytes/1024.0);
+	}
+}
@@ -23,6 +23,7 @@
 package be.iminds.iot.dianne.api.nn.eval;
 
 import be.iminds.iot.dianne.tensor.Tensor;
+import be.iminds.iot.dianne.tensor.TensorOps;
 
 /**
  * Result of the evaluation of a classification Dataset, provides access to the confusion matrix.
@@ -196,5 +197,29 @@ public class ClassificationEvaluation extends ErrorEvaluation {
 		return (tp(i)*tn(i) - fp(i)*fn(i))/(float)Math.sqrt((tp(i)+fp(i))*(tp(i)+fn(i))*(tn(i)+fp(i))*(tn(i)+fn(i)));
 	}
 
+	@Override
+	public void merge(Evaluation other){
+		if(other instanceof ClassificationEvaluation){
+			ClassificationEvaluation c = (ClassificationEvaluation) other;
+			if(confusionMatrix == null){
+				confusionMatrix = c.confusionMatrix == null ? null : c.confusionMatrix.copyInto(null);
+			} else if(c.confusionMatrix != null){
+				confusionMatrix = TensorOps.add(confusionMatrix, confusionMatrix, c.confusionMatrix);
+			}
+			
+			if(size == 0){
+				rankings = c.rankings == null ? null : c.rankings.clone();
+			} else if(rankings != null && c.rankings != null){
+				int[] merged = new int[rankings.length+c.rankings.length];
+				System.arraycopy(rankings, 0, merged, 0, rankings.length);
+				System.arraycopy(c.rankings, 0, merged, rankings.length, c.rankings.length);
+				rankings = merged;
+			} else {
+				rankings = null;
+			}
+		}
+		super.merge(other);
+	}
+
 
 }
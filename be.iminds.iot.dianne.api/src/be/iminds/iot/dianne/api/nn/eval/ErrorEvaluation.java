@@ -22,6 +22,7 @@
  *******************************************************************************/
 package be.iminds.iot.dianne.api.nn.eval;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import be.iminds.iot.dianne.tensor.Tensor;
@@ -71,5 +72,26 @@ public class ErrorEvaluation extends Evaluation {
 	public float error() {
 		return metric;
 	}
+	
+	@Override
+	public void merge(Evaluation other){
+		if(other instanceof ErrorEvaluation){
+			ErrorEvaluation e = (ErrorEvaluation) other;
+			long s = size + e.size;
+			forwardTime = s == 0 ? 0 : (forwardTime*size + e.forwardTime*e.size)/s;
+			if(size == 0){
+				outputs = e.outputs == null ? null : new ArrayList<>(e.outputs);
+			} else if(outputs != null && e.outputs != null){
+				List<Tensor> merged = new ArrayList<>(outputs.size()+e.outputs.size());
+				merged.addAll(outputs);
+				merged.addAll(e.outputs);
+				outputs = merged;
+			} else {
+				// outputs no longer match the sample indices
+				outputs = null;
+			}
+		}
+		super.merge(other);
+	}
 
 }
@@ -60,5 +60,19 @@ public class Evaluation {
 	public float metric() {
 		return metric;
 	}
+	
+	/**
+	 * Merge the evaluation of another part of the dataset into this evaluation, 
+	 * i.e. when an evaluation is sharded over multiple neural network instances
+	 * 
+	 * @param other evaluation of the next part of the dataset
+	 */
+	public void merge(Evaluation other){
+		long s = size + other.size;
+		metric = s == 0 ? 0 : (metric*size + other.metric*other.size)/s;
+		// shards are evaluated in parallel
+		time = Math.max(time, other.time);
+		size = s;
+	}
 
 }
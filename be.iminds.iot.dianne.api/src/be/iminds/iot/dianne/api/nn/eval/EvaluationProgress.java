@@ -33,13 +33,64 @@ public class EvaluationProgress extends Evaluation {
 	/** Number of samples currently processed */
 	public long processed;
 	
+	/** Number of samples processed per second */
+	public float samplesPerSecond;
+	/** Total time spent forwarding through the neural network (ms) */
+	public float forwardTime;
+	/** Total time spent waiting for samples to be loaded (ms) */
+	public float loadTime;
+	
 	public EvaluationProgress(long processed, long size, float metric){
 		this.metric = metric;
 		this.processed = processed;
 		this.size = size;
 	}
+	
+	public EvaluationProgress(long processed, long size, float metric, 
+			float samplesPerSecond, float forwardTime, float loadTime){
+		this(processed, size, metric);
+		this.samplesPerSecond = samplesPerSecond;
+		this.forwardTime = forwardTime;
+		this.loadTime = loadTime;
+	}
 
 	public long processed(){
 		return processed;
 	}
+	
+	public float samplesPerSecond(){
+		return samplesPerSecond;
+	}
+	
+	public float forwardTime(){
+		return forwardTime;
+	}
+	
+	public float loadTime(){
+		return loadTime;
+	}
+	
+	@Override
+	public void merge(Evaluation other){
+		if(other instanceof EvaluationProgress){
+			// progress of shards that are evaluated in parallel
+			EvaluationProgress p = (EvaluationProgress) other;
+			long n = processed + p.processed;
+			metric = n == 0 ? 0 : (metric*processed + p.metric*p.processed)/n;
+			processed = n;
+			size += p.size;
+			time = Math.max(time, p.time);
+			samplesPerSecond += p.samplesPerSecond;
+			forwardTime += p.forwardTime;
+			loadTime += p.loadTime;
+		} else {
+			super.merge(other);
+		}
+	}
+	
+	@Override
+	public String toString(){
+		return "Processed: "+processed+"/"+size+"\tMetric: "+metric+"\tSamples/s: "+samplesPerSecond
+				+"\tForward: "+forwardTime+" ms\tLoad: "+loadTime+" ms";
+	}
 }
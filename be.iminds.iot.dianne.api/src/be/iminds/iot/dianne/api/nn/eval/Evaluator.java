@@ -61,4 +61,9 @@ public interface Evaluator {
 	 * @return whether or not this learner is busy
 	 */
 	boolean isBusy();
+	
+	/**
+	 * Stop the current evaluation, i.e. when the evaluation job is preempted
+	 */
+	void stop();
 }
@@ -43,6 +43,12 @@ public class LearnProgress {
 	/** Any additional metrics to stuff into the LearnProgress */
 	public Map<String, Float> extra;
 	
+	/** The number of bytes sent to the repository in the last parameter sync */
+	public long syncBytes;
+	
+	/** The time in ms of the last parameter sync */
+	public float syncTime;
+	
 	public LearnProgress(long iteration, float loss){
 		this.iteration = iteration;
 		this.minibatchLoss = loss;
@@ -65,6 +71,9 @@ public class LearnProgress {
 		builder.append("[LEARNER] Iteration: ").append(iteration)
 				.append(" Loss: ").append(minibatchLoss).append(" ");
 		extra.entrySet().forEach(e -> builder.append(e.getKey()).append(": ").append(e.getValue()).append(" "));
+		if(syncBytes > 0){
+			builder.append("Sync: ").append(syncBytes).append(" bytes in ").append(syncTime).append(" ms ");
+		}
 		return builder.toString();
 	}
 }
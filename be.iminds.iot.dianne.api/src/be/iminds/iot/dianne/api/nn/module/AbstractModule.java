@@ -87,8 +87,12 @@ public abstract class AbstractModule implements Module {
 	// Can be used to either skip or block here
 	protected AtomicBoolean nextBusy = new AtomicBoolean();
 	
-	// Thread executor to perform calculations on
-	protected static ExecutorService runExecutor = Executors.newCachedThreadPool();
+	// When compiled, the neural network executes the modules in a precompiled order on the 
+	// calling thread, forward/backward then only calculate this module and notify the listeners
+	protected volatile boolean compiled = false;
+	
+	// Thread executor to perform calculations on, shared by all modules
+	protected static ExecutorService runExecutor = ModuleScheduler.pool();
 	// Thread executor to notify listeners
 	protected static ExecutorService listenerExecutor = Executors.newSingleThreadExecutor();
 
@@ -162,7 +166,7 @@ public abstract class AbstractModule implements Module {
 				} else {
 					// default mode BLOCKING
 					try {
-						nextBusy.wait();
+						ModuleScheduler.await(nextBusy, nextBusy::get);
 					} catch (InterruptedException e) {
 					}
 				}
@@ -205,7 +209,7 @@ public abstract class AbstractModule implements Module {
 		train = false;
 		
 		// dispatch to next
-		if(next!=null)
+		if(next!=null && !compiled)
 			callNext();
 
 	}
@@ -252,7 +256,7 @@ public abstract class AbstractModule implements Module {
 		}
 		
 		// dispatch to previous
-		if(prev!=null)
+		if(prev!=null && !compiled)
 			callPrevious();
 	}
 	
@@ -273,6 +277,85 @@ public abstract class AbstractModule implements Module {
 		this.mode = mode;
 	}
 	
+	/**
+	 * Enable or disable compiled mode. In compiled mode this module does not dispatch its
+	 * output to the next modules (or its gradInput to the previous modules) itself, 
+	 * the caller is responsible to do so using forwardTo and backwardTo.
+	 * 
+	 * @param compiled whether this module is part of a compiled execution plan
+	 */
+	public void setCompiled(boolean compiled){
+		this.compiled = compiled;
+	}
+
+	/**
+	 * Set the Tensor to put the forward results in. A compiled execution plan uses this to share
+	 * one buffer between modules whose outputs are never needed at the same time.
+	 *
+	 * @param output the output buffer, null to let the module allocate its own again
+	 */
+	public void setOutputBuffer(Tensor output){
+		this.output = output;
+	}
+
+	/**
+	 * Set the Tensor to put the backward results in, see setOutputBuffer
+	 *
+	 * @param gradInput the gradInput buffer, null to let the module allocate its own again
+	 */
+	public void setGradInputBuffer(Tensor gradInput){
+		this.gradInput = gradInput;
+	}
+
+	/**
+	 * Forward the latest output (or exception) of this module to a next module on the calling thread
+	 * @param m the next module
+	 * @param tags the tags to forward
+	 */
+	public void forwardTo(Module m, String... tags){
+		if(exception==null){
+			m.forward(id, getOutput(m.getId()), tags);
+		} else {
+			m.forward(id, exception, tags);
+		}
+	}
+	
+	/**
+	 * Backward the latest gradInput (or exception) of this module to a previous module on the calling thread
+	 * @param m the previous module
+	 * @param tags the tags to backward
+	 */
+	public void backwardTo(Module m, String... tags){
+		if(exception==null){
+			m.backward(id, getGradInput(m.getId()), tags);
+		} else {
+			m.backward(id, exception, tags);
+		}
+	}
+	
+	/**
+	 * @return the exception thrown in the latest forward or backward, null if none
+	 */
+	public ModuleException getException(){
+		return exception;
+	}
+	
+	/**
+	 * @param nextId id of the next module
+	 * @return the latest output to forward to the next module with nextId
+	 */
+	public Tensor getOutput(UUID nextId){
+		return output;
+	}
+	
+	/**
+	 * @param prevId id of the previous module
+	 * @return the latest gradInput to backward to the previous module with prevId
+	 */
+	public Tensor getGradInput(UUID prevId){
+		return gradInput;
+	}
+	
 	public void addForwardListener(ForwardListener listener){
 		fwdListeners.add(listener);
 	}
@@ -418,6 +501,7 @@ public abstract class AbstractModule implements Module {
 		}
 		
 		public void run(){
+			long t = System.nanoTime();
 			try {
 				if(ex==null){
 					m.forward(id, tensor, tags);
@@ -428,6 +512,7 @@ public abstract class AbstractModule implements Module {
 				// this means there is a problem forwarding to the next module ...
 				// just ignore? no way to feed error back
 			}
+			ModuleScheduler.record(m, System.nanoTime()-t);
 
 			synchronized(nextBusy){
 				nextBusy.set(false);
@@ -457,6 +542,7 @@ public abstract class AbstractModule implements Module {
 		}
 		
 		public void run(){
+			long t = System.nanoTime();
 			try {
 				if(ex==null){
 					m.backward(id, tensor, tags);
@@ -467,6 +553,7 @@ public abstract class AbstractModule implements Module {
 				// this means there is a problem backwarding to the previous module ...
 				// just ignore? no way to feed error back
 			}
+			ModuleScheduler.record(m, System.nanoTime()-t);
 			
 		}
 	}
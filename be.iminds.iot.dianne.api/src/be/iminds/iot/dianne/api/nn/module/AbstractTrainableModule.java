@@ -36,7 +36,7 @@ import be.iminds.iot.dianne.tensor.TensorOps;
  */
 public abstract class AbstractTrainableModule extends AbstractModule implements Trainable {
 
-	protected final Tensor parameters;
+	protected Tensor parameters;
 	protected Tensor deltaParameters;
 	protected boolean fixed = false;
 	
@@ -134,7 +134,7 @@ public abstract class Fork extends AbstractModule {
 				} else {
 					// default mode BLOCKING
 					try {
-						nextsBusy.wait();
+						ModuleScheduler.await(nextsBusy, this::nextBusy);
 					} catch (InterruptedException e) {
 					}
 				}
@@ -167,7 +167,7 @@ public abstract class Fork extends AbstractModule {
 		if(fwdListeners.size()>0)
 			notifyForwardListeners();
 		
-		if(next!=null)
+		if(next!=null && !compiled)
 			callNext();
 		
 	}
@@ -213,11 +213,16 @@ public abstract class Fork extends AbstractModule {
 			notifyBackwardListeners();
 		
 		// backward on separate thread
-		if(prev!=null)
+		if(prev!=null && !compiled)
 			callPrevious();
 
 	}
 	
+	@Override
+	public Tensor getOutput(UUID nextId){
+		return outputs.get(nextId);
+	}
+	
 	@Override
 	public void setNext(final Module... next) {
 		if(next==null){
@@ -264,11 +269,14 @@ public abstract class Fork extends AbstractModule {
 		}
 		
 		public void run(){
+			long t = System.nanoTime();
 			if(ex==null){
 				m.forward(id, tensor, tags);
 			} else {
 				m.forward(id, ex, tags);
 			}
+			ModuleScheduler.record(m, System.nanoTime()-t);
+			
 			synchronized(nextsBusy){
 				nextsBusy.get(m).set(false);
 				nextsBusy.notifyAll();
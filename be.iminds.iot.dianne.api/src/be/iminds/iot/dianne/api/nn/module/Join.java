@@ -129,7 +129,7 @@ public abstract class Join extends AbstractModule {
 				} else {
 					// default mode BLOCKING
 					try {
-						nextBusy.wait();
+						ModuleScheduler.await(nextBusy, nextBusy::get);
 					} catch (InterruptedException e) {
 					}
 				}
@@ -173,11 +173,16 @@ public abstract class Join extends AbstractModule {
 		if(fwdListeners.size()>0)
 			notifyForwardListeners();
 		
-		if(next!=null)
+		if(next!=null && !compiled)
 			callNext();
 	
 	}
 	
+	@Override
+	public Tensor getGradInput(UUID prevId){
+		return gradInputs.get(prevId);
+	}
+	
 	@Override
 	public void setPrevious(final Module... prev) {
 		if(prev==null){
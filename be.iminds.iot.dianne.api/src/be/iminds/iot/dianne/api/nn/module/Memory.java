@@ -66,6 +66,14 @@ public interface Memory extends Module {
 	 */
 	public void reset(Tensor t);
 	
+	/**
+	 * Zero out the gradient with respect to the memory, but keep the memory itself. 
+	 * 
+	 * This is used between the windows of truncated back propagation through time, 
+	 * where the state carries over to the next window, but the gradient should not.
+	 */
+	public void resetGradient();
+	
 	/**
 	 * Get the current raw memory data
 	 * @return current memory Tensor
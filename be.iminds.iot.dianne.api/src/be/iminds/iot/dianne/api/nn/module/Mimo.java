@@ -138,7 +138,7 @@ public abstract class Mimo extends Fork {
 				} else {
 					// default mode BLOCKING
 					try {
-						nextBusy.wait();
+						ModuleScheduler.await(nextBusy, nextBusy::get);
 					} catch (InterruptedException e) {
 					}
 				}
@@ -182,12 +182,17 @@ public abstract class Mimo extends Fork {
 		if(fwdListeners.size()>0)
 			notifyForwardListeners();
 		
-		if(next!=null)
+		if(next!=null && !compiled)
 			callNext();
 	
 	}
 	
 	
+	@Override
+	public Tensor getGradInput(UUID prevId){
+		return gradInputs.get(prevId);
+	}
+	
 	@Override
 	public void setPrevious(final Module... prev) {
 		if(prev==null){
@@ -0,0 +1,245 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.api.nn.module;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinPool.ManagedBlocker;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.util.promise.Promise;
+
+/**
+ * Shared scheduler to execute the modules of all neural networks on.
+ * 
+ * Modules are executed on a bounded work-stealing pool sized to the number of cores
+ * (configurable with the be.iminds.iot.dianne.nn.threads property), so that independent
+ * branches of a graph run in parallel without spawning a thread per branch. A Join 
+ * acts as dependency counter: each input that arrives before the last one just returns,
+ * no thread is kept waiting for the other inputs. 
+ * 
+ * When a module does have to wait (i.e. in BLOCKING mode until the next module is done,
+ * or a composite module waiting for its inner neural network), it does so via await, 
+ * which lets the pool compensate with a spare thread to avoid starvation.
+ * 
+ * @author tverbele
+ *
+ */
+public final class ModuleScheduler {
+
+	private static final ForkJoinPool pool;
+	private static final Map<UUID, ModuleStats> stats = new ConcurrentHashMap<>();
+	
+	static {
+		int threads = Runtime.getRuntime().availableProcessors();
+		String t = getProperty("be.iminds.iot.dianne.nn.threads");
+		if(t != null){
+			threads = Integer.parseInt(t);
+		}
+		
+		AtomicInteger count = new AtomicInteger();
+		pool = new ForkJoinPool(threads, p -> {
+			ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+			thread.setName("Dianne Module Executor "+count.incrementAndGet());
+			return thread;
+		}, null, true);
+	}
+	
+	private ModuleScheduler(){}
+	
+	private static String getProperty(String key){
+		Bundle bundle = FrameworkUtil.getBundle(ModuleScheduler.class);
+		BundleContext context = bundle == null ? null : bundle.getBundleContext();
+		if(context != null){
+			return context.getProperty(key);
+		}
+		return System.getProperty(key);
+	}
+	
+	static ForkJoinPool pool(){
+		return pool;
+	}
+	
+	/**
+	 * Wait on the monitor while the condition holds. Should be called while holding the monitor.
+	 * 
+	 * When called from a pool thread, the pool is informed this thread is blocked, so that
+	 * it can activate a spare thread in the meantime.
+	 */
+	public static void await(Object monitor, BooleanSupplier condition) throws InterruptedException {
+		if(!condition.getAsBoolean())
+			return;
+		
+		if(Thread.currentThread() instanceof ForkJoinWorkerThread){
+			ForkJoinPool.managedBlock(new ManagedBlocker() {
+				@Override
+				public boolean block() throws InterruptedException {
+					while(condition.getAsBoolean()){
+						monitor.wait();
+					}
+					return true;
+				}
+				
+				@Override
+				public boolean isReleasable() {
+					return !condition.getAsBoolean();
+				}
+			});
+		} else {
+			while(condition.getAsBoolean()){
+				monitor.wait();
+			}
+		}
+	}
+	
+	/**
+	 * Wait until the promise is resolved and return its value.
+	 * 
+	 * When called from a pool thread, the pool is informed this thread is blocked, so that
+	 * the modules resolving the promise (i.e. of the inner neural network of a composite)
+	 * still get a thread.
+	 */
+	public static <T> T await(Promise<T> promise) throws InvocationTargetException, InterruptedException {
+		if(!promise.isDone() && Thread.currentThread() instanceof ForkJoinWorkerThread){
+			CountDownLatch done = new CountDownLatch(1);
+			promise.onResolve(done::countDown);
+			ForkJoinPool.managedBlock(new ManagedBlocker() {
+				@Override
+				public boolean block() throws InterruptedException {
+					done.await();
+					return true;
+				}
+				
+				@Override
+				public boolean isReleasable() {
+					return promise.isDone();
+				}
+			});
+		}
+		return promise.getValue();
+	}
+	
+	static void record(Module m, long time){
+		if(!(m instanceof AbstractModule)){
+			// remote module, run time includes the network
+			return;
+		}
+		
+		ModuleStats s = stats.get(m.getId());
+		if(s == null){
+			s = stats.computeIfAbsent(m.getId(), id -> new ModuleStats(m.getClass().getSimpleName()));
+		}
+		s.runs.increment();
+		s.time.add(time);
+	}
+	
+	/**
+	 * @return the target number of threads of the module pool
+	 */
+	public static int getPoolSize(){
+		return pool.getParallelism();
+	}
+	
+	/**
+	 * @return the current number of threads in the module pool, including spare threads
+	 */
+	public static int getThreadCount(){
+		return pool.getPoolSize();
+	}
+	
+	/**
+	 * @return the number of threads currently executing modules
+	 */
+	public static int getActiveCount(){
+		return pool.getActiveThreadCount();
+	}
+	
+	/**
+	 * @return the number of module executions waiting to be executed
+	 */
+	public static long getQueueDepth(){
+		return pool.getQueuedSubmissionCount() + pool.getQueuedTaskCount();
+	}
+	
+	/**
+	 * @return run time statistics per module id
+	 */
+	public static Map<UUID, ModuleStats> getModuleStats(){
+		return Collections.unmodifiableMap(stats);
+	}
+	
+	/**
+	 * Clear the module run time statistics
+	 */
+	public static void resetModuleStats(){
+		stats.clear();
+	}
+	
+	/**
+	 * Run time statistics of a module
+	 */
+	public static final class ModuleStats {
+		
+		public final String type;
+		
+		private final LongAdder runs = new LongAdder();
+		private final LongAdder time = new LongAdder();
+		
+		private ModuleStats(String type){
+			this.type = type;
+		}
+		
+		/**
+		 * @return the number of times the module was executed
+		 */
+		public long getRuns(){
+			return runs.sum();
+		}
+		
+		/**
+		 * @return the total run time in nanoseconds
+		 */
+		public long getTime(){
+			return time.sum();
+		}
+		
+		/**
+		 * @return the average run time in nanoseconds
+		 */
+		public double getAverageTime(){
+			long r = runs.sum();
+			return r == 0 ? 0 : (double)time.sum()/r;
+		}
+	}
+}
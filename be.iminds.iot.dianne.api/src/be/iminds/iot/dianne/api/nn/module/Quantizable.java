@@ -0,0 +1,65 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.api.nn.module;
+
+import be.iminds.iot.dianne.api.repository.CompressedTensor.Encoding;
+
+/**
+ * The Quantizable interface is implemented by Trainable Modules of which the weights 
+ * can be kept at a reduced precision for inference.
+ * 
+ * The parameters start with the weights, that are kept in compact storage at the precision 
+ * with (for int8) a scale per channel, followed by the bias, that is kept at full precision. 
+ * The compact weights are decoded a tile of channels at a time right before each matrix
+ * multiplication.
+ * 
+ * @author tverbele
+ *
+ */
+public interface Quantizable extends Trainable {
+
+	/**
+	 * @return the number of weights in the parameters
+	 */
+	int weightsSize();
+	
+	/**
+	 * @return the number of weights per channel, that share a scale when encoded as int8
+	 */
+	int channelSize();
+	
+	/**
+	 * Keep the weights at a reduced precision. The full precision parameters are kept
+	 * for training, and the weights are encoded again each time they are set or updated. 
+	 * When the module is fixed, the full precision parameters are released and only 
+	 * decoded again when it is no longer fixed.
+	 * 
+	 * @param precision FP16, BF16, INT8 or NONE for full precision
+	 */
+	void setPrecision(Encoding precision);
+	
+	/**
+	 * @return the precision of the weights
+	 */
+	Encoding getPrecision();
+}
@@ -53,6 +53,13 @@ public interface DianneRuntime {
 	 */
 	String getRuntimeName();
 	
+	/**
+	 * The current resources of this runtime (cores, memory and load)
+	 * 
+	 * @return the current status of this runtime
+	 */
+	RuntimeStatus getStatus();
+	
 	/**
 	 * Deploy a single Module on this runtime
 	 * 
@@ -0,0 +1,47 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.api.nn.runtime;
+
+/**
+ * Current resources of a DianneRuntime, used to decide where to place new jobs
+ * 
+ * @author tverbele
+ *
+ */
+public class RuntimeStatus {
+
+	// number of available cores
+	public final int cores;
+	// maximum and currently free memory available to the runtime (bytes)
+	public final long memory;
+	public final long freeMemory;
+	// system load average per core, or a negative value if not available
+	public final float load;
+	
+	public RuntimeStatus(int cores, long memory, long freeMemory, float load){
+		this.cores = cores;
+		this.memory = memory;
+		this.freeMemory = freeMemory;
+		this.load = load;
+	}
+}
@@ -0,0 +1,389 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.api.repository;
+
+import java.util.Arrays;
+
+import be.iminds.iot.dianne.tensor.Half;
+import be.iminds.iot.dianne.tensor.Tensor;
+
+/**
+ * A (lossy) compressed Tensor, used to reduce the size of the delta parameters 
+ * that Learners sync with the repository, and to store parameters at a reduced
+ * precision for inference.
+ * 
+ * @author tverbele
+ *
+ */
+public class CompressedTensor {
+
+	public static enum Encoding {
+		/** plain floats, no compression */
+		NONE,
+		/** half precision floats */
+		FP16,
+		/** bfloat16, i.e. floats with a truncated mantissa */
+		BF16,
+		/** 8 bit values with a scale per block of values */
+		INT8,
+		/** only the values with the largest magnitude and their indices */
+		TOPK
+	}
+	
+	public Encoding encoding;
+	public int[] dims;
+	public int size;
+	
+	// the fp16 or int8 encoded values
+	public byte[] data;
+	// the scale of each int8 block, the top-k values or the plain values
+	public float[] values;
+	// the indices of the top-k values
+	public int[] indices;
+	// number of values per int8 block
+	public int blockSize;
+	// the values after the int8 encoded values, kept at full precision
+	public float[] tail;
+	
+	public CompressedTensor(){}
+	
+	private CompressedTensor(Encoding encoding, Tensor t){
+		this.encoding = encoding;
+		this.dims = t.dims();
+		this.size = t.size();
+	}
+	
+	/**
+	 * Encode a tensor
+	 * 
+	 * @param t tensor to encode
+	 * @param encoding the encoding to use
+	 * @param blockSize number of values that share a scale for INT8
+	 * @param ratio the fraction of values to keep for TOPK
+	 */
+	public static CompressedTensor encode(Tensor t, Encoding encoding, int blockSize, float ratio){
+		return encode(null, t, encoding, blockSize, ratio);
+	}
+	
+	/**
+	 * Encode a tensor into an existing compressed tensor, of which the buffers are 
+	 * reused in case it has the same encoding and size
+	 * 
+	 * @param res compressed tensor to encode into, a new one is created when null
+	 * @param t tensor to encode
+	 * @param encoding the encoding to use
+	 * @param blockSize number of values that share a scale for INT8
+	 * @param ratio the fraction of values to keep for TOPK
+	 */
+	public static CompressedTensor encode(CompressedTensor res, Tensor t, Encoding encoding, int blockSize, float ratio){
+		switch(encoding){
+		case FP16:
+			return fp16(res, t);
+		case BF16:
+			return bf16(res, t);
+		case INT8:
+			return int8(res, t, blockSize, t.size(), null);
+		case TOPK:
+			return topk(t, ratio);
+		default:
+			CompressedTensor c = new CompressedTensor(Encoding.NONE, t);
+			c.values = t.get();
+			return c;
+		}
+	}
+	
+	/**
+	 * Round the values of a tensor in place to the nearest values that can be encoded,
+	 * i.e. to execute with reduced precision parameters
+	 * 
+	 * @param t tensor to round
+	 * @param encoding the encoding to use
+	 * @param blockSize number of values that share a scale for INT8
+	 */
+	public static void round(Tensor t, Encoding encoding, int blockSize){
+		encode(t, encoding, blockSize, 1.0f).decode(t);
+	}
+	
+	public static CompressedTensor fp16(Tensor t){
+		return fp16(null, t);
+	}
+	
+	private static CompressedTensor fp16(CompressedTensor res, Tensor t){
+		CompressedTensor c = reuse(res, Encoding.FP16, t);
+		float[] v = t.get();
+		c.data = bytes(c.data, v.length*2);
+		for(int i=0;i<v.length;i++){
+			short h = Half.toHalf(v[i]);
+			c.data[2*i] = (byte)h;
+			c.data[2*i+1] = (byte)(h >>> 8);
+		}
+		return c;
+	}
+	
+	public static CompressedTensor bf16(Tensor t){
+		return bf16(null, t);
+	}
+	
+	private static CompressedTensor bf16(CompressedTensor res, Tensor t){
+		CompressedTensor c = reuse(res, Encoding.BF16, t);
+		float[] v = t.get();
+		c.data = bytes(c.data, v.length*2);
+		for(int i=0;i<v.length;i++){
+			short h = Half.toBFloat(v[i]);
+			c.data[2*i] = (byte)h;
+			c.data[2*i+1] = (byte)(h >>> 8);
+		}
+		return c;
+	}
+	
+	public static CompressedTensor int8(Tensor t, int blockSize){
+		return int8(t, blockSize, t.size(), null);
+	}
+	
+	/**
+	 * Encode the first length values as int8 with a scale per block, the remaining 
+	 * values are kept at full precision. 
+	 * 
+	 * @param t tensor to encode
+	 * @param blockSize number of values that share a scale
+	 * @param length number of values to encode as int8
+	 * @param scales the scale of each block, or null to scale the largest magnitude in a block to 127
+	 */
+	public static CompressedTensor int8(Tensor t, int blockSize, int length, float[] scales){
+		return int8(null, t, blockSize, length, scales);
+	}
+	
+	private static CompressedTensor int8(CompressedTensor res, Tensor t, int blockSize, int length, float[] scales){
+		CompressedTensor c = reuse(res, Encoding.INT8, t);
+		float[] v = t.get();
+		if(scales == null){
+			scales = scales(t, blockSize, length, 1.0f);
+		}
+		int blocks = (length + blockSize - 1) / blockSize;
+		c.blockSize = blockSize;
+		c.data = bytes(c.data, length);
+		c.values = c.values != null && c.values.length == blocks ? c.values : new float[blocks];
+		for(int b=0;b<blocks;b++){
+			int start = b*blockSize;
+			int end = Math.min(start+blockSize, length);
+			
+			float scale = scales[b];
+			c.values[b] = scale;
+			if(scale == 0){
+				Arrays.fill(c.data, start, end, (byte)0);
+				continue;
+			}
+			
+			for(int i=start;i<end;i++){
+				int q = Math.round(v[i] / scale);
+				c.data[i] = (byte)Math.max(-127, Math.min(127, q));
+			}
+		}
+		c.tail = length < v.length ? Arrays.copyOfRange(v, length, v.length) : null;
+		return c;
+	}
+	
+	/**
+	 * The int8 scale of each block, for which the values with magnitude clip times
+	 * the largest magnitude in the block are mapped to 127, larger values are clipped.
+	 * 
+	 * @param t tensor to encode
+	 * @param blockSize number of values that share a scale
+	 * @param length number of values to encode as int8
+	 * @param clip fraction of the largest magnitude to map to 127
+	 */
+	public static float[] scales(Tensor t, int blockSize, int length, float clip){
+		float[] v = t.get();
+		int blocks = (length + blockSize - 1) / blockSize;
+		float[] scales = new float[blocks];
+		for(int b=0;b<blocks;b++){
+			int start = b*blockSize;
+			int end = Math.min(start+blockSize, length);
+			
+			float max = 0;
+			for(int i=start;i<end;i++){
+				max = Math.max(max, Math.abs(v[i]));
+			}
+			scales[b] = clip * max / 127;
+		}
+		return scales;
+	}
+	
+	public static CompressedTensor topk(Tensor t, float ratio){
+		CompressedTensor c = new CompressedTensor(Encoding.TOPK, t);
+		float[] v = t.get();
+		int k = Math.min(v.length, Math.max(1, (int)Math.ceil(ratio * v.length)));
+		
+		// find the k-th largest magnitude
+		float[] abs = new float[v.length];
+		for(int i=0;i<v.length;i++){
+			abs[i] = Math.abs(v[i]);
+		}
+		float threshold = select(abs, v.length - k);
+		
+		c.indices = new int[k];
+		c.values = new float[k];
+		int n = 0;
+		for(int i=0;i<v.length && n<k;i++){
+			if(Math.abs(v[i]) > threshold){
+				c.indices[n] = i;
+				c.values[n++] = v[i];
+			}
+		}
+		// fill up with values equal to the threshold
+		for(int i=0;i<v.length && n<k;i++){
+			if(Math.abs(v[i]) == threshold){
+				c.indices[n] = i;
+				c.values[n++] = v[i];
+			}
+		}
+		return c;
+	}
+	
+	/**
+	 * Decode into a tensor
+	 * 
+	 * @param res tensor to decode into, a new tensor is created when null or with other dims
+	 * @return the decoded tensor
+	 */
+	public Tensor decode(Tensor res){
+		if(res == null || !res.hasDim(dims)){
+			res = new Tensor(dims);
+		}
+		
+		float[] v;
+		if(encoding == Encoding.NONE){
+			v = values;
+		} else {
+			v = new float[size];
+			decode(v, 0, size);
+		}
+		res.set(v);
+		return res;
+	}
+	
+	/**
+	 * Decode a range of values into an array, i.e. to decode the weights of a few 
+	 * channels at a time instead of the complete tensor
+	 * 
+	 * @param v array to decode into, starting at index 0
+	 * @param from index of the first value to decode
+	 * @param length number of values to decode
+	 */
+	public void decode(float[] v, int from, int length){
+		if(from < 0 || length < 0 || from+length > size || length > v.length){
+			throw new IndexOutOfBoundsException("Cannot decode "+length+" values from "+from+" of "+size);
+		}
+		
+		switch(encoding){
+		case FP16:
+			for(int i=0;i<length;i++){
+				int j = 2*(from+i);
+				v[i] = Half.fromHalf((short)((data[j] & 0xff) | (data[j+1] << 8)));
+			}
+			break;
+		case BF16:
+			for(int i=0;i<length;i++){
+				int j = 2*(from+i);
+				v[i] = Half.fromBFloat((short)((data[j] & 0xff) | (data[j+1] << 8)));
+			}
+			break;
+		case INT8:
+			for(int i=0;i<length;i++){
+				int j = from+i;
+				v[i] = j < data.length ? data[j] * values[j / blockSize] : tail[j - data.length];
+			}
+			break;
+		case TOPK:
+			Arrays.fill(v, 0, length, 0.0f);
+			for(int i=0;i<indices.length;i++){
+				int j = indices[i] - from;
+				if(j >= 0 && j < length){
+					v[j] = values[i];
+				}
+			}
+			break;
+		default:
+			System.arraycopy(values, from, v, 0, length);
+		}
+	}
+	
+	/**
+	 * @return the (approximate) number of bytes of this compressed tensor on the wire
+	 */
+	public long bytes(){
+		long bytes = 4*dims.length + 12;
+		if(data != null)
+			bytes += data.length;
+		if(values != null)
+			bytes += 4*values.length;
+		if(indices != null)
+			bytes += 4*indices.length;
+		if(tail != null)
+			bytes += 4*tail.length;
+		return bytes;
+	}
+	
+	// the compressed tensor to encode t into, reused when it has the same encoding and size
+	private static CompressedTensor reuse(CompressedTensor res, Encoding encoding, Tensor t){
+		if(res == null || res.encoding != encoding || res.size != t.size()){
+			return new CompressedTensor(encoding, t);
+		}
+		res.dims = t.dims();
+		return res;
+	}
+	
+	private static byte[] bytes(byte[] data, int length){
+		return data != null && data.length == length ? data : new byte[length];
+	}
+	
+	// returns the value that would be at index k when sorted, partially sorts a
+	private static float select(float[] a, int k){
+		int left = 0;
+		int right = a.length - 1;
+		while(left < right){
+			float pivot = a[(left + right) >>> 1];
+			int i = left;
+			int j = right;
+			while(i <= j){
+				while(a[i] < pivot) i++;
+				while(a[j] > pivot) j--;
+				if(i <= j){
+					float tmp = a[i];
+					a[i] = a[j];
+					a[j] = tmp;
+					i++;
+					j--;
+				}
+			}
+			if(k <= j){
+				right = j;
+			} else if(k >= i){
+				left = i;
+			} else {
+				break;
+			}
+		}
+		return a[k];
+	}
+}
@@ -89,6 +89,17 @@ public interface DianneRepository {
 	 */
 	Map<UUID, Tensor> loadParameters(String nnName, String... tag) throws Exception;
 	
+	/**
+	 * Load the parameters of the modules that changed since a given version. Each time 
+	 * the parameters of a module are stored or updated, the version changes.
+	 * 
+	 * @param versions the last known version of each module, modules without a known version 
+	 *  (or with a negative version) are always loaded
+	 * @param tag identifying tags
+	 * @return the parameters of the modules with a different version, and the current version of all modules
+	 */
+	VersionedParameters loadChangedParameters(Map<UUID, Long> versions, String... tag);
+	
 	/**
 	 * Store parameters for a given moduleId
 	 *
@@ -142,6 +153,16 @@ public interface DianneRepository {
 	void storeParameters(String nn, Map<UUID, Tensor> parameters, String... tag);
 	 
 	
+	/**
+	 * Store parameters for a number of modules in a compact, reduced precision format. 
+	 * These are decoded to full precision when loaded again.
+	 *
+	 * @param nnId the nn instance these parameters originate from
+	 * @param parameters the compressed parameters mapped by moduleIds
+	 * @param tag optional tags for the parameters
+	 */
+	void storeCompressedParameters(UUID nnId, Map<UUID, CompressedTensor> parameters, String... tag);
+	
 	/**
 	 * Update the parameters for a number of modules with this diff
 	 * 
@@ -151,12 +172,28 @@ public interface DianneRepository {
 	 */
 	void accParameters(UUID nnId, Map<UUID, Tensor> accParameters, String... tag);
 	
+	/**
+	 * Update the parameters for a number of modules with a compressed diff
+	 * 
+	 * @param nnId the nn instance these parameters originate from
+	 * @param accParameters a compressed diff with the old parameters mapped by moduleId
+	 * @param tag optional tags for the parameters
+	 */
+	void accCompressedParameters(UUID nnId, Map<UUID, CompressedTensor> accParameters, String... tag);
+	
 	/**
 	 * Check how many space is left on this device to store things
 	 * @return
 	 */
 	long spaceLeft();
 
+	/**
+	 * Statistics of the in-memory parameter cache
+	 * 
+	 * @return cache statistics, or null if this repository does not cache parameters
+	 */
+	RepositoryCacheStatistics getCacheStatistics();
+	
 	// these are some helper methods for saving the jsplumb layout of the UI builder
 	// of utterly no importance for the rest and can be ignored...
 	String loadLayout(String nnName) throws IOException;
@@ -0,0 +1,62 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.api.repository;
+
+/**
+ * Statistics of the in-memory parameter cache of a repository
+ * 
+ * @author tverbele
+ *
+ */
+public class RepositoryCacheStatistics {
+
+	// number of parameter loads served from memory
+	public long hits;
+	
+	// number of parameter loads that had to go to storage
+	public long misses;
+	
+	// number of parameters evicted to stay within the maximum size
+	public long evictions;
+	
+	// number of cached parameters
+	public int entries;
+	
+	// bytes of parameters currently in the cache
+	public long residentBytes;
+	
+	// maximum bytes of parameters to cache
+	public long maxBytes;
+	
+	public double hitRate(){
+		long total = hits + misses;
+		return total == 0 ? 0 : (double)hits/total;
+	}
+	
+	@Override
+	public String toString(){
+		return "Hits: "+hits+" - misses: "+misses+" - hit rate: "+String.format("%.2f", hitRate()*100)+"%\n"
+				+"Entries: "+entries+" - resident: "+residentBytes/1024/1024+" MB / "+maxBytes/1024/1024+" MB"
+				+" - evictions: "+evictions;
+	}
+}
@@ -0,0 +1,45 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.api.repository;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import be.iminds.iot.dianne.tensor.Tensor;
+
+/**
+ * Parameters loaded from the repository together with the version of each module's parameters.
+ * 
+ * @author tverbele
+ *
+ */
+public class VersionedParameters {
+
+	// parameters of the modules that changed
+	public Map<UUID, Tensor> parameters = new HashMap<>();
+	
+	// current version of the parameters of each requested module that has parameters
+	public Map<UUID, Long> versions = new HashMap<>();
+	
+}
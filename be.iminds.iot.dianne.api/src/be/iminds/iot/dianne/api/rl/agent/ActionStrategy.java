@@ -34,4 +34,26 @@ public interface ActionStrategy {
 	
 	Tensor processIteration(long s, long i, Tensor state) throws Exception;
 	
+	/**
+	 * Select the actions for a batch of states, i.e. when acting on multiple environments at once.
+	 * 
+	 * By default each state is processed separately, strategies that forward a neural network 
+	 * should override this to select all actions with a single batched forward pass.
+	 * 
+	 * @param s the sequence of each state
+	 * @param i the iteration in the sequence of each state
+	 * @param states the batch of states
+	 * @param actions a tensor to copy the batch of actions into - in case null is passed a new Tensor is created
+	 * @return the batch of actions
+	 */
+	default Tensor processIteration(long[] s, long[] i, Tensor states, Tensor actions) throws Exception {
+		for(int b=0;b<s.length;b++){
+			Tensor action = processIteration(s[b], i[b], states.select(0, b));
+			if(actions == null){
+				actions = new Tensor(s.length, action.dims());
+			}
+			action.copyInto(actions.select(0, b));
+		}
+		return actions;
+	}
 }
@@ -54,6 +54,11 @@ public class AgentProgress {
 	 */
 	public boolean terminal;
 	
+	/**
+	 * number of environment steps per second the agent executed (over all environments)
+	 */
+	public float stepsPerSecond;
+	
 	
 	public AgentProgress(long sequence, long iterations, 
 			float reward, float last, 
@@ -68,6 +73,6 @@ public class AgentProgress {
 	
 	@Override
 	public String toString(){
-		return "[AGENT] Sequence: "+sequence+" - Iterations: "+iterations+" - Total Reward: "+reward+" - Last Reward: "+last+" - Terminal: "+terminal+" - Epoch: "+epoch;
+		return "[AGENT] Sequence: "+sequence+" - Iterations: "+iterations+" - Total Reward: "+reward+" - Last Reward: "+last+" - Terminal: "+terminal+" - Epoch: "+epoch+" - Steps/s: "+stepsPerSecond;
 	}
 }
@@ -102,8 +102,12 @@ public interface ExperiencePool extends SequenceDataset<ExperiencePoolSample, Ex
 	
 	default RawExperiencePoolBatch getRawBatch(final int... indices){
 		ExperiencePoolBatch b = getBatch(indices);
-		return new RawExperiencePoolBatch(b.input.dims(), b.target.dims(), 
-				b.input.get(), b.target.get(), b.nextState.get(), b.reward.get(), b.terminal.get());
+		try {
+			return new RawExperiencePoolBatch(b.input.dims(), b.target.dims(), 
+					b.input.get(), b.target.get(), b.nextState.get(), b.reward.get(), b.terminal.get());
+		} finally {
+			b.release();
+		}
 	}
 	
 	
@@ -155,6 +159,32 @@ public interface ExperiencePool extends SequenceDataset<ExperiencePoolSample, Ex
 		return new RawBatchedExperiencePoolSequence(data);
 	}
 	
+	/**
+	 * Get a batch sampled proportional to the priorities of the samples (prioritized experience replay).
+	 * New samples get the maximum priority, priorities are updated with updatePriorities. 
+	 * 
+	 * The batch contains the indices of the sampled samples and their importance sampling weights 
+	 * (normalized to a maximum of 1) to correct the bias of the prioritized sampling.
+	 * 
+	 * @param b the batch to copy the data into, will be created in case of null
+	 * @param size the batch size
+	 * @param beta the importance sampling exponent, 0 for no correction and 1 for full correction
+	 * @return the prioritized batch
+	 */
+	default ExperiencePoolBatch getPrioritizedBatch(ExperiencePoolBatch b, final int size, final float beta){
+		throw new UnsupportedOperationException("This experience pool does not support prioritized sampling");
+	}
+	
+	/**
+	 * Update the priorities of the samples of a prioritized batch 
+	 * 
+	 * @param indices the indices of the samples, as provided in the prioritized batch
+	 * @param errors the temporal difference errors of the samples
+	 */
+	default void updatePriorities(final int[] indices, final float[] errors){
+		throw new UnsupportedOperationException("This experience pool does not support prioritized sampling");
+	}
+	
 	/**
 	 * Add a new sequence of interactions to the experience pool
 	 * 
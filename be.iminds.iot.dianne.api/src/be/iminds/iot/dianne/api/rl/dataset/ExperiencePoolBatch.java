@@ -39,6 +39,10 @@ public class ExperiencePoolBatch extends Batch {
 	
 	public ExperiencePoolSample[] samples;
 	
+	// in case of a prioritized batch: the indices to update the priorities and the importance sampling weights
+	public int[] indices;
+	public Tensor weights;
+	
 	protected ExperiencePoolBatch(){};
 	
 	public ExperiencePoolBatch(int batchSize, int[] stateDims, int[] actionDims){
@@ -156,12 +160,31 @@ public class ExperiencePoolBatch extends Batch {
 		if(other == null){
 			other = new ExperiencePoolBatch(samples.length, samples[0].input.dims(), samples[0].target.dims());
 		}
+		Tensor in = other.input;
+		Tensor tar = other.target;
+		Tensor r = other.reward;
+		Tensor next = other.nextState;
+		Tensor term = other.terminal;
 		other.input = input.copyInto(other.input);
 		other.target = target.copyInto(other.target);
 		other.reward = reward.copyInto(other.reward);
 		other.nextState = nextState.copyInto(other.nextState);
 		other.terminal = terminal.copyInto(other.terminal);
-		other.init(samples.length);
+		if(indices != null){
+			other.indices = indices.clone();
+			other.weights = weights.copyInto(other.weights);
+		}
+		
+		// only recreate the sample views when the batched tensors changed
+		if(other.input != in || other.target != tar || other.reward != r
+				|| other.nextState != next || other.terminal != term
+				|| other.samples == null || other.samples.length != samples.length
+				|| !other.samples[0].input.sameDim(samples[0].input)
+				|| !other.samples[0].target.sameDim(samples[0].target)
+				|| !other.samples[0].nextState.sameDim(samples[0].nextState)){
+			other.releaseSamples();
+			other.init(samples.length);
+		}
 		return other;
 	}
 	
@@ -169,6 +192,29 @@ public class ExperiencePoolBatch extends Batch {
 		return copyInto(null);
 	}
 	
+	/**
+	 * Release all batched tensors and sample views
+	 */
+	@Override
+	public void release(){
+		releaseSamples();
+		super.release();
+		reward.release();
+		nextState.release();
+		terminal.release();
+		if(weights != null)
+			weights.release();
+	}
+	
+	private void releaseSamples(){
+		if(samples == null)
+			return;
+		
+		for(ExperiencePoolSample s : samples){
+			s.release();
+		}
+	}
+	
 	public boolean equals(Object other){
 		if(!(other instanceof ExperiencePoolBatch))
 			return false;
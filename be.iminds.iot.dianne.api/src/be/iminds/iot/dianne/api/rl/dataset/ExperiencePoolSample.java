@@ -122,6 +122,20 @@ public class ExperiencePoolSample extends Sample {
 		return copyInto(null);
 	}
 	
+	/**
+	 * Release all tensors of this sample
+	 */
+	@Override
+	public void release(){
+		super.release();
+		if(reward != null)
+			reward.release();
+		if(nextState != null)
+			nextState.release();
+		if(terminal != null)
+			terminal.release();
+	}
+	
 	public boolean equals(Object other){
 		if(!(other instanceof ExperiencePoolSample))
 			return false;
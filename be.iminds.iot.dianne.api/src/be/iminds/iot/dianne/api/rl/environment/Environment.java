@@ -84,4 +84,13 @@ public interface Environment {
 	 */
 	void cleanup();
 	
+	/**
+	 * Create a new, independent instance of this environment, i.e. to let an Agent act on
+	 * multiple environments in parallel. The new instance still has to be set up.
+	 * 
+	 * @return a new instance of this environment, or null in case only a single instance is supported
+	 */
+	default Environment newInstance(){
+		return null;
+	}
 }
@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.api.nn.eval;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import be.iminds.iot.dianne.tensor.NativeTensorLoader;
+import be.iminds.iot.dianne.tensor.Tensor;
+
+public class EvaluationMergeTest {
+
+	@BeforeClass
+	public static void load() {
+		NativeTensorLoader loader = new NativeTensorLoader();
+		loader.activate(null);
+	}
+	
+	@Test
+	public void testMergeClassification() {
+		ClassificationEvaluation e1 = classification(new float[]{3, 1, 0, 2}, new int[]{0, 1, 0, 0, 2, 0}, 0.1f, 0);
+		ClassificationEvaluation e2 = classification(new float[]{1, 0, 1, 2}, new int[]{0, 0, 1, 0}, 0.3f, 6);
+		
+		ClassificationEvaluation merged = new ClassificationEvaluation();
+		merged.merge(e1);
+		merged.merge(e2);
+		
+		Assert.assertEquals(10, merged.size());
+		Assert.assertEquals(0.3f, merged.error(), 1e-6f);
+		Assert.assertEquals(0.18f, merged.forwardTime(), 1e-6f);
+		Assert.assertEquals(50, merged.time());
+		Assert.assertArrayEquals(new float[]{4, 1, 1, 4}, merged.confusionMatrix().get(), 0.0f);
+		Assert.assertArrayEquals(new int[]{0, 1, 0, 0, 2, 0, 0, 0, 1, 0}, merged.rankings);
+		Assert.assertEquals(0.7f, merged.topNaccuracy(1), 1e-6f);
+		Assert.assertEquals(0.9f, merged.topNaccuracy(2), 1e-6f);
+		Assert.assertEquals(10, merged.outputs().size());
+		Assert.assertEquals(9, (int)merged.output(9).get(0));
+		
+		// merged evaluations are not modified
+		Assert.assertArrayEquals(new float[]{3, 1, 0, 2}, e1.confusionMatrix().get(), 0.0f);
+		Assert.assertEquals(6, e1.size());
+	}
+	
+	@Test
+	public void testMergeProgress() {
+		EvaluationProgress p = new EvaluationProgress(0, 0, 0);
+		p.merge(new EvaluationProgress(10, 100, 1.0f, 100, 20, 5));
+		p.merge(new EvaluationProgress(30, 100, 3.0f, 300, 40, 5));
+		
+		Assert.assertEquals(40, p.processed());
+		Assert.assertEquals(200, p.size());
+		Assert.assertEquals(2.5f, p.metric(), 1e-6f);
+		Assert.assertEquals(400, p.samplesPerSecond(), 1e-6f);
+		Assert.assertEquals(60, p.forwardTime(), 1e-6f);
+		Assert.assertEquals(10, p.loadTime(), 1e-6f);
+	}
+	
+	private ClassificationEvaluation classification(float[] confusion, int[] rankings, float forwardTime, int start){
+		ClassificationEvaluation e = new ClassificationEvaluation();
+		e.size = rankings.length;
+		int correct = 0;
+		for(int r : rankings){
+			if(r == 0)
+				correct++;
+		}
+		e.metric = 1-(float)correct/rankings.length;
+		e.confusionMatrix = new Tensor(confusion, 2, 2);
+		e.rankings = rankings;
+		e.forwardTime = forwardTime;
+		e.time = rankings.length*10 - 10;
+		
+		List<Tensor> outputs = new ArrayList<>();
+		for(int i=0;i<rankings.length;i++){
+			Tensor o = new Tensor(2);
+			o.fill(start+i);
+			outputs.add(o);
+		}
+		e.outputs = outputs;
+		return e;
+	}
+}
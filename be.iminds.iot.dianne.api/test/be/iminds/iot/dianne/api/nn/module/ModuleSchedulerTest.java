@@ -0,0 +1,180 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.api.nn.module;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.util.promise.Deferred;
+
+import be.iminds.iot.dianne.api.nn.module.ModuleScheduler.ModuleStats;
+
+public class ModuleSchedulerTest {
+
+	@Test
+	public void testPoolSize() throws Exception {
+		int threads = Integer.getInteger("be.iminds.iot.dianne.nn.threads", Runtime.getRuntime().availableProcessors());
+		Assert.assertEquals(threads, ModuleScheduler.getPoolSize());
+		
+		// tasks that block without telling the pool never run on more threads than the pool size
+		int n = 2*threads + 1;
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger max = new AtomicInteger();
+		CountDownLatch started = new CountDownLatch(threads);
+		CountDownLatch release = new CountDownLatch(1);
+		List<ForkJoinTask<?>> tasks = new ArrayList<>();
+		for(int i=0;i<n;i++){
+			tasks.add(ModuleScheduler.pool().submit(() -> {
+				max.accumulateAndGet(running.incrementAndGet(), Math::max);
+				started.countDown();
+				try {
+					release.await();
+				} catch(InterruptedException e){
+					Thread.currentThread().interrupt();
+				}
+				running.decrementAndGet();
+			}));
+		}
+		
+		Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+		Assert.assertEquals(threads, ModuleScheduler.getActiveCount());
+		Assert.assertTrue(ModuleScheduler.getQueueDepth() >= n - threads);
+		
+		release.countDown();
+		for(ForkJoinTask<?> t : tasks){
+			t.get(10, TimeUnit.SECONDS);
+		}
+		Assert.assertEquals(threads, max.get());
+	}
+	
+	@Test
+	public void testAwaitPromise() throws Exception {
+		// each task waits for a nested task while all pool threads are taken
+		int n = ModuleScheduler.getPoolSize();
+		CountDownLatch started = new CountDownLatch(n);
+		List<ForkJoinTask<Integer>> tasks = new ArrayList<>();
+		for(int i=0;i<n;i++){
+			final int k = i;
+			tasks.add(ModuleScheduler.pool().submit(() -> {
+				started.countDown();
+				started.await();
+				
+				Deferred<Integer> d = new Deferred<>();
+				ModuleScheduler.pool().execute(() -> d.resolve(k));
+				return ModuleScheduler.await(d.getPromise());
+			}));
+		}
+		
+		for(int i=0;i<n;i++){
+			Assert.assertEquals(i, (int)tasks.get(i).get(10, TimeUnit.SECONDS));
+		}
+	}
+	
+	@Test
+	public void testAwaitMonitor() throws Exception {
+		int n = ModuleScheduler.getPoolSize();
+		CountDownLatch started = new CountDownLatch(n);
+		List<ForkJoinTask<?>> tasks = new ArrayList<>();
+		for(int i=0;i<n;i++){
+			tasks.add(ModuleScheduler.pool().submit(() -> {
+				started.countDown();
+				started.await();
+				
+				Object monitor = new Object();
+				AtomicBoolean busy = new AtomicBoolean(true);
+				ModuleScheduler.pool().execute(() -> {
+					synchronized(monitor){
+						busy.set(false);
+						monitor.notifyAll();
+					}
+				});
+				synchronized(monitor){
+					ModuleScheduler.await(monitor, busy::get);
+				}
+				return null;
+			}));
+		}
+		
+		for(ForkJoinTask<?> t : tasks){
+			t.get(10, TimeUnit.SECONDS);
+		}
+		// spare threads were added while the tasks were blocked
+		Assert.assertTrue(ModuleScheduler.getThreadCount() > n);
+	}
+	
+	@Test
+	public void testModuleStats() {
+		ModuleScheduler.resetModuleStats();
+		
+		Module m = new Identity();
+		ModuleScheduler.record(m, 100);
+		ModuleScheduler.record(m, 300);
+		
+		// modules that are not executed locally are not recorded
+		UUID remoteId = UUID.randomUUID();
+		Module remote = (Module)Proxy.newProxyInstance(Module.class.getClassLoader(), new Class[]{Module.class}, 
+				(proxy, method, args) -> method.getName().equals("getId") ? remoteId : null);
+		ModuleScheduler.record(remote, 100);
+		
+		Map<UUID, ModuleStats> stats = ModuleScheduler.getModuleStats();
+		Assert.assertEquals(1, stats.size());
+		ModuleStats s = stats.get(m.getId());
+		Assert.assertEquals("Identity", s.type);
+		Assert.assertEquals(2, s.getRuns());
+		Assert.assertEquals(400, s.getTime());
+		Assert.assertEquals(200.0, s.getAverageTime(), 0.0);
+		
+		try {
+			stats.clear();
+			Assert.fail("The module stats should not be modifiable");
+		} catch(UnsupportedOperationException e){
+			// expected
+		}
+		
+		ModuleScheduler.resetModuleStats();
+		Assert.assertTrue(ModuleScheduler.getModuleStats().isEmpty());
+	}
+	
+	private static class Identity extends AbstractModule {
+		
+		@Override
+		protected void forward() {
+			output = input;
+		}
+
+		@Override
+		protected void backward() {
+			gradInput = gradOutput;
+		}
+	}
+}
@@ -0,0 +1,171 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.api.repository;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import be.iminds.iot.dianne.api.repository.CompressedTensor.Encoding;
+import be.iminds.iot.dianne.tensor.NativeTensorLoader;
+import be.iminds.iot.dianne.tensor.Tensor;
+
+public class CompressedTensorTest {
+
+	@BeforeClass
+	public static void load() {
+		NativeTensorLoader loader = new NativeTensorLoader();
+		loader.activate(null);
+	}
+	
+	@Test
+	public void testFP16() {
+		Tensor t = new Tensor(10, 100);
+		t.randn();
+		
+		CompressedTensor c = CompressedTensor.encode(t, Encoding.FP16, 0, 0);
+		Assert.assertTrue(c.bytes() < 4*t.size()/2 + 32);
+		
+		Tensor d = c.decode(null);
+		Assert.assertArrayEquals(t.dims(), d.dims());
+		float[] expected = t.get();
+		float[] actual = d.get();
+		for(int i=0;i<expected.length;i++){
+			Assert.assertEquals(expected[i], actual[i], Math.abs(expected[i])/1024 + 1e-7f);
+		}
+	}
+	
+	@Test
+	public void testINT8() {
+		Tensor t = new Tensor(1000);
+		t.randn();
+		
+		CompressedTensor c = CompressedTensor.encode(t, Encoding.INT8, 256, 0);
+		Assert.assertEquals(4, c.values.length);
+		Assert.assertTrue(c.bytes() < 4*t.size()/3);
+		
+		Tensor d = c.decode(null);
+		float[] expected = t.get();
+		float[] actual = d.get();
+		for(int i=0;i<expected.length;i++){
+			// error at most half a quantization step
+			Assert.assertEquals(expected[i], actual[i], c.values[i/256]/2 + 1e-6f);
+		}
+	}
+	
+	@Test
+	public void testBF16() {
+		Tensor t = new Tensor(10, 100);
+		t.randn();
+		
+		CompressedTensor c = CompressedTensor.encode(t, Encoding.BF16, 0, 0);
+		Assert.assertTrue(c.bytes() < 4*t.size()/2 + 32);
+		
+		float[] expected = t.get();
+		float[] actual = c.decode(null).get();
+		for(int i=0;i<expected.length;i++){
+			Assert.assertEquals(expected[i], actual[i], Math.abs(expected[i])/128);
+		}
+	}
+	
+	@Test
+	public void testINT8Tail() {
+		// weights of 4 channels of 100 and 4 biases
+		Tensor t = new Tensor(404);
+		t.randn();
+		
+		float[] scales = CompressedTensor.scales(t, 100, 400, 0.5f);
+		CompressedTensor c = CompressedTensor.int8(t, 100, 400, scales);
+		Assert.assertEquals(400, c.data.length);
+		Assert.assertEquals(4, c.tail.length);
+		
+		float[] expected = t.get();
+		float[] actual = c.decode(null).get();
+		for(int i=0;i<400;i++){
+			float max = 127*scales[i/100];
+			float clipped = Math.max(-max, Math.min(max, expected[i]));
+			Assert.assertEquals(clipped, actual[i], scales[i/100]/2 + 1e-6f);
+		}
+		for(int i=400;i<404;i++){
+			Assert.assertEquals(expected[i], actual[i], 0.0f);
+		}
+	}
+	
+	@Test
+	public void testRound() {
+		Tensor t = new Tensor(4, 100);
+		t.randn();
+		Tensor r = t.copyInto(null);
+		
+		CompressedTensor.round(r, Encoding.INT8, 100);
+		Assert.assertArrayEquals(CompressedTensor.encode(t, Encoding.INT8, 100, 0).decode(null).get(), r.get(), 0.0f);
+		
+		// rounding again does not change the values
+		Tensor again = r.copyInto(null);
+		CompressedTensor.round(again, Encoding.INT8, 100);
+		Assert.assertArrayEquals(r.get(), again.get(), 1e-6f);
+	}
+	
+	@Test
+	public void testTopK() {
+		Tensor t = new Tensor(1000);
+		t.randn();
+		
+		CompressedTensor c = CompressedTensor.encode(t, Encoding.TOPK, 0, 0.05f);
+		Assert.assertEquals(50, c.indices.length);
+		
+		float[] expected = t.get();
+		float[] sorted = new float[expected.length];
+		for(int i=0;i<expected.length;i++){
+			sorted[i] = Math.abs(expected[i]);
+		}
+		Arrays.sort(sorted);
+		float threshold = sorted[sorted.length-50];
+		
+		float[] actual = c.decode(null).get();
+		int nonZero = 0;
+		for(int i=0;i<expected.length;i++){
+			if(Math.abs(expected[i]) >= threshold){
+				Assert.assertEquals(expected[i], actual[i], 0.0f);
+				nonZero++;
+			} else {
+				Assert.assertEquals(0.0f, actual[i], 0.0f);
+			}
+		}
+		Assert.assertEquals(50, nonZero);
+	}
+	
+	@Test
+	public void testDecodeInto() {
+		Tensor t = new Tensor(2, 3);
+		t.rand();
+		
+		Tensor res = new Tensor(2, 3);
+		Assert.assertSame(res, CompressedTensor.encode(t, Encoding.NONE, 0, 0).decode(res));
+		Assert.assertArrayEquals(t.get(), res.get(), 0.0f);
+		
+		Assert.assertNotSame(res, CompressedTensor.encode(new Tensor(4), Encoding.FP16, 0, 0).decode(res));
+	}
+}
@@ -24,7 +24,10 @@ package be.iminds.iot.dianne.command;
 
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.UUID;
 
@@ -34,17 +37,36 @@ import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Reference;
 
+import be.iminds.iot.dianne.api.dataset.Dataset;
+import be.iminds.iot.dianne.api.dataset.DianneDatasets;
+import be.iminds.iot.dianne.api.dataset.Sequence;
+import be.iminds.iot.dianne.api.dataset.SequenceDataset;
 import be.iminds.iot.dianne.api.nn.Dianne;
 import be.iminds.iot.dianne.api.nn.NeuralNetwork;
+import be.iminds.iot.dianne.api.nn.NeuralNetwork.MemoryPlan;
+import be.iminds.iot.dianne.api.nn.NeuralNetworkBatchStatistics;
+import be.iminds.iot.dianne.api.nn.NeuralNetworkMemoryStatistics;
 import be.iminds.iot.dianne.api.nn.module.AbstractModule;
+import be.iminds.iot.dianne.api.nn.module.ModuleScheduler;
+import be.iminds.iot.dianne.api.nn.module.ModuleScheduler.ModuleStats;
+import be.iminds.iot.dianne.api.nn.module.dto.ModuleInstanceDTO;
 import be.iminds.iot.dianne.api.nn.module.dto.NeuralNetworkInstanceDTO;
 import be.iminds.iot.dianne.api.nn.platform.DiannePlatform;
+import be.iminds.iot.dianne.nn.util.DianneGraphOptimizer;
+import be.iminds.iot.dianne.nn.util.DianneNeuralNetworkBuilder;
 import be.iminds.iot.dianne.tensor.Tensor;
+import be.iminds.iot.dianne.tensor.TensorOps;
 
 @Component(
 		service=Object.class,
 		property={"osgi.command.scope=dianne",
 				  "osgi.command.function=benchmark",
+				  "osgi.command.function=latency",
+				  "osgi.command.function=load",
+				  "osgi.command.function=memory",
+				  "osgi.command.function=optimize",
+				  "osgi.command.function=rnn",
+				  "osgi.command.function=scheduler",
 				  "osgi.command.function=trace"},
 		immediate=true)
 public class DianneBenchmarkCommands {
@@ -58,6 +80,7 @@ public class DianneBenchmarkCommands {
 	// Dianne components
 	Dianne dianne;
 	DiannePlatform platform;
+	DianneDatasets datasets;
 	
 	@Activate
 	public void activate(BundleContext context){
@@ -83,20 +106,9 @@ public class DianneBenchmarkCommands {
 		System.gc();
 		
 		// generate the input
-		int[] dims = null;
-		try {
-			String[] d = input.split(",");
-			dims = new int[d.length];
-			for(int i=0;i<d.length;i++){
-				dims[i] = Integer.parseInt(d[i]);
-			}
-		} catch(Exception e){
-			System.out.println("Incorrect dimensions provided...");
+		Tensor in = randomInput(input);
+		if(in == null)
 			return;
-		}
-		
-		Tensor in = new Tensor(dims);
-		in.rand();
 		
 		// deploy the NN
 		NeuralNetworkInstanceDTO nni = null;
@@ -186,6 +198,443 @@ public class DianneBenchmarkCommands {
 		benchmark(nnName, input, runs, times, 100, false);
 	}
 	
+	@Descriptor("Compare the per-inference latency of asynchronous and compiled execution of a neural network.")
+	public void latency(
+			@Descriptor("neural network to benchmark")
+			String nnName, 
+			@Descriptor("neural network input dims (comma separated e.g. 10,28,28)")
+			String input,
+			@Descriptor("number of inferences to measure")
+			int times,
+			@Descriptor("also include a backward pass")
+			boolean backward
+		){
+		
+		Tensor in = randomInput(input);
+		if(in == null)
+			return;
+		
+		NeuralNetworkInstanceDTO nni = deploy(nnName, null);
+		if(nni == null)
+			return;
+		
+		try {
+			NeuralNetwork nn = dianne.getNeuralNetwork(nni).getValue();
+			
+			boolean compiled = nn.isCompiled();
+			
+			nn.setCompiled(false);
+			double[] async = latencies(nn, in, times, backward);
+			
+			if(!compile(nn, nnName))
+				return;
+			double[] sync = latencies(nn, in, times, backward);
+			
+			nn.setCompiled(compiled);
+			
+			System.out.println("Latency "+nnName+" ("+times+" times):");
+			System.out.println("Asynchronous: "+summary(async));
+			System.out.println("Compiled: "+summary(sync));
+		} catch(Exception e){
+			System.out.println("Error running the benchmark: "+e.getMessage());
+			e.printStackTrace();
+		} finally {
+			platform.undeployNeuralNetwork(nni.id);
+		}
+	}
+	
+	@Descriptor("Compare the per-inference latency of asynchronous and compiled execution of a neural network.")
+	public void latency(
+			@Descriptor("neural network to benchmark")
+			String nnName, 
+			@Descriptor("neural network input dims (comma separated e.g. 10,28,28)")
+			String input){
+		latency(nnName, input, 1000, false);
+	}
+	
+	private double[] latencies(NeuralNetwork nn, Tensor input, int times, boolean backward) throws Exception {
+		// warmup
+		for(int i=0;i<times/10;i++){
+			run(nn, input, 1, backward);
+		}
+		
+		double[] timings = new double[times];
+		for(int i=0;i<times;i++){
+			timings[i] = run(nn, input, 1, backward);
+		}
+		Arrays.sort(timings);
+		return timings;
+	}
+	
+	private String summary(double[] timings){
+		double avg = Arrays.stream(timings).sum()/timings.length;
+		return "avg "+df.format(avg)+" ms"
+				+" - p50 "+df.format(timings[timings.length/2])+" ms"
+				+" - p99 "+df.format(timings[(int)(timings.length*0.99)])+" ms";
+	}
+	
+	@Descriptor("Compare the module count and inference latency of a neural network before and after graph optimization.")
+	public void optimize(
+			@Descriptor("neural network to benchmark")
+			String nnName, 
+			@Descriptor("neural network input dims (comma separated e.g. 10,28,28)")
+			String input,
+			@Descriptor("number of inferences to measure")
+			int times,
+			@Descriptor("tags of the parameters to load")
+			String... tags
+		){
+		
+		Tensor in = randomInput(input);
+		if(in == null)
+			return;
+		
+		NeuralNetworkInstanceDTO nni = deploy(nnName, null, tags);
+		if(nni == null)
+			return;
+		
+		NeuralNetworkInstanceDTO optimized = null;
+		try {
+			NeuralNetwork nn = dianne.getNeuralNetwork(nni).getValue();
+			
+			Map<String, String> properties = new HashMap<>();
+			properties.put("optimize", "true");
+			optimized = deploy(nnName, properties, tags);
+			if(optimized == null)
+				return;
+			
+			NeuralNetwork nnOptimized = dianne.getNeuralNetwork(optimized).getValue();
+			if(tags.length == 0){
+				// no stored parameters, use the same random ones and fold these as the runtime would
+				nn.randomizeParameters();
+				Map<UUID, Tensor> parameters = nn.getParameters();
+				for(ModuleInstanceDTO m : optimized.modules.values()){
+					String bn = m.module.properties.get(DianneGraphOptimizer.BATCHNORM);
+					if(bn != null){
+						parameters.put(m.moduleId, DianneGraphOptimizer.foldBatchNormalization(parameters.get(m.moduleId), parameters.get(UUID.fromString(bn))));
+					}
+				}
+				nnOptimized.setParameters(parameters);
+			}
+			if(!compile(nn, nnName) || !compile(nnOptimized, nnName))
+				return;
+			
+			Tensor out = nn.forward(in).clone();
+			Tensor outOptimized = nnOptimized.forward(in);
+			float diff = TensorOps.max(TensorOps.abs(null, TensorOps.sub(null, out, outOptimized)));
+			
+			double[] latencies = latencies(nn, in, times, false);
+			double[] latenciesOptimized = latencies(nnOptimized, in, times, false);
+			
+			System.out.println("Optimize "+nnName+" ("+times+" times):");
+			System.out.println("Original: "+nni.modules.size()+" modules - "+summary(latencies));
+			System.out.println("Optimized: "+optimized.modules.size()+" modules - "+summary(latenciesOptimized));
+			System.out.println("Max output difference: "+diff);
+		} catch(Exception e){
+			System.out.println("Error running the benchmark: "+e.getMessage());
+			e.printStackTrace();
+		} finally {
+			platform.undeployNeuralNetwork(nni.id);
+			if(optimized != null){
+				platform.undeployNeuralNetwork(optimized.id);
+			}
+		}
+	}
+	
+	@Descriptor("Compare the module count and inference latency of a neural network before and after graph optimization.")
+	public void optimize(
+			@Descriptor("neural network to benchmark")
+			String nnName, 
+			@Descriptor("neural network input dims (comma separated e.g. 10,28,28)")
+			String input){
+		optimize(nnName, input, 1000);
+	}
+	
+	@Descriptor("Compare the activation memory and latency of a compiled neural network without and with memory planning.")
+	public void memory(
+			@Descriptor("neural network to benchmark")
+			String nnName, 
+			@Descriptor("neural network input dims (comma separated e.g. 10,28,28)")
+			String input,
+			@Descriptor("number of inferences to measure")
+			int times,
+			@Descriptor("also include a backward pass")
+			boolean backward
+		){
+		
+		Tensor in = randomInput(input);
+		if(in == null)
+			return;
+		
+		NeuralNetworkInstanceDTO nni = deploy(nnName, null);
+		if(nni == null)
+			return;
+		
+		try {
+			NeuralNetwork nn = dianne.getNeuralNetwork(nni).getValue();
+			if(!compile(nn, nnName))
+				return;
+			
+			System.out.println("Memory "+nnName+" ("+times+" times):");
+
+			nn.setMemoryPlan(MemoryPlan.NONE);
+			Tensor out = nn.forward(in).clone();
+			double[] latencies = latencies(nn, in, times, backward);
+			NeuralNetworkMemoryStatistics stats = nn.getMemoryStatistics();
+			System.out.println(stats);
+			System.out.println(summary(latencies));
+			
+			// the inference plan only allows forward passes
+			nn.setMemoryPlan(MemoryPlan.INFERENCE);
+			Tensor outPlanned = nn.forward(in);
+			float diff = TensorOps.max(TensorOps.abs(null, TensorOps.sub(null, out, outPlanned)));
+			latencies = latencies(nn, in, times, false);
+			stats = nn.getMemoryStatistics();
+			System.out.println(stats);
+			System.out.println(summary(latencies)+" - max output difference: "+diff);
+			
+			if(backward){
+				nn.setMemoryPlan(MemoryPlan.TRAINING);
+				latencies = latencies(nn, in, times, true);
+				stats = nn.getMemoryStatistics();
+				System.out.println(stats);
+				System.out.println(summary(latencies));
+			}
+			
+			nn.setMemoryPlan(MemoryPlan.NONE);
+		} catch(Exception e){
+			System.out.println("Error running the benchmark: "+e.getMessage());
+			e.printStackTrace();
+		} finally {
+			platform.undeployNeuralNetwork(nni.id);
+		}
+	}
+	
+	@Descriptor("Compare the activation memory and latency of a compiled neural network without and with memory planning.")
+	public void memory(
+			@Descriptor("neural network to benchmark")
+			String nnName, 
+			@Descriptor("neural network input dims (comma separated e.g. 10,28,28)")
+			String input){
+		memory(nnName, input, 1000, false);
+	}
+	
+	@Descriptor("Generate concurrent single sample forward load on a neural network, without and with dynamic batching.")
+	public void load(
+			@Descriptor("neural network to benchmark")
+			String nnName, 
+			@Descriptor("input dims of a single sample (comma separated e.g. 1,28,28)")
+			String input,
+			@Descriptor("number of concurrent clients")
+			int clients,
+			@Descriptor("number of forward requests per client")
+			int requests,
+			@Descriptor("maximum batch size")
+			int maxBatchSize,
+			@Descriptor("maximum delay to wait for a batch to fill (microseconds)")
+			long maxDelay
+		){
+		
+		int[] dims = parseDims(input);
+		if(dims == null)
+			return;
+		
+		NeuralNetworkInstanceDTO nni = deploy(nnName, null);
+		if(nni == null)
+			return;
+		
+		try {
+			NeuralNetwork nn = dianne.getNeuralNetwork(nni).getValue();
+			
+			nn.setBatching(1, 0);
+			String unbatched = load(nn, dims, clients, requests);
+			
+			if(!nn.setBatching(maxBatchSize, maxDelay)){
+				System.out.println("Neural network "+nnName+" does not support batching");
+				return;
+			}
+			String batched = load(nn, dims, clients, requests);
+			NeuralNetworkBatchStatistics stats = nn.getBatchStatistics();
+			nn.setBatching(1, 0);
+			
+			System.out.println("Load "+nnName+" ("+clients+" clients x "+requests+" requests):");
+			System.out.println("Unbatched: "+unbatched);
+			System.out.println("Batched: "+batched);
+			System.out.println(stats);
+		} catch(Exception e){
+			System.out.println("Error running the benchmark: "+e.getMessage());
+			e.printStackTrace();
+		} finally {
+			platform.undeployNeuralNetwork(nni.id);
+		}
+	}
+	
+	@Descriptor("Generate concurrent single sample forward load on a neural network, without and with dynamic batching.")
+	public void load(
+			@Descriptor("neural network to benchmark")
+			String nnName, 
+			@Descriptor("input dims of a single sample (comma separated e.g. 1,28,28)")
+			String input,
+			@Descriptor("number of concurrent clients")
+			int clients){
+		load(nnName, input, clients, 1000, 32, 1000);
+	}
+	
+	private String load(NeuralNetwork nn, int[] dims, int clients, int requests) throws Exception {
+		double[] timings = new double[clients*requests];
+		Thread[] threads = new Thread[clients];
+		Throwable[] error = new Throwable[1];
+		
+		long start = System.nanoTime();
+		for(int c=0;c<clients;c++){
+			final int offset = c*requests;
+			threads[c] = new Thread(() -> {
+				Tensor in = new Tensor(dims);
+				in.rand();
+				try {
+					for(int i=0;i<requests;i++){
+						long t1 = System.nanoTime();
+						nn.forward((UUID)null, (UUID)null, in).getValue();
+						long t2 = System.nanoTime();
+						timings[offset+i] = (t2-t1)/1e6;
+					}
+				} catch(Throwable t){
+					error[0] = t;
+				}
+			});
+			threads[c].start();
+		}
+		for(Thread t : threads){
+			t.join();
+		}
+		long end = System.nanoTime();
+		
+		if(error[0] != null){
+			throw new Exception("Error forwarding", error[0]);
+		}
+		
+		Arrays.sort(timings);
+		double throughput = timings.length/((end-start)/1e9);
+		return df.format(throughput)+" requests/s - "+summary(timings);
+	}
+	
+	@Descriptor("Compare the steps/second of a fused recurrent layer and its composite in a char-rnn on a sequence dataset.")
+	public void rnn(
+			@Descriptor("sequence dataset to use, e.g. a CharSequenceDataset")
+			String dataset,
+			@Descriptor("recurrent layer type (LSTM or GRU)")
+			String type,
+			@Descriptor("hidden size")
+			int hidden,
+			@Descriptor("sequence length")
+			int length,
+			@Descriptor("batch size")
+			int batchSize,
+			@Descriptor("number of sequences to process")
+			int times,
+			@Descriptor("also include a backward pass through time")
+			boolean backward
+		){
+		
+		Dataset d = datasets.getDataset(dataset);
+		if(d == null || !(d instanceof SequenceDataset)){
+			System.out.println("Dataset "+dataset+" is not available or no sequence dataset");
+			return;
+		}
+		SequenceDataset<?, ?> sd = (SequenceDataset<?, ?>) d;
+		int chars = sd.inputDims()[0];
+		
+		try {
+			String composite = rnn(sd, "Composite"+type, chars, hidden, length, batchSize, times, backward);
+			String fused = rnn(sd, type, chars, hidden, length, batchSize, times, backward);
+
+			System.out.println("Char-rnn "+dataset+" ("+type+" "+hidden+" - "+times+" sequences of "+length+" x "+batchSize+"):");
+			System.out.println("Composite"+type+": "+composite);
+			System.out.println(type+": "+fused);
+		} catch(Exception e){
+			System.out.println("Error running the benchmark: "+e.getMessage());
+			e.printStackTrace();
+		}
+	}
+	
+	@Descriptor("Compare the steps/second of a fused recurrent layer and its composite in a char-rnn on a sequence dataset.")
+	public void rnn(
+			@Descriptor("sequence dataset to use, e.g. a CharSequenceDataset")
+			String dataset,
+			@Descriptor("recurrent layer type (LSTM or GRU)")
+			String type){
+		rnn(dataset, type, 128, 50, 16, 20, true);
+	}
+	
+	private String rnn(SequenceDataset<?, ?> dataset, String type, int chars, int hidden, int length, int batchSize, int times, boolean backward) throws Exception {
+		NeuralNetworkInstanceDTO nni = platform.deployNeuralNetwork(
+				DianneNeuralNetworkBuilder.createCharRNN("CharRNN-"+type, type, chars, hidden));
+		try {
+			NeuralNetwork nn = dianne.getNeuralNetwork(nni).getValue();
+			nn.randomizeParameters();
+			
+			int[] sequences = new int[batchSize];
+			int[] indices = new int[batchSize];
+			int range = dataset.sequenceLength(0)-length-1;
+			
+			// warmup
+			rnn(nn, dataset, sequences, indices, range, length, batchSize, Math.max(1, times/10), backward);
+			
+			long t1 = System.nanoTime();
+			rnn(nn, dataset, sequences, indices, range, length, batchSize, times, backward);
+			long t2 = System.nanoTime();
+			
+			double steps = (double)times*length;
+			return df.format(steps/((t2-t1)/1e9))+" steps/s - "+df.format(steps*batchSize/((t2-t1)/1e9))+" samples/s";
+		} finally {
+			platform.undeployNeuralNetwork(nni.id);
+		}
+	}
+	
+	private void rnn(NeuralNetwork nn, SequenceDataset<?, ?> dataset, int[] sequences, int[] indices, int range, int length, int batchSize, int times, boolean backward){
+		Sequence<?> sequence = null;
+		for(int i=0;i<times;i++){
+			for(int b=0;b<batchSize;b++){
+				indices[b] = random.nextInt(range);
+			}
+			sequence = dataset.getBatchedSequence(null, sequences, indices, length);
+			
+			nn.resetMemory(batchSize);
+			List<Tensor> outputs = nn.forward(sequence.getInputs());
+			if(backward){
+				nn.zeroDeltaParameters();
+				nn.backward(outputs, true);
+			}
+		}
+	}
+	
+	@Descriptor("Print the module scheduler statistics.")
+	public void scheduler(){
+		System.out.println("Pool size: "+ModuleScheduler.getPoolSize()
+				+" - threads: "+ModuleScheduler.getThreadCount()
+				+" - active: "+ModuleScheduler.getActiveCount()
+				+" - queued: "+ModuleScheduler.getQueueDepth());
+		
+		ModuleScheduler.getModuleStats().entrySet().stream()
+			.sorted((e1, e2) -> Long.compare(e2.getValue().getTime(), e1.getValue().getTime()))
+			.forEach(e -> {
+				ModuleStats s = e.getValue();
+				System.out.println(e.getKey()+" ("+s.type+")\t"+s.getRuns()+" runs\t"
+						+df.format(s.getAverageTime()/1e6)+" ms avg\t"
+						+df.format(s.getTime()/1e6)+" ms total");
+			});
+	}
+	
+	@Descriptor("Print or reset the module scheduler statistics.")
+	public void scheduler(
+			@Descriptor("reset the module run time statistics")
+			String action){
+		scheduler();
+		if(action.equals("reset")){
+			ModuleScheduler.resetModuleStats();
+		}
+	}
+	
 	@Descriptor("Set module tracing on/off.")
 	public void trace(
 			@Descriptor("set trace on/off")
@@ -221,6 +670,47 @@ public class DianneBenchmarkCommands {
 		trace(nnName, input, false);
 	}
 	
+	private Tensor randomInput(String input){
+		int[] dims = parseDims(input);
+		if(dims == null)
+			return null;
+		
+		Tensor in = new Tensor(dims);
+		in.rand();
+		return in;
+	}
+	
+	private int[] parseDims(String input){
+		try {
+			String[] d = input.split(",");
+			int[] dims = new int[d.length];
+			for(int i=0;i<d.length;i++){
+				dims[i] = Integer.parseInt(d[i]);
+			}
+			return dims;
+		} catch(Exception e){
+			System.out.println("Incorrect dimensions provided...");
+			return null;
+		}
+	}
+	
+	private NeuralNetworkInstanceDTO deploy(String nnName, Map<String, String> properties, String... tags){
+		try {
+			return platform.deployNeuralNetwork(nnName, properties, tags);
+		} catch (InstantiationException e) {
+			System.out.println("Neural network "+nnName+" could not be deployed...");
+			return null;
+		}
+	}
+	
+	private boolean compile(NeuralNetwork nn, String nnName){
+		if(!nn.setCompiled(true)){
+			System.out.println("Neural network "+nnName+" cannot be compiled, are all modules deployed locally?");
+			return false;
+		}
+		return true;
+	}
+	
 	private double run(NeuralNetwork nn, Tensor input, int times, boolean backward) throws Exception {
 		long t1 = System.nanoTime();
 		Tensor result = null;
@@ -256,5 +746,10 @@ public class DianneBenchmarkCommands {
 	void setDianne(Dianne d){
 		dianne = d;
 	}
+	
+	@Reference
+	void setDianneDatasets(DianneDatasets d){
+		datasets = d;
+	}
 
 }
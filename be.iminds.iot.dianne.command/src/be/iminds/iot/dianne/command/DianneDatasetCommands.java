@@ -63,7 +63,8 @@ import be.iminds.iot.dianne.tensor.TensorOps;
 				  "osgi.command.function=sequences",
 				  "osgi.command.function=dump",
 				  "osgi.command.function=dumpcsv",
-				  "osgi.command.function=clear"},
+				  "osgi.command.function=clear",
+				  "osgi.command.function=pack"},
 		immediate=true)
 public class DianneDatasetCommands {
 
@@ -342,6 +343,43 @@ public class DianneDatasetCommands {
 		System.out.println(Arrays.toString(count.get()));
 	}
 	
+	@Descriptor("Pack a dataset in a single memory mapped file, served as a new dataset.")
+	public void pack(
+			@Descriptor("The dataset to pack")
+			String dataset,
+			@Descriptor("Name of the packed dataset")
+			String packed,
+			@Descriptor("Encoding of the inputs: float or uint8 (for inputs between 0 and 1)")
+			String format){
+		
+		Dataset d = datasets.getDataset(dataset);
+		if(d==null){
+			System.out.println("Dataset "+dataset+" not available");
+			return;
+		}
+		
+		try {
+			long t = System.currentTimeMillis();
+			Dataset p = datasets.packDataset(dataset, packed, format);
+			if(p == null){
+				System.out.println("Packed "+dataset+" but dataset "+packed+" did not come online");
+			} else {
+				System.out.println("Packed "+p.size()+" samples of "+dataset+" into "+packed+" in "+(System.currentTimeMillis()-t)+" ms");
+			}
+		} catch(Throwable t){
+			System.out.println("Failed to pack dataset "+dataset+": "+t.getMessage());
+		}
+	}
+	
+	@Descriptor("Pack a dataset in a single memory mapped file, served as a new dataset.")
+	public void pack(
+			@Descriptor("The dataset to pack")
+			String dataset,
+			@Descriptor("Name of the packed dataset")
+			String packed){
+		pack(dataset, packed, "float");
+	}
+	
 	@Descriptor("Dump the content of an experience pool")
 	public void dump(
 			@Descriptor("The experience pool to dump")
@@ -45,6 +45,7 @@ import be.iminds.iot.dianne.api.nn.module.dto.ModuleInstanceDTO;
 import be.iminds.iot.dianne.api.nn.module.dto.NeuralNetworkInstanceDTO;
 import be.iminds.iot.dianne.api.nn.platform.DiannePlatform;
 import be.iminds.iot.dianne.api.repository.DianneRepository;
+import be.iminds.iot.dianne.api.repository.RepositoryCacheStatistics;
 import be.iminds.iot.dianne.api.repository.RepositoryListener;
 import be.iminds.iot.dianne.tensor.Tensor;
 
@@ -59,7 +60,8 @@ import be.iminds.iot.dianne.tensor.Tensor;
 				  "osgi.command.function=deploy",
 				  "osgi.command.function=undeploy",
 				  "osgi.command.function=size",
-				  "osgi.command.function=gc"},
+				  "osgi.command.function=gc",
+				  "osgi.command.function=cache"},
 		immediate=true)
 public class DiannePlatformCommands {
 
@@ -82,6 +84,16 @@ public class DiannePlatformCommands {
 	public void gc(){
 		System.gc();
 	}
+	
+	@Descriptor("Print the parameter cache statistics of the repository.")
+	public void cache(){
+		RepositoryCacheStatistics stats = repository.getCacheStatistics();
+		if(stats == null){
+			System.out.println("Repository does not cache parameters");
+			return;
+		}
+		System.out.println(stats);
+	}
 
 	@Descriptor("List available runtimes to deploy modules on.")
 	public void runtimes(){
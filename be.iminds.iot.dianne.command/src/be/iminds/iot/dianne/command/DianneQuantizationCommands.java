@@ -0,0 +1,259 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.command;
+
+import java.text.DecimalFormat;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.IntStream;
+
+import org.apache.felix.service.command.Descriptor;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+
+import be.iminds.iot.dianne.api.dataset.Batch;
+import be.iminds.iot.dianne.api.dataset.Dataset;
+import be.iminds.iot.dianne.api.dataset.DianneDatasets;
+import be.iminds.iot.dianne.api.nn.Dianne;
+import be.iminds.iot.dianne.api.nn.NeuralNetwork;
+import be.iminds.iot.dianne.api.nn.eval.Evaluation;
+import be.iminds.iot.dianne.api.nn.eval.Evaluator;
+import be.iminds.iot.dianne.api.nn.module.Quantizable;
+import be.iminds.iot.dianne.api.nn.module.Trainable;
+import be.iminds.iot.dianne.api.nn.module.dto.NeuralNetworkInstanceDTO;
+import be.iminds.iot.dianne.api.nn.platform.DiannePlatform;
+import be.iminds.iot.dianne.api.repository.CompressedTensor;
+import be.iminds.iot.dianne.api.repository.CompressedTensor.Encoding;
+import be.iminds.iot.dianne.api.repository.DianneRepository;
+import be.iminds.iot.dianne.tensor.Tensor;
+
+@Component(
+		service=Object.class,
+		property={"osgi.command.scope=dianne",
+				  "osgi.command.function=calibrate"},
+		immediate=true)
+public class DianneQuantizationCommands {
+
+	private static DecimalFormat df = new DecimalFormat("0.###");
+	
+	// fractions of the largest weight magnitude per channel to try as int8 range
+	private static final float[] CLIP = new float[]{1.0f, 0.9f, 0.8f, 0.7f, 0.6f, 0.5f};
+	
+	Dianne dianne;
+	DiannePlatform platform;
+	DianneRepository repository;
+	DianneDatasets datasets;
+	volatile Evaluator evaluator;
+	
+	@Descriptor("Store reduced precision parameters of a neural network, with the int8 ranges calibrated on a dataset, and compare with full precision.")
+	public void calibrate(
+			@Descriptor("neural network to calibrate")
+			String nnName, 
+			@Descriptor("dataset to calibrate and evaluate on")
+			String dataset,
+			@Descriptor("precision of the weights (fp16, bf16 or int8)")
+			String precision,
+			@Descriptor("number of samples to calibrate on")
+			int samples,
+			@Descriptor("Additional properties, specified as key1=value1 key2=value2 ... (i.e. tag of the full precision parameters, evaluation range)")
+			String... properties){
+		
+		Encoding encoding;
+		try {
+			encoding = Encoding.valueOf(precision.toUpperCase());
+		} catch(IllegalArgumentException e){
+			encoding = Encoding.NONE;
+		}
+		if(encoding != Encoding.FP16 && encoding != Encoding.BF16 && encoding != Encoding.INT8){
+			System.out.println("Unsupported precision "+precision+", use fp16, bf16 or int8");
+			return;
+		}
+		
+		Map<String, String> config = new HashMap<>();
+		for(String property : properties){
+			String[] p = property.split("=");
+			if(p.length==2){
+				config.put(p[0].trim(), p[1].trim());
+			}
+		}
+		String tag = config.get("tag");
+		// the reduced precision parameters are stored with the precision as (additional) tag
+		String compactTag = (tag == null ? "" : tag+"-")+encoding.name().toLowerCase();
+		
+		NeuralNetworkInstanceDTO nni = null;
+		Dataset d = null;
+		try {
+			nni = platform.deployNeuralNetwork(nnName);
+			NeuralNetwork nn = dianne.getNeuralNetwork(nni).getValue();
+			if(tag == null){
+				nn.loadParameters();
+			} else {
+				nn.loadParameters(tag);
+			}
+			
+			d = datasets.configureDataset(dataset, config);
+			if(d == null){
+				System.out.println("Dataset "+dataset+" not available");
+				return;
+			}
+			Batch batch = d.getBatch(IntStream.range(0, Math.min(samples, d.size())).toArray());
+			Tensor reference = nn.forward(batch.input).copyInto(null);
+			
+			Map<UUID, Tensor> full = new HashMap<>();
+			nn.getParameters().entrySet().forEach(e -> full.put(e.getKey(), e.getValue().copyInto(null)));
+			
+			// quantize layer by layer, with the range that best preserves the output on the calibration samples
+			Map<UUID, CompressedTensor> compact = new HashMap<>();
+			long fullBytes = 0;
+			long compactBytes = 0;
+			for(Map.Entry<UUID, Trainable> e : nn.getTrainables().entrySet()){
+				UUID id = e.getKey();
+				Tensor parameters = full.get(id);
+				
+				CompressedTensor best;
+				if(!(e.getValue() instanceof Quantizable)){
+					best = CompressedTensor.encode(parameters, Encoding.NONE, 0, 0);
+				} else if(encoding != Encoding.INT8){
+					best = CompressedTensor.encode(parameters, encoding, 0, 0);
+					nn.setParameters(id, best.decode(null));
+				} else {
+					Quantizable q = (Quantizable)e.getValue();
+					best = null;
+					float bestError = Float.MAX_VALUE;
+					for(float clip : CLIP){
+						float[] scales = CompressedTensor.scales(parameters, q.channelSize(), q.weightsSize(), clip);
+						CompressedTensor c = CompressedTensor.int8(parameters, q.channelSize(), q.weightsSize(), scales);
+						nn.setParameters(id, c.decode(null));
+						
+						float error = error(reference, nn.forward(batch.input));
+						if(error < bestError){
+							bestError = error;
+							best = c;
+						}
+					}
+					nn.setParameters(id, best.decode(null));
+				}
+				compact.put(id, best);
+				
+				fullBytes += 4L*parameters.size();
+				compactBytes += best.bytes();
+			}
+			
+			System.out.println("Output MSE on "+batch.getSize()+" calibration samples: "+error(reference, nn.forward(batch.input)));
+			
+			repository.storeCompressedParameters(nni.id, compact, compactTag);
+			System.out.println("Stored "+encoding+" parameters with tag "+compactTag+": "
+					+df.format(compactBytes/1024.0)+" kB instead of "+df.format(fullBytes/1024.0)+" kB");
+			
+			// compare accuracy and throughput with the full precision parameters
+			Evaluator e = evaluator;
+			if(e == null){
+				System.out.println("No Evaluator available to compare with full precision");
+				return;
+			}
+			
+			Map<String, String> evalConfig = new HashMap<>(config);
+			if(!evalConfig.containsKey("strategy")){
+				evalConfig.put("strategy", "ClassificationEvaluationStrategy");
+			}
+			Evaluation fp32 = e.eval(dataset, evalConfig, nni);
+			evalConfig.put("tag", compactTag);
+			Evaluation reduced = e.eval(dataset, evalConfig, nni);
+			
+			System.out.println("FP32: "+report(fp32));
+			System.out.println(encoding+": "+report(reduced));
+		} catch(Exception e){
+			System.out.println("Error calibrating "+nnName+": "+e.getMessage());
+			e.printStackTrace();
+		} finally {
+			if(d != null){
+				datasets.releaseDataset(d);
+			}
+			if(nni != null){
+				platform.undeployNeuralNetwork(nni.id);
+			}
+		}
+	}
+	
+	@Descriptor("Store reduced precision parameters of a neural network, with the int8 ranges calibrated on a dataset, and compare with full precision.")
+	public void calibrate(
+			@Descriptor("neural network to calibrate")
+			String nnName, 
+			@Descriptor("dataset to calibrate and evaluate on")
+			String dataset,
+			@Descriptor("precision of the weights (fp16, bf16 or int8)")
+			String precision){
+		calibrate(nnName, dataset, precision, 256);
+	}
+	
+	// mean squared error of the output
+	private float error(Tensor reference, Tensor output){
+		float[] r = reference.get();
+		float[] o = output.get();
+		double error = 0;
+		for(int i=0;i<r.length;i++){
+			double diff = r[i] - o[i];
+			error += diff*diff;
+		}
+		return (float)(error/r.length);
+	}
+	
+	private String report(Evaluation eval){
+		return "metric "+df.format(eval.metric())
+				+" - "+df.format(eval.size()*1000.0/Math.max(1, eval.time()))+" samples/s";
+	}
+	
+	@Reference
+	void setDiannePlatform(DiannePlatform p){
+		platform = p;
+	}
+	
+	@Reference
+	void setDianne(Dianne d){
+		dianne = d;
+	}
+	
+	@Reference
+	void setDianneRepository(DianneRepository r){
+		repository = r;
+	}
+
+	@Reference
+	void setDianneDatasets(DianneDatasets d){
+		datasets = d;
+	}
+	
+	@Reference(cardinality=ReferenceCardinality.OPTIONAL, 
+			policy=ReferencePolicy.DYNAMIC)
+	void setEvaluator(Evaluator e){
+		evaluator = e;
+	}
+	
+	void unsetEvaluator(Evaluator e){
+		if(evaluator == e)
+			evaluator = null;
+	}
+}
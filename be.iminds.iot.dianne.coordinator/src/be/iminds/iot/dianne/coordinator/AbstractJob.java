@@ -62,6 +62,9 @@ public abstract class AbstractJob<T> implements Runnable {
 	protected long started = 0;
 	protected long stopped = 0;
 	
+	// incremented each time the job is preempted, to ignore callbacks of a previous run
+	protected volatile int epoch = 0;
+	
 	public AbstractJob(DianneCoordinatorImpl coord,
 			Type type,
 			String d,
@@ -96,6 +99,7 @@ public abstract class AbstractJob<T> implements Runnable {
 	
 	public void run(){
 		started = System.currentTimeMillis();
+		final int run = epoch;
 		try {
 			// deploy each neural network on each target instance
 			// TODO do we indeed need every network on each target?
@@ -122,7 +126,8 @@ public abstract class AbstractJob<T> implements Runnable {
 			// execute
 			execute();
 		} catch(JobFailedException e){
-			done(e);
+			if(run == epoch)
+				done(e);
 		}
 	}
 	
@@ -133,6 +138,32 @@ public abstract class AbstractJob<T> implements Runnable {
 	
 	public void cleanup() {};
 	
+	/**
+	 * @return whether this job can be stopped and restarted later to free its targets
+	 */
+	public boolean isPreemptible(){
+		return false;
+	}
+	
+	// stop the job on its targets, the coordinator will start it again later on
+	void preempt(){
+		epoch++;
+		try {
+			cleanup();
+			
+			for(NeuralNetworkInstanceDTO[] instances : nnis.values()){
+				for(NeuralNetworkInstanceDTO nni : instances){
+					coordinator.platform.undeployNeuralNetwork(nni);
+				}
+			}
+		} finally {
+			nnis = new HashMap<>();
+			targetsByNNi = new HashMap<>();
+			targets = new ArrayList<>();
+			started = 0;
+		}
+	}
+	
 	public void stop() throws Exception {
 		if(started > 0){
 			throw new Exception("This job cannot be stopped");
@@ -121,6 +121,11 @@ public class ActJob extends AbstractJob<AgentResult> implements AgentListener {
 		}
 	}
 
+	@Override
+	public boolean isPreemptible(){
+		return true;
+	}
+
 	@Override
 	public void stop() throws Exception{
 		if(started > 0){
@@ -132,7 +137,7 @@ public class ActJob extends AbstractJob<AgentResult> implements AgentListener {
 
 	@Override
 	public void onProgress(UUID agentId, AgentProgress progress) {
-		if(deferred.getPromise().isDone()){
+		if(deferred.getPromise().isDone() || !isRunning()){
 			return;
 		}
 		
@@ -174,7 +179,7 @@ public class ActJob extends AbstractJob<AgentResult> implements AgentListener {
 
 	@Override
 	public void onException(UUID agentId, Throwable e) {
-		if(deferred.getPromise().isDone()){
+		if(deferred.getPromise().isDone() || !isRunning()){
 			return;
 		}
 		done(new JobFailedException(agentId, this.jobId, "Agent failed on "+agentId+" : "+e.getMessage(), e));
@@ -182,7 +187,7 @@ public class ActJob extends AbstractJob<AgentResult> implements AgentListener {
 
 	@Override
 	public void onFinish(UUID agentId) {
-		if(deferred.getPromise().isDone()){
+		if(deferred.getPromise().isDone() || !isRunning()){
 			return;
 		}
 		done(result);
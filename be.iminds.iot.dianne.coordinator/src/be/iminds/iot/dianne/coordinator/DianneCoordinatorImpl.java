@@ -30,8 +30,8 @@ import java.io.PrintStream;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.BitSet;
-import java.util.Collection;
 import java.util.Comparator;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -41,8 +41,6 @@ import java.util.Map.Entry;
 import java.util.NoSuchElementException;
 import java.util.Queue;
 import java.util.Set;
-import java.util.SortedSet;
-import java.util.TreeSet;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
@@ -82,6 +80,8 @@ import be.iminds.iot.dianne.api.nn.learn.LearnProgress;
 import be.iminds.iot.dianne.api.nn.learn.Learner;
 import be.iminds.iot.dianne.api.nn.module.dto.NeuralNetworkDTO;
 import be.iminds.iot.dianne.api.nn.platform.DiannePlatform;
+import be.iminds.iot.dianne.api.nn.runtime.DianneRuntime;
+import be.iminds.iot.dianne.api.nn.runtime.RuntimeStatus;
 import be.iminds.iot.dianne.api.repository.DianneRepository;
 import be.iminds.iot.dianne.api.rl.agent.Agent;
 import be.iminds.iot.dianne.api.rl.agent.AgentProgress;
@@ -102,19 +102,23 @@ public class DianneCoordinatorImpl implements DianneCoordinator {
 	
 	DeviceManager deviceMgr;
 	
-	// separate queues for learn and eval jobs, 
-	// makes sure eval jobs are not blocked by big learn jobs
+	// separate queues for learn, eval and act jobs, 
+	// the JobScheduler decides which jobs of these queues to start
 	Queue<AbstractJob> queueLearn = new LinkedBlockingQueue<>();
 	Queue<AbstractJob> queueEval = new LinkedBlockingQueue<>();
 	Queue<AbstractJob> queueAct = new LinkedBlockingQueue<>();
 
 
 	Set<AbstractJob> running = new HashSet<>();
+	JobScheduler scheduler = new JobScheduler();
+	// jobs that cannot be started with the current devices, already notified
+	Set<UUID> blocked = new HashSet<>();
 	Queue<AbstractJob> finished = new CircularBlockingQueue<>(10);
 	
 	Map<UUID, Learner> learners = new ConcurrentHashMap<>();
 	Map<UUID, Evaluator> evaluators = new ConcurrentHashMap<>();
 	Map<UUID, Agent> agents = new ConcurrentHashMap<>();
+	Map<UUID, DianneRuntime> runtimes = new ConcurrentHashMap<>();
 
 	
 	ExecutorService pool = Executors.newCachedThreadPool();
@@ -124,6 +128,9 @@ public class DianneCoordinatorImpl implements DianneCoordinator {
 	Map<UUID, BitSet> deviceUsage = new ConcurrentHashMap<>();
 	// keeps failures to eventually blacklist device
 	Map<UUID, Integer> deviceErrors = new ConcurrentHashMap<>();
+	// last time the resources of a device were updated
+	Map<UUID, Long> deviceUpdates = new ConcurrentHashMap<>();
+	long deviceUpdateInterval = 5000;
 	
 	Queue<Notification> notifications = new CircularBlockingQueue<>(20);
 	
@@ -152,7 +159,7 @@ public class DianneCoordinatorImpl implements DianneCoordinator {
 		
 		sendNotification(job.jobId, Level.INFO, "Learn job \""+job.name+"\" submitted.");
 		
-		schedule(Type.LEARN);
+		schedule();
 		
 		return job.getPromise();
 	}
@@ -182,7 +189,7 @@ public class DianneCoordinatorImpl implements DianneCoordinator {
 		
 		sendNotification(job.jobId, Level.INFO, "Evaluation job \""+job.name+"\" submitted.");
 		
-		schedule(Type.EVALUATE);
+		schedule();
 		
 		return job.getPromise();
 	}
@@ -228,7 +235,7 @@ public class DianneCoordinatorImpl implements DianneCoordinator {
 		
 		sendNotification(job.jobId, Level.INFO, "Act job \""+job.name+"\" submitted.");
 		
-		schedule(Type.ACT);
+		schedule();
 		
 		return job.getPromise();
 	}
@@ -399,7 +406,9 @@ public class DianneCoordinatorImpl implements DianneCoordinator {
 					}
 					
 					UUID device = error.getDevice();
-					if(!deviceErrors.containsKey(device)){
+					if(device == null){
+						// job cancelled or not caused by a device
+					} else if(!deviceErrors.containsKey(device)){
 						deviceErrors.put(device, 1);
 					} else {
 						int errors = deviceErrors.get(device);
@@ -441,65 +450,119 @@ public class DianneCoordinatorImpl implements DianneCoordinator {
 		}
 		
 		finished.add(job);
-
-		// schedule new one, check which queue has longest waiting queue item and schedule that one first
-		SortedSet<Queue<AbstractJob>> queues = new TreeSet<>(new Comparator<Queue<AbstractJob>>() {
-			@Override
-			public int compare(Queue<AbstractJob> o1, Queue<AbstractJob> o2) {
-				AbstractJob j1 = o1.peek();
-				AbstractJob j2 = o2.peek();
-				if(j1 == null){
-					if(j2 ==null){
-						return 0;
-					} else {
-						return 1;
-					}
-				} else if(j2 ==null){
-					return -1;
-				} else {
-					return (int)(j1.submitted - j2.submitted);
-				}
+		blocked.remove(job.jobId);
+		
+		scheduler.release(job.jobId, System.currentTimeMillis());
+		schedule();
+	}
+	
+	// try to schedule the queued jobs
+	synchronized void schedule(){
+		List<AbstractJob> queued = new ArrayList<>();
+		queued.addAll(queueLearn);
+		queued.addAll(queueEval);
+		queued.addAll(queueAct);
+		if(queued.isEmpty()){
+			// no more jobs...
+			return;
+		}
+		
+		Map<UUID, AbstractJob> jobs = new HashMap<>();
+		List<JobScheduler.Request> requests = new ArrayList<>();
+		List<AbstractJob> invalid = new ArrayList<>();
+		for(AbstractJob job : queued){
+			try {
+				requests.add(request(job));
+				jobs.put(job.jobId, job);
+			} catch(Exception e){
+				invalid.add(job);
 			}
-		});
-		queues.add(queueLearn);
-		queues.add(queueEval);
-		queues.add(queueAct);
-		for(Queue q : queues){
-			schedule( (q==queueLearn) ? Type.LEARN : (q==queueEval) ? Type.EVALUATE : Type.ACT  );
+		}
+		
+		List<JobScheduler.Node> nodes = nodes();
+		List<JobScheduler.Decision> decisions = scheduler.schedule(requests, nodes, System.currentTimeMillis());
+		for(JobScheduler.Decision decision : decisions){
+			for(JobScheduler.Request preempted : decision.preempted){
+				preempt(getRunningJob(preempted.id));
+			}
+			
+			AbstractJob job = jobs.get(decision.request.id);
+			queue(job.type).remove(job);
+			blocked.remove(job.jobId);
+			for(UUID target : decision.targets){
+				deviceUsage.get(target).set(job.type.ordinal());
+			}
+			running.add(job);
+			job.start(decision.targets, pool);
+			
+			sendNotification(job.jobId, Level.INFO, "Job \""+job.name+"\" started.");
+		}
+		
+		for(JobScheduler.Request request : requests){
+			if(!scheduler.isFeasible(request, nodes) && blocked.add(request.id)){
+				AbstractJob job = jobs.get(request.id);
+				sendNotification(job.jobId, Level.WARNING, "Job \""+job.name+"\" failed to start: Insufficient infrastructure to meet the requirements of this Job");
+			}
+		}
+		
+		for(AbstractJob job : invalid){
+			job.done(new JobFailedException(null, job.jobId, "Invalid job configuration", null));
 		}
 	}
 	
-	// try to schedule the job on top of the queue
-	synchronized void schedule(Type type){
-
-		Queue<AbstractJob> queue = null;
+	// preempt a running job and put it back in its queue
+	synchronized void preempt(AbstractJob<?> job){
+		if(job == null || !running.remove(job))
+			return;
+		
+		job.targets.stream().forEach(uuid -> {
+			BitSet usage = deviceUsage.get(uuid);
+			if(usage != null)
+				usage.set(job.type.ordinal(), false);
+		});
+		job.preempt();
+		queue(job.type).add(job);
+		
+		sendNotification(job.jobId, Level.WARNING, "Job \""+job.name+"\" preempted, it will be restarted later.");
+	}
+	
+	private Queue<AbstractJob> queue(Type type){
 		switch(type){
 		case LEARN:
-			queue = queueLearn;
-			break;
+			return queueLearn;
 		case EVALUATE:
-			queue = queueEval;
-			break;
-		case ACT:
-			queue = queueAct;
-			break;
+			return queueEval;
+		default:
+			return queueAct;
 		}
+	}
+	
+	// create a JobScheduler request from the job config
+	private JobScheduler.Request request(AbstractJob<?> job) throws Exception {
+		JobScheduler.Request request = new JobScheduler.Request(job.jobId, job.type, job.submitted);
 		
-		// try to schedule the next job on the queue
-		AbstractJob<?> job = queue.peek();
-		if(job==null){
-			// no more jobs...
-			return;
+		// by default evaluations go before learn and act jobs
+		if(job.config.containsKey("priority")){
+			request.priority = Integer.parseInt(job.config.get("priority"));
+		} else if(job.type == Type.EVALUATE){
+			request.priority = 1;
+		}
+		
+		// fair share between users or tags
+		if(job.config.containsKey("user")){
+			request.share = job.config.get("user");
+		} else if(job.config.containsKey("tag")){
+			request.share = job.config.get("tag");
 		}
 		
 		// check in case a target list is given as comma separated uuids
 		List<UUID> targets = null;
-		String t = (String)job.config.get("targets");
+		String t = job.config.get("targets");
 		if(t!=null){
 			try {
 				targets = new ArrayList<>();
 				for(String tt : t.split(",")){
-					targets.add(UUID.fromString(tt));
+					targets.add(UUID.fromString(tt.trim()));
 				}
 			} catch(Exception e){
 				e.printStackTrace();
@@ -508,104 +571,91 @@ public class DianneCoordinatorImpl implements DianneCoordinator {
 		}
 		
 		// check if count/filter is specified
-		int count = 1;
 		if(job.config.containsKey("targetCount")){
-			count = Integer.parseInt((String)job.config.get("targetCount"));
+			request.count = Integer.parseInt(job.config.get("targetCount"));
 		} else if(targets!=null){
 			// if no count given but targets is, use all of them?
-			count = targets.size();
+			request.count = targets.size();
+		}
+		
+		String filter = job.config.get("targetFilter");
+		if(filter != null){
+			Filter f = context.createFilter(filter);
+			List<UUID> ids = targets;
+			request.candidates = devices.values().stream()
+					.filter(device -> ids == null || ids.contains(device.id))
+					.filter(device -> f.matches(toMap(device)))
+					.map(device -> device.id)
+					.collect(Collectors.toList());
+		} else {
+			request.candidates = targets;
+		}
+		
+		// resources required on each target, memory in MB
+		if(job.config.containsKey("cores")){
+			request.cores = Integer.parseInt(job.config.get("cores"));
+		}
+		if(job.config.containsKey("memory")){
+			request.memory = Long.parseLong(job.config.get("memory"))*1024*1024;
 		}
-		String filter = (String)job.config.get("targetFilter");
 		
-		boolean forceFree = false;
 		if(job.config.containsKey("forceFree")){
-			forceFree = Boolean.parseBoolean("forceFree");
+			request.forceFree = Boolean.parseBoolean(job.config.get("forceFree"));
 		}
 		
-		try {
-			if(targets!=null){
-				targets = findTargets(type, targets, filter, count, forceFree);
-			} else if(type==Type.EVALUATE){
-				targets = findTargets(type, evaluators.keySet(), filter, count, forceFree);
-			} else if(type==Type.LEARN){
-				targets = findTargets(type, learners.keySet(), filter, count, forceFree);
-			} else if(type==Type.ACT){
-				targets = findTargets(type, agents.keySet(), filter, count, forceFree);
-			}
-		} catch(Exception e){
-			// impossible to find targets (i.e. not enough workers (yet)) ... try to schedule next and add this one to back of queue
-			job = queue.poll();
-			sendNotification(job.jobId, Level.WARNING, "Job \""+job.name+"\" failed to start: "+e.getMessage());
-			schedule(type);
-			queue.add(job);
-			return;
+		if(job.config.containsKey("preemptible")){
+			request.preemptible = job.isPreemptible() && Boolean.parseBoolean(job.config.get("preemptible"));
 		}
+		
+		return request;
+	}
+	
+	// the devices with their current resources
+	private List<JobScheduler.Node> nodes(){
+		long now = System.currentTimeMillis();
+		List<JobScheduler.Node> nodes = new ArrayList<>();
+		for(Device device : devices.values()){
+			Set<Type> types = EnumSet.noneOf(Type.class);
+			if(learners.containsKey(device.id))
+				types.add(Type.LEARN);
+			if(evaluators.containsKey(device.id))
+				types.add(Type.EVALUATE);
+			if(agents.containsKey(device.id))
+				types.add(Type.ACT);
 			
-		for(UUID target : targets){
-			deviceUsage.get(target).set(job.type.ordinal());
-		}
-		job = queue.poll();
-		job.start(targets, pool);
-		running.add(job);
+			updateDevice(device, now);
 			
-		sendNotification(job.jobId, Level.INFO, "Job \""+job.name+"\" started.");
-
+			JobScheduler.Node node = new JobScheduler.Node(device.id, types);
+			node.cores = device.cores;
+			node.memory = device.memory;
+			node.freeMemory = device.freeMemory;
+			node.load = device.load;
+			node.errors = deviceErrors.getOrDefault(device.id, 0);
+			nodes.add(node);
+		}
+		return nodes;
 	}
 	
-	List<UUID> findTargets(Type type, Collection<UUID> ids, String filter, int count, boolean forceFree) throws Exception {
-		List<UUID> candidates = ids.stream()
-					.map(uuid -> devices.get(uuid))
-					.filter( device -> {	// match device filter
-						if(device==null)
-							return false;  // could be an invalid uuid if given from targets property
-						
-						if(filter==null)
-							return true;
-						
-						try {
-							Filter f = context.createFilter(filter);
-							return f.matches(toMap(device));
-						} catch(Exception e){
-							e.printStackTrace();
-							return false;
-						}
-					})
-					.map(device -> device.id)
-					// discourate the use of devices that tend to cause errors :-)
-					.sorted(new Comparator<UUID>() {
-						@Override
-						public int compare(UUID o1, UUID o2) {
-							int errors1 = deviceErrors.containsKey(o1) ? deviceErrors.get(o1) : 0;
-							int errors2 = deviceErrors.containsKey(o2) ? deviceErrors.get(o2) : 0;
-							return errors1 -errors2;
-						}
-					})
-					.collect(Collectors.toList());
+	// update the resources of a device using the DianneRuntime on that device
+	private void updateDevice(Device device, long now){
+		DianneRuntime runtime = runtimes.get(device.id);
+		if(runtime == null)
+			return;
 		
-		// check if this is possible
-		if(candidates.size() < count)
-			throw new Exception("Insufficient infrastructure to meet the requirements of this Job");
-		
-		// check if the possible devices are currently available
-		List<UUID> targets = candidates.stream()
-			.filter(uuid -> deviceUsage.get(uuid).isEmpty()) // search for free nodes only
-			.limit(count)
-			.collect(Collectors.toList());
-		
-		// no free devices
-		// search for devices not already running this job type and co-locate? 
-		if(targets.size() != count && !forceFree){
-			targets = candidates.stream()
-					.filter(uuid -> !deviceUsage.get(uuid).get(type.ordinal())) 
-					.limit(count)
-					.collect(Collectors.toList());
-		}
-
-		if(targets.size() != count){
-			throw new Exception("Not enough free targets for this Job");
-		}
+		Long updated = deviceUpdates.get(device.id);
+		if(updated != null && now - updated < deviceUpdateInterval)
+			return;
 		
-		return targets;
+		try {
+			RuntimeStatus status = runtime.getStatus();
+			device.cores = status.cores;
+			device.memory = status.memory;
+			device.freeMemory = status.freeMemory;
+			device.load = status.load;
+		} catch(Exception e){
+			// runtime might be gone or not support status
+		}
+		deviceUpdates.put(device.id, now);
 	}
 
 	void sendNotification(UUID jobId, Level level, String message){
@@ -674,6 +724,16 @@ public class DianneCoordinatorImpl implements DianneCoordinator {
 
 		File d = new File(storageDir);
 		d.mkdirs();
+		
+		// scheduler settings, in seconds
+		String aging = context.getProperty("be.iminds.iot.dianne.scheduler.aging");
+		if(aging!=null){
+			scheduler.agingTime = Long.parseLong(aging)*1000;
+		}
+		String reserve = context.getProperty("be.iminds.iot.dianne.scheduler.reserve");
+		if(reserve!=null){
+			scheduler.reserveAfter = Long.parseLong(reserve)*1000;
+		}
 	}
 	
 	// TODO here we use a name (ADeviceMgr) that is alphabetically before the others
@@ -703,6 +763,16 @@ public class DianneCoordinatorImpl implements DianneCoordinator {
 		this.datasets = datasets;
 	}
 	
+	@Reference(policy=ReferencePolicy.DYNAMIC,
+			cardinality=ReferenceCardinality.MULTIPLE)
+	void addDianneRuntime(DianneRuntime runtime){
+		runtimes.put(runtime.getRuntimeId(), runtime);
+	}
+	
+	void removeDianneRuntime(DianneRuntime runtime){
+		runtimes.values().remove(runtime);
+	}
+	
 	Device addDevice(UUID id){
 		Device device = devices.get(id);
 		if(device == null){
@@ -730,6 +800,7 @@ public class DianneCoordinatorImpl implements DianneCoordinator {
 				deviceUsage.remove(id);
 				devices.remove(id);
 				deviceErrors.remove(id);
+				deviceUpdates.remove(id);
 			}
 		}
 	}
@@ -745,7 +816,7 @@ public class DianneCoordinatorImpl implements DianneCoordinator {
 		
 		sendNotification(null, Level.INFO, "New Learner "+id+" is added to the system.");
 		
-		schedule(Type.LEARN);
+		schedule();
 	}
 	
 	void removeLearner(Learner learner, Map<String, Object> properties){
@@ -781,7 +852,7 @@ public class DianneCoordinatorImpl implements DianneCoordinator {
 		
 		sendNotification(null, Level.INFO, "New Evaluator "+id+" is added to the system.");
 		
-		schedule(Type.EVALUATE);
+		schedule();
 	}
 	
 	void removeEvaluator(Evaluator evaluator, Map<String, Object> properties){
@@ -817,7 +888,7 @@ public class DianneCoordinatorImpl implements DianneCoordinator {
 		
 		sendNotification(null, Level.INFO, "New Agent "+id+" is added to the system.");
 		
-		schedule(Type.ACT);
+		schedule();
 	}
 	
 	void removeAgent(Agent agent, Map<String, Object> properties){
@@ -22,13 +22,16 @@
  *******************************************************************************/
 package be.iminds.iot.dianne.coordinator;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
 import be.iminds.iot.dianne.api.coordinator.EvaluationResult;
 import be.iminds.iot.dianne.api.coordinator.Job.EvaluationCategory;
 import be.iminds.iot.dianne.api.coordinator.Job.Type;
+import be.iminds.iot.dianne.api.dataset.Dataset;
 import be.iminds.iot.dianne.api.nn.eval.ClassificationEvaluation;
 import be.iminds.iot.dianne.api.nn.eval.Evaluation;
 import be.iminds.iot.dianne.api.nn.eval.EvaluationProgress;
@@ -55,20 +58,40 @@ public class EvaluationJob extends AbstractJob<EvaluationResult> {
 	
 	@Override
 	public void execute() throws JobFailedException {
+		final int run = epoch;
+		results.clear();
 		
 		Map<String, String> evalConfig = new HashMap<>(config);
 		if(!evalConfig.containsKey("range") && config.containsKey("testSet")){
 			evalConfig.put("range", config.get("testSet"));
 		}
-
-		Thread[] threads = new Thread[targets.size()];
+		
+		// either evaluate the complete range on each target, or shard the range over the targets
+		boolean shard = config.containsKey("shard") && Boolean.parseBoolean(config.get("shard"));
+		Map<UUID, Map<String, String>> evalConfigs = new HashMap<>();
+		List<String> ranges = shard ? shardRange(evalConfig.get("range"), targets.size()) : null;
+		if(shard && ranges == null){
+			System.out.println("Failed to shard the evaluation range, evaluating on each target");
+			shard = false;
+		}
 		for(int i=0;i<targets.size();i++){
+			if(!shard){
+				evalConfigs.put(targets.get(i), evalConfig);
+			} else if(i < ranges.size()){
+				Map<String, String> shardConfig = new HashMap<>(evalConfig);
+				shardConfig.put("range", ranges.get(i));
+				evalConfigs.put(targets.get(i), shardConfig);
+			}
+		}
+
+		Thread[] threads = new Thread[evalConfigs.size()];
+		for(int i=0;i<evalConfigs.size();i++){
 			final UUID target = targets.get(i);
 			threads[i] = new Thread(new Runnable(){
 				public void run(){
 					try {
 						Evaluator evaluator = coordinator.evaluators.get(target);
-						Evaluation e = evaluator.eval(dataset, evalConfig, nnis.get(target));
+						Evaluation e = evaluator.eval(dataset, evalConfigs.get(target), nnis.get(target));
 						
 						System.out.println("Evaluation result");
 						System.out.println("---");
@@ -88,6 +111,10 @@ public class EvaluationJob extends AbstractJob<EvaluationResult> {
 						
 						results.put(target, e);
 					} catch(Exception e){
+						if(run != epoch || deferred.getPromise().isDone()){
+							// preempted or stopped after another evaluator failed
+							return;
+						}
 						done(new JobFailedException(target, EvaluationJob.this.jobId, "Evaluator failed on "+target+" : "+e.getMessage(), e));
 					}
 				}
@@ -102,10 +129,98 @@ public class EvaluationJob extends AbstractJob<EvaluationResult> {
 			}
 		}
 		
-		result = new EvaluationResult(results);
+		if(run != epoch || deferred.getPromise().isDone()){
+			// preempted or failed
+			return;
+		}
+		
+		Evaluation merged = null;
+		if(shard){
+			// merge in target order, i.e. the order of the ranges
+			try {
+				for(int i=0;i<evalConfigs.size();i++){
+					Evaluation e = results.get(targets.get(i));
+					if(e == null)
+						continue;
+					
+					if(merged == null){
+						merged = e.getClass().newInstance();
+					}
+					merged.merge(e);
+				}
+			} catch(Exception e){
+				throw new JobFailedException(null, jobId, "Failed to merge the evaluation results: "+e.getMessage(), e);
+			}
+		}
+		
+		result = new EvaluationResult(results, merged);
 		
 		done(result);
 	}
+	
+	/**
+	 * Split the range into consecutive parts, one for each evaluator
+	 * @return the ranges or null if no range or dataset size is known
+	 */
+	private List<String> shardRange(String range, int n){
+		String[] r = null;
+		if(range != null){
+			r = range.split(",");
+		} else {
+			Dataset d = coordinator.datasets.getDataset(dataset);
+			if(d == null)
+				return null;
+			r = new String[]{""+d.size()};
+		}
+		
+		List<String> ranges = new ArrayList<>();
+		if(r.length <= 2){
+			// start,end or end
+			int start = r.length == 1 ? 0 : Integer.parseInt(r[0].trim());
+			int end = Integer.parseInt(r[r.length-1].trim());
+			n = Math.min(n, end-start);
+			for(int i=0;i<n;i++){
+				ranges.add((start+i*(end-start)/n)+","+(start+(i+1)*(end-start)/n));
+			}
+		} else {
+			// list of indices, use at least 3 indices per part, 
+			// as a list of 1 or 2 would be interpreted as end or start,end
+			n = Math.max(1, Math.min(n, r.length/3));
+			for(int i=0;i<n;i++){
+				StringBuilder b = new StringBuilder();
+				for(int k=i*r.length/n;k<(i+1)*r.length/n;k++){
+					if(b.length() > 0)
+						b.append(",");
+					b.append(r[k].trim());
+				}
+				ranges.add(b.toString());
+			}
+		}
+		return ranges;
+	}
+
+	@Override
+	public boolean isPreemptible(){
+		return true;
+	}
+	
+	@Override
+	public void cleanup(){
+		// stop the evaluators that are still busy, i.e. when preempted or when another evaluator failed
+		for(UUID target : targets){
+			if(results.containsKey(target))
+				continue;
+			
+			Evaluator evaluator = coordinator.evaluators.get(target);
+			if(evaluator != null){
+				try {
+					evaluator.stop();
+				} catch(Exception e){
+					// evaluator might be gone
+				}
+			}
+		}
+	}
 
 	@Override
 	public EvaluationResult getProgress() {
@@ -0,0 +1,382 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.coordinator;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import be.iminds.iot.dianne.api.coordinator.Job.Type;
+
+/**
+ * The JobScheduler decides which queued jobs to start on which devices.
+ * 
+ * Queued jobs are ranked on priority (which increases while a job is waiting, to avoid starvation),
+ * on the usage of their fair share group (i.e. the user or tag) and on submission time. Jobs
+ * are gang scheduled: a job only starts when all of its targets can be allocated at once. When a job
+ * states the cores and/or memory it requires, the targets are selected best fit on the free resources 
+ * of the devices, otherwise the least loaded devices are used.
+ * 
+ * When a job cannot be started, preemptible jobs with a lower priority are preempted to make room.
+ * The highest ranked job that keeps waiting reserves the devices it needs, so that lower ranked 
+ * jobs can no longer take these devices.
+ * 
+ * The scheduler itself only keeps track of the allocations and fair share usage, and has no 
+ * dependencies on the coordinator so it can be used to simulate a job trace.
+ * 
+ * @author tverbele
+ *
+ */
+public class JobScheduler {
+
+	/**
+	 * A device to schedule jobs on
+	 */
+	public static class Node {
+		
+		public final UUID id;
+		// the job types this device can execute
+		public final Set<Type> types;
+		
+		// resources of the device, zero or negative when unknown
+		public int cores = 0;
+		public long memory = 0;
+		public long freeMemory = 0;
+		public float load = -1;
+		
+		// the number of jobs that failed on this device
+		public int errors = 0;
+		
+		public Node(UUID id, Set<Type> types){
+			this.id = id;
+			this.types = types;
+		}
+	}
+	
+	/**
+	 * The requirements of a job to schedule
+	 */
+	public static class Request {
+		
+		public final UUID id;
+		public final Type type;
+		public final long submitted;
+		
+		public int priority = 0;
+		// fair share group
+		public String share = "default";
+		// number of devices to allocate at once
+		public int count = 1;
+		// cores and memory (bytes) required on each device
+		public int cores = 0;
+		public long memory = 0;
+		// only use devices that are not running any other job
+		public boolean forceFree = false;
+		// whether this job can be preempted by a job with a higher priority
+		public boolean preemptible = false;
+		// the devices to select from, or null for all devices supporting the job type
+		public Collection<UUID> candidates = null;
+		
+		public Request(UUID id, Type type, long submitted){
+			this.id = id;
+			this.type = type;
+			this.submitted = submitted;
+		}
+	}
+	
+	/**
+	 * A job to start on the targets, after the preempted jobs are stopped
+	 */
+	public static class Decision {
+		
+		public final Request request;
+		public final List<UUID> targets;
+		public final List<Request> preempted;
+		
+		public Decision(Request request, List<UUID> targets, List<Request> preempted){
+			this.request = request;
+			this.targets = targets;
+			this.preempted = preempted;
+		}
+	}
+	
+	private static class Allocation {
+		
+		private final Request request;
+		private final List<UUID> targets;
+		private final long started;
+		
+		public Allocation(Request request, List<UUID> targets, long started){
+			this.request = request;
+			this.targets = targets;
+			this.started = started;
+		}
+	}
+	
+	// time (ms) a job waits before its priority is raised by one
+	long agingTime = 10*60*1000;
+	// time (ms) a job waits before reserving the devices it needs
+	long reserveAfter = 5*60*1000;
+	// half life (ms) of the fair share usage
+	long usageHalfLife = 24*60*60*1000;
+	
+	private final Map<UUID, Allocation> running = new LinkedHashMap<>();
+	// device time (ms) used by each fair share group
+	private final Map<String, Double> usage = new HashMap<>();
+	private long lastDecay = -1;
+	
+	/**
+	 * Select the queued jobs that can be started now and allocate their targets
+	 * 
+	 * @param queued the queued jobs
+	 * @param nodes the current devices
+	 * @param now the current time
+	 * @return the jobs to start, in rank order
+	 */
+	public synchronized List<Decision> schedule(Collection<Request> queued, Collection<Node> nodes, long now){
+		decay(now);
+		
+		Map<String, Double> shares = new HashMap<>();
+		for(Request r : queued){
+			shares.computeIfAbsent(r.share, s -> usage(s, now));
+		}
+		List<Request> ranked = new ArrayList<>(queued);
+		ranked.sort(Comparator.<Request>comparingLong(r -> -priority(r, now))
+				.thenComparingDouble(r -> shares.get(r.share))
+				.thenComparingLong(r -> r.submitted));
+		
+		List<Decision> decisions = new ArrayList<>();
+		Set<UUID> reserved = new HashSet<>();
+		for(Request r : ranked){
+			if(!isFeasible(r, nodes)){
+				// never fits on the current devices, don't let it block others
+				continue;
+			}
+			
+			List<Node> available = nodes.stream()
+					.filter(n -> !reserved.contains(n.id))
+					.collect(Collectors.toList());
+			
+			List<UUID> targets = place(r, available, Collections.emptySet());
+			List<Request> preempted = Collections.emptyList();
+			if(targets == null){
+				// try again without the jobs that can be preempted by this one
+				Set<UUID> victims = running.values().stream()
+						.map(a -> a.request)
+						.filter(v -> v.preemptible && v.priority < r.priority)
+						.map(v -> v.id)
+						.collect(Collectors.toSet());
+				if(!victims.isEmpty()){
+					targets = place(r, available, victims);
+					if(targets != null){
+						List<UUID> t = targets;
+						preempted = running.values().stream()
+							.filter(a -> victims.contains(a.request.id))
+							.filter(a -> a.targets.stream().anyMatch(t::contains))
+							.map(a -> a.request)
+							.collect(Collectors.toList());
+					}
+				}
+			}
+			
+			if(targets == null){
+				// only the highest ranked waiting job reserves devices, others can still backfill
+				if(reserved.isEmpty() && now - r.submitted >= reserveAfter){
+					reserved.addAll(reserve(r, available));
+				}
+				continue;
+			}
+			
+			for(Request v : preempted){
+				release(v.id, now);
+			}
+			running.put(r.id, new Allocation(r, targets, now));
+			decisions.add(new Decision(r, targets, preempted));
+		}
+		return decisions;
+	}
+	
+	/**
+	 * Release the devices allocated to a job, i.e. when the job is done
+	 */
+	public synchronized void release(UUID id, long now){
+		Allocation a = running.remove(id);
+		if(a == null)
+			return;
+		
+		double used = a.targets.size()*(double)(now - a.started);
+		usage.merge(a.request.share, used, Double::sum);
+	}
+	
+	/**
+	 * @return whether the job can be started on the given devices once these are free
+	 */
+	public boolean isFeasible(Request r, Collection<Node> nodes){
+		return nodes.stream()
+			.filter(n -> supports(r, n))
+			.filter(n -> n.cores <= 0 || n.cores >= r.cores)
+			.filter(n -> n.memory <= 0 || n.memory >= r.memory)
+			.count() >= r.count;
+	}
+	
+	/**
+	 * @return the device time used by a fair share group, including its running jobs
+	 */
+	public synchronized double usage(String share, long now){
+		double u = usage.getOrDefault(share, 0.0);
+		for(Allocation a : running.values()){
+			if(a.request.share.equals(share)){
+				u += a.targets.size()*(double)(now - a.started);
+			}
+		}
+		return u;
+	}
+	
+	private long priority(Request r, long now){
+		return r.priority + (now - r.submitted)/agingTime;
+	}
+	
+	private void decay(long now){
+		if(lastDecay >= 0 && now > lastDecay){
+			double f = Math.pow(0.5, (double)(now - lastDecay)/usageHalfLife);
+			usage.replaceAll((share, u) -> u*f);
+		}
+		lastDecay = now;
+	}
+	
+	private boolean supports(Request r, Node n){
+		return n.types.contains(r.type) 
+				&& (r.candidates == null || r.candidates.contains(n.id));
+	}
+	
+	// select the targets for a job, ignoring the allocations of the given jobs
+	private List<UUID> place(Request r, Collection<Node> nodes, Set<UUID> ignore){
+		List<UUID> targets = nodes.stream()
+			.filter(n -> fits(r, n, ignore))
+			.sorted(order(r, ignore))
+			.limit(r.count)
+			.map(n -> n.id)
+			.collect(Collectors.toList());
+		return targets.size() == r.count ? targets : null;
+	}
+	
+	private boolean fits(Request r, Node n, Set<UUID> ignore){
+		if(!supports(r, n))
+			return false;
+		
+		int cores = 0;
+		long memory = 0;
+		boolean ignored = false;
+		for(Allocation a : running.values()){
+			if(!a.targets.contains(n.id))
+				continue;
+			
+			if(ignore.contains(a.request.id)){
+				ignored = true;
+				continue;
+			}
+			
+			// a device executes only one job of each type
+			if(a.request.type == r.type || r.forceFree)
+				return false;
+			
+			cores += a.request.cores;
+			memory += a.request.memory;
+		}
+		
+		// the live metrics still include the resources of ignored jobs
+		if(r.cores > 0 && n.cores > 0){
+			int free = n.cores - cores;
+			if(n.load >= 0 && !ignored)
+				free = Math.min(free, Math.round(n.cores*(1-n.load)));
+			if(free < r.cores)
+				return false;
+		}
+		
+		if(r.memory > 0 && n.memory > 0){
+			long free = n.memory - memory;
+			if(n.freeMemory > 0 && !ignored)
+				free = Math.min(free, n.freeMemory);
+			if(free < r.memory)
+				return false;
+		}
+		
+		return true;
+	}
+	
+	private Comparator<Node> order(Request r, Set<UUID> ignore){
+		// discourage the use of devices that tend to cause errors and avoid preemption
+		Comparator<Node> order = Comparator.<Node>comparingInt(n -> n.errors)
+				.thenComparingLong(n -> allocations(n, ignore, true));
+		
+		if(r.cores > 0 || r.memory > 0){
+			// best fit, keep the large devices for the large jobs
+			order = order.thenComparingLong(n -> n.cores <= 0 ? Integer.MAX_VALUE : n.cores - allocatedCores(n))
+					.thenComparingLong(n -> n.memory <= 0 ? Long.MAX_VALUE : n.memory - allocatedMemory(n));
+		} else {
+			// spread over the free and least loaded devices
+			order = order.thenComparingLong(n -> allocations(n, ignore, false))
+					.thenComparingDouble(n -> n.load);
+		}
+		return order;
+	}
+	
+	// reserve the devices the job can use, preferring the ones that are in use by the fewest jobs
+	private List<UUID> reserve(Request r, Collection<Node> nodes){
+		return nodes.stream()
+			.filter(n -> supports(r, n))
+			.sorted(Comparator.<Node>comparingInt(n -> n.errors)
+					.thenComparingLong(n -> allocations(n, Collections.emptySet(), false)))
+			.limit(r.count)
+			.map(n -> n.id)
+			.collect(Collectors.toList());
+	}
+	
+	private long allocations(Node n, Set<UUID> ignore, boolean ignored){
+		return running.values().stream()
+			.filter(a -> a.targets.contains(n.id))
+			.filter(a -> ignore.contains(a.request.id) == ignored)
+			.count();
+	}
+	
+	private int allocatedCores(Node n){
+		return running.values().stream()
+			.filter(a -> a.targets.contains(n.id))
+			.mapToInt(a -> a.request.cores).sum();
+	}
+	
+	private long allocatedMemory(Node n){
+		return running.values().stream()
+			.filter(a -> a.targets.contains(n.id))
+			.mapToLong(a -> a.request.memory).sum();
+	}
+}
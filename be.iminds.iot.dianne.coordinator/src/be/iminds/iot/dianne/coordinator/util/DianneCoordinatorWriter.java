@@ -25,6 +25,8 @@ package be.iminds.iot.dianne.coordinator.util;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
@@ -151,7 +153,10 @@ public class DianneCoordinatorWriter {
 	
 	public static void writeEvaluationResult(JsonWriter writer, EvaluationResult result) throws Exception {
 		writer.beginArray();
-		for(Evaluation eval : result.evaluations.values()){
+		// for a sharded evaluation only write the merged result
+		Collection<Evaluation> evaluations = result.merged != null ? 
+				Collections.singletonList(result.merged) : result.evaluations.values();
+		for(Evaluation eval : evaluations){
 			writer.beginObject();
 			if(eval==null){
 				// write nothing?
@@ -162,6 +167,12 @@ public class DianneCoordinatorWriter {
 				writer.value(((EvaluationProgress) eval).size());
 				writer.name("metric");
 				writer.value(((EvaluationProgress) eval).metric());
+				writer.name("samplesPerSecond");
+				writer.value(new Float(((EvaluationProgress) eval).samplesPerSecond()));
+				writer.name("forwardTime");
+				writer.value(new Float(((EvaluationProgress) eval).forwardTime()));
+				writer.name("loadTime");
+				writer.value(new Float(((EvaluationProgress) eval).loadTime()));
 			} else {
 				writer.name("evaluationTime");
 				writer.value(eval.time());
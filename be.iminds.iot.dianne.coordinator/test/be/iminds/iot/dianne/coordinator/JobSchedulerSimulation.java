@@ -0,0 +1,289 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.coordinator;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import be.iminds.iot.dianne.api.coordinator.Job.Type;
+import be.iminds.iot.dianne.coordinator.JobScheduler.Decision;
+import be.iminds.iot.dianne.coordinator.JobScheduler.Node;
+import be.iminds.iot.dianne.coordinator.JobScheduler.Request;
+
+/**
+ * Replays a job trace on the JobScheduler and reports the queue wait times and device utilisation.
+ * 
+ * A trace can be provided with -Dtrace=file, one job per line:
+ * submit time (s),type,count,cores,memory (MB),priority,duration (s),preemptible,share
+ * 
+ * Otherwise a random trace of learn, evaluate and act jobs is generated.
+ */
+@Ignore("Simulation, run manually")
+public class JobSchedulerSimulation {
+
+	private static final int NODES = 8;
+	private static final int CORES = 8;
+	private static final long MEMORY = 16L*1024;
+	
+	@Test
+	public void testSimulation() throws Exception {
+		String file = System.getProperty("trace");
+		List<TraceJob> trace = file == null ? generate(300, 0) : load(file);
+		
+		System.out.println("Simulating "+trace.size()+" jobs on "+NODES+" devices");
+		
+		// first come first served, with all jobs at the same priority
+		JobScheduler fcfs = new JobScheduler();
+		fcfs.agingTime = Long.MAX_VALUE;
+		fcfs.reserveAfter = Long.MAX_VALUE;
+		Report baseline = simulate(trace, fcfs, false);
+		
+		Report report = simulate(trace, new JobScheduler(), true);
+		
+		baseline.print("fcfs");
+		report.print("scheduler");
+		
+		Assert.assertEquals(trace.size(), baseline.finished);
+		Assert.assertEquals(trace.size(), report.finished);
+		Assert.assertTrue(report.utilisation() <= 1.0);
+		if(file == null){
+			// evaluations no longer wait behind learn jobs
+			Assert.assertTrue(report.meanWait(Type.EVALUATE) < baseline.meanWait(Type.EVALUATE));
+		}
+	}
+	
+	private Report simulate(List<TraceJob> trace, JobScheduler scheduler, boolean priorities){
+		List<Node> nodes = new ArrayList<>();
+		for(int i=0;i<NODES;i++){
+			Node n = new Node(UUID.randomUUID(), EnumSet.allOf(Type.class));
+			n.cores = CORES;
+			n.memory = MEMORY*1024*1024;
+			nodes.add(n);
+		}
+		
+		Map<UUID, Run> runs = new HashMap<>();
+		List<Run> submissions = new ArrayList<>();
+		for(TraceJob job : trace){
+			Run run = new Run(job, priorities);
+			runs.put(run.request.id, run);
+			submissions.add(run);
+		}
+		submissions.sort((r1, r2) -> Long.compare(r1.job.submit, r2.job.submit));
+		
+		Report report = new Report();
+		List<Run> queued = new ArrayList<>();
+		PriorityQueue<Run> running = new PriorityQueue<>((r1, r2) -> Long.compare(r1.end, r2.end));
+		int next = 0;
+		long now = 0;
+		while(next < submissions.size() || !running.isEmpty()){
+			long t = Long.MAX_VALUE;
+			if(next < submissions.size())
+				t = submissions.get(next).job.submit;
+			if(!running.isEmpty())
+				t = Math.min(t, running.peek().end);
+			now = t;
+			
+			while(!running.isEmpty() && running.peek().end <= now){
+				Run run = running.poll();
+				scheduler.release(run.request.id, now);
+				report.busy += run.request.count*run.request.cores*(now - run.start);
+				report.finish(run, now);
+			}
+			
+			while(next < submissions.size() && submissions.get(next).job.submit <= now){
+				queued.add(submissions.get(next++));
+			}
+			
+			List<Request> requests = queued.stream().map(r -> r.request).collect(Collectors.toList());
+			for(Decision d : scheduler.schedule(requests, nodes, now)){
+				for(Request p : d.preempted){
+					Run run = runs.get(p.id);
+					running.remove(run);
+					report.busy += run.request.count*run.request.cores*(now - run.start);
+					report.preempted++;
+					// act jobs keep their progress, evaluations start over
+					if(run.job.type == Type.ACT)
+						run.remaining -= now - run.start;
+					else 
+						run.remaining = run.job.duration;
+					queued.add(run);
+				}
+				
+				Run run = runs.get(d.request.id);
+				queued.remove(run);
+				run.start = now;
+				run.end = now + run.remaining;
+				running.add(run);
+			}
+		}
+		report.makespan = now;
+		return report;
+	}
+	
+	private List<TraceJob> generate(int count, long seed){
+		Random random = new Random(seed);
+		List<TraceJob> trace = new ArrayList<>();
+		long t = 0;
+		for(int i=0;i<count;i++){
+			t += (long)(-Math.log(1-random.nextDouble())*120000);
+			String share = "user"+random.nextInt(3);
+			double p = random.nextDouble();
+			if(p < 0.2){
+				trace.add(new TraceJob(t, Type.LEARN, 1+random.nextInt(4), 4+random.nextInt(5), 4096+random.nextInt(4096), 
+						0, minutes(30+random.nextInt(90)), false, share));
+			} else if(p < 0.7){
+				trace.add(new TraceJob(t, Type.EVALUATE, 1, 2, 2048, 
+						1, minutes(1+random.nextInt(5)), false, share));
+			} else {
+				trace.add(new TraceJob(t, Type.ACT, 1+random.nextInt(2), 2, 1024, 
+						0, minutes(20+random.nextInt(40)), true, share));
+			}
+		}
+		return trace;
+	}
+	
+	private List<TraceJob> load(String file) throws Exception {
+		List<TraceJob> trace = new ArrayList<>();
+		try(BufferedReader reader = new BufferedReader(new FileReader(file))){
+			String line;
+			while((line = reader.readLine()) != null){
+				line = line.trim();
+				if(line.isEmpty() || line.startsWith("#"))
+					continue;
+				
+				String[] f = line.split(",");
+				trace.add(new TraceJob(Long.parseLong(f[0].trim())*1000, Type.valueOf(f[1].trim()),
+						Integer.parseInt(f[2].trim()), Integer.parseInt(f[3].trim()), Long.parseLong(f[4].trim()),
+						Integer.parseInt(f[5].trim()), Long.parseLong(f[6].trim())*1000, 
+						Boolean.parseBoolean(f[7].trim()), f[8].trim()));
+			}
+		}
+		return trace;
+	}
+	
+	private static long minutes(int m){
+		return m*60000L;
+	}
+	
+	private static class TraceJob {
+		
+		final long submit;
+		final Type type;
+		final int count;
+		final int cores;
+		final long memory;
+		final int priority;
+		final long duration;
+		final boolean preemptible;
+		final String share;
+		
+		public TraceJob(long submit, Type type, int count, int cores, long memory,
+				int priority, long duration, boolean preemptible, String share){
+			this.submit = submit;
+			this.type = type;
+			this.count = count;
+			this.cores = cores;
+			this.memory = memory;
+			this.priority = priority;
+			this.duration = duration;
+			this.preemptible = preemptible;
+			this.share = share;
+		}
+	}
+	
+	private static class Run {
+		
+		final TraceJob job;
+		final Request request;
+		long remaining;
+		long start;
+		long end;
+		
+		public Run(TraceJob job, boolean priorities){
+			this.job = job;
+			this.request = new Request(UUID.randomUUID(), job.type, job.submit);
+			request.count = job.count;
+			request.cores = job.cores;
+			request.memory = job.memory*1024*1024;
+			request.share = job.share;
+			if(priorities){
+				request.priority = job.priority;
+				request.preemptible = job.preemptible;
+			}
+			this.remaining = job.duration;
+		}
+	}
+	
+	private static class Report {
+		
+		int finished = 0;
+		int preempted = 0;
+		long busy = 0;
+		long makespan = 0;
+		Map<Type, List<Long>> waits = new HashMap<>();
+		
+		void finish(Run run, long now){
+			finished++;
+			// time spent in the queue, including after preemption
+			long wait = now - run.job.submit - run.job.duration;
+			waits.computeIfAbsent(run.job.type, t -> new ArrayList<>()).add(wait);
+		}
+		
+		double utilisation(){
+			return (double)busy/(NODES*CORES*makespan);
+		}
+		
+		double meanWait(Type type){
+			return waits.get(type).stream().mapToLong(w -> w).average().orElse(0);
+		}
+		
+		void print(String policy){
+			System.out.println(policy+" - makespan: "+makespan/60000+" min - utilisation: "
+					+String.format("%.1f", 100*utilisation())+"% - preempted: "+preempted);
+			for(Type type : Type.values()){
+				List<Long> w = waits.getOrDefault(type, Collections.emptyList());
+				if(w.isEmpty())
+					continue;
+				
+				Collections.sort(w);
+				System.out.println(String.format("  %-8s  jobs: %3d  mean wait: %7.1f min  p95 wait: %7.1f min  max wait: %7.1f min", 
+						type, w.size(), meanWait(type)/60000, w.get((int)(0.95*(w.size()-1)))/60000.0, w.get(w.size()-1)/60000.0));
+			}
+		}
+	}
+}
@@ -0,0 +1,228 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.coordinator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import be.iminds.iot.dianne.api.coordinator.Job.Type;
+import be.iminds.iot.dianne.coordinator.JobScheduler.Decision;
+import be.iminds.iot.dianne.coordinator.JobScheduler.Node;
+import be.iminds.iot.dianne.coordinator.JobScheduler.Request;
+
+public class JobSchedulerTest {
+
+	private JobScheduler scheduler;
+	private List<Node> nodes;
+	
+	@Before
+	public void setup(){
+		scheduler = new JobScheduler();
+		nodes = new ArrayList<>();
+	}
+	
+	@Test
+	public void testPriority(){
+		node(8, 0);
+		Request low = request(Type.LEARN, 0, 0);
+		Request high = request(Type.LEARN, 10, 0);
+		high.priority = 1;
+		
+		List<Decision> decisions = scheduler.schedule(Arrays.asList(low, high), nodes, 20);
+		Assert.assertEquals(1, decisions.size());
+		Assert.assertEquals(high, decisions.get(0).request);
+	}
+	
+	@Test
+	public void testAging(){
+		scheduler.agingTime = 100;
+		node(8, 0);
+		Request low = request(Type.LEARN, 0, 0);
+		Request high = request(Type.LEARN, 150, 0);
+		high.priority = 1;
+		
+		// low has waited long enough to rank before high
+		List<Decision> decisions = scheduler.schedule(Arrays.asList(low, high), nodes, 200);
+		Assert.assertEquals(low, decisions.get(0).request);
+	}
+	
+	@Test
+	public void testGang(){
+		node(8, 0);
+		node(8, 0);
+		node(8, 0);
+		
+		Request big = request(Type.LEARN, 0, 0);
+		big.count = 4;
+		Assert.assertFalse(scheduler.isFeasible(big, nodes));
+		
+		Request small = request(Type.LEARN, 0, 0);
+		Request gang = request(Type.LEARN, 10, 0);
+		gang.count = 3;
+		
+		List<Decision> decisions = scheduler.schedule(Arrays.asList(big, small), nodes, 10);
+		Assert.assertEquals(1, decisions.size());
+		Assert.assertEquals(small, decisions.get(0).request);
+		
+		// gang cannot be started until all its targets are free
+		decisions = scheduler.schedule(Collections.singletonList(gang), nodes, 20);
+		Assert.assertEquals(0, decisions.size());
+		
+		scheduler.release(small.id, 30);
+		decisions = scheduler.schedule(Collections.singletonList(gang), nodes, 40);
+		Assert.assertEquals(1, decisions.size());
+		Assert.assertEquals(3, decisions.get(0).targets.size());
+	}
+	
+	@Test
+	public void testBestFit(){
+		Node large = node(16, 0);
+		Node small = node(4, 0);
+		
+		Request r1 = request(Type.LEARN, 0, 4);
+		List<Decision> decisions = scheduler.schedule(Collections.singletonList(r1), nodes, 0);
+		Assert.assertEquals(small.id, decisions.get(0).targets.get(0));
+		
+		// the large node remains available for a large job of another type
+		Request r2 = request(Type.EVALUATE, 0, 12);
+		decisions = scheduler.schedule(Collections.singletonList(r2), nodes, 0);
+		Assert.assertEquals(large.id, decisions.get(0).targets.get(0));
+	}
+	
+	@Test
+	public void testResources(){
+		Node n = node(8, 0);
+		n.load = 0.75f;
+		
+		Request r = request(Type.LEARN, 0, 4);
+		Assert.assertEquals(0, scheduler.schedule(Collections.singletonList(r), nodes, 0).size());
+		
+		n.load = 0.25f;
+		n.memory = 4L*1024*1024*1024;
+		n.freeMemory = 1L*1024*1024*1024;
+		r.memory = 2L*1024*1024*1024;
+		Assert.assertEquals(0, scheduler.schedule(Collections.singletonList(r), nodes, 0).size());
+		
+		n.freeMemory = 3L*1024*1024*1024;
+		Assert.assertEquals(1, scheduler.schedule(Collections.singletonList(r), nodes, 0).size());
+	}
+	
+	@Test
+	public void testPreemption(){
+		node(8, 0);
+		node(8, 0);
+		
+		Request act = request(Type.ACT, 0, 0);
+		act.count = 2;
+		act.preemptible = true;
+		Request learn = request(Type.LEARN, 0, 0);
+		scheduler.schedule(Arrays.asList(act, learn), nodes, 0);
+		
+		Request other = request(Type.ACT, 10, 0);
+		List<Decision> decisions = scheduler.schedule(Collections.singletonList(other), nodes, 10);
+		Assert.assertEquals(0, decisions.size());
+		
+		other.priority = 1;
+		decisions = scheduler.schedule(Collections.singletonList(other), nodes, 20);
+		Assert.assertEquals(1, decisions.size());
+		Assert.assertEquals(Collections.singletonList(act), decisions.get(0).preempted);
+		
+		// learn jobs are not preempted
+		Request learn2 = request(Type.LEARN, 30, 0);
+		learn2.priority = 2;
+		learn2.count = 2;
+		decisions = scheduler.schedule(Collections.singletonList(learn2), nodes, 30);
+		Assert.assertEquals(0, decisions.size());
+	}
+	
+	@Test
+	public void testReservation(){
+		scheduler.reserveAfter = 100;
+		node(8, 0);
+		node(8, 0);
+		
+		Request running = request(Type.LEARN, 0, 0);
+		scheduler.schedule(Collections.singletonList(running), nodes, 0);
+		
+		Request big = request(Type.LEARN, 10, 0);
+		big.count = 2;
+		big.priority = 1;
+		Request small = request(Type.LEARN, 20, 0);
+		
+		// small jobs can use the free device while the big job did not wait long
+		List<Decision> decisions = scheduler.schedule(Arrays.asList(big, small), nodes, 50);
+		Assert.assertEquals(small, decisions.get(0).request);
+		scheduler.release(small.id, 60);
+		
+		// until the big job reserves the devices
+		Request small2 = request(Type.LEARN, 70, 0);
+		decisions = scheduler.schedule(Arrays.asList(big, small2), nodes, 200);
+		Assert.assertEquals(0, decisions.size());
+		
+		scheduler.release(running.id, 210);
+		decisions = scheduler.schedule(Arrays.asList(big, small2), nodes, 220);
+		Assert.assertEquals(1, decisions.size());
+		Assert.assertEquals(big, decisions.get(0).request);
+	}
+	
+	@Test
+	public void testFairShare(){
+		node(8, 0);
+		
+		Request a1 = request(Type.LEARN, 0, 0);
+		a1.share = "a";
+		scheduler.schedule(Collections.singletonList(a1), nodes, 0);
+		scheduler.release(a1.id, 1000);
+		
+		Request a2 = request(Type.LEARN, 1000, 0);
+		a2.share = "a";
+		Request b1 = request(Type.LEARN, 1100, 0);
+		b1.share = "b";
+		
+		List<Decision> decisions = scheduler.schedule(Arrays.asList(a2, b1), nodes, 1200);
+		Assert.assertEquals(b1, decisions.get(0).request);
+		Assert.assertEquals(1000, scheduler.usage("a", 1200), 1);
+	}
+	
+	private Node node(int cores, int errors){
+		Node n = new Node(UUID.randomUUID(), EnumSet.allOf(Type.class));
+		n.cores = cores;
+		n.errors = errors;
+		nodes.add(n);
+		return n;
+	}
+	
+	private Request request(Type type, long submitted, int cores){
+		Request r = new Request(UUID.randomUUID(), type, submitted);
+		r.cores = cores;
+		return r;
+	}
+}
@@ -27,6 +27,9 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Hashtable;
@@ -48,6 +51,7 @@ import org.osgi.service.component.annotations.ReferencePolicy;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
 import com.google.gson.stream.JsonReader;
 
 import be.iminds.iot.dianne.api.dataset.Dataset;
@@ -138,6 +142,11 @@ public class DatasetConfigurator implements DianneDatasets {
 				if(config.containsKey("maxSize")){
 					props.put("maxSize", config.get("maxSize"));
 				} 
+				for(String key : new String[]{"priorityAlpha", "priorityEpsilon", "priorityRank", "priorityRankInterval"}){
+					if(config.containsKey(key)){
+						props.put(key, config.get(key));
+					}
+				}
 				
 				try {
 					Configuration c = ca.createFactoryConfiguration(pid, null);
@@ -505,6 +514,58 @@ public class DatasetConfigurator implements DianneDatasets {
 	}
 	
 
+	@Override
+	public Dataset packDataset(String dataset, String packed, String format) {
+		Dataset d = getDataset(dataset);
+		if(d == null){
+			throw new RuntimeException("Dataset "+dataset+" not available");
+		}
+		
+		File dir = new File(path+File.separator+packed);
+		dir.mkdirs();
+		try {
+			PackedDataset.pack(d, new File(dir, packed+".pack"), format);
+			
+			JsonObject json = new JsonObject();
+			json.addProperty("name", packed);
+			json.addProperty("type", "PackedDataset");
+			json.addProperty("file", packed+".pack");
+			if(d.inputType() != null){
+				json.addProperty("inputType", d.inputType());
+			}
+			if(d.targetType() != null){
+				json.addProperty("targetType", d.targetType());
+			}
+			String[] labels = d.getLabels();
+			if(labels != null){
+				JsonArray l = new JsonArray();
+				for(String label : labels){
+					l.add(new JsonPrimitive(label));
+				}
+				json.add("labels", l);
+			}
+			
+			// move the complete config file in place, it is picked up by the directory watcher
+			File tmp = new File(dir, "."+packed+".json.tmp");
+			Files.write(tmp.toPath(), json.toString().getBytes(StandardCharsets.UTF_8));
+			Files.move(tmp.toPath(), new File(dir, packed+".json").toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch(IOException e){
+			throw new RuntimeException("Failed to pack dataset "+dataset, e);
+		}
+		
+		// now wait for the packed dataset to come online
+		Dataset p = getDataset(packed);
+		long t = System.currentTimeMillis();
+		while(p == null && System.currentTimeMillis()-t < 10000){
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+			}
+			p = getDataset(packed);
+		}
+		return p;
+	}
+
 	@Override
 	public boolean isClassificationDataset(String dataset) {
 		Dataset d = datasets.get(dataset);
@@ -0,0 +1,387 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.dataset;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.ConfigurationPolicy;
+
+import be.iminds.iot.dianne.api.dataset.AbstractDataset;
+import be.iminds.iot.dianne.api.dataset.Batch;
+import be.iminds.iot.dianne.api.dataset.Dataset;
+import be.iminds.iot.dianne.tensor.Tensor;
+
+/**
+ * A Dataset that serves the samples from a single packed file, created from any
+ * other Dataset using the pack method. 
+ * 
+ * The file is memory mapped, so samples are copied from the mapped pages directly
+ * into the tensors, and multiple processes on one host share the page cache.
+ * 
+ * The file starts with a header of HEADER_SIZE bytes, all little endian:
+ * magic, version, number of samples, input and target encoding, input dims and 
+ * target dims (each preceded by their length), the offsets of the input and 
+ * target regions, and the minimum and maximum of uint8 encoded inputs, which are 
+ * decoded as min + (max - min) * value / 255. The input and target regions contain 
+ * the samples back to back.
+ * 
+ * @author tverbele
+ *
+ */
+@Component(
+		service={Dataset.class},
+		configurationPolicy=ConfigurationPolicy.REQUIRE,
+		configurationPid="be.iminds.iot.dianne.dataset.PackedDataset",
+		immediate=true, 
+		property={"aiolos.unique=true"})
+public class PackedDataset extends AbstractDataset {
+
+	public static final int MAGIC = 0x504E4E44; // DNNP
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 4096;
+	
+	// 32 bit float per element
+	public static final int FLOAT = 0;
+	// unsigned byte per element, for values in a fixed range (by default between 0 and 1)
+	public static final int UINT8 = 1;
+	// one 32 bit class index per sample, for one-hot targets
+	public static final int INDEX = 2;
+	
+	// max size of a single mapping
+	private static final long CHUNK_SIZE = 1L << 30;
+	
+	private Region inputs;
+	private Region targets;
+	
+	@Override
+	protected void init(Map<String, Object> properties) {
+		String f = (String)properties.get("file");
+		if(f == null){
+			f = name+".pack";
+		}
+		File file = new File(dir+File.separator+f);
+		
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+			FileChannel channel = raf.getChannel()){
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+			header.order(ByteOrder.LITTLE_ENDIAN);
+			
+			if(header.getInt() != MAGIC || header.getInt() != VERSION){
+				throw new IOException("Invalid packed dataset file "+file.getAbsolutePath());
+			}
+			
+			noSamples = header.getInt();
+			int inputEncoding = header.getInt();
+			int targetEncoding = header.getInt();
+			inputDims = new int[header.getInt()];
+			for(int i=0;i<inputDims.length;i++){
+				inputDims[i] = header.getInt();
+			}
+			targetDims = new int[header.getInt()];
+			for(int i=0;i<targetDims.length;i++){
+				targetDims[i] = header.getInt();
+			}
+			long inputOffset = header.getLong();
+			long targetOffset = header.getLong();
+			float min = header.getFloat();
+			float max = header.getFloat();
+			
+			inputs = new Region(channel, inputOffset, inputEncoding, size(inputDims), noSamples, min, max);
+			targets = new Region(channel, targetOffset, targetEncoding, size(targetDims), noSamples, 0, 1);
+		} catch(IOException e){
+			throw new RuntimeException("Failed to open packed dataset "+name, e);
+		}
+	}
+	
+	@Override
+	protected void readLabels(String labelsFile) {}
+
+	@Override
+	protected Tensor getInputSample(Tensor t, int index) {
+		if(t == null)
+			t = new Tensor(inputDims);
+		inputs.read(index, t);
+		return t;
+	}
+
+	@Override
+	protected Tensor getTargetSample(Tensor t, int index) {
+		if(t == null)
+			t = new Tensor(targetDims);
+		targets.read(index, t);
+		return t;
+	}
+	
+	/**
+	 * Pack a dataset into a single file that can be served by a PackedDataset. 
+	 * 
+	 * Inputs are stored as float or as uint8 (if format is "uint8"). In the latter case
+	 * input values should be between 0 and 1, as produced by the ImageConverter, or in the 
+	 * range given as "uint8:min:max". Packing fails in case an input value is out of range.
+	 * Targets of a dataset with labels are stored as class index, other targets as float.
+	 * 
+	 * @param d the dataset to pack, all samples should have the same dims
+	 * @param file the file to write
+	 * @param format the input encoding, "float", "uint8" or "uint8:min:max"
+	 */
+	public static void pack(Dataset d, File file, String format) throws IOException {
+		int[] inputDims = d.inputDims();
+		int[] targetDims = d.targetDims();
+		if(inputDims == null || targetDims == null){
+			throw new IOException("Cannot pack dataset "+d.getName()+" without fixed dims");
+		}
+		
+		int inputEncoding = FLOAT;
+		float min = 0;
+		float max = 1;
+		if(format != null && format.toLowerCase().startsWith("uint8")){
+			inputEncoding = UINT8;
+			String[] range = format.split(":");
+			if(range.length == 3){
+				try {
+					min = Float.parseFloat(range[1]);
+					max = Float.parseFloat(range[2]);
+				} catch(NumberFormatException e){
+					throw new IOException("Invalid uint8 range "+format);
+				}
+			} else if(range.length != 1){
+				throw new IOException("Invalid uint8 range "+format+", should be uint8:min:max");
+			}
+			if(!(max > min)){
+				throw new IOException("Invalid uint8 range "+format+", max should be larger than min");
+			}
+		}
+
+		int targetEncoding = d.getLabels() != null && targetDims.length == 1 ? INDEX : FLOAT;
+		int inputSize = size(inputDims);
+		int targetSize = size(targetDims);
+		int noSamples = d.size();
+		
+		long inputOffset = HEADER_SIZE;
+		long targetOffset = align(inputOffset + ((long)noSamples)*sampleBytes(inputEncoding, inputSize));
+		
+		File tmp = new File(file.getParentFile(), "."+file.getName()+".tmp");
+		try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+			FileChannel channel = raf.getChannel()){
+			raf.setLength(0);
+			
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC);
+			header.putInt(VERSION);
+			header.putInt(noSamples);
+			header.putInt(inputEncoding);
+			header.putInt(targetEncoding);
+			header.putInt(inputDims.length);
+			for(int i : inputDims)
+				header.putInt(i);
+			header.putInt(targetDims.length);
+			for(int i : targetDims)
+				header.putInt(i);
+			header.putLong(inputOffset);
+			header.putLong(targetOffset);
+			header.putFloat(min);
+			header.putFloat(max);
+			header.clear();
+			write(channel, header, 0);
+			
+			// fetch the samples in batches, which are loaded in parallel by the dataset
+			int batchSize = 64;
+			ByteBuffer inputBuffer = ByteBuffer.allocateDirect(batchSize*sampleBytes(inputEncoding, inputSize)).order(ByteOrder.LITTLE_ENDIAN);
+			ByteBuffer targetBuffer = ByteBuffer.allocateDirect(batchSize*sampleBytes(targetEncoding, targetSize)).order(ByteOrder.LITTLE_ENDIAN);
+			Batch batch = null;
+			for(int start = 0; start < noSamples; start += batchSize){
+				int n = Math.min(batchSize, noSamples-start);
+				int[] indices = new int[n];
+				for(int i=0;i<n;i++){
+					indices[i] = start+i;
+				}
+				if(batch == null || batch.getSize() != n){
+					batch = new Batch(n, inputDims, targetDims);
+				}
+				batch = d.getBatch(batch, indices);
+				
+				inputBuffer.clear();
+				targetBuffer.clear();
+				for(int i=0;i<n;i++){
+					try {
+						encode(inputBuffer, inputEncoding, batch.getInput(i), min, max);
+						encode(targetBuffer, targetEncoding, batch.getTarget(i), 0, 0);
+					} catch(IOException e){
+						throw new IOException("Failed to pack sample "+(start+i)+" of dataset "+d.getName()+": "+e.getMessage());
+					}
+				}
+				inputBuffer.flip();
+				targetBuffer.flip();
+				write(channel, inputBuffer, inputOffset + ((long)start)*sampleBytes(inputEncoding, inputSize));
+				write(channel, targetBuffer, targetOffset + ((long)start)*sampleBytes(targetEncoding, targetSize));
+			}
+			
+			channel.force(false);
+		} catch(IOException | RuntimeException e){
+			tmp.delete();
+			throw e;
+		}
+		
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	private static void encode(ByteBuffer buffer, int encoding, Tensor t, float min, float max) throws IOException {
+		int size = t.size();
+		float[] data;
+		switch(encoding){
+		case FLOAT:
+			FloatBuffer floats = buffer.asFloatBuffer();
+			t.get(floats);
+			buffer.position(buffer.position()+size*4);
+			break;
+		case UINT8:
+			data = t.get();
+			for(int i=0;i<size;i++){
+				// allow rounding errors up to half a step
+				float v = (data[i]-min)/(max-min)*255;
+				if(!(v >= -0.5f && v < 255.5f)){
+					throw new IOException("Input value "+data[i]+" is out of the uint8 range ["+min+", "+max+"]");
+				}
+				buffer.put((byte)Math.round(v));
+			}
+			break;
+		case INDEX:
+			data = t.get();
+			int index = -1;
+			for(int i=0;i<size;i++){
+				if(data[i] == 1.0f && index == -1){
+					index = i;
+				} else if(data[i] != 0.0f){
+					throw new IOException("Only one-hot targets can be packed as class index");
+				}
+			}
+			if(index == -1){
+				throw new IOException("Only one-hot targets can be packed as class index");
+			}
+			buffer.putInt(index);
+			break;
+		}
+	}
+	
+	private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining()){
+			position += channel.write(buffer, position);
+		}
+	}
+	
+	private static int size(int[] dims){
+		int size = 1;
+		for(int d : dims)
+			size *= d;
+		return size;
+	}
+	
+	private static int sampleBytes(int encoding, int size){
+		switch(encoding){
+		case UINT8:
+			return size;
+		case INDEX:
+			return 4;
+		default:
+			return size*4;
+		}
+	}
+	
+	private static long align(long offset){
+		return (offset + HEADER_SIZE - 1) / HEADER_SIZE * HEADER_SIZE;
+	}
+	
+	/**
+	 * The input or target region of the file, mapped in chunks of complete samples
+	 */
+	private static class Region {
+		
+		private final int encoding;
+		private final float min;
+		private final float range;
+		private final int sampleBytes;
+		private final int samplesPerChunk;
+		private final ByteBuffer[] chunks;
+		
+		// per thread buffers to convert uint8 data
+		private final ThreadLocal<byte[]> bytes;
+		private final ThreadLocal<float[]> data;
+		
+		public Region(FileChannel channel, long offset, int encoding, int size, int noSamples, float min, float max) throws IOException {
+			this.encoding = encoding;
+			this.min = min;
+			this.range = max - min;
+			this.sampleBytes = sampleBytes(encoding, size);
+			this.samplesPerChunk = (int)Math.max(1, CHUNK_SIZE / sampleBytes);
+			
+			int noChunks = (noSamples + samplesPerChunk - 1) / samplesPerChunk;
+			chunks = new ByteBuffer[noChunks];
+			for(int i=0;i<noChunks;i++){
+				long samples = Math.min(samplesPerChunk, noSamples - ((long)i)*samplesPerChunk);
+				chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset + ((long)i)*samplesPerChunk*sampleBytes, samples*sampleBytes);
+				chunks[i].order(ByteOrder.LITTLE_ENDIAN);
+			}
+			
+			bytes = ThreadLocal.withInitial(() -> new byte[size]);
+			data = ThreadLocal.withInitial(() -> new float[size]);
+		}
+		
+		public void read(int index, Tensor t){
+			// duplicate, as samples are fetched concurrently
+			ByteBuffer b = chunks[index / samplesPerChunk].duplicate().order(ByteOrder.LITTLE_ENDIAN);
+			int position = (index % samplesPerChunk)*sampleBytes;
+			b.limit(position+sampleBytes);
+			b.position(position);
+			
+			switch(encoding){
+			case FLOAT:
+				// bulk copy in case of a little endian platform
+				t.set(b.asFloatBuffer());
+				break;
+			case UINT8:
+				byte[] u = bytes.get();
+				float[] d = data.get();
+				b.get(u);
+				for(int i=0;i<d.length;i++){
+					d[i] = min + range * (u[i] & 0xFF) / 255f;
+				}
+				t.set(d);
+				break;
+			case INDEX:
+				t.fill(0.0f);
+				t.set(1.0f, b.getInt());
+				break;
+			}
+		}
+	}
+}
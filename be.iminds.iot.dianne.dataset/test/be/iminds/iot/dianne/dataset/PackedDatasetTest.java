@@ -0,0 +1,216 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.dataset;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import be.iminds.iot.dianne.api.dataset.AbstractDataset;
+import be.iminds.iot.dianne.api.dataset.Batch;
+import be.iminds.iot.dianne.api.dataset.Dataset;
+import be.iminds.iot.dianne.tensor.NativeTensorLoader;
+import be.iminds.iot.dianne.tensor.Tensor;
+import be.iminds.iot.dianne.tensor.TensorOps;
+
+public class PackedDatasetTest {
+	
+	private static final String DIR = "generated/packed";
+	
+	@BeforeClass
+	public static void setup() {
+		NativeTensorLoader loader = new NativeTensorLoader();
+		loader.activate(null);
+		
+		new File(DIR).mkdirs();
+	}
+	
+	@Test
+	public void testPackFloat() throws Exception {
+		MemoryDataset d = new MemoryDataset(100, new int[]{3, 4, 5}, 10, true, false);
+		Dataset p = pack(d, "float");
+		
+		Assert.assertArrayEquals(d.inputDims(), p.inputDims());
+		Assert.assertArrayEquals(d.targetDims(), p.targetDims());
+		assertSamples(d, p);
+	}
+	
+	@Test
+	public void testPackUInt8() throws Exception {
+		MemoryDataset d = new MemoryDataset(100, new int[]{3, 8, 8}, 4, false, true);
+		Dataset p = pack(d, "uint8");
+		
+		assertSamples(d, p);
+	}
+	
+	@Test
+	public void testPackUInt8Range() throws Exception {
+		MemoryDataset d = new MemoryDataset(50, new int[]{3, 8, 8}, 4, false, true);
+		for(int i=0;i<d.size();i++){
+			// scale inputs to [-1, 1]
+			Tensor input = d.inputs[i];
+			TensorOps.mul(input, input, 2);
+			TensorOps.add(input, input, -1);
+		}
+		Dataset p = pack(d, "uint8:-1:1");
+		
+		for(int i=0;i<d.size();i++){
+			Assert.assertTrue(d.getSample(i).input.equals(p.getSample(i).input, 1e-5f));
+			Assert.assertEquals(d.getSample(i).target, p.getSample(i).target);
+		}
+	}
+	
+	@Test
+	public void testPackUInt8OutOfRange() throws Exception {
+		MemoryDataset d = new MemoryDataset(10, new int[]{16}, 4, false, false);
+		try {
+			pack(d, "uint8");
+			Assert.fail("Inputs outside [0,1] should not be packed as uint8");
+		} catch(IOException e){
+			// expected
+		}
+		
+		try {
+			pack(d, "uint8:1:0");
+			Assert.fail("Invalid range should not be accepted");
+		} catch(IOException e){
+			// expected
+		}
+	}
+	
+	@Test
+	public void testPackBatch() throws Exception {
+		MemoryDataset d = new MemoryDataset(200, new int[]{16}, 10, true, false);
+		Dataset p = pack(d, "float");
+		
+		int[] indices = new int[]{199, 0, 42, 42, 100};
+		Batch expected = d.getBatch(indices);
+		Batch b = p.getBatch(indices);
+		Assert.assertEquals(expected.input, b.input);
+		Assert.assertEquals(expected.target, b.target);
+		
+		// reuse the batch
+		indices = new int[]{1, 2, 3, 4, 5};
+		expected = d.getBatch(expected, indices);
+		b = p.getBatch(b, indices);
+		Assert.assertEquals(expected.input, b.input);
+		Assert.assertEquals(expected.target, b.target);
+	}
+	
+	private Dataset pack(MemoryDataset d, String format) throws Exception {
+		PackedDataset.pack(d, new File(DIR+File.separator+"test.pack"), format);
+		
+		Map<String, Object> config = new HashMap<>();
+		config.put("name", "test");
+		config.put("dir", DIR);
+		if(d.getLabels() != null){
+			config.put("labels", d.getLabels());
+		}
+		PackedDataset p = new PackedDataset();
+		Method activate = AbstractDataset.class.getDeclaredMethod("activate", Map.class);
+		activate.setAccessible(true);
+		activate.invoke(p, config);
+		return p;
+	}
+	
+	private void assertSamples(Dataset expected, Dataset actual){
+		Assert.assertEquals(expected.size(), actual.size());
+		for(int i=0;i<expected.size();i++){
+			Assert.assertEquals(expected.getSample(i).input, actual.getSample(i).input);
+			Assert.assertEquals(expected.getSample(i).target, actual.getSample(i).target);
+		}
+	}
+	
+	private static class MemoryDataset extends AbstractDataset {
+		
+		private final Tensor[] inputs;
+		private final Tensor[] targets;
+		
+		public MemoryDataset(int size, int[] inputDims, int classes, boolean labeled, boolean bytes){
+			Map<String, Object> config = new HashMap<>();
+			config.put("name", "memory");
+			config.put("noSamples", ""+size);
+			String[] dims = new String[inputDims.length];
+			for(int i=0;i<dims.length;i++){
+				dims[i] = ""+inputDims[i];
+			}
+			config.put("inputDims", dims);
+			config.put("targetDims", new String[]{""+classes});
+			if(labeled){
+				String[] labels = new String[classes];
+				for(int i=0;i<classes;i++){
+					labels[i] = "class "+i;
+				}
+				config.put("labels", labels);
+			}
+			activate(config);
+			
+			Random r = new Random(0);
+			inputs = new Tensor[size];
+			targets = new Tensor[size];
+			for(int i=0;i<size;i++){
+				inputs[i] = new Tensor(inputDims);
+				if(bytes){
+					float[] data = new float[inputs[i].size()];
+					for(int k=0;k<data.length;k++){
+						data[k] = r.nextInt(256)/255f;
+					}
+					inputs[i].set(data);
+				} else {
+					inputs[i].randn();
+				}
+				
+				targets[i] = new Tensor(classes);
+				if(labeled){
+					targets[i].fill(0.0f);
+					targets[i].set(1.0f, r.nextInt(classes));
+				} else {
+					targets[i].rand();
+				}
+			}
+		}
+		
+		@Override
+		protected void init(Map<String, Object> properties) {}
+
+		@Override
+		protected void readLabels(String labelsFile) {}
+
+		@Override
+		protected Tensor getInputSample(Tensor t, int index) {
+			return inputs[index].copyInto(t);
+		}
+
+		@Override
+		protected Tensor getTargetSample(Tensor t, int index) {
+			return targets[index].copyInto(t);
+		}
+	}
+}
@@ -22,28 +22,59 @@
  *******************************************************************************/
 package be.iminds.iot.dianne.jsonrpc;
 
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.net.Socket;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLongArray;
 
+import javax.imageio.ImageIO;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Reference;
 
+import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
 import com.google.gson.stream.JsonReader;
 import com.google.gson.stream.JsonWriter;
 
+import be.iminds.iot.dianne.nn.util.DianneJSONRPCRequestFactory;
+
 @Component(
 		service=Object.class,
 		property={"osgi.command.scope=dianne",
-				  "osgi.command.function=jsonrpc"},
+				  "osgi.command.function=jsonrpc",
+				  "osgi.command.function=jsonrpcload"},
 		immediate=true)
 public class DianneJSONRPCCLI {
 
 	private JSONRPCRequestHandler handler;
 	private JsonParser parser = new JsonParser();
 	
+	private int port = 9090;
+	
+	@Activate
+	void activate(BundleContext context){
+		String port = context.getProperty("be.iminds.iot.dianne.dataset.jsonrpc.port");
+		if(port != null)
+			this.port = Integer.parseInt(port);
+	}
+	
 	@Reference
 	void setRequestHandler(JSONRPCRequestHandler h) {
 		this.handler = h;
@@ -66,4 +97,297 @@ public class DianneJSONRPCCLI {
 			e.printStackTrace();
 		} 
 	}
+	
+	public void jsonrpcload(String nnName, String dims) {
+		jsonrpcload(nnName, dims, 4, 1000, 8);
+	}
+	
+	public void jsonrpcload(String nnName, String dims, int clients, int requests, int pipeline) {
+		jsonrpcload("localhost", port, nnName, dims, clients, requests, pipeline);
+	}
+	
+	/**
+	 * Load test the JSON-RPC server with forward requests, using the JSON encoding and the 
+	 * binary encodings of the input. Each client uses its own connection, and keeps up to 
+	 * pipeline requests in flight.
+	 */
+	public void jsonrpcload(String host, int port, String nnName, String dims, int clients, int requests, int pipeline) {
+		int[] d = Arrays.stream(dims.split(",")).map(String::trim).mapToInt(Integer::parseInt).toArray();
+		int size = Arrays.stream(d).reduce(1, (a, b) -> a*b);
+		
+		// random input, identical for all encodings
+		Random random = new Random();
+		byte[] uint8 = new byte[size];
+		random.nextBytes(uint8);
+		float[] data = new float[size];
+		for(int i=0;i<size;i++){
+			data[i] = (uint8[i] & 0xFF)/255f;
+		}
+		
+		String nnId = null;
+		try(LoadConnection control = new LoadConnection(host, port)){
+			control.send(DianneJSONRPCRequestFactory.createDeployRequest(0, nnName).toString().getBytes(StandardCharsets.UTF_8));
+			JsonObject result = parser.parse(new String(control.receive().header, StandardCharsets.UTF_8)).getAsJsonObject();
+			if(result.has("error")){
+				System.out.println("Failed to deploy "+nnName+": "+result.get("error").getAsJsonObject().get("message").getAsString());
+				return;
+			}
+			nnId = result.get("result").getAsString();
+			
+			try {
+				JsonObject request = forwardRequest(nnId);
+				request.get("params").getAsJsonArray().add(toJson(data, d, 0, 0));
+				byte[] json = request.toString().getBytes(StandardCharsets.UTF_8);
+				
+				request = forwardRequest(nnId);
+				request.add("payload", JSONRPCFramer.describe(JSONRPCFramer.FLOAT32, d));
+				ByteBuffer payload = ByteBuffer.allocate(4*size).order(ByteOrder.LITTLE_ENDIAN);
+				payload.asFloatBuffer().put(data);
+				byte[] float32 = toArray(JSONRPCFramer.encode(request.toString(), payload.array()));
+				
+				request = forwardRequest(nnId);
+				request.add("payload", JSONRPCFramer.describe(JSONRPCFramer.UINT8, d));
+				byte[] u8 = toArray(JSONRPCFramer.encode(request.toString(), uint8));
+				
+				byte[] jpeg = null;
+				if(d.length == 3 && (d[0] == 1 || d[0] == 3)){
+					request = forwardRequest(nnId);
+					request.add("payload", JSONRPCFramer.describe(JSONRPCFramer.JPEG));
+					jpeg = toArray(JSONRPCFramer.encode(request.toString(), toJPEG(uint8, d)));
+				}
+				
+				// warm up
+				run(host, port, float32, clients, Math.max(1, requests/10), pipeline);
+				
+				System.out.println(String.format("%-8s %12s %10s %10s %10s %10s %8s", 
+						"Encoding", "Request size", "Req/s", "Avg (ms)", "p50 (ms)", "p99 (ms)", "Errors"));
+				report("json", json.length, run(host, port, json, clients, requests, pipeline));
+				report("float32", float32.length, run(host, port, float32, clients, requests, pipeline));
+				report("uint8", u8.length, run(host, port, u8, clients, requests, pipeline));
+				if(jpeg != null){
+					report("jpeg", jpeg.length, run(host, port, jpeg, clients, requests, pipeline));
+				}
+			} finally {
+				control.send(DianneJSONRPCRequestFactory.createUndeployRequest(1, nnId).toString().getBytes(StandardCharsets.UTF_8));
+				control.receive();
+			}
+		} catch(Exception e){
+			System.out.println("Error load testing "+host+":"+port);
+			e.printStackTrace();
+		}
+	}
+	
+	private JsonObject forwardRequest(String nnId){
+		JsonObject request = new JsonObject();
+		request.add("jsonrpc", new JsonPrimitive("2.0"));
+		request.add("method", new JsonPrimitive("forward"));
+		request.add("id", new JsonPrimitive(2));
+		JsonArray params = new JsonArray();
+		params.add(new JsonPrimitive(nnId));
+		request.add("params", params);
+		return request;
+	}
+	
+	private JsonArray toJson(float[] data, int[] dims, int dim, int offset){
+		JsonArray array = new JsonArray();
+		int stride = 1;
+		for(int i=dim+1;i<dims.length;i++){
+			stride *= dims[i];
+		}
+		for(int i=0;i<dims[dim];i++){
+			if(dim == dims.length-1){
+				array.add(new JsonPrimitive(data[offset+i]));
+			} else {
+				array.add(toJson(data, dims, dim+1, offset+i*stride));
+			}
+		}
+		return array;
+	}
+	
+	private byte[] toJPEG(byte[] data, int[] dims) throws IOException {
+		int channels = dims[0];
+		int height = dims[1];
+		int width = dims[2];
+		BufferedImage img = new BufferedImage(width, height, 
+				channels == 1 ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_INT_RGB);
+		int plane = width*height;
+		for(int j=0;j<height;j++){
+			for(int i=0;i<width;i++){
+				int k = j*width+i;
+				if(channels == 1){
+					img.getRaster().setSample(i, j, 0, data[k] & 0xFF);
+				} else {
+					img.setRGB(i, j, (data[k] & 0xFF) << 16 | (data[plane+k] & 0xFF) << 8 | (data[2*plane+k] & 0xFF));
+				}
+			}
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(img, "jpg", out);
+		return out.toByteArray();
+	}
+	
+	private byte[] toArray(ByteBuffer buffer){
+		byte[] array = new byte[buffer.remaining()];
+		buffer.get(array);
+		return array;
+	}
+	
+	private LoadResult run(String host, int port, byte[] request, int clients, int requests, int pipeline) throws Exception {
+		LoadClient[] c = new LoadClient[clients];
+		Thread[] threads = new Thread[clients];
+		long start = System.nanoTime();
+		for(int i=0;i<clients;i++){
+			c[i] = new LoadClient(host, port, request, requests, pipeline);
+			threads[i] = new Thread(c[i]);
+			threads[i].start();
+		}
+		for(Thread t : threads){
+			t.join();
+		}
+		long time = System.nanoTime()-start;
+		
+		LoadResult result = new LoadResult();
+		result.time = time;
+		result.latencies = new long[clients*requests];
+		int k = 0;
+		for(LoadClient client : c){
+			if(client.exception != null)
+				throw client.exception;
+			System.arraycopy(client.latencies, 0, result.latencies, k, requests);
+			k += requests;
+			result.errors += client.errors;
+			if(client.error != null)
+				result.error = client.error;
+		}
+		Arrays.sort(result.latencies);
+		return result;
+	}
+	
+	private void report(String encoding, int size, LoadResult result){
+		long[] l = result.latencies;
+		double avg = Arrays.stream(l).average().orElse(0)/1000000.0;
+		double p50 = l[(int)(0.5*(l.length-1))]/1000000.0;
+		double p99 = l[(int)(0.99*(l.length-1))]/1000000.0;
+		double throughput = l.length/(result.time/1000000000.0);
+		System.out.println(String.format("%-8s %12d %10.1f %10.3f %10.3f %10.3f %8d", 
+				encoding, size, throughput, avg, p50, p99, result.errors));
+		if(result.error != null){
+			System.out.println("  "+result.error);
+		}
+	}
+	
+	private static class LoadResult {
+		long time;
+		long[] latencies;
+		int errors;
+		String error;
+	}
+	
+	private class LoadClient implements Runnable {
+		
+		private final String host;
+		private final int port;
+		private final byte[] request;
+		private final int pipeline;
+		
+		private final long[] latencies;
+		private int errors = 0;
+		private String error;
+		private Exception exception;
+		
+		public LoadClient(String host, int port, byte[] request, int requests, int pipeline){
+			this.host = host;
+			this.port = port;
+			this.request = request;
+			this.pipeline = pipeline;
+			this.latencies = new long[requests];
+		}
+		
+		@Override
+		public void run(){
+			JsonParser parser = new JsonParser();
+			AtomicLongArray sent = new AtomicLongArray(latencies.length);
+			// send from a separate thread, so large requests and responses cannot block each other
+			Semaphore inFlight = new Semaphore(pipeline);
+			try(LoadConnection connection = new LoadConnection(host, port)){
+				Thread sender = new Thread(() -> {
+					try {
+						for(int s=0;s<latencies.length;s++){
+							inFlight.acquire();
+							sent.set(s, System.nanoTime());
+							connection.send(request);
+						}
+					} catch(Exception e){
+						// connection closed
+					}
+				});
+				sender.start();
+				
+				try {
+					for(int r=0;r<latencies.length;r++){
+						JSONRPCFramer.Frame response = connection.receive();
+						latencies[r] = System.nanoTime()-sent.get(r);
+						inFlight.release();
+						
+						JsonObject header = parser.parse(new String(response.header, StandardCharsets.UTF_8)).getAsJsonObject();
+						if(header.has("error")){
+							errors++;
+							error = header.get("error").toString();
+						}
+					}
+				} finally {
+					sender.interrupt();
+				}
+			} catch(Exception e){
+				exception = e;
+			}
+		}
+	}
+	
+	private static class LoadConnection implements AutoCloseable {
+		
+		private final Socket socket;
+		private final OutputStream out;
+		private final InputStream in;
+		
+		private final JSONRPCFramer framer = new JSONRPCFramer();
+		private ByteBuffer buffer = ByteBuffer.allocate(64*1024);
+		
+		public LoadConnection(String host, int port) throws IOException {
+			socket = new Socket(host, port);
+			socket.setTcpNoDelay(true);
+			out = socket.getOutputStream();
+			in = socket.getInputStream();
+			buffer.flip();
+		}
+		
+		public void send(byte[] request) throws IOException {
+			out.write(request);
+			out.flush();
+		}
+		
+		public JSONRPCFramer.Frame receive() throws IOException {
+			JSONRPCFramer.Frame frame;
+			while((frame = framer.next(buffer)) == null){
+				buffer.compact();
+				if(!buffer.hasRemaining()){
+					ByteBuffer b = ByteBuffer.allocate(2*buffer.capacity());
+					buffer.flip();
+					b.put(buffer);
+					buffer = b;
+				}
+				int read = in.read(buffer.array(), buffer.position(), buffer.remaining());
+				if(read < 0)
+					throw new IOException("Connection closed");
+				buffer.position(buffer.position()+read);
+				buffer.flip();
+			}
+			return frame;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			socket.close();
+		}
+	}
 }
@@ -22,16 +22,26 @@
  *******************************************************************************/
 package be.iminds.iot.dianne.jsonrpc;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.io.Reader;
-import java.io.Writer;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.osgi.framework.BundleContext;
 import org.osgi.service.component.annotations.Activate;
@@ -39,18 +49,50 @@ import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.component.annotations.Reference;
 
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
 import com.google.gson.stream.JsonReader;
 import com.google.gson.stream.JsonWriter;
 
+import be.iminds.iot.dianne.tensor.Tensor;
+
+/**
+ * JSON-RPC server on a plain TCP socket. Requests can be sent either as JSON objects, or 
+ * as binary frames with the tensor input as raw payload (see {@link JSONRPCFramer}).
+ * 
+ * All connections are served by a single selector thread, requests are handled by a 
+ * bounded thread pool (configurable with the be.iminds.iot.dianne.jsonrpc.threads property).
+ * A client can pipeline multiple requests on a connection, the responses are sent back 
+ * in the order of the requests. When the client shuts down its output, the responses to
+ * the requests it already sent are still sent before the connection is closed.
+ * 
+ * @author tverbele
+ *
+ */
 @Component(immediate = true)
 public class DianneJSONRPCServer {
 
+	// max number of requests of a single connection that are handled concurrently
+	private static final int PIPELINE = 16;
+	
+	private static final int BUFFER_SIZE = 64*1024;
+	
+	private static final int THREADS = 32;
+	
 	private JSONRPCRequestHandler handler;
 
 	private int port = 9090;
-	private ServerSocket serverSocket;
+	private ServerSocketChannel serverChannel;
+	private Selector selector;
 
 	private Thread serverThread;
+	
+	// requests can take a while (i.e. learn), so threads are only limited to bound the load,
+	// further requests are queued, at most PIPELINE per connection
+	private ThreadPoolExecutor executor;
+	
+	// connections that have new responses to send
+	private final Queue<Connection> ready = new ConcurrentLinkedQueue<>();
 
 	@Reference
 	void setRequestHandler(JSONRPCRequestHandler h) {
@@ -63,59 +105,260 @@ public class DianneJSONRPCServer {
 		if(port != null)
 			this.port = Integer.parseInt(port);
 		
-		serverSocket = new ServerSocket(this.port);
+		int threads = THREADS;
+		String t = context.getProperty("be.iminds.iot.dianne.jsonrpc.threads");
+		if(t != null)
+			threads = Integer.parseInt(t);
+		
+		executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+		executor.allowCoreThreadTimeOut(true);
+		
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(this.port));
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
 
 		serverThread = new Thread(() -> {
 			while (!serverThread.isInterrupted()) {
 				try {
-					Socket socket = serverSocket.accept();
+					selector.select();
 					
-					JSONRPCSocketHandler handler = new JSONRPCSocketHandler(socket);
-					handler.start();
-				} catch (Exception e) {}
+					Connection c;
+					while((c = ready.poll()) != null){
+						try {
+							c.flush();
+						} catch(Exception e){
+							// invalid or too large message, or connection reset
+							c.close();
+						}
+					}
+					
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while(it.hasNext()){
+						SelectionKey key = it.next();
+						it.remove();
+						
+						if(!key.isValid())
+							continue;
+						
+						if(key.isAcceptable()){
+							try {
+								accept();
+							} catch(IOException e){
+								System.out.println("Failed to accept JSON-RPC connection: "+e.getMessage());
+							}
+							continue;
+						}
+						
+						Connection connection = (Connection)key.attachment();
+						try {
+							if(key.isReadable()){
+								connection.read();
+							}
+							if(key.isValid() && key.isWritable()){
+								connection.flush();
+							}
+						} catch(Exception e){
+							connection.close();
+						}
+					}
+				} catch (Exception e) {
+					if(!serverThread.isInterrupted()){
+						System.out.println("Error in JSON-RPC server: "+e.getMessage());
+					}
+				}
 			}
-		});
+		}, "DIANNE JSON-RPC server");
 		serverThread.start();
 	}
 
 	@Deactivate
 	void deactivate() throws Exception {
 		serverThread.interrupt();
-		serverSocket.close();
+		selector.wakeup();
+		serverThread.join();
+		
+		for(SelectionKey key : selector.keys()){
+			key.channel().close();
+		}
+		selector.close();
+		executor.shutdownNow();
+	}
+	
+	private void accept() throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		if(channel == null)
+			return;
+		
+		channel.configureBlocking(false);
+		channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+		key.attach(new Connection(channel, key));
+	}
+	
+	private ByteBuffer handle(JSONRPCFramer.Frame frame) {
+		StringWriter response = new StringWriter();
+		JsonWriter writer = new JsonWriter(response);
+		try {
+			JsonReader reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(frame.header), StandardCharsets.UTF_8));
+			if(!frame.binary){
+				handler.handleRequest(reader, writer);
+				return ByteBuffer.wrap(response.toString().getBytes(StandardCharsets.UTF_8));
+			} 
+			
+			Tensor output = handler.handleRequest(reader, frame.payload, writer);
+			return JSONRPCFramer.encode(response.toString(), output);
+		} catch(Exception e){
+			// always respond, otherwise the responses to the next requests are blocked
+			String error = error(id(frame), e.getMessage());
+			if(frame.binary){
+				return JSONRPCFramer.encode(error, (Tensor)null);
+			}
+			return ByteBuffer.wrap(error.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+	
+	// the id of the request to echo in an error response, or null when the request cannot be parsed
+	private String id(JSONRPCFramer.Frame frame) {
+		try {
+			JsonElement request = new JsonParser().parse(new String(frame.header, StandardCharsets.UTF_8));
+			if(request.isJsonObject() && request.getAsJsonObject().has("id")){
+				return request.getAsJsonObject().get("id").getAsString();
+			}
+		} catch(Exception e){}
+		return null;
+	}
+	
+	private String error(String id, String message) {
+		StringWriter error = new StringWriter();
+		try {
+			JsonWriter writer = new JsonWriter(error);
+			writer.beginObject();
+			writer.name("jsonrpc");
+			writer.value("2.0");
+			writer.name("id");
+			writer.value(id);
+			writer.name("error");
+			writer.beginObject();
+			writer.name("code");
+			writer.value(-32603);
+			writer.name("message");
+			writer.value("Error handling request: "+message);
+			writer.endObject();
+			writer.endObject();
+			writer.flush();
+		} catch(IOException e){}
+		return error.toString();
 	}
 
-	private class JSONRPCSocketHandler extends Thread {
-
-		private Socket socket;
-
-		public JSONRPCSocketHandler(Socket s) {
-			super();
+	private class Connection {
+		
+		private final SocketChannel channel;
+		private final SelectionKey key;
+		
+		private final JSONRPCFramer framer = new JSONRPCFramer();
+		private ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+		
+		// responses in the order of the requests, only accessed by the selector thread
+		private final Deque<Response> pending = new ArrayDeque<>();
+		private ByteBuffer out;
+		
+		// the client shut down its output, close once all responses are sent
+		private boolean eof = false;
+		
+		public Connection(SocketChannel channel, SelectionKey key){
+			this.channel = channel;
+			this.key = key;
+		}
+		
+		void read() throws IOException {
+			if(channel.read(in) < 0){
+				eof = true;
+			}
+			process();
+		}
+		
+		// dispatch the buffered requests as long as the pipeline is not full
+		private void process() throws IOException {
+			in.flip();
+			JSONRPCFramer.Frame frame;
+			while(pending.size() < PIPELINE && (frame = framer.next(in)) != null){
+				final JSONRPCFramer.Frame f = frame;
+				final Response response = new Response();
+				pending.add(response);
+				executor.execute(() -> {
+					response.data = handle(f);
+					ready.add(this);
+					selector.wakeup();
+				});
+			}
+			in.compact();
 			
-			this.socket = s;
+			// grow the buffer in case a single message does not fit
+			if(!in.hasRemaining() && pending.size() < PIPELINE){
+				ByteBuffer b = ByteBuffer.allocate(2*in.capacity());
+				in.flip();
+				b.put(in);
+				in = b;
+			}
 			
-			try {
-				this.socket.setKeepAlive(true);
-			} catch (SocketException e) {}
+			updateInterest();
+			
+			// a request that is not complete at end of stream never will be
+			if(eof && pending.isEmpty() && out == null){
+				close();
+			}
 		}
-
-		public void run() {
-			try(Writer writer = new BufferedWriter(new PrintWriter((socket.getOutputStream())));
-					Reader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));) {
-				while (true) {
-					try {
-						handler.handleRequest(new JsonReader(reader), new JsonWriter(writer));
-					} catch (IOException e) {
-						throw(e);
-					} catch (Exception e1) {
-						continue;
+		
+		void flush() throws IOException {
+			if(!key.isValid())
+				return;
+			
+			while(true){
+				if(out == null || !out.hasRemaining()){
+					Response next = pending.peek();
+					if(next == null || next.data == null){
+						out = null;
+						break;
 					}
+					pending.poll();
+					out = next.data;
 				}
-			} catch (IOException e) {
-			} finally {
-				try {
-					socket.close();
-				} catch (IOException e1) {}
+				
+				channel.write(out);
+				if(out.hasRemaining())
+					break;
 			}
+			
+			// the pipeline might have room for already buffered requests
+			process();
+		}
+		
+		private void updateInterest(){
+			if(!key.isValid())
+				return;
+			
+			int ops = 0;
+			if(!eof && pending.size() < PIPELINE)
+				ops |= SelectionKey.OP_READ;
+			if(out != null && out.hasRemaining())
+				ops |= SelectionKey.OP_WRITE;
+			key.interestOps(ops);
 		}
+		
+		void close() {
+			key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {}
+		}
+	}
+	
+	private static class Response {
+		
+		private volatile ByteBuffer data;
+		
 	}
 }
@@ -24,6 +24,8 @@ package be.iminds.iot.dianne.jsonrpc;
 
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.stream.Collectors;
@@ -65,13 +67,24 @@ public class DianneRequestHandler implements JSONRPCRequestHandler {
 	
 	@Override
 	public void handleRequest(JsonReader reader, JsonWriter writer) throws IOException {
+		handleRequest(reader, null, writer);
+	}
+	
+	@Override
+	public void handleRequest(JsonObject request, JsonWriter writer) throws IOException {
+		handleRequest(request, null, writer);
+	}
+	
+	@Override
+	public Tensor handleRequest(JsonReader reader, byte[] payload, JsonWriter writer) throws IOException {
 		try {
 			JsonParser parser = new JsonParser();
 			JsonObject request = parser.parse(reader).getAsJsonObject();
-			handleRequest(request, writer);
+			return handleRequest(request, payload, writer);
 		} catch(JsonParseException e){
 			e.printStackTrace();
 			writeError(writer, null, -32700, "Parse error");
+			return null;
 		} catch(IllegalStateException e){
 			// this happens when the client closes the socket and reader returns null
 			throw new IOException(e);
@@ -79,26 +92,28 @@ public class DianneRequestHandler implements JSONRPCRequestHandler {
 	}
 	
 	@Override
-	public void handleRequest(JsonObject request, JsonWriter writer) throws IOException {
+	public Tensor handleRequest(JsonObject request, byte[] payload, JsonWriter writer) throws IOException {
 		String i = "null";
 		if(request.has("id")){
 			i = request.get("id").getAsString();
 		}
 		final String id = i;
 		
+		Tensor output = null;
+		
 		if(!request.has("jsonrpc")){
 			writeError(writer, id, -32600, "Invalid JSONRPC request");
-			return;
+			return null;
 		}
 		
 		if(!request.get("jsonrpc").getAsString().equals("2.0")){
 			writeError(writer, id, -32600, "Wrong JSONRPC version: "+request.get("jsonrpc").getAsString());
-			return;
+			return null;
 		}
 		
 		if(!request.has("method")){
 			writeError(writer, id, -32600, "No method specified");
-			return;
+			return null;
 		}
 
 		String method = request.get("method").getAsString();
@@ -136,7 +151,7 @@ public class DianneRequestHandler implements JSONRPCRequestHandler {
 				writeResult(writer, id, nni.id.toString());
 			} catch(Exception e){
 				writeError(writer, id, -32602, "Incorrect parameters provided: "+e.getMessage());
-				return;
+				return null;
 			}
 			break;
 		case "undeploy":
@@ -150,18 +165,20 @@ public class DianneRequestHandler implements JSONRPCRequestHandler {
 				} 
 			} catch(Exception e){
 				writeError(writer, id, -32602, "Incorrect parameters provided: "+e.getMessage());
-				return;
+				return null;
 			}
 			break;
 		case "forward":
 			try {
 				JsonArray params = request.get("params").getAsJsonArray();
-				if(params.size() != 2){
-					throw new Exception("2 parameters expected");
+				// in case of a binary request the input is provided as payload
+				int expected = payload == null ? 2 : 1;
+				if(params.size() != expected){
+					throw new Exception(expected+" parameters expected");
 				}
 				if(!params.get(0).isJsonPrimitive())
 					throw new Exception("first parameter should be neural network instance id");
-				if(!params.get(1).isJsonArray())
+				if(payload == null && !params.get(1).isJsonArray())
 					throw new Exception("second parameter should be input data");
 				
 				String s = params.get(0).getAsString();
@@ -169,23 +186,37 @@ public class DianneRequestHandler implements JSONRPCRequestHandler {
 				NeuralNetworkInstanceDTO nni = platform.getNeuralNetworkInstance(nnId);
 				if(nni==null){
 					writeError(writer, id, -32603, "Neural network with id "+nnId+" does not exist.");
-					return;
+					return null;
 				}
 				NeuralNetwork nn = dianne.getNeuralNetwork(nni).getValue();
 				
-				JsonArray in = params.get(1).getAsJsonArray();
-				Tensor input = asTensor(in);
-				nn.forward("", "", input).then(p -> {
-					int argmax = TensorOps.argmax(p.getValue().tensor);
-					writeResult(writer, id, nn.getOutputLabels()[argmax]);
+				Tensor input;
+				if(payload != null){
+					input = JSONRPCFramer.decode(request.get("payload"), payload);
+				} else {
+					input = asTensor(params.get(1).getAsJsonArray());
+				}
+				
+				// wait for the result, responses are written in the order of the requests
+				Tensor out;
+				try {
+					out = nn.forward("", "", input).getValue().tensor;
+				} catch(InvocationTargetException e){
+					writeError(writer, id, -32603, "Error during forward: "+e.getCause().getMessage());
 					return null;
-				}, p -> {
-					writeError(writer, id, -32603, "Error during forward: "+p.getFailure().getMessage());
-				});
+				}
+				
+				int argmax = TensorOps.argmax(out);
+				String[] labels = nn.getOutputLabels();
+				writeResult(writer, id, labels != null ? labels[argmax] : String.valueOf(argmax));
 				
+				if(payload != null){
+					// copy as the output buffer is reused by the next forward
+					output = out.copyInto(null);
+				}
 			} catch(Exception e){
 				writeError(writer, id, -32602, "Incorrect parameters provided: "+e.getMessage());
-				return;
+				return null;
 			}
 			break;
 		case "learn":
@@ -212,7 +243,7 @@ public class DianneRequestHandler implements JSONRPCRequestHandler {
 
 			} catch(Exception e){
 				writeError(writer, id, -32602, "Incorrect parameters provided: "+e.getMessage());
-				return;
+				return null;
 			}
 			
 			// call coordinator
@@ -289,7 +320,7 @@ public class DianneRequestHandler implements JSONRPCRequestHandler {
 				} 
 			} catch(Exception e){
 				writeError(writer, id, -32602, "Incorrect parameters provided: "+e.getMessage());
-				return;
+				return null;
 			}
 			
 			if(method.equals("learnResult")){
@@ -336,6 +367,8 @@ public class DianneRequestHandler implements JSONRPCRequestHandler {
 		default:
 			writeError(writer, id, -32601, "Method "+method+" not found");
 		}
+		
+		return output;
 	}
 	
 	private void writeError(JsonWriter writer, String id, int code, String message) throws IOException {
@@ -382,49 +415,41 @@ public class DianneRequestHandler implements JSONRPCRequestHandler {
 	}
 	
 	private Tensor asTensor(JsonArray array){
-		// support up to 3 dim input atm
-		int dim0 = 1;
-		int dim1 = 1;
-		int dim2 = 1;
+		// dims are derived from the first element at each level
+		List<Integer> d = new ArrayList<>();
+		JsonElement e = array;
+		while(e.isJsonArray()){
+			JsonArray a = e.getAsJsonArray();
+			d.add(a.size());
+			e = a.size() > 0 ? a.get(0) : null;
+		}
 		
-		int dims = 1;
-		dim0 = array.size();
-		if(array.get(0).isJsonArray()){
-			dims = 2;
-			JsonArray a = array.get(0).getAsJsonArray();
-			dim1 = a.size();
-			if(a.get(0).isJsonArray()){
-				dims = 3;
-				dim2 = a.get(0).getAsJsonArray().size();
-			}
+		int[] dims = new int[d.size()];
+		int size = 1;
+		for(int i=0;i<dims.length;i++){
+			dims[i] = d.get(i);
+			size *= dims[i];
 		}
 		
-		int size = dim0*dim1*dim2;
 		float[] data = new float[size];
-		int k = 0;
-		for(int i=0;i<dim0;i++){
-			for(int j=0;j<dim1;j++){
-				for(int l=0;l<dim2;l++){
-					JsonElement e = array.get(i);
-					if(e.isJsonArray()){
-						e = e.getAsJsonArray().get(j);
-						if(e.isJsonArray()){
-							e = e.getAsJsonArray().get(l);
-						}
-					}
-					data[k++] = e.getAsFloat();
-				}
+		int k = flatten(array, data, 0);
+		if(k != size)
+			throw new IllegalArgumentException("input data is not a rectangular array");
+		
+		return new Tensor(data, dims);
+	}
+	
+	private int flatten(JsonArray array, float[] data, int k){
+		for(JsonElement e : array){
+			if(e.isJsonArray()){
+				k = flatten(e.getAsJsonArray(), data, k);
+			} else {
+				if(k == data.length)
+					throw new IllegalArgumentException("input data is not a rectangular array");
+				data[k++] = e.getAsFloat();
 			}
 		}
-		
-		int[] d = new int[dims];
-		d[0] = dim0;
-		if(dims > 1)
-			d[1] = dim1;
-		if(dims > 2)
-			d[2] = dim2;
-		
-		return new Tensor(data, d);
+		return k;
 	}
 	
 	@Reference
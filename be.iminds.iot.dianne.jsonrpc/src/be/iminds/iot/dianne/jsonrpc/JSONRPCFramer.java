@@ -0,0 +1,339 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.jsonrpc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+import be.iminds.iot.dianne.tensor.Tensor;
+import be.iminds.iot.dianne.tensor.util.ImageConverter;
+
+/**
+ * Splits a byte stream in JSON-RPC messages. A message is either a plain JSON object, 
+ * or a binary frame that carries a tensor as raw payload next to the JSON header:
+ * 
+ *   'D' 'N' 'B' '1' | header length | header (UTF-8 JSON) | payload length | payload
+ * 
+ * with lengths as little endian int32. The header is the JSON-RPC request or response,
+ * with an additional "payload" member describing the payload : {"type": ..., "dims": [...]}.
+ * Supported payload types are float32 (little endian), uint8 (scaled to [0,1]) and jpeg,
+ * which is decoded to a [channels, height, width] tensor.
+ * 
+ * Both encodings can be used on the same connection. Messages larger than the max frame
+ * size, or with invalid lengths, are refused with an IOException.
+ * 
+ * @author tverbele
+ *
+ */
+public class JSONRPCFramer {
+
+	public static final byte[] MAGIC = new byte[]{'D', 'N', 'B', '1'};
+	
+	public static final String FLOAT32 = "float32";
+	public static final String UINT8 = "uint8";
+	public static final String JPEG = "jpeg";
+	
+	// default max size of a message, including the binary frame overhead
+	public static final int MAX_FRAME_SIZE = 64*1024*1024;
+	
+	// ImageConverter is not thread safe
+	private static final ThreadLocal<ImageConverter> converter = ThreadLocal.withInitial(ImageConverter::new);
+	
+	public static class Frame {
+		
+		public final boolean binary;
+		// the JSON message, or the header of a binary frame
+		public final byte[] header;
+		// payload of a binary frame, null for JSON messages
+		public final byte[] payload;
+		
+		Frame(byte[] header, byte[] payload, boolean binary){
+			this.header = header;
+			this.payload = payload;
+			this.binary = binary;
+		}
+	}
+	
+	private final int maxFrameSize;
+	
+	// state of the message currently being read
+	private boolean inMessage = false;
+	private boolean binary = false;
+	private int scanned = 0;
+	private int depth = 0;
+	private boolean inString = false;
+	private boolean escape = false;
+	
+	public JSONRPCFramer(){
+		this(MAX_FRAME_SIZE);
+	}
+	
+	public JSONRPCFramer(int maxFrameSize){
+		this.maxFrameSize = maxFrameSize;
+	}
+	
+	/**
+	 * Get the next complete message from the buffer. The buffer should be in read mode, and 
+	 * its position is advanced past the returned message. In case no complete message is 
+	 * available the position is left as is, call again once more data is put in the buffer.
+	 * 
+	 * @param buffer the received data
+	 * @return the next message, or null in case more data is needed
+	 * @throws IOException in case of an invalid message or a message exceeding the max frame size
+	 */
+	public Frame next(ByteBuffer buffer) throws IOException {
+		if(!inMessage){
+			// skip whitespace between messages
+			while(buffer.hasRemaining() && Character.isWhitespace(buffer.get(buffer.position()))){
+				buffer.get();
+			}
+			if(!buffer.hasRemaining())
+				return null;
+			
+			byte first = buffer.get(buffer.position());
+			if(first != MAGIC[0] && first != '{' && first != '['){
+				throw new IOException("Invalid message");
+			}
+			
+			inMessage = true;
+			binary = first == MAGIC[0];
+			scanned = 0;
+			depth = 0;
+			inString = false;
+			escape = false;
+		}
+		
+		return binary ? nextBinary(buffer) : nextJSON(buffer);
+	}
+	
+	private Frame nextBinary(ByteBuffer buffer) throws IOException {
+		int start = buffer.position();
+		if(buffer.remaining() < 8)
+			return null;
+		
+		for(int i=0;i<MAGIC.length;i++){
+			if(buffer.get(start+i) != MAGIC[i]){
+				throw new IOException("Invalid binary frame");
+			}
+		}
+		
+		ByteOrder order = buffer.order();
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		try {
+			// lengths are checked as long to avoid overflow
+			int headerLength = buffer.getInt(start+4);
+			if(headerLength < 0)
+				throw new IOException("Invalid binary frame header length "+headerLength);
+			if(12L+headerLength > maxFrameSize)
+				throw new IOException("Binary frame exceeds max frame size "+maxFrameSize);
+			if(buffer.remaining() < 12+headerLength)
+				return null;
+			
+			int payloadLength = buffer.getInt(start+8+headerLength);
+			if(payloadLength < 0)
+				throw new IOException("Invalid binary frame payload length "+payloadLength);
+			if(12L+headerLength+payloadLength > maxFrameSize)
+				throw new IOException("Binary frame exceeds max frame size "+maxFrameSize);
+			if(buffer.remaining() < 12+headerLength+payloadLength)
+				return null;
+			
+			byte[] header = new byte[headerLength];
+			byte[] payload = new byte[payloadLength];
+			buffer.position(start+8);
+			buffer.get(header);
+			buffer.getInt();
+			buffer.get(payload);
+			inMessage = false;
+			return new Frame(header, payload, true);
+		} finally {
+			buffer.order(order);
+		}
+	}
+	
+	private Frame nextJSON(ByteBuffer buffer) throws IOException {
+		// scan for the end of the top level object, continue where the previous call stopped
+		int start = buffer.position();
+		for(int i=start+scanned;i<buffer.limit();i++){
+			byte c = buffer.get(i);
+			if(inString){
+				if(escape){
+					escape = false;
+				} else if(c == '\\'){
+					escape = true;
+				} else if(c == '"'){
+					inString = false;
+				}
+			} else if(c == '"'){
+				inString = true;
+			} else if(c == '{' || c == '['){
+				depth++;
+			} else if(c == '}' || c == ']'){
+				depth--;
+				if(depth == 0){
+					if(i+1-start > maxFrameSize)
+						throw new IOException("JSON message exceeds max frame size "+maxFrameSize);
+					
+					byte[] message = new byte[i+1-start];
+					buffer.get(message);
+					inMessage = false;
+					return new Frame(message, null, false);
+				}
+			}
+		}
+		scanned = buffer.limit()-start;
+		if(scanned > maxFrameSize)
+			throw new IOException("JSON message exceeds max frame size "+maxFrameSize);
+		return null;
+	}
+	
+	/**
+	 * Encode a binary frame
+	 * 
+	 * @param header JSON header
+	 * @param payload the payload
+	 * @return buffer containing the frame, ready to be written
+	 */
+	public static ByteBuffer encode(String header, byte[] payload){
+		byte[] h = header.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer buffer = ByteBuffer.allocate(12+h.length+payload.length).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.put(MAGIC);
+		buffer.putInt(h.length);
+		buffer.put(h);
+		buffer.putInt(payload.length);
+		buffer.put(payload);
+		buffer.flip();
+		return buffer;
+	}
+	
+	/**
+	 * Encode a binary frame with a float32 tensor payload, the payload description
+	 * is added to the header. 
+	 * 
+	 * @param header JSON header
+	 * @param tensor the payload, if null a frame without payload is encoded
+	 * @return buffer containing the frame, ready to be written
+	 */
+	public static ByteBuffer encode(String header, Tensor tensor){
+		if(tensor == null){
+			return encode(header, new byte[0]);
+		}
+		
+		JsonObject o = new JsonParser().parse(header).getAsJsonObject();
+		o.add("payload", describe(FLOAT32, tensor.dims()));
+		byte[] h = o.toString().getBytes(StandardCharsets.UTF_8);
+		float[] data = tensor.get();
+		ByteBuffer buffer = ByteBuffer.allocate(12+h.length+4*data.length).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.put(MAGIC);
+		buffer.putInt(h.length);
+		buffer.put(h);
+		buffer.putInt(4*data.length);
+		buffer.asFloatBuffer().put(data);
+		buffer.position(buffer.capacity());
+		buffer.flip();
+		return buffer;
+	}
+	
+	/**
+	 * Create the payload description to add to a header
+	 */
+	public static JsonObject describe(String type, int... dims){
+		JsonObject payload = new JsonObject();
+		payload.addProperty("type", type);
+		if(dims != null){
+			JsonArray d = new JsonArray();
+			for(int i : dims){
+				d.add(new JsonPrimitive(i));
+			}
+			payload.add("dims", d);
+		}
+		return payload;
+	}
+	
+	/**
+	 * Decode a binary payload into a tensor
+	 * 
+	 * @param description the payload description from the header
+	 * @param payload the payload
+	 * @return the tensor
+	 */
+	public static Tensor decode(JsonElement description, byte[] payload) throws Exception {
+		if(description == null || !description.isJsonObject())
+			throw new Exception("no payload description");
+		
+		JsonObject d = description.getAsJsonObject();
+		String type = d.has("type") ? d.get("type").getAsString() : FLOAT32;
+		if(type.equals(JPEG)){
+			// dims follow from the image
+			return converter.get().fromBytes(payload);
+		}
+		
+		if(!d.has("dims"))
+			throw new Exception("no payload dims");
+		int[] dims = dims(d);
+		long s = 1;
+		for(int i : dims){
+			if(i < 0)
+				throw new Exception("invalid payload dims");
+			s *= i;
+			if(s > payload.length)
+				throw new Exception("payload size does not match dims");
+		}
+		int size = (int)s;
+		
+		float[] data = new float[size];
+		switch(type){
+		case FLOAT32:
+			if(payload.length != 4*size)
+				throw new Exception("payload size does not match dims");
+			ByteBuffer.wrap(payload).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(data);
+			break;
+		case UINT8:
+			if(payload.length != size)
+				throw new Exception("payload size does not match dims");
+			for(int i=0;i<size;i++){
+				data[i] = (payload[i] & 0xFF)/255f;
+			}
+			break;
+		default:
+			throw new Exception("unsupported payload type "+type);
+		}
+		return new Tensor(data, dims);
+	}
+	
+	private static int[] dims(JsonObject description){
+		JsonArray a = description.get("dims").getAsJsonArray();
+		int[] dims = new int[a.size()];
+		for(int i=0;i<dims.length;i++){
+			dims[i] = a.get(i).getAsInt();
+		}
+		return dims;
+	}
+}
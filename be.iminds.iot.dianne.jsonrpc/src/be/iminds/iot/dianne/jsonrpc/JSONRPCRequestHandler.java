@@ -26,10 +26,23 @@ import com.google.gson.JsonObject;
 import com.google.gson.stream.JsonReader;
 import com.google.gson.stream.JsonWriter;
 
+import be.iminds.iot.dianne.tensor.Tensor;
+
 public interface JSONRPCRequestHandler {
 
 	void handleRequest(JsonReader reader, JsonWriter writer) throws Exception;
 
 	void handleRequest(JsonObject request, JsonWriter writer) throws Exception;
 
+	/**
+	 * Handle a request received as binary frame, of which the tensor input is provided as 
+	 * payload instead of a nested JSON array. The payload is described by the "payload" 
+	 * member of the request, see {@link JSONRPCFramer}.
+	 * 
+	 * @return the output tensor in case of a forward request, null otherwise
+	 */
+	Tensor handleRequest(JsonReader reader, byte[] payload, JsonWriter writer) throws Exception;
+	
+	Tensor handleRequest(JsonObject request, byte[] payload, JsonWriter writer) throws Exception;
+
 }
\ No newline at end of file
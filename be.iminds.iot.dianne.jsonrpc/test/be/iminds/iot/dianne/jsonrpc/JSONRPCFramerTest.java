@@ -0,0 +1,235 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.jsonrpc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class JSONRPCFramerTest {
+
+	private static final String REQUEST = "{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"forward\",\"params\":[\"{[}]\\\"\",[1,2]]}";
+	private static final String HEADER = "{\"jsonrpc\":\"2.0\",\"id\":2,\"method\":\"forward\"}";
+	private static final byte[] PAYLOAD = new byte[]{1, 2, 3, 4, 5, 6, 7, 8};
+	
+	@Test
+	public void testJSON() throws Exception {
+		List<JSONRPCFramer.Frame> frames = feed(new JSONRPCFramer(), REQUEST.getBytes(StandardCharsets.UTF_8), Integer.MAX_VALUE);
+		Assert.assertEquals(1, frames.size());
+		assertJSON(REQUEST, frames.get(0));
+	}
+	
+	@Test
+	public void testBinary() throws Exception {
+		List<JSONRPCFramer.Frame> frames = feed(new JSONRPCFramer(), binary(HEADER, PAYLOAD), Integer.MAX_VALUE);
+		Assert.assertEquals(1, frames.size());
+		assertBinary(HEADER, PAYLOAD, frames.get(0));
+	}
+	
+	@Test
+	public void testSplitJSON() throws Exception {
+		// every split point, including within strings and escapes
+		byte[] data = REQUEST.getBytes(StandardCharsets.UTF_8);
+		for(int chunk=1;chunk<data.length;chunk++){
+			List<JSONRPCFramer.Frame> frames = feed(new JSONRPCFramer(), data, chunk);
+			Assert.assertEquals(1, frames.size());
+			assertJSON(REQUEST, frames.get(0));
+		}
+	}
+	
+	@Test
+	public void testSplitBinary() throws Exception {
+		// every split point, including within the magic and the lengths
+		byte[] data = binary(HEADER, PAYLOAD);
+		for(int chunk=1;chunk<data.length;chunk++){
+			List<JSONRPCFramer.Frame> frames = feed(new JSONRPCFramer(), data, chunk);
+			Assert.assertEquals(1, frames.size());
+			assertBinary(HEADER, PAYLOAD, frames.get(0));
+		}
+	}
+	
+	@Test
+	public void testPartial() throws Exception {
+		JSONRPCFramer framer = new JSONRPCFramer();
+		byte[] json = REQUEST.getBytes(StandardCharsets.UTF_8);
+		byte[] binary = binary(HEADER, PAYLOAD);
+		
+		ByteBuffer in = ByteBuffer.allocate(1024);
+		Assert.assertTrue(feed(framer, in, Arrays.copyOf(json, json.length-1)).isEmpty());
+		
+		// the rest of the JSON message and the start of a binary frame
+		byte[] data = concat(new byte[]{json[json.length-1]}, Arrays.copyOf(binary, 10));
+		List<JSONRPCFramer.Frame> frames = feed(framer, in, data);
+		Assert.assertEquals(1, frames.size());
+		assertJSON(REQUEST, frames.get(0));
+		
+		frames = feed(framer, in, Arrays.copyOfRange(binary, 10, binary.length));
+		Assert.assertEquals(1, frames.size());
+		assertBinary(HEADER, PAYLOAD, frames.get(0));
+	}
+	
+	@Test
+	public void testPipelined() throws Exception {
+		byte[] json = REQUEST.getBytes(StandardCharsets.UTF_8);
+		byte[] binary = binary(HEADER, PAYLOAD);
+		byte[] empty = binary(HEADER, new byte[0]);
+		byte[] data = concat(json, " \r\n".getBytes(StandardCharsets.UTF_8), binary, empty, json, binary);
+		
+		for(int chunk : new int[]{1, 7, data.length}){
+			List<JSONRPCFramer.Frame> frames = feed(new JSONRPCFramer(), data, chunk);
+			Assert.assertEquals(5, frames.size());
+			assertJSON(REQUEST, frames.get(0));
+			assertBinary(HEADER, PAYLOAD, frames.get(1));
+			assertBinary(HEADER, new byte[0], frames.get(2));
+			assertJSON(REQUEST, frames.get(3));
+			assertBinary(HEADER, PAYLOAD, frames.get(4));
+		}
+	}
+	
+	@Test
+	public void testInvalidMessage() throws Exception {
+		assertInvalid(new JSONRPCFramer(), "hello".getBytes(StandardCharsets.UTF_8));
+		assertInvalid(new JSONRPCFramer(), "DNBX\0\0\0\0\0\0\0\0".getBytes(StandardCharsets.UTF_8));
+	}
+	
+	@Test
+	public void testNegativeLengths() throws Exception {
+		assertInvalid(new JSONRPCFramer(), frame(-1, new byte[0], 0, new byte[0]));
+		assertInvalid(new JSONRPCFramer(), frame(2, "{}".getBytes(StandardCharsets.UTF_8), -1, new byte[0]));
+		assertInvalid(new JSONRPCFramer(), frame(2, "{}".getBytes(StandardCharsets.UTF_8), Integer.MIN_VALUE, new byte[0]));
+	}
+	
+	@Test
+	public void testOverflowLengths() throws Exception {
+		// lengths that overflow when added should not be mistaken for a complete frame
+		assertInvalid(new JSONRPCFramer(), frame(Integer.MAX_VALUE, new byte[0], 0, new byte[0]));
+		assertInvalid(new JSONRPCFramer(Integer.MAX_VALUE), frame(Integer.MAX_VALUE-4, new byte[0], 0, new byte[0]));
+		assertInvalid(new JSONRPCFramer(Integer.MAX_VALUE), frame(2, "{}".getBytes(StandardCharsets.UTF_8), Integer.MAX_VALUE-4, new byte[0]));
+	}
+	
+	@Test
+	public void testMaxFrameSize() throws Exception {
+		byte[] binary = binary(HEADER, PAYLOAD);
+		Assert.assertEquals(1, feed(new JSONRPCFramer(binary.length), binary, Integer.MAX_VALUE).size());
+		// refused as soon as the lengths are known
+		assertInvalid(new JSONRPCFramer(binary.length-1), Arrays.copyOf(binary, 12+HEADER.length()));
+		
+		byte[] json = REQUEST.getBytes(StandardCharsets.UTF_8);
+		Assert.assertEquals(1, feed(new JSONRPCFramer(json.length), json, Integer.MAX_VALUE).size());
+		assertInvalid(new JSONRPCFramer(json.length-1), json);
+	}
+	
+	@Test
+	public void testUnterminatedJSON() throws Exception {
+		// a JSON message that never ends is refused once it exceeds the max frame size
+		JSONRPCFramer framer = new JSONRPCFramer(100);
+		ByteBuffer in = ByteBuffer.allocate(1024);
+		Assert.assertTrue(feed(framer, in, "{\"params\":[".getBytes(StandardCharsets.UTF_8)).isEmpty());
+		byte[] data = new byte[10];
+		Arrays.fill(data, (byte)'1');
+		try {
+			for(int i=0;i<10;i++){
+				feed(framer, in, data);
+			}
+			Assert.fail("Unterminated JSON message should exceed the max frame size");
+		} catch(IOException e){
+			// expected
+		}
+	}
+	
+	// feed the data in chunks as the server reads it, returning all frames
+	private List<JSONRPCFramer.Frame> feed(JSONRPCFramer framer, byte[] data, int chunk) throws IOException {
+		List<JSONRPCFramer.Frame> frames = new ArrayList<>();
+		ByteBuffer in = ByteBuffer.allocate(data.length);
+		for(int i=0;i<data.length;i+=chunk){
+			frames.addAll(feed(framer, in, Arrays.copyOfRange(data, i, (int)Math.min((long)i+chunk, data.length))));
+		}
+		return frames;
+	}
+	
+	private List<JSONRPCFramer.Frame> feed(JSONRPCFramer framer, ByteBuffer in, byte[] data) throws IOException {
+		List<JSONRPCFramer.Frame> frames = new ArrayList<>();
+		in.put(data);
+		in.flip();
+		JSONRPCFramer.Frame frame;
+		while((frame = framer.next(in)) != null){
+			frames.add(frame);
+		}
+		in.compact();
+		return frames;
+	}
+	
+	private void assertInvalid(JSONRPCFramer framer, byte[] data){
+		try {
+			feed(framer, data, Integer.MAX_VALUE);
+			Assert.fail("Invalid message should be refused");
+		} catch(IOException e){
+			// expected
+		}
+	}
+	
+	private void assertJSON(String expected, JSONRPCFramer.Frame frame){
+		Assert.assertFalse(frame.binary);
+		Assert.assertEquals(expected, new String(frame.header, StandardCharsets.UTF_8));
+		Assert.assertNull(frame.payload);
+	}
+	
+	private void assertBinary(String header, byte[] payload, JSONRPCFramer.Frame frame){
+		Assert.assertTrue(frame.binary);
+		Assert.assertEquals(header, new String(frame.header, StandardCharsets.UTF_8));
+		Assert.assertArrayEquals(payload, frame.payload);
+	}
+	
+	private static byte[] binary(String header, byte[] payload){
+		ByteBuffer b = JSONRPCFramer.encode(header, payload);
+		byte[] data = new byte[b.remaining()];
+		b.get(data);
+		return data;
+	}
+	
+	private static byte[] frame(int headerLength, byte[] header, int payloadLength, byte[] payload){
+		ByteBuffer b = ByteBuffer.allocate(12+header.length+payload.length).order(ByteOrder.LITTLE_ENDIAN);
+		b.put(JSONRPCFramer.MAGIC);
+		b.putInt(headerLength);
+		b.put(header);
+		b.putInt(payloadLength);
+		b.put(payload);
+		return b.array();
+	}
+	
+	private static byte[] concat(byte[]... arrays){
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for(byte[] a : arrays){
+			out.write(a, 0, a.length);
+		}
+		return out.toByteArray();
+	}
+}
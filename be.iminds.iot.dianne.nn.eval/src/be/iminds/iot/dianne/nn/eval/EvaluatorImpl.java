@@ -22,6 +22,7 @@
  *******************************************************************************/
 package be.iminds.iot.dianne.nn.eval;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
@@ -36,7 +37,9 @@ import org.osgi.service.component.annotations.ReferenceCardinality;
 import org.osgi.service.component.annotations.ReferencePolicy;
 
 import be.iminds.iot.dianne.api.dataset.Dataset;
+import be.iminds.iot.dianne.api.dataset.DatasetDTO;
 import be.iminds.iot.dianne.api.dataset.DianneDatasets;
+import be.iminds.iot.dianne.api.dataset.Sample;
 import be.iminds.iot.dianne.api.dataset.SequenceDataset;
 import be.iminds.iot.dianne.api.nn.Dianne;
 import be.iminds.iot.dianne.api.nn.NeuralNetwork;
@@ -46,6 +49,7 @@ import be.iminds.iot.dianne.api.nn.eval.EvaluationStrategy;
 import be.iminds.iot.dianne.api.nn.eval.Evaluator;
 import be.iminds.iot.dianne.api.nn.eval.EvaluatorListener;
 import be.iminds.iot.dianne.api.nn.module.dto.NeuralNetworkInstanceDTO;
+import be.iminds.iot.dianne.api.nn.platform.DiannePlatform;
 import be.iminds.iot.dianne.api.nn.util.StrategyFactory;
 import be.iminds.iot.dianne.nn.eval.config.EvaluatorConfig;
 import be.iminds.iot.dianne.nn.eval.config.EvaluatorConfig.EvaluationGranularity;
@@ -69,16 +73,20 @@ public class EvaluatorImpl implements Evaluator {
 	
 	private Dianne dianne;
 	private DianneDatasets datasets;
+	private DiannePlatform platform;
 	
 	private EvaluatorConfig config;
 	
 	private volatile boolean evaluating = false;
+	private volatile boolean stop = false;
+	// strategies of the current evaluation, closed when finished or stopped
+	private volatile EvaluationStrategy[] strategies;
 
 	private StrategyFactory<EvaluationStrategy> factory;
-	private EvaluationStrategy strategy;
 	private EvaluationProgress progress;
 	
 	private long tStart, tEnd;
+	private long evaluationSize;
 	
 	@Override
 	public UUID getEvaluatorId(){
@@ -92,8 +100,10 @@ public class EvaluatorImpl implements Evaluator {
 			throw new Exception("Already running an evaluation session here");
 		}
 		evaluating = true;
+		stop = false;
 		
 		Dataset d = null;
+		List<NeuralNetworkInstanceDTO> deployed = new ArrayList<>();
 		try {
 			System.out.println("Evaluator Configuration");
 			System.out.println("=======================");
@@ -114,62 +124,102 @@ public class EvaluatorImpl implements Evaluator {
 				int n = 0;
 				for(NeuralNetworkInstanceDTO dto : nni){
 					if(dto != null){
-						NeuralNetwork nn = dianne.getNeuralNetwork(dto).getValue();
-						nns[n++] = nn;
+						nns[n++] = load(dto);
 						System.out.println("* "+dto.name);
-	
-						try {
-							if(this.config.tag==null){
-								nn.loadParameters();
-							} else {
-								nn.loadParameters(this.config.tag);
-							}
-						} catch(Exception e){
-							// ignore if no parameters found
-							System.out.println("No parameters loaded for this evaluation - network is not yet trained?");
-						}
 					}
 				}
 				System.out.println("---");
 			}
 			
-			// Create evaluation strategy
-			strategy = factory.create(this.config.strategy);
-			if(strategy == null)
-				throw new Exception("Strategy "+this.config.strategy+" not available");
+			// Check whether we can shard the evaluation
+			int shards = Math.min(this.config.shards, d.size());
+			if(shards > 1 && this.config.granularity == EvaluationGranularity.SEQUENCE){
+				System.out.println("Sharding not supported for SEQUENCE granularity, evaluating in a single shard");
+				shards = 1;
+			} 
+			if(shards > 1 && (platform == null || nni == null)){
+				System.out.println("Cannot deploy neural network instances for sharding, evaluating in a single shard");
+				shards = 1;
+			}
+			
+			// Each shard evaluates on its own neural network instances
+			NeuralNetwork[][] shardNns = new NeuralNetwork[shards][];
+			shardNns[0] = nns;
+			for(int s=1;s<shards;s++){
+				shardNns[s] = new NeuralNetwork[nns.length];
+				int n = 0;
+				for(NeuralNetworkInstanceDTO dto : nni){
+					if(dto != null){
+						NeuralNetworkInstanceDTO shard = platform.deployNeuralNetwork(dto.name, "Evaluation shard "+s, config);
+						deployed.add(shard);
+						shardNns[s][n++] = load(shard);
+					}
+				}
+			}
 			
-			strategy.setup(config, d, nns);
+			// Create evaluation strategies
+			EvaluationStrategy[] strategies = new EvaluationStrategy[shards];
+			this.strategies = strategies;
+			long[] sizes = new long[shards];
+			for(int s=0;s<shards;s++){
+				strategies[s] = factory.create(this.config.strategy);
+				if(strategies[s] == null)
+					throw new Exception("Strategy "+this.config.strategy+" not available");
+				
+				Dataset shard = shards == 1 ? d : new DatasetShard(d, s*d.size()/shards, (s+1)*d.size()/shards);
+				strategies[s].setup(config, shard, shardNns[s]);
+				sizes[s] = shard.size();
+			}
 			// this allows the strategy to adapt config in setup
 			this.config = DianneConfigHandler.getConfig(config, EvaluatorConfig.class);
 			
-			int size = d.size();
 			if(this.config.granularity == EvaluationGranularity.SEQUENCE){
 				if(!(d instanceof SequenceDataset))
 					throw new Exception("Dataset "+dataset+" is not a sequence dataset, granularity SEQUENCE invalid");
 				
-				size = ((SequenceDataset<?,?>)d).sequences();
+				sizes[0] = ((SequenceDataset<?,?>)d).sequences();
 			}
 		
+			evaluationSize = 0;
+			for(long size : sizes){
+				evaluationSize += size;
+			}
+			
 			tStart = System.currentTimeMillis();
-			for(long i=0; i<size;){
-				progress = strategy.processIteration(i);
-				
-				long next = progress.processed;
-				if(next == i){
-					throw new RuntimeException("Strategy is not making progress...");
+			EvaluationProgress[] progresses = new EvaluationProgress[shards];
+			if(shards == 1){
+				evaluate(strategies[0], sizes[0], 0, progresses);
+			} else {
+				Thread[] threads = new Thread[shards];
+				Exception[] errors = new Exception[shards];
+				for(int s=0;s<shards;s++){
+					final int shard = s;
+					threads[s] = new Thread(()->{
+						try {
+							evaluate(strategies[shard], sizes[shard], shard, progresses);
+						} catch(Throwable t){
+							errors[shard] = t instanceof Exception ? (Exception)t : new Exception(t);
+						}
+					}, "Evaluation shard "+s);
+					threads[s].start();
 				}
-				i = next;
-				
-				// TODO how frequently publish progress
-				for(EvaluatorListener l : listeners){
-					l.onProgress(evaluatorId, progress);
+				for(Thread t : threads){
+					t.join();
+				}
+				for(Exception e : errors){
+					if(e != null)
+						throw e;
 				}
 			}
 			tEnd = System.currentTimeMillis();
 			
 			long evaluationTime = tEnd-tStart;
 			
-			Evaluation eval = strategy.getResult();
+			// merge the results of all shards in order
+			Evaluation eval = strategies[0].getResult();
+			for(int s=1;s<shards;s++){
+				eval.merge(strategies[s].getResult());
+			}
 			eval.time = evaluationTime;
 			
 			if(eval.metric < this.config.storeIfSmallerThan){
@@ -196,11 +246,70 @@ public class EvaluatorImpl implements Evaluator {
 			}
 			evaluating = false;
 			
+			close();
+			strategies = null;
+			
+			for(NeuralNetworkInstanceDTO shard : deployed){
+				platform.undeployNeuralNetwork(shard);
+			}
+			
 			datasets.releaseDataset(d);
 			System.gc();
 		}
 	}
 	
+	private NeuralNetwork load(NeuralNetworkInstanceDTO dto) throws Exception {
+		NeuralNetwork nn = dianne.getNeuralNetwork(dto).getValue();
+		try {
+			if(this.config.tag==null){
+				nn.loadParameters();
+			} else {
+				nn.loadParameters(this.config.tag);
+			}
+		} catch(Exception e){
+			// ignore if no parameters found
+			System.out.println("No parameters loaded for this evaluation - network is not yet trained?");
+		}
+		return nn;
+	}
+	
+	private void evaluate(EvaluationStrategy strategy, long size, int shard, EvaluationProgress[] progresses) throws Exception {
+		for(long i=0; i<size;){
+			if(stop){
+				throw new Exception("Evaluation stopped");
+			}
+			
+			EvaluationProgress p = strategy.processIteration(i);
+			
+			long next = p.processed;
+			if(next == i){
+				throw new RuntimeException("Strategy is not making progress...");
+			}
+			i = next;
+			
+			// TODO how frequently publish progress
+			synchronized(progresses){
+				progresses[shard] = p;
+				if(progresses.length == 1){
+					progress = p;
+				} else {
+					EvaluationProgress merged = new EvaluationProgress(0, 0, 0);
+					for(EvaluationProgress sp : progresses){
+						if(sp != null)
+							merged.merge(sp);
+					}
+					// not all shards might have reported progress yet
+					merged.size = evaluationSize;
+					progress = merged;
+				}
+				
+				for(EvaluatorListener l : listeners){
+					l.onProgress(evaluatorId, progress);
+				}
+			}
+		}
+	}
+	
 	public EvaluationProgress getProgress(){
 		if(!evaluating)
 			return null;
@@ -211,6 +320,30 @@ public class EvaluatorImpl implements Evaluator {
 	public boolean isBusy(){
 		return evaluating;
 	}
+	
+	public void stop(){
+		if(evaluating){
+			stop = true;
+			// unblock a strategy waiting for its next batch
+			close();
+		}
+	}
+	
+	private void close(){
+		EvaluationStrategy[] s = strategies;
+		if(s == null)
+			return;
+		
+		for(EvaluationStrategy strategy : s){
+			if(strategy instanceof AutoCloseable){
+				try {
+					((AutoCloseable)strategy).close();
+				} catch(Exception e){
+					e.printStackTrace();
+				}
+			}
+		}
+	}
 
 	@Activate
 	public void activate(BundleContext context){
@@ -227,6 +360,17 @@ public class EvaluatorImpl implements Evaluator {
 		datasets = d;
 	}
 
+	@Reference(cardinality=ReferenceCardinality.OPTIONAL, 
+			policy=ReferencePolicy.DYNAMIC)
+	void setDiannePlatform(DiannePlatform p){
+		platform = p;
+	}
+	
+	void unsetDiannePlatform(DiannePlatform p){
+		if(platform == p)
+			platform = null;
+	}
+
 	@Reference
 	void setEvaluationStrategyFactory(StrategyFactory<EvaluationStrategy> f){
 		factory = f;
@@ -253,5 +397,66 @@ public class EvaluatorImpl implements Evaluator {
 		this.listeners.remove(listener);
 	}
 
-}
+	/**
+	 * Consecutive part of a dataset evaluated by one shard
+	 */
+	private static class DatasetShard implements Dataset {
+		
+		private final Dataset dataset;
+		private final int start;
+		private final int end;
+		
+		public DatasetShard(Dataset dataset, int start, int end){
+			this.dataset = dataset;
+			this.start = start;
+			this.end = end;
+		}
+		
+		@Override
+		public DatasetDTO getDTO() {
+			DatasetDTO dto = dataset.getDTO();
+			dto.size = size();
+			return dto;
+		}
+
+		@Override
+		public int size() {
+			return end-start;
+		}
 
+		@Override
+		public int[] inputDims() {
+			return dataset.inputDims();
+		}
+
+		@Override
+		public String inputType() {
+			return dataset.inputType();
+		}
+
+		@Override
+		public int[] targetDims() {
+			return dataset.targetDims();
+		}
+
+		@Override
+		public String targetType() {
+			return dataset.targetType();
+		}
+
+		@Override
+		public Sample getSample(Sample s, int index) {
+			return dataset.getSample(s, start+index);
+		}
+
+		@Override
+		public String getName() {
+			return dataset.getName();
+		}
+
+		@Override
+		public String[] getLabels() {
+			return dataset.getLabels();
+		}
+	}
+}
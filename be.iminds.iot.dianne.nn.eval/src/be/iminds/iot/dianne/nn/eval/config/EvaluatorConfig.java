@@ -39,6 +39,12 @@ public class EvaluatorConfig {
 	 */
 	public EvaluationGranularity granularity = EvaluationGranularity.SAMPLE;
 	
+	/**
+	 * Shard the evaluation over a number of neural network instances on this runtime,
+	 * each evaluating a consecutive part of the dataset in parallel
+	 */
+	public int shards = 1;
+	
 	/**
 	 * The tag under which to publish the trained parameters
 	 */
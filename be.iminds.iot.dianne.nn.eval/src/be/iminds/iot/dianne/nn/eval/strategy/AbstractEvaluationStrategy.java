@@ -36,10 +36,13 @@ import be.iminds.iot.dianne.api.nn.eval.Evaluation;
 import be.iminds.iot.dianne.api.nn.eval.EvaluationProgress;
 import be.iminds.iot.dianne.api.nn.eval.EvaluationStrategy;
 import be.iminds.iot.dianne.nn.eval.strategy.config.EvaluationStrategyConfig;
+import be.iminds.iot.dianne.nn.learn.sampling.BatchPipeline;
+import be.iminds.iot.dianne.nn.learn.sampling.SequentialSamplingStrategy;
+import be.iminds.iot.dianne.nn.learn.sampling.config.BatchSamplerConfig;
 import be.iminds.iot.dianne.nn.util.DianneConfigHandler;
 import be.iminds.iot.dianne.tensor.Tensor;
 
-public abstract class AbstractEvaluationStrategy implements EvaluationStrategy {
+public abstract class AbstractEvaluationStrategy implements EvaluationStrategy, AutoCloseable {
 	
 	protected Map<String, String> configMap;
 	protected EvaluationStrategyConfig config;
@@ -54,8 +57,12 @@ public abstract class AbstractEvaluationStrategy implements EvaluationStrategy {
 	protected Sample sample;
 	protected int[] indices;
 	
+	protected BatchPipeline pipeline;
+	
 	protected EvaluationProgress progress;
+	protected long tStart = 0;
 	protected long tForward = 0;
+	protected long tLoad = 0;
 	
 	protected List<Tensor> outputs;
 
@@ -72,11 +79,21 @@ public abstract class AbstractEvaluationStrategy implements EvaluationStrategy {
 		if(this.config.includeOutputs)
 			outputs = new ArrayList<Tensor>();
 		
+		// fetch the full batches in a pipeline, the last partial batch is fetched separately
+		if(this.config.batchSize > 1 && this.config.prefetch && total >= this.config.batchSize){
+			BatchSamplerConfig samplerConfig = DianneConfigHandler.getConfig(config, BatchSamplerConfig.class, false);
+			pipeline = new BatchPipeline(dataset, new SequentialSamplingStrategy(dataset), samplerConfig);
+		}
+		
 		init(config);
 	}
 
 	@Override
 	public EvaluationProgress processIteration(long i) throws Exception {
+		if(i == 0){
+			tStart = System.nanoTime();
+		}
+		
 		Tensor out;
 		if(config.batchSize > 1){
 			// execute in batch
@@ -87,32 +104,47 @@ public abstract class AbstractEvaluationStrategy implements EvaluationStrategy {
 			if(i+indices.length > total){
 				indices = new int[(int)(total-i)];
 				batch = null;
+				if(pipeline != null){
+					pipeline.close();
+					pipeline = null;
+				}
 				HashMap<String, String> newConfig = new HashMap<>(configMap);
 				newConfig.put("batchSize", ""+indices.length);
 				update(newConfig);
 			}
 			
-			for(int b=0;b<indices.length;b++)
-				indices[b] = (int)(i+b);
-			
-			batch = dataset.getBatch(batch, indices);
-			
 			long t = System.nanoTime();
+			if(pipeline != null){
+				// sequential sampling delivers the batch starting at i
+				batch = pipeline.nextBatch();
+			} else {
+				for(int b=0;b<indices.length;b++)
+					indices[b] = (int)(i+b);
+				
+				batch = dataset.getBatch(batch, indices);
+			}
+			tLoad += System.nanoTime() - t;
+			
+			t = System.nanoTime();
 			out = nn.forward(batch.input);
 			tForward += System.nanoTime() - t;
 			
 			if(outputs!=null)
-				for(int k=0;k<this.config.batchSize;k++)
-					outputs.add(out.select(0, k).copyInto(null));
+				for(int k=0;k<indices.length;k++)
+					try(Tensor o = out.select(0, k)){
+						outputs.add(o.copyInto(null));
+					}
 			
 			float err = eval(out, batch.target);
 			
 			error += err;
 
 		} else {
+			long t = System.nanoTime();
 			sample = dataset.getSample(sample, (int)i);
+			tLoad += System.nanoTime() - t;
 			
-			long t = System.nanoTime();
+			t = System.nanoTime();
 			out = nn.forward(sample.input);
 			tForward += System.nanoTime() - t;
 			
@@ -123,7 +155,10 @@ public abstract class AbstractEvaluationStrategy implements EvaluationStrategy {
 			error += err;
 		}
 
-		return progress = new EvaluationProgress(i+config.batchSize, total, error/(i+config.batchSize));
+		long processed = i+indices.length;
+		float elapsed = (System.nanoTime()-tStart)/1e9f;
+		return progress = new EvaluationProgress(processed, total, error/processed, 
+				processed/elapsed, tForward/1e6f, tLoad/1e6f);
 	}
 
 	@Override
@@ -140,6 +175,17 @@ public abstract class AbstractEvaluationStrategy implements EvaluationStrategy {
 		return eval;
 	}
 
+	/**
+	 * Stop prefetching batches
+	 */
+	@Override
+	public void close(){
+		BatchPipeline p = pipeline;
+		if(p != null){
+			p.close();
+		}
+	}
+
 	protected abstract float eval(Tensor output, Tensor target);
 	
 	protected abstract void init(Map<String, String> config);
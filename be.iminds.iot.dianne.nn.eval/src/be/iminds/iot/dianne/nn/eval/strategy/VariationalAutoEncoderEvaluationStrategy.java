@@ -110,7 +110,9 @@ public class VariationalAutoEncoderEvaluationStrategy implements EvaluationStrat
 		
 		if(config.includeOutputs)
 			for(int b=0; b<indices.length; b++)
-				params.add(latentParams.select(0, b).copyInto(null));
+				try(Tensor p = latentParams.select(0, b)){
+					params.add(p.copyInto(null));
+				}
 		
 		error += TensorOps.mean(criterion.loss(output, batch.target));
 		
@@ -36,6 +36,11 @@ public class EvaluationStrategyConfig {
 	 */
 	public int batchSize = 1;
 	
+	/**
+	 * Prefetch the next batches in a BatchPipeline while forwarding the current batch
+	 */
+	public boolean prefetch = true;
+	
 	/**
 	 * The criterion to use to evaluate the error between output and target
 	 */
@@ -25,6 +25,7 @@ package be.iminds.iot.dianne.nn.learn;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.UUID;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
@@ -49,10 +50,13 @@ import be.iminds.iot.dianne.api.nn.learn.LearnerListener;
 import be.iminds.iot.dianne.api.nn.learn.LearningStrategy;
 import be.iminds.iot.dianne.api.nn.module.Trainable;
 import be.iminds.iot.dianne.api.nn.module.dto.NeuralNetworkInstanceDTO;
+import be.iminds.iot.dianne.api.repository.CompressedTensor;
+import be.iminds.iot.dianne.api.repository.CompressedTensor.Encoding;
 import be.iminds.iot.dianne.api.nn.util.StrategyFactory;
 import be.iminds.iot.dianne.nn.learn.config.LearnerConfig;
 import be.iminds.iot.dianne.nn.util.DianneConfigHandler;
 import be.iminds.iot.dianne.tensor.Tensor;
+import be.iminds.iot.dianne.tensor.TensorOps;
 
 @Component(property={"aiolos.unique=true"})
 public class LearnerImpl implements Learner {
@@ -86,6 +90,13 @@ public class LearnerImpl implements Learner {
 	// Previous  parameters
 	private Map<UUID, Map<UUID, Tensor>> previousParameters;
 	
+	// Compression error of the deltas not yet synced
+	private Map<UUID, Map<UUID, Tensor>> residuals;
+	
+	// Size and time of the last sync
+	private long syncBytes = 0;
+	private float syncTime = 0;
+	
 	// Training progress
 	private volatile long i = 0;
 	private LearnProgress progress;
@@ -117,6 +128,9 @@ public class LearnerImpl implements Learner {
 		try {
 			// Reset
 			previousParameters = new HashMap<>();
+			residuals = new HashMap<>();
+			syncBytes = 0;
+			syncTime = 0;
 			nns = new NeuralNetwork[nni.length];
 			i = 0;
 			
@@ -205,6 +219,8 @@ public class LearnerImpl implements Learner {
 								publishParameters(nns[k]);
 							}
 						}
+						progress.syncBytes = syncBytes;
+						progress.syncTime = syncTime;
 						
 						// Store intermediate parameters
 						for(int k=0;k<nns.length;k++){
@@ -337,8 +353,41 @@ public class LearnerImpl implements Learner {
 	 * Publish parameters (or deltas ) to the repository
 	 */
 	private void publishParameters(NeuralNetwork nn){
+		long t1 = System.nanoTime();
+		long bytes = 0;
+		
 		// Publish delta
-		nn.storeDeltaParameters(previousParameters.get(nn.getId()), config.tag);
+		Map<UUID, Tensor> previous = previousParameters.get(nn.getId());
+		if(config.compression == Encoding.NONE){
+			nn.storeDeltaParameters(previous, config.tag);
+			for(Trainable t : nn.getTrainables().values()){
+				bytes += 4*t.getParameters().size();
+			}
+		} else {
+			Map<UUID, Tensor> residual = residuals.computeIfAbsent(nn.getId(), id -> new HashMap<>());
+			Map<UUID, CompressedTensor> delta = new HashMap<>();
+			for(Entry<UUID, Trainable> e : nn.getTrainables().entrySet()){
+				UUID moduleId = e.getKey();
+				Tensor d = TensorOps.sub(null, e.getValue().getParameters(), previous.get(moduleId));
+				Tensor r = residual.get(moduleId);
+				if(r != null){
+					TensorOps.add(d, d, r);
+				}
+				
+				CompressedTensor c = CompressedTensor.encode(d, config.compression, config.blockSize, config.topk);
+				if(config.errorFeedback){
+					// keep what was not sent for the next sync
+					Tensor decoded = c.decode(null);
+					residual.put(moduleId, TensorOps.sub(r, d, decoded));
+					decoded.release();
+				}
+				d.release();
+				
+				delta.put(moduleId, c);
+				bytes += c.bytes();
+			}
+			nn.storeCompressedDeltaParameters(delta, config.tag);
+		}
 				
 		// Fetch update again from repo (could be merged from other learners)
 		try {
@@ -347,6 +396,9 @@ public class LearnerImpl implements Learner {
 			System.out.println("Failed to load parameters after publish?!");
 			e.printStackTrace();
 		}
+		
+		syncBytes = bytes;
+		syncTime = (System.nanoTime()-t1)/1e6f;
 	}
 
 	/**
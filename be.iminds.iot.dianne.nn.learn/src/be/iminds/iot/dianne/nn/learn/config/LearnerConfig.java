@@ -24,6 +24,8 @@ package be.iminds.iot.dianne.nn.learn.config;
 
 import java.util.UUID;
 
+import be.iminds.iot.dianne.api.repository.CompressedTensor.Encoding;
+
 public class LearnerConfig {
 
 	/**
@@ -66,6 +68,26 @@ public class LearnerConfig {
 	 */
 	public int[] syncInterval = new int[]{1000};
 	
+	/**
+	 * Compression of the delta parameters synced with the repository (NONE, FP16, INT8 or TOPK)
+	 */
+	public Encoding compression = Encoding.NONE;
+	
+	/**
+	 * Fraction of the delta parameters to sync in case of TOPK compression
+	 */
+	public float topk = 0.01f;
+	
+	/**
+	 * Number of values sharing a scale in case of INT8 compression
+	 */
+	public int blockSize = 256;
+	
+	/**
+	 * Keep the compression error locally and add it to the next delta
+	 */
+	public boolean errorFeedback = true;
+	
 	/**
 	 * Interval to store nn parameters
 	 */
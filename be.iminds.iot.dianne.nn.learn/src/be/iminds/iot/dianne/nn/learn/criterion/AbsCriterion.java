@@ -56,7 +56,9 @@ public class AbsCriterion implements Criterion {
 			loss.reshape(b.batchSize);
 			int div = absdiff.size() / b.batchSize;
 			for(int i=0;i<b.batchSize;i++){
-				loss.set(TensorOps.sum(absdiff.select(0, i))/div, i);
+				try(Tensor l = absdiff.select(0, i)){
+					loss.set(TensorOps.sum(l)/div, i);
+				}
 			}
 		} else {
 			loss.set(TensorOps.sum(absdiff)/absdiff.size(), 0);
@@ -61,10 +61,11 @@ public class GaussianCriterion implements Criterion {
 		int dim = params.dim()-1;
 		int size = params.size(dim)/2;
 		
-		Tensor mean = params.narrow(dim, 0, size);
-		stdev = TensorOps.add(stdev, params.narrow(dim, size, size), EPS);
-		
-		meanDiff = TensorOps.sub(meanDiff, data, mean);
+		try(Tensor mean = params.narrow(dim, 0, size);
+			Tensor s = params.narrow(dim, size, size)){
+			stdev = TensorOps.add(stdev, s, EPS);
+			meanDiff = TensorOps.sub(meanDiff, data, mean);
+		}
 		
 		l = TensorOps.cdiv(l, meanDiff, stdev);
 		TensorOps.cmul(l, l, l);
@@ -76,7 +77,9 @@ public class GaussianCriterion implements Criterion {
 		if(b.batchSize > 1){
 			loss.reshape(b.batchSize);
 			for(int i=0;i<b.batchSize;i++){
-				loss.set(TensorOps.sum(l.select(0, i)), i);
+				try(Tensor li = l.select(0, i)){
+					loss.set(TensorOps.sum(li), i);
+				}
 			}
 		} else {
 			loss.set(TensorOps.sum(l), 0);
@@ -92,20 +95,22 @@ public class GaussianCriterion implements Criterion {
 		
 		grad = params.copyInto(grad);
 		
-		stdev = TensorOps.add(stdev, params.narrow(dim, size, size), EPS);
-		Tensor gradMean = grad.narrow(dim, 0, size);
-		Tensor gradStdev = grad.narrow(dim, size, size);
-		
-		// - (x - mu) / sigma^2
-		TensorOps.cdiv(gradMean, meanDiff, stdev);
-		TensorOps.cdiv(gradMean, gradMean, stdev);
-		TensorOps.mul(gradMean, gradMean, -1);
-
-		// 0.5 - 0.5 * (x - mu)^2 / sigma^2
-		gradMean.copyInto(gradStdev);
-		TensorOps.cmul(gradStdev, gradStdev, meanDiff);
-		TensorOps.add(gradStdev, gradStdev, 1);
-		TensorOps.div(gradStdev, gradStdev, 2);
+		try(Tensor s = params.narrow(dim, size, size);
+			Tensor gradMean = grad.narrow(dim, 0, size);
+			Tensor gradStdev = grad.narrow(dim, size, size)){
+			stdev = TensorOps.add(stdev, s, EPS);
+			
+			// - (x - mu) / sigma^2
+			TensorOps.cdiv(gradMean, meanDiff, stdev);
+			TensorOps.cdiv(gradMean, gradMean, stdev);
+			TensorOps.mul(gradMean, gradMean, -1);
+			
+			// 0.5 - 0.5 * (x - mu)^2 / sigma^2
+			gradMean.copyInto(gradStdev);
+			TensorOps.cmul(gradStdev, gradStdev, meanDiff);
+			TensorOps.add(gradStdev, gradStdev, 1);
+			TensorOps.div(gradStdev, gradStdev, 2);
+		}
 		
 		if(b.batchAverage){
 			TensorOps.div(grad, grad, b.batchSize);
@@ -60,29 +60,34 @@ public class GaussianKLDivCriterion implements Criterion {
 		
 		// loss = log(s_tar / s_out) + (s_out^2 + (mu_out - mu_tar)^2) / (2 * s_tar^2) - 1/2
 		//      = ((s_out / s_tar)^2 + ((mu_out - mu_tar) / s_tar)^2 - log((s_out / s_tar)^2) - 1) / 2
-		Tensor outMean = output.narrow(dim, 0, size);
-		Tensor tarMean = target.narrow(dim, 0, size);
-		outStdev = TensorOps.add(outStdev, output.narrow(dim, size, size), EPS);
-		tarStdev = TensorOps.add(tarStdev, target.narrow(dim, size, size), EPS);
-		
-		l = TensorOps.sub(l, outMean, tarMean);
-		l = TensorOps.cdiv(l, l, tarStdev);
-		TensorOps.cmul(l, l, l);
-		
-		stdevRatio = TensorOps.cdiv(stdevRatio, outStdev, tarStdev);
-		TensorOps.cmul(stdevRatio, stdevRatio, stdevRatio);
-		TensorOps.add(l, l, stdevRatio);
-		
-		logStdevRatio = TensorOps.log(logStdevRatio, stdevRatio);
-		TensorOps.sub(l, l, logStdevRatio);
-		
-		TensorOps.sub(l, l, 1);
-		TensorOps.div(l, l, 2);
+		try(Tensor outMean = output.narrow(dim, 0, size);
+			Tensor tarMean = target.narrow(dim, 0, size);
+			Tensor outS = output.narrow(dim, size, size);
+			Tensor tarS = target.narrow(dim, size, size)){
+			outStdev = TensorOps.add(outStdev, outS, EPS);
+			tarStdev = TensorOps.add(tarStdev, tarS, EPS);
+			
+			l = TensorOps.sub(l, outMean, tarMean);
+			l = TensorOps.cdiv(l, l, tarStdev);
+			TensorOps.cmul(l, l, l);
+			
+			stdevRatio = TensorOps.cdiv(stdevRatio, outStdev, tarStdev);
+			TensorOps.cmul(stdevRatio, stdevRatio, stdevRatio);
+			TensorOps.add(l, l, stdevRatio);
+			
+			logStdevRatio = TensorOps.log(logStdevRatio, stdevRatio);
+			TensorOps.sub(l, l, logStdevRatio);
+			
+			TensorOps.sub(l, l, 1);
+			TensorOps.div(l, l, 2);
+		}
 		
 		if(b.batchSize > 1){
 			loss.reshape(b.batchSize);
 			for(int i=0;i<b.batchSize;i++){
-				loss.set(TensorOps.sum(l.select(0, i)), i);
+				try(Tensor li = l.select(0, i)){
+					loss.set(TensorOps.sum(li), i);
+				}
 			}
 		} else {
 			loss.set(TensorOps.sum(l), 0);
@@ -98,23 +103,26 @@ public class GaussianKLDivCriterion implements Criterion {
 		
 		grad = output.copyInto(grad);
 		
-		Tensor outMean = output.narrow(dim, 0, size);
-		Tensor tarMean = target.narrow(dim, 0, size);
-		outStdev = TensorOps.add(outStdev, output.narrow(dim, size, size), EPS);
-		tarStdev = TensorOps.add(tarStdev, target.narrow(dim, size, size), EPS);
-		Tensor gradMean = grad.narrow(dim, 0, size);
-		Tensor gradStdev = grad.narrow(dim, size, size);
-		
-		sqTarStdev = TensorOps.cmul(sqTarStdev, tarStdev, tarStdev);
-		invOutStdev = TensorOps.pow(invOutStdev, outStdev, -1);
-		
-		// grad mu_out = (mu_out - mu_tar) / s_tar^2
-		TensorOps.sub(gradMean, outMean, tarMean);
-		TensorOps.cdiv(gradMean, gradMean, sqTarStdev);
-		
-		// grad s_out = s_out / s_tar^2 - 1 / s_out
-		TensorOps.cdiv(gradStdev, outStdev, sqTarStdev);
-		TensorOps.sub(gradStdev, gradStdev, invOutStdev);
+		try(Tensor outMean = output.narrow(dim, 0, size);
+			Tensor tarMean = target.narrow(dim, 0, size);
+			Tensor outS = output.narrow(dim, size, size);
+			Tensor tarS = target.narrow(dim, size, size);
+			Tensor gradMean = grad.narrow(dim, 0, size);
+			Tensor gradStdev = grad.narrow(dim, size, size)){
+			outStdev = TensorOps.add(outStdev, outS, EPS);
+			tarStdev = TensorOps.add(tarStdev, tarS, EPS);
+			
+			sqTarStdev = TensorOps.cmul(sqTarStdev, tarStdev, tarStdev);
+			invOutStdev = TensorOps.pow(invOutStdev, outStdev, -1);
+			
+			// grad mu_out = (mu_out - mu_tar) / s_tar^2
+			TensorOps.sub(gradMean, outMean, tarMean);
+			TensorOps.cdiv(gradMean, gradMean, sqTarStdev);
+			
+			// grad s_out = s_out / s_tar^2 - 1 / s_out
+			TensorOps.cdiv(gradStdev, outStdev, sqTarStdev);
+			TensorOps.sub(gradStdev, gradStdev, invOutStdev);
+		}
 		
 		if(b.batchAverage){
 			TensorOps.div(grad, grad, b.batchSize);
@@ -130,30 +138,33 @@ public class GaussianKLDivCriterion implements Criterion {
 		
 		grad = output.copyInto(grad);
 		
-		Tensor outMean = output.narrow(dim, 0, size);
-		Tensor tarMean = target.narrow(dim, 0, size);
-		outStdev = TensorOps.add(outStdev, output.narrow(dim, size, size), EPS);
-		tarStdev = TensorOps.add(tarStdev, target.narrow(dim, size, size), EPS);
-		Tensor gradMean = grad.narrow(dim, 0, size);
-		Tensor gradStdev = grad.narrow(dim, size, size);
-		
-		sqTarStdev = TensorOps.cmul(sqTarStdev, tarStdev, tarStdev);
-		
-		// grad mu_tar = (mu_tar - mu_out) / s_tar^2
-		TensorOps.sub(gradMean, tarMean, outMean);
-		TensorOps.cdiv(gradMean, gradMean, sqTarStdev);
-		
-		// grad s_tar = -s_out^2 / s_tar^3 - (mu_out - mu_tar)^2 / s_tar^3 + 1 / (2 * s_tar)
-		//            = (-(s_out^2 + (mu_out - mu_tar)^2) / s_tar^2 + 1/2) / s_tar
-		TensorOps.sub(gradStdev, outMean, tarMean);
-		TensorOps.cmul(gradStdev, gradStdev, gradStdev);
-		
-		TensorOps.addcmul(gradStdev, gradStdev, 1, outStdev, outStdev);
-		TensorOps.cdiv(gradStdev, gradStdev, sqTarStdev);
-		
-		TensorOps.mul(gradStdev, gradStdev, -1);
-		TensorOps.add(gradStdev, gradStdev, 0.5f);
-		TensorOps.cdiv(gradStdev, gradStdev, tarStdev);
+		try(Tensor outMean = output.narrow(dim, 0, size);
+			Tensor tarMean = target.narrow(dim, 0, size);
+			Tensor outS = output.narrow(dim, size, size);
+			Tensor tarS = target.narrow(dim, size, size);
+			Tensor gradMean = grad.narrow(dim, 0, size);
+			Tensor gradStdev = grad.narrow(dim, size, size)){
+			outStdev = TensorOps.add(outStdev, outS, EPS);
+			tarStdev = TensorOps.add(tarStdev, tarS, EPS);
+			
+			sqTarStdev = TensorOps.cmul(sqTarStdev, tarStdev, tarStdev);
+			
+			// grad mu_tar = (mu_tar - mu_out) / s_tar^2
+			TensorOps.sub(gradMean, tarMean, outMean);
+			TensorOps.cdiv(gradMean, gradMean, sqTarStdev);
+			
+			// grad s_tar = -s_out^2 / s_tar^3 - (mu_out - mu_tar)^2 / s_tar^3 + 1 / (2 * s_tar)
+			//            = (-(s_out^2 + (mu_out - mu_tar)^2) / s_tar^2 + 1/2) / s_tar
+			TensorOps.sub(gradStdev, outMean, tarMean);
+			TensorOps.cmul(gradStdev, gradStdev, gradStdev);
+			
+			TensorOps.addcmul(gradStdev, gradStdev, 1, outStdev, outStdev);
+			TensorOps.cdiv(gradStdev, gradStdev, sqTarStdev);
+			
+			TensorOps.mul(gradStdev, gradStdev, -1);
+			TensorOps.add(gradStdev, gradStdev, 0.5f);
+			TensorOps.cdiv(gradStdev, gradStdev, tarStdev);
+		}
 		
 		if(b.batchAverage){
 			TensorOps.div(grad, grad, b.batchSize);
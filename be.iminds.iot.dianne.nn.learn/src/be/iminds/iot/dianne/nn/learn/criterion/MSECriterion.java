@@ -53,8 +53,9 @@ public class MSECriterion implements Criterion {
 			loss.reshape(b.batchSize);
 			int div = diff.size() / b.batchSize;
 			for(int i=0;i<b.batchSize;i++){
-				Tensor l = diff.select(0, i);
-				loss.set(TensorOps.dot(l, l)/div, i);
+				try(Tensor l = diff.select(0, i)){
+					loss.set(TensorOps.dot(l, l)/div, i);
+				}
 			}
 		} else {
 			loss.set(TensorOps.dot(diff, diff), 0);
@@ -61,7 +61,10 @@ public class NLLCriterion implements Criterion {
 		if(b.batchSize > 1){
 			loss.reshape(b.batchSize);
 			for(int i=0;i<b.batchSize;i++){
-				loss.set(-TensorOps.dot(log==null ? output.select(0, i) : log.select(0, i) , target.select(0,  i)), i);
+				try(Tensor o = log==null ? output.select(0, i) : log.select(0, i);
+					Tensor t = target.select(0,  i)){
+					loss.set(-TensorOps.dot(o, t), i);
+				}
 			}
 		} else {
 			loss.set(-TensorOps.dot(log==null ? output : log , target), 0);
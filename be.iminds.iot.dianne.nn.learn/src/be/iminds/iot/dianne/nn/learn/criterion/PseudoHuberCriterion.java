@@ -58,8 +58,9 @@ public class PseudoHuberCriterion implements Criterion {
 			loss.reshape(b.batchSize);
 			int div = output.size() / b.batchSize;
 			for(int i=0;i<b.batchSize;i++){
-				Tensor s = sqrt.select(0, i);
-				loss.set((TensorOps.sum(s) - s.size())/div, i);
+				try(Tensor s = sqrt.select(0, i)){
+					loss.set((TensorOps.sum(s) - s.size())/div, i);
+				}
 			}
 		} else {
 			loss.set((TensorOps.sum(sqrt) - sqrt.size()), 0);
@@ -0,0 +1,452 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.nn.learn.sampling;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import be.iminds.iot.dianne.api.dataset.AbstractDatasetAdapter;
+import be.iminds.iot.dianne.api.dataset.Batch;
+import be.iminds.iot.dianne.api.dataset.Dataset;
+import be.iminds.iot.dianne.api.dataset.Sample;
+import be.iminds.iot.dianne.api.nn.learn.SamplingStrategy;
+import be.iminds.iot.dianne.nn.learn.sampling.SamplingFactory.SamplingConfig;
+import be.iminds.iot.dianne.nn.learn.sampling.config.BatchSamplerConfig;
+import be.iminds.iot.dianne.nn.util.DianneConfigHandler;
+
+/**
+ * Multi-stage alternative for fetching batches in separate threads. 
+ * 
+ * Instead of fetching a complete batch per thread, each batch passes a number of stages:
+ *  - index sampling : sample the indices of the next batch
+ *  - decode : fetch the samples from the dataset underneath the dataset adapters
+ *  - augment : apply the dataset adapters on each sample
+ *  - assembly : the samples are written directly into the batch Tensors, 
+ *    a batch is ready once all its samples passed all stages
+ * 
+ * Each stage has its own worker threads and bounded queue, the number of batches 
+ * in flight is bounded by the prefetch size. When autoTune is enabled, a worker 
+ * is added to the slowest stage as long as the learner has to wait for batches.
+ * 
+ * Idle workers stop after a while, so a pipeline that is no longer used 
+ * does not keep any threads alive. Call close to stop all workers immediately.
+ * 
+ * In case fetching a sample fails, only the batch it belongs to fails: nextBatch throws
+ * the failure once, and the batch slot is reused for the next batches.
+ * 
+ * @author tverbele
+ *
+ */
+public class BatchPipeline implements AutoCloseable {
+
+	// idle time before a worker stops (seconds)
+	private static final int IDLE_TIMEOUT = 10;
+	// check whether to add workers every x batches
+	private static final int TUNE_INTERVAL = 10;
+	// add workers when learner waits more than x ms for a batch
+	private static final double TUNE_THRESHOLD = 1;
+	
+	private final Dataset dataset;
+	private final SamplingStrategy sampling;
+	private final BatchSamplerConfig config;
+	
+	// dataset underneath the adapters and the adapters to apply, innermost first
+	private final Dataset source;
+	private final AbstractDatasetAdapter[] adapters;
+	
+	private final Stage<Slot> indexStage;
+	private final Stage<SampleTask> decodeStage;
+	private final Stage<SampleTask> augmentStage;
+	
+	// batches in the order they were sampled
+	private final LinkedBlockingQueue<Slot> sampled;
+	private Slot inUse = null;
+	
+	private volatile boolean closed = false;
+	
+	private double fetchTime = 0;
+	private double waitTime = 0;
+	private int i = 0;
+	
+	public BatchPipeline(Dataset d, SamplingConfig samplingStrategy, Map<String, String> config){
+		this(d, SamplingFactory.createSamplingStrategy(samplingStrategy, d, config), 
+				DianneConfigHandler.getConfig(config, BatchSamplerConfig.class));
+	}
+	
+	public BatchPipeline(Dataset d, SamplingStrategy sampling, BatchSamplerConfig config){
+		this.dataset = d;
+		this.sampling = sampling;
+		this.config = config;
+		
+		List<AbstractDatasetAdapter> chain = new ArrayList<>();
+		Dataset s = d;
+		if(config.augmentThreads > 0){
+			while(s instanceof AbstractDatasetAdapter 
+					&& !remapsIndices((AbstractDatasetAdapter)s)){
+				AbstractDatasetAdapter adapter = (AbstractDatasetAdapter)s;
+				chain.add(0, adapter);
+				s = adapter.getAdaptedDataset();
+			}
+		}
+		this.source = s;
+		this.adapters = chain.toArray(new AbstractDatasetAdapter[chain.size()]);
+		
+		// one additional batch that is in use by the learner
+		int slots = this.config.prefetch + 1;
+		int samples = slots * this.config.batchSize;
+		
+		this.sampled = new LinkedBlockingQueue<>(slots);
+		this.indexStage = new Stage<>("index", 1, slots, this::sampleIndices);
+		this.decodeStage = new Stage<>("decode", this.config.decodeThreads, samples, this::decode);
+		this.augmentStage = adapters.length > 0 ? new Stage<>("augment", this.config.augmentThreads, samples, this::augment) : null;
+		
+		for(int i=0;i<slots;i++){
+			indexStage.submit(new Slot());
+		}
+	}
+	
+	/**
+	 * Get next batch from the pipeline. Once you call this method, the previous 
+	 * batch returned becomes obsolete and can be filled in with new data!
+	 */
+	public Batch nextBatch(){
+		long t1 = System.nanoTime();
+		
+		if(inUse != null){
+			indexStage.submit(inUse);
+			inUse = null;
+		}
+		
+		// deliver batches in sampling order, i.e. for sequential sampling
+		try {
+			while(inUse == null){
+				checkClosed();
+				inUse = sampled.poll(100, TimeUnit.MILLISECONDS);
+			}
+			synchronized(inUse){
+				while(inUse.remaining.get() > 0){
+					checkClosed();
+					inUse.wait(100);
+				}
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		
+		// report a failure only once, the slot is resubmitted on the next call
+		Throwable error = inUse.error;
+		if(error != null){
+			inUse.error = null;
+			throw new RuntimeException("Failed to fetch batch", error);
+		}
+		
+		long t2 = System.nanoTime();
+		waitTime = 0.5*waitTime + 0.5*(t2-t1)/1e6;
+		
+		if(config.autoTune && i % TUNE_INTERVAL == 0 && waitTime > TUNE_THRESHOLD){
+			tune();
+		}
+		
+		if(config.traceBatchTime && i % config.traceInterval == 0) {
+			StringBuilder b = new StringBuilder();
+			b.append("Batch fetch time: ").append(fetchTime).append(" ms - wait time: ").append(waitTime).append(" ms");
+			b.append(" - ").append(indexStage);
+			b.append(" - ").append(decodeStage);
+			if(augmentStage != null)
+				b.append(" - ").append(augmentStage);
+			System.out.println(b.toString());
+		}
+		i++;
+		
+		return inUse.batch;
+	}
+	
+	/**
+	 * Stop all workers, batches in flight are dropped and nextBatch fails from now on.
+	 */
+	@Override
+	public void close(){
+		closed = true;
+		indexStage.close();
+		decodeStage.close();
+		if(augmentStage != null){
+			augmentStage.close();
+		}
+	}
+	
+	/**
+	 * @return the current number of workers of the decode stage
+	 */
+	public int getDecodeThreads(){
+		return decodeStage.workers;
+	}
+	
+	/**
+	 * @return the current number of workers of the augment stage
+	 */
+	public int getAugmentThreads(){
+		return augmentStage == null ? 0 : augmentStage.workers;
+	}
+	
+	// adapters that override getSample (i.e. the RangeAdapter) change the sample index,
+	// these are decoded as a whole together with the adapters underneath
+	private static boolean remapsIndices(AbstractDatasetAdapter adapter){
+		try {
+			return adapter.getClass().getMethod("getSample", Sample.class, int.class).getDeclaringClass() 
+					!= AbstractDatasetAdapter.class;
+		} catch(NoSuchMethodException e){
+			return true;
+		}
+	}
+	
+	private void checkClosed(){
+		if(closed){
+			throw new IllegalStateException("Batch pipeline is closed");
+		}
+	}
+	
+	// add a worker to the stage with the highest time per sample per worker
+	private void tune(){
+		Stage<SampleTask> slowest = decodeStage;
+		if(augmentStage != null && augmentStage.load() > decodeStage.load()){
+			slowest = augmentStage;
+		}
+		if(slowest.workers < config.maxThreads){
+			slowest.setWorkers(slowest.workers+1);
+		}
+	}
+	
+	private void sampleIndices(Slot slot){
+		slot.start = System.nanoTime();
+		try {
+			slot.indices = sampling.next(config.batchSize);
+		} catch(Throwable t){
+			// deliver the slot as failed batch
+			slot.error = t;
+			slot.remaining.set(0);
+			sampled.add(slot);
+			return;
+		}
+		slot.remaining.set(slot.tasks.length);
+		sampled.add(slot);
+		for(SampleTask task : slot.tasks){
+			decodeStage.submit(task);
+		}
+	}
+	
+	private void decode(SampleTask task){
+		try {
+			int index = task.slot.indices[task.index];
+			if(augmentStage == null){
+				dataset.getSample(task.slot.batch.samples[task.index], index);
+			} else {
+				task.samples[0] = source.getSample(task.samples[0], index);
+				augmentStage.submit(task);
+				return;
+			}
+		} catch(Throwable t){
+			task.slot.error = t;
+		}
+		assemble(task);
+	}
+	
+	private void augment(SampleTask task){
+		try {
+			Sample original = task.samples[0];
+			for(int k=0;k<adapters.length;k++){
+				if(k == adapters.length-1){
+					// last adapter writes directly in the batch
+					adapters[k].adapt(original, task.slot.batch.samples[task.index]);
+				} else {
+					task.samples[k+1] = adapters[k].adapt(original, task.samples[k+1]);
+					original = task.samples[k+1];
+				}
+			}
+		} catch(Throwable t){
+			task.slot.error = t;
+		}
+		assemble(task);
+	}
+	
+	private void assemble(SampleTask task){
+		Slot slot = task.slot;
+		if(slot.remaining.decrementAndGet() == 0){
+			fetchTime = 0.5*fetchTime + 0.5*(System.nanoTime()-slot.start)/1e6;
+			synchronized(slot){
+				slot.notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * A batch travelling through the pipeline
+	 */
+	private class Slot {
+		
+		private final Batch batch;
+		private final SampleTask[] tasks;
+		private final AtomicInteger remaining = new AtomicInteger();
+		
+		// failure of one of the samples of this batch
+		private volatile Throwable error;
+		
+		private int[] indices;
+		private long start;
+		
+		public Slot(){
+			int[] inputDims = dataset.inputDims();
+			if(inputDims == null){
+				throw new InstantiationError("Cannot create a batch when dataset has no fixed input dimensions");
+			}
+			batch = new Batch(config.batchSize, inputDims, dataset.targetDims());
+			tasks = new SampleTask[config.batchSize];
+			for(int i=0;i<tasks.length;i++){
+				tasks[i] = new SampleTask(this, i);
+			}
+		}
+	}
+	
+	/**
+	 * A single sample of a batch, keeps the intermediate samples between adapters 
+	 * to reuse them for the next batch 
+	 */
+	private class SampleTask {
+		
+		private final Slot slot;
+		private final int index;
+		private final Sample[] samples;
+		
+		public SampleTask(Slot slot, int index){
+			this.slot = slot;
+			this.index = index;
+			this.samples = new Sample[Math.max(1, adapters.length)];
+		}
+	}
+	
+	/**
+	 * A stage of the pipeline with a bounded queue and a (variable) number of workers
+	 */
+	private class Stage<T> {
+		
+		private final String name;
+		private final BlockingQueue<T> queue;
+		private final Consumer<T> process;
+		
+		private volatile int workers;
+		private int running = 0;
+		private final Set<Thread> threads = new HashSet<>();
+		private volatile double time = 0;
+		
+		public Stage(String name, int workers, int capacity, Consumer<T> process){
+			this.name = name;
+			this.workers = Math.max(1, workers);
+			this.queue = new ArrayBlockingQueue<>(capacity);
+			this.process = process;
+		}
+		
+		public void submit(T task){
+			if(closed)
+				return;
+			
+			try {
+				queue.put(task);
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			spawn();
+		}
+		
+		public synchronized void setWorkers(int workers){
+			this.workers = workers;
+			spawn();
+		}
+		
+		public double load(){
+			return time/workers;
+		}
+		
+		public synchronized void close(){
+			queue.clear();
+			threads.forEach(Thread::interrupt);
+		}
+		
+		private synchronized void spawn(){
+			while(!closed && running < workers){
+				running++;
+				Thread t = new Thread(this::work, "BatchPipeline-"+name+"-"+running);
+				t.setDaemon(true);
+				threads.add(t);
+				t.start();
+			}
+		}
+		
+		private void work(){
+			try {
+				while(!closed){
+					T task = queue.poll(IDLE_TIMEOUT, TimeUnit.SECONDS);
+					if(task == null){
+						synchronized(this){
+							if(queue.isEmpty()){
+								running--;
+								threads.remove(Thread.currentThread());
+								return;
+							}
+						}
+						continue;
+					}
+					
+					long t1 = System.nanoTime();
+					try {
+						process.accept(task);
+					} catch(Throwable e){
+						// failures are handled per batch by the stages themselves
+						e.printStackTrace();
+					}
+					time = 0.5*time + 0.5*(System.nanoTime()-t1)/1e6;
+				}
+			} catch(InterruptedException e){
+				// closed
+			}
+			
+			synchronized(this){
+				if(threads.remove(Thread.currentThread())){
+					running--;
+				}
+			}
+		}
+		
+		@Override
+		public String toString(){
+			return name+": "+time+" ms ("+workers+" threads)";
+		}
+	}
+}
@@ -51,6 +51,9 @@ public class BatchSampler {
 	
 	private LinkedBlockingQueue<BatchFetcher> ready;
 	
+	// multi-stage pipeline used instead of the batch fetchers if configured
+	private BatchPipeline pipeline;
+	
 	private double fetchTime = 0;
 	private double waitTime = 0;
 	private int i = 0;
@@ -60,6 +63,11 @@ public class BatchSampler {
 		this.sampling = SamplingFactory.createSamplingStrategy(samplingStrategy, d, config);;
 		this.config = DianneConfigHandler.getConfig(config, BatchSamplerConfig.class);
 		
+		if(this.config.pipeline){
+			this.pipeline = new BatchPipeline(d, sampling, this.config);
+			return;
+		}
+		
 		this.ready = new LinkedBlockingQueue<>(this.config.fetchThreads);
 		for(int i=0;i<this.config.fetchThreads;i++) {
 			BatchFetcher fetcher = new BatchFetcher();
@@ -69,6 +77,10 @@ public class BatchSampler {
 	}
 		
 	public Batch nextBatch(){
+		if(pipeline != null){
+			return pipeline.nextBatch();
+		}
+		
 		BatchFetcher fetcher;
 		try {
 			long t1 = System.currentTimeMillis();
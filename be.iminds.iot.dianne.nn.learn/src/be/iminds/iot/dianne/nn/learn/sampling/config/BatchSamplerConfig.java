@@ -43,4 +43,35 @@ public class BatchSamplerConfig {
 	 * Trace interval
 	 */
 	public int traceInterval = 100;
+
+	/**
+	 * Use a multi-stage BatchPipeline (index sampling, decode, augment, assembly)
+	 * instead of fetching complete batches per thread
+	 */
+	public boolean pipeline = false;
+
+	/**
+	 * Number of threads decoding samples from the (non-adapted) dataset
+	 */
+	public int decodeThreads = 2;
+
+	/**
+	 * Number of threads applying the dataset adapters, 0 to adapt in the decode threads
+	 */
+	public int augmentThreads = 1;
+
+	/**
+	 * Number of batches to prefetch in the pipeline
+	 */
+	public int prefetch = 2;
+
+	/**
+	 * Add decode/augment threads to the slowest stage when the learner is waiting on batches
+	 */
+	public boolean autoTune = true;
+
+	/**
+	 * Maximum number of threads per stage when auto tuning
+	 */
+	public int maxThreads = Runtime.getRuntime().availableProcessors();
 }
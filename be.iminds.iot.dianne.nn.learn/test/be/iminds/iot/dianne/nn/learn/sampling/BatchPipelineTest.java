@@ -0,0 +1,357 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.nn.learn.sampling;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import be.iminds.iot.dianne.api.dataset.AbstractDatasetAdapter;
+import be.iminds.iot.dianne.api.dataset.Batch;
+import be.iminds.iot.dianne.api.dataset.Dataset;
+import be.iminds.iot.dianne.api.dataset.DatasetDTO;
+import be.iminds.iot.dianne.api.dataset.Sample;
+import be.iminds.iot.dianne.nn.learn.sampling.config.BatchSamplerConfig;
+import be.iminds.iot.dianne.tensor.Tensor;
+import be.iminds.iot.dianne.tensor.TensorOps;
+import junit.framework.Assert;
+
+public class BatchPipelineTest {
+
+	private static final int DATASET_SIZE = 400;
+	private static final int BATCH_SIZE = 8;
+	
+	private BatchSamplerConfig config;
+	
+	@Before
+	public void init() {
+		config = new BatchSamplerConfig();
+		config.batchSize = BATCH_SIZE;
+		config.decodeThreads = 3;
+		config.augmentThreads = 2;
+		config.autoTune = false;
+	}
+	
+	@Test
+	public void testPipeline() {
+		IndexDataset dataset = new IndexDataset(0);
+		BatchPipeline pipeline = new BatchPipeline(dataset, new SequentialSamplingStrategy(dataset), config);
+		
+		Set<Integer> indices = new HashSet<>();
+		for(int i=0;i<DATASET_SIZE/BATCH_SIZE;i++){
+			Batch b = pipeline.nextBatch();
+			for(int k=0;k<BATCH_SIZE;k++){
+				int index = (int)b.getTarget(k).get(0);
+				Assert.assertEquals(index, (int)b.getInput(k).get(0));
+				indices.add(index);
+			}
+		}
+		Assert.assertEquals(DATASET_SIZE, indices.size());
+	}
+	
+	@Test
+	public void testPipelineWithAdapters() {
+		IndexDataset dataset = new IndexDataset(0);
+		Dataset adapted = new OffsetAdapter(new OffsetAdapter(dataset, 1000), 10);
+		BatchPipeline pipeline = new BatchPipeline(adapted, new SequentialSamplingStrategy(adapted), config);
+		Assert.assertEquals(2, pipeline.getAugmentThreads());
+		
+		Set<Integer> indices = new HashSet<>();
+		for(int i=0;i<DATASET_SIZE/BATCH_SIZE;i++){
+			Batch b = pipeline.nextBatch();
+			for(int k=0;k<BATCH_SIZE;k++){
+				int index = (int)b.getTarget(k).get(0);
+				Assert.assertEquals(index + 1010, (int)b.getInput(k).get(0));
+				indices.add(index);
+			}
+		}
+		Assert.assertEquals(DATASET_SIZE, indices.size());
+	}
+	
+	@Test
+	public void testRangeAdapter() {
+		IndexDataset dataset = new IndexDataset(0);
+		Dataset adapted = new OffsetAdapter(new ShiftAdapter(new OffsetAdapter(dataset, 1000), 100), 10);
+		BatchPipeline pipeline = new BatchPipeline(adapted, new SequentialSamplingStrategy(adapted), config);
+		
+		for(int i=0;i<(DATASET_SIZE-100)/BATCH_SIZE;i++){
+			Batch b = pipeline.nextBatch();
+			for(int k=0;k<BATCH_SIZE;k++){
+				int index = i*BATCH_SIZE+k;
+				Assert.assertEquals(index + 100, (int)b.getTarget(k).get(0));
+				Assert.assertEquals(index + 1110, (int)b.getInput(k).get(0));
+			}
+		}
+	}
+	
+	@Test
+	public void testAdaptersInDecodeStage() {
+		config.augmentThreads = 0;
+		IndexDataset dataset = new IndexDataset(0);
+		Dataset adapted = new OffsetAdapter(dataset, 1000);
+		BatchPipeline pipeline = new BatchPipeline(adapted, new UniformSamplingStrategy(adapted), config);
+		Assert.assertEquals(0, pipeline.getAugmentThreads());
+		
+		for(int i=0;i<100;i++){
+			Batch b = pipeline.nextBatch();
+			for(int k=0;k<BATCH_SIZE;k++){
+				Assert.assertEquals((int)b.getTarget(k).get(0) + 1000, (int)b.getInput(k).get(0));
+			}
+		}
+	}
+	
+	@Test
+	public void testAutoTune() {
+		config.decodeThreads = 1;
+		config.autoTune = true;
+		config.maxThreads = 4;
+		IndexDataset dataset = new IndexDataset(1);
+		BatchPipeline pipeline = new BatchPipeline(dataset, new UniformSamplingStrategy(dataset), config);
+		
+		for(int i=0;i<100;i++){
+			pipeline.nextBatch();
+		}
+		Assert.assertEquals(4, pipeline.getDecodeThreads());
+	}
+	
+	@Test
+	public void testFailure() {
+		IndexDataset dataset = new IndexDataset(0);
+		dataset.fail = true;
+		BatchPipeline pipeline = new BatchPipeline(dataset, new UniformSamplingStrategy(dataset), config);
+		try {
+			pipeline.nextBatch();
+			Assert.fail("Expected the sample failure to be thrown");
+		} catch(RuntimeException e){
+			Assert.assertEquals("Failed to read sample", e.getCause().getMessage().substring(0, 21));
+		}
+	}
+	
+	@Test
+	public void testRecoverAfterFailure() {
+		IndexDataset dataset = new IndexDataset(0);
+		dataset.fail = true;
+		BatchPipeline pipeline = new BatchPipeline(dataset, new SequentialSamplingStrategy(dataset), config);
+		try {
+			pipeline.nextBatch();
+			Assert.fail("Expected the sample failure to be thrown");
+		} catch(RuntimeException e){
+			// expected
+		}
+		
+		// only the batches that were in flight fail, next batches are fetched again
+		dataset.fail = false;
+		int failed = 0;
+		Batch b = null;
+		while(b == null){
+			try {
+				b = pipeline.nextBatch();
+			} catch(RuntimeException e){
+				failed++;
+				Assert.assertTrue(failed <= config.prefetch + 1);
+			}
+		}
+		for(int i=0;i<10;i++){
+			b = pipeline.nextBatch();
+			for(int k=0;k<BATCH_SIZE;k++){
+				Assert.assertEquals((int)b.getTarget(k).get(0), (int)b.getInput(k).get(0));
+			}
+		}
+	}
+	
+	@Test
+	public void testClose() throws Exception {
+		IndexDataset dataset = new IndexDataset(1);
+		BatchPipeline pipeline = new BatchPipeline(dataset, new SequentialSamplingStrategy(dataset), config);
+		pipeline.nextBatch();
+		pipeline.close();
+		
+		try {
+			pipeline.nextBatch();
+			Assert.fail("Expected a closed pipeline to fail");
+		} catch(IllegalStateException e){
+			// expected
+		}
+		
+		// no more samples are fetched once the workers stopped
+		Thread.sleep(100);
+		int reads = dataset.reads.get();
+		Thread.sleep(100);
+		Assert.assertEquals(reads, dataset.reads.get());
+	}
+	
+	@Test
+	public void testBatchSampler() {
+		Map<String, String> c = new HashMap<>();
+		c.put("batchSize", ""+BATCH_SIZE);
+		c.put("pipeline", "true");
+		IndexDataset dataset = new IndexDataset(0);
+		BatchSampler sampler = new BatchSampler(dataset, SamplingFactory.SamplingConfig.SEQUENTIAL, c);
+		
+		Batch b = sampler.nextBatch();
+		Assert.assertEquals(BATCH_SIZE, b.getSize());
+		for(int k=0;k<BATCH_SIZE;k++){
+			Assert.assertEquals((int)b.getTarget(k).get(0), (int)b.getInput(k).get(0));
+		}
+	}
+	
+	/**
+	 * Dataset with the index as input and target, optionally with some decode delay
+	 */
+	private static class IndexDataset implements Dataset {
+		
+		private final long delay;
+		private volatile boolean fail = false;
+		private final AtomicInteger reads = new AtomicInteger();
+		
+		public IndexDataset(long delay){
+			this.delay = delay;
+		}
+		
+		@Override
+		public DatasetDTO getDTO() {
+			return null;
+		}
+
+		@Override
+		public int size() {
+			return DATASET_SIZE;
+		}
+
+		@Override
+		public int[] inputDims() {
+			return new int[]{1};
+		}
+
+		@Override
+		public String inputType() {
+			return null;
+		}
+
+		@Override
+		public int[] targetDims() {
+			return new int[]{1};
+		}
+
+		@Override
+		public String targetType() {
+			return null;
+		}
+
+		@Override
+		public Sample getSample(Sample s, int index) {
+			reads.incrementAndGet();
+			if(fail){
+				throw new RuntimeException("Failed to read sample "+index);
+			}
+			
+			if(delay > 0){
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException e) {
+				}
+			}
+			
+			if(s == null){
+				s = new Sample(new Tensor(1), new Tensor(1));
+			}
+			s.input.fill(index);
+			s.target.fill(index);
+			return s;
+		}
+
+		@Override
+		public String getName() {
+			return "index";
+		}
+
+		@Override
+		public String[] getLabels() {
+			return null;
+		}
+	}
+	
+	/**
+	 * Adapter that adds an offset to the input
+	 */
+	private static class OffsetAdapter extends AbstractDatasetAdapter {
+		
+		private final float offset;
+		
+		public OffsetAdapter(Dataset d, float offset){
+			this.offset = offset;
+			setDataset(d);
+			Map<String, Object> properties = new HashMap<>();
+			properties.put("name", "offset");
+			activate(properties);
+		}
+		
+		@Override
+		protected void configure(Map<String, Object> properties) {
+		}
+
+		@Override
+		protected void adaptSample(Sample original, Sample adapted) {
+			adapted.input = TensorOps.add(adapted.input, original.input, offset);
+			adapted.target = original.target.copyInto(adapted.target);
+		}
+	}
+	
+	/**
+	 * Adapter that shifts the sample indices, similar to the RangeAdapter
+	 */
+	private static class ShiftAdapter extends AbstractDatasetAdapter {
+		
+		private final int shift;
+		
+		public ShiftAdapter(Dataset d, int shift){
+			this.shift = shift;
+			setDataset(d);
+			Map<String, Object> properties = new HashMap<>();
+			properties.put("name", "shift");
+			activate(properties);
+		}
+		
+		@Override
+		protected void configure(Map<String, Object> properties) {
+		}
+		
+		@Override
+		public int size() {
+			return data.size()-shift;
+		}
+		
+		@Override
+		public Sample getSample(Sample s, int index){
+			return data.getSample(s, index+shift);
+		}
+
+		@Override
+		protected void adaptSample(Sample original, Sample adapted) {}
+	}
+}
@@ -110,6 +110,11 @@ public class CompositeModule extends AbstractTrainableModule implements Composit
 	}
 	
 	
+	@Override
+	public void resetGradient(){
+		nn.resetMemoryGradients();
+	}
+	
 	@Override
 	protected void randomize() {
 		nn.getTrainables().values().stream().forEach(m -> m.randomizeParameters());
@@ -33,11 +33,13 @@ import org.osgi.service.component.annotations.Component;
 
 import be.iminds.iot.dianne.api.nn.module.AbstractModule;
 import be.iminds.iot.dianne.api.nn.module.Module;
+import be.iminds.iot.dianne.api.nn.module.Quantizable;
 import be.iminds.iot.dianne.api.nn.module.dto.ModuleDTO;
 import be.iminds.iot.dianne.api.nn.module.dto.ModulePropertyDTO;
 import be.iminds.iot.dianne.api.nn.module.dto.ModuleTypeDTO;
 import be.iminds.iot.dianne.api.nn.module.factory.ModuleFactory;
 import be.iminds.iot.dianne.api.nn.module.factory.ModuleTypeNotSupportedException;
+import be.iminds.iot.dianne.api.repository.CompressedTensor.Encoding;
 import be.iminds.iot.dianne.nn.module.activation.LogSoftmax;
 import be.iminds.iot.dianne.nn.module.activation.PReLU;
 import be.iminds.iot.dianne.nn.module.activation.ReLU;
@@ -56,6 +58,7 @@ import be.iminds.iot.dianne.nn.module.join.Accumulate;
 import be.iminds.iot.dianne.nn.module.join.Average;
 import be.iminds.iot.dianne.nn.module.join.Concat;
 import be.iminds.iot.dianne.nn.module.join.Multiply;
+import be.iminds.iot.dianne.nn.module.layer.Activation;
 import be.iminds.iot.dianne.nn.module.layer.AvgPooling;
 import be.iminds.iot.dianne.nn.module.layer.Convolution;
 import be.iminds.iot.dianne.nn.module.layer.FullConvolution;
@@ -108,7 +111,9 @@ public class DianneModuleFactory implements ModuleFactory {
 		
 		addSupportedType( new ModuleTypeDTO("Linear", "Layer", true, 
 					new ModulePropertyDTO("Input size", "input", Integer.class.getName()),
-					new ModulePropertyDTO("Output size", "output", Integer.class.getName())));
+					new ModulePropertyDTO("Output size", "output", Integer.class.getName()),
+					new ModulePropertyDTO("Precision", "precision", String.class.getName()),
+					new ModulePropertyDTO("Activation", "activation", String.class.getName())));
 
 		addSupportedType(new ModuleTypeDTO("Sigmoid", "Activation", false));
 		
@@ -176,7 +181,9 @@ public class DianneModuleFactory implements ModuleFactory {
 				new ModulePropertyDTO("Stride Z", "strideZ", Integer.class.getName()),
 				new ModulePropertyDTO("Pad X", "padX", Integer.class.getName()),
 				new ModulePropertyDTO("Pad Y", "padY", Integer.class.getName()),
-				new ModulePropertyDTO("Pad Z", "padZ", Integer.class.getName())));
+				new ModulePropertyDTO("Pad Z", "padZ", Integer.class.getName()),
+				new ModulePropertyDTO("Precision", "precision", String.class.getName()),
+				new ModulePropertyDTO("Activation", "activation", String.class.getName())));
 			
 		addSupportedType(new ModuleTypeDTO("FullConvolution", "Layer", true, 
 				new ModulePropertyDTO("Input planes", "noInputPlanes", Integer.class.getName()),
@@ -189,7 +196,8 @@ public class DianneModuleFactory implements ModuleFactory {
 				new ModulePropertyDTO("Stride Z", "strideZ", Integer.class.getName()),
 				new ModulePropertyDTO("Pad X", "padX", Integer.class.getName()),
 				new ModulePropertyDTO("Pad Y", "padY", Integer.class.getName()),
-				new ModulePropertyDTO("Pad Z", "padZ", Integer.class.getName())));
+				new ModulePropertyDTO("Pad Z", "padZ", Integer.class.getName()),
+				new ModulePropertyDTO("Precision", "precision", String.class.getName())));
 		
 		addSupportedType(new ModuleTypeDTO("MaxPooling" , "Layer", false, 
 				new ModulePropertyDTO("Width", "width", Integer.class.getName()),
@@ -801,6 +809,37 @@ public class DianneModuleFactory implements ModuleFactory {
 			throw new InstantiationException("Could not instantiate module of type "+type);
 		}
 		
+		// keep the weights at reduced precision (fp16, bf16 or int8) for inference
+		if(module instanceof Quantizable && hasProperty(dto.properties, "precision")){
+			String precision = dto.properties.get("precision").toUpperCase();
+			switch(precision){
+			case "NONE":
+			case "FP16":
+			case "BF16":
+			case "INT8":
+				((Quantizable)module).setPrecision(Encoding.valueOf(precision));
+				break;
+			default:
+				throw new InstantiationException("Unsupported precision "+precision);
+			}
+		}
+		
+		// apply a (fused) activation in place on the output of a Linear or Convolution
+		if(hasProperty(dto.properties, "activation")){
+			Activation activation = Activation.forType(dto.properties.get("activation"));
+			if(activation == null){
+				throw new InstantiationException("Unsupported activation "+dto.properties.get("activation"));
+			}
+			
+			if(type.equals("Linear")){
+				((Linear)module).setActivation(activation);
+			} else if(type.equals("Convolution")){
+				((Convolution)module).setActivation(activation);
+			} else {
+				throw new InstantiationException("Cannot fuse an activation into module of type "+type);
+			}
+		}
+		
 		return module;
 	}
 
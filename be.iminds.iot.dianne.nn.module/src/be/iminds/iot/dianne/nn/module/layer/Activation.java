@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.nn.module.layer;
+
+import be.iminds.iot.dianne.tensor.ModuleOps;
+import be.iminds.iot.dianne.tensor.Tensor;
+
+/**
+ * Activation that is fused into a Linear or Convolution and applied in place on its output.
+ * 
+ * Only activations of which the gradient can be calculated from the output are supported, 
+ * since the input of the activation is overwritten.
+ * 
+ * @author tverbele
+ *
+ */
+public enum Activation {
+	NONE,
+	RELU,
+	SIGMOID,
+	TANH;
+	
+	/**
+	 * Apply the activation in place on the output
+	 */
+	public Tensor forward(Tensor output){
+		switch(this){
+		case RELU:
+			return ModuleOps.relu(output, output);
+		case SIGMOID:
+			return ModuleOps.sigmoid(output, output);
+		case TANH:
+			return ModuleOps.tanh(output, output);
+		default:
+			return output;
+		}
+	}
+	
+	/**
+	 * Calculate the gradient before the activation from the gradient after the activation and the output
+	 */
+	public Tensor backward(Tensor gradInput, Tensor gradOutput, Tensor output){
+		switch(this){
+		case RELU:
+			return ModuleOps.reluGradIn(gradInput, gradOutput, output, output);
+		case SIGMOID:
+			return ModuleOps.sigmoidGradIn(gradInput, gradOutput, output, output);
+		case TANH:
+			return ModuleOps.tanhGradIn(gradInput, gradOutput, output, output);
+		default:
+			return gradOutput;
+		}
+	}
+	
+	/**
+	 * @return the activation for a module type, or null if it cannot be fused
+	 */
+	public static Activation forType(String type){
+		switch(type){
+		case "ReLU":
+			return RELU;
+		case "Sigmoid":
+			return SIGMOID;
+		case "Tanh":
+			return TANH;
+		default:
+			return null;
+		}
+	}
+}
@@ -25,11 +25,13 @@ package be.iminds.iot.dianne.nn.module.layer;
 import java.util.UUID;
 
 import be.iminds.iot.dianne.api.nn.module.AbstractTrainableModule;
+import be.iminds.iot.dianne.api.nn.module.Quantizable;
+import be.iminds.iot.dianne.api.repository.CompressedTensor.Encoding;
 import be.iminds.iot.dianne.tensor.ModuleOps;
 import be.iminds.iot.dianne.tensor.Tensor;
 import be.iminds.iot.dianne.tensor.TensorOps;
 
-public class Convolution extends AbstractTrainableModule {
+public class Convolution extends AbstractTrainableModule implements Quantizable {
 
 	protected int noInputPlanes;
 	protected int noOutputPlanes;
@@ -57,6 +59,14 @@ public class Convolution extends AbstractTrainableModule {
 
 	protected int[] outputDims;
 	
+	// precision of the weights for inference
+	protected Encoding precision = Encoding.NONE;
+	protected QuantizedWeights quantized;
+	
+	// activation fused into this module
+	protected Activation activation = Activation.NONE;
+	protected Tensor gradActivation;
+	
 	/* Temporal Convolution constructors */
 	public Convolution(
 			int noInputPlanes, int noOutputPlanes, 
@@ -195,6 +205,123 @@ public class Convolution extends AbstractTrainableModule {
 		deltaWeights.reshape(noOutputPlanes, noInputPlanes*kernelDepth*kernelHeight*kernelWidth);
 	}
 	
+	@Override
+	public Tensor getParameters(){
+		// a fixed module at reduced precision only keeps the compact weights
+		return parameters == null ? quantized.decode(null) : parameters;
+	}
+	
+	@Override
+	public void setParameters(Tensor params){
+		if(parameters == null){
+			restoreParameters();
+		}
+		super.setParameters(params);
+		quantize();
+	}
+	
+	@Override
+	public void setFixed(boolean fixed){
+		super.setFixed(fixed);
+		quantize();
+	}
+	
+	@Override
+	public int weightsSize(){
+		return quantized == null ? weights.size() : quantized.size();
+	}
+	
+	@Override
+	public int channelSize(){
+		return quantized == null ? weights.size()/weights.size(0) : quantized.channelSize();
+	}
+	
+	@Override
+	public void setPrecision(Encoding precision){
+		if(parameters == null){
+			restoreParameters();
+		}
+		this.precision = precision;
+		quantize();
+	}
+	
+	@Override
+	public Encoding getPrecision(){
+		return precision;
+	}
+	
+	/**
+	 * Apply an activation in place on the output, instead of in a separate module
+	 */
+	public void setActivation(Activation activation){
+		this.activation = activation;
+	}
+	
+	public Activation getActivation(){
+		return activation;
+	}
+	
+	@Override
+	public void updateParameters() {
+		super.updateParameters();
+		quantize();
+	}
+	
+	@Override
+	public void updateParameters(float scale) {
+		super.updateParameters(scale);
+		quantize();
+	}
+	
+	private void quantize(){
+		if(precision == Encoding.NONE){
+			if(parameters == null){
+				restoreParameters();
+			}
+			quantized = null;
+			return;
+		}
+		
+		if(parameters != null){
+			if(quantized == null){
+				quantized = new QuantizedWeights(weights, bias, precision);
+			} else {
+				quantized.encode(weights, bias, precision);
+			}
+		}
+		
+		if(fixed){
+			releaseParameters();
+		} else if(parameters == null){
+			restoreParameters();
+		}
+	}
+	
+	// release the full precision parameters of a fixed module, only used for inference
+	private void releaseParameters(){
+		if(parameters == null){
+			return;
+		}
+		weights.release();
+		bias.release();
+		parameters.release();
+		parameters = null;
+		weights = null;
+		bias = quantized.bias();
+	}
+	
+	// decode the full precision parameters again, i.e. for training
+	private void restoreParameters(){
+		parameters = quantized.decode(null);
+		init(noInputPlanes, noOutputPlanes, kernelWidth, kernelHeight, kernelDepth, 
+				strideX, strideY, strideZ, padX, padY, padZ);
+	}
+	
+	// the weights decoded at once when kept at reduced precision, i.e. for the backward pass
+	protected Tensor weights(){
+		return quantized == null ? weights : quantized.dequantize();
+	}
+	
 	@Override
 	public void randomize(){
 		// randomize weights uniform [-std, std] with std = 1/sqrt(kW*kH*noInputPlanes)  [from torch]
@@ -202,6 +329,7 @@ public class Convolution extends AbstractTrainableModule {
 		float std = (float) (1f/Math.sqrt(kernelWidth*kernelHeight*kernelDepth*noInputPlanes));
 		TensorOps.mul(parameters, parameters, 2*std);
 		TensorOps.sub(parameters, parameters, std);
+		quantize();
 	}
 	
 	@Override
@@ -213,19 +341,33 @@ public class Convolution extends AbstractTrainableModule {
 			if(input.dim() == 1){
 				input.reshape(input.dims()[0], 1);
 			} 
-			output = ModuleOps.temporalconvolve(output, input, weights, bias, kernelWidth, strideX, noInputPlanes, noOutputPlanes);
+			if(quantized == null){
+				output = ModuleOps.temporalconvolve(output, input, weights, bias, kernelWidth, strideX, noInputPlanes, noOutputPlanes);
+			} else {
+				output = quantized.forward(output, 0, (o, w, b) -> ModuleOps.temporalconvolve(o, input, w, b, kernelWidth, strideX, noInputPlanes, w.size(0)));
+			}
 			break;
 		case SPATIAL:
 			if(input.dim() == 2 && noInputPlanes == 1) {
 				input.reshape(1, input.size(0), input.size(1));
 			}
-			output = ModuleOps.spatialconvolve(output, input, weights, bias, temp1, temp2, kernelWidth, kernelHeight, strideX, strideY, padX, padY);
+			if(quantized == null){
+				output = ModuleOps.spatialconvolve(output, input, weights, bias, temp1, temp2, kernelWidth, kernelHeight, strideX, strideY, padX, padY);
+			} else {
+				output = quantized.forward(output, 2, (o, w, b) -> ModuleOps.spatialconvolve(o, input, w, b, temp1, temp2, kernelWidth, kernelHeight, strideX, strideY, padX, padY));
+			}
 			break;
 		case VOLUMETRIC:
-			output = ModuleOps.volumetricconvolve(output, input, weights, bias, temp1, temp2, 
-					kernelWidth, kernelHeight, kernelDepth, strideX, strideY, strideZ, padX, padY, padZ);
+			if(quantized == null){
+				output = ModuleOps.volumetricconvolve(output, input, weights, bias, temp1, temp2, 
+						kernelWidth, kernelHeight, kernelDepth, strideX, strideY, strideZ, padX, padY, padZ);
+			} else {
+				output = quantized.forward(output, 3, (o, w, b) -> ModuleOps.volumetricconvolve(o, input, w, b, temp1, temp2, 
+						kernelWidth, kernelHeight, kernelDepth, strideX, strideY, strideZ, padX, padY, padZ));
+			}
 			break;
 		}
+		output = activation.forward(output);
 		
 		outputDims = output.dims();
 	}
@@ -237,15 +379,19 @@ public class Convolution extends AbstractTrainableModule {
 		}
 		
 		gradOutput.reshape(outputDims);
+		if(activation != Activation.NONE){
+			gradActivation = activation.backward(gradActivation, gradOutput, output);
+			gradOutput = gradActivation;
+		}
 		switch(type){
 		case TEMPORAL:
-			gradInput = ModuleOps.temporalconvolveGradIn(gradInput, gradOutput, weights, input, kernelWidth, strideX);
+			gradInput = ModuleOps.temporalconvolveGradIn(gradInput, gradOutput, weights(), input, kernelWidth, strideX);
 			break;
 		case SPATIAL:
-			gradInput = ModuleOps.spatialconvolveGradIn(gradInput, gradOutput, weights, input, temp1, temp2, kernelWidth, kernelHeight, strideX, strideY, padX, padY);
+			gradInput = ModuleOps.spatialconvolveGradIn(gradInput, gradOutput, weights(), input, temp1, temp2, kernelWidth, kernelHeight, strideX, strideY, padX, padY);
 			break;
 		case VOLUMETRIC:
-			gradInput = ModuleOps.volumetricconvolveGradIn(gradInput, gradOutput, weights, input, temp1, temp2,
+			gradInput = ModuleOps.volumetricconvolveGradIn(gradInput, gradOutput, weights(), input, temp1, temp2,
 					kernelWidth, kernelHeight, kernelDepth, strideX, strideY, strideZ, padX, padY, padZ);
 			break;
 		}
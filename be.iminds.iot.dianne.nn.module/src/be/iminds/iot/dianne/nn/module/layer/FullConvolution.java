@@ -132,10 +132,10 @@ public class FullConvolution extends Convolution {
 			if(input.dim() == 2 && noInputPlanes == 1) {
 				input.reshape(1, input.size(0), input.size(1));
 			}
-			output = ModuleOps.spatialfullconvolve(output, input, weights, bias, temp1, temp2, kernelWidth, kernelHeight, strideX, strideY, padX, padY);
+			output = ModuleOps.spatialfullconvolve(output, input, weights(), bias, temp1, temp2, kernelWidth, kernelHeight, strideX, strideY, padX, padY);
 			break;
 		case VOLUMETRIC:
-			output = ModuleOps.volumetricfullconvolve(output, input, weights, bias, temp1, temp2, 
+			output = ModuleOps.volumetricfullconvolve(output, input, weights(), bias, temp1, temp2, 
 					kernelWidth, kernelHeight, kernelDepth, strideX, strideY, strideZ, padX, padY, padZ);
 			break;
 		}
@@ -156,10 +156,10 @@ public class FullConvolution extends Convolution {
 			// TODO implement temporal using spatial variant?
 			throw new UnsupportedOperationException("Temporal full convolution not supported");
 		case SPATIAL:
-			gradInput = ModuleOps.spatialfullconvolveGradIn(gradInput, gradOutput, weights, input, temp1, temp2, kernelWidth, kernelHeight, strideX, strideY, padX, padY);
+			gradInput = ModuleOps.spatialfullconvolveGradIn(gradInput, gradOutput, weights(), input, temp1, temp2, kernelWidth, kernelHeight, strideX, strideY, padX, padY);
 			break;
 		case VOLUMETRIC:
-			gradInput = ModuleOps.volumetricfullconvolveGradIn(gradInput, gradOutput, weights, input, temp1, temp2,
+			gradInput = ModuleOps.volumetricfullconvolveGradIn(gradInput, gradOutput, weights(), input, temp1, temp2,
 					kernelWidth, kernelHeight, kernelDepth, strideX, strideY, strideZ, padX, padY, padZ);
 			break;
 		}
@@ -25,11 +25,13 @@ package be.iminds.iot.dianne.nn.module.layer;
 import java.util.UUID;
 
 import be.iminds.iot.dianne.api.nn.module.AbstractTrainableModule;
+import be.iminds.iot.dianne.api.nn.module.Quantizable;
+import be.iminds.iot.dianne.api.repository.CompressedTensor.Encoding;
 import be.iminds.iot.dianne.tensor.ModuleOps;
 import be.iminds.iot.dianne.tensor.Tensor;
 import be.iminds.iot.dianne.tensor.TensorOps;
 
-public class Linear extends AbstractTrainableModule {
+public class Linear extends AbstractTrainableModule implements Quantizable {
 
 	private int inSize;
 	private int outSize;
@@ -45,6 +47,14 @@ public class Linear extends AbstractTrainableModule {
 	// keep latest input dimensions
 	private int[] inputDims;
 	
+	// precision of the weights for inference
+	private Encoding precision = Encoding.NONE;
+	private QuantizedWeights quantized;
+	
+	// activation fused into this module
+	private Activation activation = Activation.NONE;
+	private Tensor gradActivation;
+	
 	public Linear(int inSize, int outSize){
 		super(new Tensor(outSize*(inSize+1)));
 		init(inSize, outSize);
@@ -92,13 +102,125 @@ public class Linear extends AbstractTrainableModule {
 		deltaParameters.fill(0.0f);
 	}
 	
+	@Override
+	public Tensor getParameters(){
+		// a fixed module at reduced precision only keeps the compact weights
+		return parameters == null ? quantized.decode(null) : parameters;
+	}
+	
+	@Override
+	public void setParameters(Tensor params){
+		if(parameters == null){
+			restoreParameters();
+		}
+		super.setParameters(params);
+		quantize();
+	}
+	
+	@Override
+	public void setFixed(boolean fixed){
+		super.setFixed(fixed);
+		quantize();
+	}
+	
+	@Override
+	public int weightsSize(){
+		return quantized == null ? weights.size() : quantized.size();
+	}
+	
+	@Override
+	public int channelSize(){
+		return quantized == null ? weights.size()/weights.size(0) : quantized.channelSize();
+	}
+	
+	@Override
+	public void setPrecision(Encoding precision){
+		if(parameters == null){
+			restoreParameters();
+		}
+		this.precision = precision;
+		quantize();
+	}
+	
+	@Override
+	public Encoding getPrecision(){
+		return precision;
+	}
+	
+	/**
+	 * Apply an activation in place on the output, instead of in a separate module
+	 */
+	public void setActivation(Activation activation){
+		this.activation = activation;
+	}
+	
+	public Activation getActivation(){
+		return activation;
+	}
+	
+	@Override
+	public void updateParameters() {
+		super.updateParameters();
+		quantize();
+	}
+	
+	@Override
+	public void updateParameters(float scale) {
+		super.updateParameters(scale);
+		quantize();
+	}
+	
+	private void quantize(){
+		if(precision == Encoding.NONE){
+			if(parameters == null){
+				restoreParameters();
+			}
+			quantized = null;
+			return;
+		}
+		
+		if(parameters != null){
+			if(quantized == null){
+				quantized = new QuantizedWeights(weights, bias, precision);
+			} else {
+				quantized.encode(weights, bias, precision);
+			}
+		}
+		
+		if(fixed){
+			releaseParameters();
+		} else if(parameters == null){
+			restoreParameters();
+		}
+	}
+	
+	// release the full precision parameters of a fixed module, only used for inference
+	private void releaseParameters(){
+		if(parameters == null){
+			return;
+		}
+		weights.release();
+		bias.release();
+		parameters.release();
+		parameters = null;
+		weights = null;
+		bias = quantized.bias();
+	}
+	
+	// decode the full precision parameters again, i.e. for training
+	private void restoreParameters(){
+		parameters = quantized.decode(null);
+		init(inSize, outSize);
+	}
+	
 	@Override 
 	public void randomize(){
 		// randomize weights uniform [-std, std] with std = 1/sqrt(noInputs)  [from torch]
 		parameters.rand();
 		float std = (float) (1f/Math.sqrt(inSize));
 		TensorOps.mul(parameters, parameters, 2*std);
-		TensorOps.sub(parameters, parameters, std);		
+		TensorOps.sub(parameters, parameters, std);
+		quantize();
 	}
 	
 	@Override
@@ -108,7 +230,12 @@ public class Linear extends AbstractTrainableModule {
 			ones.reshape(inputDims[0]);
 			ones.fill(1.0f);
 		}
-		output = ModuleOps.linear(output, input, weights, bias, ones);
+		if(quantized == null){
+			output = ModuleOps.linear(output, input, weights, bias, ones);
+		} else {
+			output = quantized.forward(output, 0, (o, w, b) -> ModuleOps.linear(o, input, w, b, ones));
+		}
+		output = activation.forward(output);
 	}
 
 	@Override
@@ -116,7 +243,11 @@ public class Linear extends AbstractTrainableModule {
 		if(deltaParameters==null){
 			initDeltaParameters(null);
 		}
-		gradInput = ModuleOps.linearGradIn(gradInput, gradOutput, weights, input);
+		if(activation != Activation.NONE){
+			gradActivation = activation.backward(gradActivation, gradOutput, output);
+			gradOutput = gradActivation;
+		}
+		gradInput = ModuleOps.linearGradIn(gradInput, gradOutput, quantized == null ? weights : quantized.dequantize(), input);
 		gradInput.reshape(inputDims);
 	}
 
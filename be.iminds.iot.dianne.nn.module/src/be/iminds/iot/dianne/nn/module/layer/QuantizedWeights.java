@@ -0,0 +1,163 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.nn.module.layer;
+
+import be.iminds.iot.dianne.api.repository.CompressedTensor;
+import be.iminds.iot.dianne.api.repository.CompressedTensor.Encoding;
+import be.iminds.iot.dianne.tensor.Tensor;
+
+/**
+ * Keeps the weights of a Quantizable module in compact storage (fp16, bf16 or int8 
+ * with a scale per channel). The weights are decoded a tile of channels at a time 
+ * into a small scratch tensor right before the matrix multiplication, so the forward 
+ * pass reads the compact weights instead of the full precision ones.
+ * 
+ * The bias is copied at full precision, so the module can release its full precision 
+ * parameters when only used for inference.
+ * 
+ * @author tverbele
+ *
+ */
+class QuantizedWeights {
+
+	// maximum number of weights decoded at once
+	static final int TILE = 1 << 16;
+	
+	interface Op {
+		Tensor apply(Tensor output, Tensor weights, Tensor bias);
+	}
+	
+	private CompressedTensor compact;
+	private Tensor bias;
+	
+	private final int channels;
+	private final int channelSize;
+	private final int tileChannels;
+	
+	private final float[] buffer;
+	private final Tensor tile;
+	private Tensor tileOutput;
+	private Tensor dequantized;
+	
+	/**
+	 * @param weights the weights, with the channels (that share an int8 scale) as first dimension
+	 * @param bias the bias per channel or null
+	 * @param precision FP16, BF16 or INT8
+	 */
+	QuantizedWeights(Tensor weights, Tensor bias, Encoding precision){
+		this.channels = weights.size(0);
+		this.channelSize = weights.size()/channels;
+		encode(weights, bias, precision);
+		
+		this.tileChannels = Math.max(1, Math.min(channels, TILE/channelSize));
+		this.buffer = new float[tileChannels*channelSize];
+		this.tile = new Tensor(tileChannels, channelSize);
+	}
+	
+	/**
+	 * Encode the weights again, reusing the compact storage
+	 */
+	void encode(Tensor weights, Tensor bias, Encoding precision){
+		compact = CompressedTensor.encode(compact, weights, precision, channelSize, 1.0f);
+		this.bias = bias.copyInto(this.bias);
+	}
+	
+	/**
+	 * Decode the weights followed by the bias in a flat tensor, i.e. to restore the parameters
+	 */
+	Tensor decode(Tensor res){
+		int size = channels*channelSize;
+		float[] v = new float[size + bias.size()];
+		compact.decode(v, 0, size);
+		System.arraycopy(bias.get(), 0, v, size, bias.size());
+		if(res == null || res.size() != v.length){
+			return new Tensor(v, v.length);
+		}
+		res.set(v);
+		return res;
+	}
+	
+	int size(){
+		return channels*channelSize;
+	}
+	
+	int channelSize(){
+		return channelSize;
+	}
+	
+	Tensor bias(){
+		return bias;
+	}
+	
+	int tiles(){
+		return (channels + tileChannels - 1) / tileChannels;
+	}
+	
+	/**
+	 * Decode the weights of the t-th tile of channels
+	 */
+	Tensor tile(int t){
+		int start = t*tileChannels;
+		int n = Math.min(tileChannels, channels - start);
+		compact.decode(buffer, start*channelSize, n*channelSize);
+		tile.set(buffer);
+		return n == tileChannels ? tile : tile.narrow(0, 0, n);
+	}
+	
+	/**
+	 * Calculate the output a tile of channels at a time
+	 * 
+	 * @param output tensor to put the result in, or null
+	 * @param trailing the number of output dimensions after the channel dimension
+	 * @param op calculates the output for the given weights and bias
+	 */
+	Tensor forward(Tensor output, int trailing, Op op){
+		int tiles = tiles();
+		if(tiles == 1){
+			return op.apply(output, tile(0), bias);
+		}
+		
+		for(int t=0;t<tiles;t++){
+			int start = t*tileChannels;
+			int n = Math.min(tileChannels, channels - start);
+			tileOutput = op.apply(tileOutput, tile(t), bias.narrow(0, start, n));
+			
+			int[] dims = tileOutput.dims();
+			int dim = dims.length - 1 - trailing;
+			dims[dim] = channels;
+			if(output == null || !output.hasDim(dims)){
+				output = new Tensor(dims);
+			}
+			tileOutput.copyInto(output.narrow(dim, start, n));
+		}
+		return output;
+	}
+	
+	/**
+	 * Decode all weights at once, i.e. for the backward pass
+	 */
+	Tensor dequantize(){
+		dequantized = compact.decode(dequantized);
+		return dequantized;
+	}
+}
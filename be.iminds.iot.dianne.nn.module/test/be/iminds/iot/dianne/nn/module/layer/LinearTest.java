@@ -22,9 +22,13 @@
  *******************************************************************************/
 package be.iminds.iot.dianne.nn.module.layer;
 
+import org.junit.Assert;
 import org.junit.Test;
 
+import be.iminds.iot.dianne.api.repository.CompressedTensor;
+import be.iminds.iot.dianne.api.repository.CompressedTensor.Encoding;
 import be.iminds.iot.dianne.nn.module.ModuleTest;
+import be.iminds.iot.dianne.tensor.ModuleOps;
 import be.iminds.iot.dianne.tensor.Tensor;
 
 public class LinearTest extends ModuleTest {
@@ -100,6 +104,116 @@ public class LinearTest extends ModuleTest {
 		testModule(l, params, input, expOutput, gradOutput, expGradInput, expDeltaParams);
 	}
 	
+	@Test
+	public void testActivation() throws Exception {
+		Linear l = new Linear(2, 2);
+		l.setActivation(Activation.RELU);
+
+		Tensor params = new Tensor(new float[]{1.0f, 0.0f, -0.5f, -0.5f, 1.0f, 1.0f}, 6);
+		Tensor input = new Tensor(new float[]{1f, 2f}, 2);
+		Tensor gradOutput = new Tensor(new float[]{1f, 1f}, 2);
+		
+		// the second output is negative, so no gradient flows through it
+		Tensor expOutput = new Tensor(new float[]{2, 0},2);
+		Tensor expGradInput = new Tensor(new float[]{1.0f, 0.0f}, 2);
+		Tensor expDeltaParams = new Tensor(new float[]{1.0f, 2.0f, 0.0f, 0.0f, 1.0f, 0.0f}, 6);
+		
+		testModule(l, params, input, expOutput, gradOutput, expGradInput, expDeltaParams);
+	}
+	
+	@Test
+	public void testPrecision() throws Exception {
+		Linear l = new Linear(6, 3);
+		l.setPrecision(Encoding.INT8);
+
+		Tensor params = new Tensor(new float[]{0.4653371f, 0.8163113f, 0.09029245f, 0.16172619f, 0.1672737f, 
+		                                        0.54460245f, 0.23656675f, 0.82285637f, 0.29915535f, 0.88890827f, 
+		                                        0.45202088f, 0.28761277f, 0.47259474f, 0.920486f, 0.389602f,
+		                                        0.6109357f, 0.53176844f, 0.69206583f, 0.83310753f, 0.709608f, 0.10931859f}, 21);
+		l.setParameters(params);
+		Assert.assertEquals(18, l.weightsSize());
+		Assert.assertEquals(6, l.channelSize());
+		
+		// the full precision parameters are kept as is, the output uses the int8 weights
+		Assert.assertTrue(params.equals(l.getParameters(), 0.0f));
+		
+		Tensor rounded = params.copyInto(null);
+		Tensor weights = rounded.narrow(0, 0, 18);
+		weights.reshape(3, 6);
+		Tensor bias = rounded.narrow(0, 18, 3);
+		CompressedTensor.round(weights, Encoding.INT8, 6);
+		
+		Tensor input = new Tensor(new float[]{0.1f, 0.2f, 0.3f, 0.4f, 0.5f, 0.6f}, 6);
+		Tensor gradOutput = new Tensor(new float[]{0.1f, 0.2f, 0.3f}, 3);
+		Tensor expOutput = ModuleOps.linear(null, input, weights, bias, new Tensor(new float[]{1.0f}, 1));
+		Tensor expGradInput = ModuleOps.linearGradIn(null, gradOutput, weights, input);
+		Assert.assertTrue(expOutput.equals(new Tensor(new float[]{1.5450801f, 1.741724f, 1.3830539f},3), 0.01f));
+		
+		testModule(l, input, expOutput, gradOutput, expGradInput);
+	}
+	
+	@Test
+	public void testPrecisionFixed() throws Exception {
+		Linear l = new Linear(6, 3);
+		l.setPrecision(Encoding.INT8);
+		l.randomize();
+		Tensor params = l.getParameters().copyInto(null);
+
+		Tensor rounded = params.copyInto(null);
+		Tensor weights = rounded.narrow(0, 0, 18);
+		weights.reshape(3, 6);
+		Tensor bias = rounded.narrow(0, 18, 3);
+		CompressedTensor.round(weights, Encoding.INT8, 6);
+
+		// a fixed module only keeps the int8 weights, so the parameters are decoded from these
+		l.setFixed(true);
+		Assert.assertEquals(18, l.weightsSize());
+		Assert.assertEquals(6, l.channelSize());
+		Assert.assertTrue(rounded.equals(l.getParameters(), 0.0001f));
+
+		Tensor input = new Tensor(new float[]{0.1f, 0.2f, 0.3f, 0.4f, 0.5f, 0.6f}, 6);
+		Tensor gradOutput = new Tensor(new float[]{0.1f, 0.2f, 0.3f}, 3);
+		Tensor expOutput = ModuleOps.linear(null, input, weights, bias, new Tensor(new float[]{1.0f}, 1));
+		Tensor expGradInput = ModuleOps.linearGradIn(null, gradOutput, weights, input);
+		testModule(l, input, expOutput, gradOutput, expGradInput);
+
+		// setting parameters of a fixed module encodes them again
+		l.setParameters(params);
+		Assert.assertTrue(rounded.equals(l.getParameters(), 0.0001f));
+
+		// training again restores full precision parameters to update
+		l.setFixed(false);
+		Assert.assertTrue(rounded.equals(l.getParameters(), 0.0001f));
+		l.setParameters(params);
+		Assert.assertTrue(params.equals(l.getParameters(), 0.0f));
+	}
+
+	@Test
+	public void testPrecisionTiles() throws Exception {
+		// more weights than dequantized at once, so the output is calculated in tiles
+		int inSize = 1024;
+		int outSize = 100;
+		Linear l = new Linear(inSize, outSize);
+		l.setPrecision(Encoding.INT8);
+		l.randomize();
+		Tensor params = l.getParameters().copyInto(null);
+		
+		Tensor rounded = params.copyInto(null);
+		Tensor weights = rounded.narrow(0, 0, inSize*outSize);
+		weights.reshape(outSize, inSize);
+		Tensor bias = rounded.narrow(0, inSize*outSize, outSize);
+		CompressedTensor.round(weights, Encoding.INT8, inSize);
+		
+		Tensor input = new Tensor(2, inSize);
+		input.rand();
+		Tensor gradOutput = new Tensor(2, outSize);
+		gradOutput.rand();
+		Tensor expOutput = ModuleOps.linear(null, input, weights, bias, new Tensor(new float[]{1.0f, 1.0f}, 2));
+		Tensor expGradInput = ModuleOps.linearGradIn(null, gradOutput, weights, input);
+		
+		testModule(l, input, expOutput, gradOutput, expGradInput);
+	}
+	
 	@Test
 	public void testLinearBatch() throws Exception {
 		Linear l = new Linear(6, 3);
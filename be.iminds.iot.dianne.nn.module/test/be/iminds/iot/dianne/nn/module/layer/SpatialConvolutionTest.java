@@ -25,7 +25,10 @@ package be.iminds.iot.dianne.nn.module.layer;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import be.iminds.iot.dianne.api.repository.CompressedTensor;
+import be.iminds.iot.dianne.api.repository.CompressedTensor.Encoding;
 import be.iminds.iot.dianne.nn.module.ModuleTest;
+import be.iminds.iot.dianne.tensor.ModuleOps;
 import be.iminds.iot.dianne.tensor.Tensor;
 import be.iminds.iot.dianne.tensor.TensorOps;
 
@@ -467,4 +470,29 @@ public class SpatialConvolutionTest extends ModuleTest{
 		
 		testModule(sc, params, input, expOutput, gradOutput, expGradInput, expDelta);
 	}
+
+	@Test
+	public void testSpatialConvolutionPrecisionTiles() throws InterruptedException {
+		// more weights than dequantized at once, so the output is calculated in tiles of output planes
+		int noInputPlanes = 64;
+		int noOutputPlanes = 128;
+		Convolution sc = new Convolution(noInputPlanes, noOutputPlanes, 3, 3, 1, 1, 1, 1);
+		sc.setPrecision(Encoding.INT8);
+		sc.randomize();
+		
+		Tensor rounded = sc.getParameters().copyInto(null);
+		Tensor weights = rounded.narrow(0, 0, noOutputPlanes*noInputPlanes*9);
+		weights.reshape(noOutputPlanes, noInputPlanes*9);
+		Tensor bias = rounded.narrow(0, noOutputPlanes*noInputPlanes*9, noOutputPlanes);
+		CompressedTensor.round(weights, Encoding.INT8, noInputPlanes*9);
+		
+		Tensor input = new Tensor(2, noInputPlanes, 5, 5);
+		input.rand();
+		Tensor gradOutput = new Tensor(2, noOutputPlanes, 5, 5);
+		gradOutput.rand();
+		Tensor expOutput = ModuleOps.spatialconvolve(null, input, weights, bias, new Tensor(), new Tensor(), 3, 3, 1, 1, 1, 1);
+		Tensor expGradInput = ModuleOps.spatialconvolveGradIn(null, gradOutput, weights, input, new Tensor(), new Tensor(), 3, 3, 1, 1, 1, 1);
+		
+		testModule(sc, input, expOutput, gradOutput, expGradInput);
+	}
 }
@@ -50,6 +50,7 @@ import be.iminds.iot.dianne.api.nn.module.dto.NeuralNetworkInstanceDTO;
 import be.iminds.iot.dianne.api.nn.platform.DiannePlatform;
 import be.iminds.iot.dianne.api.nn.runtime.DianneRuntime;
 import be.iminds.iot.dianne.api.repository.DianneRepository;
+import be.iminds.iot.dianne.nn.util.DianneGraphOptimizer;
 
 @Component
 public class DiannePlatformImpl implements DiannePlatform {
@@ -152,6 +153,11 @@ public class DiannePlatformImpl implements DiannePlatform {
 			throw new InstantiationException("Failed to deploy neural network "+name+": no such network");
 		}
 		
+		// rewrite the neural network for inference, i.e. fold batch normalization and fuse activations
+		if(properties != null && Boolean.parseBoolean(properties.get("optimize"))){
+			neuralNetwork = DianneGraphOptimizer.optimize(neuralNetwork);
+		}
+		
 		UUID nnId = UUID.randomUUID();
 		
 		Map<UUID, ModuleInstanceDTO> moduleInstances = new HashMap<UUID, ModuleInstanceDTO>();
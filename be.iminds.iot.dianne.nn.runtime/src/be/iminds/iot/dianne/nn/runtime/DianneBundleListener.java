@@ -24,7 +24,7 @@ package be.iminds.iot.dianne.nn.runtime;
 
 import java.io.BufferedInputStream;
 import java.io.DataInputStream;
-import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
 import java.util.Enumeration;
 import java.util.HashMap;
@@ -46,6 +46,7 @@ import be.iminds.iot.dianne.api.nn.module.dto.NeuralNetworkDTO;
 import be.iminds.iot.dianne.api.nn.module.dto.NeuralNetworkInstanceDTO;
 import be.iminds.iot.dianne.api.nn.runtime.DianneRuntime;
 import be.iminds.iot.dianne.nn.util.DianneJSONConverter;
+import be.iminds.iot.dianne.nn.util.DianneTensorFile;
 import be.iminds.iot.dianne.tensor.Tensor;
 
 @Component
@@ -139,38 +140,11 @@ public class DianneBundleListener implements SynchronousBundleListener {
 		Enumeration<URL> e = b.findEntries("/", moduleId.toString()+"*", true);
 		if(e != null){
 			URL url = e.nextElement();
-			try(DataInputStream is = new DataInputStream(new BufferedInputStream(url.openStream()))){
-				params = readTensor(is);
+			try(InputStream is = new BufferedInputStream(url.openStream())){
+				params = DianneTensorFile.read(is);
 			} catch(Exception ex){}
 		}
 		
 		return params;
 	}
-	
-	private Tensor readTensor(DataInputStream is) throws IOException{
-		// load tensor in chunks, slightly slower than one copy from Java to native,
-		// but reduces memory usage a lot for big tensors
-		int bufferSize = 10000;
-		float[] data = new float[bufferSize];
-		
-		int length = is.readInt();
-		Tensor t = new Tensor(length);
-		int index = 0;
-		while(length > 0){
-			if(length<bufferSize){
-				bufferSize = length;
-				data = new float[bufferSize];
-			}
-			
-			for(int i=0;i<bufferSize;i++){
-				data[i] = is.readFloat();
-			}
-			
-			t.narrow(0, index, bufferSize).set(data);;
-			
-			length -= bufferSize;
-			index+= bufferSize;
-		}
-		return t;
-	}
 }
@@ -22,6 +22,7 @@
  *******************************************************************************/
 package be.iminds.iot.dianne.nn.runtime;
 
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -58,7 +59,9 @@ import be.iminds.iot.dianne.api.nn.module.dto.ModuleInstanceDTO;
 import be.iminds.iot.dianne.api.nn.module.dto.ModuleTypeDTO;
 import be.iminds.iot.dianne.api.nn.module.factory.ModuleFactory;
 import be.iminds.iot.dianne.api.nn.runtime.DianneRuntime;
+import be.iminds.iot.dianne.api.nn.runtime.RuntimeStatus;
 import be.iminds.iot.dianne.api.repository.DianneRepository;
+import be.iminds.iot.dianne.nn.util.DianneGraphOptimizer;
 import be.iminds.iot.dianne.tensor.Tensor;
 
 @Component(immediate=true, 
@@ -418,6 +421,8 @@ public class DianneRuntimeImpl implements DianneRuntime {
 		} else if(module instanceof Composite){
 			classes = new String[]{Module.class.getName(),Trainable.class.getName(),Memory.class.getName(),Composite.class.getName()};
 			props.put("composite.nn.id", ((Composite)module).getNNi().id.toString());
+		}else if(module instanceof Trainable && module instanceof Memory){
+			classes = new String[]{Module.class.getName(),Trainable.class.getName(),Memory.class.getName()};
 		}else if(module instanceof Trainable){
 			classes = new String[]{Module.class.getName(),Trainable.class.getName()};
 		} else if(module instanceof Preprocessor){
@@ -452,7 +457,12 @@ public class DianneRuntimeImpl implements DianneRuntime {
 			throw new RuntimeException("Module "+dto.id+" cannot be deployed on runtime "+name);
 		}
 		
-		Tensor parameters = getParameters(dto.id, tags);
+		Tensor parameters;
+		try {
+			parameters = getParameters(dto, tags);
+		} catch(InstantiationException e){
+			throw new RuntimeException("Failed to instantiate module "+dto.type+" "+dto.id+" - "+e.getMessage());
+		}
 		return deployModule(dto, nnId, parameters);
 	}
 
@@ -535,7 +545,12 @@ public class DianneRuntimeImpl implements DianneRuntime {
 	
 	@Override
 	public void loadModuleParameters(ModuleInstanceDTO module, String... tags){
-		Tensor parameters = getParameters(module.module.id, tags);
+		Tensor parameters;
+		try {
+			parameters = getParameters(module.module, tags);
+		} catch(InstantiationException e){
+			throw new RuntimeException("Failed to load parameters for module "+module.moduleId+" - "+e.getMessage());
+		}
 		if(parameters == null)
 			return;
 		
@@ -570,6 +585,15 @@ public class DianneRuntimeImpl implements DianneRuntime {
 		return name;
 	}
 	
+	@Override
+	public RuntimeStatus getStatus() {
+		Runtime r = Runtime.getRuntime();
+		int cores = r.availableProcessors();
+		long used = r.totalMemory()-r.freeMemory();
+		double load = ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage();
+		return new RuntimeStatus(cores, r.maxMemory(), r.maxMemory()-used, load < 0 ? -1 : (float)load/cores);
+	}
+	
 	private void configureNext(Module m, UUID nnId){
 		List<UUID> nextIDs = nextMap.get(m.getId());
 		if(nextIDs.size()==0){
@@ -639,6 +663,23 @@ public class DianneRuntimeImpl implements DianneRuntime {
 		return result;
 	}
 	
+	private Tensor getParameters(ModuleDTO dto, String... tags) throws InstantiationException {
+		Tensor parameters = getParameters(dto.id, tags);
+		
+		// fold in the parameters of a BatchNormalization removed by the DianneGraphOptimizer,
+		// without them the stored parameters would silently run without their normalization.
+		// A module without stored parameters is initialized as usual and needs folded parameters set afterwards
+		String batchnorm = dto.properties == null ? null : dto.properties.get(DianneGraphOptimizer.BATCHNORM);
+		if(batchnorm != null && parameters != null){
+			Tensor bn = getParameters(UUID.fromString(batchnorm), tags);
+			if(bn == null){
+				throw new InstantiationException("No parameters available for BatchNormalization "+batchnorm+" folded into module "+dto.id);
+			}
+			parameters = DianneGraphOptimizer.foldBatchNormalization(parameters, bn);
+		}
+		return parameters;
+	}
+	
 	private Tensor getParameters(UUID moduleId, String... tags){
 		Tensor parameters = null;
 		if(repository != null){
@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.nn.test.integration;
+
+import java.util.UUID;
+
+import be.iminds.iot.dianne.api.nn.NeuralNetwork;
+import be.iminds.iot.dianne.api.nn.module.dto.NeuralNetworkDTO;
+import be.iminds.iot.dianne.api.nn.module.dto.NeuralNetworkInstanceDTO;
+import be.iminds.iot.dianne.nn.test.DianneTest;
+import be.iminds.iot.dianne.nn.util.DianneNeuralNetworkBuilder;
+import be.iminds.iot.dianne.tensor.Tensor;
+
+/**
+ * Checks that the fused LSTM and GRU modules calculate the same outputs as their
+ * composite counterparts when deployed with the same parameters. The parameter layout 
+ * of a composite follows the order in which the CompositeModuleFactory iterates 
+ * its modules, so this breaks when that order changes.
+ */
+public class RecurrentCompositeTest extends DianneTest {
+
+	private static final int IN = 3;
+	private static final int OUT = 4;
+	private static final int STEPS = 5;
+	
+	public void testLSTM() throws Exception {
+		testSameOutput("CompositeLSTM", "LSTM");
+	}
+	
+	public void testGRU() throws Exception {
+		testSameOutput("CompositeGRU", "GRU");
+	}
+	
+	private void testSameOutput(String compositeType, String fusedType) throws Exception {
+		NeuralNetworkDTO compositeNN = new DianneNeuralNetworkBuilder(compositeType)
+				.addRecurrent(compositeType, IN, OUT).create();
+		NeuralNetworkDTO fusedNN = new DianneNeuralNetworkBuilder(fusedType)
+				.addRecurrent(fusedType, IN, OUT).create();
+		
+		nni = platform.deployNeuralNetwork(compositeNN);
+		NeuralNetworkInstanceDTO fusedNni = platform.deployNeuralNetwork(fusedNN);
+		try {
+			NeuralNetwork composite = dianne.getNeuralNetwork(nni).getValue();
+			NeuralNetwork fused = dianne.getNeuralNetwork(fusedNni).getValue();
+			
+			composite.randomizeParameters();
+			Tensor parameters = composite.getParameters().values().iterator().next();
+			UUID fusedId = fused.getTrainables().keySet().iterator().next();
+			fused.setParameters(fusedId, parameters);
+			
+			for(int batchSize : new int[]{0, 2}){
+				composite.resetMemory(batchSize);
+				fused.resetMemory(batchSize);
+				for(int t=0;t<STEPS;t++){
+					Tensor input = batchSize > 0 ? new Tensor(batchSize, IN) : new Tensor(IN);
+					input.randn();
+					
+					Tensor expected = composite.forward(input.copyInto(null)).copyInto(null);
+					Tensor actual = fused.forward(input.copyInto(null));
+					assertTrue(fusedType+" output differs at step "+t+" with batch size "+batchSize+": "+expected+" vs "+actual, 
+							expected.equals(actual, 1e-5f));
+				}
+			}
+		} finally {
+			platform.undeployNeuralNetwork(fusedNni);
+		}
+	}
+}
@@ -0,0 +1,135 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.nn.test.integration;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import be.iminds.iot.dianne.api.nn.NeuralNetwork;
+import be.iminds.iot.dianne.api.nn.module.Memory;
+import be.iminds.iot.dianne.api.nn.module.dto.NeuralNetworkDTO;
+import be.iminds.iot.dianne.nn.test.DianneTest;
+import be.iminds.iot.dianne.nn.util.DianneNeuralNetworkBuilder;
+import be.iminds.iot.dianne.tensor.Tensor;
+
+/**
+ * Checks that forwarding and back propagating a sequence in one call gives the same 
+ * outputs and gradInputs as stepping through the sequence manually.
+ */
+public class SequenceTest extends DianneTest {
+
+	private static final int IN = 3;
+	private static final int OUT = 4;
+	private static final int STEPS = 5;
+	
+	public void testLSTM() throws Exception {
+		testSequence("LSTM");
+	}
+	
+	public void testGRU() throws Exception {
+		testSequence("GRU");
+	}
+	
+	public void testDifferentStepDims() throws Exception {
+		NeuralNetwork nn = deploy("GRU");
+		
+		List<Tensor> inputs = new ArrayList<>();
+		inputs.add(new Tensor(2, IN));
+		inputs.add(new Tensor(3, IN));
+		inputs.forEach(t -> t.randn());
+		
+		nn.resetMemory(2);
+		try {
+			nn.forward(inputs);
+			fail("Sequence with different step dimensions should be refused");
+		} catch(RuntimeException e){
+			// expected
+		}
+	}
+	
+	private void testSequence(String type) throws Exception {
+		NeuralNetwork nn = deploy(type);
+		nn.randomizeParameters();
+		Memory memory = nn.getMemories().values().iterator().next();
+		
+		for(int batchSize : new int[]{0, 2}){
+			List<Tensor> inputs = new ArrayList<>();
+			List<Tensor> gradOutputs = new ArrayList<>();
+			for(int t=0;t<STEPS;t++){
+				Tensor input = batchSize > 0 ? new Tensor(batchSize, IN) : new Tensor(IN);
+				input.randn();
+				inputs.add(input);
+				
+				Tensor gradOutput = batchSize > 0 ? new Tensor(batchSize, OUT) : new Tensor(OUT);
+				gradOutput.randn();
+				gradOutputs.add(gradOutput);
+			}
+			
+			// step manually, keeping the memory before each step to back propagate from
+			nn.resetMemory(batchSize);
+			List<Tensor> memories = new ArrayList<>();
+			List<Tensor> expectedOutputs = new ArrayList<>();
+			for(int t=0;t<STEPS;t++){
+				memories.add(memory.getMemory().copyInto(null));
+				expectedOutputs.add(nn.forward(inputs.get(t)).copyInto(null));
+			}
+			Tensor expectedMemory = memory.getMemory().copyInto(null);
+			
+			nn.resetMemoryGradients();
+			Tensor[] expectedGradInputs = new Tensor[STEPS];
+			for(int t=STEPS-1;t>=0;t--){
+				memory.setMemory(memories.get(t));
+				nn.forward(inputs.get(t));
+				expectedGradInputs[t] = nn.backward(gradOutputs.get(t)).copyInto(null);
+			}
+			
+			// same sequence in one call
+			nn.resetMemory(batchSize);
+			List<Tensor> outputs = nn.forward(inputs);
+			assertEquals(STEPS, outputs.size());
+			for(int t=0;t<STEPS;t++){
+				assertTrue(type+" output differs at step "+t+" with batch size "+batchSize+": "+expectedOutputs.get(t)+" vs "+outputs.get(t), 
+						expectedOutputs.get(t).equals(outputs.get(t), 1e-5f));
+			}
+			
+			nn.resetMemoryGradients();
+			List<Tensor> gradInputs = nn.backward(gradOutputs, false);
+			assertEquals(STEPS, gradInputs.size());
+			for(int t=0;t<STEPS;t++){
+				assertTrue(type+" gradInput differs at step "+t+" with batch size "+batchSize+": "+expectedGradInputs[t]+" vs "+gradInputs.get(t), 
+						expectedGradInputs[t].equals(gradInputs.get(t), 1e-5f));
+			}
+			
+			// memories are restored to the state after the last step
+			assertTrue(type+" memory after the sequence differs with batch size "+batchSize, 
+					expectedMemory.equals(memory.getMemory(), 1e-5f));
+		}
+	}
+	
+	private NeuralNetwork deploy(String type) throws Exception {
+		NeuralNetworkDTO dto = new DianneNeuralNetworkBuilder(type)
+				.addRecurrent(type, IN, OUT).create();
+		nni = platform.deployNeuralNetwork(dto);
+		return dianne.getNeuralNetwork(nni).getValue();
+	}
+}
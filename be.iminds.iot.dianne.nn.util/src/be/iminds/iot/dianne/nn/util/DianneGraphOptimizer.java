@@ -0,0 +1,267 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.nn.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import be.iminds.iot.dianne.api.nn.module.dto.ModuleDTO;
+import be.iminds.iot.dianne.api.nn.module.dto.NeuralNetworkDTO;
+import be.iminds.iot.dianne.tensor.Tensor;
+
+/**
+ * Rewrites a neural network before it is deployed for inference, reducing the number of 
+ * modules and hence the number of output buffers and handoffs between modules:
+ * 
+ *  * Dropout and DropPath are removed
+ *  * BatchNormalization is folded into a preceding Linear or Convolution
+ *  * ReLU, Sigmoid and Tanh are fused into a preceding Linear or Convolution
+ *  * chains of Reshape and Narrow modules are collapsed into one module
+ *  * Duplicate modules with one next and Accumulate modules with one previous module are removed
+ * 
+ * A Duplicate followed by an Accumulate is only an identity when both have a single branch, as the
+ * Accumulate sums the copies of each branch. Modules are therefore never removed when this would 
+ * connect two modules twice, i.e. the parallel Dropouts between a Duplicate and an Accumulate.
+ * 
+ * The remaining modules keep their UUID, so their parameters are still loaded from the repository.
+ * A folded BatchNormalization is referred to by the batchnorm property of the Linear or Convolution, 
+ * its parameters are folded into the weights and bias when these are loaded by the runtime.
+ * 
+ * The optimized network is only meant for inference, as its parameters differ from the stored ones.
+ * 
+ * @author tverbele
+ *
+ */
+public class DianneGraphOptimizer {
+
+	/**
+	 * Property referring to the BatchNormalization folded into a Linear or Convolution
+	 */
+	public static final String BATCHNORM = "batchnorm";
+	
+	/**
+	 * Property with the type of the activation fused into a Linear or Convolution
+	 */
+	public static final String ACTIVATION = "activation";
+	
+	// same epsilon as used for batch normalization in ModuleOps
+	private static final float BN_EPS = 1e-5f;
+	
+	/**
+	 * Optimize a neural network for inference
+	 * @param nn the neural network, this is not changed
+	 * @return an optimized copy of the neural network
+	 */
+	public static NeuralNetworkDTO optimize(NeuralNetworkDTO nn){
+		Map<UUID, ModuleDTO> modules = new HashMap<>();
+		for(ModuleDTO m : nn.modules.values()){
+			modules.put(m.id, new ModuleDTO(m.id, m.type, 
+					m.next == null ? null : m.next.clone(), 
+					m.prev == null ? null : m.prev.clone(), 
+					m.properties == null ? new HashMap<>() : new HashMap<>(m.properties)));
+		}
+		
+		// repeat until no more modules can be removed, i.e. to fuse an activation after removing a Dropout
+		boolean changed = true;
+		while(changed){
+			changed = false;
+			for(ModuleDTO m : new ArrayList<>(modules.values())){
+				if(modules.containsKey(m.id)){
+					changed |= optimize(modules, m);
+				}
+			}
+		}
+		
+		return new NeuralNetworkDTO(nn.name, modules);
+	}
+	
+	private static boolean optimize(Map<UUID, ModuleDTO> modules, ModuleDTO m){
+		switch(m.type){
+		case "Dropout":
+		case "DropPath":
+			return remove(modules, m);
+		case "Duplicate":
+			return size(m.next) == 1 && remove(modules, m);
+		case "Accumulate":
+			return size(m.prev) == 1 && remove(modules, m);
+		case "BatchNormalization":
+		{
+			ModuleDTO p = producer(modules, m);
+			if(p == null || p.properties.containsKey(BATCHNORM) || p.properties.containsKey(ACTIVATION)){
+				return false;
+			}
+			
+			p.properties.put(BATCHNORM, m.id.toString());
+			return remove(modules, m);
+		}
+		case "ReLU":
+		case "Sigmoid":
+		case "Tanh":
+		{
+			ModuleDTO p = producer(modules, m);
+			if(p == null || p.properties.containsKey(ACTIVATION)){
+				return false;
+			}
+			
+			p.properties.put(ACTIVATION, m.type);
+			return remove(modules, m);
+		}
+		case "Reshape":
+		{
+			// a reshape only depends on the number of elements, so a preceding reshape has no effect
+			ModuleDTO p = previous(modules, m, "Reshape");
+			if(p == null){
+				return false;
+			}
+			
+			return remove(modules, p);
+		}
+		case "Narrow":
+		{
+			// only combine narrows on the same number of dimensions, as these both treat the input as batched or not
+			ModuleDTO p = previous(modules, m, "Narrow");
+			if(p == null || ranges(p) != ranges(m)){
+				return false;
+			}
+			
+			for(int i=0;i<ranges(m);i++){
+				int index = Integer.parseInt(p.properties.get("index"+i)) + Integer.parseInt(m.properties.get("index"+i));
+				m.properties.put("index"+i, ""+index);
+			}
+			return remove(modules, p);
+		}
+		default:
+			return false;
+		}
+	}
+	
+	/**
+	 * Fold the parameters of a BatchNormalization into the parameters of the preceding Linear or Convolution,
+	 * these consist of the weights per output channel followed by the bias
+	 * @param parameters the parameters of the Linear or Convolution
+	 * @param batchnorm the BatchNormalization parameters: weights, bias, running mean and running variance
+	 * @return the folded parameters
+	 */
+	public static Tensor foldBatchNormalization(Tensor parameters, Tensor batchnorm){
+		int channels = batchnorm.size()/4;
+		int channelSize = parameters.size()/channels - 1;
+		int weightsSize = channels*channelSize;
+		
+		float[] p = parameters.get();
+		float[] bn = batchnorm.get();
+		for(int c=0;c<channels;c++){
+			float scale = (float)(bn[c] / Math.sqrt(bn[3*channels+c] + BN_EPS));
+			for(int i=0;i<channelSize;i++){
+				p[c*channelSize+i] *= scale;
+			}
+			p[weightsSize+c] = (p[weightsSize+c] - bn[2*channels+c])*scale + bn[channels+c];
+		}
+		return new Tensor(p, p.length);
+	}
+	
+	/**
+	 * Remove a module with a single previous module, connecting the previous module to its next modules
+	 */
+	private static boolean remove(Map<UUID, ModuleDTO> modules, ModuleDTO m){
+		if(size(m.prev) != 1 || !modules.containsKey(m.prev[0])){
+			return false;
+		}
+		
+		ModuleDTO p = modules.get(m.prev[0]);
+		if(m.next != null){
+			// a Join keeps one input per previous module, so it cannot be connected twice to the same module
+			for(UUID n : m.next){
+				if(Arrays.asList(p.next).contains(n)){
+					return false;
+				}
+			}
+		}
+		List<UUID> next = new ArrayList<>();
+		for(UUID n : p.next){
+			if(n.equals(m.id)){
+				if(m.next != null){
+					next.addAll(Arrays.asList(m.next));
+				}
+			} else {
+				next.add(n);
+			}
+		}
+		p.next = next.isEmpty() ? null : next.toArray(new UUID[next.size()]);
+		
+		if(m.next != null){
+			for(UUID n : m.next){
+				ModuleDTO nm = modules.get(n);
+				for(int i=0;i<nm.prev.length;i++){
+					if(nm.prev[i].equals(m.id)){
+						nm.prev[i] = p.id;
+					}
+				}
+			}
+		}
+		
+		modules.remove(m.id);
+		return true;
+	}
+	
+	/**
+	 * @return the Linear or Convolution of which m is the only next module, or null
+	 */
+	private static ModuleDTO producer(Map<UUID, ModuleDTO> modules, ModuleDTO m){
+		ModuleDTO p = previous(modules, m, "Linear");
+		if(p == null){
+			p = previous(modules, m, "Convolution");
+		}
+		return p;
+	}
+	
+	/**
+	 * @return the previous module of m with the given type of which m is the only next module, or null
+	 */
+	private static ModuleDTO previous(Map<UUID, ModuleDTO> modules, ModuleDTO m, String type){
+		if(size(m.prev) != 1){
+			return null;
+		}
+		
+		ModuleDTO p = modules.get(m.prev[0]);
+		if(p == null || !p.type.equals(type) || size(p.next) != 1){
+			return null;
+		}
+		return p;
+	}
+	
+	private static int ranges(ModuleDTO narrow){
+		int i = 0;
+		while(narrow.properties.get("index"+i) != null && !narrow.properties.get("index"+i).isEmpty()){
+			i++;
+		}
+		return i;
+	}
+	
+	private static int size(UUID[] ids){
+		return ids == null ? 0 : ids.length;
+	}
+}
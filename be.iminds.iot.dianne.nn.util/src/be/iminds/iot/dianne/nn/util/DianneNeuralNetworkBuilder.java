@@ -55,6 +55,31 @@ public class DianneNeuralNetworkBuilder {
 		return this;
 	}
 
+	public DianneNeuralNetworkBuilder addLSTM(int input, int output){
+		return addRecurrent("LSTM", input, output);
+	}
+	
+	public DianneNeuralNetworkBuilder addGRU(int input, int output){
+		return addRecurrent("GRU", input, output);
+	}
+	
+	/**
+	 * Add a recurrent layer of a given type, i.e. LSTM, GRU or their composite 
+	 * variants CompositeLSTM and CompositeGRU
+	 */
+	public DianneNeuralNetworkBuilder addRecurrent(String type, int input, int output){
+		Map<String, String> properties = new HashMap<>();
+		properties.put("input", ""+input);
+		properties.put("output", ""+output);
+		
+		ModuleDTO prev = modules.getLast();
+		ModuleDTO recurrent = new ModuleDTO(UUID.randomUUID(), type, null, new UUID[]{prev.id}, properties);
+		prev.next = new UUID[]{recurrent.id};
+		modules.add(recurrent);
+		
+		return this;
+	}
+
 	public DianneNeuralNetworkBuilder addConvolutional(int inputPlanes, int outputPlanes, 
 			int kernelSize){
 		return addConvolutional(inputPlanes, outputPlanes, kernelSize, kernelSize, 1, 1, false);
@@ -210,6 +235,19 @@ public class DianneNeuralNetworkBuilder {
 		return builder.create();
 	}
 	
+	/**
+	 * Create char-rnn network, a recurrent layer of a given type followed by a linear 
+	 * layer to predict the next character 
+	 * @return
+	 */
+	public static NeuralNetworkDTO createCharRNN(String name, String type, int chars, int hidden){
+		DianneNeuralNetworkBuilder builder = new DianneNeuralNetworkBuilder(name);
+		builder.addRecurrent(type, chars, hidden);
+		builder.addLinear(hidden, chars);
+		builder.addLogSoftmax();
+		return builder.create();
+	}
+	
 	public static NeuralNetworkDTO createMLP_BN(String name, int input, int output, Activation activation, int...layers){
 		DianneNeuralNetworkBuilder builder = new DianneNeuralNetworkBuilder(name);
 		
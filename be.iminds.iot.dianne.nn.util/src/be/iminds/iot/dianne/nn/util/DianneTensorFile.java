@@ -0,0 +1,485 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.nn.util;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import be.iminds.iot.dianne.api.repository.CompressedTensor;
+import be.iminds.iot.dianne.api.repository.CompressedTensor.Encoding;
+import be.iminds.iot.dianne.tensor.Tensor;
+
+/**
+ * Reads and writes Tensors from and to files.
+ * 
+ * Tensors are stored with a little endian header aligned to 64 bytes, followed by 
+ * the tensor data as little endian floats:
+ * 
+ *   magic "DNNT" | version | header size | number of dims | dims ... | padding | data
+ * 
+ * Files are read by memory mapping the data and copying it in bulk into the tensor memory,
+ * and written in bulk through a FileChannel to a temporary file that is atomically renamed. 
+ * Whether the data is forced to the storage device before the rename is optional.
+ * 
+ * Version 2 files store a compressed tensor at a reduced precision, with the header extended with
+ * the data type, the int8 block size and the number of int8 values:
+ * 
+ *   ... | dims ... | type | block size | length | padding | data
+ * 
+ * where data is either 16 bit fp16 or bf16 values, or the float scale per block followed by the 
+ * int8 values and the remaining values as floats. These are decoded to a float tensor when read.
+ * 
+ * Files in the old format (a big endian int length followed by big endian floats)
+ * can still be read.
+ * 
+ * @author tverbele
+ *
+ */
+public class DianneTensorFile {
+
+	public static final int MAGIC = 0x544E4E44; // "DNNT" little endian
+	public static final int VERSION = 2;
+	
+	// data types of version 2 files
+	private static final int FLOAT = 0;
+	private static final int FP16 = 1;
+	private static final int BF16 = 2;
+	private static final int INT8 = 3;
+	
+	private static final int ALIGNMENT = 64;
+	
+	// number of floats to map or copy at once
+	private static final int CHUNK_MAPPED = 1 << 26;
+	private static final int CHUNK = 1 << 20;
+	
+	// direct buffer to copy chunks from and to the file
+	private static final ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(CHUNK*4));
+	
+	/**
+	 * Read a Tensor from file, in either the new or the old format
+	 */
+	public static Tensor read(File f) throws IOException {
+		try(FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)){
+			long length = channel.size();
+			
+			ByteBuffer first = ByteBuffer.allocate(4);
+			readFully(channel, first);
+			
+			int legacyLength = first.getInt(0);
+			if(first.order(ByteOrder.LITTLE_ENDIAN).getInt(0) != MAGIC || length == 4 + 4L*legacyLength){
+				// old format
+				Tensor t = new Tensor(legacyLength);
+				readMapped(channel, 4, ByteOrder.BIG_ENDIAN, t);
+				return t;
+			}
+			
+			ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(channel, header);
+			int version = header.getInt(0);
+			if(version > VERSION){
+				throw new IOException("Unsupported tensor file version "+version);
+			}
+			int headerSize = header.getInt(4);
+			int noDims = header.getInt(8);
+			
+			ByteBuffer d = ByteBuffer.allocate(4*noDims + (version > 1 ? 12 : 0)).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(channel, d);
+			d.flip();
+			int[] dims = new int[noDims];
+			for(int i=0;i<noDims;i++){
+				dims[i] = d.getInt();
+			}
+			
+			int type = version > 1 ? d.getInt() : FLOAT;
+			if(type != FLOAT){
+				int blockSize = d.getInt();
+				int int8Length = d.getInt();
+				ByteBuffer data = channel.map(MapMode.READ_ONLY, headerSize, length - headerSize);
+				return decode(data, type, dims, blockSize, int8Length, f.getName());
+			}
+			
+			Tensor t = new Tensor(dims);
+			if(length < headerSize + 4L*t.size()){
+				throw new EOFException("Tensor file "+f.getName()+" is truncated");
+			}
+			readMapped(channel, headerSize, ByteOrder.LITTLE_ENDIAN, t);
+			return t;
+		}
+	}
+	
+	/**
+	 * Read a Tensor from a stream, in either the new or the old format
+	 */
+	public static Tensor read(InputStream in) throws IOException {
+		DataInputStream is = new DataInputStream(in);
+		int first = is.readInt();
+		if(Integer.reverseBytes(first) != MAGIC){
+			// old format, first is the length
+			Tensor t = new Tensor(first);
+			readStream(Channels.newChannel(is), ByteOrder.BIG_ENDIAN, t);
+			return t;
+		}
+		
+		int version = Integer.reverseBytes(is.readInt());
+		if(version > VERSION){
+			throw new IOException("Unsupported tensor file version "+version);
+		}
+		int headerSize = Integer.reverseBytes(is.readInt());
+		int noDims = Integer.reverseBytes(is.readInt());
+		int[] dims = new int[noDims];
+		for(int i=0;i<noDims;i++){
+			dims[i] = Integer.reverseBytes(is.readInt());
+		}
+		
+		int type = FLOAT;
+		int blockSize = 0;
+		int length = 0;
+		if(version > 1){
+			type = Integer.reverseBytes(is.readInt());
+			blockSize = Integer.reverseBytes(is.readInt());
+			length = Integer.reverseBytes(is.readInt());
+		}
+		is.skipBytes(headerSize - headerSize(noDims, version, false));
+		
+		if(type != FLOAT){
+			int size = 1;
+			for(int d : dims){
+				size *= d;
+			}
+			byte[] data = new byte[dataSize(type, size, blockSize, length)];
+			is.readFully(data);
+			return decode(ByteBuffer.wrap(data), type, dims, blockSize, length, "stream");
+		}
+		
+		Tensor t = new Tensor(dims);
+		readStream(Channels.newChannel(is), ByteOrder.LITTLE_ENDIAN, t);
+		return t;
+	}
+	
+	/**
+	 * Write a Tensor to file in the new format. The data is first written to a 
+	 * temporary file, that replaces the target file when completely written.
+	 */
+	public static void write(File f, Tensor t) throws IOException {
+		write(f, t, true);
+	}
+	
+	/**
+	 * Write a Tensor to file in the new format, in case sync is false the data is
+	 * not forced to the storage device before replacing the target file.
+	 */
+	public static void write(File f, Tensor t, boolean sync) throws IOException {
+		Path tmp = tempFile(f);
+		try(FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+			// full precision tensors are stored as version 1, which older releases can read
+			ByteBuffer header = header(t.dims(), 1);
+			writeFully(channel, header);
+			
+			ByteBuffer buffer = buffers.get();
+			int rows = rows(t);
+			int rowSize = rows == 0 ? 0 : t.size()/rows;
+			int chunk = Math.max(1, CHUNK/Math.max(1, rowSize));
+			for(int r=0;r<rows;r+=chunk){
+				int n = Math.min(chunk, rows-r);
+				int bytes = bytes(n, rowSize);
+				if(buffer.capacity() < bytes){
+					buffer = ByteBuffer.allocateDirect(bytes);
+				}
+				
+				buffer.clear();
+				Tensor rowsView = narrow(t, r, n);
+				rowsView.get(buffer.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer());
+				if(rowsView != t){
+					rowsView.release();
+				}
+				buffer.limit(bytes);
+				writeFully(channel, buffer);
+			}
+			
+			if(sync){
+				channel.force(true);
+			}
+		} catch(IOException | RuntimeException e){
+			Files.deleteIfExists(tmp);
+			throw e;
+		}
+		
+		replace(tmp, f);
+	}
+	
+	/**
+	 * Write a compressed Tensor to file, which is decoded to a float tensor when read. Only
+	 * NONE, FP16, BF16 and INT8 encoded tensors can be written. 
+	 */
+	public static void write(File f, CompressedTensor c) throws IOException {
+		write(f, c, true);
+	}
+	
+	/**
+	 * Write a compressed Tensor to file, in case sync is false the data is not forced to the 
+	 * storage device before replacing the target file.
+	 */
+	public static void write(File f, CompressedTensor c, boolean sync) throws IOException {
+		if(c.encoding == Encoding.NONE){
+			write(f, c.decode(null), sync);
+			return;
+		}
+		
+		int type;
+		switch(c.encoding){
+		case FP16:
+			type = FP16;
+			break;
+		case BF16:
+			type = BF16;
+			break;
+		case INT8:
+			type = INT8;
+			break;
+		default:
+			throw new IOException("Cannot store "+c.encoding+" encoded tensors");
+		}
+		
+		Path tmp = tempFile(f);
+		try(FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+			int length = type == INT8 ? c.data.length : c.size;
+			
+			ByteBuffer header = header(c.dims, VERSION);
+			int offset = 16 + 4*c.dims.length;
+			header.putInt(offset, type);
+			header.putInt(offset+4, c.blockSize);
+			header.putInt(offset+8, length);
+			writeFully(channel, header);
+			
+			ByteBuffer data = ByteBuffer.allocate(dataSize(type, c.size, c.blockSize, length)).order(ByteOrder.LITTLE_ENDIAN);
+			if(type == INT8){
+				for(float s : c.values){
+					data.putFloat(s);
+				}
+				data.put(c.data);
+				if(c.tail != null){
+					for(float v : c.tail){
+						data.putFloat(v);
+					}
+				}
+			} else {
+				data.put(c.data);
+			}
+			data.flip();
+			writeFully(channel, data);
+			
+			if(sync){
+				channel.force(true);
+			}
+		} catch(IOException | RuntimeException e){
+			Files.deleteIfExists(tmp);
+			throw e;
+		}
+		
+		replace(tmp, f);
+	}
+	
+	private static Tensor decode(ByteBuffer data, int type, int[] dims, int blockSize, int length, String name) throws IOException {
+		CompressedTensor c = new CompressedTensor();
+		c.dims = dims;
+		c.size = 1;
+		for(int d : dims){
+			c.size *= d;
+		}
+		if(data.remaining() < dataSize(type, c.size, blockSize, length)){
+			throw new EOFException("Tensor file "+name+" is truncated");
+		}
+		
+		data.order(ByteOrder.LITTLE_ENDIAN);
+		switch(type){
+		case FP16:
+		case BF16:
+			c.encoding = type == FP16 ? Encoding.FP16 : Encoding.BF16;
+			c.data = new byte[2*c.size];
+			data.get(c.data);
+			break;
+		case INT8:
+			c.encoding = Encoding.INT8;
+			c.blockSize = blockSize;
+			c.values = new float[(length + blockSize - 1) / blockSize];
+			data.asFloatBuffer().get(c.values);
+			data.position(data.position() + 4*c.values.length);
+			c.data = new byte[length];
+			data.get(c.data);
+			if(length < c.size){
+				c.tail = new float[c.size - length];
+				data.asFloatBuffer().get(c.tail);
+			}
+			break;
+		default:
+			throw new IOException("Unsupported tensor data type "+type);
+		}
+		return c.decode(null);
+	}
+	
+	// number of data bytes of a compressed tensor, which is read and written at once
+	private static int dataSize(int type, int size, int blockSize, int length) throws IOException {
+		long bytes;
+		if(type == INT8){
+			bytes = 4L*((length + (long)blockSize - 1) / blockSize) + length + 4L*(size - length);
+		} else {
+			bytes = 2L*size;
+		}
+		if(bytes > Integer.MAX_VALUE){
+			throw new IOException("Compressed tensor of "+size+" values is too large");
+		}
+		return (int)bytes;
+	}
+	
+	private static ByteBuffer header(int[] dims, int version){
+		int headerSize = headerSize(dims.length, version, true);
+		ByteBuffer header = ByteBuffer.allocate(headerSize).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC);
+		header.putInt(version);
+		header.putInt(headerSize);
+		header.putInt(dims.length);
+		for(int d : dims){
+			header.putInt(d);
+		}
+		header.clear();
+		return header;
+	}
+	
+	// unique temporary file in the same directory, so concurrent writers of the same file
+	// do not interfere and the file can be renamed atomically
+	private static Path tempFile(File f) throws IOException {
+		return Files.createTempFile(f.getAbsoluteFile().getParentFile().toPath(), "."+f.getName()+".", ".tmp");
+	}
+	
+	private static void replace(Path tmp, File f) throws IOException {
+		try {
+			Files.move(tmp, f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch(AtomicMoveNotSupportedException e){
+			Files.move(tmp, f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch(IOException e){
+			Files.deleteIfExists(tmp);
+			throw e;
+		}
+	}
+
+	private static void readMapped(FileChannel channel, long position, ByteOrder order, Tensor t) throws IOException {
+		// copy in smaller chunks when the data cannot be copied in bulk
+		int rows = rows(t);
+		int rowSize = rows == 0 ? 0 : t.size()/rows;
+		int size = order == ByteOrder.nativeOrder() ? CHUNK_MAPPED : CHUNK;
+		int chunk = Math.max(1, size/Math.max(1, rowSize));
+		for(int r=0;r<rows;r+=chunk){
+			int n = Math.min(chunk, rows-r);
+			MappedByteBuffer mapped = channel.map(MapMode.READ_ONLY, position + 4L*r*rowSize, bytes(n, rowSize));
+			mapped.order(order);
+			
+			Tensor rowsView = narrow(t, r, n);
+			rowsView.set(mapped.asFloatBuffer());
+			if(rowsView != t){
+				rowsView.release();
+			}
+		}
+	}
+	
+	private static void readStream(ReadableByteChannel channel, ByteOrder order, Tensor t) throws IOException {
+		ByteBuffer buffer = buffers.get();
+		int rows = rows(t);
+		int rowSize = rows == 0 ? 0 : t.size()/rows;
+		int chunk = Math.max(1, CHUNK/Math.max(1, rowSize));
+		for(int r=0;r<rows;r+=chunk){
+			int n = Math.min(chunk, rows-r);
+			int bytes = bytes(n, rowSize);
+			if(buffer.capacity() < bytes){
+				buffer = ByteBuffer.allocateDirect(bytes);
+			}
+			
+			buffer.clear();
+			buffer.limit(bytes);
+			readFully(channel, buffer);
+			buffer.flip();
+			
+			Tensor rowsView = narrow(t, r, n);
+			rowsView.set(buffer.order(order).asFloatBuffer());
+			if(rowsView != t){
+				rowsView.release();
+			}
+		}
+	}
+	
+	// number of rows along the first dimension, used to copy large tensors in chunks
+	private static int rows(Tensor t){
+		return t.size() == 0 ? 0 : t.size(0);
+	}
+	
+	// number of bytes of n rows, which should fit in a single buffer
+	private static int bytes(int n, int rowSize) throws IOException {
+		long bytes = 4L*n*rowSize;
+		if(bytes > Integer.MAX_VALUE){
+			throw new IOException("Tensor row of "+rowSize+" floats is too large to copy at once");
+		}
+		return (int)bytes;
+	}
+	
+	private static Tensor narrow(Tensor t, int row, int n){
+		if(row == 0 && n == rows(t))
+			return t;
+		return t.narrow(0, row, n);
+	}
+	
+	// size of the header, aligned or not
+	private static int headerSize(int noDims, int version, boolean aligned){
+		int size = 16 + 4*noDims + (version > 1 ? 12 : 0);
+		if(!aligned)
+			return size;
+		return ((size + ALIGNMENT - 1)/ALIGNMENT)*ALIGNMENT;
+	}
+	
+	private static void readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+		while(buffer.hasRemaining()){
+			if(channel.read(buffer) < 0){
+				throw new EOFException();
+			}
+		}
+	}
+	
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while(buffer.hasRemaining()){
+			channel.write(buffer);
+		}
+	}
+}
@@ -0,0 +1,198 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.nn.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import be.iminds.iot.dianne.api.nn.module.dto.ModuleDTO;
+import be.iminds.iot.dianne.api.nn.module.dto.NeuralNetworkDTO;
+import be.iminds.iot.dianne.tensor.NativeTensorLoader;
+import be.iminds.iot.dianne.tensor.Tensor;
+
+public class DianneGraphOptimizerTest {
+
+	@BeforeClass
+	public static void load() {
+		NativeTensorLoader loader = new NativeTensorLoader();
+		loader.activate(null);
+	}
+	
+	@Test
+	public void testFoldAndFuse() {
+		List<ModuleDTO> chain = chain("Input", "Linear", "BatchNormalization", "Dropout", "ReLU", 
+				"Linear", "Sigmoid", "Output");
+		NeuralNetworkDTO nn = new NeuralNetworkDTO("Test", chain);
+		
+		NeuralNetworkDTO optimized = DianneGraphOptimizer.optimize(nn);
+		
+		// original is not changed
+		Assert.assertEquals(8, nn.modules.size());
+		Assert.assertEquals(4, optimized.modules.size());
+		
+		ModuleDTO linear1 = optimized.modules.get(chain.get(1).id);
+		ModuleDTO linear2 = optimized.modules.get(chain.get(5).id);
+		Assert.assertEquals(chain.get(2).id.toString(), linear1.properties.get(DianneGraphOptimizer.BATCHNORM));
+		Assert.assertEquals("ReLU", linear1.properties.get(DianneGraphOptimizer.ACTIVATION));
+		Assert.assertNull(linear2.properties.get(DianneGraphOptimizer.BATCHNORM));
+		Assert.assertEquals("Sigmoid", linear2.properties.get(DianneGraphOptimizer.ACTIVATION));
+		
+		assertChain(optimized, chain.get(0), chain.get(1), chain.get(5), chain.get(7));
+	}
+	
+	@Test
+	public void testActivationBeforeBatchNormalization() {
+		List<ModuleDTO> chain = chain("Input", "Convolution", "ReLU", "BatchNormalization", "Output");
+		NeuralNetworkDTO optimized = DianneGraphOptimizer.optimize(new NeuralNetworkDTO("Test", chain));
+		
+		// batch normalization after the activation cannot be folded
+		assertChain(optimized, chain.get(0), chain.get(1), chain.get(3), chain.get(4));
+		Assert.assertEquals("ReLU", optimized.modules.get(chain.get(1).id).properties.get(DianneGraphOptimizer.ACTIVATION));
+	}
+	
+	@Test
+	public void testCollapse() {
+		List<ModuleDTO> chain = chain("Input", "Reshape", "Reshape", "Narrow", "Narrow", "Duplicate", "Accumulate", "Output");
+		chain.get(1).properties.put("dim0", "784");
+		chain.get(2).properties.put("dim0", "1");
+		chain.get(2).properties.put("dim1", "28");
+		chain.get(2).properties.put("dim2", "28");
+		narrow(chain.get(3), 0, 1, 2, 20, 2, 20);
+		narrow(chain.get(4), 0, 1, 1, 10, 3, 10);
+		
+		NeuralNetworkDTO optimized = DianneGraphOptimizer.optimize(new NeuralNetworkDTO("Test", chain));
+		assertChain(optimized, chain.get(0), chain.get(2), chain.get(4), chain.get(7));
+		
+		ModuleDTO narrow = optimized.modules.get(chain.get(4).id);
+		Assert.assertEquals("0", narrow.properties.get("index0"));
+		Assert.assertEquals("3", narrow.properties.get("index1"));
+		Assert.assertEquals("5", narrow.properties.get("index2"));
+		Assert.assertEquals("10", narrow.properties.get("size1"));
+	}
+	
+	@Test
+	public void testResidual() {
+		// Input -> Duplicate -> Linear -> Accumulate -> Output, with skip connection Duplicate -> Accumulate
+		List<ModuleDTO> chain = chain("Input", "Duplicate", "Linear", "Accumulate", "Output");
+		ModuleDTO duplicate = chain.get(1);
+		ModuleDTO accumulate = chain.get(3);
+		duplicate.next = new UUID[]{chain.get(2).id, accumulate.id};
+		accumulate.prev = new UUID[]{chain.get(2).id, duplicate.id};
+		
+		NeuralNetworkDTO optimized = DianneGraphOptimizer.optimize(new NeuralNetworkDTO("Test", chain));
+		Assert.assertEquals(5, optimized.modules.size());
+	}
+	
+	@Test
+	public void testParallelBranches() {
+		// Input -> Duplicate -> Dropout -> Accumulate -> Output, with a second Dropout between Duplicate and Accumulate
+		List<ModuleDTO> chain = chain("Input", "Duplicate", "Dropout", "Accumulate", "Output");
+		ModuleDTO duplicate = chain.get(1);
+		ModuleDTO accumulate = chain.get(3);
+		ModuleDTO dropout = new ModuleDTO(UUID.randomUUID(), "Dropout", new UUID[]{accumulate.id}, new UUID[]{duplicate.id}, new HashMap<>());
+		chain.add(dropout);
+		duplicate.next = new UUID[]{chain.get(2).id, dropout.id};
+		accumulate.prev = new UUID[]{chain.get(2).id, dropout.id};
+		
+		// the Accumulate sums both copies, so only one of the Dropouts can be removed
+		NeuralNetworkDTO optimized = DianneGraphOptimizer.optimize(new NeuralNetworkDTO("Test", chain));
+		Assert.assertEquals(5, optimized.modules.size());
+		Assert.assertEquals(2, optimized.modules.get(duplicate.id).next.length);
+		Assert.assertEquals(2, optimized.modules.get(accumulate.id).prev.length);
+		Assert.assertNotEquals(optimized.modules.get(accumulate.id).prev[0], optimized.modules.get(accumulate.id).prev[1]);
+	}
+	
+	@Test
+	public void testFoldBatchNormalization() {
+		// Linear with 3 inputs and 2 outputs
+		float[] w = new float[]{0.1f, -0.2f, 0.3f, 0.4f, 0.5f, -0.6f};
+		float[] b = new float[]{0.05f, -0.1f};
+		// BatchNormalization weights, bias, running mean and running variance
+		float[] bn = new float[]{1.5f, 0.5f, 0.1f, -0.2f, 0.3f, 0.0f, 2.0f, 0.25f};
+		float[] x = new float[]{1.0f, 2.0f, -1.0f};
+		
+		float[] p = new float[8];
+		System.arraycopy(w, 0, p, 0, 6);
+		System.arraycopy(b, 0, p, 6, 2);
+		Tensor folded = DianneGraphOptimizer.foldBatchNormalization(new Tensor(p, 8), new Tensor(bn, 8));
+		float[] f = folded.get();
+		
+		for(int o=0;o<2;o++){
+			float y = b[o];
+			float yFolded = f[6+o];
+			for(int i=0;i<3;i++){
+				y += w[o*3+i]*x[i];
+				yFolded += f[o*3+i]*x[i];
+			}
+			float expected = (float)(bn[o]*(y - bn[4+o])/Math.sqrt(bn[6+o] + 1e-5) + bn[2+o]);
+			Assert.assertEquals(expected, yFolded, 1e-5f);
+		}
+	}
+	
+	private static List<ModuleDTO> chain(String... types){
+		List<ModuleDTO> chain = new ArrayList<>();
+		for(String type : types){
+			chain.add(new ModuleDTO(UUID.randomUUID(), type, null, null, new HashMap<>()));
+		}
+		for(int i=0;i<chain.size();i++){
+			if(i > 0)
+				chain.get(i).prev = new UUID[]{chain.get(i-1).id};
+			if(i < chain.size()-1)
+				chain.get(i).next = new UUID[]{chain.get(i+1).id};
+		}
+		return chain;
+	}
+	
+	private static void narrow(ModuleDTO narrow, int... ranges){
+		Map<String, String> properties = narrow.properties;
+		for(int i=0;i<ranges.length/2;i++){
+			properties.put("index"+i, ""+ranges[2*i]);
+			properties.put("size"+i, ""+ranges[2*i+1]);
+		}
+	}
+	
+	private static void assertChain(NeuralNetworkDTO nn, ModuleDTO... expected){
+		Assert.assertEquals(expected.length, nn.modules.size());
+		for(int i=0;i<expected.length;i++){
+			ModuleDTO m = nn.modules.get(expected[i].id);
+			Assert.assertNotNull(m);
+			if(i > 0){
+				Assert.assertArrayEquals(new UUID[]{expected[i-1].id}, m.prev);
+			} else {
+				Assert.assertNull(m.prev);
+			}
+			if(i < expected.length-1){
+				Assert.assertArrayEquals(new UUID[]{expected[i+1].id}, m.next);
+			} else {
+				Assert.assertNull(m.next);
+			}
+		}
+	}
+}
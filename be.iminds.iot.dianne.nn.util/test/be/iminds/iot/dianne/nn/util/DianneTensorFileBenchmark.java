@@ -0,0 +1,140 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.nn.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+
+import org.junit.BeforeClass;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import be.iminds.iot.dianne.tensor.NativeTensorLoader;
+import be.iminds.iot.dianne.tensor.Tensor;
+
+/**
+ * Load and store throughput of parameter tensors in the mapped file format,
+ * compared to the old stream based format. This test only reports timings.
+ * 
+ * The sizes to test (in MB) can be set with the be.iminds.iot.dianne.benchmark.sizes property.
+ */
+@Ignore("Benchmark, run manually")
+public class DianneTensorFileBenchmark {
+
+	private static final int RUNS = 5;
+	
+	@BeforeClass
+	public static void load() {
+		NativeTensorLoader loader = new NativeTensorLoader();
+		loader.activate(null);
+	}
+	
+	@Test
+	public void benchmarkLoadStore() throws Exception {
+		String sizes = System.getProperty("be.iminds.iot.dianne.benchmark.sizes", "1,16,256,1024");
+		for(String s : sizes.split(",")){
+			int mb = Integer.parseInt(s.trim());
+			Tensor t = new Tensor(mb*1024*1024/4);
+			t.rand();
+			
+			File f = File.createTempFile("dianne", ".bin");
+			try {
+				double store = time(() -> DianneTensorFile.write(f, t));
+				double load = time(() -> DianneTensorFile.read(f).release());
+				
+				double storeOld = time(() -> writeOld(f, t));
+				double loadOld = time(() -> readOld(f).release());
+				
+				report(mb, "store", store, storeOld);
+				report(mb, "load", load, loadOld);
+			} finally {
+				f.delete();
+				t.release();
+			}
+		}
+	}
+	
+	// the original format, written float by float
+	private void writeOld(File f, Tensor t) throws Exception {
+		try(DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)))) {
+			float[] data = t.get();
+			os.writeInt(data.length);
+			for(int i=0;i<data.length;i++){
+				os.writeFloat(data[i]);
+			}
+		}
+	}
+	
+	// the original stream based read, float by float in chunks
+	private Tensor readOld(File f) throws Exception {
+		try(DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))){
+			int bufferSize = 10000;
+			float[] data = new float[bufferSize];
+			
+			int length = is.readInt();
+			Tensor t = new Tensor(length);
+			int index = 0;
+			while(length > 0){
+				if(length<bufferSize){
+					bufferSize = length;
+					data = new float[bufferSize];
+				}
+				for(int i=0;i<bufferSize;i++){
+					data[i] = is.readFloat();
+				}
+				Tensor n = t.narrow(0, index, bufferSize);
+				n.set(data);
+				n.release();
+				
+				length -= bufferSize;
+				index += bufferSize;
+			}
+			return t;
+		}
+	}
+	
+	private interface Run {
+		void run() throws Exception;
+	}
+	
+	private double time(Run r) throws Exception {
+		// warmup
+		r.run();
+		long t1 = System.nanoTime();
+		for(int i=0;i<RUNS;i++){
+			r.run();
+		}
+		long t2 = System.nanoTime();
+		return (t2-t1)/1e6/RUNS;
+	}
+	
+	private void report(int mb, String op, double ms, double msOld){
+		System.out.println(String.format("%-16s %10.3f ms  %8.2f MB/s   (old format %10.3f ms  %8.2f MB/s)", 
+				op+" "+mb+" MB", ms, mb/ms*1000, msOld, mb/msOld*1000));
+	}
+}
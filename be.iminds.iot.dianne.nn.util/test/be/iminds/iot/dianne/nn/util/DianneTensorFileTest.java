@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.nn.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import be.iminds.iot.dianne.api.repository.CompressedTensor;
+import be.iminds.iot.dianne.api.repository.CompressedTensor.Encoding;
+import be.iminds.iot.dianne.tensor.NativeTensorLoader;
+import be.iminds.iot.dianne.tensor.Tensor;
+
+public class DianneTensorFileTest {
+
+	@BeforeClass
+	public static void load() {
+		NativeTensorLoader loader = new NativeTensorLoader();
+		loader.activate(null);
+	}
+	
+	@Test
+	public void testWriteRead() throws Exception {
+		Tensor t = new Tensor(1234567);
+		t.rand();
+		
+		File f = File.createTempFile("dianne", ".bin");
+		DianneTensorFile.write(f, t);
+		Assert.assertEquals(t, DianneTensorFile.read(f));
+		
+		try(InputStream is = new BufferedInputStream(new FileInputStream(f))){
+			Assert.assertEquals(t, DianneTensorFile.read(is));
+		}
+		f.delete();
+	}
+	
+	@Test
+	public void testDims() throws Exception {
+		Tensor t = new Tensor(3, 40, 50);
+		t.rand();
+		
+		File f = File.createTempFile("dianne", ".bin");
+		DianneTensorFile.write(f, t);
+		Tensor r = DianneTensorFile.read(f);
+		Assert.assertTrue(r.hasDim(3, 40, 50));
+		Assert.assertEquals(t, r);
+		
+		// a narrowed tensor should only write its own data
+		Tensor n = t.narrow(1, 10, 5);
+		DianneTensorFile.write(f, n);
+		r = DianneTensorFile.read(f);
+		Assert.assertTrue(r.hasDim(3, 5, 50));
+		Assert.assertEquals(n, r);
+		f.delete();
+	}
+	
+	@Test
+	public void testCompressed() throws Exception {
+		// e.g. linear weights of 64x100 and 64 biases
+		Tensor t = new Tensor(64*101);
+		t.randn();
+		
+		File f = File.createTempFile("dianne", ".bin");
+		for(Encoding e : new Encoding[]{Encoding.FP16, Encoding.BF16, Encoding.INT8}){
+			CompressedTensor c = e == Encoding.INT8 ? CompressedTensor.int8(t, 100, 6400, null) : CompressedTensor.encode(t, e, 0, 0);
+			Tensor expected = c.decode(null);
+			
+			DianneTensorFile.write(f, c);
+			Assert.assertTrue(f.length() < 4*t.size()/(e == Encoding.INT8 ? 3 : 1.9));
+			Assert.assertEquals(expected, DianneTensorFile.read(f));
+			
+			try(InputStream is = new BufferedInputStream(new FileInputStream(f))){
+				Assert.assertEquals(expected, DianneTensorFile.read(is));
+			}
+		}
+		f.delete();
+	}
+	
+	@Test
+	public void testLegacy() throws Exception {
+		Tensor t = new Tensor(12345);
+		t.rand();
+		
+		File f = File.createTempFile("dianne", ".bin");
+		try(DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)))) {
+			float[] data = t.get();
+			os.writeInt(data.length);
+			for(int i=0;i<data.length;i++){
+				os.writeFloat(data[i]);
+			}
+		}
+		
+		Assert.assertEquals(t, DianneTensorFile.read(f));
+		try(InputStream is = new BufferedInputStream(new FileInputStream(f))){
+			Assert.assertEquals(t, DianneTensorFile.read(is));
+		}
+		f.delete();
+	}
+}
@@ -0,0 +1,281 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.nn;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import be.iminds.iot.dianne.api.nn.NeuralNetwork.MemoryPlan;
+import be.iminds.iot.dianne.api.nn.NeuralNetworkMemoryStatistics;
+import be.iminds.iot.dianne.api.nn.module.AbstractModule;
+import be.iminds.iot.dianne.api.nn.module.Memory;
+import be.iminds.iot.dianne.api.nn.module.Module;
+import be.iminds.iot.dianne.api.nn.module.Trainable;
+import be.iminds.iot.dianne.api.nn.module.dto.ModuleDTO;
+import be.iminds.iot.dianne.api.nn.module.dto.NeuralNetworkInstanceDTO;
+
+/**
+ * A precompiled execution order of the modules of a neural network. 
+ * 
+ * The module graph is topologically sorted once, resulting in a list of edges to 
+ * forward (and backward) over. Executing a pass is then a straight loop on the 
+ * calling thread, instead of dispatching each module on the runExecutor.
+ * 
+ * Memory modules break the cycles in recurrent neural networks: these act as a source
+ * in the forward pass (their output is set on triggerForward) and their input is 
+ * only forwarded at the end of the pass. Trainable memories (i.e. composites and
+ * recurrent layers) keep their state internally and are executed as regular modules.
+ * 
+ * Since the execution order is fixed, the plan also knows when each module result is 
+ * no longer needed, which is used to share buffers between modules (see MemoryPlanner).
+ * 
+ * @author tverbele
+ *
+ */
+class ExecutionPlan {
+
+	private final AbstractModule[] modules;
+	
+	// forward: fwdFrom[i].forwardTo(fwdTo[i])
+	private final AbstractModule[] fwdFrom;
+	private final AbstractModule[] fwdTo;
+	
+	// backward: bwdFrom[i].backwardTo(bwdTo[i])
+	private final AbstractModule[] bwdFrom;
+	private final AbstractModule[] bwdTo;
+	
+	// shared buffers for the outputs and gradInputs
+	private final MemoryPlanner outputs;
+	private final MemoryPlanner gradInputs;
+	private MemoryPlan memoryPlan = MemoryPlan.NONE;
+	
+	private ExecutionPlan(List<AbstractModule> modules, List<String> types,
+			List<AbstractModule[]> forward, List<AbstractModule[]> backward){
+		this.modules = modules.toArray(new AbstractModule[modules.size()]);
+		
+		this.fwdFrom = new AbstractModule[forward.size()];
+		this.fwdTo = new AbstractModule[forward.size()];
+		for(int i=0;i<forward.size();i++){
+			fwdFrom[i] = forward.get(i)[0];
+			fwdTo[i] = forward.get(i)[1];
+		}
+		
+		this.bwdFrom = new AbstractModule[backward.size()];
+		this.bwdTo = new AbstractModule[backward.size()];
+		for(int i=0;i<backward.size();i++){
+			bwdFrom[i] = backward.get(i)[0];
+			bwdTo[i] = backward.get(i)[1];
+		}
+		
+		String[] t = types.toArray(new String[types.size()]);
+		this.outputs = new MemoryPlanner(this.modules, t, fwdFrom, fwdTo, true);
+		this.gradInputs = new MemoryPlanner(this.modules, t, bwdFrom, bwdTo, false);
+	}
+	
+	/**
+	 * Compile an execution plan for a neural network instance
+	 * 
+	 * @param nn the neural network instance
+	 * @param modules the module objects of this instance
+	 * @return the execution plan, or null in case not all modules are available locally or the graph has cycles
+	 */
+	static ExecutionPlan compile(NeuralNetworkInstanceDTO nn, Map<UUID, Module> modules){
+		Map<UUID, AbstractModule> local = new HashMap<>();
+		for(Module m : modules.values()){
+			if(!(m instanceof AbstractModule)){
+				// remote module, cannot be executed synchronously
+				return null;
+			}
+			local.put(m.getId(), (AbstractModule)m);
+		}
+		if(local.size() != nn.modules.size()){
+			return null;
+		}
+		
+		// count the incoming edges, edges towards a memory are only forwarded at the end of the pass
+		Map<UUID, Integer> inDegree = new HashMap<>();
+		Deque<UUID> ready = new ArrayDeque<>();
+		List<UUID> order = new ArrayList<>();
+		for(UUID id : nn.modules.keySet()){
+			int count = 0;
+			if(!isMemory(local, id)){
+				for(UUID p : prev(nn, id)){
+					if(local.containsKey(p))
+						count++;
+				}
+			}
+			inDegree.put(id, count);
+			if(count == 0){
+				// memories first, their output is available at the start of each pass
+				if(isMemory(local, id)){
+					order.add(id);
+				} else {
+					ready.add(id);
+				}
+			}
+		}
+		for(UUID id : order){
+			for(UUID n : next(nn, id)){
+				release(n, inDegree, ready);
+			}
+		}
+		while(!ready.isEmpty()){
+			UUID id = ready.poll();
+			order.add(id);
+			for(UUID n : next(nn, id)){
+				if(!isMemory(local, n)){
+					release(n, inDegree, ready);
+				}
+			}
+		}
+		if(order.size() != nn.modules.size()){
+			// cycle that is not broken by a memory
+			return null;
+		}
+		
+		List<AbstractModule> sorted = new ArrayList<>();
+		List<String> types = new ArrayList<>();
+		List<AbstractModule[]> forward = new ArrayList<>();
+		List<AbstractModule[]> memoryForward = new ArrayList<>();
+		for(UUID id : order){
+			AbstractModule m = local.get(id);
+			sorted.add(m);
+			types.add(nn.modules.get(id).module.type);
+			for(UUID p : prev(nn, id)){
+				AbstractModule from = local.get(p);
+				if(from == null)
+					continue;
+				
+				if(isMemory(local, id)){
+					memoryForward.add(new AbstractModule[]{from, m});
+				} else {
+					forward.add(new AbstractModule[]{from, m});
+				}
+			}
+		}
+		forward.addAll(memoryForward);
+		
+		// backward in reverse order, a module is done once all next modules are done
+		List<AbstractModule[]> backward = new ArrayList<>();
+		for(int i=order.size()-1;i>=0;i--){
+			UUID id = order.get(i);
+			AbstractModule m = local.get(id);
+			for(UUID n : next(nn, id)){
+				AbstractModule from = local.get(n);
+				if(from == null)
+					continue;
+				
+				backward.add(new AbstractModule[]{from, m});
+			}
+		}
+		
+		return new ExecutionPlan(sorted, types, forward, backward);
+	}
+	
+	/**
+	 * Set all modules in (or out of) compiled mode
+	 */
+	void setCompiled(boolean compiled){
+		for(AbstractModule m : modules){
+			m.setCompiled(compiled);
+		}
+	}
+	
+	/**
+	 * Execute the forward pass, the inputs and memories should already be triggered
+	 */
+	void forward(String... tags){
+		outputs.start();
+		for(int i=0;i<fwdFrom.length;i++){
+			fwdFrom[i].forwardTo(fwdTo[i], tags);
+			outputs.executed(i);
+		}
+	}
+	
+	/**
+	 * Execute the backward pass, the outputs and memories should already be triggered
+	 */
+	void backward(String... tags){
+		gradInputs.start();
+		for(int i=0;i<bwdFrom.length;i++){
+			bwdFrom[i].backwardTo(bwdTo[i], tags);
+			gradInputs.executed(i);
+		}
+	}
+	
+	/**
+	 * Share the output and/or gradInput buffers between modules
+	 */
+	void setMemoryPlan(MemoryPlan plan){
+		outputs.share(plan == MemoryPlan.INFERENCE, true);
+		gradInputs.share(plan == MemoryPlan.TRAINING, false);
+		memoryPlan = plan;
+	}
+	
+	MemoryPlan getMemoryPlan(){
+		return memoryPlan;
+	}
+	
+	NeuralNetworkMemoryStatistics getMemoryStatistics(){
+		NeuralNetworkMemoryStatistics stats = new NeuralNetworkMemoryStatistics();
+		stats.plan = memoryPlan;
+		stats.activations = outputs.bytes();
+		stats.plannedActivations = outputs.plannedBytes();
+		stats.gradients = gradInputs.bytes();
+		stats.plannedGradients = gradInputs.plannedBytes();
+		stats.buffers = outputs.buffers() + gradInputs.buffers();
+		stats.inPlace = outputs.inPlace();
+		return stats;
+	}
+	
+	private static void release(UUID id, Map<UUID, Integer> inDegree, Deque<UUID> ready){
+		Integer count = inDegree.get(id);
+		if(count == null)
+			return;
+		
+		inDegree.put(id, count-1);
+		if(count == 1){
+			ready.add(id);
+		}
+	}
+	
+	private static boolean isMemory(Map<UUID, AbstractModule> modules, UUID id){
+		AbstractModule m = modules.get(id);
+		return m instanceof Memory && !(m instanceof Trainable);
+	}
+	
+	private static UUID[] prev(NeuralNetworkInstanceDTO nn, UUID id){
+		ModuleDTO dto = nn.modules.get(id).module;
+		return dto.prev == null ? new UUID[0] : dto.prev;
+	}
+	
+	private static UUID[] next(NeuralNetworkInstanceDTO nn, UUID id){
+		ModuleDTO dto = nn.modules.get(id).module;
+		return dto.next == null ? new UUID[0] : dto.next;
+	}
+}
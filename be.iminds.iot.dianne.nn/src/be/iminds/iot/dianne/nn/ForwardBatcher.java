@@ -0,0 +1,329 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.nn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.osgi.util.promise.Deferred;
+import org.osgi.util.promise.Promise;
+
+import be.iminds.iot.dianne.api.nn.NeuralNetworkBatchStatistics;
+import be.iminds.iot.dianne.api.nn.NeuralNetworkResult;
+import be.iminds.iot.dianne.tensor.Tensor;
+
+/**
+ * Coalesces concurrent single sample forward calls into batched forward passes.
+ * 
+ * Requests are queued and picked up by a dispatcher thread, that collects requests 
+ * with the same input/output and dimensions until either the maximum batch size is 
+ * reached or the first request waited for the maximum delay. The inputs are copied 
+ * into one batch Tensor, forwarded at once, and the output is split again per request.
+ * 
+ * @author tverbele
+ *
+ */
+class ForwardBatcher {
+
+	// number of latencies to keep for the percentiles
+	private static final int WINDOW = 4096;
+	
+	private final NeuralNetworkWrapper nn;
+	private final int maxBatchSize;
+	private final long maxDelay;
+	
+	private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+	private final Thread dispatcher;
+	private volatile boolean running = true;
+	
+	// request that did not fit in the previous batch
+	private Request pending = null;
+	
+	// reused batch input
+	private Tensor batch;
+	
+	// statistics
+	private final AtomicLongArray batchSizes;
+	private long requests = 0;
+	private long batches = 0;
+	private long queueWait = 0;
+	private final long[] latencies = new long[WINDOW];
+	private long latencyIndex = 0;
+	
+	private class Request {
+		final UUID inputId;
+		final UUID[] outputIds;
+		final Tensor input;
+		final String[] tags;
+		final long timestamp = System.nanoTime();
+		final Deferred<NeuralNetworkResult> deferred = new Deferred<>();
+		
+		Request(UUID inputId, UUID[] outputIds, Tensor input, String[] tags){
+			this.inputId = inputId;
+			this.outputIds = outputIds;
+			this.input = input;
+			this.tags = tags;
+		}
+		
+		boolean fits(Request other){
+			return (inputId == null ? other.inputId == null : inputId.equals(other.inputId))
+					&& Arrays.equals(outputIds, other.outputIds)
+					&& Arrays.equals(tags, other.tags)
+					&& input.sameDim(other.input);
+		}
+		
+		// a request can be completed only once, i.e. when it was already resolved 
+		// before a batch failed, it should not be failed afterwards
+		void resolve(NeuralNetworkResult result){
+			if(!deferred.getPromise().isDone()){
+				deferred.resolve(result);
+			}
+		}
+		
+		void fail(Throwable t){
+			if(!deferred.getPromise().isDone()){
+				deferred.fail(t);
+			}
+		}
+		
+		boolean isDone(){
+			return deferred.getPromise().isDone();
+		}
+	}
+	
+	/**
+	 * @param nn neural network to forward the batches on
+	 * @param maxBatchSize maximum number of requests in one batch
+	 * @param maxDelay maximum time in microseconds a request waits for other requests
+	 */
+	ForwardBatcher(NeuralNetworkWrapper nn, int maxBatchSize, long maxDelay){
+		this.nn = nn;
+		this.maxBatchSize = maxBatchSize;
+		this.maxDelay = TimeUnit.MICROSECONDS.toNanos(maxDelay);
+		this.batchSizes = new AtomicLongArray(maxBatchSize+1);
+		
+		this.dispatcher = new Thread(this::dispatch, "Dianne Forward Batcher "+nn.getId());
+		this.dispatcher.setDaemon(true);
+		this.dispatcher.start();
+	}
+	
+	Promise<NeuralNetworkResult> submit(UUID inputId, UUID[] outputIds, Tensor input, String... tags){
+		Request r = new Request(inputId, outputIds, input, tags);
+		if(!running){
+			r.fail(new RuntimeException("Forward batching is stopped"));
+		} else {
+			queue.add(r);
+		}
+		return r.deferred.getPromise();
+	}
+	
+	void stop(){
+		running = false;
+		dispatcher.interrupt();
+		
+		// wait until the dispatcher handled the requests it already collected, 
+		// so no requests are forwarded concurrently with the dispatcher
+		try {
+			dispatcher.join();
+		} catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+		
+		// handle what is left unbatched
+		List<Request> left = new ArrayList<>();
+		queue.drainTo(left);
+		for(Request r : left){
+			complete(r);
+		}
+	}
+	
+	private void dispatch(){
+		List<Request> requests = new ArrayList<>(maxBatchSize);
+		while(running){
+			try {
+				Request first = pending != null ? pending : queue.take();
+				pending = null;
+				requests.add(first);
+				
+				long deadline = first.timestamp + maxDelay;
+				while(requests.size() < maxBatchSize){
+					long wait = deadline - System.nanoTime();
+					Request next = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+					if(next == null)
+						break;
+					
+					if(!first.fits(next)){
+						// start a new batch with this one
+						pending = next;
+						break;
+					}
+					requests.add(next);
+				}
+				
+				forward(requests);
+				requests.clear();
+			} catch(InterruptedException e){
+				// stopped, requests that are not yet completed are handled below
+				break;
+			} catch(Throwable t){
+				requests.forEach(r -> r.fail(t));
+				requests.clear();
+			}
+		}
+		
+		// clear the interrupt flag of stop() to forward what was already collected
+		Thread.interrupted();
+		for(Request r : requests){
+			if(!r.isDone()){
+				complete(r);
+			}
+		}
+		requests.clear();
+		
+		if(pending != null){
+			complete(pending);
+			pending = null;
+		}
+	}
+	
+	private void forward(List<Request> requests) throws Exception {
+		long start = System.nanoTime();
+		int n = requests.size();
+		
+		if(n == 1){
+			// no need to copy
+			forward(requests.get(0));
+		} else {
+			Request first = requests.get(0);
+			if(batch == null || !batch.hasDim(batchDims(n, first.input))){
+				batch = new Tensor(n, first.input.dims());
+			}
+			for(int i=0;i<n;i++){
+				Tensor sample = batch.select(0, i);
+				requests.get(i).input.copyInto(sample);
+				sample.release();
+			}
+			
+			NeuralNetworkResult result = nn.forwardUnbatched(first.inputId == null ? null : new UUID[]{first.inputId}, 
+					first.outputIds, new Tensor[]{batch}, first.tags).getValue();
+			
+			// check whether the outputs are batched as expected, otherwise fall back to forwarding one by one
+			boolean batched = true;
+			for(Tensor t : result.tensors.values()){
+				if(t.dim() < 1 || t.size(0) != n){
+					batched = false;
+				}
+			}
+			
+			for(int i=0;i<n;i++){
+				Request r = requests.get(i);
+				if(!batched){
+					forward(r);
+					continue;
+				}
+				
+				Map<UUID, Tensor> outputs = new HashMap<>();
+				for(Map.Entry<UUID, Tensor> e : result.tensors.entrySet()){
+					Tensor slice = e.getValue().select(0, i);
+					outputs.put(e.getKey(), slice.copyInto(null));
+					slice.release();
+				}
+				r.resolve(new NeuralNetworkResult(outputs, result.tags));
+			}
+		}
+		
+		long end = System.nanoTime();
+		synchronized(this){
+			this.batches++;
+			this.batchSizes.incrementAndGet(n);
+			for(Request r : requests){
+				this.requests++;
+				this.queueWait += start - r.timestamp;
+				this.latencies[(int)(latencyIndex++ % WINDOW)] = end - r.timestamp;
+			}
+		}
+	}
+	
+	// an interrupt by stop() is passed on, so the dispatcher forwards the request again afterwards
+	private void forward(Request r) throws InterruptedException {
+		try {
+			NeuralNetworkResult result = nn.forwardUnbatched(r.inputId == null ? null : new UUID[]{r.inputId}, 
+					r.outputIds, new Tensor[]{r.input}, r.tags).getValue();
+			
+			// copy the outputs, as the network will reuse these for the next request
+			Map<UUID, Tensor> outputs = new HashMap<>();
+			result.tensors.entrySet().forEach(e -> outputs.put(e.getKey(), e.getValue().copyInto(null)));
+			r.resolve(new NeuralNetworkResult(outputs, result.tags));
+		} catch(InterruptedException e){
+			throw e;
+		} catch(Throwable t){
+			r.fail(t);
+		}
+	}
+	
+	// forward a request after the dispatch loop, failing it only when interrupted again
+	private void complete(Request r){
+		try {
+			forward(r);
+		} catch(InterruptedException e){
+			r.fail(e);
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	private static int[] batchDims(int n, Tensor input){
+		int[] dims = input.dims();
+		int[] batchDims = new int[dims.length+1];
+		batchDims[0] = n;
+		System.arraycopy(dims, 0, batchDims, 1, dims.length);
+		return batchDims;
+	}
+	
+	synchronized NeuralNetworkBatchStatistics getStatistics(){
+		NeuralNetworkBatchStatistics stats = new NeuralNetworkBatchStatistics();
+		stats.requests = requests;
+		stats.batches = batches;
+		stats.batchSizes = new long[batchSizes.length()];
+		for(int i=0;i<stats.batchSizes.length;i++){
+			stats.batchSizes[i] = batchSizes.get(i);
+		}
+		stats.queueWait = requests == 0 ? 0 : queueWait/1e6/requests;
+		
+		int count = (int)Math.min(latencyIndex, WINDOW);
+		if(count > 0){
+			long[] sorted = Arrays.copyOf(latencies, count);
+			Arrays.sort(sorted);
+			stats.p50 = sorted[count/2]/1e6;
+			stats.p99 = sorted[Math.min(count-1, (int)(count*0.99))]/1e6;
+		}
+		return stats;
+	}
+}
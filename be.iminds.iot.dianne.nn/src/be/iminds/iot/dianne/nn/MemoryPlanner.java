@@ -0,0 +1,406 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.nn;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import be.iminds.iot.dianne.api.nn.module.AbstractModule;
+import be.iminds.iot.dianne.api.nn.module.Memory;
+import be.iminds.iot.dianne.api.nn.module.Trainable;
+import be.iminds.iot.dianne.tensor.Tensor;
+
+/**
+ * Shares buffers between the module results of one pass of an ExecutionPlan, i.e. the 
+ * outputs in the forward pass or the gradInputs in the backward pass.
+ * 
+ * The result of a module is live from the first edge towards that module until the last
+ * module reading it is executed. Modules whose results are never live at the same time get
+ * the same buffer, and elementwise modules can reuse the buffer of their input when they are
+ * the last one reading it. 
+ * 
+ * Only modules known to write their result in the buffer they are given take part. Other modules 
+ * might pass on (a view on) their input, hence these keep the buffers they read live as long as 
+ * their own result. Results that are still read after the pass (by Output and Input modules, 
+ * memories or Trainables accumulating their gradients) are never reused.
+ * 
+ * Independent of the sharing, the size of the module results is tracked in each pass in 
+ * order to report the memory with and without shared buffers.
+ * 
+ * @author tverbele
+ *
+ */
+class MemoryPlanner {
+
+	// module types that write their output in the given output buffer
+	static final Set<String> OUTPUTS = new HashSet<>(Arrays.asList(
+			"Linear", "Convolution", "FullConvolution", "AvgPooling", "MaxPooling", "BatchNormalization",
+			"ReLU", "PReLU", "Sigmoid", "Tanh", "Threshold", "ELU", "SELU", "SoftPlus", "Softmax", "LogSoftmax",
+			"Reshape", "Narrow", "Normalization", "Denormalization", "Accumulate"));
+	
+	// module types that write their gradInput in the given gradInput buffer
+	static final Set<String> GRADINPUTS = new HashSet<>(Arrays.asList(
+			"Linear", "Convolution", "FullConvolution", "AvgPooling", "BatchNormalization",
+			"ReLU", "Sigmoid", "Tanh", "Threshold", "ELU", "SELU", "SoftPlus", "Softmax", "LogSoftmax",
+			"Reshape"));
+	
+	// module types that can write their output in the buffer of their input
+	static final Set<String> ELEMENTWISE = new HashSet<>(Arrays.asList(
+			"ReLU", "Sigmoid", "Tanh", "Threshold", "ELU", "SELU"));
+	
+	private static final int LIVE = Integer.MAX_VALUE;
+	
+	private final boolean forward;
+	private final AbstractModule[] modules;
+	
+	// edges of the pass: from[i] hands its result to to[i]
+	private final AbstractModule[] from;
+	private final AbstractModule[] to;
+	private final int[] src;
+	private final int[] dst;
+	
+	// incoming and outgoing edges of each module, in execution order
+	private final int[][] in;
+	private final int[][] out;
+	
+	// modules without incoming edges, these are executed before the pass
+	private final int[] sources;
+	
+	// module that is executed by edge i, -1 if it still waits for other edges
+	private final int[] executed;
+	
+	// last edge at which the result of each module is read
+	private final int[] end;
+	
+	private final boolean[] owns;
+	private final boolean[] elementwise;
+	
+	// shared buffer of each module, -1 when it keeps its own
+	private final int[] buffer;
+	private final boolean[] inPlace;
+	private int buffers = 0;
+	
+	// max number of elements of the result of each module, 0 when it passes on its input
+	private final long[] sizes;
+	
+	/**
+	 * @param modules the modules in execution order
+	 * @param types the module types
+	 * @param from the edges of the pass
+	 * @param to the edges of the pass
+	 * @param forward whether this is the forward or backward pass
+	 */
+	MemoryPlanner(AbstractModule[] modules, String[] types, AbstractModule[] from, AbstractModule[] to, boolean forward){
+		this.forward = forward;
+		this.modules = modules;
+		this.from = from;
+		this.to = to;
+		
+		final int n = modules.length;
+		final int e = from.length;
+		
+		Map<AbstractModule, Integer> index = new IdentityHashMap<>();
+		for(int k=0;k<n;k++){
+			index.put(modules[k], k);
+		}
+		
+		src = new int[e];
+		dst = new int[e];
+		int[] inCount = new int[n];
+		int[] outCount = new int[n];
+		for(int i=0;i<e;i++){
+			src[i] = index.get(from[i]);
+			dst[i] = index.get(to[i]);
+			outCount[src[i]]++;
+			inCount[dst[i]]++;
+		}
+		
+		in = new int[n][];
+		out = new int[n][];
+		int noSources = 0;
+		for(int k=0;k<n;k++){
+			in[k] = new int[inCount[k]];
+			out[k] = new int[outCount[k]];
+			if(inCount[k] == 0)
+				noSources++;
+			inCount[k] = 0;
+			outCount[k] = 0;
+		}
+		for(int i=0;i<e;i++){
+			in[dst[i]][inCount[dst[i]]++] = i;
+			out[src[i]][outCount[src[i]]++] = i;
+		}
+		
+		sources = new int[noSources];
+		executed = new int[e];
+		Arrays.fill(executed, -1);
+		
+		owns = new boolean[n];
+		elementwise = new boolean[n];
+		boolean[] retains = new boolean[n];
+		end = new int[n];
+		for(int k=0;k<n;k++){
+			owns[k] = (forward ? OUTPUTS : GRADINPUTS).contains(types[k]);
+			elementwise[k] = forward && ELEMENTWISE.contains(types[k]);
+			// memories read their input in the next pass, trainables read their gradOutput in accGradParameters
+			retains[k] = modules[k] instanceof Memory || (!forward && modules[k] instanceof Trainable);
+			
+			if(in[k].length == 0){
+				sources[--noSources] = k;
+				end[k] = -1;
+			} else {
+				executed[last(k)] = k;
+				end[k] = last(k);
+			}
+			
+			if(out[k].length == 0 && !owns[k]){
+				// end of the pass, result is read by the caller
+				end[k] = LIVE;
+			}
+		}
+		
+		// the next modules are executed later, so going backwards over the edges the 
+		// end of the result of the reading module is known
+		for(int i=e-1;i>=0;i--){
+			int c = dst[i];
+			int read = retains[c] ? LIVE : owns[c] ? last(c) : Math.max(last(c), end[c]);
+			if(read > end[src[i]]){
+				end[src[i]] = read;
+			}
+		}
+		
+		buffer = new int[n];
+		Arrays.fill(buffer, -1);
+		inPlace = new boolean[n];
+		sizes = new long[n];
+	}
+	
+	/**
+	 * Assign the shared buffers to the modules
+	 * 
+	 * @param share whether to share buffers, if false each module allocates its own buffer again
+	 * @param inPlace whether elementwise modules can reuse the buffer of their input
+	 */
+	void share(boolean share, boolean inPlace){
+		for(int k=0;k<modules.length;k++){
+			if(buffer[k] >= 0){
+				set(k, null);
+			}
+			buffer[k] = -1;
+			this.inPlace[k] = false;
+		}
+		buffers = 0;
+		
+		if(!share)
+			return;
+		
+		// assign in order of the first edge towards each module, reuse a buffer of 
+		// which the result is no longer read
+		Integer[] order = new Integer[modules.length];
+		for(int k=0;k<modules.length;k++){
+			order[k] = k;
+		}
+		Arrays.sort(order, (k1, k2) -> Integer.compare(first(k1), first(k2)));
+		
+		int[] free = new int[modules.length];
+		for(int k : order){
+			if(!owns[k] || in[k].length == 0)
+				continue;
+			
+			int b = -1;
+			if(inPlace && elementwise[k] && in[k].length == 1){
+				int p = src[in[k][0]];
+				if(buffer[p] >= 0 && end[p] == last(k)){
+					b = buffer[p];
+					this.inPlace[k] = true;
+				}
+			}
+			if(b < 0){
+				for(int s=0;s<buffers;s++){
+					if(free[s] < first(k)){
+						b = s;
+						break;
+					}
+				}
+			}
+			if(b < 0){
+				b = buffers++;
+			}
+			buffer[k] = b;
+			free[b] = end[k];
+		}
+		
+		Tensor[] pool = new Tensor[buffers];
+		for(int b=0;b<buffers;b++){
+			pool[b] = new Tensor();
+		}
+		for(int k=0;k<modules.length;k++){
+			if(buffer[k] >= 0){
+				set(k, pool[buffer[k]]);
+			}
+		}
+	}
+	
+	/**
+	 * Track the results of the modules that are executed before the pass
+	 */
+	void start(){
+		for(int k : sources){
+			record(k);
+		}
+	}
+	
+	/**
+	 * Track the result of the module executed by edge i
+	 */
+	void executed(int i){
+		int k = executed[i];
+		if(k >= 0){
+			record(k);
+		}
+	}
+	
+	/**
+	 * @return the number of bytes of the module results when each module keeps its own buffer
+	 */
+	long bytes(){
+		long size = 0;
+		for(int k=0;k<modules.length;k++){
+			size += sizes[k];
+		}
+		return size*4;
+	}
+	
+	/**
+	 * @return the number of bytes of the module results with shared buffers
+	 */
+	long plannedBytes(){
+		long size = 0;
+		long[] shared = new long[buffers];
+		for(int k=0;k<modules.length;k++){
+			if(buffer[k] < 0){
+				size += sizes[k];
+			} else if(sizes[k] > shared[buffer[k]]){
+				shared[buffer[k]] = sizes[k];
+			}
+		}
+		for(int b=0;b<buffers;b++){
+			size += shared[b];
+		}
+		return size*4;
+	}
+	
+	/**
+	 * @return the number of shared buffers
+	 */
+	int buffers(){
+		return buffers;
+	}
+	
+	/**
+	 * @return the number of modules executed in place
+	 */
+	int inPlace(){
+		int count = 0;
+		for(boolean b : inPlace){
+			if(b)
+				count++;
+		}
+		return count;
+	}
+	
+	private void record(int k){
+		long size = 0;
+		if(owns[k]){
+			size = size(result(modules[k], null));
+		} else if(out[k].length == 0){
+			Tensor t = result(modules[k], null);
+			if(!passed(k, t)){
+				size = size(t);
+			}
+		} else {
+			for(int j=0;j<out[k].length;j++){
+				Tensor t = result(modules[k], to[out[k][j]]);
+				if(passed(k, t))
+					continue;
+				
+				boolean counted = false;
+				for(int l=0;l<j;l++){
+					if(result(modules[k], to[out[k][l]]) == t){
+						counted = true;
+						break;
+					}
+				}
+				if(!counted){
+					size += size(t);
+				}
+			}
+		}
+		if(size > sizes[k]){
+			sizes[k] = size;
+		}
+	}
+	
+	// whether t is one of the inputs of module k
+	private boolean passed(int k, Tensor t){
+		if(t == null)
+			return true;
+		
+		for(int i : in[k]){
+			if(result(from[i], to[i]) == t)
+				return true;
+		}
+		return false;
+	}
+	
+	private Tensor result(AbstractModule m, AbstractModule next){
+		if(forward){
+			return m.getOutput(next == null ? null : next.getId());
+		} else {
+			return m.getGradInput(next == null ? null : next.getId());
+		}
+	}
+	
+	private void set(int k, Tensor t){
+		if(forward){
+			modules[k].setOutputBuffer(t);
+		} else {
+			modules[k].setGradInputBuffer(t);
+		}
+	}
+	
+	private int first(int k){
+		return in[k].length == 0 ? -1 : in[k][0];
+	}
+	
+	private int last(int k){
+		return in[k].length == 0 ? -1 : in[k][in[k].length-1];
+	}
+	
+	private static long size(Tensor t){
+		return t == null ? 0 : t.size();
+	}
+}
@@ -24,6 +24,7 @@ package be.iminds.iot.dianne.nn;
 
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Dictionary;
@@ -33,6 +34,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 import org.osgi.framework.BundleContext;
@@ -41,26 +43,36 @@ import org.osgi.util.promise.Deferred;
 import org.osgi.util.promise.Promise;
 
 import be.iminds.iot.dianne.api.nn.NeuralNetwork;
+import be.iminds.iot.dianne.api.nn.NeuralNetworkBatchStatistics;
+import be.iminds.iot.dianne.api.nn.NeuralNetworkMemoryStatistics;
 import be.iminds.iot.dianne.api.nn.NeuralNetworkResult;
 import be.iminds.iot.dianne.api.nn.NeuralNetworkSequenceResult;
+import be.iminds.iot.dianne.api.nn.module.AbstractModule;
 import be.iminds.iot.dianne.api.nn.module.BackwardListener;
 import be.iminds.iot.dianne.api.nn.module.ForwardListener;
 import be.iminds.iot.dianne.api.nn.module.Input;
 import be.iminds.iot.dianne.api.nn.module.Memory;
 import be.iminds.iot.dianne.api.nn.module.Module;
 import be.iminds.iot.dianne.api.nn.module.ModuleException;
+import be.iminds.iot.dianne.api.nn.module.ModuleScheduler;
 import be.iminds.iot.dianne.api.nn.module.Output;
 import be.iminds.iot.dianne.api.nn.module.Preprocessor;
 import be.iminds.iot.dianne.api.nn.module.Trainable;
 import be.iminds.iot.dianne.api.nn.module.dto.ModuleDTO;
+import be.iminds.iot.dianne.api.nn.module.dto.ModuleInstanceDTO;
 import be.iminds.iot.dianne.api.nn.module.dto.NeuralNetworkDTO;
 import be.iminds.iot.dianne.api.nn.module.dto.NeuralNetworkInstanceDTO;
+import be.iminds.iot.dianne.api.repository.CompressedTensor;
 import be.iminds.iot.dianne.api.repository.DianneRepository;
+import be.iminds.iot.dianne.api.repository.VersionedParameters;
 import be.iminds.iot.dianne.tensor.Tensor;
 import be.iminds.iot.dianne.tensor.TensorOps;
 
 public class NeuralNetworkWrapper implements NeuralNetwork {
 
+	// property set by the DianneGraphOptimizer on modules with a folded BatchNormalization
+	private static final String BATCHNORM = "batchnorm";
+	
 	private int count = 0;
 
 	private final DianneRepository repository;
@@ -81,12 +93,22 @@ public class NeuralNetworkWrapper implements NeuralNetwork {
 	private Map<String, Progress> inProgress = Collections.synchronizedMap(new HashMap<String, Progress>());
 	private Map<String, List<UUID>> interestedModules = Collections.synchronizedMap(new HashMap<String, List<UUID>>());
 
+	// sequence outputs, memories and gradInputs are kept in preallocated [T, ...] buffers
 	private Map<UUID, List<Tensor>> sequenceInputs = new HashMap<>();
-	private Map<UUID, List<Tensor>> sequenceOutputs = new HashMap<>();
-	private Map<UUID, List<Tensor>> sequenceMemories = new HashMap<>();
-	private Map<UUID, List<Tensor>> sequenceGradInputs = new HashMap<>();
+	private Map<UUID, SequenceBuffer> sequenceOutputs = new HashMap<>();
+	private Map<UUID, SequenceBuffer> sequenceMemories = new HashMap<>();
+	private Map<UUID, SequenceBuffer> sequenceGradInputs = new HashMap<>();
+	
+	// last loaded parameter versions, by tags
+	private Map<String, Map<UUID, Long>> versions = new ConcurrentHashMap<>();
 
 	
+	// compiled execution plan, null when executing asynchronously
+	private volatile ExecutionPlan plan = null;
+	
+	// coalesces concurrent forward calls, null when not batching
+	private volatile ForwardBatcher batcher = null;
+	
 	private boolean valid = true;
 	
 	public NeuralNetworkWrapper(NeuralNetworkInstanceDTO nn, Collection<Module> modules, DianneRepository repo, BundleContext context) {
@@ -140,6 +162,20 @@ public class NeuralNetworkWrapper implements NeuralNetwork {
 		if(!valid)
 			throw new RuntimeException("This neural network object is no longer valid");
 		
+		ForwardBatcher batcher = this.batcher;
+		if(batcher != null && ins.length == 1){
+			return batcher.submit(inputIds == null ? null : inputIds[0], outputIds, ins[0], tags);
+		}
+		
+		return forwardUnbatched(inputIds, outputIds, ins, tags);
+	}
+	
+	Promise<NeuralNetworkResult> forwardUnbatched(UUID[] inputIds, UUID[] outputIds, Tensor[] ins, String... tags){
+		ExecutionPlan plan = this.plan;
+		if(plan != null){
+			return forwardCompiled(plan, inputIds, outputIds, ins, tags);
+		}
+		
 		String tag = getTag();
 		String[] t = addTag(tags, tag);
 		
@@ -181,12 +217,10 @@ public class NeuralNetworkWrapper implements NeuralNetwork {
 		Tensor result = null;
 		Promise<NeuralNetworkResult> p = forward((UUID)null, (UUID)null, input, tags);
 		try {
-			if(p.getFailure()!=null){
-				throw new RuntimeException("Error forwarding input", p.getFailure());
-			}
-		
-			result = p.getValue().tensor;
-		} catch(InterruptedException|InvocationTargetException e){
+			result = ModuleScheduler.await(p).tensor;
+		} catch(InvocationTargetException e){
+			throw new RuntimeException("Error forwarding input", e.getCause());
+		} catch(InterruptedException e){
 			throw new RuntimeException("Error forwarding input", e);
 		}
 		return result;
@@ -211,42 +245,44 @@ public class NeuralNetworkWrapper implements NeuralNetwork {
 		}
 
 		// TODO what if other sequence already executing?!
-		return forward(0, inputIds, outputIds, inputs, tags);
+		return forward(inputs[0].size(), inputIds, outputIds, inputs, tags);
 	}
 
-	private Promise<NeuralNetworkSequenceResult> forward(int index, UUID[] inputIds, UUID[] outputIds, List<Tensor>[] inputs, String... tags){
-		int sequenceLength = inputs[0].size();
-
-		storeSequenceMemories(index);
-
-		return forward(inputIds, outputIds, getSequenceInputs(index, inputs), tags).then(p -> {
-			// store output
-			storeSequenceOutputs(index, p.getValue().tensors);
-
-			// increment counter
-			int next = index + 1;
-			
-			// check if we are done
-			if(next == sequenceLength){
-				Deferred<NeuralNetworkSequenceResult> d = new Deferred<>();
-				d.resolve(new NeuralNetworkSequenceResult(sequenceOutputs, tags));
-				return d.getPromise();
-			} else {
-				return forward(next, inputIds, outputIds, inputs, tags);
+	/**
+	 * Execute all steps of the sequence in one loop, storing the memories before each step
+	 * and the memories after the last step, from which a next sequence can continue
+	 */
+	private Promise<NeuralNetworkSequenceResult> forward(int sequenceLength, UUID[] inputIds, UUID[] outputIds, List<Tensor>[] inputs, String... tags){
+		Deferred<NeuralNetworkSequenceResult> d = new Deferred<>();
+		Tensor[] ins = new Tensor[inputs.length];
+		try {
+			for(int index=0;index<sequenceLength;index++){
+				storeSequenceMemories(index, sequenceLength);
+				
+				NeuralNetworkResult result = ModuleScheduler.await(forward(inputIds, outputIds, getSequenceInputs(index, inputs, ins), tags));
+				storeSequenceOutputs(index, sequenceLength, result.tensors, index == 0);
 			}
-		});
+			storeSequenceMemories(sequenceLength, sequenceLength);
+		} catch(InvocationTargetException e){
+			d.fail(e.getCause());
+			return d.getPromise();
+		} catch(Exception e){
+			d.fail(e);
+			return d.getPromise();
+		}
+		
+		d.resolve(new NeuralNetworkSequenceResult(getSequence(sequenceOutputs, sequenceLength), tags));
+		return d.getPromise();
 	}
 	
 	public List<Tensor> forward(List<Tensor> input, String... tags){
 		List<Tensor> result = null;
 		Promise<NeuralNetworkSequenceResult> p = forward((UUID)null, (UUID)null, input, tags);
 		try {
-			if(p.getFailure()!=null){
-				throw new RuntimeException("Error forwarding input", p.getFailure());
-			}
-		
-			result = p.getValue().tensor;
-		} catch(InterruptedException|InvocationTargetException e){
+			result = ModuleScheduler.await(p).tensor;
+		} catch(InvocationTargetException e){
+			throw new RuntimeException("Error forwarding input", e.getCause());
+		} catch(InterruptedException e){
 			throw new RuntimeException("Error forwarding input", e);
 		}
 		return result;
@@ -258,6 +294,11 @@ public class NeuralNetworkWrapper implements NeuralNetwork {
 		if(!valid)
 			throw new RuntimeException("This neural network object is no longer valid");
 		
+		ExecutionPlan plan = this.plan;
+		if(plan != null){
+			return backwardCompiled(plan, outputIds, inputIds, gradOuts, accGradParameters, tags);
+		}
+		
 		String tag = getTag();
 		String[] t = addTag(tags, tag);
 
@@ -309,12 +350,10 @@ public class NeuralNetworkWrapper implements NeuralNetwork {
 		Tensor result = null;
 		Promise<NeuralNetworkResult> p = backward((UUID)null, (UUID)null, gradOutput, accGradParameters, tags);
 		try {
-			if(p.getFailure()!=null){
-				throw new RuntimeException("Error back propagating gradOutput", p.getFailure());
-			}
-		
-			result = p.getValue().tensor;
-		} catch(InterruptedException|InvocationTargetException e){
+			result = ModuleScheduler.await(p).tensor;
+		} catch(InvocationTargetException e){
+			throw new RuntimeException("Error back propagating gradOutput", e.getCause());
+		} catch(InterruptedException e){
 			throw new RuntimeException("Error back propagating gradOutput", e);
 		}
 		return result;
@@ -331,41 +370,48 @@ public class NeuralNetworkWrapper implements NeuralNetwork {
 		
 	
 		// TODO what if other sequence already executing?!
-		return backward(gradOutputs[0].size()-1, outputIds, inputIds, gradOutputs, accGradParameters, tags);
+		return backward(gradOutputs[0].size(), outputIds, inputIds, gradOutputs, accGradParameters, tags);
 	}
 
-	private Promise<NeuralNetworkSequenceResult> backward(int index, UUID[] outputIds, UUID[] inputIds, List<Tensor>[] gradOutputs, boolean accGradParameters, String... tags){
-		// first forward again with correct input and memories
-		loadSequenceMemories(index);
+	/**
+	 * Back propagate through all steps of the previously forwarded sequence in one loop, each step 
+	 * is first forwarded again from its stored memories. Afterwards the memories are restored to
+	 * the state after the last step, so a truncated sequence can be continued with the next forward.
+	 */
+	private Promise<NeuralNetworkSequenceResult> backward(int sequenceLength, UUID[] outputIds, UUID[] inputIds, List<Tensor>[] gradOutputs, boolean accGradParameters, String... tags){
+		Deferred<NeuralNetworkSequenceResult> d = new Deferred<>();
 		
-		Tensor[] ins = new Tensor[inputIds == null ? 1 : inputIds.length];
+		List<Tensor>[] inputs = new List[inputIds == null ? 1 : inputIds.length];
 		if(inputIds == null){
-			ins[0] = sequenceInputs.values().iterator().next().get(index);
+			inputs[0] = sequenceInputs.values().iterator().next();
 		} else {
 			for(int i=0;i<inputIds.length;i++){
-				ins[i] = sequenceInputs.get(inputIds[i]).get(index);
+				inputs[i] = sequenceInputs.get(inputIds[i]);
 			}
 		}
+		Tensor[] ins = new Tensor[inputs.length];
+		Tensor[] gradOuts = new Tensor[gradOutputs.length];
 		
-		return forward(inputIds, outputIds, ins, tags).then(p -> {
-			return backward(outputIds, inputIds, getSequenceInputs(index, gradOutputs), accGradParameters, tags).then( pp -> {
-				
-				storeSequenceGradInputs(index, pp.getValue().tensors);
-
-				// decrement counter
-				int next = index - 1;
-
-				// check if we are done
-				if(next < 0){
-					Deferred<NeuralNetworkSequenceResult> d = new Deferred<>();
-					d.resolve(new NeuralNetworkSequenceResult(sequenceGradInputs, tags));
-					return d.getPromise();
-				} else {
-					return backward(next, outputIds, inputIds, gradOutputs, accGradParameters, tags);
-				}
+		try {
+			for(int index=sequenceLength-1;index>=0;index--){
+				// first forward again with correct input and memories
+				loadSequenceMemories(index);
+				ModuleScheduler.await(forward(inputIds, outputIds, getSequenceInputs(index, inputs, ins), tags));
 				
-			});
-		});
+				NeuralNetworkResult result = ModuleScheduler.await(backward(outputIds, inputIds, getSequenceInputs(index, gradOutputs, gradOuts), accGradParameters, tags));
+				storeSequenceGradInputs(index, sequenceLength, result.tensors, index == sequenceLength-1);
+			}
+			loadSequenceMemories(sequenceLength);
+		} catch(InvocationTargetException e){
+			d.fail(e.getCause());
+			return d.getPromise();
+		} catch(Exception e){
+			d.fail(e);
+			return d.getPromise();
+		}
+		
+		d.resolve(new NeuralNetworkSequenceResult(getSequence(sequenceGradInputs, sequenceLength), tags));
+		return d.getPromise();
 	}
 	
 
@@ -373,76 +419,63 @@ public class NeuralNetworkWrapper implements NeuralNetwork {
 		List<Tensor> result = null;
 		Promise<NeuralNetworkSequenceResult> p = backward((UUID)null, (UUID)null, gradOutput, accGradParameters, tags);
 		try {
-			if(p.getFailure()!=null){
-				throw new RuntimeException("Error back propagating gradOutput", p.getFailure());
-			}
-		
-			result = p.getValue().tensor;
-		} catch(InterruptedException|InvocationTargetException e){
+			result = ModuleScheduler.await(p).tensor;
+		} catch(InvocationTargetException e){
+			throw new RuntimeException("Error back propagating gradOutput", e.getCause());
+		} catch(InterruptedException e){
 			throw new RuntimeException("Error back propagating gradOutput", e);
 		}
 		return result;
 	}
 	
 	
-	private void storeSequenceOutputs(int index, Map<UUID, Tensor> outputs){
-		outputs.entrySet().forEach(e -> {
-			List<Tensor> outs = sequenceOutputs.get(e.getKey());
-			if(outs == null){
-				outs = new ArrayList<>();
-				sequenceOutputs.put(e.getKey(), outs);
-			}
-			
-			while(outs.size() <= index){
-				outs.add(new Tensor());
-			}
-			
-			e.getValue().copyInto(outs.get(index));
-		});
+	private void storeSequenceOutputs(int index, int sequenceLength, Map<UUID, Tensor> outputs, boolean first){
+		storeSequence(sequenceOutputs, index, sequenceLength, outputs, first);
 	}
 	
-	private void storeSequenceMemories(int index){
+	private void storeSequenceMemories(int index, int sequenceLength){
 		memories.entrySet().forEach(e ->{
-			List<Tensor> mems = sequenceMemories.get(e.getKey());
+			SequenceBuffer mems = sequenceMemories.get(e.getKey());
 			if(mems == null){
-				mems = new ArrayList<Tensor>();
+				mems = new SequenceBuffer();
 				sequenceMemories.put(e.getKey(), mems);
 			}
 			
-			while(mems.size() <= index){
-				mems.add(new Tensor());
-			}
-			
-			e.getValue().getMemory().copyInto(mems.get(index));
+			// also keep the state after the last step
+			mems.store(index, sequenceLength+1, e.getValue().getMemory(), index == 0);
 		});	
 	}
 	
-	private void storeSequenceGradInputs(int index, Map<UUID, Tensor> gradInputs){
-		gradInputs.entrySet().forEach(e -> {
-			List<Tensor> gradIns = sequenceGradInputs.get(e.getKey());
-			if(gradIns == null){
-				gradIns = new ArrayList<>();
-				sequenceGradInputs.put(e.getKey(), gradIns);
-			}
-			
-			while(gradIns.size() <= index){
-				gradIns.add(new Tensor());
+	private void storeSequenceGradInputs(int index, int sequenceLength, Map<UUID, Tensor> gradInputs, boolean first){
+		storeSequence(sequenceGradInputs, index, sequenceLength, gradInputs, first);
+	}
+	
+	private void storeSequence(Map<UUID, SequenceBuffer> buffers, int index, int sequenceLength, Map<UUID, Tensor> tensors, boolean first){
+		tensors.entrySet().forEach(e -> {
+			SequenceBuffer buffer = buffers.get(e.getKey());
+			if(buffer == null){
+				buffer = new SequenceBuffer();
+				buffers.put(e.getKey(), buffer);
 			}
 			
-			e.getValue().copyInto(gradIns.get(index));
+			buffer.store(index, sequenceLength, e.getValue(), first);
 		});
 	}
 	
 	private void loadSequenceMemories(int index){
 		memories.entrySet().forEach(e ->{
-			List<Tensor> mems = sequenceMemories.get(e.getKey());
-			Tensor state = mems.get(index);
-			e.getValue().setMemory(state);
+			SequenceBuffer mems = sequenceMemories.get(e.getKey());
+			e.getValue().setMemory(mems.get(index));
 		});	
 	}
 	
-	private Tensor[] getSequenceInputs(int index, List<Tensor>[] inputs){
-		Tensor[] ins = new Tensor[inputs.length];
+	private Map<UUID, List<Tensor>> getSequence(Map<UUID, SequenceBuffer> buffers, int sequenceLength){
+		Map<UUID, List<Tensor>> sequence = new HashMap<>();
+		buffers.entrySet().forEach(e -> sequence.put(e.getKey(), e.getValue().get(0, sequenceLength)));
+		return sequence;
+	}
+	
+	private Tensor[] getSequenceInputs(int index, List<Tensor>[] inputs, Tensor[] ins){
 		for(int i=0;i<inputs.length;i++){
 			ins[i] = inputs[i].get(index);
 		}
@@ -450,6 +483,114 @@ public class NeuralNetworkWrapper implements NeuralNetwork {
 	}
 	
 	
+	private Promise<NeuralNetworkResult> forwardCompiled(ExecutionPlan plan, UUID[] inputIds, UUID[] outputIds, Tensor[] ins, String... tags){
+		String[] t = tags == null ? new String[0] : tags;
+		Deferred<NeuralNetworkResult> d = new Deferred<>();
+		
+		synchronized(plan){
+			memories.values().forEach(m -> m.triggerForward(t));
+			
+			if(inputIds == null){
+				Input input = inputs.values().iterator().next();
+				input.input(ins[0], t);
+			} else {
+				for(int i=0;i<ins.length;i++){
+					Input input = inputs.get(inputIds[i]);
+					input.input(ins[i], t);
+				}
+			}
+			
+			plan.forward(t);
+			
+			Map<UUID, Tensor> results = new HashMap<>();
+			Collection<UUID> ids = outputIds == null ? outputs.keySet() : Arrays.asList(outputIds);
+			for(UUID id : ids){
+				AbstractModule output;
+				try {
+					output = getCompiledResultModule(plan, id, outputs);
+				} catch(Exception e){
+					d.fail(e);
+					return d.getPromise();
+				}
+				if(output.getException() != null){
+					d.fail(output.getException());
+					return d.getPromise();
+				}
+				results.put(id, output.getOutput(null));
+			}
+			d.resolve(new NeuralNetworkResult(results, t));
+		}
+		return d.getPromise();
+	}
+	
+	private Promise<NeuralNetworkResult> backwardCompiled(ExecutionPlan plan, UUID[] outputIds, UUID[] inputIds, Tensor[] gradOuts, boolean accGradParameters, String... tags){
+		String[] t = tags == null ? new String[0] : tags;
+		Deferred<NeuralNetworkResult> d = new Deferred<>();
+		
+		synchronized(plan){
+			if(plan.getMemoryPlan() == MemoryPlan.INFERENCE){
+				d.fail(new Exception("Cannot backward with an inference memory plan"));
+				return d.getPromise();
+			}
+			
+			memories.values().forEach(m -> m.triggerBackward(t));
+			
+			if(outputIds==null){
+				Output output = outputs.values().iterator().next();
+				output.backpropagate(gradOuts[0], t);
+			} else {
+				for(int i=0;i<gradOuts.length;i++){
+					Output output = outputs.get(outputIds[i]);
+					output.backpropagate(gradOuts[i], t);
+				}
+			}
+			
+			plan.backward(t);
+			
+			Map<UUID, Tensor> results = new HashMap<>();
+			Collection<UUID> ids = inputIds == null ? inputs.keySet() : Arrays.asList(inputIds);
+			for(UUID id : ids){
+				AbstractModule input;
+				try {
+					input = getCompiledResultModule(plan, id, inputs);
+				} catch(Exception e){
+					d.fail(e);
+					return d.getPromise();
+				}
+				if(input.getException() != null){
+					d.fail(input.getException());
+					return d.getPromise();
+				}
+				results.put(id, input.getGradInput(null));
+			}
+			
+			if(accGradParameters){
+				getTrainables().values().stream().forEach(Trainable::accGradParameters);
+			}
+			
+			d.resolve(new NeuralNetworkResult(results, t));
+		}
+		return d.getPromise();
+	}
+	
+	/**
+	 * Get the module of which the result is requested in compiled mode. As in the 
+	 * asynchronous mode, this can be any module of the neural network.
+	 */
+	private AbstractModule getCompiledResultModule(ExecutionPlan plan, UUID id, Map<UUID, ? extends Module> defaults) throws Exception {
+		Module m = defaults.get(id);
+		if(m == null){
+			m = modules.get(id);
+			if(m == null)
+				throw new Exception("Module "+id+" is not part of neural network "+nn.id);
+			
+			// buffers of intermediate modules are shared with other modules
+			if(plan.getMemoryPlan() != MemoryPlan.NONE)
+				throw new Exception("Module "+id+" is not an Input or Output, its result is not available with memory plan "+plan.getMemoryPlan());
+		}
+		return (AbstractModule) m;
+	}
+	
 	// let all tags added by NN wrapper precede by "_"
 	private String getTag(){
 		synchronized(this){
@@ -534,6 +675,47 @@ public class NeuralNetworkWrapper implements NeuralNetwork {
 	
 	
 	void register(){
+		// compile the execution plan at deploy time when configured
+		if(Boolean.parseBoolean(context.getProperty("be.iminds.iot.dianne.nn.compiled"))){
+			plan = ExecutionPlan.compile(nn, modules);
+			if(plan != null){
+				plan.setCompiled(true);
+				
+				String memory = context.getProperty("be.iminds.iot.dianne.nn.memory");
+				if(memory != null){
+					plan.setMemoryPlan(MemoryPlan.valueOf(memory.toUpperCase()));
+				}
+			}
+		}
+		
+		// the compiled plan collects the results itself, only listen when executing asynchronously
+		if(plan == null){
+			registerListeners();
+		}
+		
+		Dictionary<String, Object> properties = new Hashtable<String, Object>();
+		properties.put("nn.id", nn.id.toString());
+		properties.put("aiolos.export", false);
+		properties.put("aiolos.unique", true);
+		nnReg = context.registerService(NeuralNetwork.class, this, properties);
+		
+		valid = true;
+	}
+	
+	void unregister(){
+		valid = false;
+		
+		ForwardBatcher b = batcher;
+		if(b != null){
+			batcher = null;
+			b.stop();
+		}
+		
+		unregisterListeners();
+		nnReg.unregister();
+	}
+	
+	private void registerListeners(){
 		Dictionary<String, Object> propertiesFw = new Hashtable<String, Object>();
 		propertiesFw.put("targets", new String[]{nn.id.toString()});
 		propertiesFw.put("aiolos.unique", true);
@@ -641,22 +823,113 @@ public class NeuralNetworkWrapper implements NeuralNetwork {
 				}
 			}
 		}, propertiesBw);	
+	}
+	
+	private void unregisterListeners(){
+		if(forwardListenerReg != null){
+			forwardListenerReg.unregister();
+			forwardListenerReg = null;
+		}
+		if(backwardListenerReg != null){
+			backwardListenerReg.unregister();
+			backwardListenerReg = null;
+		}
+	}
+	
+	@Override
+	public synchronized boolean setCompiled(boolean compiled){
+		if(!valid){
+			throw new RuntimeException("This neural network object is no longer valid");
+		}
 		
-		Dictionary<String, Object> properties = new Hashtable<String, Object>();
-		properties.put("nn.id", nn.id.toString());
-		properties.put("aiolos.export", false);
-		properties.put("aiolos.unique", true);
-		nnReg = context.registerService(NeuralNetwork.class, this, properties);
+		ExecutionPlan current = plan;
+		if(compiled == (current != null)){
+			return compiled;
+		}
 		
-		valid = true;
+		if(compiled){
+			ExecutionPlan p = ExecutionPlan.compile(nn, modules);
+			if(p == null){
+				return false;
+			}
+			p.setCompiled(true);
+			plan = p;
+			unregisterListeners();
+		} else {
+			registerListeners();
+			synchronized(current){
+				plan = null;
+				current.setMemoryPlan(MemoryPlan.NONE);
+				current.setCompiled(false);
+			}
+		}
+		return compiled;
 	}
 	
-	void unregister(){
-		valid = false;
+	@Override
+	public synchronized boolean setBatching(int maxBatchSize, long maxDelay){
+		if(!valid){
+			throw new RuntimeException("This neural network object is no longer valid");
+		}
 		
-		forwardListenerReg.unregister();
-		backwardListenerReg.unregister();
-		nnReg.unregister();
+		ForwardBatcher current = batcher;
+		if(current != null){
+			batcher = null;
+			current.stop();
+		}
+		
+		if(maxBatchSize <= 1){
+			return false;
+		}
+		
+		// memories keep state between forward calls, these cannot be batched
+		if(!memories.isEmpty()){
+			return false;
+		}
+		
+		batcher = new ForwardBatcher(this, maxBatchSize, maxDelay);
+		return true;
+	}
+	
+	@Override
+	public NeuralNetworkBatchStatistics getBatchStatistics(){
+		ForwardBatcher b = batcher;
+		if(b == null)
+			return null;
+		return b.getStatistics();
+	}
+	
+	@Override
+	public boolean isCompiled(){
+		return plan != null;
+	}
+	
+	@Override
+	public synchronized boolean setMemoryPlan(MemoryPlan memoryPlan){
+		if(!valid){
+			throw new RuntimeException("This neural network object is no longer valid");
+		}
+		
+		ExecutionPlan current = plan;
+		if(current == null){
+			return memoryPlan == MemoryPlan.NONE;
+		}
+		
+		synchronized(current){
+			current.setMemoryPlan(memoryPlan);
+		}
+		return true;
+	}
+	
+	@Override
+	public NeuralNetworkMemoryStatistics getMemoryStatistics(){
+		ExecutionPlan current = plan;
+		if(current == null)
+			return null;
+		
+		synchronized(current){
+			return current.getMemoryStatistics();
+		}
 	}
 
 	@Override
@@ -874,7 +1147,9 @@ public class NeuralNetworkWrapper implements NeuralNetwork {
 			throw new RuntimeException("This neural network object is no longer valid");
 		}
 		 
-		repository.storeParameters(nn.id, getParameters(), tag);
+		Map<UUID, Tensor> params = getParameters();
+		checkFoldedParameters(params.keySet());
+		repository.storeParameters(nn.id, params, tag);
 	}
 	
 	@Override
@@ -883,6 +1158,7 @@ public class NeuralNetworkWrapper implements NeuralNetwork {
 			throw new RuntimeException("This neural network object is no longer valid");
 		}
 		
+		checkFoldedParameters(params.keySet());
 		if(tag == null)
 			repository.storeParameters(nn.id, params); 
 		else 
@@ -895,6 +1171,7 @@ public class NeuralNetworkWrapper implements NeuralNetwork {
 			throw new RuntimeException("This neural network object is no longer valid");
 		}
 		
+		checkFoldedParameters(trainables.keySet());
 		Map<UUID, Tensor> deltaParameters = trainables.entrySet().stream()
 				.collect(Collectors.toMap(e -> e.getKey(), e -> TensorOps.sub(null,
 						e.getValue().getParameters(), previous.get(e.getKey()))));
@@ -904,6 +1181,32 @@ public class NeuralNetworkWrapper implements NeuralNetwork {
 			repository.accParameters(nn.id, deltaParameters, tag);
 			
 	}
+	
+	@Override
+	public void storeCompressedDeltaParameters(Map<UUID, CompressedTensor> delta, String... tag) {
+		if(!valid){
+			throw new RuntimeException("This neural network object is no longer valid");
+		}
+		
+		checkFoldedParameters(delta.keySet());
+		if(tag == null)
+			repository.accCompressedParameters(nn.id, delta);
+		else 
+			repository.accCompressedParameters(nn.id, delta, tag);
+	}
+	
+	/**
+	 * Modules with a BatchNormalization folded in by the DianneGraphOptimizer run with
+	 * different parameters than the ones in the repository, so these are never stored back
+	 */
+	private void checkFoldedParameters(Collection<UUID> moduleIds){
+		for(UUID id : moduleIds){
+			ModuleInstanceDTO m = nn.modules.get(id);
+			if(m != null && m.module.properties != null && m.module.properties.containsKey(BATCHNORM)){
+				throw new RuntimeException("Cannot store parameters of module "+id+" with folded BatchNormalization "+m.module.properties.get(BATCHNORM));
+			}
+		}
+	}
 
 	@Override
 	public Map<UUID, Tensor> loadParameters(String... tag) throws Exception {
@@ -916,6 +1219,23 @@ public class NeuralNetworkWrapper implements NeuralNetwork {
 		return parameters;
 	}
 
+	@Override
+	public Map<UUID, Tensor> loadChangedParameters(String... tag) {
+		if(!valid){
+			throw new RuntimeException("This neural network object is no longer valid");
+		}
+		
+		Map<UUID, Long> known = versions.computeIfAbsent(tag == null ? "" : String.join(":", tag), t -> new ConcurrentHashMap<>());
+		Map<UUID, Long> request = new HashMap<>();
+		trainables.keySet().forEach(id -> request.put(id, known.getOrDefault(id, -1L)));
+		preprocessors.keySet().forEach(id -> request.put(id, known.getOrDefault(id, -1L)));
+		
+		VersionedParameters changed = tag == null ? repository.loadChangedParameters(request) : repository.loadChangedParameters(request, tag);
+		setParameters(changed.parameters);
+		known.putAll(changed.versions);
+		return changed.parameters;
+	}
+
 	@Override
 	public void zeroDeltaParameters(){
 		if(!valid){
@@ -999,4 +1319,8 @@ public class NeuralNetworkWrapper implements NeuralNetwork {
 	public void resetMemory(int batchSize){
 		memories.values().forEach(m -> m.reset(batchSize));
 	}
+	
+	public void resetMemoryGradients(){
+		memories.values().forEach(m -> m.resetGradient());
+	}
 }
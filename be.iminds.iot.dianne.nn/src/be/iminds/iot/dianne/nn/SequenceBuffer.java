@@ -0,0 +1,85 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.nn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import be.iminds.iot.dianne.tensor.Tensor;
+
+/**
+ * Keeps the Tensors of all steps of a sequence in one preallocated [T, ...] Tensor.
+ * 
+ * Each step is stored into a view on the buffer, so no Tensors are allocated per step. 
+ * The buffer is only reallocated when the sequence gets longer or the step dimensions change,
+ * which is only allowed for the first step stored of a sequence.
+ * 
+ * @author tverbele
+ *
+ */
+class SequenceBuffer {
+
+	private Tensor buffer = null;
+	private int[] dims = null;
+	private final List<Tensor> steps = new ArrayList<>();
+	
+	/**
+	 * Copy a step of a sequence with given length into the buffer. Reallocating drops the
+	 * steps already stored, so a step with other dimensions than the first one is refused.
+	 */
+	void store(int index, int length, Tensor t, boolean first){
+		if(buffer == null || buffer.dims()[0] < length || !Arrays.equals(dims, t.dims())){
+			if(!first){
+				throw new IllegalArgumentException("Step "+index+" has dims "+Arrays.toString(t.dims())
+					+" while the other steps of the sequence have dims "+Arrays.toString(dims));
+			}
+			allocate(length, t.dims());
+		}
+		t.copyInto(steps.get(index));
+	}
+	
+	Tensor get(int index){
+		return steps.get(index);
+	}
+	
+	/**
+	 * @return a new list with length steps starting from index from, as views on the buffer
+	 */
+	List<Tensor> get(int from, int length){
+		return new ArrayList<>(steps.subList(from, from+length));
+	}
+	
+	private void allocate(int length, int[] d){
+		dims = d;
+		int[] bufferDims = new int[d.length+1];
+		bufferDims[0] = length;
+		System.arraycopy(d, 0, bufferDims, 1, d.length);
+		buffer = new Tensor(bufferDims);
+		
+		steps.clear();
+		for(int i=0;i<length;i++){
+			steps.add(buffer.select(0, i));
+		}
+	}
+}
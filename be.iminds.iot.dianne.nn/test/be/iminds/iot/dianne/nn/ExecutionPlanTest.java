@@ -0,0 +1,232 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.nn;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import be.iminds.iot.dianne.api.nn.NeuralNetwork.MemoryPlan;
+import be.iminds.iot.dianne.api.nn.module.AbstractModule;
+import be.iminds.iot.dianne.api.nn.module.Module;
+import be.iminds.iot.dianne.api.nn.module.Trainable;
+import be.iminds.iot.dianne.api.nn.module.dto.ModuleDTO;
+import be.iminds.iot.dianne.api.nn.module.dto.ModuleInstanceDTO;
+import be.iminds.iot.dianne.api.nn.module.dto.NeuralNetworkInstanceDTO;
+import be.iminds.iot.dianne.nn.module.activation.ReLU;
+import be.iminds.iot.dianne.nn.module.fork.Duplicate;
+import be.iminds.iot.dianne.nn.module.io.InputImpl;
+import be.iminds.iot.dianne.nn.module.io.OutputImpl;
+import be.iminds.iot.dianne.nn.module.join.Accumulate;
+import be.iminds.iot.dianne.nn.module.layer.Linear;
+import be.iminds.iot.dianne.tensor.NativeTensorLoader;
+import be.iminds.iot.dianne.tensor.Tensor;
+
+/**
+ * Checks that an ExecutionPlan with shared buffers calculates the same outputs, gradInputs
+ * and delta parameters as without memory planning on residual graphs.
+ */
+public class ExecutionPlanTest {
+
+	private static final int SIZE = 8;
+	private static final int BATCH = 4;
+	
+	@BeforeClass
+	public static void setup() {
+		NativeTensorLoader loader = new NativeTensorLoader();
+		loader.activate(null);
+	}
+	
+	@Test
+	public void testResidual() throws Exception {
+		// input -> linear -> duplicate -> linear -> linear -> accumulate -> output
+		//                             \--------------------/
+		Graph g = new Graph();
+		AbstractModule l1 = g.add("Linear", new Linear(UUID.randomUUID(), SIZE, SIZE), g.input);
+		AbstractModule d = g.add("Duplicate", new Duplicate(UUID.randomUUID()), l1);
+		AbstractModule l2 = g.add("Linear", new Linear(UUID.randomUUID(), SIZE, SIZE), d);
+		AbstractModule l3 = g.add("Linear", new Linear(UUID.randomUUID(), SIZE, SIZE), l2);
+		AbstractModule a = g.add("Accumulate", new Accumulate(UUID.randomUUID()), l3, d);
+		g.add("Output", g.output, a);
+		
+		testMemoryPlans(g, 0);
+	}
+	
+	@Test
+	public void testResidualInPlace() throws Exception {
+		// ReLU in the residual branch can overwrite the output of the linear before it
+		// input -> linear -> duplicate -> linear -> relu -> linear -> accumulate -> output
+		//                             \----------------------------/
+		Graph g = new Graph();
+		AbstractModule l1 = g.add("Linear", new Linear(UUID.randomUUID(), SIZE, SIZE), g.input);
+		AbstractModule d = g.add("Duplicate", new Duplicate(UUID.randomUUID()), l1);
+		AbstractModule l2 = g.add("Linear", new Linear(UUID.randomUUID(), SIZE, SIZE), d);
+		AbstractModule r = g.add("ReLU", new ReLU(UUID.randomUUID()), l2);
+		AbstractModule l3 = g.add("Linear", new Linear(UUID.randomUUID(), SIZE, SIZE), r);
+		AbstractModule a = g.add("Accumulate", new Accumulate(UUID.randomUUID()), l3, d);
+		g.add("Output", g.output, a);
+		
+		testMemoryPlans(g, 1);
+	}
+	
+	@Test
+	public void testResidualNotInPlace() throws Exception {
+		// ReLU reads the output of the linear that is also skipped to the accumulate,
+		// hence it cannot be executed in place
+		// input -> linear -> duplicate -> relu -> linear -> accumulate -> output
+		//                             \------------------/
+		Graph g = new Graph();
+		AbstractModule l1 = g.add("Linear", new Linear(UUID.randomUUID(), SIZE, SIZE), g.input);
+		AbstractModule d = g.add("Duplicate", new Duplicate(UUID.randomUUID()), l1);
+		AbstractModule r = g.add("ReLU", new ReLU(UUID.randomUUID()), d);
+		AbstractModule l2 = g.add("Linear", new Linear(UUID.randomUUID(), SIZE, SIZE), r);
+		AbstractModule a = g.add("Accumulate", new Accumulate(UUID.randomUUID()), l2, d);
+		g.add("Output", g.output, a);
+		
+		testMemoryPlans(g, 0);
+	}
+	
+	private void testMemoryPlans(Graph g, int inPlace) throws Exception {
+		ExecutionPlan plan = g.compile();
+		Assert.assertNotNull(plan);
+		plan.setCompiled(true);
+		
+		for(Trainable t : g.trainables){
+			t.randomizeParameters();
+		}
+		
+		Tensor input = new Tensor(BATCH, SIZE);
+		input.randn();
+		Tensor gradOutput = new Tensor(BATCH, SIZE);
+		gradOutput.randn();
+
+		plan.setMemoryPlan(MemoryPlan.NONE);
+		List<Tensor> expected = run(plan, g, input, gradOutput, true);
+		
+		plan.setMemoryPlan(MemoryPlan.INFERENCE);
+		// run twice, the second pass reuses the buffers sized in the first one
+		for(int i=0;i<2;i++){
+			List<Tensor> result = run(plan, g, input, gradOutput, false);
+			assertEquals("Wrong output with inference plan", expected.get(0), result.get(0));
+		}
+		Assert.assertTrue(plan.getMemoryStatistics().buffers > 0);
+		Assert.assertEquals(inPlace, plan.getMemoryStatistics().inPlace);
+		
+		plan.setMemoryPlan(MemoryPlan.TRAINING);
+		for(int i=0;i<2;i++){
+			List<Tensor> result = run(plan, g, input, gradOutput, true);
+			assertEquals("Wrong output with training plan", expected.get(0), result.get(0));
+			assertEquals("Wrong grad input with training plan", expected.get(1), result.get(1));
+			for(int k=2;k<expected.size();k++){
+				assertEquals("Wrong delta parameters with training plan", expected.get(k), result.get(k));
+			}
+		}
+		plan.setMemoryPlan(MemoryPlan.NONE);
+	}
+	
+	/**
+	 * @return copies of the output, and when backward also of the gradInput and delta parameters
+	 */
+	private List<Tensor> run(ExecutionPlan plan, Graph g, Tensor input, Tensor gradOutput, boolean backward){
+		List<Tensor> result = new ArrayList<>();
+		
+		g.input.input(input);
+		plan.forward();
+		Assert.assertNull(g.output.getException());
+		result.add(g.output.getOutput(null).copyInto(null));
+		
+		if(backward){
+			g.trainables.forEach(Trainable::zeroDeltaParameters);
+			g.output.backpropagate(gradOutput);
+			plan.backward();
+			Assert.assertNull(g.input.getException());
+			result.add(g.input.getGradInput(null).copyInto(null));
+			
+			g.trainables.forEach(Trainable::accGradParameters);
+			g.trainables.forEach(t -> result.add(t.getDeltaParameters().copyInto(null)));
+		}
+		return result;
+	}
+	
+	private static void assertEquals(String message, Tensor expected, Tensor actual){
+		Assert.assertTrue(message+": "+expected+" vs "+actual, expected.equals(actual, 1e-5f));
+	}
+	
+	private static class Graph {
+		
+		final InputImpl input = new InputImpl(UUID.randomUUID());
+		final OutputImpl output = new OutputImpl(UUID.randomUUID());
+		final List<Trainable> trainables = new ArrayList<>();
+		
+		private final Map<AbstractModule, String> types = new LinkedHashMap<>();
+		private final Map<AbstractModule, List<AbstractModule>> next = new HashMap<>();
+		private final Map<AbstractModule, List<AbstractModule>> prev = new HashMap<>();
+		
+		Graph(){
+			add("Input", input);
+		}
+		
+		AbstractModule add(String type, AbstractModule m, AbstractModule... from){
+			types.put(m, type);
+			next.put(m, new ArrayList<>());
+			prev.put(m, new ArrayList<>());
+			for(AbstractModule f : from){
+				next.get(f).add(m);
+				prev.get(m).add(f);
+			}
+			if(m instanceof Trainable){
+				trainables.add((Trainable)m);
+			}
+			return m;
+		}
+		
+		ExecutionPlan compile(){
+			UUID nnId = UUID.randomUUID();
+			Map<UUID, Module> modules = new HashMap<>();
+			Map<UUID, ModuleInstanceDTO> instances = new HashMap<>();
+			for(AbstractModule m : types.keySet()){
+				List<AbstractModule> n = next.get(m);
+				List<AbstractModule> p = prev.get(m);
+				if(!n.isEmpty())
+					m.setNext(n.toArray(new Module[n.size()]));
+				if(!p.isEmpty())
+					m.setPrevious(p.toArray(new Module[p.size()]));
+				
+				ModuleDTO dto = new ModuleDTO(m.getId(), types.get(m), 
+						n.isEmpty() ? null : n.stream().map(Module::getId).toArray(UUID[]::new),
+						p.isEmpty() ? null : p.stream().map(Module::getId).toArray(UUID[]::new),
+						new HashMap<>());
+				instances.put(m.getId(), new ModuleInstanceDTO(dto, nnId, null));
+				modules.put(m.getId(), m);
+			}
+			return ExecutionPlan.compile(new NeuralNetworkInstanceDTO(nnId, "Residual", instances), modules);
+		}
+	}
+}
@@ -0,0 +1,233 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.nn;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.osgi.util.promise.Deferred;
+import org.osgi.util.promise.Promise;
+
+import be.iminds.iot.dianne.api.nn.NeuralNetworkBatchStatistics;
+import be.iminds.iot.dianne.api.nn.NeuralNetworkResult;
+import be.iminds.iot.dianne.api.nn.module.dto.ModuleInstanceDTO;
+import be.iminds.iot.dianne.api.nn.module.dto.NeuralNetworkInstanceDTO;
+import be.iminds.iot.dianne.tensor.NativeTensorLoader;
+import be.iminds.iot.dianne.tensor.Tensor;
+import be.iminds.iot.dianne.tensor.TensorOps;
+
+/**
+ * Checks that the ForwardBatcher merges compatible requests into one batch, splits the 
+ * output per request again, and completes all requests when stopped.
+ */
+public class ForwardBatcherTest {
+
+	private static final UUID OUTPUT = UUID.randomUUID();
+	
+	@BeforeClass
+	public static void setup() {
+		NativeTensorLoader loader = new NativeTensorLoader();
+		loader.activate(null);
+	}
+	
+	@Test
+	public void testBatch() throws Exception {
+		Network nn = new Network(true);
+		ForwardBatcher batcher = new ForwardBatcher(nn, 4, 1000000);
+		
+		// submit from separate threads, the batch is forwarded once all four are queued
+		List<Tensor> inputs = new ArrayList<>();
+		List<Promise<NeuralNetworkResult>> results = Collections.synchronizedList(new ArrayList<>());
+		List<Thread> threads = new ArrayList<>();
+		for(int i=0;i<4;i++){
+			Tensor input = new Tensor(3);
+			input.fill(i);
+			inputs.add(input);
+			threads.add(new Thread(() -> results.add(batcher.submit(null, null, input))));
+		}
+		threads.forEach(Thread::start);
+		for(Thread t : threads){
+			t.join();
+		}
+		
+		for(Promise<NeuralNetworkResult> p : results){
+			Tensor output = p.getValue().tensor;
+			Tensor expected = TensorOps.mul(null, inputs.get((int)output.get(0)/2), 2.0f);
+			Assert.assertTrue(expected.equals(output));
+		}
+		
+		Assert.assertEquals(1, nn.batchSizes.size());
+		Assert.assertEquals(4, (int)nn.batchSizes.get(0));
+		
+		// the statistics are recorded after the requests are resolved
+		batcher.stop();
+		NeuralNetworkBatchStatistics stats = batcher.getStatistics();
+		Assert.assertEquals(4, stats.requests);
+		Assert.assertEquals(1, stats.batches);
+		Assert.assertEquals(1, stats.batchSizes[4]);
+	}
+	
+	@Test
+	public void testNotMerged() throws Exception {
+		Network nn = new Network(true);
+		ForwardBatcher batcher = new ForwardBatcher(nn, 8, 100000);
+		
+		// each request differs from the others in dims, outputs or tags
+		UUID other = UUID.randomUUID();
+		List<Promise<NeuralNetworkResult>> results = new ArrayList<>();
+		results.add(batcher.submit(null, new UUID[]{OUTPUT}, new Tensor(3)));
+		results.add(batcher.submit(null, new UUID[]{OUTPUT}, new Tensor(5)));
+		results.add(batcher.submit(null, new UUID[]{other}, new Tensor(3)));
+		results.add(batcher.submit(null, new UUID[]{OUTPUT}, new Tensor(3), "tag"));
+		
+		int[] sizes = new int[]{3, 5, 3, 3};
+		for(int i=0;i<4;i++){
+			Assert.assertEquals(sizes[i], results.get(i).getValue().tensor.size());
+		}
+		Assert.assertArrayEquals(new String[]{"tag"}, results.get(3).getValue().tags);
+		
+		// all forwarded one by one, unbatched
+		Assert.assertEquals(4, nn.batchSizes.size());
+		for(int size : nn.batchSizes){
+			Assert.assertEquals(-1, size);
+		}
+		
+		batcher.stop();
+		Assert.assertEquals(4, batcher.getStatistics().batchSizes[1]);
+	}
+	
+	@Test
+	public void testUnbatchedOutputs() throws Exception {
+		// the output has no batch dimension, so each request is forwarded again on its own
+		Network nn = new Network(false);
+		ForwardBatcher batcher = new ForwardBatcher(nn, 3, 1000000);
+		
+		List<Promise<NeuralNetworkResult>> results = new ArrayList<>();
+		for(int i=0;i<3;i++){
+			Tensor input = new Tensor(2);
+			input.fill(i+1);
+			results.add(batcher.submit(null, null, input));
+		}
+		
+		for(int i=0;i<3;i++){
+			Tensor output = results.get(i).getValue().tensor;
+			Assert.assertEquals(1, output.size());
+			Assert.assertEquals(2*(i+1), output.get(0), 0.0001f);
+		}
+		
+		Assert.assertEquals(4, nn.batchSizes.size());
+		Assert.assertEquals(3, (int)nn.batchSizes.get(0));
+		for(int i=1;i<4;i++){
+			Assert.assertEquals(-1, (int)nn.batchSizes.get(i));
+		}
+		
+		batcher.stop();
+	}
+	
+	@Test
+	public void testStop() throws Exception {
+		// the first forward never completes by itself, so the others stay queued
+		Network nn = new Network(true);
+		nn.hold = new CountDownLatch(1);
+		ForwardBatcher batcher = new ForwardBatcher(nn, 4, 0);
+		
+		List<Promise<NeuralNetworkResult>> results = new ArrayList<>();
+		for(int i=0;i<3;i++){
+			Tensor input = new Tensor(2);
+			input.fill(i);
+			results.add(batcher.submit(null, null, input));
+			if(i == 0){
+				nn.hold.await();
+			}
+		}
+		Assert.assertFalse(results.get(0).isDone());
+		
+		batcher.stop();
+		
+		// the request in flight is forwarded again and the queued ones are forwarded unbatched
+		for(int i=0;i<3;i++){
+			Promise<NeuralNetworkResult> p = results.get(i);
+			Assert.assertTrue(p.isDone());
+			Assert.assertNull(String.valueOf(p.getFailure()), p.getFailure());
+			Assert.assertEquals(2*i, p.getValue().tensor.get(0), 0.0001f);
+		}
+	}
+	
+	@Test
+	public void testSubmitAfterStop() throws Exception {
+		Network nn = new Network(true);
+		ForwardBatcher batcher = new ForwardBatcher(nn, 4, 1000);
+		batcher.stop();
+		
+		Promise<NeuralNetworkResult> p = batcher.submit(null, null, new Tensor(2));
+		Assert.assertTrue(p.isDone());
+		Assert.assertNotNull(p.getFailure());
+		Assert.assertTrue(nn.batchSizes.isEmpty());
+	}
+	
+	/**
+	 * Doubles its input, or sums it into a single value without batch dimension, 
+	 * and records the batch size of each forward (-1 when not batched)
+	 */
+	private static class Network extends NeuralNetworkWrapper {
+		
+		private final boolean batched;
+		final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+		
+		// counted down at the first forward, that is never resolved
+		CountDownLatch hold = null;
+		
+		Network(boolean batched){
+			super(new NeuralNetworkInstanceDTO(UUID.randomUUID(), "Test", new HashMap<UUID, ModuleInstanceDTO>()), 
+					Collections.emptyList(), null, null);
+			this.batched = batched;
+		}
+		
+		@Override
+		Promise<NeuralNetworkResult> forwardUnbatched(UUID[] inputIds, UUID[] outputIds, Tensor[] ins, String... tags){
+			Tensor in = ins[0];
+			boolean batch = in.dim() > 1;
+			batchSizes.add(batch ? in.size(0) : -1);
+			
+			Deferred<NeuralNetworkResult> d = new Deferred<>();
+			if(hold != null && hold.getCount() > 0){
+				hold.countDown();
+				return d.getPromise();
+			}
+			
+			Tensor out = batched ? TensorOps.mul(null, in, 2.0f) : new Tensor(new float[]{TensorOps.sum(in)}, 1);
+			Map<UUID, Tensor> outputs = new HashMap<>();
+			outputs.put(outputIds == null ? OUTPUT : outputIds[0], out);
+			d.resolve(new NeuralNetworkResult(outputs, tags));
+			return d.getPromise();
+		}
+	}
+}
@@ -23,18 +23,22 @@
 package be.iminds.iot.dianne.repository.file;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -42,11 +46,15 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
@@ -61,9 +69,13 @@ import org.osgi.service.component.annotations.ReferencePolicy;
 
 import be.iminds.iot.dianne.api.nn.module.dto.ModuleDTO;
 import be.iminds.iot.dianne.api.nn.module.dto.NeuralNetworkDTO;
+import be.iminds.iot.dianne.api.repository.CompressedTensor;
 import be.iminds.iot.dianne.api.repository.DianneRepository;
+import be.iminds.iot.dianne.api.repository.RepositoryCacheStatistics;
 import be.iminds.iot.dianne.api.repository.RepositoryListener;
+import be.iminds.iot.dianne.api.repository.VersionedParameters;
 import be.iminds.iot.dianne.nn.util.DianneJSONConverter;
+import be.iminds.iot.dianne.nn.util.DianneTensorFile;
 import be.iminds.iot.dianne.tensor.Tensor;
 import be.iminds.iot.dianne.tensor.TensorOps;
 
@@ -78,6 +90,26 @@ public class DianneFileRepository implements DianneRepository {
 	
 	private final DianneRepositoryLock lock = new DianneRepositoryLock();
 	
+	// in-memory cache of recently used parameters, null if disabled
+	private ParameterCache cache;
+	private long cacheSize = 256;
+	
+	// force stored parameters to the storage device before they replace the previous ones
+	private boolean sync = true;
+	
+	// versions of stored parameters, unique over restarts of the repository
+	private static final AtomicLong clock = new AtomicLong(System.currentTimeMillis()*1000);
+	
+	// location of all parameters by parameters id
+	private volatile Map<String, ParameterLocation> locations;
+	private volatile boolean stale = true;
+	
+	// watches the storage dirs for changes from outside
+	private volatile WatchService watcher;
+	
+	// keeps the authoritative parameters in memory when running as parameter server
+	private ParameterServer server;
+	
 	@Activate
 	public void activate(BundleContext context){
 		String s = context.getProperty("be.iminds.iot.dianne.storage");
@@ -86,11 +118,77 @@ public class DianneFileRepository implements DianneRepository {
 		}
 		File d = new File(dir+File.separator+subdir+File.separator);
 		d.mkdirs();
+		
+		// maximum size of the parameter cache in MB, 0 disables caching
+		String c = context.getProperty("be.iminds.iot.dianne.repository.cache");
+		if(c!=null){
+			cacheSize = Long.parseLong(c);
+		}
+		
+		String sy = context.getProperty("be.iminds.iot.dianne.repository.sync");
+		if(sy!=null){
+			sync = Boolean.parseBoolean(sy);
+		}
+		
+		// run as parameter server, with the parameters in memory and checkpointed to storage
+		if(Boolean.parseBoolean(context.getProperty("be.iminds.iot.dianne.repository.server"))){
+			int stripes = 64;
+			String st = context.getProperty("be.iminds.iot.dianne.repository.stripes");
+			if(st!=null){
+				stripes = Integer.parseInt(st);
+			}
+			
+			long interval = 10000;
+			String i = context.getProperty("be.iminds.iot.dianne.repository.checkpoint");
+			if(i!=null){
+				interval = Long.parseLong(i);
+			}
+			
+			server = new ParameterServer(new ParameterServer.Storage() {
+				@Override
+				public Tensor load(String pid) throws Exception {
+					ParameterLocation location = location(pid);
+					if(location == null){
+						throw new FileNotFoundException();
+					}
+					return read(location);
+				}
+				
+				@Override
+				public void store(String pid, Tensor parameters) throws IOException {
+					File f = new File(dir+File.separator+subdir+File.separator+pid);
+					DianneTensorFile.write(f, parameters, sync);
+					updateLocation(pid, new ParameterLocation(f, null, null));
+				}
+			}, stripes, interval);
+		} else if(cacheSize > 0){
+			// no need to cache when the parameter server keeps everything in memory
+			cache = new ParameterCache(cacheSize*1024*1024);
+		}
+		
+		try {
+			watcher = FileSystems.getDefault().newWatchService();
+			Thread t = new Thread(this::watch, "Dianne Repository Watcher");
+			t.setDaemon(true);
+			t.start();
+		} catch(IOException e){
+			System.out.println("Failed to watch repository directory, parameter index will be rebuilt on each miss");
+		}
 	}
 	
 	@Deactivate
 	public void deactivate(){
 		executor.shutdownNow();
+		
+		if(server != null){
+			server.stop();
+		}
+		
+		closeWatcher();
+		
+		if(cache != null){
+			cache.clear();
+		}
 	}
 	
 	@Override
@@ -216,6 +314,31 @@ public class DianneFileRepository implements DianneRepository {
 		return parameters;
 	}
 	
+	@Override
+	public VersionedParameters loadChangedParameters(Map<UUID, Long> versions, String... tag){
+		VersionedParameters result = new VersionedParameters();
+		for(Entry<UUID, Long> e : versions.entrySet()){
+			UUID moduleId = e.getKey();
+			
+			// get the version first, so we never report a newer version than the parameters we return
+			long version = version(moduleId, tag);
+			if(version < 0){
+				// no parameters for this module
+				continue;
+			}
+			
+			result.versions.put(moduleId, version);
+			if(e.getValue() == null || version != e.getValue()){
+				try {
+					result.parameters.put(moduleId, load(moduleId, tag));
+				} catch(Exception ex){
+					result.versions.remove(moduleId);
+				}
+			}
+		}
+		return result;
+	}
+	
 	@Override
 	public void storeParameters(UUID nnId, UUID moduleId, Tensor parameters, String... tag) {
 		store(subdir, moduleId, parameters, tag);
@@ -237,6 +360,15 @@ public class DianneFileRepository implements DianneRepository {
 		parameters.entrySet().stream().forEach(e -> store(nn, e.getKey(), e.getValue(), tag));
 	}
 	
+	@Override
+	public void storeCompressedParameters(UUID nnId, Map<UUID, CompressedTensor> parameters, String... tag) {
+		parameters.entrySet().stream().forEach(e -> store(subdir, e.getKey(), e.getValue().decode(null), e.getValue(), tag));
+		
+		List<UUID> uuids = new ArrayList<UUID>();
+		uuids.addAll(parameters.keySet());
+		notifyListeners(nnId, uuids, tag);
+	}
+	
 	@Override
 	public Set<String> listTags(UUID moduleId){
 		Set<String> tags = new TreeSet<>();
@@ -251,6 +383,13 @@ public class DianneFileRepository implements DianneRepository {
 			tags.addAll(listTags(moduleId, f));
 		}
 		
+		// parameters that are not yet checkpointed
+		if(server != null){
+			server.ids().stream()
+				.filter(pid -> pid.length() > 37 && pid.startsWith(moduleId.toString()))
+				.forEach(pid -> parseTags(pid.substring(37), tags));
+		}
+		
 		return tags;
 	}
 
@@ -334,6 +473,20 @@ public class DianneFileRepository implements DianneRepository {
 
 	}
 	
+	@Override
+	public void accCompressedParameters(UUID nnId, Map<UUID, CompressedTensor> accParameters, String... tag) {
+		Map<UUID, Tensor> decoded = new HashMap<>();
+		accParameters.entrySet().stream().forEach(e -> decoded.put(e.getKey(), e.getValue().decode(null)));
+		accParameters(nnId, decoded, tag);
+	}
+	
+	@Override
+	public RepositoryCacheStatistics getCacheStatistics(){
+		if(cache == null)
+			return null;
+		return cache.getStatistics();
+	}
+	
 	@Override
 	public long spaceLeft() {
 		File d = new File(dir);
@@ -341,96 +494,101 @@ public class DianneFileRepository implements DianneRepository {
 	}
 	
 	private Tensor load(UUID moduleId, String... tag){
+		String pid = parametersId(moduleId, tag);
 		try {
-			lock.read(moduleId);
-			
-			// first check weights, next check all other nn dirs
-			File f = new File(dir+File.separator+subdir+File.separator+parametersId(moduleId, tag));
-			if(f.exists()){
-				try (DataInputStream is = new DataInputStream(
-						new BufferedInputStream(new FileInputStream(f)));
-				){
-					return readTensor(is);
-				} catch(IOException e){
-				} 
+			if(server != null){
+				return server.load(moduleId, pid);
 			}
 			
-			File d = new File(dir);
-			for(File dd : d.listFiles()){
-				if(dd.isDirectory()){
-					f = new File(dir+File.separator+dd.getName()+File.separator+parametersId(moduleId, tag));
-					if(f.exists()){
-						try (DataInputStream is = new DataInputStream(
-								new BufferedInputStream(new FileInputStream(f)));
-						){
-							return readTensor(is);
-						} catch(IOException e){
-							// ignore errors
-						}
+			lock.read(moduleId);
+			try {
+				if(cache != null){
+					Tensor cached = cache.get(pid);
+					if(cached != null){
+						return cached;
 					}
-				} else {
-					try (
-						ZipFile zip = new ZipFile(dd);
-						DataInputStream is = new DataInputStream(
-								new BufferedInputStream(
-									zip.getInputStream(zip.getEntry(parametersId(moduleId, tag)))));
-					){
-						return readTensor(is);
-					} catch(IOException|NullPointerException e){
-						// ignore errors and/or nullpointer (in case zip does not contain module params)
-					} 
 				}
+				
+				ParameterLocation location = location(pid);
+				if(location == null){
+					throw new FileNotFoundException();
+				}
+				
+				Tensor parameters = read(location);
+				if(cache != null){
+					cache.put(pid, parameters.copyInto(null), location.version);
+				}
+				return parameters;
+			} finally {
+				lock.free(moduleId);
 			}
-			throw new FileNotFoundException();
 		} catch(Exception e){
 			throw new RuntimeException("Failed to load parameters for module "+moduleId+" with tags "+Arrays.toString(tag), e);
-		} finally {
-			lock.free(moduleId);
 		}
 	}
 	
-	private Tensor readTensor(DataInputStream is) throws IOException{
-		// load tensor in chunks, slightly slower than one copy from Java to native,
-		// but reduces memory usage a lot for big tensors
-		int bufferSize = 10000;
-		float[] data = new float[bufferSize];
-		
-		int length = is.readInt();
-		Tensor t = new Tensor(length);
-		int index = 0;
-		while(length > 0){
-			if(length<bufferSize){
-				bufferSize = length;
-				data = new float[bufferSize];
-			}
-			
-			for(int i=0;i<bufferSize;i++){
-				data[i] = is.readFloat();
-			}
-			
-			t.narrow(0, index, bufferSize).set(data);;
-			
-			length -= bufferSize;
-			index+= bufferSize;
+	private ParameterLocation location(String pid){
+		// without file watching the index might be outdated, rebuild in case of a miss
+		ParameterLocation location = locations().get(pid);
+		if(location == null && watcher == null){
+			stale = true;
+			location = locations().get(pid);
 		}
-		return t;
+		return location;
 	}
 	
+	private Tensor read(ParameterLocation location) throws IOException {
+		try {
+			return location.read();
+		} catch(IOException e){
+			// file might be gone, rebuild the index next time
+			stale = true;
+			throw e;
+		}
+	}
+	
+	private long version(UUID moduleId, String... tag){
+		String pid = parametersId(moduleId, tag);
+		if(server != null){
+			return server.version(moduleId, pid);
+		}
+		
+		ParameterLocation location = location(pid);
+		if(location == null){
+			return -1;
+		}
+		return location.version;
+	}
 	
 	private void store(String subdir, UUID moduleId, Tensor parameters, String... tag){
+		store(subdir, moduleId, parameters, null, tag);
+	}
+	
+	// in case compressed is not null, this is written to file instead of the (decoded) parameters
+	private void store(String subdir, UUID moduleId, Tensor parameters, CompressedTensor compressed, String... tag){
+		String pid = parametersId(moduleId, tag);
+		if(server != null && subdir.equals(this.subdir)){
+			server.store(moduleId, pid, parameters);
+			return;
+		}
+		
 		try {
 			lock.write(moduleId);
 			
-			File f = new File(dir+File.separator+subdir+File.separator+parametersId(moduleId, tag));
+			File f = new File(dir+File.separator+subdir+File.separator+pid);
 	
-			try(DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)))) {
-				float[] data = parameters.get();
-				os.writeInt(data.length);
-				for(int i=0;i<data.length;i++){
-					os.writeFloat(data[i]);
+			try {
+				if(compressed != null){
+					DianneTensorFile.write(f, compressed, sync);
+				} else {
+					DianneTensorFile.write(f, parameters, sync);
+				}
+				
+				// always a new version, even if the file modification time did not change
+				ParameterLocation location = new ParameterLocation(f, null, null);
+				if(updateLocation(pid, location) && cache != null){
+					cache.put(pid, parameters.copyInto(null), location.version);
 				}
-				os.flush();
-				os.close();
 			} catch(IOException e){
 				e.printStackTrace();
 			}
@@ -441,7 +599,235 @@ public class DianneFileRepository implements DianneRepository {
 		}
 	}
 	
+	/**
+	 * The location of each parameters id, indexed once by scanning the weights dir, 
+	 * all neural network dirs and zip files. The index is kept up to date by the watcher
+	 * and by the parameters stored through this repository.
+	 */
+	private Map<String, ParameterLocation> locations(){
+		Map<String, ParameterLocation> l = locations;
+		if(l == null || stale){
+			synchronized(this){
+				if(locations == null || stale){
+					stale = false;
+					locations = scan(locations);
+				}
+				l = locations;
+			}
+		}
+		return l;
+	}
+	
+	// keeps the versions of the previous index for the files that did not change
+	private Map<String, ParameterLocation> scan(Map<String, ParameterLocation> previous){
+		Map<String, ParameterLocation> index = new ConcurrentHashMap<>();
+		Map<String, ParameterLocation> prev = previous == null ? Collections.emptyMap() : previous;
+		
+		// first check weights, next check all other nn dirs
+		File w = new File(dir+File.separator+subdir);
+		scan(w, index, prev);
+		
+		File d = new File(dir);
+		for(File dd : d.listFiles()){
+			if(dd.isDirectory()){
+				if(!dd.getName().equals(subdir)){
+					scan(dd, index, prev);
+				}
+			} else {
+				try (ZipFile zip = new ZipFile(dd)){
+					zip.stream().forEach(e -> index.putIfAbsent(e.getName(), new ParameterLocation(dd, e.getName(), prev.get(e.getName()))));
+				} catch(IOException e){
+					// ignore files that are no zips
+				} 
+			}
+		}
+		return index;
+	}
+	
+	private void scan(File d, Map<String, ParameterLocation> index, Map<String, ParameterLocation> previous){
+		File[] files = d.listFiles();
+		if(files == null)
+			return;
+		
+		for(File f : files){
+			if(f.isFile() && !f.getName().startsWith(".")){
+				index.putIfAbsent(f.getName(), new ParameterLocation(f, null, previous.get(f.getName())));
+			}
+		}
+	}
+	
+	/**
+	 * Update the index with a new location for these parameters, unless the parameters 
+	 * are also available in the weights dir, which takes precedence, or a newer version
+	 * of the same file is already indexed.
+	 * 
+	 * @return whether the index now points to this location
+	 */
+	private boolean updateLocation(String pid, ParameterLocation location){
+		Map<String, ParameterLocation> index = locations;
+		if(index == null)
+			return true;
+		
+		boolean weights = location.file.getParentFile().getName().equals(subdir);
+		boolean[] updated = new boolean[1];
+		index.compute(pid, (id, current) -> {
+			if(current != null && current.sameFile(location) && current.version > location.version){
+				// never go back to an older version
+				return current;
+			}
+			
+			if(weights || current == null || current.file.equals(location.file) 
+					|| !current.file.getParentFile().getName().equals(subdir)){
+				updated[0] = true;
+				return location;
+			}
+			return current;
+		});
+		return updated[0];
+	}
+	
+	private void watch(){
+		Path root = Paths.get(dir).toAbsolutePath();
+		try {
+			register(root);
+			for(File d : root.toFile().listFiles()){
+				if(d.isDirectory()){
+					register(d.toPath());
+				}
+			}
+		} catch(IOException e){
+			System.out.println("Failed to watch repository directory, parameter index will be rebuilt on each miss");
+			closeWatcher();
+			return;
+		}
+		
+		while(true){
+			WatchService w = watcher;
+			if(w == null)
+				return;
+			
+			WatchKey key;
+			try {
+				key = w.take();
+			} catch(InterruptedException|ClosedWatchServiceException e){
+				return;
+			}
+			
+			Path d = (Path)key.watchable();
+			for(WatchEvent<?> event : key.pollEvents()){
+				if(event.kind() == StandardWatchEventKinds.OVERFLOW){
+					stale = true;
+					if(cache != null)
+						cache.clear();
+					continue;
+				}
+				
+				Path p = d.resolve((Path)event.context());
+				String name = p.getFileName().toString();
+				if(name.startsWith("."))
+					continue;
+				
+				if(d.equals(root)){
+					// new neural network dir or zip file
+					if(Files.isDirectory(p)){
+						try {
+							register(p);
+						} catch(IOException e){}
+					} else if(cache != null){
+						// zip contents might have changed
+						cache.clear();
+					}
+					stale = true;
+				} else {
+					File f = p.toFile();
+					if(f.exists()){
+						Map<String, ParameterLocation> index = locations;
+						ParameterLocation location = new ParameterLocation(f, null, index == null ? null : index.get(name));
+						if(updateLocation(name, location) && cache != null){
+							// only invalidate when not written by ourselves
+							cache.invalidate(name, location.version);
+						}
+					} else {
+						stale = true;
+						if(cache != null)
+							cache.remove(name);
+					}
+				}
+			}
+			
+			if(!key.reset()){
+				// directory is gone
+				stale = true;
+			}
+		}
+	}
+	
+	private void register(Path d) throws IOException {
+		d.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+	}
+	
+	private synchronized void closeWatcher(){
+		if(watcher != null){
+			try {
+				watcher.close();
+			} catch(IOException e){}
+			watcher = null;
+		}
+	}
+	
+	/**
+	 * Location of stored parameters. Each location gets a new version, unless it is the
+	 * same file with the same modification time and length as the previous location, 
+	 * as the modification time alone is too coarse to distinguish subsequent stores.
+	 */
+	private static class ParameterLocation {
+		
+		final File file;
+		// entry in case of a zip file
+		final String entry;
+		
+		final long modified;
+		final long length;
+		final long version;
+		
+		ParameterLocation(File file, String entry, ParameterLocation previous){
+			this.file = file;
+			this.entry = entry;
+			this.modified = file.lastModified();
+			this.length = file.length();
+			
+			if(previous != null && sameFile(previous) 
+					&& previous.modified == modified && previous.length == length){
+				this.version = previous.version;
+			} else {
+				this.version = clock.incrementAndGet();
+			}
+		}
+		
+		boolean sameFile(ParameterLocation other){
+			return file.equals(other.file) && Objects.equals(entry, other.entry);
+		}
+		
+		Tensor read() throws IOException {
+			if(entry == null){
+				return DianneTensorFile.read(file);
+			}
+			
+			try (
+				ZipFile zip = new ZipFile(file);
+				InputStream is = new BufferedInputStream(zip.getInputStream(zip.getEntry(entry)));
+			){
+				return DianneTensorFile.read(is);
+			} 
+		}
+	}
+	
 	private  void acc(UUID moduleId, Tensor accParameters, String... tag){
+		if(server != null){
+			server.acc(moduleId, parametersId(moduleId, tag), accParameters);
+			return;
+		}
+		
 		try {
 			lock.write(moduleId);
 			Tensor parameters = accParameters;
@@ -0,0 +1,149 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.repository.file;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import be.iminds.iot.dianne.api.repository.RepositoryCacheStatistics;
+import be.iminds.iot.dianne.tensor.Tensor;
+
+/**
+ * LRU cache of parameter Tensors, bounded by the number of bytes of the cached Tensors.
+ * 
+ * Parameters are cached by their parameters id (moduleId and tags). As callers 
+ * are free to modify the Tensors they get from the repository, the cache hands
+ * out copies.
+ * 
+ * @author tverbele
+ *
+ */
+class ParameterCache {
+
+	private final long maxBytes;
+	
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long residentBytes = 0;
+	
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	
+	private static class Entry {
+		final Tensor parameters;
+		final long bytes;
+		// version of the stored parameters
+		final long version;
+		
+		Entry(Tensor parameters, long version){
+			this.parameters = parameters;
+			this.bytes = 4L*parameters.size();
+			this.version = version;
+		}
+	}
+	
+	ParameterCache(long maxBytes){
+		this.maxBytes = maxBytes;
+	}
+	
+	/**
+	 * @return a copy of the cached parameters, or null if not cached
+	 */
+	synchronized Tensor get(String pid){
+		Entry e = entries.get(pid);
+		if(e == null){
+			misses++;
+			return null;
+		}
+		hits++;
+		return e.parameters.copyInto(null);
+	}
+	
+	/**
+	 * Cache parameters, the cache takes ownership of the Tensor
+	 */
+	synchronized void put(String pid, Tensor parameters, long version){
+		Entry e = new Entry(parameters, version);
+		if(e.bytes > maxBytes){
+			remove(pid);
+			parameters.release();
+			return;
+		}
+		
+		Entry old = entries.put(pid, e);
+		if(old != null){
+			residentBytes -= old.bytes;
+			old.parameters.release();
+		}
+		residentBytes += e.bytes;
+		
+		// evict least recently used entries
+		Iterator<Entry> it = entries.values().iterator();
+		while(residentBytes > maxBytes && it.hasNext()){
+			Entry evict = it.next();
+			it.remove();
+			residentBytes -= evict.bytes;
+			evict.parameters.release();
+			evictions++;
+		}
+	}
+	
+	synchronized void remove(String pid){
+		Entry e = entries.remove(pid);
+		if(e != null){
+			residentBytes -= e.bytes;
+			e.parameters.release();
+		}
+	}
+	
+	/**
+	 * Remove the cached parameters unless these are still the parameters of the given version
+	 */
+	synchronized void invalidate(String pid, long version){
+		Entry e = entries.get(pid);
+		if(e != null && e.version != version){
+			remove(pid);
+		}
+	}
+	
+	synchronized void clear(){
+		for(Entry e : entries.values()){
+			e.parameters.release();
+		}
+		entries.clear();
+		residentBytes = 0;
+	}
+	
+	synchronized RepositoryCacheStatistics getStatistics(){
+		RepositoryCacheStatistics stats = new RepositoryCacheStatistics();
+		stats.hits = hits;
+		stats.misses = misses;
+		stats.evictions = evictions;
+		stats.entries = entries.size();
+		stats.residentBytes = residentBytes;
+		stats.maxBytes = maxBytes;
+		return stats;
+	}
+	
+}
@@ -0,0 +1,246 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.repository.file;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import be.iminds.iot.dianne.tensor.Tensor;
+import be.iminds.iot.dianne.tensor.TensorOps;
+
+/**
+ * Keeps the authoritative parameters in memory, for asynchronous updates of many learners.
+ * 
+ * Modules are sharded over a number of lock stripes, so that updates of different modules 
+ * proceed concurrently, while an update of a module is applied atomically. Each update 
+ * gives the parameters a new version. Changed parameters are written to storage 
+ * asynchronously at a fixed interval.
+ * 
+ * @author tverbele
+ *
+ */
+class ParameterServer {
+
+	interface Storage {
+		
+		Tensor load(String pid) throws Exception;
+		
+		void store(String pid, Tensor parameters) throws IOException;
+		
+	}
+	
+	private final Storage storage;
+	
+	private final ReadWriteLock[] stripes;
+	private final Map<String, Slot> slots = new ConcurrentHashMap<>();
+	
+	// versions are unique over restarts of the server
+	private final AtomicLong clock = new AtomicLong(System.currentTimeMillis()*1000);
+	
+	private final ScheduledExecutorService checkpointer;
+	
+	private static class Slot {
+		final Tensor parameters;
+		volatile long version;
+		volatile boolean dirty;
+		
+		Slot(Tensor parameters, long version){
+			this.parameters = parameters;
+			this.version = version;
+		}
+	}
+	
+	/**
+	 * @param storage storage to load parameters that are not in memory and to checkpoint to
+	 * @param noStripes number of lock stripes
+	 * @param checkpointInterval interval in ms to write changed parameters to storage
+	 */
+	ParameterServer(Storage storage, int noStripes, long checkpointInterval){
+		this.storage = storage;
+		this.stripes = new ReadWriteLock[noStripes];
+		for(int i=0;i<noStripes;i++){
+			stripes[i] = new ReentrantReadWriteLock();
+		}
+		
+		this.checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "Dianne Parameter Server Checkpoint");
+			t.setDaemon(true);
+			return t;
+		});
+		this.checkpointer.scheduleWithFixedDelay(this::checkpoint, checkpointInterval, checkpointInterval, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * @return a copy of the current parameters
+	 */
+	Tensor load(UUID moduleId, String pid) throws Exception {
+		ReadWriteLock lock = stripe(moduleId);
+		lock.readLock().lock();
+		try {
+			Slot s = slots.get(pid);
+			if(s != null){
+				return s.parameters.copyInto(null);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		
+		lock.writeLock().lock();
+		try {
+			return slot(pid).parameters.copyInto(null);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * @return the current version of the parameters, or -1 if there are no parameters
+	 */
+	long version(UUID moduleId, String pid){
+		Slot s = slots.get(pid);
+		if(s != null){
+			return s.version;
+		}
+		
+		ReadWriteLock lock = stripe(moduleId);
+		lock.writeLock().lock();
+		try {
+			return slot(pid).version;
+		} catch(Exception e){
+			return -1;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	void store(UUID moduleId, String pid, Tensor parameters){
+		ReadWriteLock lock = stripe(moduleId);
+		lock.writeLock().lock();
+		try {
+			Slot s = slots.get(pid);
+			if(s == null){
+				s = new Slot(parameters.copyInto(null), 0);
+				slots.put(pid, s);
+			} else {
+				parameters.copyInto(s.parameters);
+			}
+			s.version = clock.incrementAndGet();
+			s.dirty = true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	void acc(UUID moduleId, String pid, Tensor accParameters){
+		ReadWriteLock lock = stripe(moduleId);
+		lock.writeLock().lock();
+		try {
+			Slot s = slots.get(pid);
+			if(s == null){
+				try {
+					s = slot(pid);
+					TensorOps.add(s.parameters, s.parameters, accParameters);
+				} catch(Exception e){
+					System.out.println("Failed to load parameters for "+pid+", store as new");
+					s = new Slot(accParameters.copyInto(null), 0);
+					slots.put(pid, s);
+				}
+			} else {
+				TensorOps.add(s.parameters, s.parameters, accParameters);
+			}
+			s.version = clock.incrementAndGet();
+			s.dirty = true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	Set<String> ids(){
+		return slots.keySet();
+	}
+	
+	/**
+	 * Write all changed parameters to storage
+	 */
+	void checkpoint(){
+		for(Map.Entry<String, Slot> e : slots.entrySet()){
+			Slot s = e.getValue();
+			if(!s.dirty)
+				continue;
+			
+			// copy under lock, write outside
+			ReadWriteLock lock = stripe(UUID.fromString(e.getKey().substring(0, 36)));
+			Tensor copy;
+			lock.readLock().lock();
+			try {
+				copy = s.parameters.copyInto(null);
+				s.dirty = false;
+			} finally {
+				lock.readLock().unlock();
+			}
+			
+			try {
+				storage.store(e.getKey(), copy);
+			} catch(IOException ex){
+				System.out.println("Failed to checkpoint parameters "+e.getKey());
+				s.dirty = true;
+			} finally {
+				copy.release();
+			}
+		}
+	}
+	
+	/**
+	 * Stop checkpointing and write all changed parameters
+	 */
+	void stop(){
+		checkpointer.shutdown();
+		try {
+			checkpointer.awaitTermination(1, TimeUnit.MINUTES);
+		} catch(InterruptedException e){}
+		checkpoint();
+	}
+	
+	// get the slot, loading it from storage if needed, only call while holding the write lock
+	private Slot slot(String pid) throws Exception {
+		Slot s = slots.get(pid);
+		if(s == null){
+			s = new Slot(storage.load(pid), clock.incrementAndGet());
+			slots.put(pid, s);
+		}
+		return s;
+	}
+	
+	private ReadWriteLock stripe(UUID moduleId){
+		return stripes[(moduleId.hashCode() & Integer.MAX_VALUE) % stripes.length];
+	}
+}
@@ -0,0 +1,187 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.repository.file;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import be.iminds.iot.dianne.tensor.NativeTensorLoader;
+import be.iminds.iot.dianne.tensor.Tensor;
+
+public class ParameterServerTest {
+
+	private static final int SIZE = 1000;
+	
+	@BeforeClass
+	public static void load() {
+		NativeTensorLoader loader = new NativeTensorLoader();
+		loader.activate(null);
+	}
+	
+	@Test
+	public void testConcurrentAccLoadVersion() throws Exception {
+		Map<String, Tensor> stored = new ConcurrentHashMap<>();
+		ParameterServer server = new ParameterServer(new ParameterServer.Storage() {
+			@Override
+			public Tensor load(String pid) throws Exception {
+				Tensor t = stored.get(pid);
+				if(t == null){
+					throw new IOException("No parameters for "+pid);
+				}
+				return t.copyInto(null);
+			}
+
+			@Override
+			public void store(String pid, Tensor parameters) throws IOException {
+				stored.put(pid, parameters.copyInto(null));
+			}
+		}, 4, 10);
+		
+		UUID moduleId = UUID.randomUUID();
+		String pid = moduleId.toString();
+		Assert.assertEquals(-1, server.version(moduleId, pid));
+		
+		Tensor zero = new Tensor(SIZE);
+		zero.fill(0.0f);
+		server.store(moduleId, pid, zero);
+		long initial = server.version(moduleId, pid);
+		
+		int pushers = 4;
+		int pullers = 4;
+		int updates = 500;
+		
+		CountDownLatch start = new CountDownLatch(1);
+		CountDownLatch pushed = new CountDownLatch(pushers);
+		AtomicReference<Throwable> error = new AtomicReference<>();
+		List<Thread> threads = new ArrayList<>();
+		
+		for(int i=0;i<pushers;i++){
+			threads.add(new Thread(() -> {
+				try {
+					start.await();
+					Tensor one = new Tensor(SIZE);
+					one.fill(1.0f);
+					for(int k=0;k<updates;k++){
+						server.acc(moduleId, pid, one);
+					}
+				} catch(Throwable t){
+					error.compareAndSet(null, t);
+				} finally {
+					pushed.countDown();
+				}
+			}));
+		}
+		
+		for(int i=0;i<pullers;i++){
+			threads.add(new Thread(() -> {
+				try {
+					start.await();
+					long lastVersion = initial;
+					float lastValue = 0;
+					while(pushed.getCount() > 0){
+						long version = server.version(moduleId, pid);
+						Tensor p = server.load(moduleId, pid);
+						
+						// versions only increase
+						Assert.assertTrue(version >= lastVersion);
+						
+						// an update is applied atomically
+						float[] data = p.get();
+						for(float f : data){
+							Assert.assertEquals(data[0], f, 0.0f);
+						}
+						
+						// the parameters never go back to an older version
+						Assert.assertTrue(data[0] >= lastValue);
+						
+						lastVersion = version;
+						lastValue = data[0];
+						p.release();
+					}
+				} catch(Throwable t){
+					error.compareAndSet(null, t);
+				}
+			}));
+		}
+		
+		threads.forEach(Thread::start);
+		start.countDown();
+		for(Thread t : threads){
+			t.join();
+		}
+		
+		if(error.get() != null){
+			throw new AssertionError("Concurrent access failed", error.get());
+		}
+		
+		// no update is lost, and each update gives a new version
+		Tensor result = server.load(moduleId, pid);
+		for(float f : result.get()){
+			Assert.assertEquals(pushers*updates, f, 0.0f);
+		}
+		Assert.assertTrue(server.version(moduleId, pid) >= initial + pushers*updates);
+		
+		// all updates are checkpointed when stopped
+		server.stop();
+		Assert.assertEquals(result, stored.get(pid));
+	}
+	
+	@Test
+	public void testVersionsIncreaseOnStore() throws Exception {
+		ParameterServer server = new ParameterServer(new ParameterServer.Storage() {
+			@Override
+			public Tensor load(String pid) throws Exception {
+				throw new IOException("No parameters for "+pid);
+			}
+
+			@Override
+			public void store(String pid, Tensor parameters) throws IOException {
+			}
+		}, 1, 1000);
+		
+		UUID moduleId = UUID.randomUUID();
+		String pid = moduleId.toString();
+		Tensor t = new Tensor(SIZE);
+		
+		// subsequent stores within the same millisecond still get a new version
+		long previous = -1;
+		for(int i=0;i<100;i++){
+			t.fill(i);
+			server.store(moduleId, pid, t);
+			long version = server.version(moduleId, pid);
+			Assert.assertTrue(version > previous);
+			previous = version;
+		}
+		server.stop();
+	}
+}
@@ -31,9 +31,11 @@ import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
@@ -82,6 +84,8 @@ public class AgentImpl implements Agent {
 	private ExperiencePool pool;
 	private String environment;
 	private Environment env;
+	// in case of acting on multiple environments in parallel
+	private List<Environment> environments;
 	
 	private AgentConfig config;
 	private Map<String, String> properties;
@@ -208,6 +212,18 @@ public class AgentImpl implements Agent {
 			}
 			env.setup(properties);
 			
+			environments = new ArrayList<>();
+			environments.add(env);
+			for(int k=1;k<this.config.environments;k++){
+				Environment e = env.newInstance();
+				if(e == null){
+					System.out.println("Environment "+environment+" does not support multiple instances, acting on a single environment");
+					break;
+				}
+				e.setup(properties);
+				environments.add(e);
+			}
+			
 			if(experiencePool != null){
 				// add env state/actionDims in case we need to construct xp pool
 				if(!config.containsKey("stateDims")){
@@ -236,7 +252,7 @@ public class AgentImpl implements Agent {
 		} catch(Exception e){
 			System.err.println("Failed starting agent");
 			e.printStackTrace();
-			env.cleanup();
+			cleanupEnvironments();
 			acting = false;
 			throw e;
 		}
@@ -315,37 +331,32 @@ public class AgentImpl implements Agent {
 					actionListenerReg = context.registerService(ActionController.class, (ActionController)strategy, props);
 				}
 		
-				s.input = env.getObservation(s.input);
-	
-				progress = new AgentProgress(seq, 0, 0, 0, false, epoch);
-				
 				if(config.clear){
 					pool.reset();
 				}
 				
+				if(environments.size() > 1){
+					actParallel();
+					return;
+				}
+		
+				// with an experience pool the transitions are written straight into the upload buffer
+				s = slot(s, 0);
+				s.input = env.getObservation(s.input);
+	
+				progress = new AgentProgress(seq, 0, 0, 0, false, epoch);
+				
+				long steps = 0;
+				long start = System.currentTimeMillis();
 				while(acting) {
 					// sync parameters
 					if(sync && count == 0){
-						for(int k=0;k<nns.length;k++){
-							if(config.tag.length == nns.length) {
-								try {
-									nns[k].loadParameters(config.tag[k]);
-								} catch(Exception e){
-									System.out.println("Failed loading parameters for nn "+nns[k].getId()+" - "+nns[k].getNeuralNetworkInstance().name+" with tag(s) "+config.tag[k]);
-								}
-							} else {
-								try {
-									nns[k].loadParameters(config.tag);
-								} catch(Exception e){
-									System.out.println("Failed loading parameters for nn "+nns[k].getId()+" - "+nns[k].getNeuralNetworkInstance().name+" with tag(s) "+Arrays.toString(config.tag));
-								}
-							}
-						}
-						sync = false;
+						syncParameters();
 					}
 					
 					// select action according to strategy
-					s.target = strategy.processIteration(progress.sequence, progress.iterations, s.input);
+					Tensor action = strategy.processIteration(progress.sequence, progress.iterations, s.input);
+					s.target = pool == null ? action : action.copyInto(s.target);
 	
 					// execute action and get reward
 					float reward = env.performAction(s.target);
@@ -362,6 +373,7 @@ public class AgentImpl implements Agent {
 					progress.reward+=reward;
 					progress.last = reward;
 					progress.iterations++;
+					steps++;
 					
 					// get the next state
 					s.nextState = env.getObservation(s.nextState);
@@ -377,21 +389,9 @@ public class AgentImpl implements Agent {
 					
 					// upload in batch
 					if(pool != null) {
-						ExperiencePoolSample b;
-						if(uploadBuffer.size() <= count){
-							b = new ExperiencePoolSample();
-							uploadBuffer.add(b);
-						} else {
-							b = uploadBuffer.get(count);
-						}
-						b.input = s.input.copyInto(b.input);
-						b.target = s.target.copyInto(b.target);
-						b.reward = s.reward.copyInto(b.reward);
-						b.terminal = s.terminal.copyInto(b.terminal);
-						b.nextState = s.isTerminal() ? null : s.nextState.copyInto(b.nextState);
 						count++;
 						
-						if(b.isTerminal() || (config.maxActions > 0 && config.maxActions <= progress.iterations)){
+						if(s.isTerminal() || (config.maxActions > 0 && config.maxActions <= progress.iterations)){
 							// sequence finished, upload to pool
 							upload = new Sequence<ExperiencePoolSample>(uploadBuffer.subList(0, count), count);
 							if(pool!=null){
@@ -410,17 +410,9 @@ public class AgentImpl implements Agent {
 					if(s.isTerminal() || (config.maxActions > 0 && config.maxActions <= progress.iterations)){
 						
 						// store if we observed best reward so far
-						if(config.tagBest){
-							if(progress.reward > maxReward){
-								maxReward = progress.reward;
-								for(int i=0;i<nns.length;i++){
-									if(config.tag.length == nns.length)
-										nns[i].storeParameters(config.tag[i],"best");
-									else
-										nns[i].storeParameters(config.tag[0],"best");
-								}
-							}
-						}
+						storeBest(progress);
+						
+						progress.stepsPerSecond = steps*1000f/Math.max(1, System.currentTimeMillis()-start);
 						
 						// trace agent per sequence
 						if(seq % config.traceInterval == 0){
@@ -433,6 +425,7 @@ public class AgentImpl implements Agent {
 						seq++;
 						progress = new AgentProgress(seq, 0, 0, 0, false, epoch);
 						
+						s = slot(s, count);
 						do {
 							env.reset();
 							s.input = env.getObservation(s.input);
@@ -441,11 +434,21 @@ public class AgentImpl implements Agent {
 							}
 						} while(s.input == null);
 					} else {
-						s.input = s.nextState.copyInto(s.input);
+						// the next state becomes the state of the next transition, without copying
+						ExperiencePoolSample next = slot(s, count);
+						if(next == s){
+							Tensor t = s.input;
+							s.input = s.nextState;
+							s.nextState = t;
+						} else {
+							next.input = s.nextState;
+							s = next;
+						}
 					}
 				}
 			} catch(Throwable t){
-				if(t.getCause() != null && t.getCause() instanceof InterruptedException){
+				// interrupted by stop, i.e. while waiting for the environments to step
+				if(t instanceof InterruptedException || t.getCause() instanceof InterruptedException){
 					return;
 				}
 				
@@ -455,7 +458,7 @@ public class AgentImpl implements Agent {
 				
 				publishError(t);
 			} finally {
-				env.cleanup();
+				cleanupEnvironments();
 				
 				datasets.releaseDataset(pool);
 				
@@ -472,6 +475,228 @@ public class AgentImpl implements Agent {
 				publishDone();
 			}
 		}
+		
+		// the sample to write the next transition into, in case of a pool this is a slot of the upload buffer
+		private ExperiencePoolSample slot(ExperiencePoolSample current, int index){
+			if(pool == null)
+				return current;
+			
+			while(uploadBuffer.size() <= index){
+				uploadBuffer.add(new ExperiencePoolSample());
+			}
+			return uploadBuffer.get(index);
+		}
+		
+		/**
+		 * Act on all environments in lock step, selecting the actions for all environments
+		 * in a single batch. 
+		 */
+		private void actParallel() throws Exception {
+			final int n = environments.size();
+			
+			Tensor states = new Tensor(n, env.observationDims());
+			Tensor actions = null;
+			final Tensor[] next = new Tensor[n];
+			final float[] rewards = new float[n];
+			
+			AgentProgress[] p = new AgentProgress[n];
+			long[] sequences = new long[n];
+			long[] iterations = new long[n];
+			
+			List<List<ExperiencePoolSample>> buffers = new ArrayList<>();
+			int[] counts = new int[n];
+			
+			for(int k=0;k<n;k++){
+				observe(k, states);
+				p[k] = new AgentProgress(seq++, 0, 0, 0, false, epoch);
+				buffers.add(new ArrayList<>());
+			}
+			progress = p[0];
+			
+			ExecutorService stepper = config.stepThreads > 0 ? Executors.newFixedThreadPool(config.stepThreads) : null;
+			List<Callable<Void>> steps = new ArrayList<>();
+			
+			long total = 0;
+			long start = System.currentTimeMillis();
+			try {
+				while(acting){
+					// sync parameters, all environments use the same parameters for each step
+					if(sync){
+						syncParameters();
+					}
+					
+					// select actions for all environments at once
+					for(int k=0;k<n;k++){
+						sequences[k] = p[k].sequence;
+						iterations[k] = p[k].iterations;
+					}
+					actions = strategy.processIteration(sequences, iterations, states, actions);
+					
+					// execute actions and get rewards and next states
+					final Tensor a = actions;
+					if(stepper == null){
+						for(int k=0;k<n;k++){
+							rewards[k] = environments.get(k).performAction(a.select(0, k));
+							next[k] = environments.get(k).getObservation(next[k]);
+						}
+					} else {
+						steps.clear();
+						for(int k=0;k<n;k++){
+							final int e = k;
+							steps.add(() -> {
+								rewards[e] = environments.get(e).performAction(a.select(0, e));
+								next[e] = environments.get(e).getObservation(next[e]);
+								return null;
+							});
+						}
+						for(Future<Void> f : stepper.invokeAll(steps)){
+							f.get();
+						}
+					}
+					total += n;
+					
+					for(int k=0;k<n;k++){
+						AgentProgress pk = p[k];
+						float reward = rewards[k];
+						
+						if(config.traceReward){
+							System.out.println("[AGENT] Environment: "+k+" Iteration: "+pk.iterations+" Reward: "+reward);
+						}
+						
+						pk.reward+=reward;
+						pk.last = reward;
+						pk.iterations++;
+						
+						boolean terminal = next[k] == null;
+						if(terminal){
+							pk.terminal = true;
+						}
+						boolean end = terminal || (config.maxActions > 0 && config.maxActions <= pk.iterations);
+						
+						// upload in batch per environment
+						if(pool != null){
+							List<ExperiencePoolSample> buffer = buffers.get(k);
+							ExperiencePoolSample b;
+							if(buffer.size() <= counts[k]){
+								b = new ExperiencePoolSample();
+								b.reward = new Tensor(1);
+								b.terminal = new Tensor(1);
+								buffer.add(b);
+							} else {
+								b = buffer.get(counts[k]);
+							}
+							b.input = states.select(0, k).copyInto(b.input);
+							b.target = actions.select(0, k).copyInto(b.target);
+							b.reward.set(reward, 0);
+							b.terminal.set(terminal ? 0.0f : 1.0f, 0);
+							b.nextState = terminal ? null : next[k].copyInto(b.nextState);
+							counts[k]++;
+							
+							if(end){
+								// sequence finished, upload to pool
+								try {
+									pool.addSequence(new Sequence<ExperiencePoolSample>(buffer.subList(0, counts[k]), counts[k]));
+								} catch(Exception e){
+									System.out.println("Failed to upload to experience pool ");
+									e.printStackTrace();
+								}
+								counts[k] = 0;
+							}
+						}
+						
+						if(end){
+							storeBest(pk);
+							
+							pk.stepsPerSecond = total*1000f/Math.max(1, System.currentTimeMillis()-start);
+							
+							// trace agent per sequence
+							if(pk.sequence % config.traceInterval == 0){
+								if(config.trace)
+									System.out.println(pk);
+								
+								publishProgress(pk);
+							}
+							
+							p[k] = new AgentProgress(seq++, 0, 0, 0, false, epoch);
+							progress = p[k];
+							
+							// reset this environment and start over
+							boolean observed;
+							do {
+								environments.get(k).reset();
+								observed = observe(k, states);
+								if(!observed){
+									System.out.println("Observation null after reset, trying to reinitialize environment.");
+								}
+							} while(!observed);
+						} else {
+							next[k].copyInto(states.select(0, k));
+						}
+					}
+				}
+			} finally {
+				if(stepper != null){
+					stepper.shutdownNow();
+				}
+			}
+		}
+		
+		// get the observation of environment k into the states batch
+		private boolean observe(int k, Tensor states){
+			Tensor state = states.select(0, k);
+			Tensor o = environments.get(k).getObservation(state);
+			if(o == null)
+				return false;
+			
+			if(o != state){
+				o.copyInto(state);
+			}
+			return true;
+		}
+	}
+	
+	private void syncParameters(){
+		for(int k=0;k<nns.length;k++){
+			if(config.tag.length == nns.length) {
+				try {
+					nns[k].loadChangedParameters(config.tag[k]);
+				} catch(Exception e){
+					System.out.println("Failed loading parameters for nn "+nns[k].getId()+" - "+nns[k].getNeuralNetworkInstance().name+" with tag(s) "+config.tag[k]);
+				}
+			} else {
+				try {
+					nns[k].loadChangedParameters(config.tag);
+				} catch(Exception e){
+					System.out.println("Failed loading parameters for nn "+nns[k].getId()+" - "+nns[k].getNeuralNetworkInstance().name+" with tag(s) "+Arrays.toString(config.tag));
+				}
+			}
+		}
+		sync = false;
+	}
+	
+	private void storeBest(AgentProgress progress){
+		if(config.tagBest){
+			if(progress.reward > maxReward){
+				maxReward = progress.reward;
+				for(int i=0;i<nns.length;i++){
+					if(config.tag.length == nns.length)
+						nns[i].storeParameters(config.tag[i],"best");
+					else
+						nns[i].storeParameters(config.tag[0],"best");
+				}
+			}
+		}
+	}
+	
+	private void cleanupEnvironments(){
+		if(environments != null){
+			for(Environment e : environments){
+				e.cleanup();
+			}
+			environments = null;
+		} else if(env != null){
+			env.cleanup();
+		}
 	}
 	
 	
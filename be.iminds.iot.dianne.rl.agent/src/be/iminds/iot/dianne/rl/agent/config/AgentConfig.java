@@ -63,4 +63,16 @@ public class AgentConfig {
 	 * Tag parameters that got best reward in a sequence
 	 */
 	public boolean tagBest = true;
+	
+	/**
+	 * Number of environment instances to act on in parallel, the actions for all 
+	 * environments are selected in a single batch
+	 */
+	public int environments = 1;
+	
+	/**
+	 * Number of threads stepping the environments in parallel, 0 to step all 
+	 * environments in the acting thread
+	 */
+	public int stepThreads = 0;
 }
@@ -67,5 +67,32 @@ public class DiscreteSamplingActionStrategy implements ActionStrategy {
 		
 		return action;
 	}
+	
+	@Override
+	public Tensor processIteration(long[] s, long[] i, Tensor states, Tensor actions) throws Exception {
+		Tensor output = nn.forward(states);
+		
+		if(actions == null){
+			actions = new Tensor(output.dims());
+		}
+		actions.fill(0);
+		
+		if(TensorOps.min(output) < 0){
+			// assume logsoftmax output, take exp
+			output = TensorOps.exp(output, output);
+		}
+		
+		for(int b=0;b<s.length;b++){
+			Tensor p = output.select(0, b);
+			double t = 0, r = Math.random();
+			int a = 0;
+			while(a < p.size() && (t += p.get(a)) < r){
+				a++;
+			}
+			actions.set(1, b, Math.min(a, p.size()-1));
+		}
+		
+		return actions;
+	}
 
 }
@@ -83,5 +83,45 @@ public class GreedyActionStrategy implements ActionStrategy {
 			return action;
 		}
 	}
+	
+	@Override
+	public Tensor processIteration(long[] s, long[] i, Tensor states, Tensor actions) throws Exception {
+		if(actions == null){
+			actions = new Tensor(s.length, action.dims());
+			actions.fill(0.0f);
+			for(int b=0;b<s.length;b++){
+				actions.set(1, b, (int)(action.size()*Math.random()));
+			}
+		}
+		
+		// forward all states at once, only when required
+		Tensor output = null;
+		for(int b=0;b<s.length;b++){
+			double epsilon = config.epsilonMin + (config.epsilonMax - config.epsilonMin) * Math.exp(-s[b] * config.epsilonDecay);
+			
+			if(config.trace && s[b] % config.traceInterval == 0 && i[b] == 0){
+				System.out.println("Epsilon: "+epsilon);
+			}
+			
+			Tensor a = actions.select(0, b);
+			if(config.drop > 0 && Math.random() < config.drop){
+				a.fill(0.0f);
+			} else if (Math.random() < epsilon) {
+				if(config.momentum > 0.0f && Math.random() < config.momentum){
+					// repeat the previous action of this environment
+					continue;
+				} 
+				a.fill(0);
+				a.set(1, (int) (Math.random() * a.size()));
+			} else {
+				if(output == null){
+					output = nn.forward(states);
+				}
+				a.fill(0);
+				a.set(1, TensorOps.argmax(output.select(0, b)));
+			}
+		}
+		return actions;
+	}
 
 }
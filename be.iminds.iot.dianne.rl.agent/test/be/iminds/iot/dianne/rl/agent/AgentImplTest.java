@@ -0,0 +1,278 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.rl.agent;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+
+import be.iminds.iot.dianne.api.dataset.DianneDatasets;
+import be.iminds.iot.dianne.api.dataset.Sequence;
+import be.iminds.iot.dianne.api.nn.NeuralNetwork;
+import be.iminds.iot.dianne.api.rl.agent.ActionStrategy;
+import be.iminds.iot.dianne.api.rl.agent.AgentListener;
+import be.iminds.iot.dianne.api.rl.agent.AgentProgress;
+import be.iminds.iot.dianne.api.rl.dataset.ExperiencePool;
+import be.iminds.iot.dianne.api.rl.dataset.ExperiencePoolSample;
+import be.iminds.iot.dianne.api.rl.environment.Environment;
+import be.iminds.iot.dianne.tensor.NativeTensorLoader;
+import be.iminds.iot.dianne.tensor.Tensor;
+
+/**
+ * Checks that an agent acting on several environment instances uploads the sequences 
+ * of each instance separately, and handles their terminal states independently.
+ */
+public class AgentImplTest {
+
+	private static final int ENVIRONMENTS = 3;
+	private static final int SEQUENCES = 3;
+	
+	@BeforeClass
+	public static void setup() {
+		NativeTensorLoader loader = new NativeTensorLoader();
+		loader.activate(null);
+	}
+	
+	@Test
+	public void testActParallel() throws Exception {
+		testActParallel(0);
+	}
+	
+	@Test
+	public void testActParallelStepThreads() throws Exception {
+		testActParallel(2);
+	}
+	
+	private void testActParallel(int stepThreads) throws Exception {
+		List<Counter> environments = Collections.synchronizedList(new ArrayList<>());
+		Counter env = new Counter(0, environments);
+		
+		List<float[][]> sequences = Collections.synchronizedList(new ArrayList<>());
+		ExperiencePool pool = proxy(ExperiencePool.class, (method, args) -> {
+			if(method.equals("addSequence")){
+				sequences.add(copy((Sequence<ExperiencePoolSample>)args[0]));
+			}
+			return null;
+		});
+		
+		List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+		CountDownLatch finished = new CountDownLatch(1);
+		
+		AgentImpl agent = new AgentImpl();
+		agent.activate(proxy(BundleContext.class, (method, args) -> {
+			if(method.equals("getProperty")){
+				return UUID.randomUUID().toString();
+			} else if(method.equals("registerService")){
+				return proxy(ServiceRegistration.class, (m, a) -> null);
+			}
+			return null;
+		}));
+		agent.setDianneDatasets(proxy(DianneDatasets.class, (method, args) -> method.equals("configureDataset") ? pool : null));
+		agent.setActionFactoryStrategy(s -> new Echo());
+		Map<String, Object> properties = new HashMap<>();
+		properties.put("name", "Counter");
+		agent.addEnvironment(env, properties);
+		agent.addListener(new AgentListener() {
+			@Override
+			public void onProgress(UUID agentId, AgentProgress p) {}
+			
+			@Override
+			public void onException(UUID agentId, Throwable e) {
+				errors.add(e);
+			}
+			
+			@Override
+			public void onFinish(UUID agentId) {
+				finished.countDown();
+			}
+		}, new HashMap<>());
+		
+		Map<String, String> config = new HashMap<>();
+		config.put("environments", ""+ENVIRONMENTS);
+		config.put("stepThreads", ""+stepThreads);
+		config.put("tag", "test");
+		config.put("tagBest", "false");
+		agent.act("Counter", "pool", config);
+		
+		// act until each environment completed a few sequences
+		long deadline = System.currentTimeMillis() + 10000;
+		while(environments.stream().anyMatch(e -> e.resets < SEQUENCES) && System.currentTimeMillis() < deadline){
+			Thread.sleep(10);
+		}
+		agent.stop();
+		
+		// listeners are notified in order, so any error is reported before the agent finished
+		Assert.assertTrue(finished.await(10, TimeUnit.SECONDS));
+		Assert.assertTrue(errors.isEmpty());
+		
+		Assert.assertEquals(ENVIRONMENTS, environments.size());
+		int[] uploaded = new int[ENVIRONMENTS];
+		for(float[][] sequence : sequences){
+			// all transitions of a sequence come from the same environment, in order, up to its own terminal state
+			int k = (int)sequence[0][0] / 100;
+			int length = environments.get(k).length;
+			Assert.assertEquals(length, sequence.length);
+			for(int i=0;i<length;i++){
+				float[] s = sequence[i];
+				Assert.assertEquals(k*100 + i, s[0], 0.0f);
+				Assert.assertEquals(s[0], s[1], 0.0f);
+				Assert.assertEquals(k, s[2], 0.0f);
+				if(i < length-1){
+					Assert.assertEquals(1.0f, s[3], 0.0f);
+					Assert.assertEquals(k*100 + i + 1, s[4], 0.0f);
+				} else {
+					Assert.assertEquals(0.0f, s[3], 0.0f);
+					Assert.assertTrue(Float.isNaN(s[4]));
+				}
+			}
+			uploaded[k]++;
+		}
+		
+		for(int k=0;k<ENVIRONMENTS;k++){
+			Counter e = environments.get(k);
+			Assert.assertTrue(uploaded[k] >= SEQUENCES);
+			Assert.assertEquals(e.resets, uploaded[k]);
+			Assert.assertEquals(0, e.wrongActions);
+			Assert.assertTrue(e.cleanedUp);
+		}
+	}
+	
+	// state, action, reward, terminal and next state of each transition, NaN without next state
+	private static float[][] copy(Sequence<ExperiencePoolSample> sequence){
+		float[][] copy = new float[sequence.size()][];
+		for(int i=0;i<sequence.size();i++){
+			ExperiencePoolSample s = sequence.get(i);
+			copy[i] = new float[]{s.getState().get(0), s.getAction().get(0), s.getScalarReward(), 
+					s.getTerminal().get(0), s.getNextState() == null ? Float.NaN : s.getNextState().get(0)};
+		}
+		return copy;
+	}
+	
+	private interface Handler {
+		Object invoke(String method, Object[] args) throws Throwable;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <T> T proxy(Class<T> c, Handler h){
+		return (T)Proxy.newProxyInstance(c.getClassLoader(), new Class[]{c}, (proxy, method, args) -> h.invoke(method.getName(), args));
+	}
+	
+	/**
+	 * Environment k observes k*100 plus the step in its sequence, and reaches a terminal 
+	 * state after k+2 steps, so each instance ends its sequences at a different time
+	 */
+	private static class Counter implements Environment {
+
+		final int id;
+		final int length;
+		final List<Counter> instances;
+		
+		int step = 0;
+		volatile int resets = 0;
+		volatile int wrongActions = 0;
+		volatile boolean cleanedUp = false;
+		
+		Counter(int id, List<Counter> instances){
+			this.id = id;
+			this.length = id + 2;
+			this.instances = instances;
+			instances.add(this);
+		}
+		
+		@Override
+		public int[] observationDims() {
+			return new int[]{1};
+		}
+
+		@Override
+		public int[] actionDims() {
+			return new int[]{1};
+		}
+
+		@Override
+		public float performAction(Tensor action) {
+			if(action.get(0) != id*100 + step){
+				wrongActions++;
+			}
+			step++;
+			return id;
+		}
+
+		@Override
+		public Tensor getObservation(Tensor t) {
+			if(step >= length){
+				return null;
+			}
+			if(t == null){
+				t = new Tensor(1);
+			}
+			t.set(id*100 + step, 0);
+			return t;
+		}
+
+		@Override
+		public void reset() {
+			step = 0;
+			resets++;
+		}
+
+		@Override
+		public void setup(Map<String, String> config) {}
+
+		@Override
+		public void cleanup() {
+			cleanedUp = true;
+		}
+		
+		@Override
+		public Environment newInstance(){
+			return new Counter(instances.size(), instances);
+		}
+	}
+	
+	/**
+	 * Selects the observed state as action
+	 */
+	private static class Echo implements ActionStrategy {
+
+		@Override
+		public void setup(Map<String, String> config, Environment env, NeuralNetwork... nns) throws Exception {}
+
+		@Override
+		public Tensor processIteration(long s, long i, Tensor state) throws Exception {
+			return state.copyInto(null);
+		}
+	}
+}
@@ -70,6 +70,8 @@ public class Pong implements PongEnvironment, Environment {
 	private boolean terminal = false;
 	
 	private Tensor observation = null;
+	// scratch array to update the observation without allocating
+	private final float[] state = new float[6];
 	
 	// state
 	private float x, y, vx, vy, p, o;
@@ -167,18 +169,35 @@ public class Pong implements PongEnvironment, Environment {
 			
 			totalReward += reward;
 	
-			final float r = reward;
-			observation = new Tensor(new float[] { x, y, vx, vy, p, o }, 6);
-
-			synchronized(listeners){
-				listeners.stream().forEach(l -> l.onAction(r, observation));
-			}
-			
+			observe();
+			notifyListeners(reward);
 		}
 		
 		return totalReward;
 	}
 	
+	// update the observation tensor in place, listeners are called synchronously and do not keep it
+	private void observe(){
+		state[0] = x;
+		state[1] = y;
+		state[2] = vx;
+		state[3] = vy;
+		state[4] = p;
+		state[5] = o;
+		observation.set(state);
+	}
+	
+	private void notifyListeners(float reward){
+		if(listeners.isEmpty())
+			return;
+		
+		synchronized(listeners){
+			for(EnvironmentListener l : listeners){
+				l.onAction(reward, observation);
+			}
+		}
+	}
+	
 	private boolean onPaddle(float paddle){
 		return paddle - pl / 2 - rad < y &&  y < paddle + pl / 2 + rad;
 	}
@@ -229,8 +248,8 @@ public class Pong implements PongEnvironment, Environment {
 		
 		terminal = false;
 		
-		observation.set(new float[] { x, y, vx, vy, p, o });
-		listeners.stream().forEach(l -> l.onAction(0, observation));
+		observe();
+		notifyListeners(0);
 	}
 
 	@Reference(cardinality = ReferenceCardinality.MULTIPLE, policy = ReferencePolicy.DYNAMIC)
@@ -289,7 +308,8 @@ public class Pong implements PongEnvironment, Environment {
 		
 		this.config = DianneConfigHandler.getConfig(config, PongConfig.class);
 		
-		observation = new Tensor(new float[] { x, y, vx, vy, p, o }, 6);
+		observation = new Tensor(6);
+		observe();
 			
 		active = true;
 		
@@ -300,4 +320,12 @@ public class Pong implements PongEnvironment, Environment {
 	public void cleanup() {
 		active = false;
 	}
+	
+	@Override
+	public Environment newInstance() {
+		// a new game without the listeners of this service
+		Pong pong = new Pong();
+		pong.ai = ai;
+		return pong;
+	}
 }
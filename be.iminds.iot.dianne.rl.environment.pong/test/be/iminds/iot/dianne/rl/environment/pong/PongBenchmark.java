@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.rl.environment.pong;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.BeforeClass;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import be.iminds.iot.dianne.tensor.NativeTensorLoader;
+import be.iminds.iot.dianne.tensor.Tensor;
+
+/**
+ * Measures the environment steps per second and the heap allocated per step
+ * when acting with reused action and observation tensors
+ * 
+ * @author tverbele
+ *
+ */
+@Ignore("Benchmark, run manually")
+public class PongBenchmark {
+
+	private static final int STEPS = 1000000;
+	
+	@BeforeClass
+	public static void load() {
+		NativeTensorLoader loader = new NativeTensorLoader();
+		loader.activate(null);
+	}
+	
+	@Test
+	public void benchmarkPong() throws Exception {
+		Pong pong = new Pong();
+		Map<String, String> config = new HashMap<>();
+		pong.setup(config);
+		
+		Tensor action = new Tensor(3);
+		Tensor observation = new Tensor(6);
+		
+		// warmup
+		run(pong, action, observation, STEPS/10);
+		
+		long allocated = allocatedBytes();
+		long start = System.nanoTime();
+		int sequences = run(pong, action, observation, STEPS);
+		long t = System.nanoTime()-start;
+		allocated = allocatedBytes() - allocated;
+		
+		pong.cleanup();
+		
+		double ms = t/1e6;
+		System.out.println(String.format("Pong %d steps (%d sequences): %10.3f ms - %10.1f steps/s - %6.2f bytes/step", 
+				STEPS, sequences, ms, STEPS*1000/ms, (double)allocated/STEPS));
+	}
+	
+	private int run(Pong pong, Tensor action, Tensor observation, int steps){
+		int sequences = 0;
+		for(int i=0;i<steps;i++){
+			action.fill(0);
+			action.set(1, i % 3);
+			pong.performAction(action);
+			if(pong.getObservation(observation) == null){
+				pong.reset();
+				pong.getObservation(observation);
+				sequences++;
+			}
+		}
+		return sequences;
+	}
+	
+	private long allocatedBytes(){
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if(bean instanceof com.sun.management.ThreadMXBean){
+			return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return 0;
+	}
+}
@@ -30,6 +30,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.FloatBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
@@ -40,6 +41,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import be.iminds.iot.dianne.api.dataset.AbstractDataset;
@@ -91,6 +93,29 @@ public abstract class AbstractExperiencePool extends AbstractDataset implements
 	
 	protected ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
 	
+	// buffer to write samples without allocating, guarded by the write lock
+	private float[] writeBuffer;
+	private FloatBuffer writeView;
+	
+	// prioritized experience replay: priority = (|error|+epsilon)^alpha, or (1/rank)^alpha in case of rank based
+	protected float priorityAlpha = 0.6f;
+	protected float priorityEpsilon = 0.01f;
+	protected boolean priorityRank = false;
+	// number of priority updates after which the ranks are recalculated
+	protected int priorityRankInterval = 1000;
+	
+	// sum tree over the buffer positions, only created once prioritized sampling is used
+	private volatile SumTree priorities;
+	private float maxPriority = 1.0f;
+	// in case of rank based priorities, the errors per buffer position
+	private float[] errors;
+	private float maxError = 1.0f;
+	private int updates = 0;
+	
+	// per thread buffers to read samples without allocating
+	private final ThreadLocal<float[]> scalarBuffer = ThreadLocal.withInitial(() -> new float[2]);
+	private final ThreadLocal<float[][]> tensorBuffers = ThreadLocal.withInitial(() -> new float[][]{new float[stateSize], new float[actionSize]});
+	
 	@Override
 	public void activate(Map<String, Object> config) {
 		super.activate(config);
@@ -132,6 +157,18 @@ public abstract class AbstractExperiencePool extends AbstractDataset implements
 		}
 		
 		targetType = (String)properties.get("actionType");
+		
+		if(properties.containsKey("priorityAlpha"))
+			this.priorityAlpha = Float.parseFloat(properties.get("priorityAlpha").toString().trim());
+		
+		if(properties.containsKey("priorityEpsilon"))
+			this.priorityEpsilon = Float.parseFloat(properties.get("priorityEpsilon").toString().trim());
+		
+		if(properties.containsKey("priorityRank"))
+			this.priorityRank = Boolean.parseBoolean(properties.get("priorityRank").toString().trim());
+		
+		if(properties.containsKey("priorityRankInterval"))
+			this.priorityRankInterval = Integer.parseInt(properties.get("priorityRankInterval").toString().trim());
 	}
 
 	@Override
@@ -342,7 +379,6 @@ public abstract class AbstractExperiencePool extends AbstractDataset implements
 			return;
 		}
 		
-		float[] buffer = new float[sampleSize];
 		boolean locked = false;
 		try {
 			locked = lock.writeLock().tryLock();
@@ -365,25 +401,32 @@ public abstract class AbstractExperiencePool extends AbstractDataset implements
 				return;
 			}
 
+			// samples are written through a reused buffer, only accessed with the write lock held
+			if(writeBuffer == null || writeBuffer.length != sampleSize){
+				writeBuffer = new float[sampleSize];
+				writeView = FloatBuffer.wrap(writeBuffer);
+			}
+			float[] buffer = writeBuffer;
+			
 			int index = getBufferEnd();
 			int start = index == maxSize ? 0 : index;
 			
 			if(start == 0 && !sequences.isEmpty()
 					&& sequences.get(0).start == 0){
-				SequenceLocation removed = sequences.remove(0);
-				noSamples -= removed.length;
+				removeFirstSequence();
 			}
 			
 			for(int i=0;i<size;i++){
 				Arrays.fill(buffer, 0.0f);
+				writeView.clear();
 				if(sequence.size() == i){
 					ExperiencePoolSample s = sequence.get(sequence.size()-1);
-					System.arraycopy(s.nextState.get(), 0, buffer, 0 , stateSize);
+					s.nextState.get(writeView, 0, stateSize);
 					buffer[stateSize+actionSize+1] = 1.0f;
 				} else {
 					ExperiencePoolSample s = sequence.get(i);
-					System.arraycopy(s.input.get(), 0, buffer, 0 , stateSize);
-					System.arraycopy(s.target.get(), 0, buffer, stateSize, actionSize);
+					s.input.get(writeView, 0, stateSize);
+					s.target.get(writeView, 0, actionSize);
 					buffer[stateSize+actionSize] = s.getScalarReward();
 					buffer[stateSize+actionSize+1] = s.isTerminal() ? 0.0f : 1.0f;
 				}
@@ -393,17 +436,21 @@ public abstract class AbstractExperiencePool extends AbstractDataset implements
 					index = 0;
 					
 					if(sequences.get(0).start == 0){
-						SequenceLocation removed = sequences.remove(0);
-						noSamples -= removed.length;
+						removeFirstSequence();
 					}
 				}
 
 				if( getBufferStart() > 0 && index == getBufferStart()){
-					SequenceLocation removed = sequences.remove(0);
-					noSamples -= removed.length;
+					removeFirstSequence();
 				}
 				
 				writeData((long)index*(long)sampleSize, buffer);
+				
+				// new samples get the max priority, the next state of an infinite sequence is never sampled
+				if(priorities != null){
+					setPriority(index, i < length ? maxPriority : 0.0f);
+				}
+				
 				index++;
 			}
 			
@@ -425,6 +472,7 @@ public abstract class AbstractExperiencePool extends AbstractDataset implements
 			lock.writeLock().lock();
 			noSamples = 0;
 			sequences.clear();
+			priorities = null;
 		} finally {
 			lock.writeLock().unlock();
 		}
@@ -432,75 +480,221 @@ public abstract class AbstractExperiencePool extends AbstractDataset implements
 	}
 
 	protected ExperiencePoolSample getSample(ExperiencePoolSample s, int index, int startSequence, boolean loadState){
-		float[] sampleBuffer = new float[sampleSize];
-		
-		long bufferPosition = 0;
 		try {
 			lock.readLock().lock();
-			bufferPosition = getBufferPosition(index, startSequence);
-			loadData(bufferPosition*sampleSize, sampleBuffer);
+			return loadSample(s, getBufferPosition(index, startSequence), loadState);
 		} finally {
 			lock.readLock().unlock();
 		}
+	}
+	
+	@Override
+	public ExperiencePoolBatch getPrioritizedBatch(ExperiencePoolBatch b, int size, float beta){
+		if(b == null || b.getSize() != size){
+			b = new ExperiencePoolBatch(size, stateDims, actionDims);
+		}
+		if(b.indices == null){
+			b.indices = new int[size];
+			b.weights = new Tensor(size);
+		}
+		
+		SumTree tree = priorities();
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		try {
+			lock.readLock().lock();
 
+			float total = tree.total();
+			if(total <= 0){
+				throw new RuntimeException("No samples in the experience pool to sample from");
+			}
+			
+			// stratified sampling, one sample from each of size equal priority segments
+			float segment = total/size;
+			float maxWeight = 0;
+			for(int i=0;i<size;i++){
+				int index = tree.find((i+random.nextFloat())*segment);
+				b.indices[i] = index;
+				
+				float p = tree.get(index)/total;
+				float w = (float)Math.pow(noSamples*p, -beta);
+				b.weights.set(w, i);
+				if(w > maxWeight){
+					maxWeight = w;
+				}
+				
+				loadSample(b.getSample(i), index, true);
+			}
+			
+			for(int i=0;i<size;i++){
+				b.weights.set(b.weights.get(i)/maxWeight, i);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
 		
+		return b;
+	}
+	
+	@Override
+	public void updatePriorities(int[] indices, float[] errors){
+		SumTree tree = priorities();
+		boolean rerank = false;
+		synchronized(tree){
+			for(int i=0;i<indices.length;i++){
+				int index = indices[i];
+				// skip samples that were removed in the meantime
+				if(tree.get(index) <= 0)
+					continue;
+				
+				float e = Math.abs(errors[i]) + priorityEpsilon;
+				if(priorityRank){
+					this.errors[index] = e;
+					if(e > maxError){
+						maxError = e;
+					}
+				} else {
+					float p = (float)Math.pow(e, priorityAlpha);
+					tree.set(index, p);
+					if(p > maxPriority){
+						maxPriority = p;
+					}
+				}
+			}
+			
+			if(priorityRank && ++updates % priorityRankInterval == 0){
+				rerank = true;
+			}
+		}
+		
+		if(rerank){
+			rerank(tree);
+		}
+	}
+	
+	// create the sum tree on first use, giving all current samples the same priority
+	private SumTree priorities(){
+		SumTree tree = priorities;
+		if(tree != null)
+			return tree;
+		
+		try {
+			lock.readLock().lock();
+			synchronized(this){
+				if(priorities == null){
+					tree = new SumTree(maxSize);
+					if(priorityRank){
+						errors = new float[maxSize];
+					}
+					
+					for(SequenceLocation seq : sequences){
+						for(int i=0;i<seq.length;i++){
+							int index = (seq.start+i) % maxSize;
+							tree.set(index, maxPriority);
+							if(priorityRank){
+								errors[index] = maxError;
+							}
+						}
+					}
+					priorities = tree;
+				}
+				return priorities;
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	private void setPriority(int index, float priority){
+		SumTree tree = priorities;
+		synchronized(tree){
+			tree.set(index, priority);
+			if(priorityRank){
+				errors[index] = priority > 0 ? maxError : 0.0f;
+			}
+		}
+	}
+	
+	// recalculate the rank based priorities
+	private void rerank(SumTree tree){
+		synchronized(tree){
+			int n = 0;
+			long[] keys = new long[noSamples];
+			for(int i=0;i<tree.size() && n < keys.length;i++){
+				if(tree.get(i) > 0){
+					// positive floats sort the same as their bits
+					keys[n++] = ((long)Float.floatToIntBits(errors[i]) << 32) | i;
+				}
+			}
+			Arrays.sort(keys, 0, n);
+			
+			int[] indices = new int[n];
+			float[] p = new float[n];
+			for(int k=0;k<n;k++){
+				indices[k] = (int)keys[k];
+				p[k] = (float)Math.pow(1.0/(n-k), priorityAlpha);
+			}
+			tree.set(indices, p);
+		}
+	}
+	
+	private void removeFirstSequence(){
+		SequenceLocation removed = sequences.remove(0);
+		noSamples -= removed.length;
+		
+		if(priorities != null){
+			int length = removed.length + (removed.infinite ? 1 : 0);
+			for(int i=0;i<length;i++){
+				setPriority((removed.start+i) % maxSize, 0.0f);
+			}
+		}
+	}
+
+	private ExperiencePoolSample loadSample(ExperiencePoolSample s, long bufferPosition, boolean loadState){
 		if(s == null){
 			s = new ExperiencePoolSample();	
 		}
 		
 		// state
 		// in case of sequences on might just reuse nextState tensor of previous instead of loading state again
-		if(loadState){
-			float[] stateBuffer = new float[stateSize];
-			System.arraycopy(sampleBuffer, 0, stateBuffer, 0, stateSize);
-
-			if(s.input == null){
-				s.input = new Tensor(stateBuffer, stateDims);
-			} else {
-				s.input.set(stateBuffer);
-			}
+		if(loadState && s.input == null){
+			s.input = new Tensor(stateDims);
 		}
-		
-		// action
-		float[] actionBuffer = new float[actionSize];
-		System.arraycopy(sampleBuffer, stateSize, actionBuffer, 0, actionSize);
-		
 		if(s.target == null){
-			s.target = new Tensor(actionBuffer, actionDims);
-		} else {
-			s.target.set(actionBuffer);
+			s.target = new Tensor(actionDims);
 		}
-		
-		// reward
 		if(s.reward == null){
 			s.reward = new Tensor(1);
 		}
-		s.reward.set(sampleBuffer[stateSize+actionSize], 0);
-		
-		// terminal
 		if(s.terminal == null){
 			s.terminal = new Tensor(1);
 		}
-		s.terminal.set(sampleBuffer[stateSize+actionSize+1], 0);
+		if(s.nextState == null){
+			s.nextState = new Tensor(stateDims);
+		}
+		
+		// reward and terminal flag are read together in a per thread buffer
+		float[] scalars = scalarBuffer.get();
+		
+		long position = bufferPosition*sampleSize;
+		
+		// copy straight into the (batch) tensors, no intermediate sample buffer
+		if(loadState){
+			loadData(position, s.input);
+		}
+		loadData(position+stateSize, s.target);
+		loadData(position+stateSize+actionSize, scalars);
+		
+		s.reward.set(scalars[0], 0);
+		s.terminal.set(scalars[1], 0);
 		
 		if(!s.isTerminal()){
 			// load next state
-			float[] nextStateBuffer = new float[stateSize];
 			bufferPosition += 1;
 			if(bufferPosition == maxSize)
 				bufferPosition = 0;
 			
-			loadData((bufferPosition*sampleSize) , nextStateBuffer);
-
-			if(s.nextState == null){
-				s.nextState = new Tensor(nextStateBuffer, stateDims);
-			} else {
-				s.nextState.set(nextStateBuffer);
-			}
+			loadData(bufferPosition*sampleSize, s.nextState);
 		} else {
-			if(s.nextState == null){
-				s.nextState = new Tensor(stateDims);
-			} 
 			s.nextState.fill(0);
 		}
 		
@@ -549,14 +743,28 @@ public abstract class AbstractExperiencePool extends AbstractDataset implements
 	
 	protected abstract void loadData(long position, float[] data);
 	
+	/**
+	 * Copy t.size() floats starting at position into the given tensor. 
+	 * 
+	 * This can be called concurrently by multiple sampling threads, so implementations
+	 * should not rely on shared buffer state. The default implementation goes through 
+	 * a per thread float[], pools that can copy directly into the tensor should override this.
+	 */
+	protected void loadData(long position, Tensor t){
+		int size = t.size();
+		float[][] scratch = tensorBuffers.get();
+		float[] data = size == stateSize ? scratch[0] : size == actionSize ? scratch[1] : new float[size];
+		loadData(position, data);
+		t.set(data);
+	}
+	
 	protected abstract void writeData(long position, float[] data);
 
 	protected abstract void dumpData() throws IOException;
 	
 	protected abstract void recoverData();
 	
-	@Override
-	public void dump() {
+	protected void writeDescriptor() throws IOException {
 		// write json if not preset
 		StringBuilder descriptor = new StringBuilder();
 		
@@ -581,8 +789,13 @@ public abstract class AbstractExperiencePool extends AbstractDataset implements
 		descriptor.append(maxSize);
 		descriptor.append("\n}");
 		
+		Files.write( Paths.get(dir+File.separator+name+".json"), descriptor.toString().getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+	}
+	
+	@Override
+	public void dump() {
 		try {
-			Files.write( Paths.get(dir+File.separator+name+".json"), descriptor.toString().getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+			writeDescriptor();
 		
 			lock.writeLock().lock();
 		
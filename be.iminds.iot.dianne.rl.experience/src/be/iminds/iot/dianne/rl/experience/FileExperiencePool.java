@@ -31,10 +31,16 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 import org.osgi.service.component.annotations.Component;
@@ -42,6 +48,7 @@ import org.osgi.service.component.annotations.ConfigurationPolicy;
 
 import be.iminds.iot.dianne.api.dataset.Dataset;
 import be.iminds.iot.dianne.api.rl.dataset.ExperiencePool;
+import be.iminds.iot.dianne.tensor.Tensor;
 
 @Component(
 		service={ExperiencePool.class, Dataset.class},
@@ -50,16 +57,39 @@ import be.iminds.iot.dianne.api.rl.dataset.ExperiencePool;
 		configurationPid="be.iminds.iot.dianne.dataset.FileExperiencePool")
 public class FileExperiencePool extends AbstractExperiencePool {
 
+	private MappedByteBuffer[] mapped;
 	private FloatBuffer[] buffers;
+	// each thread gets its own views on the mapped buffers, since position and limit 
+	// of a shared buffer would be raced on by concurrent samplers and the writer
+	private ThreadLocal<Views> views;
 	private int SIZE_PER_BUFFER = Integer.MAX_VALUE;
 	private int FLOATS_PER_BUFFER = Integer.MAX_VALUE/4;
 	
+	// the pool is dumped as a raw copy of the buffers together with a small header
+	private static final String SNAPSHOT_HEADER = "snapshot.header";
+	private static final String SNAPSHOT_DATA = "snapshot.bin";
+	private static final int SNAPSHOT_MAGIC = 0x44585053; // DXPS
+	private static final int SNAPSHOT_VERSION = 1;
+	
+	// only write the samples that changed since the previous snapshot
+	private boolean incrementalDump = true;
+	// the snapshot on disk, if any
+	private Snapshot snapshot;
+	// range of samples written since the last snapshot was started,
+	// dirtyCount == maxSize marks the complete pool as changed
+	private int dirtyStart = 0;
+	private int dirtyCount = 0;
+	
 	@Override
 	protected void setup(Map<String, Object> config) {
 		if(config.containsKey("sizePerBuffer")){
 			SIZE_PER_BUFFER = Integer.parseInt(config.get("sizePerBuffer").toString().trim());
 		}
 		
+		if(config.containsKey("incrementalDump")){
+			incrementalDump = Boolean.parseBoolean(config.get("incrementalDump").toString().trim());
+		}
+		
 		FLOATS_PER_BUFFER = SIZE_PER_BUFFER/4;
 		
 		long bufferSize = ((long)maxSize)*((long)sampleSize)*4;
@@ -71,70 +101,161 @@ public class FileExperiencePool extends AbstractExperiencePool {
 				noBuffers++;
 		}
 		
+		mapped = new MappedByteBuffer[noBuffers];
 		buffers = new FloatBuffer[noBuffers];
 
 		try {
-			for(int i=0;i<buffers.length;i++){
-				buffers[i] = openFileAsFloatBuffer("buffer"+i+".bin", bufferSize > SIZE_PER_BUFFER ? SIZE_PER_BUFFER : bufferSize);
+			long floatsPerBuffer = FLOATS_PER_BUFFER;
+			for(int i=0;i<mapped.length;i++){
+				long offset = i*floatsPerBuffer*4;
+				mapped[i] = openFileAsBuffer("buffer"+i+".bin", Math.min(floatsPerBuffer*4, bufferSize-offset));
+			}
+			
+			snapshot = readSnapshot();
+			if(snapshot != null){
+				// copy the snapshot into the writable buffers, the snapshot file itself 
+				// remains untouched until the next dump
+				File data = new File(dir+File.separator+SNAPSHOT_DATA);
+				try (FileChannel fc = FileChannel.open(data.toPath(), StandardOpenOption.READ)){
+					for(int i=0;i<mapped.length;i++){
+						long position = i*floatsPerBuffer*4;
+						ByteBuffer dst = mapped[i].duplicate();
+						dst.clear();
+						while(dst.hasRemaining()){
+							int read = fc.read(dst, position);
+							if(read < 0){
+								throw new IOException("Snapshot of experience pool "+name+" is truncated");
+							}
+							position += read;
+						}
+					}
+				} catch(IOException e){
+					// start from an empty pool
+					System.err.println("Failed to restore snapshot of experience pool "+name+": "+e.getMessage());
+					snapshot = null;
+				}
+			}
+			
+			if(snapshot == null){
+				dirtyCount = maxSize;
+			}
+			
+			for(int i=0;i<mapped.length;i++){
+				buffers[i] = mapped[i].asFloatBuffer();
 			}
 		} catch(Exception e){
 			e.printStackTrace();
 		}
+		
+		views = ThreadLocal.withInitial(() -> new Views(buffers));
 	}
 
 	@Override
 	protected void loadData(long position, float[] data) {
 		int size = data.length;
 		
+		FloatBuffer[] views = this.views.get().buffers;
 		int b = (int)(position / FLOATS_PER_BUFFER);
-		FloatBuffer buffer = buffers[b];
 		int i = (int)(position % FLOATS_PER_BUFFER);
 
 		if(FLOATS_PER_BUFFER-i < size){
 			// split in two
 			int half = FLOATS_PER_BUFFER-i;
+			FloatBuffer buffer = views[b];
+			buffer.clear();
 			buffer.position(i);
 			buffer.get(data, 0, half);
 			
-			FloatBuffer next = buffers[b+1];
-			next.position(0);
+			FloatBuffer next = views[b+1];
+			next.clear();
 			next.get(data, half, size-half);
 		} else {
+			FloatBuffer buffer = views[b];
+			buffer.clear();
 			buffer.position(i);
 			buffer.get(data);
 		}
 	}
+	
+	@Override
+	protected void loadData(long position, Tensor t) {
+		int size = t.size();
+		
+		Views v = this.views.get();
+		int b = (int)(position / FLOATS_PER_BUFFER);
+		int i = (int)(position % FLOATS_PER_BUFFER);
+
+		if(FLOATS_PER_BUFFER-i < size){
+			// split in two, gather both parts in a per thread direct buffer first
+			int half = FLOATS_PER_BUFFER-i;
+			FloatBuffer buffer = v.buffers[b];
+			buffer.limit(i+half);
+			buffer.position(i);
+			
+			FloatBuffer next = v.buffers[b+1];
+			next.limit(size-half);
+			next.position(0);
+			
+			FloatBuffer split = v.split(size);
+			split.put(buffer);
+			split.put(next);
+			split.flip();
+			t.set(split);
+		} else {
+			// directly copy the mapped region into the tensor
+			FloatBuffer buffer = v.buffers[b];
+			buffer.limit(i+size);
+			buffer.position(i);
+			t.set(buffer);
+		}
+	}
 
 	@Override
 	protected void writeData(long position, float[] data) {
+		// samples are appended in order, so the changes since the last snapshot form one range
+		int sample = (int)(position / sampleSize);
+		if(dirtyCount == 0){
+			dirtyStart = sample;
+			dirtyCount = 1;
+		} else if(dirtyCount < maxSize){
+			if((dirtyStart+dirtyCount) % maxSize == sample){
+				dirtyCount++;
+			} else {
+				dirtyCount = maxSize;
+			}
+		}
+		
+		FloatBuffer[] views = this.views.get().buffers;
 		int b = (int) (position / FLOATS_PER_BUFFER);
-		FloatBuffer buffer = buffers[b];
 		int i = (int)(position % FLOATS_PER_BUFFER);
 
 		if(FLOATS_PER_BUFFER-i < data.length){
 			// split in two
 			int half = FLOATS_PER_BUFFER-i;
+			FloatBuffer buffer = views[b];
+			buffer.clear();
 			buffer.position(i);
 			buffer.put(data, 0, half);
 			
-			FloatBuffer next = buffers[b+1];
-			next.position(0);
+			FloatBuffer next = views[b+1];
+			next.clear();
 			next.put(data, half, data.length-half);
 		} else {
+			FloatBuffer buffer = views[b];
+			buffer.clear();
 			buffer.position(i);
 			buffer.put(data);
 		}
 	}
 	
-	private FloatBuffer openFileAsFloatBuffer(String fileName, long size) throws Exception {
+	private MappedByteBuffer openFileAsBuffer(String fileName, long size) throws Exception {
 		File file = new File(dir+File.separator+fileName);
 		file.delete();
 		try (FileChannel fc = new RandomAccessFile(file, "rw").getChannel()){
 			MappedByteBuffer buffer = fc.map(FileChannel.MapMode.READ_WRITE, 0, size);
 			buffer.order(ByteOrder.nativeOrder());
 			buffer.load();
-			FloatBuffer floatBuffer = buffer.asFloatBuffer();
-			return floatBuffer;
+			return buffer;
 		} catch(Exception e){
 			e.printStackTrace();
 			throw e;
@@ -143,28 +264,279 @@ public class FileExperiencePool extends AbstractExperiencePool {
 
 	
 	@Override
-	protected void dumpData() throws IOException {
-		for(int i=0;i<buffers.length;i++){
-			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(dir+File.separator+"data"+i+".bin"))))){
-				for(int k=0;k<buffers[i].limit();k++){
-					buffers[i].position(k);
-					out.writeFloat(buffers[i].get());
+	public void dump() {
+		// no need to block the pool while dumping, see dumpData
+		try {
+			writeDescriptor();
+			dumpData();
+		} catch(Exception e){ 
+			e.printStackTrace();
+		}
+	}
+	
+	@Override
+	public void recover() {
+		if(snapshot == null){
+			// no (valid) snapshot available, try the old format
+			super.recover();
+			return;
+		}
+		
+		try {
+			lock.writeLock().lock();
+			
+			for(SequenceLocation s : snapshot.sequences){
+				sequences.add(s);
+				noSamples += s.length;
+			}
+			if(snapshot.infinite){
+				infiniteHorizon = true;
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Write a snapshot of the pool. The sequence table is copied under the read lock,
+	 * the data itself is copied without locking, after which all sequences that were 
+	 * (partly) overwritten during the copy are dropped from the snapshot. 
+	 * 
+	 * The header is only replaced after the data is forced to disk, and before copying 
+	 * the sequences that will be overwritten are removed from the current header, so 
+	 * the snapshot on disk is consistent at any time.
+	 */
+	@Override
+	protected synchronized void dumpData() throws IOException {
+		List<SequenceLocation> current;
+		boolean infinite;
+		int from, count;
+		try {
+			lock.readLock().lock();
+			
+			current = new ArrayList<>(sequences);
+			infinite = infiniteHorizon;
+			
+			if(snapshot == null || !incrementalDump){
+				from = 0;
+				count = maxSize;
+			} else {
+				from = dirtyStart;
+				count = dirtyCount;
+			}
+			
+			// start tracking the writes during this dump
+			dirtyCount = 0;
+		} finally {
+			lock.readLock().unlock();
+		}
+		
+		try {
+			if(count > 0){
+				List<SequenceLocation> kept = new ArrayList<>();
+				if(snapshot != null && count < maxSize){
+					for(SequenceLocation s : snapshot.sequences){
+						if(!overlaps(s.start, span(s), from, count)){
+							kept.add(s);
+						}
+					}
+				}
+				writeSnapshot(new Snapshot(kept, snapshot != null && snapshot.infinite));
+				
+				long floats = ((long)maxSize)*((long)sampleSize);
+				try (RandomAccessFile raf = new RandomAccessFile(new File(dir+File.separator+SNAPSHOT_DATA), "rw")){
+					if(raf.length() != floats*4){
+						raf.setLength(floats*4);
+					}
+					
+					// the changed range can wrap around the end of the pool
+					FileChannel channel = raf.getChannel();
+					int first = Math.min(count, maxSize-from);
+					copy(channel, ((long)from)*sampleSize, ((long)first)*sampleSize);
+					copy(channel, 0, ((long)(count-first))*sampleSize);
+					channel.force(false);
+				}
+			}
+			
+			List<SequenceLocation> valid = new ArrayList<>();
+			try {
+				lock.readLock().lock();
+				
+				for(SequenceLocation s : current){
+					if(dirtyCount == 0 || !overlaps(s.start, span(s), dirtyStart, dirtyCount)){
+						valid.add(s);
+					}
 				}
-				out.flush();
+			} finally {
+				lock.readLock().unlock();
+			}
+			
+			Snapshot s = new Snapshot(valid, infinite);
+			writeSnapshot(s);
+			snapshot = s;
+		} catch(IOException e){
+			// changed range is lost, make sure the next dump is complete
+			snapshot = null;
+			throw e;
+		}
+	}
+	
+	private void copy(FileChannel channel, long position, long length) throws IOException {
+		long end = position+length;
+		while(position < end){
+			int b = (int)(position / FLOATS_PER_BUFFER);
+			int i = (int)(position % FLOATS_PER_BUFFER);
+			int n = (int)Math.min(end-position, FLOATS_PER_BUFFER-i);
+			
+			ByteBuffer src = mapped[b].duplicate();
+			src.limit((i+n)*4);
+			src.position(i*4);
+			
+			long filePosition = position*4;
+			while(src.hasRemaining()){
+				filePosition += channel.write(src, filePosition);
+			}
+			
+			position += n;
+		}
+	}
+	
+	private int span(SequenceLocation s){
+		return s.length + (s.infinite ? 1 : 0);
+	}
+	
+	private boolean overlaps(int start1, int length1, int start2, int length2){
+		if(length1 == 0 || length2 == 0)
+			return false;
+		
+		// check on the cyclic buffer whether one range starts within the other
+		int d1 = ((start2-start1) % maxSize + maxSize) % maxSize;
+		int d2 = ((start1-start2) % maxSize + maxSize) % maxSize;
+		return d1 < length1 || d2 < length2;
+	}
+	
+	private void writeSnapshot(Snapshot s) throws IOException {
+		File header = new File(dir+File.separator+SNAPSHOT_HEADER);
+		File tmp = new File(dir+File.separator+"."+SNAPSHOT_HEADER+".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))){
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(SNAPSHOT_VERSION);
+			out.writeInt(maxSize);
+			out.writeInt(sampleSize);
+			out.writeBoolean(ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN);
+			out.writeInt(s.start);
+			out.writeInt(s.end);
+			out.writeBoolean(s.infinite);
+			out.writeInt(s.sequences.size());
+			for(SequenceLocation l : s.sequences){
+				out.writeInt(l.start);
+				out.writeInt(l.length);
+				out.writeBoolean(l.infinite);
 			}
+			out.flush();
+		}
+		Files.move(tmp.toPath(), header.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	private Snapshot readSnapshot(){
+		File header = new File(dir+File.separator+SNAPSHOT_HEADER);
+		File data = new File(dir+File.separator+SNAPSHOT_DATA);
+		if(!header.exists() || !data.exists())
+			return null;
+		
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(header)))){
+			if(in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION){
+				throw new IOException("Invalid snapshot header");
+			}
+			
+			int m = in.readInt();
+			int s = in.readInt();
+			boolean littleEndian = in.readBoolean();
+			if(m != maxSize || s != sampleSize 
+					|| littleEndian != (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN)
+					|| data.length() != ((long)maxSize)*((long)sampleSize)*4){
+				throw new IOException("Snapshot does not match the pool configuration");
+			}
+			
+			// buffer start and end follow from the sequences
+			in.readInt();
+			in.readInt();
+			boolean infinite = in.readBoolean();
+			int n = in.readInt();
+			List<SequenceLocation> sequences = new ArrayList<>(n);
+			for(int i=0;i<n;i++){
+				sequences.add(new SequenceLocation(in.readInt(), in.readInt(), in.readBoolean()));
+			}
+			return new Snapshot(sequences, infinite);
+		} catch(IOException e){
+			System.err.println("Failed to read snapshot of experience pool "+name+": "+e.getMessage());
+			return null;
 		}
 	}
 
 	@Override
 	protected void recoverData() {
+		// old format, big endian floats per buffer
 		for(int i=0;i<buffers.length;i++){
-			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(dir+File.separator+"data"+i+".bin"))))){
-				int k=0;
-				while(true){
-					buffers[i].position(k++);
-					buffers[i].put(in.readFloat());
+			FloatBuffer buffer = buffers[i].duplicate();
+			File file = new File(dir+File.separator+"data"+i+".bin");
+			if(!file.exists())
+				continue;
+			
+			try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+				long size = Math.min(fc.size(), ((long)buffer.capacity())*4);
+				long position = 0;
+				while(position < size){
+					MappedByteBuffer chunk = fc.map(FileChannel.MapMode.READ_ONLY, position, Math.min(1 << 28, size-position));
+					buffer.put(chunk.asFloatBuffer());
+					position += chunk.capacity();
 				}
-			} catch(Exception e){}
+			} catch(Exception e){
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	private class Snapshot {
+		
+		private final List<SequenceLocation> sequences;
+		private final boolean infinite;
+		private final int start;
+		private final int end;
+		
+		public Snapshot(List<SequenceLocation> sequences, boolean infinite){
+			this.sequences = sequences;
+			this.infinite = infinite;
+			if(sequences.isEmpty()){
+				this.start = 0;
+				this.end = 0;
+			} else {
+				SequenceLocation last = sequences.get(sequences.size()-1);
+				this.start = sequences.get(0).start;
+				this.end = (last.start+span(last)) % maxSize;
+			}
+		}
+	}
+	
+	private static class Views {
+		
+		private final FloatBuffer[] buffers;
+		private FloatBuffer split;
+		
+		public Views(FloatBuffer[] buffers){
+			this.buffers = new FloatBuffer[buffers.length];
+			for(int i=0;i<buffers.length;i++){
+				// a duplicate of a native order view keeps its byte order
+				this.buffers[i] = buffers[i].duplicate();
+			}
+		}
+		
+		public FloatBuffer split(int size){
+			if(split == null || split.capacity() < size){
+				split = ByteBuffer.allocateDirect(size*4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+			}
+			split.clear();
+			return split;
 		}
 	}
 }
@@ -77,7 +77,7 @@ public class MemoryExperiencePool extends AbstractExperiencePool {
 		} else {
 			int s = bufferSize-pos;
 			System.arraycopy(buffers[buffer], pos, data, 0, s);
-			System.arraycopy(buffers[buffer+1], 0, data, s+1, data.length-s);
+			System.arraycopy(buffers[buffer+1], 0, data, s, data.length-s);
 		}
 	}
 
@@ -91,7 +91,7 @@ public class MemoryExperiencePool extends AbstractExperiencePool {
 		} else {
 			int s = bufferSize-pos;
 			System.arraycopy(data, 0, buffers[buffer], pos, s);
-			System.arraycopy(data, s+1, buffers[buffer+1], 0, data.length-s);
+			System.arraycopy(data, s, buffers[buffer+1], 0, data.length-s);
 		}
 	}
 
@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.rl.experience;
+
+import java.util.Arrays;
+
+/**
+ * Binary sum tree over the priorities of the buffer positions of an experience pool. 
+ * 
+ * Each leaf contains the priority of a position, each node the sum of its children. This
+ * allows to update a priority and to find the position for a prefix sum (i.e. sample a
+ * position proportional to its priority) in O(log n).
+ * 
+ * @author tverbele
+ *
+ */
+public class SumTree {
+
+	private final int size;
+	private final int capacity;
+	// tree[1] is the root, the leaves are at [capacity, 2*capacity)
+	private final float[] tree;
+	
+	public SumTree(int size){
+		this.size = size;
+		int c = 1;
+		while(c < size){
+			c <<= 1;
+		}
+		this.capacity = c;
+		this.tree = new float[2*capacity];
+	}
+	
+	public int size(){
+		return size;
+	}
+	
+	/**
+	 * @return the sum of all priorities
+	 */
+	public synchronized float total(){
+		return tree[1];
+	}
+	
+	public synchronized float get(int index){
+		return tree[capacity+index];
+	}
+	
+	/**
+	 * Set the priority of a position and update the sums up to the root
+	 */
+	public synchronized void set(int index, float priority){
+		int i = capacity+index;
+		tree[i] = priority;
+		i >>= 1;
+		while(i >= 1){
+			tree[i] = tree[2*i] + tree[2*i+1];
+			i >>= 1;
+		}
+	}
+	
+	/**
+	 * Set the priorities of multiple positions at once, recalculating all sums afterwards
+	 */
+	public synchronized void set(int[] indices, float[] priorities){
+		for(int k=0;k<indices.length;k++){
+			tree[capacity+indices[k]] = priorities[k];
+		}
+		for(int i=capacity-1;i>=1;i--){
+			tree[i] = tree[2*i] + tree[2*i+1];
+		}
+	}
+	
+	/**
+	 * Find the position at which the prefix sum of the priorities exceeds the given value,
+	 * never returns a position with zero priority unless all priorities are zero
+	 * 
+	 * @param value a value in [0, total())
+	 * @return the buffer position
+	 */
+	public synchronized int find(float value){
+		int i = 1;
+		while(i < capacity){
+			float left = tree[2*i];
+			float right = tree[2*i+1];
+			if((value < left && left > 0) || right <= 0){
+				i = 2*i;
+			} else {
+				value -= left;
+				i = 2*i+1;
+			}
+		}
+		return i-capacity;
+	}
+	
+	public synchronized void clear(){
+		Arrays.fill(tree, 0.0f);
+	}
+}
@@ -0,0 +1,114 @@
+package be.iminds.iot.dianne.rl.experience;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import be.iminds.iot.dianne.api.dataset.Sequence;
+import be.iminds.iot.dianne.api.rl.dataset.ExperiencePool;
+import be.iminds.iot.dianne.api.rl.dataset.ExperiencePoolBatch;
+import be.iminds.iot.dianne.api.rl.dataset.ExperiencePoolSample;
+import be.iminds.iot.dianne.tensor.NativeTensorLoader;
+import be.iminds.iot.dianne.tensor.Tensor;
+
+/**
+ * Batch sampling throughput of the experience pools for an increasing
+ * number of sampling threads. This test only reports timings.
+ */
+@Ignore("Benchmark, run manually")
+public class ExperiencePoolBenchmark {
+
+	private static final int[] THREADS = new int[]{1, 4, 16};
+	private static final int BATCH_SIZE = 32;
+	private static final int BATCHES = 500;
+	private static final int MAX_SIZE = 5000;
+	
+	@BeforeClass
+	public static void load() {
+		NativeTensorLoader loader = new NativeTensorLoader();
+		loader.activate(null);
+	}
+	
+	@Test
+	public void benchmarkFileExperiencePool() throws Exception {
+		benchmark(new FileExperiencePool());
+	}
+	
+	@Test
+	public void benchmarkMemoryExperiencePool() throws Exception {
+		benchmark(new MemoryExperiencePool());
+	}
+	
+	private void benchmark(AbstractExperiencePool pool) throws Exception {
+		Map<String, Object> config = new HashMap<>();
+		config.put("name", "Benchmark");
+		config.put("dir", "generated");
+		config.put("stateDims", new String[]{"4", "84", "84"});
+		config.put("actionDims", new String[]{"18"});
+		config.put("maxSize", ""+MAX_SIZE);
+		pool.activate(config);
+		
+		fill(pool);
+		
+		String name = pool.getClass().getSimpleName();
+		for(int threads : THREADS){
+			// warmup
+			sample(pool, threads, BATCHES/10);
+			
+			long t = sample(pool, threads, BATCHES);
+			double ms = t/1e6;
+			double batches = (double)threads*BATCHES;
+			System.out.println(String.format("%-22s %2d threads: %10.3f ms - %10.1f batches/s - %10.1f samples/s", 
+					name, threads, ms, batches*1000/ms, batches*BATCH_SIZE*1000/ms));
+		}
+	}
+	
+	private void fill(ExperiencePool pool){
+		int length = 100;
+		Tensor state = new Tensor(4, 84, 84);
+		Tensor action = new Tensor(18);
+		List<ExperiencePoolSample> sequence = new ArrayList<>();
+		for(int i=0;i<length;i++){
+			state.rand();
+			action.fill(0);
+			action.set(1, i % 18);
+			sequence.add(new ExperiencePoolSample(state.clone(), action.clone(), i, i == length-1 ? null : state.clone()));
+		}
+		for(int k=0;k<MAX_SIZE/length;k++){
+			pool.addSequence(new Sequence<ExperiencePoolSample>(sequence, length));
+		}
+	}
+	
+	private long sample(ExperiencePool pool, int threads, int batches) throws Exception {
+		List<Thread> samplers = new ArrayList<>();
+		for(int t=0;t<threads;t++){
+			final long seed = t;
+			samplers.add(new Thread(() -> {
+				Random random = new Random(seed);
+				int[] indices = new int[BATCH_SIZE];
+				ExperiencePoolBatch batch = null;
+				for(int i=0;i<batches;i++){
+					for(int k=0;k<indices.length;k++){
+						indices[k] = random.nextInt(pool.size());
+					}
+					batch = pool.getBatch(batch, indices);
+				}
+			}));
+		}
+		
+		long start = System.nanoTime();
+		for(Thread t : samplers){
+			t.start();
+		}
+		for(Thread t : samplers){
+			t.join();
+		}
+		return System.nanoTime()-start;
+	}
+}
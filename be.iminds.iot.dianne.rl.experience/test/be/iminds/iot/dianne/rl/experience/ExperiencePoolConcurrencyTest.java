@@ -0,0 +1,204 @@
+package be.iminds.iot.dianne.rl.experience;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import be.iminds.iot.dianne.api.dataset.Sequence;
+import be.iminds.iot.dianne.api.rl.dataset.ExperiencePool;
+import be.iminds.iot.dianne.api.rl.dataset.ExperiencePoolBatch;
+import be.iminds.iot.dianne.api.rl.dataset.ExperiencePoolSample;
+import be.iminds.iot.dianne.tensor.NativeTensorLoader;
+import be.iminds.iot.dianne.tensor.Tensor;
+import junit.framework.Assert;
+
+/**
+ * Samples batches from a number of threads while another thread keeps adding
+ * sequences. Each stored sample has state, action and reward set to the same
+ * value, so a sample that is read at a wrong offset is easily detected.
+ */
+@RunWith(Parameterized.class)
+public class ExperiencePoolConcurrencyTest {
+
+	private static final int READERS = 8;
+	private static final int SEQUENCES = 500;
+	private static final int SEQUENCE_LENGTH = 5;
+	private static final int BATCH_SIZE = 16;
+	
+	@Parameters()
+	public static Collection<Object[]> getParameters() {
+		return Arrays.asList(new Object[][] {
+			{ new FileExperiencePool(), null},
+			{ new FileExperiencePool(), "200"},
+			{ new MemoryExperiencePool(), null}
+		});
+	}
+	
+	protected ExperiencePool pool;
+	
+	@BeforeClass
+	public static void setup() {
+		NativeTensorLoader loader = new NativeTensorLoader();
+		loader.activate(null);
+	}
+	
+	public ExperiencePoolConcurrencyTest(ExperiencePool p, Object bufferSize) throws Exception {
+		this.pool = p.getClass().newInstance();
+		
+		Map<String, Object> config = new HashMap<>();
+		config.put("name", "Concurrent");
+		config.put("dir", "generated");
+		config.put("stateDims", new String[]{"4"});
+		config.put("actionDims", new String[]{"2"});
+		config.put("maxSize", "100");
+		if(bufferSize!=null){
+			config.put("sizePerBuffer", bufferSize);
+		}
+		
+		pool.getClass().getMethod("activate", Map.class).invoke(pool, config);
+	}
+	
+	@Test
+	public void testConcurrentSampling() throws Exception {
+		addSequence(0);
+		
+		AtomicBoolean done = new AtomicBoolean(false);
+		AtomicInteger batches = new AtomicInteger();
+		AtomicReference<String> error = new AtomicReference<>();
+		
+		// while sequences are added, each sample should at least be consistent
+		List<Thread> readers = startReaders(done, batches, error, null);
+		for(int k=1;k<SEQUENCES;k++){
+			addSequence(k);
+		}
+		stopReaders(readers, done, batches, error);
+		
+		Assert.assertNull(error.get(), error.get());
+		Assert.assertTrue(batches.get() > 0);
+	}
+	
+	@Test
+	public void testConcurrentSamplingIndices() throws Exception {
+		for(int k=0;k<SEQUENCES;k++){
+			addSequence(k);
+		}
+		
+		// sampled single threaded, every sample should be at the same index when sampled concurrently
+		float[] expected = new float[pool.size()];
+		for(int i=0;i<expected.length;i++){
+			expected[i] = pool.getSample(i).getScalarReward();
+		}
+		
+		AtomicBoolean done = new AtomicBoolean(false);
+		AtomicInteger batches = new AtomicInteger();
+		AtomicReference<String> error = new AtomicReference<>();
+		
+		List<Thread> readers = startReaders(done, batches, error, expected);
+		stopReaders(readers, done, batches, error);
+		
+		Assert.assertNull(error.get(), error.get());
+		Assert.assertTrue(batches.get() > 0);
+	}
+	
+	private List<Thread> startReaders(AtomicBoolean done, AtomicInteger batches, AtomicReference<String> error, float[] expected){
+		List<Thread> readers = new ArrayList<>();
+		for(int r=0;r<READERS;r++){
+			final long seed = r;
+			Thread reader = new Thread(() -> {
+				Random random = new Random(seed);
+				ExperiencePoolBatch batch = null;
+				int[] indices = new int[BATCH_SIZE];
+				try {
+					while(!done.get() && error.get() == null){
+						int size = pool.size();
+						for(int i=0;i<indices.length;i++){
+							indices[i] = random.nextInt(size);
+						}
+						batch = pool.getBatch(batch, indices);
+						for(int i=0;i<batch.getSize();i++){
+							ExperiencePoolSample s = batch.getSample(i);
+							String e = check(s, expected == null ? s.getScalarReward() : expected[indices[i]], expected != null);
+							if(e != null){
+								error.compareAndSet(null, "Sample "+indices[i]+": "+e);
+							}
+						}
+						batches.incrementAndGet();
+					}
+				} catch(Throwable t){
+					error.compareAndSet(null, t.toString());
+				}
+			});
+			readers.add(reader);
+			reader.start();
+		}
+		return readers;
+	}
+	
+	private void stopReaders(List<Thread> readers, AtomicBoolean done, AtomicInteger batches, AtomicReference<String> error) throws Exception {
+		// make sure each reader got to sample a number of batches
+		while(batches.get() < 100*READERS && error.get() == null){
+			Thread.sleep(10);
+		}
+		
+		done.set(true);
+		for(Thread reader : readers){
+			reader.join();
+		}
+	}
+	
+	private void addSequence(int k){
+		List<ExperiencePoolSample> sequence = new ArrayList<>();
+		for(int i=0;i<SEQUENCE_LENGTH;i++){
+			float v = k*SEQUENCE_LENGTH + i + 1;
+			Tensor state = new Tensor(4);
+			state.fill(v);
+			Tensor action = new Tensor(2);
+			action.fill(v);
+			Tensor nextState = null;
+			if(i < SEQUENCE_LENGTH-1){
+				nextState = new Tensor(4);
+				nextState.fill(v+1);
+			}
+			sequence.add(new ExperiencePoolSample(state, action, v, nextState));
+		}
+		pool.addSequence(new Sequence<ExperiencePoolSample>(sequence, SEQUENCE_LENGTH));
+	}
+	
+	private static String check(ExperiencePoolSample s, float v, boolean checkNext){
+		if(s.getScalarReward() != v){
+			return "Expected reward "+v+" but got "+s.getScalarReward();
+		}
+		for(float f : s.getState().get()){
+			if(f != v){
+				return "Inconsistent state "+s.getState()+" for reward "+v;
+			}
+		}
+		for(float f : s.getAction().get()){
+			if(f != v){
+				return "Inconsistent action "+s.getAction()+" for reward "+v;
+			}
+		}
+		if(checkNext && !s.isTerminal()){
+			// next state is read without lock, so only check when no sequences are added
+			for(float f : s.getNextState().get()){
+				if(f != v+1){
+					return "Inconsistent next state "+s.getNextState()+" for reward "+v;
+				}
+			}
+		}
+		return null;
+	}
+}
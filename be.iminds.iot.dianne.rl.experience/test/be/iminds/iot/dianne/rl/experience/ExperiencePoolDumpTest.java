@@ -0,0 +1,160 @@
+package be.iminds.iot.dianne.rl.experience;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import be.iminds.iot.dianne.api.dataset.Sequence;
+import be.iminds.iot.dianne.api.rl.dataset.ExperiencePool;
+import be.iminds.iot.dianne.api.rl.dataset.ExperiencePoolSample;
+import be.iminds.iot.dianne.tensor.NativeTensorLoader;
+import be.iminds.iot.dianne.tensor.Tensor;
+import junit.framework.Assert;
+
+@RunWith(Parameterized.class)
+public class ExperiencePoolDumpTest {
+
+	private static final String DIR = "generated/dump";
+	
+	@Parameters()
+	public static Collection<Object[]> getParameters() {
+		return Arrays.asList(new Object[][] {
+			{ FileExperiencePool.class, null, null},
+			{ FileExperiencePool.class, "200", null},
+			{ FileExperiencePool.class, null, "false"},
+			{ MemoryExperiencePool.class, null, null}
+		});
+	}
+	
+	private final Class<? extends ExperiencePool> type;
+	private final Map<String, Object> config = new HashMap<>();
+	
+	@BeforeClass
+	public static void setup() {
+		NativeTensorLoader loader = new NativeTensorLoader();
+		loader.activate(null);
+	}
+	
+	public ExperiencePoolDumpTest(Class<? extends ExperiencePool> type, Object bufferSize, Object incremental) {
+		this.type = type;
+		
+		config.put("name", "Dump");
+		config.put("dir", DIR);
+		config.put("stateDims", new String[]{"4"});
+		config.put("actionDims", new String[]{"2"});
+		config.put("maxSize", "12");
+		if(bufferSize!=null){
+			config.put("sizePerBuffer", bufferSize);
+		}
+		if(incremental!=null){
+			config.put("incrementalDump", incremental);
+		}
+	}
+	
+	@Before
+	public void clean() {
+		File dir = new File(DIR);
+		dir.mkdirs();
+		for(File f : dir.listFiles()){
+			f.delete();
+		}
+	}
+	
+	@Test
+	public void testDumpRecover() throws Exception {
+		ExperiencePool pool = create();
+		pool.addSequence(sequence(0, 4));
+		pool.addSequence(sequence(10, 5));
+		pool.dump();
+		
+		ExperiencePool recovered = create();
+		assertEquals(pool, recovered);
+		
+		// add to the recovered pool and cycle, dump again
+		recovered.addSequence(sequence(20, 3));
+		recovered.addSequence(sequence(30, 2));
+		recovered.dump();
+		Assert.assertEquals(3, recovered.sequences());
+		
+		ExperiencePool recovered2 = create();
+		assertEquals(recovered, recovered2);
+		
+		// dump without changes
+		recovered2.dump();
+		assertEquals(recovered, create());
+	}
+	
+	@Test
+	public void testRecoverUnchangedSnapshot() throws Exception {
+		ExperiencePool pool = create();
+		pool.addSequence(sequence(0, 4));
+		pool.addSequence(sequence(10, 5));
+		pool.dump();
+		
+		// changes to a recovered pool do not end up in the snapshot until dumped
+		ExperiencePool recovered = create();
+		recovered.addSequence(sequence(20, 6));
+		assertEquals(pool, create());
+		
+		recovered.dump();
+		assertEquals(recovered, create());
+	}
+	
+	@Test
+	public void testDumpDuringAdd() throws Exception {
+		ExperiencePool pool = create();
+		for(int i=0;i<100;i++){
+			pool.addSequence(sequence(i*10, 1+i%5));
+			if(i % 7 == 0){
+				pool.dump();
+				assertEquals(pool, create());
+			}
+		}
+	}
+	
+	private ExperiencePool create() throws Exception {
+		ExperiencePool pool = type.newInstance();
+		pool.getClass().getMethod("activate", Map.class).invoke(pool, config);
+		return pool;
+	}
+	
+	private Sequence<ExperiencePoolSample> sequence(int offset, int length){
+		List<ExperiencePoolSample> samples = new ArrayList<>();
+		for(int i=0;i<length;i++){
+			float v = offset+i;
+			Tensor state = new Tensor(4);
+			state.fill(v);
+			Tensor action = new Tensor(2);
+			action.fill(-v);
+			Tensor next = null;
+			if(i < length-1){
+				next = new Tensor(4);
+				next.fill(v+1);
+			}
+			samples.add(new ExperiencePoolSample(state, action, v, next));
+		}
+		return new Sequence<ExperiencePoolSample>(samples, length);
+	}
+	
+	private void assertEquals(ExperiencePool expected, ExperiencePool actual){
+		Assert.assertEquals(expected.size(), actual.size());
+		Assert.assertEquals(expected.sequences(), actual.sequences());
+		for(int i=0;i<expected.size();i++){
+			Assert.assertEquals(expected.getSample(i), actual.getSample(i));
+		}
+		for(int i=0;i<expected.sequences();i++){
+			Assert.assertEquals(expected.sequenceLength(i), actual.sequenceLength(i));
+		}
+	}
+}
@@ -0,0 +1,203 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.rl.experience;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import be.iminds.iot.dianne.api.dataset.Sequence;
+import be.iminds.iot.dianne.api.rl.dataset.ExperiencePoolBatch;
+import be.iminds.iot.dianne.api.rl.dataset.ExperiencePoolSample;
+import be.iminds.iot.dianne.tensor.NativeTensorLoader;
+import be.iminds.iot.dianne.tensor.Tensor;
+import junit.framework.Assert;
+
+public class PrioritizedExperiencePoolTest {
+
+	@BeforeClass
+	public static void setup() {
+		NativeTensorLoader loader = new NativeTensorLoader();
+		loader.activate(null);
+	}
+	
+	@Test
+	public void testSumTree() {
+		SumTree tree = new SumTree(5);
+		tree.set(0, 1.0f);
+		tree.set(2, 2.0f);
+		tree.set(4, 1.0f);
+		
+		Assert.assertEquals(4.0f, tree.total(), 0.0f);
+		Assert.assertEquals(0, tree.find(0.5f));
+		Assert.assertEquals(2, tree.find(1.0f));
+		Assert.assertEquals(2, tree.find(2.9f));
+		Assert.assertEquals(4, tree.find(3.5f));
+		// never end up on a position without priority
+		Assert.assertEquals(4, tree.find(4.5f));
+		
+		tree.set(new int[]{0, 4}, new float[]{0.0f, 3.0f});
+		Assert.assertEquals(5.0f, tree.total(), 0.0f);
+		Assert.assertEquals(2, tree.find(0.0f));
+		Assert.assertEquals(4, tree.find(2.0f));
+	}
+	
+	@Test
+	public void testPrioritizedBatch() {
+		MemoryExperiencePool pool = createPool(12, null);
+		pool.addSequence(sequence(0, 5, true));
+		
+		ExperiencePoolBatch batch = pool.getPrioritizedBatch(null, 5, 1.0f);
+		Assert.assertEquals(5, batch.getSize());
+		for(int i=0;i<5;i++){
+			int index = batch.indices[i];
+			Assert.assertTrue(index >= 0 && index < 5);
+			// all samples have the same priority
+			Assert.assertEquals(1.0f, batch.weights.get(i), 0.0001f);
+			Assert.assertEquals(pool.getSample(index).getState(), batch.getState(i));
+			Assert.assertEquals(pool.getSample(index).getScalarReward(), batch.getScalarReward(i), 0.0f);
+		}
+	}
+	
+	@Test
+	public void testUpdatePriorities() {
+		MemoryExperiencePool pool = createPool(12, null);
+		pool.addSequence(sequence(0, 5, true));
+		
+		pool.updatePriorities(new int[]{0, 1, 2, 3, 4}, new float[]{0, 0, 10, 0, 0});
+		
+		int[] counts = new int[5];
+		ExperiencePoolBatch batch = null;
+		for(int k=0;k<100;k++){
+			batch = pool.getPrioritizedBatch(batch, 5, 1.0f);
+			for(int i=0;i<5;i++){
+				counts[batch.indices[i]]++;
+				// the high priority sample gets the lowest weight
+				if(batch.indices[i] != 2){
+					Assert.assertEquals(1.0f, batch.weights.get(i), 0.0001f);
+				}
+			}
+		}
+		Assert.assertTrue(counts[2] > 400);
+		
+		// new samples get the max priority
+		pool.addSequence(sequence(5, 2, true));
+		counts = new int[7];
+		for(int k=0;k<100;k++){
+			batch = pool.getPrioritizedBatch(batch, 5, 1.0f);
+			for(int i=0;i<5;i++){
+				counts[batch.indices[i]]++;
+			}
+		}
+		Assert.assertTrue(counts[5] > 100);
+		Assert.assertTrue(counts[6] > 100);
+	}
+	
+	@Test
+	public void testRemovedSamples() {
+		MemoryExperiencePool pool = createPool(12, null);
+		pool.addSequence(sequence(0, 5, true));
+		pool.getPrioritizedBatch(null, 1, 1.0f);
+		
+		// infinite sequence stores an extra next state that is not sampled
+		pool.addSequence(sequence(5, 3, false));
+		// wraps around and overwrites the first sequence
+		pool.addSequence(sequence(9, 4, true));
+		Assert.assertEquals(7, pool.size());
+		
+		ExperiencePoolBatch batch = null;
+		for(int k=0;k<100;k++){
+			batch = pool.getPrioritizedBatch(batch, 7, 0.5f);
+			for(int i=0;i<7;i++){
+				int index = batch.indices[i];
+				Assert.assertTrue(index == 0 || (index >= 5 && index != 8));
+				Assert.assertEquals(batch.getState(i).get(0), batch.getScalarReward(i), 0.0f);
+			}
+		}
+		
+		// stale updates of removed samples are ignored
+		pool.updatePriorities(new int[]{1}, new float[]{100});
+		batch = pool.getPrioritizedBatch(batch, 7, 0.5f);
+		for(int i=0;i<7;i++){
+			Assert.assertTrue(batch.indices[i] != 1);
+		}
+	}
+	
+	@Test
+	public void testRankPriorities() {
+		Map<String, Object> config = new HashMap<>();
+		config.put("priorityRank", "true");
+		config.put("priorityRankInterval", "1");
+		config.put("priorityAlpha", "1");
+		MemoryExperiencePool pool = createPool(12, config);
+		pool.addSequence(sequence(0, 4, true));
+		
+		// ranks 1..4 result in priorities 1, 1/2, 1/3, 1/4
+		pool.updatePriorities(new int[]{0, 1, 2, 3}, new float[]{0.1f, 100f, 10f, 1f});
+		
+		int[] counts = new int[4];
+		ExperiencePoolBatch batch = null;
+		for(int k=0;k<1000;k++){
+			batch = pool.getPrioritizedBatch(batch, 4, 1.0f);
+			for(int i=0;i<4;i++){
+				counts[batch.indices[i]]++;
+			}
+		}
+		Assert.assertTrue(counts[1] > counts[2]);
+		Assert.assertTrue(counts[2] > counts[3]);
+		Assert.assertTrue(counts[3] > counts[0]);
+	}
+	
+	private MemoryExperiencePool createPool(int maxSize, Map<String, Object> extra){
+		MemoryExperiencePool pool = new MemoryExperiencePool();
+		Map<String, Object> config = new HashMap<>();
+		config.put("name", "Test");
+		config.put("dir", "generated");
+		config.put("stateDims", new String[]{"4"});
+		config.put("actionDims", new String[]{"2"});
+		config.put("maxSize", ""+maxSize);
+		if(extra != null){
+			config.putAll(extra);
+		}
+		pool.activate(config);
+		pool.reset();
+		return pool;
+	}
+	
+	// sequence with the sample value as state and reward
+	private Sequence<ExperiencePoolSample> sequence(int start, int length, boolean terminal){
+		List<ExperiencePoolSample> samples = new ArrayList<>();
+		for(int i=0;i<length;i++){
+			int v = start+i;
+			Tensor state = new Tensor(new float[]{v, v, v, v}, 4);
+			Tensor next = new Tensor(new float[]{v+1, v+1, v+1, v+1}, 4);
+			samples.add(new ExperiencePoolSample(state, new Tensor(new float[]{0, 1}, 2), v, 
+					terminal && i == length-1 ? null : next));
+		}
+		return new Sequence<ExperiencePoolSample>(samples, length);
+	}
+}
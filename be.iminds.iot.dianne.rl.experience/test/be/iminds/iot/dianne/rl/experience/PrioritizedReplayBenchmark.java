@@ -0,0 +1,126 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.rl.experience;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import be.iminds.iot.dianne.api.dataset.Sequence;
+import be.iminds.iot.dianne.api.rl.dataset.ExperiencePoolBatch;
+import be.iminds.iot.dianne.api.rl.dataset.ExperiencePoolSample;
+import be.iminds.iot.dianne.tensor.NativeTensorLoader;
+import be.iminds.iot.dianne.tensor.Tensor;
+
+@Ignore("Benchmark, run manually")
+public class PrioritizedReplayBenchmark {
+
+	private static final int[] SIZES = new int[]{1000000, 10000000};
+	private static final int BATCH_SIZE = 32;
+	private static final int BATCHES = 20000;
+	private static final int LENGTH = 1000;
+	
+	@BeforeClass
+	public static void load() {
+		NativeTensorLoader loader = new NativeTensorLoader();
+		loader.activate(null);
+	}
+	
+	@Test
+	public void benchmarkPrioritizedSampling() throws Exception {
+		for(int size : SIZES){
+			MemoryExperiencePool pool = new MemoryExperiencePool();
+			Map<String, Object> config = new HashMap<>();
+			config.put("name", "Benchmark");
+			config.put("dir", "generated");
+			config.put("stateDims", new String[]{"4"});
+			config.put("actionDims", new String[]{"2"});
+			config.put("maxSize", ""+size);
+			pool.activate(config);
+			pool.reset();
+			
+			fill(pool, size);
+			
+			// warmup, also creates the sum tree
+			run(pool, BATCHES/10, true);
+			
+			long t = run(pool, BATCHES, false);
+			print(size, "uniform", t);
+			
+			t = run(pool, BATCHES, true);
+			print(size, "prioritized", t);
+		}
+	}
+	
+	private void print(int size, String mode, long t){
+		double ms = t/1e6;
+		System.out.println(String.format("%,11d samples %-12s: %10.3f ms - %10.1f batches/s - %10.1f samples/s", 
+				size, mode, ms, BATCHES*1000/ms, (double)BATCHES*BATCH_SIZE*1000/ms));
+	}
+	
+	private void fill(MemoryExperiencePool pool, int size){
+		Tensor state = new Tensor(4);
+		Tensor action = new Tensor(2);
+		List<ExperiencePoolSample> sequence = new ArrayList<>();
+		for(int i=0;i<LENGTH;i++){
+			state.rand();
+			action.fill(0);
+			action.set(1, i % 2);
+			sequence.add(new ExperiencePoolSample(state.clone(), action.clone(), i, i == LENGTH-1 ? null : state.clone()));
+		}
+		for(int k=0;k<size/LENGTH;k++){
+			pool.addSequence(new Sequence<ExperiencePoolSample>(sequence, LENGTH));
+		}
+	}
+	
+	// sample batches and update their priorities
+	private long run(MemoryExperiencePool pool, int batches, boolean prioritized){
+		Random random = new Random(0);
+		int[] indices = new int[BATCH_SIZE];
+		float[] errors = new float[BATCH_SIZE];
+		ExperiencePoolBatch batch = null;
+		
+		long start = System.nanoTime();
+		for(int i=0;i<batches;i++){
+			if(prioritized){
+				batch = pool.getPrioritizedBatch(batch, BATCH_SIZE, 0.4f);
+				for(int k=0;k<BATCH_SIZE;k++){
+					errors[k] = (float)random.nextGaussian();
+				}
+				pool.updatePriorities(batch.indices, errors);
+			} else {
+				for(int k=0;k<BATCH_SIZE;k++){
+					indices[k] = random.nextInt(pool.size());
+				}
+				batch = pool.getBatch(batch, indices);
+			}
+		}
+		return System.nanoTime()-start;
+	}
+}
@@ -23,77 +23,73 @@
 package be.iminds.iot.dianne.rl.learn.sampling;
 
 import java.util.Map;
-import java.util.Random;
-import java.util.TreeMap;
 
 import be.iminds.iot.dianne.api.rl.dataset.ExperiencePool;
 import be.iminds.iot.dianne.api.rl.dataset.ExperiencePoolBatch;
-import be.iminds.iot.dianne.api.rl.dataset.ExperiencePoolSample;
 import be.iminds.iot.dianne.nn.learn.sampling.SamplingFactory.SamplingConfig;
 import be.iminds.iot.dianne.nn.util.DianneConfigHandler;
+import be.iminds.iot.dianne.rl.learn.sampling.config.ExperienceSamplerConfig;
 import be.iminds.iot.dianne.rl.learn.sampling.config.PrioritySamplerConfig;
-import be.iminds.iot.dianne.tensor.Tensor;
 
 /**
- * Utility class that maintains a prioritized subset of the dataset out of which
- * is sampled for the batches
+ * Utility class that samples batches proportional to the priorities maintained by
+ * the experience pool (prioritized experience replay), or falls back to the 
+ * ExperienceSampler in case prioritized sampling is disabled
  * 
  * @author tverbele
  *
  */
 public class PrioritySampler {
 
+	private final ExperiencePool pool;
 	private final ExperienceSampler sampler;
-	private final TreeMap<Float, ExperiencePoolSample> priorityBuffer = new TreeMap<>();
 	private final PrioritySamplerConfig config;
-	private final Random random = new Random(System.currentTimeMillis());
+	private final int batchSize;
+	
+	private ExperiencePoolBatch batch;
+	private long iteration = 0;
 	
 	public PrioritySampler(ExperiencePool pool, SamplingConfig sampling, Map<String, String> config){
-		this.sampler = new ExperienceSampler(pool, sampling, config);
+		this.pool = pool;
 		this.config = DianneConfigHandler.getConfig(config, PrioritySamplerConfig.class);
+		this.batchSize = DianneConfigHandler.getConfig(config, ExperienceSamplerConfig.class).batchSize;
+		this.sampler = this.config.prioritized ? null : new ExperienceSampler(pool, sampling, config);
 	}
 	
 	public ExperiencePoolBatch nextBatch(){
-		ExperiencePoolBatch b = sampler.nextBatch();
+		if(!config.prioritized){
+			return sampler.nextBatch();
+		}
 		
-		// potentially replace some batch items by samples from the priority buffer
-		if(config.prioritySamplingFactor > 0){
-			for(int i=0;i<b.getSize();i++){
-				if(priorityBuffer.size() > 0){
-					if(random.nextDouble() < config.prioritySamplingFactor){
-						// how to best sample from priority buffer?
-						float highest = priorityBuffer.lastKey();
-						float lowest = priorityBuffer.firstKey();
-						float key = lowest + random.nextFloat()*(highest-lowest);
-						
-						ExperiencePoolSample s = priorityBuffer.ceilingEntry(key).getValue();
-						
-						ExperiencePoolSample replace = b.getSample(i);
-						s.copyInto(replace);
-					}
-				}
-			}
+		// anneal the importance sampling exponent towards 1
+		float beta = config.priorityBeta;
+		if(config.priorityBetaIterations > 0){
+			beta += (1.0f - beta)*Math.min(1.0f, (float)iteration/config.priorityBetaIterations);
 		}
+		iteration++;
 		
-		return b;
+		// no prefetching, as the batch should reflect the latest priority updates
+		batch = pool.getPrioritizedBatch(batch, batchSize, beta);
+		return batch;
 	}
 	
-	public void addBatch(Tensor priority, ExperiencePoolBatch batch){
-		if(config.prioritySamplingFactor > 0 ){
-			for(int i=0;i<priority.size();i++){
-				float p = priority.get(i);
-				if(priorityBuffer.size() < config.prioritySamplingSize
-						|| priorityBuffer.lowerKey(p) != null){
-					
-					ExperiencePoolSample save = new ExperiencePoolSample();
-					batch.getSample(i).copyInto(save);
-					priorityBuffer.put(p, save);
-				}
-			}
-			
-			while(priorityBuffer.size() > config.prioritySamplingSize){
-				priorityBuffer.pollFirstEntry();
-			}
-		}
+	/**
+	 * Update the priorities of the samples in a batch fetched with nextBatch
+	 * 
+	 * @param batch the batch 
+	 * @param errors the temporal difference error of each sample
+	 */
+	public void updatePriorities(ExperiencePoolBatch batch, float[] errors){
+		if(!config.prioritized || batch.indices == null)
+			return;
+		
+		pool.updatePriorities(batch.indices, errors);
+	}
+	
+	/**
+	 * @return whether the samples should be weighted with the importance sampling weights of the batch
+	 */
+	public boolean isPrioritized(){
+		return config.prioritized;
 	}
 }
@@ -25,13 +25,20 @@ package be.iminds.iot.dianne.rl.learn.sampling.config;
 public class PrioritySamplerConfig {
 
 	/**
-	 * Probability to get a sample from the priority sampling buffer
+	 * Sample batches proportional to the sample priorities (prioritized experience replay).
+	 * The priority exponent alpha and rank based prioritization are configured on the experience 
+	 * pool (priorityAlpha, priorityEpsilon, priorityRank)
 	 */
-	public float prioritySamplingFactor = 0f;
+	public boolean prioritized = false;
 	
 	/**
-	 * Size of the priority sampling buffer
+	 * Initial importance sampling exponent
 	 */
-	public int prioritySamplingSize = 100;
+	public float priorityBeta = 0.4f;
+	
+	/**
+	 * Number of iterations to anneal the importance sampling exponent to 1
+	 */
+	public int priorityBetaIterations = 100000;
 	
 }
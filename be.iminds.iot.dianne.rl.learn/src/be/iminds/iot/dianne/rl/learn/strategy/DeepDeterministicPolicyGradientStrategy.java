@@ -40,7 +40,7 @@ import be.iminds.iot.dianne.nn.learn.criterion.CriterionFactory.BatchConfig;
 import be.iminds.iot.dianne.nn.learn.criterion.PseudoHuberCriterion;
 import be.iminds.iot.dianne.nn.learn.processors.ProcessorFactory;
 import be.iminds.iot.dianne.nn.util.DianneConfigHandler;
-import be.iminds.iot.dianne.rl.learn.sampling.ExperienceSampler;
+import be.iminds.iot.dianne.rl.learn.sampling.PrioritySampler;
 import be.iminds.iot.dianne.rl.learn.strategy.config.DeepDeterministicPolicyGradientConfig;
 import be.iminds.iot.dianne.tensor.ModuleOps;
 import be.iminds.iot.dianne.tensor.Tensor;
@@ -51,7 +51,7 @@ public class DeepDeterministicPolicyGradientStrategy implements LearningStrategy
 	protected DeepDeterministicPolicyGradientConfig config;
 	
 	protected ExperiencePool pool;
-	protected ExperienceSampler sampler;
+	protected PrioritySampler sampler;
 	
 	protected NeuralNetwork actor;
 	protected NeuralNetwork targetActor;
@@ -72,6 +72,8 @@ public class DeepDeterministicPolicyGradientStrategy implements LearningStrategy
 	protected UUID[] outputIds;
 	
 	protected Tensor targetValue;
+	protected Tensor weights;
+	protected float[] errors;
 	
 	@Override
 	public void setup(Map<String, String> config, Dataset dataset, NeuralNetwork... nns) throws Exception {
@@ -89,7 +91,7 @@ public class DeepDeterministicPolicyGradientStrategy implements LearningStrategy
 		this.targetCritic = nns[3];
 		
 		this.config = DianneConfigHandler.getConfig(config, DeepDeterministicPolicyGradientConfig.class);
-		this.sampler = new ExperienceSampler(pool, this.config.sampling, config);
+		this.sampler = new PrioritySampler(pool, this.config.sampling, config);
 		this.reconCriterion = CriterionFactory.createCriterion(this.config.criterion, config);
 		this.regulCriterion = new PseudoHuberCriterion(DianneConfigHandler.getConfig(config, BatchConfig.class));
 		
@@ -119,6 +121,7 @@ public class DeepDeterministicPolicyGradientStrategy implements LearningStrategy
 		
 		// Pre-allocate tensors for batch operations
 		this.targetValue = new Tensor(this.config.batchSize);
+		this.errors = new float[this.config.batchSize];
 		
 		// Wait for the pool to contain enough samples
 		if(pool.size() < this.config.minSamples){
@@ -156,6 +159,13 @@ public class DeepDeterministicPolicyGradientStrategy implements LearningStrategy
 		float loss = TensorOps.mean(l);
 		Tensor criticGrad = reconCriterion.grad(value, targetValue);
 		
+		// TD errors to update the sample priorities
+		float[] t = targetValue.get();
+		float[] v = value.get();
+		for(int b = 0; b < config.batchSize; b++) {
+			errors[b] = t[b] - v[b];
+		}
+		
 		// Add value smoothing on critic gradient when required
 		if(config.smoothingRegularization > 0) {
 			targetValue.fill(TensorOps.mean(value));
@@ -164,6 +174,13 @@ public class DeepDeterministicPolicyGradientStrategy implements LearningStrategy
 			TensorOps.add(criticGrad, criticGrad, config.smoothingRegularization, regulCriterion.grad(value, targetValue));
 		}
 		
+		// Correct the bias of prioritized sampling with the importance sampling weights
+		if(sampler.isPrioritized()) {
+			weights = batch.weights.copyInto(weights);
+			weights.reshape(criticGrad.dims());
+			TensorOps.cmul(criticGrad, criticGrad, weights);
+		}
+		
 		// Backward pass of the critic
 		critic.backward(outputIds, inputIds, new Tensor[]{criticGrad}).getValue();
 		critic.accGradParameters();
@@ -195,6 +212,9 @@ public class DeepDeterministicPolicyGradientStrategy implements LearningStrategy
 		actor.updateParameters();
 		critic.updateParameters();
 		
+		// Update the priorities of the sampled experience
+		sampler.updatePriorities(batch, errors);
+		
 		// Report the average loss and value of the current policy
 		return new LearnProgress(i, loss, new String[]{"Average Value", "Max Value"}, new float[]{TensorOps.sum(value)/config.batchSize, TensorOps.max(value)});
 	}
@@ -65,6 +65,7 @@ public class DeepQLearningStrategy implements LearningStrategy {
 	protected GradientProcessor gradientProcessor;
 	
 	protected Tensor targetValueBatch;
+	protected float[] errors;
 	
 	@Override
 	public void setup(Map<String, String> config, Dataset dataset, NeuralNetwork... nns) throws Exception {
@@ -86,6 +87,7 @@ public class DeepQLearningStrategy implements LearningStrategy {
 		
 		// Pre-allocate tensors for batch operations
 		this.targetValueBatch = new Tensor(this.config.batchSize, this.pool.actionDims()[0]);
+		this.errors = new float[this.config.batchSize];
 		
 		// Wait for the pool to contain enough samples
 		if(pool.size() < this.config.minSamples){
@@ -155,6 +157,11 @@ public class DeepQLearningStrategy implements LearningStrategy {
 		// Only keep the values on the actions actually taken
 		TensorOps.cmul(valueBatch, valueBatch, batch.getAction());
 		
+		// TD errors to update the sample priorities
+		for(int b = 0; b < config.batchSize; b++) {
+			errors[b] = TensorOps.sum(targetValueBatch.select(0, b)) - TensorOps.sum(valueBatch.select(0, b));
+		}
+		
 		Tensor l = criterion.loss(valueBatch, targetValueBatch);
 		float loss = TensorOps.mean(l);
 		
@@ -164,6 +171,14 @@ public class DeepQLearningStrategy implements LearningStrategy {
 		
 		Tensor grad = criterion.grad(valueBatch, targetValueBatch);
 		
+		// Correct the bias of prioritized sampling with the importance sampling weights
+		if(prioritySampler.isPrioritized()){
+			for(int b = 0; b < config.batchSize; b++) {
+				Tensor g = grad.select(0, b);
+				TensorOps.mul(g, g, batch.weights.get(b));
+			}
+		}
+		
 		// Backward pass of the critic
 		valueNetwork.backward(grad);
 		valueNetwork.accGradParameters();
@@ -175,8 +190,8 @@ public class DeepQLearningStrategy implements LearningStrategy {
 		// Note: target network gets updated automatically by setting the syncInterval option
 		valueNetwork.updateParameters();
 		
-		// Add samples for priority sampling
-		prioritySampler.addBatch(l, batch);
+		// Update the priorities of the sampled experience
+		prioritySampler.updatePriorities(batch, errors);
 		
 		return new LearnProgress(i, loss, new String[]{"q"}, new float[]{value});
 	}
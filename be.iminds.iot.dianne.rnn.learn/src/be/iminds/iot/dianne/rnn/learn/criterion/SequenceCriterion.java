@@ -59,13 +59,21 @@ public class SequenceCriterion implements Criterion {
 	}
 	
 	public List<Tensor> loss(final List<Tensor> outputs, final List<Tensor> targets){
+		return loss(outputs, targets, true);
+	}
+	
+	/**
+	 * Calculate the loss of a part of a sequence
+	 * @param last whether this part ends the sequence
+	 */
+	public List<Tensor> loss(final List<Tensor> outputs, final List<Tensor> targets, boolean last){
 		// Criterion expects to call grad immediately after loss, so we do both here
 		// and just return latest grads array in grad call
 		for(int i=0;i<outputs.size();i++){
 			Tensor loss = criterion.loss(outputs.get(i), targets.get(i)).clone();
 			Tensor grad = criterion.grad(outputs.get(i), targets.get(i));
 
-			if(!config.backpropAll && i!=outputs.size()-1){
+			if(!config.backpropAll && (!last || i!=outputs.size()-1)){
 				loss.fill(0.0f);
 				grad.fill(0.0f);
 			}
@@ -77,11 +85,18 @@ public class SequenceCriterion implements Criterion {
 				grad.copyInto(grads.get(i));
 			}
 		}
-		return losses;
+		return losses.subList(0, outputs.size());
 	}
 	
 	public List<Tensor> grad(final List<Tensor> outputs, final List<Tensor> targets){
 		// grads list should be updated with a loss call
-		return grads;
+		return grads.subList(0, outputs.size());
+	}
+	
+	/**
+	 * @return whether the error of all steps is back propagated, or only of the last one
+	 */
+	public boolean backpropAll(){
+		return config.backpropAll;
 	}
 }
@@ -87,18 +87,33 @@ public class BPTTLearningStrategy implements LearningStrategy {
 
 		// sample sequence
 		Sequence<Batch> sequence = sampler.nextSequence();
-		
-		// forward
-		List<Tensor> outputs = nn.forward(sequence.getInputs());
-		
-		// calculate gradients
+		List<Tensor> inputs = sequence.getInputs();
 		List<Tensor> targets = sequence.getTargets();
-		float loss =  TensorOps.mean(criterion.loss(outputs, targets).stream().reduce((t1,t2) -> TensorOps.add(t1, t1, t2)).get())/sequence.size;
-		List<Tensor> gradOutputs = criterion.grad(outputs, targets);
 		
-		// backward and acc grad parameters
-		nn.backward(gradOutputs, true);
-
+		// process the sequence in windows, the memories carry over the hidden state
+		int window = config.window > 0 ? config.window : sequence.size;
+		float loss = 0;
+		for(int start=0;start<sequence.size;start+=window){
+			int end = Math.min(start+window, sequence.size);
+			boolean last = end == sequence.size;
+			
+			// forward
+			List<Tensor> outputs = nn.forward(inputs.subList(start, end));
+			
+			// calculate gradients
+			List<Tensor> windowTargets = targets.subList(start, end);
+			loss += TensorOps.mean(criterion.loss(outputs, windowTargets, last).stream().reduce((t1,t2) -> TensorOps.add(t1, t1, t2)).get());
+			
+			// backward and acc grad parameters, unless no error is back propagated in this window
+			if(last || criterion.backpropAll()){
+				List<Tensor> gradOutputs = criterion.grad(outputs, windowTargets);
+				// the memories still hold the gradient of the previous window, which should not flow into this one
+				nn.resetMemoryGradients();
+				nn.backward(gradOutputs, true);
+			}
+		}
+		loss /= sequence.size;
+		
 		// run gradient processors
 		gradientProcessor.calculateDelta(i);
 		
@@ -38,6 +38,13 @@ public class BPTTConfig {
 	 */
 	public int sequenceLength = 1;
 	
+	/**
+	 * Number of steps to back propagate through at once (truncated BPTT). The sequence is processed 
+	 * in windows of this length, carrying over the hidden state between windows. Use 0 to back 
+	 * propagate through the complete sequence
+	 */
+	public int window = 0;
+	
 	/**
 	 * The criterion to use to evaluate the error between output and target
 	 */
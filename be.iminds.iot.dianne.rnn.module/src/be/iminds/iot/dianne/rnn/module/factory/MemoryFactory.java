@@ -38,6 +38,8 @@ import be.iminds.iot.dianne.api.nn.module.dto.ModulePropertyDTO;
 import be.iminds.iot.dianne.api.nn.module.dto.ModuleTypeDTO;
 import be.iminds.iot.dianne.api.nn.module.factory.ModuleFactory;
 import be.iminds.iot.dianne.api.nn.module.factory.ModuleTypeNotSupportedException;
+import be.iminds.iot.dianne.rnn.module.layer.GRU;
+import be.iminds.iot.dianne.rnn.module.layer.LSTM;
 import be.iminds.iot.dianne.rnn.module.memory.SimpleMemory;
 import be.iminds.iot.dianne.tensor.Tensor;
 
@@ -53,6 +55,14 @@ public class MemoryFactory implements ModuleFactory {
 		
 		addSupportedType( new ModuleTypeDTO("Memory", "Memory", true, 
 					new ModulePropertyDTO("Memory size", "size", Integer.class.getName())));
+		
+		addSupportedType( new ModuleTypeDTO("LSTM", "Recurrent", true, 
+					new ModulePropertyDTO("Input size", "input", Integer.class.getName()),
+					new ModulePropertyDTO("Output size", "output", Integer.class.getName())));
+		
+		addSupportedType( new ModuleTypeDTO("GRU", "Recurrent", true, 
+					new ModulePropertyDTO("Input size", "input", Integer.class.getName()),
+					new ModulePropertyDTO("Output size", "output", Integer.class.getName())));
 	}
 	
 	
@@ -85,6 +95,30 @@ public class MemoryFactory implements ModuleFactory {
 			}
 			break;
 		}
+		case "LSTM":
+		{
+			int inSize = Integer.parseInt(dto.properties.get("input"));
+			int outSize = Integer.parseInt(dto.properties.get("output"));
+			
+			if(parameters!=null){
+				module = new LSTM(id, parameters, inSize, outSize);
+			} else {
+				module = new LSTM(id, inSize, outSize);
+			}
+			break;
+		}
+		case "GRU":
+		{
+			int inSize = Integer.parseInt(dto.properties.get("input"));
+			int outSize = Integer.parseInt(dto.properties.get("output"));
+			
+			if(parameters!=null){
+				module = new GRU(id, parameters, inSize, outSize);
+			} else {
+				module = new GRU(id, inSize, outSize);
+			}
+			break;
+		}
 		default:
 			throw new InstantiationException("Could not instantiate module of type "+type);
 		}
@@ -107,7 +141,24 @@ public class MemoryFactory implements ModuleFactory {
 		if(!supportedModules.containsKey(m.type))
 			throw new ModuleTypeNotSupportedException(m.type);
 		
-		return 0;
+		int size = 0;
+		switch(m.type){
+			case "LSTM":
+			{
+				int inSize = Integer.parseInt(m.properties.get("input"));
+				int outSize = Integer.parseInt(m.properties.get("output"));
+				size = 4*outSize*(inSize+outSize+1);
+				break;
+			}
+			case "GRU":
+			{
+				int inSize = Integer.parseInt(m.properties.get("input"));
+				int outSize = Integer.parseInt(m.properties.get("output"));
+				size = 3*outSize*(inSize+outSize+1);
+				break;
+			}
+		}
+		return size;
 	}
 
 	@Override
@@ -122,6 +173,17 @@ public class MemoryFactory implements ModuleFactory {
 				size = Integer.parseInt(m.properties.get("size"));
 				break;
 			}
+			case "LSTM":
+			{
+				// output and cell state
+				size = 2*Integer.parseInt(m.properties.get("output"));
+				break;
+			}
+			case "GRU":
+			{
+				size = Integer.parseInt(m.properties.get("output"));
+				break;
+			}
 		}
 		return size;
 	}
@@ -0,0 +1,171 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.rnn.module.layer;
+
+import java.util.UUID;
+
+import be.iminds.iot.dianne.api.nn.module.AbstractTrainableModule;
+import be.iminds.iot.dianne.api.nn.module.Memory;
+import be.iminds.iot.dianne.tensor.Tensor;
+import be.iminds.iot.dianne.tensor.TensorOps;
+
+/**
+ * Base class for recurrent layers that keep their state internally and calculate
+ * a complete time step in a single module, instead of a composite of a memory and
+ * a number of small modules.
+ * 
+ * The state is kept in the memory tensor, which is updated on each forward. The
+ * gradient with respect to the state is kept as well, and is added to the gradOutput
+ * of the previous time step on the next backward. This way the module behaves as
+ * a regular module in the neural network, the memory only has to be stored and 
+ * loaded between time steps for back propagation through time.
+ * 
+ * @author tverbele
+ *
+ */
+public abstract class AbstractRecurrentModule extends AbstractTrainableModule implements Memory {
+
+	protected final int inSize;
+	protected final int outSize;
+	protected final int memorySize;
+	
+	protected Tensor memory;
+	protected Tensor gradMemory;
+	
+	protected Tensor ones = new Tensor(new float[]{1.0f}, 1);
+	
+	// current batch size, 0 in case of a single sample
+	protected int batchSize = -1;
+	
+	public AbstractRecurrentModule(UUID id, Tensor parameters, int inSize, int outSize, int memorySize){
+		super(id, parameters);
+		this.inSize = inSize;
+		this.outSize = outSize;
+		this.memorySize = memorySize;
+		
+		reset(0);
+	}
+	
+	/**
+	 * (Re)allocate the buffers and views used for calculating a time step 
+	 */
+	protected abstract void allocate(int batchSize);
+	
+	/**
+	 * Calculate the new state and output from input and the current state
+	 */
+	protected abstract void step();
+	
+	/**
+	 * Calculate gradInput and the gradient of the previous state from gradOutput 
+	 * and the gradient of the current state
+	 */
+	protected abstract void stepBack();
+	
+	@Override
+	protected void forward() {
+		int b = input.dim() == 2 ? input.size(0) : 0;
+		if(b != batchSize){
+			reset(b);
+		}
+		step();
+	}
+
+	@Override
+	protected void backward() {
+		if(deltaParameters==null){
+			initDeltaParameters(null);
+		}
+		stepBack();
+	}
+	
+	@Override
+	public void triggerForward(final String... tags) {
+		// state is kept internally, output is forwarded in forward
+	}
+
+	@Override
+	public void triggerBackward(final String... tags) {
+		// gradient of the state is kept internally, gradInput is backwarded in backward
+	}
+
+	@Override
+	public void reset(int batchSize){
+		int[] dims = dims(batchSize, memorySize);
+		if(memory == null || !memory.hasDim(dims)){
+			memory = new Tensor(dims);
+		}
+		if(gradMemory == null || !gradMemory.hasDim(dims)){
+			gradMemory = new Tensor(dims);
+		}
+		init(batchSize);
+	}
+	
+	@Override
+	public void reset(Tensor t){
+		memory = t;
+		gradMemory = new Tensor(t.dims());
+		init(t.dim() > 1 ? t.size(0) : 0);
+	}
+	
+	@Override
+	public void resetGradient(){
+		gradMemory.fill(0.0f);
+	}
+	
+	private void init(int batchSize){
+		memory.fill(0.0f);
+		gradMemory.fill(0.0f);
+		
+		if(this.batchSize != batchSize || ones.size(0) != Math.max(batchSize, 1)){
+			ones = new Tensor(Math.max(batchSize, 1));
+			ones.fill(1.0f);
+		}
+		this.batchSize = batchSize;
+		
+		allocate(batchSize);
+	}
+
+	@Override
+	public Tensor getMemory() {
+		return memory;
+	}
+
+	@Override
+	public void setMemory(Tensor memory) {
+		memory.copyInto(this.memory);
+	}
+	
+	@Override 
+	protected void randomize(){
+		// randomize uniform [-std, std] with std = 1/sqrt(noInputs), as the Linear modules of the composite
+		parameters.rand();
+		float std = (float) (1f/Math.sqrt(inSize+outSize));
+		TensorOps.mul(parameters, parameters, 2*std);
+		TensorOps.sub(parameters, parameters, std);
+	}
+	
+	protected static int[] dims(int batchSize, int size){
+		return batchSize > 0 ? new int[]{batchSize, size} : new int[]{size};
+	}
+}
@@ -0,0 +1,239 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.rnn.module.layer;
+
+import java.util.UUID;
+
+import be.iminds.iot.dianne.tensor.ModuleOps;
+import be.iminds.iot.dianne.tensor.Tensor;
+import be.iminds.iot.dianne.tensor.TensorOps;
+
+/**
+ * Gated Recurrent Unit layer. The reset and update gates are calculated with a 
+ * single matrix multiplication of the concatenated input and previous output, the 
+ * candidate output needs a second one as it depends on the reset gate.
+ * 
+ * The parameters have the same layout as the GRU composite, i.e. the weights and 
+ * bias of the candidate Linear (input+output inputs, output outputs) followed by 
+ * the weights and bias of the gates Linear (input+output inputs, 2*output outputs, 
+ * reset gate first). The memory contains the output.
+ * 
+ * @author tverbele
+ *
+ */
+public class GRU extends AbstractRecurrentModule {
+
+	private Tensor weightsN;
+	private Tensor biasN;
+	private Tensor weightsRZ;
+	private Tensor biasRZ;
+	
+	private Tensor deltaWeightsN;
+	private Tensor deltaBiasN;
+	private Tensor deltaWeightsRZ;
+	private Tensor deltaBiasRZ;
+	
+	// concatenated input and previous output
+	private Tensor xh;
+	private Tensor xhX;
+	private Tensor xhH;
+	
+	// concatenated input and reset previous output
+	private Tensor xrh;
+	private Tensor xrhX;
+	private Tensor xrhH;
+	
+	// gate activations
+	private Tensor rz;
+	private Tensor r;
+	private Tensor z;
+	private Tensor n;
+	
+	// gradients
+	private Tensor gradRZ;
+	private Tensor gradR;
+	private Tensor gradZ;
+	private Tensor gradN;
+	
+	private Tensor dh;
+	private Tensor temp;
+	
+	private Tensor gradXH;
+	private Tensor gradXHX;
+	private Tensor gradXHH;
+	private Tensor gradXRH;
+	private Tensor gradXRHX;
+	private Tensor gradXRHH;
+	
+	public GRU(int inSize, int outSize){
+		this(UUID.randomUUID(), inSize, outSize);
+	}
+	
+	public GRU(UUID id, int inSize, int outSize){
+		super(id, new Tensor(3*outSize*(inSize+outSize+1)), inSize, outSize, outSize);
+		init();
+		parameters.fill(0.0f);
+	}
+	
+	public GRU(UUID id, Tensor parameters, int inSize, int outSize){
+		super(id, parameters, inSize, outSize, outSize);
+		init();
+	}
+	
+	private void init(){
+		int size = 3*outSize*(inSize+outSize+1);
+		if(parameters.size()!=size){
+			parameters.reshape(size);
+		}
+		
+		int offset = 0;
+		weightsN = parameters.narrow(0, offset, outSize*(inSize+outSize));
+		weightsN.reshape(outSize, inSize+outSize);
+		offset += outSize*(inSize+outSize);
+		biasN = parameters.narrow(0, offset, outSize);
+		biasN.reshape(outSize);
+		offset += outSize;
+		weightsRZ = parameters.narrow(0, offset, 2*outSize*(inSize+outSize));
+		weightsRZ.reshape(2*outSize, inSize+outSize);
+		offset += 2*outSize*(inSize+outSize);
+		biasRZ = parameters.narrow(0, offset, 2*outSize);
+		biasRZ.reshape(2*outSize);
+	}
+	
+	@Override
+	public void initDeltaParameters(Tensor deltas) {
+		if(deltas==null){
+			deltaParameters = new Tensor(3*outSize*(inSize+outSize+1));
+		} else {
+			// TODO check size?
+			deltaParameters = deltas;
+		}
+		
+		int offset = 0;
+		deltaWeightsN = deltaParameters.narrow(0, offset, outSize*(inSize+outSize));
+		deltaWeightsN.reshape(outSize, inSize+outSize);
+		offset += outSize*(inSize+outSize);
+		deltaBiasN = deltaParameters.narrow(0, offset, outSize);
+		deltaBiasN.reshape(outSize);
+		offset += outSize;
+		deltaWeightsRZ = deltaParameters.narrow(0, offset, 2*outSize*(inSize+outSize));
+		deltaWeightsRZ.reshape(2*outSize, inSize+outSize);
+		offset += 2*outSize*(inSize+outSize);
+		deltaBiasRZ = deltaParameters.narrow(0, offset, 2*outSize);
+		deltaBiasRZ.reshape(2*outSize);
+		
+		deltaParameters.fill(0.0f);
+	}
+	
+	@Override
+	protected void allocate(int batchSize){
+		int d = batchSize > 0 ? 1 : 0;
+		
+		xh = new Tensor(dims(batchSize, inSize+outSize));
+		xhX = xh.narrow(d, 0, inSize);
+		xhH = xh.narrow(d, inSize, outSize);
+		
+		xrh = new Tensor(dims(batchSize, inSize+outSize));
+		xrhX = xrh.narrow(d, 0, inSize);
+		xrhH = xrh.narrow(d, inSize, outSize);
+		
+		rz = new Tensor(dims(batchSize, 2*outSize));
+		r = rz.narrow(d, 0, outSize);
+		z = rz.narrow(d, outSize, outSize);
+		n = new Tensor(dims(batchSize, outSize));
+		
+		gradRZ = new Tensor(dims(batchSize, 2*outSize));
+		gradR = gradRZ.narrow(d, 0, outSize);
+		gradZ = gradRZ.narrow(d, outSize, outSize);
+		gradN = new Tensor(dims(batchSize, outSize));
+		
+		dh = new Tensor(dims(batchSize, outSize));
+		temp = new Tensor(dims(batchSize, outSize));
+		
+		gradXH = new Tensor(dims(batchSize, inSize+outSize));
+		gradXHX = gradXH.narrow(d, 0, inSize);
+		gradXHH = gradXH.narrow(d, inSize, outSize);
+		
+		gradXRH = new Tensor(dims(batchSize, inSize+outSize));
+		gradXRHX = gradXRH.narrow(d, 0, inSize);
+		gradXRHH = gradXRH.narrow(d, inSize, outSize);
+	}
+	
+	@Override
+	protected void step() {
+		input.copyInto(xhX);
+		memory.copyInto(xhH);
+		
+		// reset and update gates in one go
+		ModuleOps.linear(rz, xh, weightsRZ, biasRZ, ones);
+		ModuleOps.sigmoid(rz, rz);
+		
+		// n = tanh(W [x, r*h] + b)
+		input.copyInto(xrhX);
+		TensorOps.cmul(xrhH, r, xhH);
+		ModuleOps.linear(n, xrh, weightsN, biasN, ones);
+		ModuleOps.tanh(n, n);
+		
+		// h = z*n + (1-z)*h 
+		TensorOps.sub(memory, n, xhH);
+		TensorOps.cmul(memory, memory, z);
+		TensorOps.add(memory, memory, xhH);
+		
+		output = memory.copyInto(output);
+	}
+	
+	@Override
+	protected void stepBack() {
+		// add gradient of the output from the next time step
+		TensorOps.add(dh, gradOutput, gradMemory);
+		
+		TensorOps.cmul(gradN, dh, z);
+		ModuleOps.tanhGradIn(gradN, gradN, n, n);
+		
+		TensorOps.sub(temp, n, xhH);
+		TensorOps.cmul(gradZ, dh, temp);
+		ModuleOps.sigmoidGradIn(gradZ, gradZ, z, z);
+		
+		ModuleOps.linearGradIn(gradXRH, gradN, weightsN, xrh);
+		
+		TensorOps.cmul(gradR, gradXRHH, xhH);
+		ModuleOps.sigmoidGradIn(gradR, gradR, r, r);
+		
+		ModuleOps.linearGradIn(gradXH, gradRZ, weightsRZ, xh);
+		
+		// keep gradient of the previous output for the previous time step
+		TensorOps.cmul(temp, dh, z);
+		TensorOps.sub(gradMemory, dh, temp);
+		TensorOps.addcmul(gradMemory, gradMemory, 1.0f, gradXRHH, r);
+		TensorOps.add(gradMemory, gradMemory, gradXHH);
+		
+		gradInput = TensorOps.add(gradInput, gradXRHX, gradXHX);
+	}
+
+	@Override
+	public void accGradParameters() {
+		ModuleOps.linearAccGrad(deltaWeightsN, deltaBiasN, gradN, xrh, ones);
+		ModuleOps.linearAccGrad(deltaWeightsRZ, deltaBiasRZ, gradRZ, xh, ones);
+	}
+	
+}
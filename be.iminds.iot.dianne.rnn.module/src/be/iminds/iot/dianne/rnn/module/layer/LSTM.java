@@ -0,0 +1,225 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.rnn.module.layer;
+
+import java.util.UUID;
+
+import be.iminds.iot.dianne.tensor.ModuleOps;
+import be.iminds.iot.dianne.tensor.Tensor;
+import be.iminds.iot.dianne.tensor.TensorOps;
+
+/**
+ * Long Short-Term Memory layer. All gates are calculated with a single matrix 
+ * multiplication of the concatenated input and previous output, followed by 
+ * the elementwise gate operations on views of the result.
+ * 
+ * The parameters have the same layout as the LSTM composite, i.e. the weights 
+ * and bias of a Linear with input+output inputs and 4*output outputs, with the 
+ * gates in order forget, output, input and cell. The memory contains the output 
+ * followed by the cell state.
+ * 
+ * @author tverbele
+ *
+ */
+public class LSTM extends AbstractRecurrentModule {
+
+	private Tensor weights;
+	private Tensor bias;
+	
+	private Tensor deltaWeights;
+	private Tensor deltaBias;
+	
+	// state
+	private Tensor h;
+	private Tensor c;
+	private Tensor gradH;
+	private Tensor gradC;
+	
+	// concatenated input and previous output
+	private Tensor xh;
+	private Tensor xhX;
+	private Tensor xhH;
+	
+	// gate activations
+	private Tensor gates;
+	private Tensor sigmoids;
+	private Tensor f;
+	private Tensor o;
+	private Tensor i;
+	private Tensor g;
+	
+	private Tensor cPrev;
+	private Tensor tanhC;
+	
+	// gradients
+	private Tensor gradGates;
+	private Tensor gradF;
+	private Tensor gradO;
+	private Tensor gradI;
+	private Tensor gradG;
+	
+	private Tensor dh;
+	private Tensor dc;
+	
+	private Tensor gradXH;
+	private Tensor gradXHX;
+	private Tensor gradXHH;
+	
+	public LSTM(int inSize, int outSize){
+		this(UUID.randomUUID(), inSize, outSize);
+	}
+	
+	public LSTM(UUID id, int inSize, int outSize){
+		super(id, new Tensor(4*outSize*(inSize+outSize+1)), inSize, outSize, 2*outSize);
+		init();
+		parameters.fill(0.0f);
+	}
+	
+	public LSTM(UUID id, Tensor parameters, int inSize, int outSize){
+		super(id, parameters, inSize, outSize, 2*outSize);
+		init();
+	}
+	
+	private void init(){
+		int size = 4*outSize*(inSize+outSize+1);
+		if(parameters.size()!=size){
+			parameters.reshape(size);
+		}
+		
+		weights = parameters.narrow(0, 0, 4*outSize*(inSize+outSize));
+		weights.reshape(4*outSize, inSize+outSize);
+		bias = parameters.narrow(0, 4*outSize*(inSize+outSize), 4*outSize);
+		bias.reshape(4*outSize);
+	}
+	
+	@Override
+	public void initDeltaParameters(Tensor deltas) {
+		if(deltas==null){
+			deltaParameters = new Tensor(4*outSize*(inSize+outSize+1));
+		} else {
+			// TODO check size?
+			deltaParameters = deltas;
+		}
+		
+		deltaWeights = deltaParameters.narrow(0, 0, 4*outSize*(inSize+outSize));
+		deltaWeights.reshape(4*outSize, inSize+outSize);
+		deltaBias = deltaParameters.narrow(0, 4*outSize*(inSize+outSize), 4*outSize);
+		deltaBias.reshape(4*outSize);
+		
+		deltaParameters.fill(0.0f);
+	}
+	
+	@Override
+	protected void allocate(int batchSize){
+		int d = batchSize > 0 ? 1 : 0;
+		
+		h = memory.narrow(d, 0, outSize);
+		c = memory.narrow(d, outSize, outSize);
+		gradH = gradMemory.narrow(d, 0, outSize);
+		gradC = gradMemory.narrow(d, outSize, outSize);
+		
+		xh = new Tensor(dims(batchSize, inSize+outSize));
+		xhX = xh.narrow(d, 0, inSize);
+		xhH = xh.narrow(d, inSize, outSize);
+		
+		gates = new Tensor(dims(batchSize, 4*outSize));
+		sigmoids = gates.narrow(d, 0, 3*outSize);
+		f = gates.narrow(d, 0, outSize);
+		o = gates.narrow(d, outSize, outSize);
+		i = gates.narrow(d, 2*outSize, outSize);
+		g = gates.narrow(d, 3*outSize, outSize);
+		
+		cPrev = new Tensor(dims(batchSize, outSize));
+		tanhC = new Tensor(dims(batchSize, outSize));
+		
+		gradGates = new Tensor(dims(batchSize, 4*outSize));
+		gradF = gradGates.narrow(d, 0, outSize);
+		gradO = gradGates.narrow(d, outSize, outSize);
+		gradI = gradGates.narrow(d, 2*outSize, outSize);
+		gradG = gradGates.narrow(d, 3*outSize, outSize);
+		
+		dh = new Tensor(dims(batchSize, outSize));
+		dc = new Tensor(dims(batchSize, outSize));
+		
+		gradXH = new Tensor(dims(batchSize, inSize+outSize));
+		gradXHX = gradXH.narrow(d, 0, inSize);
+		gradXHH = gradXH.narrow(d, inSize, outSize);
+	}
+	
+	@Override
+	protected void step() {
+		input.copyInto(xhX);
+		h.copyInto(xhH);
+		c.copyInto(cPrev);
+		
+		// all gates in one go
+		ModuleOps.linear(gates, xh, weights, bias, ones);
+		ModuleOps.sigmoid(sigmoids, sigmoids);
+		ModuleOps.tanh(g, g);
+		
+		// c = f*c + i*g
+		TensorOps.cmul(c, f, cPrev);
+		TensorOps.addcmul(c, c, 1.0f, i, g);
+		
+		// h = o*tanh(c)
+		ModuleOps.tanh(tanhC, c);
+		TensorOps.cmul(h, o, tanhC);
+		
+		output = h.copyInto(output);
+	}
+	
+	@Override
+	protected void stepBack() {
+		// add gradient of the output from the next time step
+		TensorOps.add(dh, gradOutput, gradH);
+		
+		TensorOps.cmul(gradO, dh, tanhC);
+		ModuleOps.sigmoidGradIn(gradO, gradO, o, o);
+		
+		// add gradient of the cell state from the next time step
+		TensorOps.cmul(dc, dh, o);
+		ModuleOps.tanhGradIn(dc, dc, tanhC, tanhC);
+		TensorOps.add(dc, dc, gradC);
+		
+		TensorOps.cmul(gradF, dc, cPrev);
+		ModuleOps.sigmoidGradIn(gradF, gradF, f, f);
+		TensorOps.cmul(gradI, dc, g);
+		ModuleOps.sigmoidGradIn(gradI, gradI, i, i);
+		TensorOps.cmul(gradG, dc, i);
+		ModuleOps.tanhGradIn(gradG, gradG, g, g);
+		
+		ModuleOps.linearGradIn(gradXH, gradGates, weights, xh);
+		
+		// keep gradient of the previous state for the previous time step
+		TensorOps.cmul(gradC, dc, f);
+		gradXHH.copyInto(gradH);
+		
+		gradInput = gradXHX.copyInto(gradInput);
+	}
+
+	@Override
+	public void accGradParameters() {
+		ModuleOps.linearAccGrad(deltaWeights, deltaBias, gradGates, xh, ones);
+	}
+	
+}
@@ -28,6 +28,7 @@ import java.util.UUID;
 import be.iminds.iot.dianne.api.nn.module.AbstractModule;
 import be.iminds.iot.dianne.api.nn.module.Memory;
 import be.iminds.iot.dianne.api.nn.module.ModuleException;
+import be.iminds.iot.dianne.api.nn.module.ModuleScheduler;
 import be.iminds.iot.dianne.tensor.Tensor;
 
 public abstract class AbstractMemory extends AbstractModule implements Memory {
@@ -75,7 +76,7 @@ public abstract class AbstractMemory extends AbstractModule implements Memory {
 				} else {
 					// default mode BLOCKING
 					try {
-						nextBusy.wait();
+						ModuleScheduler.await(nextBusy, nextBusy::get);
 					} catch (InterruptedException e) {
 					}
 				}
@@ -129,7 +130,7 @@ public abstract class AbstractMemory extends AbstractModule implements Memory {
 			notifyForwardListeners();
 		
 		// dispatch to next
-		if(next!=null)
+		if(next!=null && !compiled)
 			callNext();
 	}
 
@@ -162,7 +163,7 @@ public abstract class AbstractMemory extends AbstractModule implements Memory {
 			notifyBackwardListeners();
 		
 		// dispatch to previous
-		if(prev!=null)
+		if(prev!=null && !compiled)
 			callPrevious();
 	}
 
@@ -196,6 +197,13 @@ public abstract class AbstractMemory extends AbstractModule implements Memory {
 		resetMemory(batchSize);
 	}
 	
+	@Override
+	public void resetGradient(){
+		// gradInput might be the gradOutput of the next module, so don't fill it in place
+		gradInput = new Tensor(memory.dims());
+		gradInput.fill(0.0f);
+	}
+	
 	@Override
 	public Tensor getMemory() {
 		return memory;
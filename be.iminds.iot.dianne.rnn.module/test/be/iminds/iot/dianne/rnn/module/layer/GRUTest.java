@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.rnn.module.layer;
+
+import java.util.UUID;
+
+import org.junit.Test;
+
+import be.iminds.iot.dianne.tensor.Tensor;
+
+public class GRUTest extends RecurrentTest {
+
+	@Override
+	protected AbstractRecurrentModule create(Tensor parameters) {
+		return new GRU(UUID.randomUUID(), parameters, IN, OUT);
+	}
+
+	@Override
+	protected int parameterSize() {
+		return 3*OUT*(IN+OUT+1);
+	}
+
+	@Override
+	protected double[] step(double[] p, double[] x, double[] state) {
+		// candidate linear first, then the gates linear with reset and update gate
+		int gates = OUT*(IN+OUT+1);
+		int b = state.length/OUT;
+		double[] out = new double[b*OUT];
+		for(int k=0;k<b;k++){
+			double[] h = new double[OUT];
+			System.arraycopy(state, k*OUT, h, 0, OUT);
+			double[] rh = new double[OUT];
+			double[] z = new double[OUT];
+			for(int o=0;o<OUT;o++){
+				rh[o] = sigmoid(linear(p, gates, 2*OUT, x, h, k, o))*h[o];
+				z[o] = sigmoid(linear(p, gates, 2*OUT, x, h, k, OUT+o));
+			}
+			for(int o=0;o<OUT;o++){
+				double n = Math.tanh(linear(p, 0, OUT, x, rh, k, o));
+				out[k*OUT+o] = z[o]*n + (1-z[o])*h[o];
+			}
+			System.arraycopy(out, k*OUT, state, k*OUT, OUT);
+		}
+		return out;
+	}
+	
+	@Test
+	public void testForward() {
+		testForward(0);
+	}
+	
+	@Test
+	public void testForwardBatch() {
+		testForward(BATCH);
+	}
+	
+	@Test
+	public void testGradients() {
+		testGradients(0);
+	}
+	
+	@Test
+	public void testGradientsBatch() {
+		testGradients(BATCH);
+	}
+	
+	@Test
+	public void testTruncatedGradients() {
+		testTruncatedGradients(0);
+	}
+	
+	@Test
+	public void testTruncatedGradientsBatch() {
+		testTruncatedGradients(BATCH);
+	}
+}
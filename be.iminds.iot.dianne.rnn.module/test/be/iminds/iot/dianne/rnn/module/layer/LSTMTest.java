@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.rnn.module.layer;
+
+import java.util.UUID;
+
+import org.junit.Test;
+
+import be.iminds.iot.dianne.tensor.Tensor;
+
+public class LSTMTest extends RecurrentTest {
+
+	@Override
+	protected AbstractRecurrentModule create(Tensor parameters) {
+		return new LSTM(UUID.randomUUID(), parameters, IN, OUT);
+	}
+
+	@Override
+	protected int parameterSize() {
+		return 4*OUT*(IN+OUT+1);
+	}
+
+	@Override
+	protected double[] step(double[] p, double[] x, double[] state) {
+		// state is output h followed by cell c, gates are forget, output, input, cell
+		int b = state.length/(2*OUT);
+		double[] out = new double[b*OUT];
+		for(int k=0;k<b;k++){
+			double[] h = new double[OUT];
+			System.arraycopy(state, k*2*OUT, h, 0, OUT);
+			for(int o=0;o<OUT;o++){
+				double f = sigmoid(linear(p, 0, 4*OUT, x, h, k, o));
+				double og = sigmoid(linear(p, 0, 4*OUT, x, h, k, OUT+o));
+				double i = sigmoid(linear(p, 0, 4*OUT, x, h, k, 2*OUT+o));
+				double g = Math.tanh(linear(p, 0, 4*OUT, x, h, k, 3*OUT+o));
+				
+				double c = f*state[k*2*OUT+OUT+o] + i*g;
+				state[k*2*OUT+OUT+o] = c;
+				out[k*OUT+o] = og*Math.tanh(c);
+			}
+			System.arraycopy(out, k*OUT, state, k*2*OUT, OUT);
+		}
+		return out;
+	}
+	
+	@Test
+	public void testForward() {
+		testForward(0);
+	}
+	
+	@Test
+	public void testForwardBatch() {
+		testForward(BATCH);
+	}
+	
+	@Test
+	public void testGradients() {
+		testGradients(0);
+	}
+	
+	@Test
+	public void testGradientsBatch() {
+		testGradients(BATCH);
+	}
+	
+	@Test
+	public void testTruncatedGradients() {
+		testTruncatedGradients(0);
+	}
+	
+	@Test
+	public void testTruncatedGradientsBatch() {
+		testTruncatedGradients(BATCH);
+	}
+}
@@ -0,0 +1,258 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.rnn.module.layer;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+
+import be.iminds.iot.dianne.tensor.NativeTensorLoader;
+import be.iminds.iot.dianne.tensor.Tensor;
+import be.iminds.iot.dianne.tensor.TensorOps;
+
+/**
+ * Checks a recurrent layer against a reference implementation of its composite, 
+ * and its back propagation through time against numerical gradients
+ */
+public abstract class RecurrentTest {
+
+	protected static final int IN = 3;
+	protected static final int OUT = 4;
+	protected static final int BATCH = 2;
+	protected static final int STEPS = 3;
+	
+	protected Random random = new Random(1234);
+	
+	@BeforeClass
+	public static void setup() {
+		NativeTensorLoader loader = new NativeTensorLoader();
+		loader.activate(null);
+	}
+	
+	protected abstract AbstractRecurrentModule create(Tensor parameters);
+	
+	protected abstract int parameterSize();
+	
+	/**
+	 * Reference time step of the composite, updates the (batched) state
+	 * @return the output
+	 */
+	protected abstract double[] step(double[] p, double[] x, double[] state);
+	
+	protected void testForward(int batchSize) {
+		float[] p = random(parameterSize(), 0.5f);
+		AbstractRecurrentModule m = create(new Tensor(p, p.length));
+		m.reset(batchSize);
+		
+		double[] state = new double[Math.max(batchSize, 1)*m.memorySize];
+		for(int t=0;t<STEPS;t++){
+			float[] x = random(Math.max(batchSize, 1)*IN, 1.0f);
+			m.forward(UUID.randomUUID(), input(x, batchSize));
+			Assert.assertNull(m.getException());
+			
+			double[] expected = step(toDouble(p), toDouble(x), state);
+			assertEquals(expected, m.getOutput(null).get(), 1e-5f);
+			assertEquals(state, m.getMemory().get(), 1e-5f);
+		}
+		
+		// memory is cleared on reset
+		m.reset(batchSize);
+		for(float f : m.getMemory().get()){
+			Assert.assertEquals(0.0f, f, 0.0f);
+		}
+	}
+	
+	protected void testGradients(int batchSize) {
+		int b = Math.max(batchSize, 1);
+		float[] p = random(parameterSize(), 0.5f);
+		float[][] x = new float[STEPS][];
+		float[][] g = new float[STEPS][];
+		for(int t=0;t<STEPS;t++){
+			x[t] = random(b*IN, 1.0f);
+			g[t] = random(b*OUT, 1.0f);
+		}
+		
+		AbstractRecurrentModule m = create(new Tensor(p, p.length));
+		m.reset(batchSize);
+		float[][] gradInputs = bptt(m, x, g, batchSize);
+		
+		// numerical gradients of sum(g*output) 
+		double eps = 1e-3;
+		double[] dp = toDouble(p);
+		float[] deltas = m.getDeltaParameters().get();
+		for(int i=0;i<dp.length;i++){
+			double v = dp[i];
+			dp[i] = v+eps;
+			double l1 = loss(dp, x, g, b, m.memorySize);
+			dp[i] = v-eps;
+			double l2 = loss(dp, x, g, b, m.memorySize);
+			dp[i] = v;
+			Assert.assertEquals("Wrong delta parameter "+i, (l1-l2)/(2*eps), deltas[i], 1e-3);
+		}
+		for(int t=0;t<STEPS;t++){
+			for(int i=0;i<x[t].length;i++){
+				float v = x[t][i];
+				x[t][i] = (float)(v+eps);
+				double l1 = loss(dp, x, g, b, m.memorySize);
+				x[t][i] = (float)(v-eps);
+				double l2 = loss(dp, x, g, b, m.memorySize);
+				x[t][i] = v;
+				Assert.assertEquals("Wrong grad input "+t+" "+i, (l1-l2)/(2*eps), gradInputs[t][i], 1e-3);
+			}
+		}
+	}
+	
+	protected void testTruncatedGradients(int batchSize) {
+		int b = Math.max(batchSize, 1);
+		float[] p = random(parameterSize(), 0.5f);
+		float[][] x = new float[2*STEPS][];
+		float[][] g = new float[2*STEPS][];
+		for(int t=0;t<2*STEPS;t++){
+			x[t] = random(b*IN, 1.0f);
+			g[t] = random(b*OUT, 1.0f);
+		}
+		float[][] x1 = Arrays.copyOfRange(x, 0, STEPS);
+		float[][] g1 = Arrays.copyOfRange(g, 0, STEPS);
+		float[][] x2 = Arrays.copyOfRange(x, STEPS, 2*STEPS);
+		float[][] g2 = Arrays.copyOfRange(g, STEPS, 2*STEPS);
+		
+		// two windows, carrying over the state but resetting its gradient in between
+		AbstractRecurrentModule m = create(new Tensor(p, p.length));
+		m.reset(batchSize);
+		bptt(m, x1, g1, batchSize);
+		m.resetGradient();
+		float[][] gradInputs = bptt(m, x2, g2, batchSize);
+		
+		// reference: each window back propagated separately, the second from the state after the first
+		AbstractRecurrentModule first = create(new Tensor(p, p.length));
+		first.reset(batchSize);
+		bptt(first, x1, g1, batchSize);
+		AbstractRecurrentModule second = create(new Tensor(p, p.length));
+		second.reset(batchSize);
+		second.setMemory(first.getMemory());
+		float[][] expectedGradInputs = bptt(second, x2, g2, batchSize);
+		
+		Tensor expectedDeltas = TensorOps.add(null, first.getDeltaParameters(), second.getDeltaParameters());
+		Assert.assertTrue("Wrong delta parameters", expectedDeltas.equals(m.getDeltaParameters(), 1e-5f));
+		for(int t=0;t<STEPS;t++){
+			Assert.assertArrayEquals("Wrong grad input "+t, expectedGradInputs[t], gradInputs[t], 1e-5f);
+		}
+		
+		// the state itself is carried over
+		Assert.assertTrue(second.getMemory().equals(m.getMemory(), 1e-5f));
+	}
+	
+	/**
+	 * Back propagation through time, as the neural network does for sequences. Each step is
+	 * forwarded again from its stored state before the backward, afterwards the state after 
+	 * the last step is restored.
+	 * 
+	 * @return the gradInput of each step
+	 */
+	private float[][] bptt(AbstractRecurrentModule m, float[][] x, float[][] g, int batchSize){
+		int steps = x.length;
+		Tensor[] states = new Tensor[steps+1];
+		for(int t=0;t<steps;t++){
+			states[t] = m.getMemory().copyInto(null);
+			m.forward(UUID.randomUUID(), input(x[t], batchSize));
+		}
+		states[steps] = m.getMemory().copyInto(null);
+		
+		float[][] gradInputs = new float[steps][];
+		for(int t=steps-1;t>=0;t--){
+			m.setMemory(states[t]);
+			m.forward(UUID.randomUUID(), input(x[t], batchSize));
+			m.backward(UUID.randomUUID(), input(g[t], batchSize, OUT));
+			Assert.assertNull(m.getException());
+			m.accGradParameters();
+			gradInputs[t] = m.getGradInput(null).get();
+		}
+		m.setMemory(states[steps]);
+		return gradInputs;
+	}
+	
+	private double loss(double[] p, float[][] x, float[][] g, int b, int memorySize){
+		double[] state = new double[b*memorySize];
+		double loss = 0;
+		for(int t=0;t<x.length;t++){
+			double[] out = step(p, toDouble(x[t]), state);
+			for(int i=0;i<out.length;i++){
+				loss += out[i]*g[t][i];
+			}
+		}
+		return loss;
+	}
+	
+	protected static double sigmoid(double x){
+		return 1.0/(1.0+Math.exp(-x));
+	}
+	
+	/**
+	 * Linear layer on the concatenation of x and h, as in the composites
+	 */
+	protected static double linear(double[] p, int offset, int outputs, double[] x, double[] h, int k, int o){
+		int w = offset + o*(IN+OUT);
+		double sum = p[offset + outputs*(IN+OUT) + o];
+		for(int i=0;i<IN;i++){
+			sum += p[w+i]*x[k*IN+i];
+		}
+		for(int i=0;i<OUT;i++){
+			sum += p[w+IN+i]*h[i];
+		}
+		return sum;
+	}
+	
+	private Tensor input(float[] data, int batchSize){
+		return input(data, batchSize, IN);
+	}
+	
+	private Tensor input(float[] data, int batchSize, int size){
+		return batchSize > 0 ? new Tensor(data, batchSize, size) : new Tensor(data, size);
+	}
+	
+	private float[] random(int size, float range){
+		float[] data = new float[size];
+		for(int i=0;i<size;i++){
+			data[i] = (random.nextFloat()*2-1)*range;
+		}
+		return data;
+	}
+	
+	private static double[] toDouble(float[] f){
+		double[] d = new double[f.length];
+		for(int i=0;i<f.length;i++){
+			d[i] = f[i];
+		}
+		return d;
+	}
+	
+	private static void assertEquals(double[] expected, float[] actual, float delta){
+		Assert.assertEquals(expected.length, actual.length);
+		for(int i=0;i<expected.length;i++){
+			Assert.assertEquals(expected[i], actual[i], delta);
+		}
+	}
+}
@@ -0,0 +1,326 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez, Elias De Coninck
+ *******************************************************************************/
+package be.iminds.iot.dianne.tensor;
+
+/**
+ * Blocked matrix multiplication kernels on row-major float arrays.
+ *
+ * Both A and B are packed per block in contiguous buffers, after which
+ * the inner loops run over contiguous memory so they can be vectorized
+ * by the JIT. Large multiplications are split over the ForkJoin pool.
+ *
+ * @author tverbele
+ *
+ */
+class Gemm {
+
+	// block sizes, a packed A block (MC x KC) and the C rows stay in cache
+	private static final int MC = 64;
+	private static final int KC = 256;
+	private static final int NC = 256;
+
+	// minimal number of multiply-adds before splitting over multiple threads
+	private static final long PARALLEL = 1 << 18;
+
+	/**
+	 * C = beta*C + alpha * op(A) * op(B)
+	 *
+	 * with op(A) a m x k matrix, op(B) a k x n matrix and C a m x n matrix,
+	 * all stored row-major with the given leading dimensions.
+	 */
+	static void sgemm(final boolean transA, final boolean transB, final int m, final int n, final int k,
+			final float alpha, final float[] a, final int ao, final int lda,
+			final float[] b, final int bo, final int ldb,
+			final float beta, final float[] c, final int co, final int ldc){
+		if(beta != 1.0f){
+			for(int i=0;i<m;i++){
+				int row = co+i*ldc;
+				if(beta == 0.0f){
+					for(int j=0;j<n;j++)
+						c[row+j] = 0.0f;
+				} else {
+					for(int j=0;j<n;j++)
+						c[row+j] *= beta;
+				}
+			}
+		}
+
+		if(alpha == 0.0f || k == 0 || m == 0 || n == 0)
+			return;
+
+		final int mBlocks = (m + MC - 1) / MC;
+		final int nBlocks = (n + NC - 1) / NC;
+		final boolean parallel = (long)m*n*k >= PARALLEL && Parallel.threads() > 1;
+
+		for(int kk=0;kk<k;kk+=KC){
+			final int p0 = kk;
+			final int kc = Math.min(KC, k-kk);
+
+			// pack the B panel for this k block
+			final float[] bp = new float[kc*n];
+			for(int p=0;p<kc;p++){
+				int dst = p*n;
+				if(transB){
+					int src = bo + (p0+p);
+					for(int j=0;j<n;j++){
+						bp[dst+j] = b[src + j*ldb];
+					}
+				} else {
+					System.arraycopy(b, bo + (p0+p)*ldb, bp, dst, n);
+				}
+			}
+
+			Parallel.Range blocks = (from, to) -> {
+				float[] ap = new float[MC*kc];
+				int packed = -1;
+				for(int block=from;block<to;block++){
+					int mb = block / nBlocks;
+					int nb = block % nBlocks;
+					int i0 = mb*MC;
+					int mc = Math.min(MC, m-i0);
+					int j0 = nb*NC;
+					int nc = Math.min(NC, n-j0);
+
+					if(packed != mb){
+						packA(transA, a, ao, lda, alpha, i0, mc, p0, kc, ap);
+						packed = mb;
+					}
+					kernel(mc, nc, kc, ap, bp, n, j0, c, co + i0*ldc + j0, ldc);
+				}
+			};
+
+			if(parallel){
+				Parallel.range(mBlocks*nBlocks, 1, blocks);
+			} else {
+				blocks.run(0, mBlocks*nBlocks);
+			}
+		}
+	}
+
+	private static void packA(boolean transA, float[] a, int ao, int lda, float alpha,
+			int i0, int mc, int p0, int kc, float[] ap){
+		for(int i=0;i<mc;i++){
+			int dst = i*kc;
+			if(transA){
+				int src = ao + p0*lda + (i0+i);
+				for(int p=0;p<kc;p++){
+					ap[dst+p] = alpha*a[src + p*lda];
+				}
+			} else {
+				int src = ao + (i0+i)*lda + p0;
+				for(int p=0;p<kc;p++){
+					ap[dst+p] = alpha*a[src + p];
+				}
+			}
+		}
+	}
+
+	// C block (mc x nc) += A block (mc x kc) * B block (kc x nc)
+	private static void kernel(int mc, int nc, int kc, float[] ap, float[] bp, int ldbp, int j0,
+			float[] c, int co, int ldc){
+		int i = 0;
+		for(;i+4<=mc;i+=4){
+			int c0 = co + i*ldc;
+			int c1 = c0 + ldc;
+			int c2 = c1 + ldc;
+			int c3 = c2 + ldc;
+			int a0 = i*kc;
+			for(int p=0;p<kc;p++){
+				float v0 = ap[a0+p];
+				float v1 = ap[a0+kc+p];
+				float v2 = ap[a0+2*kc+p];
+				float v3 = ap[a0+3*kc+p];
+				int b0 = p*ldbp + j0;
+				for(int j=0;j<nc;j++){
+					float bv = bp[b0+j];
+					c[c0+j] += v0*bv;
+					c[c1+j] += v1*bv;
+					c[c2+j] += v2*bv;
+					c[c3+j] += v3*bv;
+				}
+			}
+		}
+		for(;i<mc;i++){
+			int c0 = co + i*ldc;
+			int a0 = i*kc;
+			for(int p=0;p<kc;p++){
+				float v0 = ap[a0+p];
+				int b0 = p*ldbp + j0;
+				for(int j=0;j<nc;j++){
+					c[c0+j] += v0*bp[b0+j];
+				}
+			}
+		}
+	}
+
+	/**
+	 * y = beta*y + alpha * op(A) * x
+	 *
+	 * with A a m x n row-major matrix, in case of trans op(A) is the transpose of A
+	 */
+	static void sgemv(final boolean trans, final int m, final int n, final float alpha,
+			final float[] a, final int ao, final int lda,
+			final float[] x, final int xo, final int incx,
+			final float beta, final float[] y, final int yo, final int incy){
+		final int ySize = trans ? n : m;
+		for(int i=0;i<ySize;i++){
+			if(beta == 0.0f){
+				y[yo+i*incy] = 0.0f;
+			} else if(beta != 1.0f){
+				y[yo+i*incy] *= beta;
+			}
+		}
+
+		if(alpha == 0.0f)
+			return;
+
+		if(!trans){
+			Parallel.range(m, Math.max(1, Parallel.GRAIN / Math.max(1, n)), (from, to) -> {
+				for(int i=from;i<to;i++){
+					int row = ao + i*lda;
+					float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+					int j = 0;
+					if(incx == 1){
+						for(;j+4<=n;j+=4){
+							s0 += a[row+j]*x[xo+j];
+							s1 += a[row+j+1]*x[xo+j+1];
+							s2 += a[row+j+2]*x[xo+j+2];
+							s3 += a[row+j+3]*x[xo+j+3];
+						}
+					}
+					for(;j<n;j++){
+						s0 += a[row+j]*x[xo+j*incx];
+					}
+					y[yo+i*incy] += alpha*(s0+s1+s2+s3);
+				}
+			});
+		} else {
+			// split over columns, so each thread writes its own part of y
+			Parallel.range(n, Math.max(64, Parallel.GRAIN / Math.max(1, m)), (from, to) -> {
+				for(int i=0;i<m;i++){
+					float v = alpha*x[xo+i*incx];
+					if(v == 0.0f)
+						continue;
+					int row = ao + i*lda;
+					if(incy == 1){
+						for(int j=from;j<to;j++){
+							y[yo+j] += v*a[row+j];
+						}
+					} else {
+						for(int j=from;j<to;j++){
+							y[yo+j*incy] += v*a[row+j];
+						}
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * r = beta*r + alpha * m1 * m2 for 2D tensors, r should have the correct size already
+	 */
+	static void mm(Tensor r, float beta, float alpha, Tensor m1, Tensor m2){
+		int m = m1.dims[0];
+		int k = m1.dims[1];
+		int n = m2.dims[1];
+		if(m2.dims[0] != k){
+			throw new IllegalArgumentException("Size mismatch for matrix multiplication "+m+"x"+k+" and "+m2.dims[0]+"x"+n);
+		}
+		Matrix a = Matrix.of(m1);
+		Matrix b = Matrix.of(m2);
+		Tensor out = r.isContiguous() ? r : r.contiguous();
+		sgemm(a.transposed, b.transposed, m, n, k, alpha, a.data, a.offset, a.ld, b.data, b.offset, b.ld, beta, out.data, out.offset, n);
+		if(out != r){
+			out.copyInto(r);
+		}
+	}
+
+	/**
+	 * r = beta*r + alpha * mat * vec, r should have the correct size already
+	 */
+	static void mv(Tensor r, float beta, float alpha, Tensor mat, Tensor vec){
+		int m = mat.dims[0];
+		int n = mat.dims[1];
+		Matrix a = Matrix.of(mat);
+		Tensor x = vec.contiguous();
+		Tensor out = r.isContiguous() ? r : r.contiguous();
+		if(a.transposed){
+			// data is stored as n x m row-major matrix
+			sgemv(true, n, m, alpha, a.data, a.offset, a.ld, x.data, x.offset, 1, beta, out.data, out.offset, 1);
+		} else {
+			sgemv(false, m, n, alpha, a.data, a.offset, a.ld, x.data, x.offset, 1, beta, out.data, out.offset, 1);
+		}
+		if(out != r){
+			out.copyInto(r);
+		}
+	}
+
+	/**
+	 * r = beta*r + alpha * vec1 x vec2 (outer product), r should have the correct size already
+	 */
+	static void vv(Tensor r, float beta, float alpha, Tensor vec1, Tensor vec2){
+		Tensor v1 = vec1.contiguous();
+		Tensor v2 = vec2.contiguous();
+		int m = v1.size();
+		int n = v2.size();
+		Tensor out = r.isContiguous() ? r : r.contiguous();
+		sgemm(false, false, m, n, 1, alpha, v1.data, v1.offset, 1, v2.data, v2.offset, n, beta, out.data, out.offset, n);
+		if(out != r){
+			out.copyInto(r);
+		}
+	}
+
+	/**
+	 * Describes a 2D tensor as a row-major matrix, or the transpose of a row-major
+	 * matrix in case the tensor is a transposed view
+	 */
+	static class Matrix {
+
+		final float[] data;
+		final int offset;
+		final int ld;
+		final boolean transposed;
+
+		private Matrix(float[] data, int offset, int ld, boolean transposed){
+			this.data = data;
+			this.offset = offset;
+			this.ld = ld;
+			this.transposed = transposed;
+		}
+
+		static Matrix of(Tensor t){
+			if(t.dims.length != 2){
+				throw new IllegalArgumentException("Expected a 2D tensor, got "+t.dims.length+"D");
+			}
+			int rows = t.dims[0];
+			int cols = t.dims[1];
+			if(t.strides[1] == 1 || cols == 1){
+				return new Matrix(t.data, t.offset, rows == 1 ? cols : t.strides[0], false);
+			} else if(t.strides[0] == 1 || rows == 1){
+				return new Matrix(t.data, t.offset, t.strides[1], true);
+			}
+			Tensor c = t.contiguous();
+			return new Matrix(c.data, c.offset, cols, false);
+		}
+	}
+}
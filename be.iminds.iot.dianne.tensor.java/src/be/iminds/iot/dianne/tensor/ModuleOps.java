@@ -0,0 +1,1584 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.tensor;
+
+/**
+ * Pure Java implementation of the neural network module operations. 
+ * 
+ * Semantics (output sizes, parameter layouts and the contents of temp tensors) follow 
+ * the THNN implementations used by the native backends, so modules and stored weights 
+ * can be used with either backend. Convolutions are unfolded into matrix multiplications
+ * (the temp1 tensor keeps the unfolded input, temp2 the unfolded gradient).
+ * 
+ * @author tverbele
+ *
+ */
+public class ModuleOps {
+	
+	private static final float BN_MOMENTUM = 0.1f;
+	private static final float BN_EPS = 1e-5f;
+	
+	public static Tensor tanh(Tensor output, final Tensor input){
+		return TensorOps.unary(output, input, (r, ro, a, ao, from, to) -> {
+			for(int i=from;i<to;i++)
+				r[ro+i] = (float)Math.tanh(a[ao+i]);
+		});
+	}
+
+	public static Tensor tanhGradIn(Tensor gradInput, final Tensor gradOutput, final Tensor input, final Tensor output){
+		return TensorOps.binary(gradInput, gradOutput, output, (r, ro, g, go, y, yo, from, to) -> {
+			for(int i=from;i<to;i++){
+				float z = y[yo+i];
+				r[ro+i] = g[go+i]*(1.0f-z*z);
+			}
+		});
+	}
+
+	
+	public static Tensor sigmoid(Tensor output, final Tensor input){
+		return TensorOps.unary(output, input, (r, ro, a, ao, from, to) -> {
+			for(int i=from;i<to;i++)
+				r[ro+i] = (float)(1.0/(1.0+Math.exp(-a[ao+i])));
+		});
+	}
+
+	public static Tensor sigmoidGradIn(Tensor gradInput, final Tensor gradOutput, final Tensor input, final Tensor output){
+		return TensorOps.binary(gradInput, gradOutput, output, (r, ro, g, go, y, yo, from, to) -> {
+			for(int i=from;i<to;i++){
+				float z = y[yo+i];
+				r[ro+i] = g[go+i]*(1.0f-z)*z;
+			}
+		});
+	}
+	
+	
+	public static Tensor softplus(Tensor output, final Tensor input, final float beta, final float threshold){
+		return TensorOps.unary(output, input, (r, ro, a, ao, from, to) -> {
+			for(int i=from;i<to;i++){
+				float x = a[ao+i];
+				r[ro+i] = x*beta > threshold ? x : (float)(Math.log1p(Math.exp(x*beta))/beta);
+			}
+		});
+	}
+
+	public static Tensor softplusGradIn(Tensor gradInput, final Tensor gradOutput, final Tensor input, final Tensor output, final float beta, final float threshold){
+		return TensorOps.binary(gradInput, gradOutput, output, (r, ro, g, go, y, yo, from, to) -> {
+			for(int i=from;i<to;i++){
+				float yb = y[yo+i]*beta;
+				if(yb > threshold){
+					r[ro+i] = g[go+i];
+				} else {
+					float z = (float)Math.exp(yb);
+					r[ro+i] = g[go+i]*(z-1)/z;
+				}
+			}
+		});
+	}
+	
+	
+	public static Tensor elu(Tensor output, final Tensor input, final float alpha, final boolean inPlace){
+		TensorOps.Unary op = (r, ro, a, ao, from, to) -> {
+			for(int i=from;i<to;i++){
+				float x = a[ao+i];
+				r[ro+i] = x <= 0 ? (float)(Math.exp(x)-1)*alpha : x;
+			}
+		};
+		if(inPlace){
+			TensorOps.unary(input, input, op);
+			if(output == null)
+				return input;
+			output.set(input);
+			return output;
+		}
+		return TensorOps.unary(output, input, op);
+	}
+
+	public static Tensor eluGradIn(Tensor gradInput, final Tensor gradOutput, final Tensor input, final Tensor output, final float alpha, final boolean inPlace){
+		TensorOps.Binary op = (r, ro, g, go, y, yo, from, to) -> {
+			for(int i=from;i<to;i++){
+				float z = y[yo+i];
+				r[ro+i] = z <= 0 ? g[go+i]*(z+alpha) : g[go+i];
+			}
+		};
+		if(inPlace){
+			TensorOps.binary(gradOutput, gradOutput, output, op);
+			if(gradInput == null)
+				return gradOutput;
+			gradInput.set(gradOutput);
+			return gradInput;
+		}
+		return TensorOps.binary(gradInput, gradOutput, output, op);
+	}
+	
+	
+	public static Tensor selu(Tensor output, final Tensor input, final float alpha, final float lambda){
+		return TensorOps.unary(output, input, (r, ro, a, ao, from, to) -> {
+			for(int i=from;i<to;i++){
+				float x = a[ao+i];
+				r[ro+i] = x <= 0 ? (float)(Math.exp(x)-1)*alpha*lambda : x*lambda;
+			}
+		});
+	}
+
+	public static Tensor seluGradIn(Tensor gradInput, final Tensor gradOutput, final Tensor input, final Tensor output, final float alpha, final float lambda){
+		return TensorOps.binary(gradInput, gradOutput, output, (r, ro, g, go, y, yo, from, to) -> {
+			for(int i=from;i<to;i++){
+				float z = y[yo+i];
+				r[ro+i] = z <= 0 ? g[go+i]*(z+alpha*lambda) : g[go+i]*lambda;
+			}
+		});
+	}
+	
+	
+	public static Tensor threshold(Tensor output, final Tensor input, 
+			final float threshold, final float val){
+		return TensorOps.unary(output, input, (r, ro, a, ao, from, to) -> {
+			for(int i=from;i<to;i++){
+				float x = a[ao+i];
+				r[ro+i] = x > threshold ? x : val;
+			}
+		});
+	}
+
+	public static Tensor thresholdGradIn(Tensor gradInput, final Tensor gradOutput, final Tensor input, final Tensor output, final float threshold, final float val){
+		return TensorOps.binary(gradInput, gradOutput, input, (r, ro, g, go, x, xo, from, to) -> {
+			for(int i=from;i<to;i++){
+				r[ro+i] = x[xo+i] > threshold ? g[go+i] : 0.0f;
+			}
+		});
+	}
+	
+	
+	public static Tensor relu(Tensor output, final Tensor input){
+		return threshold(output, input, 0, 0);
+	}
+
+	public static Tensor reluGradIn(Tensor gradInput, final Tensor gradOutput, final Tensor input, final Tensor output){
+		return thresholdGradIn(gradInput, gradOutput, input, output, 0, 0);
+	}
+	
+	
+	public static Tensor prelu(Tensor output, final Tensor input, 
+			final Tensor weight, final int noOutputPlanes){
+		final float[] w = weight.get();
+		final int ks = preluPlaneSize(input, noOutputPlanes);
+		return TensorOps.unary(output, input, (r, ro, a, ao, from, to) -> {
+			for(int i=from;i<to;i++){
+				float x = a[ao+i];
+				float s = noOutputPlanes == 0 ? w[0] : w[(i/ks) % noOutputPlanes];
+				r[ro+i] = x > 0 ? x : s*x;
+			}
+		});
+	}
+
+	public static Tensor preluGradIn(Tensor gradInput, final Tensor gradOutput, final Tensor input, final Tensor output, final Tensor weight, final int noOutputPlanes){
+		final float[] w = weight.get();
+		final int ks = preluPlaneSize(input, noOutputPlanes);
+		return TensorOps.binary(gradInput, gradOutput, input, (r, ro, g, go, x, xo, from, to) -> {
+			for(int i=from;i<to;i++){
+				float s = noOutputPlanes == 0 ? w[0] : w[(i/ks) % noOutputPlanes];
+				r[ro+i] = x[xo+i] > 0 ? g[go+i] : s*g[go+i];
+			}
+		});
+	}
+	
+	public static void preluAccGrad(final Tensor gradWeight, final Tensor gradOutput, final Tensor input, final Tensor output, final Tensor weight, final int noOutputPlanes){
+		Tensor x = input.contiguous();
+		Tensor g = gradOutput.contiguous();
+		int ks = preluPlaneSize(input, noOutputPlanes);
+		float[] gw = gradWeight.get();
+		int n = x.size();
+		for(int i=0;i<n;i++){
+			float v = x.data[x.offset+i];
+			if(v <= 0){
+				int p = noOutputPlanes == 0 ? 0 : (i/ks) % noOutputPlanes;
+				gw[p] += v*g.data[g.offset+i];
+			}
+		}
+		gradWeight.set(gw);
+	}
+	
+
+	public static Tensor softmax(Tensor output, final Tensor input){
+		final int[] s = softmaxShape(input);
+		final int dim = s[1];
+		final int stride = s[2];
+		final Tensor x = input.contiguous();
+		output = Tensor.resultAs(output, input);
+		final Tensor y = target(output);
+		Parallel.range(s[0]*stride, grain(dim), (from, to) -> {
+			for(int f=from;f<to;f++){
+				int off = (f/stride)*dim*stride + f%stride;
+				float[] a = x.data;
+				int ao = x.offset + off;
+				float[] r = y.data;
+				int ro = y.offset + off;
+				
+				float max = -Float.MAX_VALUE;
+				for(int d=0;d<dim;d++){
+					if(a[ao+d*stride] >= max)
+						max = a[ao+d*stride];
+				}
+				float sum = 0;
+				for(int d=0;d<dim;d++){
+					float z = (float)Math.exp(a[ao+d*stride]-max);
+					r[ro+d*stride] = z;
+					sum += z;
+				}
+				for(int d=0;d<dim;d++){
+					r[ro+d*stride] /= sum;
+				}
+			}
+		});
+		return writeBack(y, output);
+	}
+
+	public static Tensor softmaxGradIn(Tensor gradInput, final Tensor gradOutput, final Tensor input, final Tensor output){
+		final int[] s = softmaxShape(output);
+		final int dim = s[1];
+		final int stride = s[2];
+		final Tensor y = output.contiguous();
+		final Tensor g = gradOutput.contiguous();
+		gradInput = Tensor.resultAs(gradInput, output);
+		final Tensor gi = target(gradInput);
+		Parallel.range(s[0]*stride, grain(dim), (from, to) -> {
+			for(int f=from;f<to;f++){
+				int off = (f/stride)*dim*stride + f%stride;
+				int yo = y.offset + off;
+				int go = g.offset + off;
+				int ro = gi.offset + off;
+				float sum = 0;
+				for(int d=0;d<dim;d++){
+					sum += g.data[go+d*stride]*y.data[yo+d*stride];
+				}
+				for(int d=0;d<dim;d++){
+					gi.data[ro+d*stride] = y.data[yo+d*stride]*(g.data[go+d*stride]-sum);
+				}
+			}
+		});
+		return writeBack(gi, gradInput);
+	}
+
+	public static Tensor logsoftmax(Tensor output, final Tensor input){
+		final int[] s = softmaxShape(input);
+		final int dim = s[1];
+		final int stride = s[2];
+		final Tensor x = input.contiguous();
+		output = Tensor.resultAs(output, input);
+		final Tensor y = target(output);
+		Parallel.range(s[0]*stride, grain(dim), (from, to) -> {
+			for(int f=from;f<to;f++){
+				int off = (f/stride)*dim*stride + f%stride;
+				float[] a = x.data;
+				int ao = x.offset + off;
+				float[] r = y.data;
+				int ro = y.offset + off;
+				
+				float max = -Float.MAX_VALUE;
+				for(int d=0;d<dim;d++){
+					if(a[ao+d*stride] >= max)
+						max = a[ao+d*stride];
+				}
+				double sum = 0;
+				for(int d=0;d<dim;d++){
+					sum += Math.exp(a[ao+d*stride]-max);
+				}
+				float logsum = max + (float)Math.log(sum);
+				for(int d=0;d<dim;d++){
+					r[ro+d*stride] = a[ao+d*stride] - logsum;
+				}
+			}
+		});
+		return writeBack(y, output);
+	}
+
+	public static Tensor logsoftmaxGradIn(Tensor gradInput, final Tensor gradOutput, final Tensor input, final Tensor output){
+		final int[] s = softmaxShape(output);
+		final int dim = s[1];
+		final int stride = s[2];
+		final Tensor y = output.contiguous();
+		final Tensor g = gradOutput.contiguous();
+		gradInput = Tensor.resultAs(gradInput, output);
+		final Tensor gi = target(gradInput);
+		Parallel.range(s[0]*stride, grain(dim), (from, to) -> {
+			for(int f=from;f<to;f++){
+				int off = (f/stride)*dim*stride + f%stride;
+				int yo = y.offset + off;
+				int go = g.offset + off;
+				int ro = gi.offset + off;
+				float sum = 0;
+				for(int d=0;d<dim;d++){
+					sum += g.data[go+d*stride];
+				}
+				for(int d=0;d<dim;d++){
+					gi.data[ro+d*stride] = g.data[go+d*stride] - (float)Math.exp(y.data[yo+d*stride])*sum;
+				}
+			}
+		});
+		return writeBack(gi, gradInput);
+	}
+	
+
+	public static Tensor temporalmaxpool(Tensor output, final Tensor input, final Tensor indices,
+			final int kW, final int dW){
+		final boolean batch = input.dim() == 3;
+		final int n = batch ? input.size(0) : 1;
+		final int iF = input.size(batch ? 1 : 0);
+		final int fs = input.size(batch ? 2 : 1);
+		final int oF = (iF - kW) / dW + 1;
+		
+		final Tensor x = input.contiguous();
+		output = batch ? Tensor.result(output, n, oF, fs) : Tensor.result(output, oF, fs);
+		final Tensor y = target(output);
+		final Tensor ind = batch ? Tensor.result(indices, n, oF, fs) : Tensor.result(indices, oF, fs);
+		final Tensor id = target(ind);
+		
+		Parallel.range(n*oF, grain(kW*fs), (from, to) -> {
+			for(int f=from;f<to;f++){
+				int b = f / oF;
+				int t = f % oF;
+				int xo = x.offset + (b*iF + t*dW)*fs;
+				int yo = y.offset + f*fs;
+				int io = id.offset + f*fs;
+				for(int j=0;j<fs;j++){
+					float max = -Float.MAX_VALUE;
+					int index = -1;
+					for(int k=0;k<kW;k++){
+						float v = x.data[xo + k*fs + j];
+						if(v > max || index == -1){
+							max = v;
+							index = k;
+						}
+					}
+					y.data[yo+j] = max;
+					id.data[io+j] = index;
+				}
+			}
+		});
+		writeBack(id, ind);
+		return writeBack(y, output);
+	}
+
+	public static Tensor temporalmaxpoolGradIn(Tensor gradInput, final Tensor gradOutput, final Tensor input, final Tensor output, final Tensor indices,
+			final int kW, final int dW){
+		final boolean batch = input.dim() == 3;
+		final int n = batch ? input.size(0) : 1;
+		final int iF = input.size(batch ? 1 : 0);
+		final int fs = input.size(batch ? 2 : 1);
+		final int oF = gradOutput.size(batch ? 1 : 0);
+		
+		final Tensor g = gradOutput.contiguous();
+		final Tensor id = indices.contiguous();
+		gradInput = Tensor.resultAs(gradInput, input);
+		final Tensor gi = target(gradInput);
+		gi.fill(0.0f);
+		
+		// frames can overlap, only split over batches
+		Parallel.range(n, 1, (from, to) -> {
+			for(int b=from;b<to;b++){
+				for(int t=0;t<oF;t++){
+					int go = g.offset + (b*oF + t)*fs;
+					int io = id.offset + (b*oF + t)*fs;
+					int gio = gi.offset + (b*iF + t*dW)*fs;
+					for(int j=0;j<fs;j++){
+						int k = (int)id.data[io+j];
+						gi.data[gio + k*fs + j] += g.data[go+j];
+					}
+				}
+			}
+		});
+		return writeBack(gi, gradInput);
+	}
+	
+
+	public static Tensor spatialmaxpool(Tensor output, final Tensor input, final Tensor indices,
+			final int kW, final int kH, final int dW, final int dH, final int padW, final int padH){
+		return maxpool(output, input, indices, 2, 1, kH, kW, 1, dH, dW, 0, padH, padW);
+	}
+
+	public static Tensor spatialmaxpoolGradIn(Tensor gradInput, final Tensor gradOutput, final Tensor input,  final Tensor output, final Tensor indices,
+			final int kW, final int kH, final int dW, final int dH, final int padW, final int padH){
+		return maxpoolGradIn(gradInput, gradOutput, input, indices, 2);
+	}
+
+	
+	public static Tensor volumetricmaxpool(Tensor output, final Tensor input, final Tensor indices,
+			final int kW, final int kH, final int kD, final int dW, final int dH, final int dD, final int padW, final int padH, final int padD){
+		return maxpool(output, input, indices, 3, kD, kH, kW, dD, dH, dW, padD, padH, padW);
+	}
+
+	public static Tensor volumetricmaxpoolGradIn(Tensor gradInput, final Tensor gradOutput, final Tensor input,  final Tensor output, final Tensor indices,
+			final int kW, final int kH, final int kD, final int dW, final int dH, final int dD, final int padW, final int padH, final int padD){
+		return maxpoolGradIn(gradInput, gradOutput, input, indices, 3);
+	}
+	
+	
+	
+	public static Tensor spatialmaxunpool(Tensor output, final Tensor input, final Tensor indices,
+			final int kW, final int kH, final int dW, final int dH, final int padW, final int padH){
+		int b = input.dim() == 4 ? 1 : 0;
+		int oH = (input.size(b+1) - 1) * dH + kH - 2*padH;
+		int oW = (input.size(b+2) - 1) * dW + kW - 2*padW;
+		int[] dims = b == 1 ? new int[]{input.size(0), input.size(1), oH, oW} : new int[]{input.size(0), oH, oW};
+		return unpool(output, input, indices, dims, oH*oW);
+	}
+
+	public static Tensor spatialmaxunpoolGradIn(Tensor gradInput, final Tensor gradOutput, final Tensor input, final Tensor indices,
+			final int kW, final int kH, final int dW, final int dH, final int padW, final int padH){
+		return unpoolGradIn(gradInput, gradOutput, input, indices, 2);
+	}
+
+	
+	public static Tensor volumetricmaxunpool(Tensor output, final Tensor input, final Tensor indices,
+			final int kW, final int kH, final int kD, final int dW, final int dH, final int dD, final int padW, final int padH, final int padD){
+		int b = input.dim() == 5 ? 1 : 0;
+		int oD = (input.size(b+1) - 1) * dD + kD - 2*padD;
+		int oH = (input.size(b+2) - 1) * dH + kH - 2*padH;
+		int oW = (input.size(b+3) - 1) * dW + kW - 2*padW;
+		int[] dims = b == 1 ? new int[]{input.size(0), input.size(1), oD, oH, oW} : new int[]{input.size(0), oD, oH, oW};
+		return unpool(output, input, indices, dims, oD*oH*oW);
+	}
+
+	public static Tensor volumetricmaxunpoolGradIn(Tensor gradInput, final Tensor gradOutput, final Tensor input, final Tensor indices,
+			final int kW, final int kH, final int kD, final int dW, final int dH, final int dD, final int padW, final int padH, final int padD){
+		return unpoolGradIn(gradInput, gradOutput, input, indices, 3);
+	}
+	
+	
+	
+	public static Tensor spatialavgpool(Tensor output, final Tensor input,
+			final int kW, final int kH, final int dW, final int dH, final int padW, final int padH, final boolean ceil, final boolean count_pad){
+		final boolean batch = input.dim() == 4;
+		final int planes = batch ? input.size(0)*input.size(1) : input.size(0);
+		final int iH = input.size(batch ? 2 : 1);
+		final int iW = input.size(batch ? 3 : 2);
+		final int oH = avgPoolSize(iH, kH, dH, padH, ceil);
+		final int oW = avgPoolSize(iW, kW, dW, padW, ceil);
+		
+		final Tensor x = input.contiguous();
+		output = batch ? Tensor.result(output, input.size(0), input.size(1), oH, oW) : Tensor.result(output, planes, oH, oW);
+		final Tensor y = target(output);
+		
+		Parallel.range(planes, grain(iH*iW), (from, to) -> {
+			for(int p=from;p<to;p++){
+				int xo = x.offset + p*iH*iW;
+				int yo = y.offset + p*oH*oW;
+				for(int oh=0;oh<oH;oh++){
+					for(int ow=0;ow<oW;ow++){
+						int hstart = oh*dH - padH;
+						int wstart = ow*dW - padW;
+						int hend = Math.min(hstart + kH, iH + padH);
+						int wend = Math.min(wstart + kW, iW + padW);
+						int poolSize = (hend - hstart) * (wend - wstart);
+						hstart = Math.max(hstart, 0);
+						wstart = Math.max(wstart, 0);
+						hend = Math.min(hend, iH);
+						wend = Math.min(wend, iW);
+						
+						float sum = 0;
+						for(int h=hstart;h<hend;h++){
+							for(int w=wstart;w<wend;w++){
+								sum += x.data[xo + h*iW + w];
+							}
+						}
+						int divide = count_pad ? poolSize : (hend - hstart) * (wend - wstart);
+						y.data[yo + oh*oW + ow] = sum / divide;
+					}
+				}
+			}
+		});
+		return writeBack(y, output);
+	}
+
+	public static Tensor spatialavgpoolGradIn(Tensor gradInput, final Tensor gradOutput, final Tensor input, final Tensor output,
+			final int kW, final int kH, final int dW, final int dH, final int padW, final int padH, final boolean ceil, final boolean count_pad){
+		final boolean batch = input.dim() == 4;
+		final int planes = batch ? input.size(0)*input.size(1) : input.size(0);
+		final int iH = input.size(batch ? 2 : 1);
+		final int iW = input.size(batch ? 3 : 2);
+		final int oH = avgPoolSize(iH, kH, dH, padH, ceil);
+		final int oW = avgPoolSize(iW, kW, dW, padW, ceil);
+		
+		final Tensor g = gradOutput.contiguous();
+		gradInput = Tensor.resultAs(gradInput, input);
+		final Tensor gi = target(gradInput);
+		gi.fill(0.0f);
+		
+		Parallel.range(planes, grain(iH*iW), (from, to) -> {
+			for(int p=from;p<to;p++){
+				int go = g.offset + p*oH*oW;
+				int gio = gi.offset + p*iH*iW;
+				for(int oh=0;oh<oH;oh++){
+					for(int ow=0;ow<oW;ow++){
+						int hstart = oh*dH - padH;
+						int wstart = ow*dW - padW;
+						int hend = Math.min(hstart + kH, iH + padH);
+						int wend = Math.min(wstart + kW, iW + padW);
+						int poolSize = (hend - hstart) * (wend - wstart);
+						hstart = Math.max(hstart, 0);
+						wstart = Math.max(wstart, 0);
+						hend = Math.min(hend, iH);
+						wend = Math.min(wend, iW);
+						
+						int divide = count_pad ? poolSize : (hend - hstart) * (wend - wstart);
+						float v = g.data[go + oh*oW + ow] / divide;
+						for(int h=hstart;h<hend;h++){
+							for(int w=wstart;w<wend;w++){
+								gi.data[gio + h*iW + w] += v;
+							}
+						}
+					}
+				}
+			}
+		});
+		return writeBack(gi, gradInput);
+	}
+
+	
+	public static Tensor volumetricavgpool(Tensor output, final Tensor input,
+			final int kW, final int kH, final int kD, final int dW, final int dH, final int dD){
+		final boolean batch = input.dim() == 5;
+		final int planes = batch ? input.size(0)*input.size(1) : input.size(0);
+		final int iD = input.size(batch ? 2 : 1);
+		final int iH = input.size(batch ? 3 : 2);
+		final int iW = input.size(batch ? 4 : 3);
+		final int oD = (iD - kD) / dD + 1;
+		final int oH = (iH - kH) / dH + 1;
+		final int oW = (iW - kW) / dW + 1;
+		final float divide = kD*kH*kW;
+		
+		final Tensor x = input.contiguous();
+		output = batch ? Tensor.result(output, input.size(0), input.size(1), oD, oH, oW) : Tensor.result(output, planes, oD, oH, oW);
+		final Tensor y = target(output);
+		
+		Parallel.range(planes, grain(iD*iH*iW), (from, to) -> {
+			for(int p=from;p<to;p++){
+				int xo = x.offset + p*iD*iH*iW;
+				int yo = y.offset + p*oD*oH*oW;
+				for(int od=0;od<oD;od++){
+					for(int oh=0;oh<oH;oh++){
+						for(int ow=0;ow<oW;ow++){
+							float sum = 0;
+							for(int d=od*dD;d<od*dD+kD;d++){
+								for(int h=oh*dH;h<oh*dH+kH;h++){
+									for(int w=ow*dW;w<ow*dW+kW;w++){
+										sum += x.data[xo + (d*iH + h)*iW + w];
+									}
+								}
+							}
+							y.data[yo + (od*oH + oh)*oW + ow] = sum / divide;
+						}
+					}
+				}
+			}
+		});
+		return writeBack(y, output);
+	}
+
+	public static Tensor volumetricavgpoolGradIn(Tensor gradInput, final Tensor gradOutput, final Tensor input,  final Tensor output,
+			final int kW, final int kH, final int kD, final int dW, final int dH, final int dD){
+		final boolean batch = input.dim() == 5;
+		final int planes = batch ? input.size(0)*input.size(1) : input.size(0);
+		final int iD = input.size(batch ? 2 : 1);
+		final int iH = input.size(batch ? 3 : 2);
+		final int iW = input.size(batch ? 4 : 3);
+		final int oD = (iD - kD) / dD + 1;
+		final int oH = (iH - kH) / dH + 1;
+		final int oW = (iW - kW) / dW + 1;
+		final float divide = kD*kH*kW;
+		
+		final Tensor g = gradOutput.contiguous();
+		gradInput = Tensor.resultAs(gradInput, input);
+		final Tensor gi = target(gradInput);
+		gi.fill(0.0f);
+		
+		Parallel.range(planes, grain(iD*iH*iW), (from, to) -> {
+			for(int p=from;p<to;p++){
+				int go = g.offset + p*oD*oH*oW;
+				int gio = gi.offset + p*iD*iH*iW;
+				for(int od=0;od<oD;od++){
+					for(int oh=0;oh<oH;oh++){
+						for(int ow=0;ow<oW;ow++){
+							float v = g.data[go + (od*oH + oh)*oW + ow] / divide;
+							for(int d=od*dD;d<od*dD+kD;d++){
+								for(int h=oh*dH;h<oh*dH+kH;h++){
+									for(int w=ow*dW;w<ow*dW+kW;w++){
+										gi.data[gio + (d*iH + h)*iW + w] += v;
+									}
+								}
+							}
+						}
+					}
+				}
+			}
+		});
+		return writeBack(gi, gradInput);
+	}
+
+	
+	
+	public static Tensor temporalconvolve(Tensor output, final Tensor input, final Tensor kernels, final Tensor bias, 
+			final int kW, final int dW, final int inputFrameSize, final int outputFrameSize){
+		final boolean batch = input.dim() == 3;
+		final int n = batch ? input.size(0) : 1;
+		final int iF = input.size(batch ? 1 : 0);
+		final int oF = (iF - kW) / dW + 1;
+		
+		final Tensor x = input.contiguous();
+		final Tensor w = kernels.contiguous();
+		final float[] b = bias.get();
+		output = batch ? Tensor.result(output, n, oF, outputFrameSize) : Tensor.result(output, oF, outputFrameSize);
+		final Tensor y = target(output);
+		
+		for(int s=0;s<n;s++){
+			int yo = y.offset + s*oF*outputFrameSize;
+			for(int t=0;t<oF;t++){
+				System.arraycopy(b, 0, y.data, yo + t*outputFrameSize, outputFrameSize);
+			}
+			// consecutive windows of kW frames are rows with stride dW*inputFrameSize
+			Gemm.sgemm(false, true, oF, outputFrameSize, kW*inputFrameSize, 
+					1.0f, x.data, x.offset + s*iF*inputFrameSize, dW*inputFrameSize, 
+					w.data, w.offset, kW*inputFrameSize,
+					1.0f, y.data, yo, outputFrameSize);
+		}
+		return writeBack(y, output);
+	}
+
+	public static Tensor temporalconvolveGradIn(Tensor gradInput, final Tensor gradOutput, final Tensor kernels, final Tensor input, 
+			final int kW, final int dW){
+		final boolean batch = input.dim() == 3;
+		final int n = batch ? input.size(0) : 1;
+		final int iF = input.size(batch ? 1 : 0);
+		final int fs = input.size(batch ? 2 : 1);
+		final int oF = gradOutput.size(batch ? 1 : 0);
+		final int ofs = gradOutput.size(batch ? 2 : 1);
+		
+		final Tensor g = gradOutput.contiguous();
+		final Tensor w = kernels.contiguous();
+		gradInput = Tensor.resultAs(gradInput, input);
+		final Tensor gi = target(gradInput);
+		gi.fill(0.0f);
+		
+		final int k = kW*fs;
+		float[] windows = new float[oF*k];
+		for(int s=0;s<n;s++){
+			Gemm.sgemm(false, false, oF, k, ofs, 
+					1.0f, g.data, g.offset + s*oF*ofs, ofs,
+					w.data, w.offset, k,
+					0.0f, windows, 0, k);
+			// windows overlap in case dW < kW
+			int gio = gi.offset + s*iF*fs;
+			for(int t=0;t<oF;t++){
+				int dst = gio + t*dW*fs;
+				int src = t*k;
+				for(int i=0;i<k;i++){
+					gi.data[dst+i] += windows[src+i];
+				}
+			}
+		}
+		return writeBack(gi, gradInput);
+	}
+
+	public static void temporalconvolveAccGrad(final Tensor gradKernels, final Tensor gradBias, final Tensor gradOutput, final Tensor input, 
+			final int kW, final int dW){
+		final boolean batch = input.dim() == 3;
+		final int n = batch ? input.size(0) : 1;
+		final int iF = input.size(batch ? 1 : 0);
+		final int fs = input.size(batch ? 2 : 1);
+		final int oF = gradOutput.size(batch ? 1 : 0);
+		final int ofs = gradOutput.size(batch ? 2 : 1);
+		
+		final Tensor x = input.contiguous();
+		final Tensor g = gradOutput.contiguous();
+		final Tensor gw = gradKernels.contiguous();
+		final Tensor gb = gradBias.contiguous();
+		
+		for(int s=0;s<n;s++){
+			Gemm.sgemm(true, false, ofs, kW*fs, oF,
+					1.0f, g.data, g.offset + s*oF*ofs, ofs,
+					x.data, x.offset + s*iF*fs, dW*fs,
+					1.0f, gw.data, gw.offset, kW*fs);
+			for(int t=0;t<oF;t++){
+				int go = g.offset + (s*oF + t)*ofs;
+				for(int o=0;o<ofs;o++){
+					gb.data[gb.offset+o] += g.data[go+o];
+				}
+			}
+		}
+		writeBack(gw, gradKernels);
+		writeBack(gb, gradBias);
+	}
+	
+	
+	public static Tensor spatialconvolve(Tensor output, final Tensor input, final Tensor kernels, final Tensor bias, 
+			final Tensor temp1, final Tensor temp2,
+			final int kW, final int kH, final int dW, final int dH, final int padW, final int padH){
+		return convolve(output, input, kernels, bias, temp1, 2, 1, kH, kW, 1, dH, dW, 0, padH, padW);
+	}
+
+	public static Tensor spatialconvolveGradIn(Tensor gradInput, final Tensor gradOutput, final Tensor kernels, final Tensor input, 
+			final Tensor temp1, final Tensor temp2,
+			final int kW, final int kH, final int dW, final int dH, final int padW, final int padH){
+		return convolveGradIn(gradInput, gradOutput, kernels, input, temp2, 2, 1, kH, kW, 1, dH, dW, 0, padH, padW);
+	}
+
+	public static void spatialconvolveAccGrad(final Tensor gradKernels, final Tensor gradBias, final Tensor gradOutput, final Tensor input, 
+			final Tensor temp1, final Tensor temp2,
+			final int kW, final int kH, final int dW, final int dH, final int padW, final int padH){
+		convolveAccGrad(gradKernels, gradBias, gradOutput, input, temp1, 2, 1, kH, kW, 1, dH, dW, 0, padH, padW);
+	}
+	
+	
+	public static Tensor volumetricconvolve(Tensor output, final Tensor input, final Tensor kernels, final Tensor bias, 
+			final Tensor temp1, final Tensor temp2,
+			final int kW, final int kH, final int kD, final int dW, final int dH, int dD, final int padW, final int padH, final int padD){
+		return convolve(output, input, kernels, bias, temp1, 3, kD, kH, kW, dD, dH, dW, padD, padH, padW);
+	}
+
+	public static Tensor volumetricconvolveGradIn(Tensor gradInput, final Tensor gradOutput, final Tensor kernels, final Tensor input, 
+			final Tensor temp1, final Tensor temp2,
+			final int kW, final int kH, final int kD, final int dW, final int dH, final int dD, final int padW, final int padH, final int padD){
+		return convolveGradIn(gradInput, gradOutput, kernels, input, temp2, 3, kD, kH, kW, dD, dH, dW, padD, padH, padW);
+	}
+
+	public static void volumetricconvolveAccGrad(final Tensor gradKernels, final Tensor gradBias, final Tensor gradOutput, final Tensor input, 
+			final Tensor temp1, final Tensor temp2,
+			final int kW, final int kH, final int kD, final int dW, final int dH, final int dD, final int padW, final int padH, final int padD){
+		convolveAccGrad(gradKernels, gradBias, gradOutput, input, temp1, 3, kD, kH, kW, dD, dH, dW, padD, padH, padW);
+	}
+	
+	
+	
+	public static Tensor spatialfullconvolve(Tensor output, final Tensor input, final Tensor kernels, final Tensor bias, 
+			final Tensor temp1, final Tensor temp2,
+			final int kW, final int kH, final int dW, final int dH, final int padW, final int padH){
+		return fullconvolve(output, input, kernels, bias, temp1, 2, 1, kH, kW, 1, dH, dW, 0, padH, padW);
+	}
+
+	public static Tensor spatialfullconvolveGradIn(Tensor gradInput, final Tensor gradOutput, final Tensor kernels, final Tensor input, 
+			final Tensor temp1, final Tensor temp2,
+			final int kW, final int kH, final int dW, final int dH, final int padW, final int padH){
+		return fullconvolveGradIn(gradInput, gradOutput, kernels, input, temp2, 2, 1, kH, kW, 1, dH, dW, 0, padH, padW);
+	}
+
+	public static void spatialfullconvolveAccGrad(final Tensor gradKernels, final Tensor gradBias, final Tensor gradOutput, final Tensor input, 
+			final Tensor temp1, final Tensor temp2,
+			final int kW, final int kH, final int dW, final int dH, final int padW, final int padH){
+		fullconvolveAccGrad(gradKernels, gradBias, gradOutput, input, temp2, 2, 1, kH, kW, 1, dH, dW, 0, padH, padW);
+	}
+	
+	
+	public static Tensor volumetricfullconvolve(Tensor output, final Tensor input, final Tensor kernels, final Tensor bias, 
+			final Tensor temp1, final Tensor temp2,
+			final int kW, final int kH, final int kD, final int dW, final int dH, int dD, final int padW, final int padH, final int padD){
+		int[] k = fullKernelSize(kernels, kD, kH, kW);
+		return fullconvolve(output, input, kernels, bias, temp1, 3, k[0], k[1], k[2], dD, dH, dW, padD, padH, padW);
+	}
+
+	public static Tensor volumetricfullconvolveGradIn(Tensor gradInput, final Tensor gradOutput, final Tensor kernels, final Tensor input, 
+			final Tensor temp1, final Tensor temp2,
+			final int kW, final int kH, final int kD, final int dW, final int dH, final int dD, final int padW, final int padH, final int padD){
+		int[] k = fullKernelSize(kernels, kD, kH, kW);
+		return fullconvolveGradIn(gradInput, gradOutput, kernels, input, temp2, 3, k[0], k[1], k[2], dD, dH, dW, padD, padH, padW);
+	}
+
+	public static void volumetricfullconvolveAccGrad(final Tensor gradKernels, final Tensor gradBias, final Tensor gradOutput, final Tensor input, 
+			final Tensor temp1, final Tensor temp2,
+			final int kW, final int kH, final int kD, final int dW, final int dH, final int dD, final int padW, final int padH, final int padD){
+		int[] k = fullKernelSize(gradKernels, kD, kH, kW);
+		fullconvolveAccGrad(gradKernels, gradBias, gradOutput, input, temp2, 3, k[0], k[1], k[2], dD, dH, dW, padD, padH, padW);
+	}
+	
+	
+	
+	public static Tensor batchnorm(Tensor output, final Tensor input, final Tensor weights, final Tensor bias, final Tensor rMean, final Tensor rVar, final Tensor sMean, final Tensor sVar, final boolean train){
+		final int n = input.size(0);
+		final int c = input.size(1);
+		final int s = input.dim() == 2 ? 1 : input.size(2);
+		final int count = n*s;
+		
+		final Tensor x = input.contiguous();
+		output = input.dim() == 2 ? Tensor.result(output, n, c) : Tensor.result(output, n, c, s);
+		final Tensor y = target(output);
+		
+		final float[] w = weights == null ? null : weights.get();
+		final float[] b = bias == null ? null : bias.get();
+		final float[] rm = rMean.get();
+		final float[] rv = rVar.get();
+		final float[] sm = new float[c];
+		final float[] sv = new float[c];
+		
+		Parallel.range(c, grain(count), (from, to) -> {
+			for(int f=from;f<to;f++){
+				float mean, invstd;
+				if(train){
+					double sum = 0;
+					for(int i=0;i<n;i++){
+						int xo = x.offset + (i*c + f)*s;
+						for(int j=0;j<s;j++)
+							sum += x.data[xo+j];
+					}
+					mean = (float)(sum / count);
+					
+					double var = 0;
+					for(int i=0;i<n;i++){
+						int xo = x.offset + (i*c + f)*s;
+						for(int j=0;j<s;j++){
+							float d = x.data[xo+j] - mean;
+							var += d*d;
+						}
+					}
+					invstd = (float)(1.0 / Math.sqrt(var/count + BN_EPS));
+					
+					sm[f] = mean;
+					sv[f] = invstd;
+					rm[f] = BN_MOMENTUM * mean + (1 - BN_MOMENTUM) * rm[f];
+					float unbiased = count > 1 ? (float)(var / (count - 1)) : 0.0f;
+					rv[f] = BN_MOMENTUM * unbiased + (1 - BN_MOMENTUM) * rv[f];
+				} else {
+					mean = rm[f];
+					invstd = (float)(1.0 / Math.sqrt(rv[f] + BN_EPS));
+				}
+				
+				float scale = w == null ? 1.0f : w[f];
+				float shift = b == null ? 0.0f : b[f];
+				for(int i=0;i<n;i++){
+					int xo = x.offset + (i*c + f)*s;
+					int yo = y.offset + (i*c + f)*s;
+					for(int j=0;j<s;j++){
+						y.data[yo+j] = (x.data[xo+j] - mean) * invstd * scale + shift;
+					}
+				}
+			}
+		});
+		
+		if(train){
+			rMean.set(rm);
+			rVar.set(rv);
+			if(sMean != null){
+				sMean.resize(c);
+				sMean.set(sm);
+			}
+			if(sVar != null){
+				sVar.resize(c);
+				sVar.set(sv);
+			}
+		}
+		return writeBack(y, output);
+	}
+
+	public static Tensor batchnormGradIn(Tensor gradInput, final Tensor gradOutput, final Tensor input, final Tensor weights, final Tensor rMean, final Tensor rVar, final Tensor sMean, final Tensor sVar, final boolean train){
+		gradInput = gradOutput.dim() == 2 ? Tensor.result(gradInput, gradOutput.size(0), gradOutput.size(1)) 
+				: Tensor.result(gradInput, gradOutput.size(0), gradOutput.size(1), gradOutput.size(2));
+		final Tensor gi = target(gradInput);
+		batchnormBackward(gi, null, null, gradOutput, input, weights, rMean, rVar, sMean, sVar, train);
+		return writeBack(gi, gradInput);
+	}
+
+	public static void batchnormAccGrad(final Tensor gradWeights, final Tensor gradBias, final Tensor gradOutput, final Tensor input, final Tensor weights, final Tensor rMean, final Tensor rVar, final Tensor sMean, final Tensor sVar, final boolean train){
+		batchnormBackward(null, gradWeights, gradBias, gradOutput, input, weights, rMean, rVar, sMean, sVar, train);
+	}
+
+	
+	public static Tensor linear(Tensor output, final Tensor input, final Tensor weights, final Tensor bias, final Tensor ones){
+		final int outputs = weights.size(0);
+		if(input.dim() % 2 == 1){
+			// 1d or 3d tensor, treat as one input by default
+			if(input.dim() == 3){
+				input.reshape(input.size());
+			}
+			output = Tensor.result(output, outputs);
+			bias.copyInto(output);
+			Gemm.mv(output, 1.0f, 1.0f, weights, input);
+			return output;
+		} else {
+			// 2d or 4d tensor, treat as batch by default
+			if(input.dim() == 4){
+				input.reshape(input.size(0), input.size(1)*input.size(2)*input.size(3));
+			}
+			final int n = input.size(0);
+			output = Tensor.result(output, n, outputs);
+			final Tensor y = target(output);
+			final float[] b = bias.get();
+			for(int i=0;i<n;i++){
+				System.arraycopy(b, 0, y.data, y.offset + i*outputs, outputs);
+			}
+			Gemm.mm(y, 1.0f, 1.0f, input, weights.transpose(null, 0, 1));
+			return writeBack(y, output);
+		}
+	}
+	
+	public static Tensor linearGradIn(Tensor gradInput, final Tensor gradOutput, final Tensor weights, final Tensor input){
+		gradInput = Tensor.resultAs(gradInput, input);
+		if(input.dim() % 2 == 1){
+			// treat as vector input
+			Gemm.mv(gradInput, 0.0f, 1.0f, weights.transpose(null, 0, 1), gradOutput);
+		} else {
+			// treat as batch input
+			Gemm.mm(gradInput, 0.0f, 1.0f, gradOutput, weights);
+		}
+		return gradInput;
+	}
+	
+	public static void linearAccGrad(final Tensor gradWeigths, final Tensor gradBias, final Tensor gradOutput, final Tensor input, final Tensor ones){
+		if(input.dim() % 2 == 1){
+			Gemm.vv(gradWeigths, 1.0f, 1.0f, gradOutput, input);
+			TensorOps.add(gradBias, gradBias, gradOutput);
+		} else {
+			// batched input
+			Tensor gT = gradOutput.transpose(null, 0, 1);
+			Gemm.mm(gradWeigths, 1.0f, 1.0f, gT, input);
+			final Tensor g = gradOutput.contiguous();
+			final Tensor gb = gradBias.contiguous();
+			final int n = g.size(0);
+			final int outputs = g.size(1);
+			for(int i=0;i<n;i++){
+				int go = g.offset + i*outputs;
+				for(int o=0;o<outputs;o++){
+					gb.data[gb.offset+o] += g.data[go+o];
+				}
+			}
+			writeBack(gb, gradBias);
+		}
+	}
+	
+	
+	/*
+	 * Convolutions, the spatial variants are handled as volumetric with a depth of 1
+	 */
+	
+	private static Tensor convolve(Tensor output, final Tensor input, final Tensor kernels, final Tensor bias, Tensor finput,
+			final int spatialDims, final int kT, final int kH, final int kW, final int dT, final int dH, final int dW,
+			final int pT, final int pH, final int pW){
+		final Volume v = new Volume(input, spatialDims);
+		final int nOut = kernels.size(0);
+		final int oT = (v.t + 2*pT - kT) / dT + 1;
+		final int oH = (v.h + 2*pH - kH) / dH + 1;
+		final int oW = (v.w + 2*pW - kW) / dW + 1;
+		final int oS = oT*oH*oW;
+		final int kk = v.c*kT*kH*kW;
+		
+		final Tensor x = input.contiguous();
+		final Tensor w = kernels.contiguous();
+		final float[] b = bias.get();
+		output = Tensor.result(output, v.outputDims(nOut, oT, oH, oW));
+		final Tensor y = target(output);
+		final Tensor col = Tensor.result(finput, v.n, kk, oS);
+		
+		Parallel.range(v.n, 1, (from, to) -> {
+			for(int s=from;s<to;s++){
+				int co = col.offset + s*kk*oS;
+				int yo = y.offset + s*nOut*oS;
+				vol2col(x.data, x.offset + s*v.c*v.size(), v.c, v.t, v.h, v.w, 
+						kT, kH, kW, pT, pH, pW, dT, dH, dW, oT, oH, oW, col.data, co);
+				for(int o=0;o<nOut;o++){
+					java.util.Arrays.fill(y.data, yo + o*oS, yo + (o+1)*oS, b[o]);
+				}
+				Gemm.sgemm(false, false, nOut, oS, kk, 
+						1.0f, w.data, w.offset, kk, 
+						col.data, co, oS, 
+						1.0f, y.data, yo, oS);
+			}
+		});
+		return writeBack(y, output);
+	}
+	
+	private static Tensor convolveGradIn(Tensor gradInput, final Tensor gradOutput, final Tensor kernels, final Tensor input, Tensor fgradInput,
+			final int spatialDims, final int kT, final int kH, final int kW, final int dT, final int dH, final int dW,
+			final int pT, final int pH, final int pW){
+		final Volume v = new Volume(input, spatialDims);
+		final int nOut = kernels.size(0);
+		final int oT = (v.t + 2*pT - kT) / dT + 1;
+		final int oH = (v.h + 2*pH - kH) / dH + 1;
+		final int oW = (v.w + 2*pW - kW) / dW + 1;
+		final int oS = oT*oH*oW;
+		final int kk = v.c*kT*kH*kW;
+		
+		final Tensor g = gradOutput.contiguous();
+		final Tensor w = kernels.contiguous();
+		gradInput = Tensor.resultAs(gradInput, input);
+		final Tensor gi = target(gradInput);
+		gi.fill(0.0f);
+		final Tensor col = Tensor.result(fgradInput, v.n, kk, oS);
+		
+		Parallel.range(v.n, 1, (from, to) -> {
+			for(int s=from;s<to;s++){
+				int co = col.offset + s*kk*oS;
+				Gemm.sgemm(true, false, kk, oS, nOut, 
+						1.0f, w.data, w.offset, kk,
+						g.data, g.offset + s*nOut*oS, oS, 
+						0.0f, col.data, co, oS);
+				col2vol(col.data, co, v.c, v.t, v.h, v.w, 
+						kT, kH, kW, pT, pH, pW, dT, dH, dW, oT, oH, oW, gi.data, gi.offset + s*v.c*v.size());
+			}
+		});
+		return writeBack(gi, gradInput);
+	}
+	
+	private static void convolveAccGrad(final Tensor gradKernels, final Tensor gradBias, final Tensor gradOutput, final Tensor input, Tensor finput,
+			final int spatialDims, final int kT, final int kH, final int kW, final int dT, final int dH, final int dW,
+			final int pT, final int pH, final int pW){
+		final Volume v = new Volume(input, spatialDims);
+		final int nOut = gradKernels.size(0);
+		final int oT = (v.t + 2*pT - kT) / dT + 1;
+		final int oH = (v.h + 2*pH - kH) / dH + 1;
+		final int oW = (v.w + 2*pW - kW) / dW + 1;
+		final int oS = oT*oH*oW;
+		final int kk = v.c*kT*kH*kW;
+		
+		final Tensor g = gradOutput.contiguous();
+		final Tensor gw = gradKernels.contiguous();
+		final Tensor gb = gradBias.contiguous();
+		
+		// reuse the unfolded input of the forward pass if available
+		Tensor col = finput;
+		if(col == null || col.size() != v.n*kk*oS || !col.isContiguous()){
+			final Tensor x = input.contiguous();
+			final Tensor c = Tensor.result(col, v.n, kk, oS);
+			Parallel.range(v.n, 1, (from, to) -> {
+				for(int s=from;s<to;s++){
+					vol2col(x.data, x.offset + s*v.c*v.size(), v.c, v.t, v.h, v.w, 
+							kT, kH, kW, pT, pH, pW, dT, dH, dW, oT, oH, oW, c.data, c.offset + s*kk*oS);
+				}
+			});
+			col = c;
+		}
+		
+		for(int s=0;s<v.n;s++){
+			int go = g.offset + s*nOut*oS;
+			Gemm.sgemm(false, true, nOut, kk, oS, 
+					1.0f, g.data, go, oS,
+					col.data, col.offset + s*kk*oS, oS,
+					1.0f, gw.data, gw.offset, kk);
+			for(int o=0;o<nOut;o++){
+				gb.data[gb.offset+o] += sum(g.data, go + o*oS, oS);
+			}
+		}
+		writeBack(gw, gradKernels);
+		writeBack(gb, gradBias);
+	}
+	
+	private static Tensor fullconvolve(Tensor output, final Tensor input, final Tensor kernels, final Tensor bias, Tensor columns,
+			final int spatialDims, final int kT, final int kH, final int kW, final int dT, final int dH, final int dW,
+			final int pT, final int pH, final int pW){
+		final Volume v = new Volume(input, spatialDims);
+		final int nOut = kernels.size(1);
+		final int oT = (v.t - 1)*dT - 2*pT + kT;
+		final int oH = (v.h - 1)*dH - 2*pH + kH;
+		final int oW = (v.w - 1)*dW - 2*pW + kW;
+		final int oS = oT*oH*oW;
+		final int kk = nOut*kT*kH*kW;
+		final int iS = v.size();
+		
+		final Tensor x = input.contiguous();
+		final Tensor w = kernels.contiguous();
+		final float[] b = bias.get();
+		output = Tensor.result(output, v.outputDims(nOut, oT, oH, oW));
+		final Tensor y = target(output);
+		y.fill(0.0f);
+		final Tensor col = Tensor.result(columns, v.n, kk, iS);
+		
+		Parallel.range(v.n, 1, (from, to) -> {
+			for(int s=from;s<to;s++){
+				int co = col.offset + s*kk*iS;
+				int yo = y.offset + s*nOut*oS;
+				Gemm.sgemm(true, false, kk, iS, v.c, 
+						1.0f, w.data, w.offset, kk, 
+						x.data, x.offset + s*v.c*iS, iS, 
+						0.0f, col.data, co, iS);
+				col2vol(col.data, co, nOut, oT, oH, oW, 
+						kT, kH, kW, pT, pH, pW, dT, dH, dW, v.t, v.h, v.w, y.data, yo);
+				for(int o=0;o<nOut;o++){
+					int off = yo + o*oS;
+					for(int i=0;i<oS;i++){
+						y.data[off+i] += b[o];
+					}
+				}
+			}
+		});
+		return writeBack(y, output);
+	}
+	
+	private static Tensor fullconvolveGradIn(Tensor gradInput, final Tensor gradOutput, final Tensor kernels, final Tensor input, Tensor columns,
+			final int spatialDims, final int kT, final int kH, final int kW, final int dT, final int dH, final int dW,
+			final int pT, final int pH, final int pW){
+		final Volume v = new Volume(input, spatialDims);
+		final int nOut = kernels.size(1);
+		final int oT = (v.t - 1)*dT - 2*pT + kT;
+		final int oH = (v.h - 1)*dH - 2*pH + kH;
+		final int oW = (v.w - 1)*dW - 2*pW + kW;
+		final int oS = oT*oH*oW;
+		final int kk = nOut*kT*kH*kW;
+		final int iS = v.size();
+		
+		final Tensor g = gradOutput.contiguous();
+		final Tensor w = kernels.contiguous();
+		gradInput = Tensor.resultAs(gradInput, input);
+		final Tensor gi = target(gradInput);
+		final Tensor col = Tensor.result(columns, v.n, kk, iS);
+		
+		Parallel.range(v.n, 1, (from, to) -> {
+			for(int s=from;s<to;s++){
+				int co = col.offset + s*kk*iS;
+				vol2col(g.data, g.offset + s*nOut*oS, nOut, oT, oH, oW, 
+						kT, kH, kW, pT, pH, pW, dT, dH, dW, v.t, v.h, v.w, col.data, co);
+				Gemm.sgemm(false, false, v.c, iS, kk, 
+						1.0f, w.data, w.offset, kk,
+						col.data, co, iS, 
+						0.0f, gi.data, gi.offset + s*v.c*iS, iS);
+			}
+		});
+		return writeBack(gi, gradInput);
+	}
+	
+	private static void fullconvolveAccGrad(final Tensor gradKernels, final Tensor gradBias, final Tensor gradOutput, final Tensor input, Tensor columns,
+			final int spatialDims, final int kT, final int kH, final int kW, final int dT, final int dH, final int dW,
+			final int pT, final int pH, final int pW){
+		final Volume v = new Volume(input, spatialDims);
+		final int nOut = gradKernels.size(1);
+		final int oT = (v.t - 1)*dT - 2*pT + kT;
+		final int oH = (v.h - 1)*dH - 2*pH + kH;
+		final int oW = (v.w - 1)*dW - 2*pW + kW;
+		final int oS = oT*oH*oW;
+		final int kk = nOut*kT*kH*kW;
+		final int iS = v.size();
+		
+		final Tensor x = input.contiguous();
+		final Tensor g = gradOutput.contiguous();
+		final Tensor gw = gradKernels.contiguous();
+		final Tensor gb = gradBias.contiguous();
+		final Tensor col = Tensor.result(columns, kk, iS);
+		
+		for(int s=0;s<v.n;s++){
+			int go = g.offset + s*nOut*oS;
+			vol2col(g.data, go, nOut, oT, oH, oW, 
+					kT, kH, kW, pT, pH, pW, dT, dH, dW, v.t, v.h, v.w, col.data, col.offset);
+			Gemm.sgemm(false, true, v.c, kk, iS, 
+					1.0f, x.data, x.offset + s*v.c*iS, iS,
+					col.data, col.offset, iS,
+					1.0f, gw.data, gw.offset, kk);
+			for(int o=0;o<nOut;o++){
+				gb.data[gb.offset+o] += sum(g.data, go + o*oS, oS);
+			}
+		}
+		writeBack(gw, gradKernels);
+		writeBack(gb, gradBias);
+	}
+	
+	private static int[] fullKernelSize(Tensor kernels, int kD, int kH, int kW){
+		if(kernels.dim() == 5){
+			return new int[]{kernels.size(2), kernels.size(3), kernels.size(4)};
+		}
+		return new int[]{kD, kH, kW};
+	}
+	
+	/**
+	 * Unfold the (padded) input volume into columns, each column containing 
+	 * the kT*kH*kW*channels elements of one kernel application
+	 */
+	static void vol2col(final float[] in, final int io, final int channels, final int t, final int h, final int w,
+			final int kT, final int kH, final int kW, final int pT, final int pH, final int pW,
+			final int dT, final int dH, final int dW, final int oT, final int oH, final int oW,
+			final float[] col, final int co){
+		final int oS = oT*oH*oW;
+		for(int c=0;c<channels;c++){
+			for(int kt=0;kt<kT;kt++){
+				for(int kh=0;kh<kH;kh++){
+					for(int kw=0;kw<kW;kw++){
+						int row = co + (((c*kT + kt)*kH + kh)*kW + kw)*oS;
+						for(int ot=0;ot<oT;ot++){
+							int it = ot*dT - pT + kt;
+							for(int oh=0;oh<oH;oh++){
+								int ih = oh*dH - pH + kh;
+								int dst = row + (ot*oH + oh)*oW;
+								if(it < 0 || it >= t || ih < 0 || ih >= h){
+									java.util.Arrays.fill(col, dst, dst + oW, 0.0f);
+									continue;
+								}
+								int src = io + ((c*t + it)*h + ih)*w;
+								if(dW == 1 && pW == 0){
+									System.arraycopy(in, src + kw, col, dst, oW);
+								} else {
+									for(int ow=0;ow<oW;ow++){
+										int iw = ow*dW - pW + kw;
+										col[dst+ow] = iw < 0 || iw >= w ? 0.0f : in[src + iw];
+									}
+								}
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Inverse of vol2col, accumulating all column entries into the output volume
+	 */
+	static void col2vol(final float[] col, final int co, final int channels, final int t, final int h, final int w,
+			final int kT, final int kH, final int kW, final int pT, final int pH, final int pW,
+			final int dT, final int dH, final int dW, final int oT, final int oH, final int oW,
+			final float[] out, final int oo){
+		final int oS = oT*oH*oW;
+		for(int c=0;c<channels;c++){
+			for(int kt=0;kt<kT;kt++){
+				for(int kh=0;kh<kH;kh++){
+					for(int kw=0;kw<kW;kw++){
+						int row = co + (((c*kT + kt)*kH + kh)*kW + kw)*oS;
+						for(int ot=0;ot<oT;ot++){
+							int it = ot*dT - pT + kt;
+							if(it < 0 || it >= t)
+								continue;
+							for(int oh=0;oh<oH;oh++){
+								int ih = oh*dH - pH + kh;
+								if(ih < 0 || ih >= h)
+									continue;
+								int src = row + (ot*oH + oh)*oW;
+								int dst = oo + ((c*t + it)*h + ih)*w;
+								for(int ow=0;ow<oW;ow++){
+									int iw = ow*dW - pW + kw;
+									if(iw >= 0 && iw < w)
+										out[dst + iw] += col[src+ow];
+								}
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Dimensions of a (batched) spatial or volumetric input 
+	 */
+	private static class Volume {
+		final boolean batch;
+		final boolean volumetric;
+		final int n;
+		final int c;
+		final int t;
+		final int h;
+		final int w;
+		
+		Volume(Tensor input, int spatialDims){
+			int[] d = input.dims;
+			batch = d.length == spatialDims + 2;
+			volumetric = spatialDims == 3;
+			int i = batch ? 1 : 0;
+			n = batch ? d[0] : 1;
+			c = d[i];
+			t = spatialDims == 3 ? d[i+1] : 1;
+			h = d[d.length-2];
+			w = d[d.length-1];
+		}
+		
+		int size(){
+			return t*h*w;
+		}
+		
+		int[] outputDims(int channels, int oT, int oH, int oW){
+			if(batch){
+				return volumetric ? new int[]{n, channels, oT, oH, oW} : new int[]{n, channels, oH, oW};
+			}
+			return volumetric ? new int[]{channels, oT, oH, oW} : new int[]{channels, oH, oW};
+		}
+	}
+	
+	/*
+	 * Max pooling, the indices contain the position of the max within the input plane
+	 */
+	
+	private static Tensor maxpool(Tensor output, final Tensor input, final Tensor indices, 
+			final int spatialDims, final int kT, final int kH, final int kW, final int dT, final int dH, final int dW,
+			final int pT, final int pH, final int pW){
+		final Volume v = new Volume(input, spatialDims);
+		final int oT = poolSize(v.t, kT, dT, pT);
+		final int oH = poolSize(v.h, kH, dH, pH);
+		final int oW = poolSize(v.w, kW, dW, pW);
+		final int planes = v.n*v.c;
+		final int iS = v.size();
+		final int oS = oT*oH*oW;
+		
+		final int[] dims = v.outputDims(v.c, oT, oH, oW);
+		final Tensor x = input.contiguous();
+		output = Tensor.result(output, dims);
+		final Tensor y = target(output);
+		final Tensor ind = Tensor.result(indices, dims);
+		final Tensor id = target(ind);
+		
+		Parallel.range(planes, grain(iS), (from, to) -> {
+			for(int p=from;p<to;p++){
+				int xo = x.offset + p*iS;
+				int yo = y.offset + p*oS;
+				int io = id.offset + p*oS;
+				for(int ot=0;ot<oT;ot++){
+					int tstart = Math.max(ot*dT - pT, 0);
+					int tend = Math.min(ot*dT - pT + kT, v.t);
+					for(int oh=0;oh<oH;oh++){
+						int hstart = Math.max(oh*dH - pH, 0);
+						int hend = Math.min(oh*dH - pH + kH, v.h);
+						for(int ow=0;ow<oW;ow++){
+							int wstart = Math.max(ow*dW - pW, 0);
+							int wend = Math.min(ow*dW - pW + kW, v.w);
+							
+							float max = -Float.MAX_VALUE;
+							int index = -1;
+							for(int it=tstart;it<tend;it++){
+								for(int ih=hstart;ih<hend;ih++){
+									for(int iw=wstart;iw<wend;iw++){
+										int i = (it*v.h + ih)*v.w + iw;
+										float val = x.data[xo + i];
+										if(val > max || Float.isNaN(val) || index == -1){
+											max = val;
+											index = i;
+										}
+									}
+								}
+							}
+							int o = (ot*oH + oh)*oW + ow;
+							y.data[yo + o] = max;
+							id.data[io + o] = index;
+						}
+					}
+				}
+			}
+		});
+		writeBack(id, ind);
+		return writeBack(y, output);
+	}
+	
+	private static Tensor unpool(Tensor output, final Tensor input, final Tensor indices, final int[] dims, final int oS){
+		final Tensor x = input.contiguous();
+		final Tensor id = indices.contiguous();
+		output = Tensor.result(output, dims);
+		final Tensor y = target(output);
+		y.fill(0.0f);
+		
+		final int planes = y.size() / oS;
+		final int iS = x.size() / planes;
+		Parallel.range(planes, grain(iS), (from, to) -> {
+			for(int p=from;p<to;p++){
+				int xo = x.offset + p*iS;
+				int io = id.offset + p*iS;
+				int yo = y.offset + p*oS;
+				for(int i=0;i<iS;i++){
+					y.data[yo + (int)id.data[io+i]] = x.data[xo+i];
+				}
+			}
+		});
+		return writeBack(y, output);
+	}
+	
+	// scatter the gradient to the max positions
+	private static Tensor maxpoolGradIn(Tensor gradInput, final Tensor gradOutput, final Tensor input, final Tensor indices, final int spatialDims){
+		final Volume v = new Volume(input, spatialDims);
+		final int planes = v.n*v.c;
+		final int iS = v.size();
+		final Tensor g = gradOutput.contiguous();
+		final Tensor id = indices.contiguous();
+		final int oS = g.size() / planes;
+		gradInput = Tensor.resultAs(gradInput, input);
+		final Tensor gi = target(gradInput);
+		gi.fill(0.0f);
+		
+		Parallel.range(planes, grain(iS), (from, to) -> {
+			for(int p=from;p<to;p++){
+				int go = g.offset + p*oS;
+				int io = id.offset + p*oS;
+				int gio = gi.offset + p*iS;
+				for(int i=0;i<oS;i++){
+					gi.data[gio + (int)id.data[io+i]] += g.data[go+i];
+				}
+			}
+		});
+		return writeBack(gi, gradInput);
+	}
+	
+	// gather the gradient at the positions the input was unpooled to
+	private static Tensor unpoolGradIn(Tensor gradInput, final Tensor gradOutput, final Tensor input, final Tensor indices, final int spatialDims){
+		final Volume v = new Volume(input, spatialDims);
+		final int planes = v.n*v.c;
+		final int iS = v.size();
+		final Tensor g = gradOutput.contiguous();
+		final Tensor id = indices.contiguous();
+		final int oS = g.size() / planes;
+		gradInput = Tensor.resultAs(gradInput, input);
+		final Tensor gi = target(gradInput);
+		
+		Parallel.range(planes, grain(iS), (from, to) -> {
+			for(int p=from;p<to;p++){
+				int go = g.offset + p*oS;
+				int io = id.offset + p*iS;
+				int gio = gi.offset + p*iS;
+				for(int i=0;i<iS;i++){
+					gi.data[gio+i] = g.data[go + (int)id.data[io+i]];
+				}
+			}
+		});
+		return writeBack(gi, gradInput);
+	}
+	
+	private static int poolSize(int i, int k, int d, int p){
+		int o = (i - k + 2*p) / d + 1;
+		if(p > 0 && (o - 1)*d >= i + p)
+			o--;
+		return o;
+	}
+	
+	private static int avgPoolSize(int i, int k, int d, int p, boolean ceil){
+		int o = ceil ? (int)Math.ceil((float)(i - k + 2*p) / d) + 1 
+				: (int)Math.floor((float)(i - k + 2*p) / d) + 1;
+		if(p > 0 && (o - 1)*d >= i + p)
+			o--;
+		return o;
+	}
+	
+	/*
+	 * Batch normalization backward pass, calculates either the gradient
+	 * to the input or the gradient of the parameters
+	 */
+	private static void batchnormBackward(final Tensor gradInput, final Tensor gradWeights, final Tensor gradBias, 
+			final Tensor gradOutput, final Tensor input, final Tensor weights, 
+			final Tensor rMean, final Tensor rVar, final Tensor sMean, final Tensor sVar, final boolean train){
+		final int n = input.size(0);
+		final int c = input.size(1);
+		final int s = input.dim() == 2 ? 1 : input.size(2);
+		final int count = n*s;
+		
+		final Tensor x = input.contiguous();
+		final Tensor g = gradOutput.contiguous();
+		final float[] w = weights == null ? null : weights.get();
+		final float[] means = train ? sMean.get() : rMean.get();
+		final float[] stds = train ? sVar.get() : rVar.get();
+		final float[] gw = gradWeights == null ? null : gradWeights.get();
+		final float[] gb = gradBias == null ? null : gradBias.get();
+		
+		Parallel.range(c, grain(count), (from, to) -> {
+			for(int f=from;f<to;f++){
+				float mean = means[f];
+				float invstd = train ? stds[f] : (float)(1.0 / Math.sqrt(stds[f] + BN_EPS));
+				float scale = w == null ? 1.0f : w[f];
+				
+				double sum = 0;
+				double dotp = 0;
+				for(int i=0;i<n;i++){
+					int o = (i*c + f)*s;
+					for(int j=0;j<s;j++){
+						float gv = g.data[g.offset+o+j];
+						sum += gv;
+						dotp += (x.data[x.offset+o+j] - mean)*gv;
+					}
+				}
+				
+				if(gradInput != null){
+					if(train){
+						float k = (float)(dotp * invstd * invstd / count);
+						float gradMean = (float)(sum / count);
+						for(int i=0;i<n;i++){
+							int o = (i*c + f)*s;
+							for(int j=0;j<s;j++){
+								float proj = (x.data[x.offset+o+j] - mean) * k;
+								gradInput.data[gradInput.offset+o+j] = (g.data[g.offset+o+j] - proj - gradMean) * invstd * scale;
+							}
+						}
+					} else {
+						for(int i=0;i<n;i++){
+							int o = (i*c + f)*s;
+							for(int j=0;j<s;j++){
+								gradInput.data[gradInput.offset+o+j] = g.data[g.offset+o+j] * invstd * scale;
+							}
+						}
+					}
+				}
+				
+				if(gw != null){
+					gw[f] += (float)(dotp * invstd);
+				}
+				if(gb != null){
+					gb[f] += (float)sum;
+				}
+			}
+		});
+		
+		if(gw != null)
+			gradWeights.set(gw);
+		if(gb != null)
+			gradBias.set(gb);
+	}
+	
+	
+	private static int preluPlaneSize(Tensor input, int noOutputPlanes){
+		if(noOutputPlanes == 0)
+			return 1;
+		switch(input.dim()){
+		case 3:
+			return input.size(1)*input.size(2);
+		case 4:
+			return input.size(2)*input.size(3);
+		default:
+			return 1;
+		}
+	}
+	
+	/**
+	 * @return number of frames, dim and stride to apply softmax on
+	 */
+	private static int[] softmaxShape(Tensor input){
+		int[] d = input.dims;
+		switch(d.length){
+		case 1:
+			return new int[]{1, d[0], 1};
+		case 2:
+			return new int[]{d[0], d[1], 1};
+		case 3:
+			return new int[]{1, d[0], d[1]*d[2]};
+		case 4:
+			return new int[]{d[0], d[1], d[2]*d[3]};
+		default:
+			throw new IllegalArgumentException("Softmax only supports 1D, 2D, 3D or 4D tensors");
+		}
+	}
+	
+	private static float sum(float[] data, int offset, int n){
+		float sum = 0;
+		for(int i=0;i<n;i++){
+			sum += data[offset+i];
+		}
+		return sum;
+	}
+	
+	private static int grain(int work){
+		return Math.max(1, Parallel.GRAIN / Math.max(1, work));
+	}
+	
+	// contiguous tensor to write the result to
+	private static Tensor target(Tensor res){
+		return res.isContiguous() ? res : new Tensor(res.dims);
+	}
+	
+	private static Tensor writeBack(Tensor t, Tensor res){
+		if(t != res)
+			t.copyInto(res);
+		return res;
+	}
+}
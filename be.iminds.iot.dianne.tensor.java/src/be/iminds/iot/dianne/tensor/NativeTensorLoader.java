@@ -0,0 +1,111 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.tensor;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+
+/**
+ * Pure Java counterpart of the native tensor loader. There is no native library 
+ * to load, activation only configures the number of threads used by the tensor 
+ * operations.
+ * 
+ * The class name is kept to be a drop-in replacement for the native backend.
+ */
+@Component(
+		service=Object.class,
+		property={"osgi.command.scope=tensor",
+				  "osgi.command.function=option",
+				  "osgi.command.function=memory"},
+		immediate=true)
+public class NativeTensorLoader {
+
+	public static final String BACKEND = "java";
+	
+	@Activate
+	public void activate(BundleContext context){
+		if(context != null){
+			String device = context.getProperty("be.iminds.iot.dianne.tensor.device");
+			if(device != null && Integer.parseInt(device) >= 0){
+				System.out.println("Java tensor backend does not support GPU devices, ignoring device "+device);
+			}
+			
+			String threads = context.getProperty("be.iminds.iot.dianne.tensor.threads");
+			if(threads != null){
+				option("threads", threads);
+			}
+		}
+	}
+	
+	@Deactivate()
+	public void deactivate(){
+		Parallel.setThreads(Runtime.getRuntime().availableProcessors());
+	}
+	
+	// set a backend-specific option
+	public void option(String key, String value){
+		switch(key){
+		case "threads":
+			Parallel.setThreads(Integer.parseInt(value));
+			break;
+		default:
+			System.out.println("Unknown option "+key+" for the java tensor backend");
+		}
+	}
+	
+	public void option(String keyval){
+		String[] split = keyval.split("=");
+		if(split.length==2){
+			option(split[0],split[1]);
+		}
+	}
+	
+	public void memory(){
+		System.out.println(TensorMemory.stats());
+	}
+
+	public void memory(String action){
+		if(action.equals("trim")){
+			TensorMemory.trim();
+		}
+		memory();
+	}
+
+	// no buffer pool in the java backend, tensor data is managed by the garbage collector
+	static long[] poolStats(){
+		return new long[4];
+	}
+
+	static void poolTrim(){
+	}
+
+	public static void gc(){
+		TensorMemory.gcRequests.incrementAndGet();
+		
+		// tensors live on the java heap, nothing to wait for
+		System.gc();
+	}
+
+}
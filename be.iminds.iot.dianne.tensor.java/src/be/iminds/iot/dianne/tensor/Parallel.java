@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez, Elias De Coninck
+ *******************************************************************************/
+package be.iminds.iot.dianne.tensor;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Splits large kernels over a ForkJoinPool. Small ranges are executed
+ * on the calling thread to avoid the task overhead.
+ *
+ * @author tverbele
+ *
+ */
+class Parallel {
+
+	interface Range {
+		void run(int from, int to);
+	}
+
+	// minimal number of elements before an elementwise kernel is split
+	static final int GRAIN = 1 << 15;
+
+	private static volatile ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+	static void setThreads(int threads){
+		ForkJoinPool old = pool;
+		pool = new ForkJoinPool(threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+		old.shutdown();
+	}
+
+	static int threads(){
+		return pool.getParallelism();
+	}
+
+	/**
+	 * Run the body on [0, n), split in chunks of at least grain elements
+	 */
+	static void range(int n, int grain, Range body){
+		int parallelism = pool.getParallelism();
+		if(n <= grain || parallelism == 1){
+			body.run(0, n);
+			return;
+		}
+
+		int chunks = Math.min((n + grain - 1) / grain, parallelism*4);
+		int chunk = (n + chunks - 1) / chunks;
+		RangeTask task = new RangeTask(body, 0, n, chunk);
+		if(ForkJoinTask.getPool() == pool){
+			// already inside our pool, e.g. nested gemm call
+			task.invoke();
+		} else {
+			pool.invoke(task);
+		}
+	}
+
+	static void range(int n, Range body){
+		range(n, GRAIN, body);
+	}
+
+	private static class RangeTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Range body;
+		private final int from;
+		private final int to;
+		private final int chunk;
+
+		RangeTask(Range body, int from, int to, int chunk){
+			this.body = body;
+			this.from = from;
+			this.to = to;
+			this.chunk = chunk;
+		}
+
+		@Override
+		protected void compute() {
+			if(to - from <= chunk){
+				body.run(from, to);
+				return;
+			}
+			int mid = from + ((to - from) / chunk / 2) * chunk;
+			if(mid == from)
+				mid = from + chunk;
+			invokeAll(new RangeTask(body, from, mid, chunk), new RangeTask(body, mid, to, chunk));
+		}
+	}
+}
@@ -0,0 +1,862 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez, Elias De Coninck
+ *******************************************************************************/
+package be.iminds.iot.dianne.tensor;
+
+import java.nio.BufferOverflowException;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Represents an n-dimensional tensor in Java
+ *
+ * This is the pure Java implementation, the data is kept in a float array
+ * together with an offset and strides, so that narrow, select and transpose
+ * can return views on the same data like the native implementation does.
+ * 
+ * Releasing a tensor drops its reference to the data, the memory itself is
+ * reclaimed by the garbage collector.
+ *
+ * @author tverbele
+ *
+ */
+public class Tensor implements AutoCloseable {
+
+	private static final AtomicLong ADDRESSES = new AtomicLong();
+	private static final float[] EMPTY = new float[0];
+	private static final Random RANDOM = new Random();
+
+	// no native memory here, used as unique identifier of this tensor object
+	public long address;
+
+	float[] data;
+	int offset;
+	int[] dims;
+	int[] strides;
+
+	private Map<String, Tensor> map;
+
+	public Tensor(){
+		this(null, null);
+	}
+
+	public Tensor(int... dims) {
+		this(null, dims);
+	}
+
+	public Tensor(int d0, int[] dims){
+		int[] d = new int[dims.length+1];
+		d[0] = d0;
+		System.arraycopy(dims, 0, d, 1, dims.length);
+		init(null, d);
+	}
+
+	public Tensor(int d0, int d1, int[] dims){
+		int[] d = new int[dims.length+2];
+		d[0] = d0;
+		d[1] = d1;
+		System.arraycopy(dims, 0, d, 2, dims.length);
+		init(null, d);
+	}
+
+	public Tensor(float[] data, int... dims) {
+		init(data, dims);
+	}
+
+	// create a view on existing data
+	Tensor(float[] data, int offset, int[] dims, int[] strides){
+		this.address = ADDRESSES.incrementAndGet();
+		this.data = data;
+		this.offset = offset;
+		this.dims = dims;
+		this.strides = strides;
+		TensorScope.register(this);
+	}
+
+	/**
+	 * Map parts of the Tensor to a String key
+	 * @param key key
+	 * @param ranges  this is interpreted
+	 * as narrowing dimension 1 from ranges[0] with size ranges[1], narrowing dimension 2 from
+	 * ranges[2] with size ranges[3], etc.
+	 * @param shape shape of the resulting tensor
+	 */
+	public void map(String key, int[] ranges, int[] shape){
+		if(map == null) {
+			map = new HashMap<>();
+		}
+		Tensor sub = this.narrow(ranges);
+		sub.reshape(shape);
+		map.put(key, sub);	}
+
+	/**
+	 * Map parts of the Tensor to a String key
+	 * @param ranges  this is interpreted
+	 * as narrowing dimension 1 from ranges[0] with size ranges[1], narrowing dimension 2 from
+	 * ranges[2] with size ranges[3], etc.
+	 */
+	public void map(String key, int[] ranges){
+		if(map == null) {
+			map = new HashMap<>();
+		}
+		Tensor sub = this.narrow(ranges);
+		map.put(key, sub);
+	}
+
+	/**
+	 * Get a part of the Tensor by a String key
+	 * @param key
+	 * @return part of the Tensor mapped by this key - null if this key does not exist
+	 */
+	public Tensor get(String key){
+		if(map == null)
+			return null;
+
+		return map.get(key);
+	}
+
+	/**
+	 * @return the number of dimensions of this tensor
+	 */
+	public int dim(){
+		checkReleased();
+		return dims.length;
+	}
+
+	/**
+	 * @return the dimensions of this tensor
+	 */
+	public int[] dims(){
+		checkReleased();
+		return Arrays.copyOf(dims, dims.length);
+	}
+
+	/**
+	 * @return the total size of the tensor
+	 */
+	public int size(){
+		checkReleased();
+		return size(dims);
+	}
+
+	/**
+	 * the size of the d'th dimension
+	 * @param d the dimension to query the size
+	 * @return the size of the dimension
+	 */
+	public int size(final int d){
+		checkReleased();
+		return dims[d];
+	}
+
+	/**
+	 * reshape the dimensions of this tensor, the underlying data remains the same
+	 */
+	public void reshape(final int... d){
+		if(!isContiguous()){
+			throw new IllegalStateException("Error, trying to reshape a non-contiguous tensor! Take a copy first!");
+		}
+		resize(d);
+	}
+
+	public void reshape(final int[] d, final int df){
+		int[] dn = Arrays.copyOf(d, d.length+1);
+		dn[d.length] = df;
+		reshape(dn);
+	}
+
+	public void reshape(final int df, final int[] d){
+		int[] dn = new int[d.length+1];
+		System.arraycopy(d, 0, dn, 1, d.length);
+		dn[0] = df;
+		reshape(dn);
+	}
+
+	/**
+	 * get a value of the tensor
+	 * @param d indices of the element
+	 * @return the element specified by the index
+	 */
+	public float get(final int... d){
+		return data[index(d)];
+	}
+
+	/**
+	 * get (a copy of) the raw data for this tensor, this way that the tensor
+	 * can be reconstructed with the createTensor(data, dims) factory method
+	 */
+	public float[] get(){
+		int size = size();
+		if(isContiguous()){
+			return Arrays.copyOfRange(data, offset, offset+size);
+		}
+		float[] result = new float[size];
+		copy(this, result, 0);
+		return result;
+	}
+
+	/**
+	 * set a value of the tensor
+	 * @param v the new value
+	 * @param d the indices of the element to set
+	 */
+	public void set(final float v, final int... d){
+		data[index(d)] = v;
+	}
+
+	/**
+	 *  copy a complete array of raw data into this tensor
+	 */
+	public void set(final float[] data){
+		if(isContiguous()){
+			System.arraycopy(data, 0, this.data, offset, Math.min(data.length, this.data.length-offset));
+		} else {
+			copy(data, 0, this);
+		}
+	}
+
+	/**
+	 * copy the remaining floats of a buffer into this tensor, the buffer position
+	 * is advanced with the number of floats copied
+	 */
+	public void set(final FloatBuffer data){
+		int length = Math.min(data.remaining(), size());
+		if(isContiguous()){
+			data.get(this.data, offset, length);
+		} else {
+			copyRange(data, 0, length, true);
+		}
+	}
+
+	/**
+	 * copy the data of this tensor into a buffer, the buffer position
+	 * is advanced with the number of floats copied
+	 */
+	public void get(final FloatBuffer data){
+		if(isContiguous()){
+			data.put(this.data, offset, size());
+		} else {
+			if(data.remaining() < size()){
+				throw new BufferOverflowException();
+			}
+			copyRange(data, 0, size(), false);
+		}
+	}
+
+	/**
+	 * copy length floats of a buffer into this tensor, starting at element from
+	 * (in row-major order), the buffer position is advanced with the number of floats copied
+	 */
+	public void set(final FloatBuffer data, final int from, final int length){
+		if(from < 0 || length < 0 || from+length > size() || data.remaining() < length){
+			throw new IndexOutOfBoundsException();
+		}
+		if(isContiguous()){
+			data.get(this.data, offset+from, length);
+		} else {
+			copyRange(data, from, length, true);
+		}
+	}
+
+	/**
+	 * copy length floats of this tensor, starting at element from (in row-major order),
+	 * into a buffer, the buffer position is advanced with the number of floats copied
+	 */
+	public void get(final FloatBuffer data, final int from, final int length){
+		if(from < 0 || length < 0 || from+length > size()){
+			throw new IndexOutOfBoundsException();
+		}
+		if(isContiguous()){
+			data.put(this.data, offset+from, length);
+		} else {
+			if(data.remaining() < length){
+				throw new BufferOverflowException();
+			}
+			copyRange(data, from, length, false);
+		}
+	}
+
+	/**
+	 * fill with fixed value
+	 * @param v the new value
+	 */
+	public void fill(final float v){
+		if(isContiguous()){
+			Arrays.fill(data, offset, offset+size(), v);
+		} else {
+			float[] values = new float[size()];
+			Arrays.fill(values, v);
+			copy(values, 0, this);
+		}
+	}
+
+	/**
+	 * fill with random values uniformely distributed between 0 and 1
+	 */
+	public void rand(){
+		synchronized(Tensor.class){ // java.util.Random is thread safe, but keep the same
+									// synchronization as the native implementation
+			srand();
+		}
+	}
+
+	private void srand(){
+		float[] values = new float[size()];
+		for(int i=0;i<values.length;i++){
+			values[i] = RANDOM.nextFloat();
+		}
+		set(values);
+	}
+
+	/**
+	 * fill with random values Gaussian ("normally") distributed with mean 0.0 and standard deviation 1.0
+	 */
+	public void randn(){
+		synchronized(Tensor.class){
+			srandn();
+		}
+	}
+
+	private void srandn(){
+		float[] values = new float[size()];
+		for(int i=0;i<values.length;i++){
+			values[i] = (float) RANDOM.nextGaussian();
+		}
+		set(values);
+	}
+
+	/**
+	 * fill with 0 or 1 sampled using Bernoulli distribution with 0 <= p <= 1
+	 */
+	public void bernoulli(float p){
+		synchronized(Tensor.class){
+			sbernoulli(p);
+		}
+	}
+
+	private void sbernoulli(float p){
+		float[] values = new float[size()];
+		for(int i=0;i<values.length;i++){
+			values[i] = RANDOM.nextDouble() <= p ? 1.0f : 0.0f;
+		}
+		set(values);
+	}
+
+	/**
+	 * check if other tensor has same dimensions
+	 */
+	public boolean sameDim(final Tensor other){
+		checkReleased();
+		other.checkReleased();
+		return Arrays.equals(dims, other.dims);
+	}
+
+	/**
+	 * check if other tensor has these dimensions
+	 */
+	public boolean hasDim(final int... dims){
+		checkReleased();
+		return Arrays.equals(this.dims, dims);
+	}
+
+	/**
+	 * clone this tensor into other tensor, create new one if null or different number of elements
+	 * @param other the tensor to clone into
+	 * @return the cloned tensor
+	 */
+	public Tensor copyInto(final Tensor other){
+		checkReleased();
+		Tensor target = other;
+		if(target == null){
+			target = new Tensor(dims);
+		} else if(target.size() != size()){
+			target.resize(dims);
+		}
+
+		if(target.isContiguous() && isContiguous()){
+			System.arraycopy(data, offset, target.data, target.offset, size());
+		} else if(target.isContiguous()){
+			copy(this, target.data, target.offset);
+		} else {
+			copy(get(), 0, target);
+		}
+		return target;
+	}
+
+	/**
+	 * clone this tensor - creates a deep copy of this tensor
+	 */
+	public Tensor clone(){
+		return copyInto(null);
+	}
+
+	/**
+	 * Return a subtensor narrowing dimension dim from index to index+size-1
+	 */
+	public Tensor narrow(final int dim, final int index, final int size){
+		checkReleased();
+		if(dim < 0 || dim >= dims.length || index < 0 || size <= 0 || index+size > dims[dim]){
+			throw new IndexOutOfBoundsException("Cannot narrow dimension "+dim+" from "+index+" with size "+size+" for tensor "+Arrays.toString(dims));
+		}
+		int[] d = Arrays.copyOf(dims, dims.length);
+		d[dim] = size;
+		return new Tensor(data, offset + index*strides[dim], d, Arrays.copyOf(strides, strides.length));
+	}
+
+	/**
+	 * Return a subtensor narrowing according to the ranges array. This is interpreted
+	 * as narrowing dimension 1 from ranges[0] with size ranges[1], narrowing dimension 2 from
+	 * ranges[2] with size ranges[3], etc.
+	 */
+	public Tensor narrow(final int... ranges){
+		Tensor n = this;
+		for(int i=0;i<ranges.length-1;i+=2){
+			n = n.narrow(i/2, ranges[i], ranges[i+1]);
+		}
+		return n;
+	}
+
+	/**
+	 * Return a slice at the given index in dimension dim, dimension dim will be removed
+	 */
+	public Tensor select(final int dim, final int index){
+		checkReleased();
+		if(dims.length < 2){
+			throw new IllegalArgumentException("Cannot select on a vector");
+		}
+		if(index < 0 || index >= dims[dim]){
+			throw new IndexOutOfBoundsException("Cannot select index "+index+" of dimension "+dim+" for tensor "+Arrays.toString(dims));
+		}
+		int[] d = new int[dims.length-1];
+		int[] s = new int[dims.length-1];
+		for(int i=0,j=0;i<dims.length;i++){
+			if(i==dim)
+				continue;
+			d[j] = dims[i];
+			s[j++] = strides[i];
+		}
+		return new Tensor(data, offset + index*strides[dim], d, s);
+	}
+
+	/**
+	 * calculate the transpose of the tensor
+	 */
+	public Tensor transpose(Tensor res, final int d1, final int d2){
+		checkReleased();
+		// like the native implementation, this returns a transposed view on the data
+		int[] d = Arrays.copyOf(dims, dims.length);
+		int[] s = Arrays.copyOf(strides, strides.length);
+		d[d1] = dims[d2];
+		d[d2] = dims[d1];
+		s[d1] = strides[d2];
+		s[d2] = strides[d1];
+		return new Tensor(data, offset, d, s);
+	}
+
+	/**
+	 * return the diag vec of the tensor
+	 */
+	public Tensor diag(Tensor res){
+		checkReleased();
+		if(dims.length == 1){
+			// vector -> diagonal matrix
+			int n = dims[0];
+			float[] values = new float[n*n];
+			for(int i=0;i<n;i++){
+				values[i*n+i] = data[offset+i*strides[0]];
+			}
+			if(res == null){
+				res = new Tensor(n, n);
+			} else {
+				res.resize(n, n);
+			}
+			res.set(values);
+		} else {
+			int n = Math.min(dims[0], dims[1]);
+			float[] values = new float[n];
+			for(int i=0;i<n;i++){
+				values[i] = data[offset+i*strides[0]+i*strides[1]];
+			}
+			if(res == null){
+				res = new Tensor(n);
+			} else {
+				res.resize(n);
+			}
+			res.set(values);
+		}
+		return res;
+	}
+
+	public boolean equals(Object other){
+		if(other == null)
+			return false;
+		else if(!(other instanceof Tensor))
+			return false;
+		else
+			return equals((Tensor) other);
+	}
+
+	/**
+	 * return whether two tensors are equal (note: they have to be the same type to be equal!)
+	 * @param other object to compare to
+	 * @return true if the other object represents an equal tensor
+	 */
+	public boolean equals(Tensor other){
+		if(other == null)
+			return false;
+		else if(other.address == this.address)
+			return true;
+		else
+			return equals(other, 0.000001f);
+	}
+
+	/**
+	 * equals with threshold (note: they have to be the same type to be equal!)
+	 * @param other object to compare to
+	 * @return true if the other object represents an equal tensor with values within threshold range
+	 */
+	public boolean equals(Tensor other, float threshold){
+		if(!this.sameDim(other))
+			return false;
+		else
+			return equalsData(other, threshold);
+	}
+
+	@Override
+	public int hashCode(){
+		return (int)address;
+	}
+
+	@Override
+	public String toString(){
+		StringBuilder b = new StringBuilder();
+		b.append(Arrays.toString(dims()));
+
+		float[] data = get();
+		if(data.length > 20){
+			b.append(Arrays.toString(Arrays.copyOf(data, 20)));
+			b.insert(b.length()-1, "...");
+		} else {
+			b.append(Arrays.toString(data));
+		}
+		b.append(" Min: ").append(TensorOps.min(this))
+		.append(" Mean: ").append(TensorOps.mean(this))
+		.append(" Max: ").append(TensorOps.max(this));
+
+		return b.toString();
+	}
+
+	/**
+	 * Release the data of this tensor. Views on this tensor keep the underlying
+	 * data alive until they are released as well.
+	 * 
+	 * Releasing a tensor multiple times has no effect.
+	 */
+	public synchronized void release(){
+		if(address == 0)
+			return;
+
+		if(map != null){
+			for(Tensor t : map.values()){
+				t.release();
+			}
+			map = null;
+		}
+
+		address = 0;
+		data = EMPTY;
+		offset = 0;
+		dims = new int[0];
+		strides = new int[0];
+		TensorMemory.released.incrementAndGet();
+	}
+
+	/**
+	 * @return whether this tensor is released
+	 */
+	public boolean isReleased(){
+		return address == 0;
+	}
+
+	@Override
+	public void close(){
+		release();
+	}
+
+	private void init(float[] data, int[] dims){
+		this.address = ADDRESSES.incrementAndGet();
+		TensorScope.register(this);
+		if(dims == null){
+			this.data = EMPTY;
+			this.dims = new int[0];
+			this.strides = new int[0];
+			return;
+		}
+
+		if(dims.length == 0 && data != null){
+			dims = new int[]{data.length};
+		}
+
+		this.dims = Arrays.copyOf(dims, dims.length);
+		this.strides = contiguousStrides(dims);
+		this.data = new float[size(dims)];
+		if(data != null){
+			System.arraycopy(data, 0, this.data, 0, Math.min(data.length, this.data.length));
+		}
+	}
+
+	private boolean equalsData(Tensor other, float threshold){
+		float[] a = this.get();
+		float[] b = other.get();
+		if(a.length != b.length)
+			return false;
+		for(int i=0;i<a.length;i++){
+			// also returns false when NaN
+			if(!(Math.abs(a[i]-b[i]) <= threshold))
+				return false;
+		}
+		return true;
+	}
+
+	/*
+	 * Internal helpers used by the TensorOps and ModuleOps implementations
+	 */
+
+	/**
+	 * Resize this tensor to the given dimensions, reallocating the data in case
+	 * the current data does not suffice. As in Torch, the tensor will be contiguous
+	 * afterwards unless the dimensions did not change.
+	 */
+	void resize(int... d){
+		checkReleased();
+		if(Arrays.equals(dims, d)){
+			// same size, keep strides as is
+			return;
+		}
+
+		int size = size(d);
+		if(offset + size > data.length){
+			float[] newData = new float[size];
+			System.arraycopy(data, offset, newData, 0, Math.max(0, Math.min(data.length-offset, size)));
+			data = newData;
+			offset = 0;
+		}
+		dims = Arrays.copyOf(d, d.length);
+		strides = contiguousStrides(d);
+	}
+
+	/**
+	 * Let this tensor share the data of the other tensor
+	 */
+	void set(Tensor other){
+		checkReleased();
+		other.checkReleased();
+		data = other.data;
+		offset = other.offset;
+		dims = Arrays.copyOf(other.dims, other.dims.length);
+		strides = Arrays.copyOf(other.strides, other.strides.length);
+	}
+
+	boolean isContiguous(){
+		checkReleased();
+		int expected = 1;
+		for(int i=dims.length-1;i>=0;i--){
+			if(dims[i] != 1){
+				if(strides[i] != expected)
+					return false;
+				expected *= dims[i];
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return this tensor in case it is contiguous, or a contiguous copy otherwise
+	 */
+	Tensor contiguous(){
+		if(isContiguous())
+			return this;
+		return new Tensor(get(), dims);
+	}
+
+	/**
+	 * @return the given result tensor resized to these dims, or a new tensor if res is null
+	 */
+	static Tensor result(Tensor res, int... dims){
+		if(res == null)
+			return new Tensor(dims);
+		res.resize(dims);
+		return res;
+	}
+
+	/**
+	 * @return the given result tensor resized to the size of t in case the number of elements differ
+	 */
+	static Tensor resultAs(Tensor res, Tensor t){
+		t.checkReleased();
+		if(res == null)
+			return new Tensor(t.dims);
+		if(res != t && !res.sameDim(t))
+			res.resize(t.dims);
+		return res;
+	}
+
+	/**
+	 * Throw an IllegalStateException in case this tensor is already released
+	 */
+	void checkReleased(){
+		if(address == 0){
+			throw new IllegalStateException("Tensor is already released");
+		}
+	}
+
+	private int index(int[] d){
+		checkReleased();
+		int index = offset;
+		for(int i=0;i<d.length;i++){
+			if(d[i] < 0 || d[i] >= dims[i]){
+				throw new IndexOutOfBoundsException("Index "+Arrays.toString(d)+" out of bounds for tensor "+Arrays.toString(dims));
+			}
+			index += d[i]*strides[i];
+		}
+		return index;
+	}
+
+	static int size(int[] dims){
+		if(dims.length == 0)
+			return 0;
+		int size = 1;
+		for(int d : dims){
+			size *= d;
+		}
+		return size;
+	}
+
+	static int[] contiguousStrides(int[] dims){
+		int[] strides = new int[dims.length];
+		int stride = 1;
+		for(int i=dims.length-1;i>=0;i--){
+			strides[i] = stride;
+			stride *= dims[i];
+		}
+		return strides;
+	}
+
+	// copy a (non contiguous) tensor into a contiguous float array
+	// copy length elements starting at element from (in row-major order) between a buffer 
+	// and this non-contiguous tensor, in runs along the last dimension
+	private void copyRange(FloatBuffer buffer, int from, int length, boolean toTensor){
+		if(length <= 0)
+			return;
+		int last = dims.length-1;
+		int lastSize = dims[last];
+		int lastStride = strides[last];
+		int i = from;
+		int end = from+length;
+		while(i < end){
+			int n = Math.min(lastSize - i % lastSize, end - i);
+			
+			// index of element i in the data
+			int index = offset;
+			int r = i;
+			for(int d=last;d>=0;d--){
+				index += (r % dims[d])*strides[d];
+				r /= dims[d];
+			}
+			
+			for(int k=0;k<n;k++){
+				if(toTensor){
+					data[index+k*lastStride] = buffer.get();
+				} else {
+					buffer.put(data[index+k*lastStride]);
+				}
+			}
+			i += n;
+		}
+	}
+	
+	private static void copy(Tensor t, float[] dest, int destOffset){
+		int n = t.size();
+		if(n == 0)
+			return;
+		int last = t.dims.length-1;
+		int[] index = new int[t.dims.length];
+		int src = t.offset;
+		int lastSize = t.dims[last];
+		int lastStride = t.strides[last];
+		int k = destOffset;
+		while(true){
+			for(int i=0;i<lastSize;i++){
+				dest[k++] = t.data[src+i*lastStride];
+			}
+			int dim = last-1;
+			while(dim >= 0){
+				index[dim]++;
+				src += t.strides[dim];
+				if(index[dim] < t.dims[dim])
+					break;
+				src -= t.strides[dim]*t.dims[dim];
+				index[dim] = 0;
+				dim--;
+			}
+			if(dim < 0)
+				return;
+		}
+	}
+
+	// copy a contiguous float array into a (non contiguous) tensor
+	private static void copy(float[] src, int srcOffset, Tensor t){
+		int n = Math.min(t.size(), src.length-srcOffset);
+		if(n <= 0)
+			return;
+		int last = t.dims.length-1;
+		int[] index = new int[t.dims.length];
+		int dest = t.offset;
+		int lastSize = t.dims[last];
+		int lastStride = t.strides[last];
+		int end = srcOffset+n;
+		int k = srcOffset;
+		while(true){
+			for(int i=0;i<lastSize && k<end;i++){
+				t.data[dest+i*lastStride] = src[k++];
+			}
+			if(k >= end)
+				return;
+			int dim = last-1;
+			while(dim >= 0){
+				index[dim]++;
+				dest += t.strides[dim];
+				if(index[dim] < t.dims[dim])
+					break;
+				dest -= t.strides[dim]*t.dims[dim];
+				index[dim] = 0;
+				dim--;
+			}
+			if(dim < 0)
+				return;
+		}
+	}
+}
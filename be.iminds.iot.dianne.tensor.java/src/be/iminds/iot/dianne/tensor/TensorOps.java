@@ -0,0 +1,756 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.tensor;
+
+/**
+ * Provides all supported Tensor operations. Each operation where a tensor is returned,
+ * also has the argument res, in which one could provide a tensor in which the result
+ * will be put and returned. This in order to save memory allocations. When res is null 
+ * a new Tensor object will be created.
+ * 
+ * This is the pure Java implementation, elementwise operations run over contiguous
+ * arrays and are split over a ForkJoin pool for large tensors.
+ * 
+ * @author tverbele
+ *
+ */
+public class TensorOps {
+
+	/**
+	 * Add the given value to all elements in the T.
+	 */
+	public static Tensor add(Tensor res, final Tensor tensor, final float value){
+		return unary(res, tensor, (r, ro, a, ao, from, to) -> {
+			for(int i=from;i<to;i++)
+				r[ro+i] = a[ao+i] + value;
+		});
+	}
+
+	/**
+	 * Add tensor1 to tensor2 and put result into res. 
+	 * The number of elements must match, but sizes do not matter.
+	 */
+	public static Tensor add(Tensor res, final Tensor tensor1, final Tensor tensor2){
+		return binary(res, tensor1, tensor2, (r, ro, a, ao, b, bo, from, to) -> {
+			for(int i=from;i<to;i++)
+				r[ro+i] = a[ao+i] + b[bo+i];
+		});
+	}
+
+	/**
+	 * Multiply elements of tensor2 by the scalar value and add it to tensor1. 
+	 * The number of elements must match, but sizes do not matter.
+	 */
+	public static Tensor add(Tensor res, final Tensor tensor1, final float value, final Tensor tensor2){
+		return binary(res, tensor1, tensor2, (r, ro, a, ao, b, bo, from, to) -> {
+			for(int i=from;i<to;i++)
+				r[ro+i] = a[ao+i] + value*b[bo+i];
+		});
+	}
+	
+	/**
+	 * Subract the given value of all elements in the T.
+	 */
+	public static Tensor sub(Tensor res, final Tensor tensor, final float value){
+		return add(res, tensor, -value);
+	}
+
+	/**
+	 * Subtract tensor2 from tensor1 and put result into res. 
+	 * The number of elements must match, but sizes do not matter.
+	 */
+	public static Tensor sub(Tensor res, final Tensor tensor1, final Tensor tensor2){
+		return binary(res, tensor1, tensor2, (r, ro, a, ao, b, bo, from, to) -> {
+			for(int i=from;i<to;i++)
+				r[ro+i] = a[ao+i] - b[bo+i];
+		});
+	}
+	
+	/**
+	 * Multiply elements of tensor2 by the scalar value and subtract it from tensor1. 
+	 * The number of elements must match, but sizes do not matter.
+	 */
+	public static Tensor sub(Tensor res, final Tensor tensor1, final float value, final Tensor tensor2){
+		return add(res, tensor1, -value, tensor2);
+	}
+	
+	/**
+	 * Multiply all elements in the tensor by the given value.
+	 */
+	public static Tensor mul(Tensor res, final Tensor tensor, final float value){
+		return unary(res, tensor, (r, ro, a, ao, from, to) -> {
+			for(int i=from;i<to;i++)
+				r[ro+i] = a[ao+i] * value;
+		});
+	}
+
+	/**
+	 * Element-wise multiplication of tensor1 by tensor2. 
+	 * The number of elements must match, but sizes do not matter.
+	 */
+	public static Tensor cmul(Tensor res, final Tensor tensor1, final Tensor tensor2){
+		return binary(res, tensor1, tensor2, (r, ro, a, ao, b, bo, from, to) -> {
+			for(int i=from;i<to;i++)
+				r[ro+i] = a[ao+i] * b[bo+i];
+		});
+	}
+
+	/**
+	 * Elementwise multiplication of tensor2 by tensor3, multiply by value and add to tensor1.
+	 * The number of elements must match, but sizes do not matter.
+	 */
+	public static Tensor addcmul(Tensor res, final Tensor tensor1, final float value, final Tensor tensor2, final Tensor tensor3){
+		return ternary(res, tensor1, tensor2, tensor3, (r, ro, a, ao, b, bo, c, co, from, to) -> {
+			for(int i=from;i<to;i++)
+				r[ro+i] = a[ao+i] + value * b[bo+i] * c[co+i];
+		});
+	}
+
+	/**
+	 * Divide all elements in the T by the given value.
+	 */
+	public static Tensor div(Tensor res, final Tensor tensor1, final float value){
+		return unary(res, tensor1, (r, ro, a, ao, from, to) -> {
+			for(int i=from;i<to;i++)
+				r[ro+i] = a[ao+i] / value;
+		});
+	}
+
+	/**
+	 * Element-wise division of tensor1 by tensor2. 
+	 * The number of elements must match, but sizes do not matter.
+	 */
+	public static Tensor cdiv(Tensor res, final Tensor tensor1, final Tensor tensor2){
+		return binary(res, tensor1, tensor2, (r, ro, a, ao, b, bo, from, to) -> {
+			for(int i=from;i<to;i++)
+				r[ro+i] = a[ao+i] / b[bo+i];
+		});
+	}
+
+	/**
+	 * Elementwise division of tensor2 by tensor3, multiply by value and add to tensor1.
+	 * The number of elements must match, but sizes do not matter.
+	 */
+	public static Tensor addcdiv(Tensor res, final Tensor tensor1, final float value, final Tensor tensor2, final Tensor tensor3){
+		return ternary(res, tensor1, tensor2, tensor3, (r, ro, a, ao, b, bo, c, co, from, to) -> {
+			for(int i=from;i<to;i++)
+				r[ro+i] = a[ao+i] + value * b[bo+i] / c[co+i];
+		});
+	}
+
+	/**
+	 * Performs the dot product between vec1 and vec2. 
+	 * The number of elements must match: both Ts are seen as a 1D vector.
+	 */
+	public static float dot(final Tensor vec1, final Tensor vec2){
+		Tensor v1 = vec1.contiguous();
+		Tensor v2 = vec2.contiguous();
+		int n = v1.size();
+		if(v2.size() != n){
+			throw new IllegalArgumentException("Inconsistent tensor size");
+		}
+		float[] a = v1.data;
+		float[] b = v2.data;
+		int ao = v1.offset;
+		int bo = v2.offset;
+		double sum = 0;
+		for(int i=0;i<n;i++){
+			sum += a[ao+i]*b[bo+i];
+		}
+		return (float)sum;
+	}
+
+	/**
+	 * Performs the matrix product between vec1 and vec2
+	 * @param res placeholder
+	 * @param vec1 vector of size m
+	 * @param vec2 vector of size n
+	 * @return resulting matrix of size mxn
+	 */
+	public static Tensor vv(Tensor res, final Tensor vec1, final Tensor vec2){
+		res = Tensor.result(res, vec1.size(), vec2.size());
+		Gemm.vv(res, 0.0f, 1.0f, vec1, vec2);
+		return res;
+	}
+
+	/**
+	 * Matrix vector product of mat and vec. 
+	 * Sizes must respect the matrix-multiplication operation: 
+	 * if mat is a n x m matrix, vec must be vector of size m and res must be a vector of size n.
+	 */
+	public static Tensor mv(Tensor res, final Tensor mat, final Tensor vec){
+		res = Tensor.result(res, mat.size(0));
+		Gemm.mv(res, 0.0f, 1.0f, mat, vec);
+		return res;
+	}
+	
+	/**
+	 * Matrix vector product of transposed mat and vec. 
+	 * Sizes must respect the matrix-multiplication operation: 
+	 * if mat is a m x n matrix, vec must be vector of size m and res must be a vector of size n.
+	 */
+	public static Tensor tmv(Tensor res, final Tensor mat, final Tensor vec){
+		res = Tensor.result(res, mat.size(1));
+		Gemm.mv(res, 0.0f, 1.0f, mat.transpose(null, 0, 1), vec);
+		return res;
+	}
+
+	/**
+	 * Matrix matrix product of matensor1 and matensor2. If matensor1 is a n x m matrix, matensor2 a m x p matrix, 
+	 * res must be a n x p matrix.
+	 */
+	public static Tensor mm(Tensor res, final Tensor mat1, final Tensor mat2){
+		res = Tensor.result(res, mat1.size(0), mat2.size(1));
+		Gemm.mm(res, 0.0f, 1.0f, mat1, mat2);
+		return res;
+	}
+	
+	/**
+	 * Matrix matrix product of transposed matensor1 and matensor2. If matensor1 is a m x n matrix, matensor2 a m x p matrix, 
+	 * res must be a n x p matrix.
+	 */
+	public static Tensor tmm(Tensor res, final Tensor mat1, final Tensor mat2){
+		res = Tensor.result(res, mat1.size(1), mat2.size(1));
+		Gemm.mm(res, 0.0f, 1.0f, mat1.transpose(null, 0, 1), mat2);
+		return res;
+	}
+	
+	/**
+	 * Performs the matrix product between vec1 and vec2 and adds this to mat
+	 * @param res placeholder
+	 * @param mat mxn matrix to add to result
+	 * @param vec1 vector of size m
+	 * @param vec2 vector of size n
+	 * @return resulting matrix of size mxn
+	 */
+	public static Tensor addvv(Tensor res, final Tensor mat, final Tensor vec1, final Tensor vec2){
+		res = Tensor.result(res, mat.size(0), mat.size(1));
+		if(res != mat)
+			mat.copyInto(res);
+		Gemm.vv(res, 1.0f, 1.0f, vec1, vec2);
+		return res;
+	}
+ 
+	/**
+	 * Performs a matrix-vector multiplication between mat (2D tensor) and vec (1D tensor) 
+	 * and add it to vec1. In other words, res = vec1 + mat*vec2
+	 */
+	public static Tensor addmv(Tensor res, final Tensor vec1, final Tensor mat, final Tensor vec2){
+		res = Tensor.result(res, vec1.size());
+		if(res != vec1)
+			vec1.copyInto(res);
+		Gemm.mv(res, 1.0f, 1.0f, mat, vec2);
+		return res;
+	}
+
+	/**
+	 * Performs a matrix-vector multiplication between matensor1 (2D tensor) and matensor2 (2D tensor) 
+	 * and add it to mat. In other words, res = mat + matensor1*matensor2
+	 */
+	public static Tensor addmm(Tensor res, final Tensor mat, final Tensor mat1, final Tensor mat2){
+		res = Tensor.result(res, mat.size(0), mat.size(1));
+		if(res != mat)
+			mat.copyInto(res);
+		Gemm.mm(res, 1.0f, 1.0f, mat1, mat2);
+		return res;
+	}
+	
+	/**
+	 * Calculates element-wise power function
+	 */
+	public static Tensor pow(Tensor res, final Tensor tensor, final float value){
+		if(value == 2.0f){
+			return unary(res, tensor, (r, ro, a, ao, from, to) -> {
+				for(int i=from;i<to;i++)
+					r[ro+i] = a[ao+i]*a[ao+i];
+			});
+		}
+		return unary(res, tensor, (r, ro, a, ao, from, to) -> {
+			for(int i=from;i<to;i++)
+				r[ro+i] = (float)Math.pow(a[ao+i], value);
+		});
+	}
+	
+	/**
+	 * Calculates element-wise exp function
+	 */
+	public static Tensor exp(Tensor res, final Tensor tensor){
+		return unary(res, tensor, (r, ro, a, ao, from, to) -> {
+			for(int i=from;i<to;i++)
+				r[ro+i] = (float)Math.exp(a[ao+i]);
+		});
+	}
+
+	/**
+	 * Calculates element-wise log function
+	 */
+	public static Tensor log(Tensor res, final Tensor tensor){
+		return unary(res, tensor, (r, ro, a, ao, from, to) -> {
+			for(int i=from;i<to;i++)
+				r[ro+i] = (float)Math.log(a[ao+i]);
+		});
+	}
+	
+	/**
+	 * Calculate sqrt for each element
+	 */
+	public static Tensor sqrt(Tensor res, final Tensor tensor){
+		return unary(res, tensor, (r, ro, a, ao, from, to) -> {
+			for(int i=from;i<to;i++)
+				r[ro+i] = (float)Math.sqrt(a[ao+i]);
+		});
+	}
+	
+	/**
+	 * Calculate element-wise absolute value
+	 */
+	public static Tensor abs(Tensor res, final Tensor tensor){
+		return unary(res, tensor, (r, ro, a, ao, from, to) -> {
+			for(int i=from;i<to;i++)
+				r[ro+i] = Math.abs(a[ao+i]);
+		});
+	}
+	
+	/**
+	 * Calculate element-wise sign
+	 */
+	public static Tensor sign(Tensor res, final Tensor tensor){
+		return unary(res, tensor, (r, ro, a, ao, from, to) -> {
+			for(int i=from;i<to;i++){
+				float v = a[ao+i];
+				r[ro+i] = v > 0 ? 1.0f : (v < 0 ? -1.0f : 0.0f);
+			}
+		});
+	}
+	
+	/**
+	 * Rounds the elements to the nearest integer
+	 */
+	public static Tensor round(Tensor res, final Tensor tensor){
+		return unary(res, tensor, (r, ro, a, ao, from, to) -> {
+			for(int i=from;i<to;i++){
+				// round half away from zero, as roundf in C
+				float v = a[ao+i];
+				r[ro+i] = v < 0 ? (float)-Math.floor(-v+0.5) : (float)Math.floor(v+0.5);
+			}
+		});
+	}
+	
+	/**
+	 * Return the sum of all elements
+	 */
+	public static float sum(final Tensor tensor){
+		Tensor t = tensor.contiguous();
+		float[] a = t.data;
+		int ao = t.offset;
+		int n = t.size();
+		double sum = 0;
+		for(int i=0;i<n;i++){
+			sum += a[ao+i];
+		}
+		return (float)sum;
+	}
+	
+	/**
+	 * Return the max of all elements
+	 */
+	public static float max(final Tensor tensor){
+		Tensor t = tensor.contiguous();
+		float[] a = t.data;
+		int ao = t.offset;
+		int n = t.size();
+		float max = -Float.MAX_VALUE;
+		for(int i=0;i<n;i++){
+			float v = a[ao+i];
+			if(v > max || Float.isNaN(v))
+				max = v;
+		}
+		return max;
+	}
+	
+	/**
+	 * Return the min of all elements
+	 */
+	public static float min(final Tensor tensor){
+		Tensor t = tensor.contiguous();
+		float[] a = t.data;
+		int ao = t.offset;
+		int n = t.size();
+		float min = Float.MAX_VALUE;
+		for(int i=0;i<n;i++){
+			float v = a[ao+i];
+			if(v < min || Float.isNaN(v))
+				min = v;
+		}
+		return min;
+	}
+	
+	/**
+	 * Return the mean of all elements
+	 */
+	public static float mean(final Tensor tensor){
+		return sum(tensor)/tensor.size();
+	}
+	
+	/**
+	 * Return index of the max element (treats T as 1 dim vector)
+	 */
+	public static int argmax(final Tensor tensor){
+		Tensor t = tensor.contiguous();
+		float[] a = t.data;
+		int ao = t.offset;
+		int n = t.size();
+		int index = 0;
+		float max = a[ao];
+		for(int i=1;i<n;i++){
+			if(max < a[ao+i]){
+				max = a[ao+i];
+				index = i;
+			}
+		}
+		return index;
+	}
+	
+	/**
+	 * Return index of the min element (treats T as 1 dim vector)
+	 */
+	public static int argmin(final Tensor tensor){
+		Tensor t = tensor.contiguous();
+		float[] a = t.data;
+		int ao = t.offset;
+		int n = t.size();
+		int index = 0;
+		float min = a[ao];
+		for(int i=1;i<n;i++){
+			if(min > a[ao+i]){
+				min = a[ao+i];
+				index = i;
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Scale (bilinear interpollate) in 2 dimensions
+	 * In case of 3D tensor it will scale all 'channels'
+	 */
+	public static Tensor scale2D(Tensor res, final Tensor t, final int... dims){
+		if(dims.length == 2){
+			res = Tensor.result(res, 1, dims[0], dims[1]);
+		} else {
+			res = Tensor.result(res, dims[0], dims[1], dims[2]);
+		}
+		
+		scale2d(res, t);
+		
+		if(dims.length == 2){
+			res.resize(dims[0], dims[1]);
+		}
+		return res;
+	}
+
+	/**
+	 * First crop to not stretch the image before scaling
+	 */
+	public static Tensor frame(Tensor res, final Tensor t, final int... dims){
+		int[] tDims = t.dims;
+		int noBatches = tDims.length == dims.length + 1 ? tDims[0] : 1;
+		
+		// make sure input and output or 4d  [batch, channel, y ,x]
+		if(dims.length == 2){
+			res = Tensor.result(res, noBatches, 1, dims[0], dims[1]);
+		} else {
+			res = Tensor.result(res, noBatches, dims[0], dims[1], dims[2]);
+		}
+		
+		boolean correct = true;
+		for(int i=0;i<dims.length;i++){
+			if(tDims[noBatches == 1 ? i : i+1] != dims[i])
+				correct = false;
+		}
+		
+		if(correct){
+			// input has correct size, just copy to output
+			t.copyInto(res);
+		} else {
+			// view the input as 4d without changing the input tensor itself
+			Tensor in;
+			if(tDims.length == 2){
+				in = new Tensor(t.data, t.offset, new int[]{1, 1, tDims[0], tDims[1]}, new int[]{0, 0, t.strides[0], t.strides[1]});
+			} else if(tDims.length == 3){
+				if(noBatches == 1){
+					in = new Tensor(t.data, t.offset, new int[]{1, tDims[0], tDims[1], tDims[2]}, new int[]{0, t.strides[0], t.strides[1], t.strides[2]});
+				} else {
+					in = new Tensor(t.data, t.offset, new int[]{tDims[0], 1, tDims[1], tDims[2]}, new int[]{t.strides[0], 0, t.strides[1], t.strides[2]});
+				}
+			} else {
+				in = t;
+			}
+			
+			int[] r = res.dims;
+			float sx = (float)in.dims[3]/r[3];
+			float sy = (float)in.dims[2]/r[2];
+			float s = sx < sy ? sx : sy;
+
+			// dim y
+			int size = (int)(r[2]*s);
+			int index = (in.dims[2]-size)/2;
+			Tensor narrow = in.narrow(2, index, size);
+			
+			// dim x
+			size = (int)(r[3]*s);
+			index = (in.dims[3]-size)/2;
+			narrow = narrow.narrow(3, index, size);
+			
+			for(int b=0;b<noBatches;b++){
+				scale2d(res.select(0, b), narrow.select(0, b));
+			}
+		}
+		
+		// resize to correct size
+		if(dims.length == 2){
+			if(noBatches == 1){
+				res.resize(dims[0], dims[1]);
+			} else {
+				res.resize(noBatches, dims[0], dims[1]);
+			}
+		} else if(dims.length == 3){
+			if(noBatches == 1){
+				res.resize(dims[0], dims[1], dims[2]);
+			}
+		}
+		return res;
+	}
+	
+	/**
+	 * Clamp all elements in the Tensor into the range [minvalue, maxvalue].
+	 * @param res result tensor or null to create a new tensor.
+	 * @param tensor tensor to clamp
+	 * @param minvalue the minimum value allowed in tensor
+	 * @param minvalue the maximum value allowed in tensor
+	 * @return resulting tensor
+	 */
+	public static Tensor clamp(Tensor res, final Tensor tensor, final float minvalue, final float maxvalue){
+		return unary(res, tensor, (r, ro, a, ao, from, to) -> {
+			for(int i=from;i<to;i++){
+				float v = a[ao+i];
+				r[ro+i] = v < minvalue ? minvalue : (v > maxvalue ? maxvalue : v);
+			}
+		});
+	}
+	
+	/**
+	 * Expand a tensor to a batched version containing the same value in each batch dimension
+	 */
+	public static Tensor expand(Tensor res, Tensor t, int batchSize) {
+		if(res == null) {
+			res = new Tensor(batchSize, t.dims());
+		} else {
+			res.reshape(batchSize, t.dims());
+		}
+		for(int i = 0; i < batchSize; i++)
+			t.copyInto(res.select(0, i));
+		return res;
+	}
+	
+	public static Tensor rotate(Tensor res, final Tensor t, float theta, boolean zeropad) {
+		int[] dims = t.dims();
+		int height = dims.length == 3 ? dims[1] : dims[0];
+		int width = dims.length == 3 ? dims[2] : dims[1];
+		return rotate(res, t, theta, width/2, height/2, zeropad);
+	}
+
+	public static Tensor rotate(Tensor res, final Tensor t, float theta, float center_x, float center_y, boolean zeropad){
+		float[] rotatedData = new float[t.size()];
+		
+		int[] dims = t.dims();
+		float[] data = t.get();
+		
+		int channels = dims.length == 3 ? dims[0] : 1;
+		int height = dims.length == 3 ? dims[1] : dims[0];
+		int width = dims.length == 3 ? dims[2] : dims[1];
+		
+		double sin_theta = Math.sin(theta);
+		double cos_theta = Math.cos(theta);
+		
+		for(int c = 0; c < channels ; c++){
+			for(int j=0;j<height;j++){
+				for(int i=0;i<width;i++){
+					
+					int heightIndex = (int)((i - center_x)*sin_theta + (j - center_y)*cos_theta + center_y);
+					int widthIndex = (int)((i - center_x)*cos_theta - (j - center_y)*sin_theta + center_x);
+
+					if(zeropad) {
+						if(heightIndex < 0 || widthIndex < 0
+								|| heightIndex >= height || widthIndex >= width){
+							rotatedData[c*width*height+j*width+i] = 0.0f;
+						} else {
+							rotatedData[c*width*height+j*width+i] = data[c*width*height+heightIndex*width+widthIndex]; 
+						}
+					} else {
+						// use boundary values to extend?
+						if(heightIndex < 0) {
+							heightIndex = 0;
+						} else if(heightIndex >= height) {
+							heightIndex = height -1;
+						}
+						
+						if(widthIndex < 0 ) {
+							widthIndex = 0;
+						} else if(widthIndex >= width) {
+							widthIndex = width - 1;
+						}
+
+						rotatedData[c*width*height+j*width+i] = data[c*width*height+heightIndex*width+widthIndex]; 
+					}
+				}
+			}
+		}
+		
+		if(res == null){
+			res = new Tensor(rotatedData, dims);
+		} else {
+			res.set(rotatedData);
+		}
+		return res;
+	}
+	
+	
+	// bilinear interpolation of the last two dimensions of t into the contiguous (3D) tensor r
+	private static void scale2d(Tensor r, Tensor t){
+		int[] rd = r.dims;
+		int[] td = t.dims;
+		int y_in = td[td.length-2];
+		int x_in = td[td.length-1];
+		int y_out = rd[rd.length-2];
+		int x_out = rd[rd.length-1];
+		int channels = rd.length == 3 ? rd[0] : 1;
+
+		float s_y = (y_in-1)/(float)(y_out-1);
+		float s_x = (x_in-1)/(float)(x_out-1);
+		
+		// strides depend on input dimension
+		int stride_c = td.length == 3 ? t.strides[0] : 0;
+		int stride_y = td.length == 3 ? t.strides[1] : t.strides[0];
+		int stride_x = td.length == 3 ? t.strides[2] : t.strides[1];
+
+		float[] src = t.data;
+		int so = t.offset;
+		Tensor out = r.isContiguous() ? r : new Tensor(rd);
+		float[] dst = out.data;
+		int dso = out.offset;
+		
+		for(int c=0;c<channels;c++){
+			int cc = c;
+			if(td.length == 2 || cc >= td[0]){
+				cc = 0;
+			}
+			for(int y=0;y<y_out;y++){
+				float yy = y*s_y;
+				int y1 = (int)yy;
+				int y2 = y1+1;
+				if(y2>=y_in)
+					y2 = y_in-1;
+				float dy = yy-y1;
+				for(int x=0;x<x_out;x++){
+					float xx = x*s_x;
+					int x1 = (int)xx;
+					int x2 = x1+1;
+					if(x2>=x_in)
+						x2 = x_in-1;
+					float dx = xx-x1;
+					
+					float v1 = src[so + cc*stride_c + y1*stride_y + x1*stride_x];
+					float v2 = src[so + cc*stride_c + y1*stride_y + x2*stride_x];
+					float v3 = src[so + cc*stride_c + y2*stride_y + x1*stride_x];
+					float v4 = src[so + cc*stride_c + y2*stride_y + x2*stride_x];
+					
+					dst[dso + x_out*y_out*c + x_out*y + x] = v1*(1-dy)*(1-dx)
+							 + v2 * (1-dy)*(dx)
+							 + v3 * (dy)*(1-dx)
+							 + v4 * (dx)*(dy);
+				}
+			}
+		}
+		
+		if(out != r){
+			out.copyInto(r);
+		}
+	}
+	
+	/*
+	 * Elementwise kernel helpers, the kernels get contiguous arrays with an offset
+	 * and are called for a range of elements, possibly from multiple threads.
+	 */
+	
+	interface Unary {
+		void apply(float[] r, int ro, float[] a, int ao, int from, int to);
+	}
+
+	interface Binary {
+		void apply(float[] r, int ro, float[] a, int ao, float[] b, int bo, int from, int to);
+	}
+
+	interface Ternary {
+		void apply(float[] r, int ro, float[] a, int ao, float[] b, int bo, float[] c, int co, int from, int to);
+	}
+	
+	static Tensor unary(Tensor res, final Tensor tensor, final Unary op){
+		res = Tensor.resultAs(res, tensor);
+		final Tensor a = tensor.contiguous();
+		final Tensor r = res.isContiguous() ? res : new Tensor(res.dims);
+		Parallel.range(r.size(), (from, to) -> op.apply(r.data, r.offset, a.data, a.offset, from, to));
+		if(r != res)
+			r.copyInto(res);
+		return res;
+	}
+	
+	static Tensor binary(Tensor res, final Tensor tensor1, final Tensor tensor2, final Binary op){
+		if(tensor1.size() != tensor2.size()){
+			throw new IllegalArgumentException("Inconsistent tensor size");
+		}
+		res = Tensor.resultAs(res, tensor1);
+		final Tensor a = tensor1.contiguous();
+		final Tensor b = tensor2.contiguous();
+		final Tensor r = res.isContiguous() ? res : new Tensor(res.dims);
+		Parallel.range(r.size(), (from, to) -> op.apply(r.data, r.offset, a.data, a.offset, b.data, b.offset, from, to));
+		if(r != res)
+			r.copyInto(res);
+		return res;
+	}
+	
+	static Tensor ternary(Tensor res, final Tensor tensor1, final Tensor tensor2, final Tensor tensor3, final Ternary op){
+		if(tensor1.size() != tensor2.size() || tensor1.size() != tensor3.size()){
+			throw new IllegalArgumentException("Inconsistent tensor size");
+		}
+		res = Tensor.resultAs(res, tensor1);
+		final Tensor a = tensor1.contiguous();
+		final Tensor b = tensor2.contiguous();
+		final Tensor c = tensor3.contiguous();
+		final Tensor r = res.isContiguous() ? res : new Tensor(res.dims);
+		Parallel.range(r.size(), (from, to) -> op.apply(r.data, r.offset, a.data, a.offset, b.data, b.offset, c.data, c.offset, from, to));
+		if(r != res)
+			r.copyInto(res);
+		return res;
+	}
+}
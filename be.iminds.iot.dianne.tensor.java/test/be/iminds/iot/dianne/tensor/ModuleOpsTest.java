@@ -0,0 +1,277 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.tensor;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Checks the blocked and parallel kernels of the java backend against 
+ * straightforward reference implementations.
+ */
+public class ModuleOpsTest {
+
+	private static final float EPS = 1e-3f;
+	
+	private Random random = new Random(1234);
+	
+	@BeforeClass
+	public static void load() {
+		NativeTensorLoader loader = new NativeTensorLoader();
+		loader.activate(null);
+	}
+	
+	@Test
+	public void testGemm() {
+		int[][] sizes = new int[][]{{1,1,1},{3,5,7},{65,130,257},{300,70,513}};
+		for(int[] s : sizes){
+			for(int t=0;t<4;t++){
+				boolean transA = (t & 1) == 1;
+				boolean transB = (t & 2) == 2;
+				int m = s[0], n = s[1], k = s[2];
+				
+				float[] a = random(m*k);
+				float[] b = random(k*n);
+				float[] c = random(m*n);
+				float[] expected = c.clone();
+				
+				for(int i=0;i<m;i++){
+					for(int j=0;j<n;j++){
+						float sum = 0;
+						for(int p=0;p<k;p++){
+							float av = transA ? a[p*m+i] : a[i*k+p];
+							float bv = transB ? b[j*k+p] : b[p*n+j];
+							sum += av*bv;
+						}
+						expected[i*n+j] = 0.5f*expected[i*n+j] + 2.0f*sum;
+					}
+				}
+				
+				Gemm.sgemm(transA, transB, m, n, k, 2.0f, a, 0, transA ? m : k, b, 0, transB ? k : n, 0.5f, c, 0, n);
+				assertEquals(expected, c, EPS*k);
+			}
+		}
+	}
+	
+	@Test
+	public void testMmNonContiguous() {
+		Tensor m1 = new Tensor(6, 8);
+		m1.randn();
+		Tensor m2 = new Tensor(10, 5);
+		m2.randn();
+		
+		Tensor a = m1.narrow(1, 1, 5);
+		Tensor b = m2.transpose(null, 0, 1);
+		
+		Tensor r = TensorOps.mm(null, a, b);
+		Tensor exp = TensorOps.mm(null, a.clone(), b.clone());
+		Assert.assertTrue(exp.equals(r, EPS));
+		
+		// write into a narrowed result
+		Tensor big = new Tensor(6, 20);
+		big.fill(1.0f);
+		Tensor narrowed = big.narrow(1, 5, 10);
+		TensorOps.mm(narrowed, a, b);
+		Assert.assertTrue(exp.equals(narrowed, EPS));
+		Assert.assertEquals(1.0f, big.get(0, 0), 0.0f);
+		Assert.assertEquals(1.0f, big.get(5, 19), 0.0f);
+	}
+	
+	@Test
+	public void testSpatialConvolution() {
+		int n = 2, nIn = 3, nOut = 4, iH = 9, iW = 11, k = 3, d = 2, p = 1;
+		Tensor input = new Tensor(n, nIn, iH, iW);
+		input.randn();
+		Tensor weight = new Tensor(nOut, nIn, k, k);
+		weight.randn();
+		Tensor bias = new Tensor(nOut);
+		bias.randn();
+		
+		Tensor output = ModuleOps.spatialconvolve(null, input, weight, bias, new Tensor(), new Tensor(), k, k, d, d, p, p);
+		Tensor expected = convolve(input, weight, bias, d, p);
+		Assert.assertArrayEquals(expected.dims(), output.dims());
+		Assert.assertTrue(expected.equals(output, EPS));
+	}
+	
+	@Test
+	public void testSpatialConvolutionGradients() {
+		int n = 2, nIn = 2, nOut = 3, iH = 7, iW = 6, k = 3, d = 1, p = 1;
+		Tensor input = new Tensor(n, nIn, iH, iW);
+		input.randn();
+		Tensor weight = new Tensor(nOut, nIn, k, k);
+		weight.randn();
+		Tensor bias = new Tensor(nOut);
+		bias.fill(0.0f);
+		Tensor temp1 = new Tensor();
+		Tensor temp2 = new Tensor();
+		
+		Tensor output = ModuleOps.spatialconvolve(null, input, weight, bias, temp1, temp2, k, k, d, d, p, p);
+		Tensor gradOutput = new Tensor(output.dims());
+		gradOutput.randn();
+		
+		// the convolution is linear in its input and weights, so <gradOutput, conv(x)> = <gradIn, x>
+		Tensor gradInput = ModuleOps.spatialconvolveGradIn(null, gradOutput, weight, input, temp1, temp2, k, k, d, d, p, p);
+		Assert.assertEquals(TensorOps.dot(gradOutput, output), TensorOps.dot(gradInput, input), 1e-2f);
+		
+		Tensor gradWeight = new Tensor(weight.dims());
+		gradWeight.fill(0.0f);
+		Tensor gradBias = new Tensor(nOut);
+		gradBias.fill(0.0f);
+		ModuleOps.spatialconvolveAccGrad(gradWeight, gradBias, gradOutput, input, temp1, temp2, k, k, d, d, p, p);
+		Assert.assertEquals(TensorOps.dot(gradOutput, output), TensorOps.dot(gradWeight, weight), 1e-2f);
+		
+		float[] gb = gradBias.get();
+		for(int o=0;o<nOut;o++){
+			float sum = 0;
+			for(int b=0;b<n;b++){
+				sum += TensorOps.sum(gradOutput.select(0, b).select(0, o));
+			}
+			Assert.assertEquals(sum, gb[o], EPS);
+		}
+	}
+	
+	@Test
+	public void testSpatialFullConvolution() {
+		// full convolution forward equals the input gradient of the matching convolution
+		int nIn = 3, nOut = 2, iH = 5, iW = 4, k = 4, d = 2, p = 1;
+		Tensor input = new Tensor(nIn, iH, iW);
+		input.randn();
+		Tensor weight = new Tensor(nIn, nOut, k, k);
+		weight.randn();
+		Tensor bias = new Tensor(nOut);
+		bias.fill(0.0f);
+		
+		Tensor output = ModuleOps.spatialfullconvolve(null, input, weight, bias, new Tensor(), new Tensor(), k, k, d, d, p, p);
+		Assert.assertArrayEquals(new int[]{nOut, (iH-1)*d-2*p+k, (iW-1)*d-2*p+k}, output.dims());
+		
+		Tensor gradInput = ModuleOps.spatialconvolveGradIn(null, input, weight, output, new Tensor(), new Tensor(), k, k, d, d, p, p);
+		Assert.assertTrue(gradInput.equals(output, EPS));
+	}
+	
+	@Test
+	public void testMaxPoolUnpool() {
+		Tensor input = new Tensor(2, 3, 8, 8);
+		input.randn();
+		Tensor indices = new Tensor();
+		
+		Tensor output = ModuleOps.spatialmaxpool(null, input, indices, 2, 2, 2, 2, 0, 0);
+		Assert.assertArrayEquals(new int[]{2, 3, 4, 4}, output.dims());
+		for(int c=0;c<3;c++){
+			Tensor window = input.select(0, 1).select(0, c).narrow(0, 2, 2).narrow(1, 4, 2);
+			Assert.assertEquals(TensorOps.max(window), output.get(1, c, 1, 2), 0.0f);
+		}
+		
+		Tensor unpooled = ModuleOps.spatialmaxunpool(null, output, indices, 2, 2, 2, 2, 0, 0);
+		Assert.assertArrayEquals(input.dims(), unpooled.dims());
+		Assert.assertEquals(TensorOps.sum(output), TensorOps.sum(unpooled), EPS);
+		
+		Tensor gradInput = ModuleOps.spatialmaxpoolGradIn(null, output, input, output, indices, 2, 2, 2, 2, 0, 0);
+		Assert.assertTrue(unpooled.equals(gradInput, 0.0f));
+	}
+	
+	@Test
+	public void testBatchNormEvaluate() {
+		int n = 4, c = 3;
+		Tensor input = new Tensor(n, c);
+		input.randn();
+		Tensor weight = new Tensor(c);
+		weight.fill(2.0f);
+		Tensor bias = new Tensor(c);
+		bias.fill(1.0f);
+		Tensor rMean = new Tensor(c);
+		rMean.fill(0.5f);
+		Tensor rVar = new Tensor(c);
+		rVar.fill(4.0f);
+		
+		Tensor output = ModuleOps.batchnorm(null, input, weight, bias, rMean, rVar, new Tensor(c), new Tensor(c), false);
+		for(int i=0;i<n;i++){
+			for(int j=0;j<c;j++){
+				float exp = (input.get(i, j) - 0.5f)/(float)Math.sqrt(4.0f + 1e-5f)*2.0f + 1.0f;
+				Assert.assertEquals(exp, output.get(i, j), EPS);
+			}
+		}
+	}
+	
+	@Test
+	public void testSoftmax() {
+		Tensor input = new Tensor(5, 10);
+		input.randn();
+		
+		Tensor output = ModuleOps.softmax(null, input);
+		for(int i=0;i<5;i++){
+			Assert.assertEquals(1.0f, TensorOps.sum(output.select(0, i)), EPS);
+		}
+		
+		Tensor log = ModuleOps.logsoftmax(null, input);
+		Assert.assertTrue(TensorOps.log(null, output).equals(log, EPS));
+	}
+	
+	private float[] random(int size){
+		float[] data = new float[size];
+		for(int i=0;i<size;i++){
+			data[i] = (float)random.nextGaussian();
+		}
+		return data;
+	}
+	
+	private void assertEquals(float[] expected, float[] actual, float eps){
+		Assert.assertEquals(expected.length, actual.length);
+		for(int i=0;i<expected.length;i++){
+			Assert.assertEquals(expected[i], actual[i], eps);
+		}
+	}
+	
+	// direct convolution as reference
+	private Tensor convolve(Tensor input, Tensor weight, Tensor bias, int d, int p){
+		int n = input.size(0), nIn = input.size(1), iH = input.size(2), iW = input.size(3);
+		int nOut = weight.size(0), k = weight.size(2);
+		int oH = (iH + 2*p - k)/d + 1;
+		int oW = (iW + 2*p - k)/d + 1;
+		Tensor output = new Tensor(n, nOut, oH, oW);
+		for(int b=0;b<n;b++){
+			for(int o=0;o<nOut;o++){
+				for(int y=0;y<oH;y++){
+					for(int x=0;x<oW;x++){
+						float sum = bias.get(o);
+						for(int i=0;i<nIn;i++){
+							for(int ky=0;ky<k;ky++){
+								for(int kx=0;kx<k;kx++){
+									int iy = y*d - p + ky;
+									int ix = x*d - p + kx;
+									if(iy >= 0 && iy < iH && ix >= 0 && ix < iW){
+										sum += input.get(b, i, iy, ix)*weight.get(o, i, ky, kx);
+									}
+								}
+							}
+						}
+						output.set(sum, b, o, y, x);
+					}
+				}
+			}
+		}
+		return output;
+	}
+}
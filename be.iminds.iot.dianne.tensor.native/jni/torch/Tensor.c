@@ -23,6 +23,8 @@
 #include "be_iminds_iot_dianne_tensor_Tensor.h"
 #include "TensorLoader.h"
 
+#include <string.h>
+
 THGenerator* generator = 0;
 
 
@@ -35,12 +37,8 @@ JNIEXPORT jlong JNICALL Java_be_iminds_iot_dianne_tensor_Tensor_init
 #endif
 
 
+	tensor = newPooledTensor();
 	if(dims == NULL){
-		tensor = THTensor_(new)(
-#ifdef CUDA
-				state
-#endif
-		);
 		return (long) tensor;
 	}
 
@@ -48,29 +46,29 @@ JNIEXPORT jlong JNICALL Java_be_iminds_iot_dianne_tensor_Tensor_init
 
 	jint *d = env->GetIntArrayElements(dims, 0);
 	if(noDims==1){
-		tensor = THTensor_(newWithSize1d)(
+		THTensor_(resize1d)(
 #ifdef CUDA
 				state,
 #endif
-				d[0]);
+				tensor, d[0]);
 	} else if(noDims==2){
-		tensor = THTensor_(newWithSize2d)(
+		THTensor_(resize2d)(
 #ifdef CUDA
 				state,
 #endif
-				d[0], d[1]);
+				tensor, d[0], d[1]);
 	} else if(noDims==3){
-		tensor = THTensor_(newWithSize3d)(
+		THTensor_(resize3d)(
 #ifdef CUDA
 				state,
 #endif
-				d[0], d[1], d[2]);
+				tensor, d[0], d[1], d[2]);
 	} else if(noDims==4){
-		tensor = THTensor_(newWithSize4d)(
+		THTensor_(resize4d)(
 #ifdef CUDA
 				state,
 #endif
-				d[0], d[1], d[2], d[3]);
+				tensor, d[0], d[1], d[2], d[3]);
 	} // for now only support up to 4D tensors...
 	env->ReleaseIntArrayElements(dims, d, 0);
 
@@ -197,11 +195,7 @@ JNIEXPORT jboolean JNICALL Java_be_iminds_iot_dianne_tensor_Tensor_equalsData
 	THTensor* tensor = getTensor(env, t);
 	THTensor* tensor2 = getTensor(env, o);
 
-	THTensor* diff = THTensor_(new)(
-#ifdef CUDA
-			state
-#endif
-	);
+	THTensor* diff = newPooledTensor();
 	THTensor_(resizeAs)(
 #ifdef CUDA
 			state,
@@ -479,6 +473,142 @@ JNIEXPORT void JNICALL Java_be_iminds_iot_dianne_tensor_Tensor_set___3F
 
 
 
+// copy n elements between a buffer and the tensor data with the given stride
+static void copyRun(real* data, long stride, jfloat* buffer, long n, int toTensor){
+#ifdef CUDA
+	if(stride == 1){
+		if(toTensor){
+			cudaMemcpy(data, buffer, n*sizeof(real), cudaMemcpyHostToDevice);
+		} else {
+			cudaMemcpy(buffer, data, n*sizeof(real), cudaMemcpyDeviceToHost);
+		}
+	} else {
+		if(toTensor){
+			cudaMemcpy2D(data, stride*sizeof(real), buffer, sizeof(real), sizeof(real), n, cudaMemcpyHostToDevice);
+		} else {
+			cudaMemcpy2D(buffer, sizeof(real), data, stride*sizeof(real), sizeof(real), n, cudaMemcpyDeviceToHost);
+		}
+	}
+    THCudaCheck(cudaGetLastError());
+#else
+	if(stride == 1){
+		if(toTensor){
+			memcpy(data, buffer, n*sizeof(real));
+		} else {
+			memcpy(buffer, data, n*sizeof(real));
+		}
+	} else {
+		long k;
+		for(k=0;k<n;k++){
+			if(toTensor){
+				data[k*stride] = buffer[k];
+			} else {
+				buffer[k] = data[k*stride];
+			}
+		}
+	}
+#endif
+}
+
+// copy len elements starting at element from (in row-major order) between a buffer and
+// a tensor, in case of a non-contiguous tensor (i.e. narrowed) this is done in runs along 
+// the last dimension, without making the complete tensor contiguous
+static void copyRange(THTensor* tensor, jfloat* buffer, long from, long len, int toTensor){
+	if(len <= 0){
+		return;
+	}
+
+	real* data = THTensor_(data)(
+#ifdef CUDA
+			state,
+#endif
+			tensor);
+
+	if(THTensor_(isContiguous)(
+#ifdef CUDA
+			state,
+#endif
+			tensor)){
+		copyRun(data + from, 1, buffer, len, toTensor);
+		return;
+	}
+
+	int last = tensor->nDimension-1;
+	long rowSize = tensor->size[last];
+	long i = from;
+	long end = from + len;
+	while(i < end){
+		long n = rowSize - i % rowSize;
+		if(n > end - i){
+			n = end - i;
+		}
+
+		// offset of element i in the tensor data
+		long offset = 0;
+		long r = i;
+		int d;
+		for(d=last;d>=0;d--){
+			offset += (r % tensor->size[d]) * tensor->stride[d];
+			r /= tensor->size[d];
+		}
+
+		copyRun(data + offset, tensor->stride[last], buffer + (i - from), n, toTensor);
+		i += n;
+	}
+}
+
+
+
+JNIEXPORT void JNICALL Java_be_iminds_iot_dianne_tensor_Tensor_setBuffer
+  (JNIEnv * env, jobject t, jobject buffer, jint offset, jint len){
+	THTensor* tensor = getTensor(env, t);
+
+	jfloat* src_ptr = ((jfloat*) env->GetDirectBufferAddress(buffer)) + offset;
+
+	copyRange(tensor, src_ptr, 0, len, 1);
+}
+
+
+
+JNIEXPORT void JNICALL Java_be_iminds_iot_dianne_tensor_Tensor_getBuffer
+  (JNIEnv * env, jobject t, jobject buffer, jint offset){
+	THTensor* tensor = getTensor(env, t);
+
+	jfloat* dst_ptr = ((jfloat*) env->GetDirectBufferAddress(buffer)) + offset;
+
+	long size = THTensor_(nElement)(
+#ifdef CUDA
+			state,
+#endif
+			tensor);
+
+	copyRange(tensor, dst_ptr, 0, size, 0);
+}
+
+
+
+JNIEXPORT void JNICALL Java_be_iminds_iot_dianne_tensor_Tensor_setBufferRange
+  (JNIEnv * env, jobject t, jobject buffer, jint offset, jint from, jint len){
+	THTensor* tensor = getTensor(env, t);
+
+	jfloat* src_ptr = ((jfloat*) env->GetDirectBufferAddress(buffer)) + offset;
+
+	copyRange(tensor, src_ptr, from, len, 1);
+}
+
+
+
+JNIEXPORT void JNICALL Java_be_iminds_iot_dianne_tensor_Tensor_getBufferRange
+  (JNIEnv * env, jobject t, jobject buffer, jint offset, jint from, jint len){
+	THTensor* tensor = getTensor(env, t);
+
+	jfloat* dst_ptr = ((jfloat*) env->GetDirectBufferAddress(buffer)) + offset;
+
+	copyRange(tensor, dst_ptr, from, len, 0);
+}
+
+
+
 JNIEXPORT void JNICALL Java_be_iminds_iot_dianne_tensor_Tensor_fill
   (JNIEnv * env, jobject t, jfloat val){
 	THTensor* tensor = getTensor(env, t);
@@ -629,11 +759,7 @@ JNIEXPORT jobject JNICALL Java_be_iminds_iot_dianne_tensor_Tensor_diag
 
 	THTensor* tensor2;
 	if(target==NULL){
-		tensor2 = THTensor_(new)(
-#ifdef CUDA
-			state
-#endif
-		);
+		tensor2 = newPooledTensor();
 	} else {
 		tensor2 = getTensor(env, target);
 	}
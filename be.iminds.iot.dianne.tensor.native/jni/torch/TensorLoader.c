@@ -23,6 +23,9 @@
 #include "be_iminds_iot_dianne_tensor_NativeTensorLoader.h"
 #include "TensorLoader.h"
 
+#include <string.h>
+#include <stdlib.h>
+
 /** Exception handling from torch **/
 
 JavaVM* jvm;
@@ -33,6 +36,11 @@ static jclass TENSOR_CLASS;
 static jmethodID TENSORLOADER_GC;
 static jclass TENSORLOADER_CLASS;
 static jclass EXCEPTION_CLASS;
+static jclass ILLEGALSTATE_CLASS;
+
+// placeholder handed to the native code when a released tensor is used, so that the
+// operation can finish harmlessly before the IllegalStateException is thrown in Java
+static __thread THTensor* RELEASED = NULL;
 
 void throwException(const char * msg){
 	JNIEnv* env;
@@ -80,13 +88,23 @@ void initTH(JNIEnv* env, int device){
 	exceptionClass = env->FindClass(exClassName);
     EXCEPTION_CLASS = (jclass) env->NewGlobalRef(exceptionClass);
 
+	jclass illegalStateClass;
+	char *isClassName = (char*)"java/lang/IllegalStateException";
+	illegalStateClass = env->FindClass(isClassName);
+    ILLEGALSTATE_CLASS = (jclass) env->NewGlobalRef(illegalStateClass);
+
 	// Set Torch error handler functions to throw Exceptions in Java
 	env->GetJavaVM(&jvm);
 	THSetDefaultErrorHandler(torchErrorHandlerFunction, NULL);
 	THSetDefaultArgErrorHandler(torchArgErrorHandlerFunction, NULL);
 
-	// Set Torch GC handler
+	// CPU tensor buffers are pooled and released explicitly, the pool only falls back 
+	// to the Java GC when an allocation fails (or when the gcThreshold option is set) 
+	// and the Torch GC handler is opt-in with the gc option
+	setPoolGCHandler(gcFunction, NULL);
+#ifdef CUDA
 	THSetDefaultGCHandler(gcFunction, NULL);
+#endif
 
 	// initialize CUDA
 #ifdef CUDA
@@ -112,6 +130,7 @@ void cleanupTH(JNIEnv* env){
 	env->DeleteGlobalRef(TENSOR_CLASS);
 	env->DeleteGlobalRef(TENSORLOADER_CLASS);
 	env->DeleteGlobalRef(EXCEPTION_CLASS);
+	env->DeleteGlobalRef(ILLEGALSTATE_CLASS);
 
 
 	// cleanup CUDA
@@ -138,7 +157,27 @@ JNIEXPORT void JNICALL Java_be_iminds_iot_dianne_tensor_NativeTensorLoader_clean
 
 JNIEXPORT void JNICALL Java_be_iminds_iot_dianne_tensor_NativeTensorLoader_option
   (JNIEnv * env, jobject loader, jstring key, jstring value){
-	// no options here
+	const char* k = env->GetStringUTFChars(key, 0);
+	const char* v = env->GetStringUTFChars(value, 0);
+
+	if(strcmp(k, "pool") == 0){
+		setPoolEnabled(strcmp(v, "false") != 0);
+	} else if(strcmp(k, "poolLimit") == 0){
+		setPoolLimit(atol(v));
+	} else if(strcmp(k, "gc") == 0){
+		if(strcmp(v, "true") == 0){
+			THSetDefaultGCHandler(gcFunction, NULL);
+			setPoolGCHandler(gcFunction, NULL);
+		} else {
+			THSetDefaultGCHandler(NULL, NULL);
+			setPoolGCHandler(NULL, NULL);
+		}
+	} else if(strcmp(k, "gcThreshold") == 0){
+		setPoolGCThreshold(atol(v));
+	}
+
+	env->ReleaseStringUTFChars(key, k);
+	env->ReleaseStringUTFChars(value, v);
 }
 
 /** Tensor creation **/
@@ -151,14 +190,24 @@ THTensor* getTensor(JNIEnv* env, jobject o){
 	if(o == NULL){
 
 		// return new empty THTensor if jobject is null
-		THTensor* t = THTensor_(new)(
-#ifdef CUDA
-				state
-#endif
-				);
+		THTensor* t = newPooledTensor();
 		return t;
 	}
 	jlong address = env->GetLongField(o, TENSOR_ADDRESS_FIELD);
+	if(address == 0){
+		// tensor is already released
+		if(!env->ExceptionCheck()){
+			env->ThrowNew(ILLEGALSTATE_CLASS, "Tensor is already released");
+		}
+		if(RELEASED == NULL){
+			RELEASED = THTensor_(newWithSize4d)(
+#ifdef CUDA
+				state,
+#endif
+				1, 1, 1, 1);
+		}
+		return RELEASED;
+	}
 	return (THTensor*) address;
 }
 
@@ -223,6 +272,17 @@ THTensor* getTensor5d(JNIEnv* env, jobject o, int d0, int d1, int d2, int d3, in
 }
 
 jobject createTensorObject(JNIEnv* env, THTensor* t){
+	if(env->ExceptionCheck()){
+		// the operation failed, the result is not handed over to Java
+		if(t != RELEASED){
+			THTensor_(free)(
+#ifdef CUDA
+				state,
+#endif
+				t);
+		}
+		return NULL;
+	}
 	return env->NewObject(TENSOR_CLASS, TENSOR_INIT, (jlong)t);
 }
 
@@ -31,6 +31,8 @@
 #include "Tensor.h"
 #endif
 
+#include "TensorPool.h"
+
 // convert object to a Tensor - create new one if NULL
 THTensor* getTensor(JNIEnv* env, jobject o);
 // convert object to a Tensor - resize to given dims
@@ -0,0 +1,318 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+#include "be_iminds_iot_dianne_tensor_NativeTensorLoader.h"
+#include "TensorPool.h"
+
+#include <stdlib.h>
+#include <stddef.h>
+#include <string.h>
+#include <pthread.h>
+
+#ifdef CUDA
+
+THTensor* newPooledTensor(){
+	return THTensor_(new)(state);
+}
+
+void setPoolLimit(long bytes){}
+
+void setPoolEnabled(int enabled){}
+
+void trimPool(){}
+
+void setPoolGCHandler(void (*handler)(void*), void* data){}
+
+void setPoolGCThreshold(long bytes){}
+
+JNIEXPORT jlongArray JNICALL Java_be_iminds_iot_dianne_tensor_NativeTensorLoader_poolStats
+  (JNIEnv * env, jclass c){
+	jlongArray result = env->NewLongArray(4);
+	return result;
+}
+
+JNIEXPORT void JNICALL Java_be_iminds_iot_dianne_tensor_NativeTensorLoader_poolTrim
+  (JNIEnv * env, jclass c){
+}
+
+#else
+
+// sizes are rounded up to the nearest quarter of a power of two (max 25% overhead)
+#define MIN_EXP 6
+#define MIN_SIZE (1L << MIN_EXP)
+#define BUCKETS (4*(64-MIN_EXP)+1)
+// header in front of each buffer, keeps the data 64 byte aligned
+#define HEADER 64
+
+typedef struct ThreadPool ThreadPool;
+
+// when enabled with a gc threshold, a GC is requested once the live bytes exceed the soft 
+// limit, in case the GC does not free enough the soft limit is grown (similar to the TH 
+// heap tracking)
+#define GC_GROWTH_THRESHOLD 0.8
+#define GC_GROWTH_FACTOR 1.4
+
+typedef struct Buffer {
+	int bucket;
+	size_t size;
+	// id of the thread pool that allocated the buffer, ids are never reused so 
+	// buffers outliving their thread are never mistaken for another thread's buffers
+	long owner;
+	struct Buffer* next;
+} Buffer;
+
+struct ThreadPool {
+	Buffer* free[BUCKETS];
+	size_t pooled;
+	long generation;
+	long id;
+};
+
+static pthread_key_t poolKey;
+static pthread_once_t poolKeyOnce = PTHREAD_ONCE_INIT;
+
+static volatile long poolLimit = 1L << 30;
+static volatile int poolEnabled = 1;
+static volatile long poolGeneration = 0;
+static volatile long poolIds = 0;
+
+static void (*gcHandler)(void*) = NULL;
+static void* gcData = NULL;
+static volatile long gcSoftLimit = 0;
+static volatile int gcRunning = 0;
+
+// statistics
+static volatile long hits = 0;
+static volatile long misses = 0;
+static volatile long liveBytes = 0;
+static volatile long pooledBytes = 0;
+
+
+static int bucketOf(size_t bytes, size_t* rounded){
+	if(bytes <= MIN_SIZE){
+		*rounded = MIN_SIZE;
+		return 0;
+	}
+	int e = 63 - __builtin_clzl(bytes - 1);
+	size_t base = 1L << e;
+	size_t step = base >> 2;
+	size_t q = (bytes - base + step - 1) / step;
+	*rounded = base + q*step;
+	return (e - MIN_EXP)*4 + q;
+}
+
+static void drain(ThreadPool* pool){
+	int i;
+	for(i=0;i<BUCKETS;i++){
+		Buffer* b = pool->free[i];
+		while(b != NULL){
+			Buffer* next = b->next;
+			__sync_fetch_and_sub(&pooledBytes, b->size);
+			free(b);
+			b = next;
+		}
+		pool->free[i] = NULL;
+	}
+	pool->pooled = 0;
+}
+
+static void destroyPool(void* p){
+	ThreadPool* pool = (ThreadPool*)p;
+	drain(pool);
+	free(pool);
+}
+
+static void createPoolKey(){
+	pthread_key_create(&poolKey, destroyPool);
+}
+
+static ThreadPool* getPool(){
+	pthread_once(&poolKeyOnce, createPoolKey);
+	ThreadPool* pool = (ThreadPool*)pthread_getspecific(poolKey);
+	if(pool == NULL){
+		pool = (ThreadPool*)calloc(1, sizeof(ThreadPool));
+		pool->generation = poolGeneration;
+		pool->id = __sync_add_and_fetch(&poolIds, 1);
+		pthread_setspecific(poolKey, pool);
+	} else if(pool->generation != poolGeneration){
+		// a trim was requested
+		drain(pool);
+		pool->generation = poolGeneration;
+	}
+	return pool;
+}
+
+// ask the JVM to collect unreleased tensors in case too much memory is live
+static void maybeTriggerGC(size_t size){
+	if(gcHandler == NULL || gcSoftLimit <= 0 || liveBytes + (long)size <= gcSoftLimit)
+		return;
+
+	// only one thread triggers a GC, the others just continue
+	if(!__sync_bool_compare_and_swap(&gcRunning, 0, 1))
+		return;
+
+	gcHandler(gcData);
+	if(liveBytes + (long)size > gcSoftLimit*GC_GROWTH_THRESHOLD){
+		gcSoftLimit = (long)(gcSoftLimit*GC_GROWTH_FACTOR);
+	}
+	gcRunning = 0;
+}
+
+static void* poolMalloc(void* ctx, ptrdiff_t size){
+	if(size <= 0)
+		return NULL;
+
+	size_t rounded;
+	int bucket = bucketOf(size, &rounded);
+
+	ThreadPool* pool = getPool();
+	Buffer* b = pool->free[bucket];
+	if(b != NULL){
+		pool->free[bucket] = b->next;
+		pool->pooled -= b->size;
+		__sync_fetch_and_sub(&pooledBytes, b->size);
+		__sync_fetch_and_add(&hits, 1);
+	} else {
+		maybeTriggerGC(rounded);
+
+		void* mem = NULL;
+		if(posix_memalign(&mem, HEADER, HEADER + rounded) != 0){
+			// collect and retry once
+			if(gcHandler != NULL){
+				gcHandler(gcData);
+			}
+			if(posix_memalign(&mem, HEADER, HEADER + rounded) != 0){
+				THError("Failed to allocate %ld bytes for tensor", (long) size);
+			}
+		}
+		b = (Buffer*)mem;
+		b->bucket = bucket;
+		b->size = rounded;
+		b->owner = pool->id;
+		__sync_fetch_and_add(&misses, 1);
+	}
+	b->next = NULL;
+	__sync_fetch_and_add(&liveBytes, b->size);
+	return ((char*)b) + HEADER;
+}
+
+static void poolFree(void* ctx, void* data){
+	if(data == NULL)
+		return;
+
+	Buffer* b = (Buffer*)(((char*)data) - HEADER);
+	__sync_fetch_and_sub(&liveBytes, b->size);
+
+	ThreadPool* pool = getPool();
+	// only keep buffers on the thread that allocated them, buffers freed elsewhere 
+	// (i.e. the finalizer thread) would never be reused
+	if(!poolEnabled || b->owner != pool->id || pool->pooled + b->size > (size_t)poolLimit){
+		free(b);
+		return;
+	}
+
+	b->next = pool->free[b->bucket];
+	pool->free[b->bucket] = b;
+	pool->pooled += b->size;
+	__sync_fetch_and_add(&pooledBytes, b->size);
+}
+
+static void* poolRealloc(void* ctx, void* data, ptrdiff_t size){
+	if(data == NULL)
+		return poolMalloc(ctx, size);
+
+	if(size <= 0){
+		poolFree(ctx, data);
+		return NULL;
+	}
+
+	Buffer* b = (Buffer*)(((char*)data) - HEADER);
+	if((size_t)size <= b->size){
+		// still fits
+		return data;
+	}
+
+	void* copy = poolMalloc(ctx, size);
+	memcpy(copy, data, b->size);
+	poolFree(ctx, data);
+	return copy;
+}
+
+static THAllocator pooledAllocator = {
+	poolMalloc,
+	poolRealloc,
+	poolFree
+};
+
+
+THTensor* newPooledTensor(){
+	THTensor* tensor = THTensor_(new)();
+	tensor->storage = THStorage_(newWithAllocator)(0, &pooledAllocator, NULL);
+	return tensor;
+}
+
+void setPoolLimit(long bytes){
+	poolLimit = bytes;
+}
+
+void setPoolEnabled(int enabled){
+	poolEnabled = enabled;
+	if(!enabled){
+		trimPool();
+	}
+}
+
+void trimPool(){
+	__sync_fetch_and_add(&poolGeneration, 1);
+	// drain the calling thread immediately
+	getPool();
+}
+
+void setPoolGCHandler(void (*handler)(void*), void* data){
+	gcData = data;
+	gcHandler = handler;
+}
+
+void setPoolGCThreshold(long bytes){
+	gcSoftLimit = bytes;
+}
+
+
+JNIEXPORT jlongArray JNICALL Java_be_iminds_iot_dianne_tensor_NativeTensorLoader_poolStats
+  (JNIEnv * env, jclass c){
+	jlong stats[4];
+	stats[0] = hits;
+	stats[1] = misses;
+	stats[2] = liveBytes;
+	stats[3] = pooledBytes;
+
+	jlongArray result = env->NewLongArray(4);
+	env->SetLongArrayRegion(result, 0, 4, stats);
+	return result;
+}
+
+JNIEXPORT void JNICALL Java_be_iminds_iot_dianne_tensor_NativeTensorLoader_poolTrim
+  (JNIEnv * env, jclass c){
+	trimPool();
+}
+
+#endif
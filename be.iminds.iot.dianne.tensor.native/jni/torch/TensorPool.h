@@ -0,0 +1,65 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+#ifndef TENSOR_POOL_H
+#define TENSOR_POOL_H
+
+#ifdef CUDA
+#include "CudaTensor.h"
+#else
+#include "Tensor.h"
+#endif
+
+/**
+ * Pool of native tensor buffers.
+ *
+ * Buffers released by a tensor are kept in a free list of the thread that allocated
+ * them, bucketed by size, and are handed out again to new tensors of a similar size
+ * on that thread. This avoids malloc/free (and page faults) in hot loops.
+ *
+ * Tensors should be released explicitly, the ones that are not are only freed by their 
+ * finalizer. As a fallback a GC is requested when an allocation fails, or, when a gc
+ * threshold is configured, when the live bytes exceed this threshold.
+ *
+ * The pool only applies to CPU tensors, CUDA tensors use the THC allocator.
+ */
+
+// create a new empty tensor of which the storage is allocated from the pool
+THTensor* newPooledTensor();
+
+// configure the maximum number of bytes kept in the pool of each thread
+void setPoolLimit(long bytes);
+
+// enable or disable pooling, when disabled released buffers are freed immediately
+void setPoolEnabled(int enabled);
+
+// free all pooled buffers (each thread frees its buffers on its next pool operation)
+void trimPool();
+
+// set the function to call when an allocation fails or the live bytes exceed the gc threshold,
+// i.e. to have the JVM finalize tensors that are not released explicitly (NULL to disable)
+void setPoolGCHandler(void (*handler)(void*), void* data);
+
+// configure the initial number of live bytes after which the gc handler is called (0 to disable)
+void setPoolGCThreshold(long bytes);
+
+#endif
@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.tensor;
+
+/**
+ * Conversions between floats and 16 bit (IEEE 754 half precision and bfloat16) 
+ * floating point values, i.e. to reduce the size of tensor data on the wire
+ * 
+ * @author tverbele
+ *
+ */
+public class Half {
+
+	// all half precision values as float
+	private static final float[] HALF = new float[65536];
+	static {
+		for(int i=0;i<HALF.length;i++){
+			HALF[i] = toFloat((short)i);
+		}
+	}
+	
+	/**
+	 * Convert to IEEE 754 half precision, rounding to nearest even
+	 */
+	public static short toHalf(float f){
+		int bits = Float.floatToRawIntBits(f);
+		int sign = (bits >>> 16) & 0x8000;
+		int exp = (bits >>> 23) & 0xff;
+		int mantissa = bits & 0x7fffff;
+		int e = exp - 127 + 15;
+		
+		if(e > 0 && e < 0x1f){
+			// normal value, rebase exponent and round, a carry into the exponent is correct
+			int v = (e << 23) | mantissa;
+			v = v + 0x0fff + ((v >>> 13) & 1);
+			return (short)(sign | (v >>> 13));
+		}
+		
+		if(exp == 0xff){
+			// infinity or NaN
+			return (short)(sign | 0x7c00 | (mantissa != 0 ? 0x200 : 0));
+		}
+		
+		if(e >= 0x1f){
+			// overflow to infinity
+			return (short)(sign | 0x7c00);
+		}
+		
+		// subnormal or zero
+		if(e < -10){
+			return (short)sign;
+		}
+		mantissa |= 0x800000;
+		int shift = 14 - e;
+		int half = mantissa >> shift;
+		int rest = mantissa & ((1 << shift) - 1);
+		int round = 1 << (shift - 1);
+		if(rest > round || (rest == round && (half & 1) != 0)){
+			half++;
+		}
+		return (short)(sign | half);
+	}
+	
+	public static float fromHalf(short h){
+		return HALF[h & 0xffff];
+	}
+	
+	private static float toFloat(short h){
+		int sign = (h & 0x8000) << 16;
+		int exp = (h >>> 10) & 0x1f;
+		int mantissa = h & 0x3ff;
+		
+		if(exp == 0){
+			// subnormal or zero
+			float f = mantissa * 5.9604645E-8f;
+			return sign == 0 ? f : -f;
+		}
+		if(exp == 0x1f){
+			// infinity or NaN
+			return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+		}
+		return Float.intBitsToFloat(sign | ((exp + 112) << 23) | (mantissa << 13));
+	}
+	
+	/**
+	 * Convert to bfloat16 (upper 16 bits of a float), rounding to nearest even
+	 */
+	public static short toBFloat(float f){
+		int bits = Float.floatToRawIntBits(f);
+		if(Float.isNaN(f)){
+			return (short)((bits >>> 16) | 0x40);
+		}
+		return (short)((bits + 0x7fff + ((bits >>> 16) & 1)) >>> 16);
+	}
+	
+	public static float fromBFloat(short b){
+		return Float.intBitsToFloat((b & 0xffff) << 16);
+	}
+}
@@ -37,7 +37,8 @@ import org.osgi.service.component.annotations.Deactivate;
 @Component(
 		service=Object.class,
 		property={"osgi.command.scope=tensor",
-				  "osgi.command.function=option"},
+				  "osgi.command.function=option",
+				  "osgi.command.function=memory"},
 		immediate=true)
 public class NativeTensorLoader {
 
@@ -94,6 +95,22 @@ public class NativeTensorLoader {
 		}
 	}
 	
+	public void memory(){
+		System.out.println(TensorMemory.stats());
+	}
+	
+	public void memory(String action){
+		if(action.equals("trim")){
+			TensorMemory.trim();
+		}
+		memory();
+	}
+	
+	// hits, misses, live bytes and pooled bytes of the tensor buffer pool
+	static native long[] poolStats();
+	
+	static native void poolTrim();
+	
 	// set GPU device id in case of multiple GPUs on machine!
 	private native void init(int device);
 	
@@ -103,6 +120,8 @@ public class NativeTensorLoader {
 	private static Object gcDone = new Object();
 	
 	public static void gc(){
+		TensorMemory.gcRequests.incrementAndGet();
+		
 		// This is a "sync" gc method that waits until the gc has actually done something 
 		synchronized (gcDone) {
 			System.gc();
@@ -22,6 +22,10 @@
  *******************************************************************************/
 package be.iminds.iot.dianne.tensor;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
@@ -31,11 +35,14 @@ import java.util.Map;
  * 
  * The actual implementation should be done in native code
  * 
+ * The native memory of a Tensor is freed when it is garbage collected, but can be
+ * released deterministically by calling release() (or using it in a try-with-resources
+ * block or a TensorScope). A Tensor should not be used anymore after it is released.
  * 
  * @author tverbele
  *
  */
-public class Tensor {
+public class Tensor implements AutoCloseable {
 
 	public long address;
 	
@@ -54,6 +61,7 @@ public class Tensor {
 		d[0] = d0;
 		System.arraycopy(dims, 0, d, 1, dims.length);
 		this.address = init(null, d);
+		TensorScope.register(this);
 	}
 	
 	public Tensor(int d0, int d1, int[] dims){
@@ -62,14 +70,17 @@ public class Tensor {
 		d[1] = d1;
 		System.arraycopy(dims, 0, d, 2, dims.length);
 		this.address = init(null, d);
+		TensorScope.register(this);
 	}
 	
 	public Tensor(float[] data, int... dims) {
 		this.address = init(data, dims);
+		TensorScope.register(this);
 	}
 	
 	private Tensor(long address){
 		this.address = address;
+		TensorScope.register(this);
 	}
 	
 	/**
@@ -179,6 +190,84 @@ public class Tensor {
 	 */
 	public native void set(final float[] data);
 	
+	/**
+	 * copy the remaining floats of a buffer into this tensor, the buffer position 
+	 * is advanced with the number of floats copied
+	 * 
+	 * a direct buffer in native byte order (e.g. a memory mapped file) is copied 
+	 * in bulk into native memory, without an intermediate Java array
+	 */
+	public void set(final FloatBuffer data){
+		int length = Math.min(data.remaining(), size());
+		if(data.isDirect() && data.order() == ByteOrder.nativeOrder()){
+			setBuffer(data, data.position(), length);
+			data.position(data.position()+length);
+		} else {
+			setBuffer(direct(data, length), 0, length);
+		}
+	}
+	
+	/**
+	 * copy the data of this tensor into a buffer, the buffer position 
+	 * is advanced with the number of floats copied
+	 * 
+	 * a direct buffer in native byte order is filled in bulk from native memory, 
+	 * without an intermediate Java array
+	 */
+	public void get(final FloatBuffer data){
+		if(data.isDirect() && data.order() == ByteOrder.nativeOrder()){
+			int length = size();
+			if(data.remaining() < length){
+				throw new BufferOverflowException();
+			}
+			getBuffer(data, data.position());
+			data.position(data.position()+length);
+		} else {
+			data.put(get());
+		}
+	}
+	
+	/**
+	 * copy length floats of a buffer into this tensor, starting at element from 
+	 * (in row-major order), the buffer position is advanced with the number of floats copied
+	 * 
+	 * this allows to fill a tensor in chunks, i.e. when deserializing
+	 */
+	public void set(final FloatBuffer data, final int from, final int length){
+		if(from < 0 || length < 0 || from+length > size() || data.remaining() < length){
+			throw new IndexOutOfBoundsException();
+		}
+		if(data.isDirect() && data.order() == ByteOrder.nativeOrder()){
+			setBufferRange(data, data.position(), from, length);
+			data.position(data.position()+length);
+		} else {
+			setBufferRange(direct(data, length), 0, from, length);
+		}
+	}
+	
+	/**
+	 * copy length floats of this tensor, starting at element from (in row-major order), 
+	 * into a buffer, the buffer position is advanced with the number of floats copied
+	 * 
+	 * this allows to read a tensor in chunks, i.e. when serializing
+	 */
+	public void get(final FloatBuffer data, final int from, final int length){
+		if(from < 0 || length < 0 || from+length > size()){
+			throw new IndexOutOfBoundsException();
+		}
+		if(data.remaining() < length){
+			throw new BufferOverflowException();
+		}
+		if(data.isDirect() && data.order() == ByteOrder.nativeOrder()){
+			getBufferRange(data, data.position(), from, length);
+			data.position(data.position()+length);
+		} else {
+			FloatBuffer d = ByteBuffer.allocateDirect(length*4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+			getBufferRange(d, 0, from, length);
+			data.put(d);
+		}
+	}
+	
 	/**
 	 * fill with fixed value
 	 * @param v the new value
@@ -335,14 +424,73 @@ public class Tensor {
 		return b.toString();
 	}
 	
+	/**
+	 * Release the native memory of this tensor. Views on this tensor (i.e. created by 
+	 * narrow or select) keep the underlying data alive until they are released as well.
+	 * 
+	 * Releasing a tensor multiple times has no effect.
+	 */
+	public synchronized void release(){
+		if(address == 0)
+			return;
+		
+		if(map != null){
+			for(Tensor t : map.values()){
+				t.release();
+			}
+			map = null;
+		}
+		
+		free();
+		address = 0;
+		TensorMemory.released.incrementAndGet();
+	}
+	
+	/**
+	 * @return whether this tensor is released
+	 */
+	public boolean isReleased(){
+		return address == 0;
+	}
+	
+	@Override
+	public void close(){
+		release();
+	}
+	
+	@Override
 	public void finalize(){
+		if(address == 0)
+			return;
+		
 		free();
+		address = 0;
+		TensorMemory.finalized.incrementAndGet();
 	}
 	
 	private native long init(float[] data, int[] dims);
 	
 	private native void free();
 	
+	// copy length floats of a buffer in a direct buffer in native byte order, 
+	// the position of the buffer is advanced with the number of floats copied
+	private static FloatBuffer direct(FloatBuffer data, int length){
+		FloatBuffer d = ByteBuffer.allocateDirect(length*4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+		FloatBuffer src = data.duplicate();
+		src.limit(src.position()+length);
+		d.put(src);
+		data.position(data.position()+length);
+		return d;
+	}
+	
+	private native void setBuffer(FloatBuffer data, int offset, int length);
+	
+	private native void getBuffer(FloatBuffer data, int offset);
+
+	private native void setBufferRange(FloatBuffer data, int offset, int from, int length);
+
+	private native void getBufferRange(FloatBuffer data, int offset, int from, int length);
+	
 	private native boolean equalsData(Tensor other, float threshold);
 	
 }
@@ -0,0 +1,117 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.tensor;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statistics on the tensor memory management.
+ * 
+ * The native backend keeps freed tensor buffers in a per-thread pool bucketed by size,
+ * hits and misses count the allocations that could (not) be served from this pool.
+ * 
+ * @author tverbele
+ *
+ */
+public final class TensorMemory {
+
+	// tensors released explicitly
+	static final AtomicLong released = new AtomicLong();
+	// tensors freed by the finalizer
+	static final AtomicLong finalized = new AtomicLong();
+	// garbage collections requested by the backend when running out of memory
+	static final AtomicLong gcRequests = new AtomicLong();
+	
+	private TensorMemory(){}
+	
+	/**
+	 * @return number of allocations served from the pool
+	 */
+	public static long hits(){
+		return NativeTensorLoader.poolStats()[0];
+	}
+	
+	/**
+	 * @return number of allocations that required a new buffer
+	 */
+	public static long misses(){
+		return NativeTensorLoader.poolStats()[1];
+	}
+	
+	/**
+	 * @return number of bytes currently allocated by live tensors
+	 */
+	public static long liveBytes(){
+		return NativeTensorLoader.poolStats()[2];
+	}
+	
+	/**
+	 * @return number of bytes currently kept in the pool for reuse
+	 */
+	public static long pooledBytes(){
+		return NativeTensorLoader.poolStats()[3];
+	}
+	
+	/**
+	 * @return number of tensors released explicitly
+	 */
+	public static long released(){
+		return released.get();
+	}
+	
+	/**
+	 * @return number of tensors that were only freed by the garbage collector
+	 */
+	public static long finalized(){
+		return finalized.get();
+	}
+	
+	/**
+	 * @return number of garbage collections requested by the tensor backend 
+	 */
+	public static long gcRequests(){
+		return gcRequests.get();
+	}
+	
+	/**
+	 * Free all buffers kept in the pool
+	 */
+	public static void trim(){
+		NativeTensorLoader.poolTrim();
+	}
+	
+	public static String stats(){
+		long[] stats = NativeTensorLoader.poolStats();
+		long total = stats[0]+stats[1];
+		StringBuilder b = new StringBuilder();
+		b.append("Pool hits: ").append(stats[0])
+		 .append(" misses: ").append(stats[1])
+		 .append(" hit rate: ").append(total == 0 ? 0 : stats[0]*100/total).append("%\n");
+		b.append("Live: ").append(stats[2]/1024).append(" kB")
+		 .append(" pooled: ").append(stats[3]/1024).append(" kB\n");
+		b.append("Tensors released: ").append(released.get())
+		 .append(" finalized: ").append(finalized.get())
+		 .append(" gc requests: ").append(gcRequests.get());
+		return b.toString();
+	}
+}
@@ -0,0 +1,152 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.tensor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A TensorScope keeps track of all Tensors created by the current thread while the 
+ * scope is open, and releases them when the scope is closed. This allows to free 
+ * the memory of intermediate results deterministically instead of relying on the 
+ * garbage collector:
+ * 
+ * <pre>
+ * try(TensorScope scope = TensorScope.open()){
+ *    Tensor t = ...
+ *    result = scope.keep(TensorOps.mul(null, t, 2));
+ * }
+ * </pre>
+ * 
+ * Tensors that should outlive the scope are marked with keep(), these are handed
+ * over to the parent scope (if any). Scopes can be nested, but have to be closed 
+ * in the reverse order they were opened.
+ * 
+ * @author tverbele
+ *
+ */
+public final class TensorScope implements AutoCloseable {
+
+	private static final ThreadLocal<TensorScope> current = new ThreadLocal<>();
+	
+	private final TensorScope parent;
+	private final Thread thread;
+	
+	private final List<Tensor> tensors = new ArrayList<>();
+	private final Set<Tensor> kept = Collections.newSetFromMap(new IdentityHashMap<>());
+	
+	private boolean closed = false;
+	
+	private TensorScope(TensorScope parent){
+		this.parent = parent;
+		this.thread = Thread.currentThread();
+	}
+	
+	/**
+	 * Open a new scope for the current thread
+	 * @return the new scope
+	 */
+	public static TensorScope open(){
+		TensorScope scope = new TensorScope(current.get());
+		current.set(scope);
+		return scope;
+	}
+	
+	/**
+	 * @return the innermost open scope of the current thread, or null if none
+	 */
+	public static TensorScope current(){
+		return current.get();
+	}
+	
+	static void register(Tensor t){
+		TensorScope scope = current.get();
+		if(scope != null){
+			scope.tensors.add(t);
+		}
+	}
+	
+	/**
+	 * Keep a tensor alive after this scope is closed
+	 * @param t the tensor to keep
+	 * @return the same tensor
+	 */
+	public <T extends Tensor> T keep(T t){
+		if(t != null){
+			kept.add(t);
+		}
+		return t;
+	}
+	
+	/**
+	 * Add a tensor that was created outside this scope, it will be released
+	 * when the scope is closed
+	 * @param t the tensor to add
+	 * @return the same tensor
+	 */
+	public <T extends Tensor> T add(T t){
+		if(t != null){
+			tensors.add(t);
+		}
+		return t;
+	}
+	
+	/**
+	 * Release all tensors created within this scope, except the ones marked with keep
+	 */
+	@Override
+	public void close(){
+		if(closed)
+			return;
+		
+		if(Thread.currentThread() != thread){
+			throw new IllegalStateException("A TensorScope should be closed by the thread that opened it");
+		}
+		
+		if(current.get() != this){
+			throw new IllegalStateException("Nested TensorScopes should be closed in reverse order");
+		}
+		
+		closed = true;
+		if(parent == null){
+			current.remove();
+		} else {
+			current.set(parent);
+		}
+		
+		for(Tensor t : tensors){
+			if(kept.contains(t)){
+				if(parent != null){
+					parent.tensors.add(t);
+				}
+			} else {
+				t.release();
+			}
+		}
+		tensors.clear();
+		kept.clear();
+	}
+}
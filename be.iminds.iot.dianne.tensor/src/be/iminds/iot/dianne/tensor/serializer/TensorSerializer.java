@@ -22,41 +22,265 @@
  *******************************************************************************/
 package be.iminds.iot.dianne.tensor.serializer;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 
 import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
 import com.esotericsoftware.kryo.Serializer;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
 
+import be.iminds.iot.dianne.tensor.Half;
 import be.iminds.iot.dianne.tensor.Tensor;
 
+/**
+ * Serializes a Tensor as its dims, the number of elements, an encoding byte and the 
+ * little endian tensor data. 
+ * 
+ * The data is transferred in chunks between the tensor memory and the Kryo buffer, 
+ * without first copying the complete tensor to a Java array. The data can be reduced 
+ * to fp16 or bf16 on the wire by setting the be.iminds.iot.dianne.tensor.serializer.encoding 
+ * property, the reader always restores fp32 tensors.
+ * 
+ * @author tverbele
+ *
+ */
 @Component(service = Serializer.class, property = { 
 		"aiolos.export=false",
 		"kryo.serializer.class=be.iminds.iot.dianne.tensor.Tensor", 
 		"kryo.serializer.id=100" })
 public class TensorSerializer extends Serializer<Tensor> {
 
+	public static final byte FP32 = 0;
+	public static final byte FP16 = 1;
+	public static final byte BF16 = 2;
+	
+	// number of floats per chunk copied from/to the tensor
+	private static final int CHUNK = 16384;
+	
+	private static final boolean LITTLE_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+	
+	private static final ThreadLocal<Chunk> chunks = ThreadLocal.withInitial(Chunk::new);
+	
+	private byte encoding = FP32;
+	
+	public TensorSerializer(){}
+	
+	public TensorSerializer(byte encoding){
+		this.encoding = encoding;
+	}
+	
+	@Activate
+	public void activate(BundleContext context){
+		if(context != null){
+			String e = context.getProperty("be.iminds.iot.dianne.tensor.serializer.encoding");
+			if(e != null){
+				encoding = encoding(e);
+			}
+		}
+	}
+	
 	@Override
 	public Tensor read(Kryo kryo, Input input, Class<Tensor> tensor) {
+		return read(input, null);
+	}
+	
+	/**
+	 * Read a tensor, reusing the provided tensor when it has the right size
+	 */
+	public Tensor read(Input input, Tensor tensor) {
 		int noDims = input.readInt();
 		int[] dims = input.readInts(noDims);
 		int length = input.readInt();
-		float[] data = input.readFloats(length);
-		return new Tensor(data, dims);
+		byte encoding = input.readByte();
+		
+		if(tensor == null){
+			tensor = new Tensor(dims);
+		} else if(!tensor.hasDim(dims)){
+			if(tensor.size() == length){
+				tensor.reshape(dims);
+			} else {
+				tensor = new Tensor(dims);
+			}
+		}
+		
+		int bytes = bytes(encoding);
+		Chunk chunk = chunks.get();
+		int from = 0;
+		while(from < length){
+			int n = Math.min(CHUNK, length - from);
+			
+			// decode straight from the input buffer if possible
+			byte[] buffer;
+			int offset;
+			int available = (input.limit() - input.position()) / bytes;
+			if(available > 0){
+				n = Math.min(n, available);
+				buffer = input.getBuffer();
+				offset = input.position();
+				input.setPosition(offset + n*bytes);
+			} else {
+				input.readBytes(chunk.bytes, 0, n*bytes);
+				buffer = chunk.bytes;
+				offset = 0;
+			}
+			
+			chunk.floats.clear();
+			decode(buffer, offset, n, encoding, chunk);
+			chunk.floats.limit(n);
+			tensor.set(chunk.floats, from, n);
+			from += n;
+		}
+		return tensor;
 	}
 
 	@Override
 	public void write(Kryo kryo, Output output, Tensor tensor) {
-		try {
-			output.writeInt(tensor.dims().length);
-			output.writeInts(tensor.dims());
-			output.writeInt(tensor.size());
-			output.writeFloats(tensor.get());
-		} catch(Throwable t){
-			t.printStackTrace();
-			throw t;
+		int[] dims = tensor.dims();
+		int length = tensor.size();
+		output.writeInt(dims.length);
+		output.writeInts(dims);
+		output.writeInt(length);
+		output.writeByte(encoding);
+		
+		int bytes = bytes(encoding);
+		Chunk chunk = chunks.get();
+		int from = 0;
+		while(from < length){
+			int n = Math.min(CHUNK, length - from);
+			
+			chunk.floats.clear();
+			tensor.get(chunk.floats, from, n);
+			
+			// encode straight into the output buffer if it fits
+			if(output.getBuffer().length - output.position() < n*bytes){
+				output.flush();
+			}
+			byte[] buffer = output.getBuffer();
+			int offset = output.position();
+			if(buffer.length - offset >= n*bytes){
+				encode(chunk, n, encoding, buffer, offset);
+				output.setPosition(offset + n*bytes);
+			} else {
+				encode(chunk, n, encoding, chunk.bytes, 0);
+				output.writeBytes(chunk.bytes, 0, n*bytes);
+			}
+			from += n;
 		}
 	}
-
+	
+	private static void encode(Chunk chunk, int n, byte encoding, byte[] dst, int offset){
+		if(encoding == FP32 && LITTLE_ENDIAN){
+			chunk.buffer.clear();
+			chunk.buffer.get(dst, offset, n*4);
+			return;
+		}
+		
+		float[] values = chunk.values;
+		chunk.floats.position(0);
+		chunk.floats.get(values, 0, n);
+		switch(encoding){
+		case FP32:
+			for(int i=0;i<n;i++){
+				putInt(dst, offset+i*4, Float.floatToRawIntBits(values[i]));
+			}
+			break;
+		case FP16:
+			for(int i=0;i<n;i++){
+				putShort(dst, offset+i*2, Half.toHalf(values[i]));
+			}
+			break;
+		case BF16:
+			for(int i=0;i<n;i++){
+				putShort(dst, offset+i*2, Half.toBFloat(values[i]));
+			}
+			break;
+		}
+	}
+	
+	private static void decode(byte[] src, int offset, int n, byte encoding, Chunk chunk){
+		if(encoding == FP32 && LITTLE_ENDIAN){
+			chunk.buffer.clear();
+			chunk.buffer.put(src, offset, n*4);
+			return;
+		}
+		
+		float[] values = chunk.values;
+		switch(encoding){
+		case FP32:
+			for(int i=0;i<n;i++){
+				values[i] = Float.intBitsToFloat(getInt(src, offset+i*4));
+			}
+			break;
+		case FP16:
+			for(int i=0;i<n;i++){
+				values[i] = Half.fromHalf(getShort(src, offset+i*2));
+			}
+			break;
+		case BF16:
+			for(int i=0;i<n;i++){
+				values[i] = Half.fromBFloat(getShort(src, offset+i*2));
+			}
+			break;
+		default:
+			throw new KryoException("Unknown tensor encoding "+encoding);
+		}
+		chunk.floats.put(values, 0, n);
+		chunk.floats.position(0);
+	}
+	
+	private static int bytes(byte encoding){
+		return encoding == FP32 ? 4 : 2;
+	}
+	
+	public static byte encoding(String encoding){
+		switch(encoding.toLowerCase()){
+		case "fp32":
+			return FP32;
+		case "fp16":
+			return FP16;
+		case "bf16":
+			return BF16;
+		default:
+			throw new IllegalArgumentException("Unknown tensor encoding "+encoding);
+		}
+	}
+	
+	private static void putInt(byte[] b, int i, int v){
+		b[i] = (byte)v;
+		b[i+1] = (byte)(v >>> 8);
+		b[i+2] = (byte)(v >>> 16);
+		b[i+3] = (byte)(v >>> 24);
+	}
+	
+	private static int getInt(byte[] b, int i){
+		return (b[i] & 0xff) | (b[i+1] & 0xff) << 8 | (b[i+2] & 0xff) << 16 | (b[i+3] & 0xff) << 24;
+	}
+	
+	private static void putShort(byte[] b, int i, short v){
+		b[i] = (byte)v;
+		b[i+1] = (byte)(v >>> 8);
+	}
+	
+	private static short getShort(byte[] b, int i){
+		return (short)((b[i] & 0xff) | (b[i+1] & 0xff) << 8);
+	}
+	
+	/**
+	 * Per thread direct buffer to copy a chunk of floats from/to the tensor
+	 */
+	private static class Chunk {
+		
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK*4).order(ByteOrder.nativeOrder());
+		private final FloatBuffer floats = buffer.asFloatBuffer();
+		private final byte[] bytes = new byte[CHUNK*4];
+		private final float[] values = new float[CHUNK];
+		
+	}
 }
@@ -25,20 +25,32 @@ package be.iminds.iot.dianne.tensor;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
 // small test for checking whether GC callbacks work...
 public class MemoryTest {
 
+	private static NativeTensorLoader loader;
+	
 	@BeforeClass
 	public static void load() {
-		NativeTensorLoader loader = new NativeTensorLoader();
+		loader = new NativeTensorLoader();
 		loader.activate(null);
 	}
 	
 	@Test
 	public void testGC() throws InterruptedException{
+		// only the native backend pools buffers and tracks the live bytes
+		new Tensor(1).release();
+		boolean pooled = TensorMemory.misses() > 0;
+		if(pooled){
+			// reclaiming unreleased tensors by the GC is opt-in
+			loader.option("gcThreshold", String.valueOf(64*1024*1024));
+		}
+		
+		long gcRequests = TensorMemory.gcRequests();
 		List<Tensor> keep = new ArrayList<>();
 		Thread t = new Thread(()->{
 			
@@ -56,6 +68,88 @@ public class MemoryTest {
 		});
 		t.start();
 		t.join();
+		
+		if(pooled){
+			loader.option("gcThreshold", "0");
+			
+			// none of the tensors are released, so the pool should have requested a gc
+			Assert.assertTrue(TensorMemory.gcRequests() > gcRequests);
+		}
+	}
+	
+	@Test
+	public void testRelease() {
+		Tensor t = new Tensor(10, 10);
+		Tensor view = t.select(0, 1);
+		t.release();
+		Assert.assertTrue(t.isReleased());
+		
+		// view keeps the data alive
+		view.fill(1.0f);
+		Assert.assertEquals(10.0f, TensorOps.sum(view), 0.0001f);
+		view.release();
+		
+		// releasing twice has no effect
+		long released = TensorMemory.released();
+		t.release();
+		Assert.assertEquals(released, TensorMemory.released());
+	}
+
+	@Test
+	public void testUseAfterRelease() {
+		Tensor t = new Tensor(10, 10);
+		t.release();
+		try {
+			TensorOps.add(null, t, 1.0f);
+		} catch(IllegalStateException e) {
+			// using a released tensor should fail instead of touching freed memory
+			return;
+		}
+		Assert.fail("Using a released Tensor should fail!");
+	}
+	
+	@Test
+	public void testScope() {
+		Tensor outside = new Tensor(10);
+		Tensor kept;
+		Tensor inner;
+		Tensor tmp;
+		try(TensorScope scope = TensorScope.open()){
+			tmp = new Tensor(10);
+			tmp.fill(2.0f);
+			try(TensorScope nested = TensorScope.open()){
+				inner = new Tensor(10);
+				kept = nested.keep(TensorOps.mul(null, tmp, 2.0f));
+			}
+			Assert.assertSame(scope, TensorScope.current());
+			Assert.assertTrue(inner.isReleased());
+			Assert.assertFalse(kept.isReleased());
+			Assert.assertEquals(40.0f, TensorOps.sum(kept), 0.0001f);
+		}
+		Assert.assertTrue(tmp.isReleased());
+		Assert.assertTrue(kept.isReleased());
+		Assert.assertFalse(outside.isReleased());
+		Assert.assertNull(TensorScope.current());
+	}
+	
+	@Test
+	public void testPool() {
+		int[] dims = new int[]{256, 256};
+		new Tensor(dims).release();
+		
+		long hits = TensorMemory.hits();
+		long misses = TensorMemory.misses();
+		for(int i=0;i<100;i++){
+			try(Tensor t = new Tensor(dims)){
+				t.fill(1.0f);
+			}
+		}
+		
+		// only the native backend pools buffers
+		if(misses > 0){
+			Assert.assertTrue(TensorMemory.hits() - hits >= 100);
+			Assert.assertEquals(misses, TensorMemory.misses());
+		}
 	}
 
 }
@@ -0,0 +1,118 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.tensor;
+
+import org.junit.BeforeClass;
+import org.junit.Ignore;
+import org.junit.Test;
+
+/**
+ * Throughput of a number of common tensor operations, to compare
+ * the different tensor backends. This test only reports timings.
+ */
+@Ignore("Benchmark, run manually")
+public class TensorBenchmark {
+
+	private static final int WARMUP = 5;
+	private static final int RUNS = 20;
+	
+	@BeforeClass
+	public static void load() {
+		NativeTensorLoader loader = new NativeTensorLoader();
+		loader.activate(null);
+	}
+	
+	@Test
+	public void benchmarkAdd() {
+		Tensor t1 = new Tensor(1024*1024);
+		t1.rand();
+		Tensor t2 = new Tensor(1024*1024);
+		t2.rand();
+		Tensor r = new Tensor(1024*1024);
+		
+		double ms = time(() -> TensorOps.add(r, t1, t2));
+		report("add 1M", ms, 1024*1024/ms/1e6, "GFlops");
+	}
+	
+	@Test
+	public void benchmarkMm() {
+		for(int size : new int[]{64, 256, 1024}){
+			Tensor m1 = new Tensor(size, size);
+			m1.rand();
+			Tensor m2 = new Tensor(size, size);
+			m2.rand();
+			Tensor r = new Tensor(size, size);
+			
+			double ms = time(() -> TensorOps.mm(r, m1, m2));
+			report("mm "+size+"x"+size, ms, 2.0*size*size*size/ms/1e6, "GFlops");
+		}
+	}
+	
+	@Test
+	public void benchmarkLinear() {
+		Tensor input = new Tensor(64, 1024);
+		input.rand();
+		Tensor weights = new Tensor(1024, 1024);
+		weights.rand();
+		Tensor bias = new Tensor(1024);
+		bias.rand();
+		Tensor ones = new Tensor(64);
+		ones.fill(1.0f);
+		Tensor output = new Tensor(64, 1024);
+		
+		double ms = time(() -> ModuleOps.linear(output, input, weights, bias, ones));
+		report("linear 64x1024x1024", ms, 2.0*64*1024*1024/ms/1e6, "GFlops");
+	}
+	
+	@Test
+	public void benchmarkConvolution() {
+		Tensor input = new Tensor(16, 32, 32, 32);
+		input.rand();
+		Tensor weights = new Tensor(64, 32, 3, 3);
+		weights.rand();
+		Tensor bias = new Tensor(64);
+		bias.rand();
+		Tensor output = new Tensor();
+		Tensor temp1 = new Tensor();
+		Tensor temp2 = new Tensor();
+		
+		double ms = time(() -> ModuleOps.spatialconvolve(output, input, weights, bias, temp1, temp2, 3, 3, 1, 1, 1, 1));
+		report("conv 16x32x32x32 3x3x64", ms, 2.0*16*64*32*32*32*9/ms/1e6, "GFlops");
+	}
+	
+	private double time(Runnable r){
+		for(int i=0;i<WARMUP;i++){
+			r.run();
+		}
+		long t1 = System.nanoTime();
+		for(int i=0;i<RUNS;i++){
+			r.run();
+		}
+		long t2 = System.nanoTime();
+		return (t2-t1)/1e6/RUNS;
+	}
+	
+	private void report(String op, double ms, double throughput, String unit){
+		System.out.println(String.format("%-30s %10.3f ms  %8.2f %s", op, ms, throughput, unit));
+	}
+}
@@ -22,6 +22,10 @@
  *******************************************************************************/
 package be.iminds.iot.dianne.tensor;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
 import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -292,6 +296,61 @@ public class TensorTest {
 		Assert.assertEquals(3, t3.size());
 	}
 
+	@Test
+	public void testNarrowBuffer() {
+		for(boolean direct : new boolean[]{true, false}){
+			Tensor t = new Tensor(6, 8);
+			t.fill(0.0f);
+			Tensor n = t.narrow(1, 2, 3);
+			
+			float[] data = new float[18];
+			for(int i=0;i<data.length;i++)
+				data[i] = i+1;
+			
+			// set and get the complete narrowed tensor
+			FloatBuffer b = buffer(direct, 18);
+			b.put(data);
+			b.flip();
+			n.set(b);
+			Assert.assertEquals(0, b.remaining());
+			Assert.assertArrayEquals(data, n.get(), 0.0f);
+			Assert.assertEquals(0.0f, t.get(0, 1), 0.0f);
+			Assert.assertEquals(0.0f, t.get(0, 5), 0.0f);
+			
+			b.clear();
+			n.get(b);
+			Assert.assertEquals(0, b.remaining());
+			for(int i=0;i<data.length;i++)
+				Assert.assertEquals(data[i], b.get(i), 0.0f);
+			
+			// set and get ranges that span multiple rows
+			b.clear();
+			for(int i=0;i<7;i++)
+				b.put(-i);
+			b.flip();
+			n.set(b, 4, 7);
+			for(int i=0;i<7;i++){
+				data[4+i] = -i;
+			}
+			Assert.assertArrayEquals(data, n.get(), 0.0f);
+			Assert.assertEquals(0.0f, t.get(1, 1), 0.0f);
+			Assert.assertEquals(0.0f, t.get(3, 5), 0.0f);
+			
+			b.clear();
+			n.get(b, 5, 10);
+			Assert.assertEquals(10, b.position());
+			for(int i=0;i<10;i++)
+				Assert.assertEquals(data[5+i], b.get(i), 0.0f);
+		}
+	}
+	
+	private FloatBuffer buffer(boolean direct, int size){
+		if(direct){
+			return ByteBuffer.allocateDirect(size*4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+		}
+		return FloatBuffer.allocate(size);
+	}
+	
 	@Test
 	public void testSelect() {
 		Tensor t = new Tensor(3, 3);
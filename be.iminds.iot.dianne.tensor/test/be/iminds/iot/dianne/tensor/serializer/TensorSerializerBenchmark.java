@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.tensor.serializer;
+
+import org.junit.BeforeClass;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import be.iminds.iot.dianne.tensor.NativeTensorLoader;
+import be.iminds.iot.dianne.tensor.Tensor;
+
+/**
+ * Round trip throughput of the TensorSerializer for the different encodings,
+ * compared to writing the tensor as a float array. This test only reports timings.
+ */
+@Ignore("Benchmark, run manually")
+public class TensorSerializerBenchmark {
+
+	private static final int[] SIZES = new int[]{1024, 64*1024, 1024*1024, 16*1024*1024, 64*1024*1024}; 
+	
+	private Kryo kryo = new Kryo();
+	
+	@BeforeClass
+	public static void load() {
+		NativeTensorLoader loader = new NativeTensorLoader();
+		loader.activate(null);
+	}
+	
+	@Test
+	public void benchmarkRoundTrip() {
+		for(int size : SIZES){
+			Tensor t = new Tensor(size);
+			t.rand();
+			Tensor into = new Tensor(size);
+			
+			// 4 KB - 256 MB
+			String label = size*4 >= 1024*1024 ? (size*4/1024/1024)+" MB" : (size*4/1024)+" KB";
+			int runs = Math.max(1, 64*1024*1024/size);
+			Output output = new Output(1024, -1);
+			
+			double ms = time(runs, () -> {
+				output.clear();
+				output.writeInt(t.size());
+				output.writeFloats(t.get());
+				Input input = new Input(output.getBuffer(), 0, output.position());
+				new Tensor(input.readFloats(input.readInt()), size);
+			});
+			report("float[] "+label, ms, size*4);
+			
+			for(byte encoding : new byte[]{TensorSerializer.FP32, TensorSerializer.FP16, TensorSerializer.BF16}){
+				TensorSerializer serializer = new TensorSerializer(encoding);
+				ms = time(runs, () -> {
+					output.clear();
+					serializer.write(kryo, output, t);
+					serializer.read(new Input(output.getBuffer(), 0, output.position()), into);
+				});
+				report((encoding == TensorSerializer.FP32 ? "fp32 " : encoding == TensorSerializer.FP16 ? "fp16 " : "bf16 ")+label, ms, size*4);
+			}
+			
+			t.release();
+			into.release();
+		}
+	}
+	
+	private double time(int runs, Runnable r){
+		r.run();
+		long t1 = System.nanoTime();
+		for(int i=0;i<runs;i++){
+			r.run();
+		}
+		long t2 = System.nanoTime();
+		return (t2-t1)/1e6/runs;
+	}
+	
+	private void report(String op, double ms, long bytes){
+		System.out.println(String.format("%-20s %10.3f ms  %8.2f MB/s", op, ms, bytes/ms/1e3));
+	}
+}
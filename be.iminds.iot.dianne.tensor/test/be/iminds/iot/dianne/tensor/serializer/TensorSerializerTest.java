@@ -0,0 +1,146 @@
+/*******************************************************************************
+ * DIANNE  - Framework for distributed artificial neural networks
+ * Copyright (C) 2015  iMinds - IBCN - UGent
+ *
+ * This file is part of DIANNE.
+ *
+ * DIANNE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contributors:
+ *     Tim Verbelen, Steven Bohez
+ *******************************************************************************/
+package be.iminds.iot.dianne.tensor.serializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import be.iminds.iot.dianne.tensor.Half;
+import be.iminds.iot.dianne.tensor.NativeTensorLoader;
+import be.iminds.iot.dianne.tensor.Tensor;
+
+public class TensorSerializerTest {
+
+	private Kryo kryo = new Kryo();
+	
+	@BeforeClass
+	public static void load() {
+		NativeTensorLoader loader = new NativeTensorLoader();
+		loader.activate(null);
+	}
+	
+	@Test
+	public void testRoundTrip() {
+		// spans multiple chunks
+		Tensor t = new Tensor(3, 100, 100);
+		t.randn();
+		
+		Tensor r = roundTrip(t, TensorSerializer.FP32, 4096);
+		Assert.assertArrayEquals(t.dims(), r.dims());
+		Assert.assertArrayEquals(t.get(), r.get(), 0.0f);
+	}
+	
+	@Test
+	public void testRoundTripNarrowed() {
+		Tensor t = new Tensor(10, 10);
+		t.randn();
+		Tensor n = t.narrow(1, 2, 5);
+		
+		Tensor r = roundTrip(n, TensorSerializer.FP32, 4096);
+		Assert.assertArrayEquals(n.dims(), r.dims());
+		Assert.assertArrayEquals(n.get(), r.get(), 0.0f);
+	}
+	
+	@Test
+	public void testRoundTripHalf() {
+		Tensor t = new Tensor(50000);
+		t.randn();
+		
+		Tensor r = roundTrip(t, TensorSerializer.FP16, 4096);
+		float[] expected = t.get();
+		float[] actual = r.get();
+		for(int i=0;i<expected.length;i++){
+			Assert.assertEquals(expected[i], actual[i], Math.abs(expected[i])/1024 + 1e-7f);
+		}
+	}
+	
+	@Test
+	public void testRoundTripBFloat() {
+		Tensor t = new Tensor(50000);
+		t.randn();
+		
+		Tensor r = roundTrip(t, TensorSerializer.BF16, 4096);
+		float[] expected = t.get();
+		float[] actual = r.get();
+		for(int i=0;i<expected.length;i++){
+			Assert.assertEquals(expected[i], actual[i], Math.abs(expected[i])/128);
+		}
+	}
+	
+	@Test
+	public void testHalfConversion() {
+		float[] values = new float[]{0.0f, -0.0f, 1.0f, -2.5f, 65504.0f, 6.1035156E-5f, 5.9604645E-8f, 0.1f};
+		for(float v : values){
+			Assert.assertEquals(v, Half.fromHalf(Half.toHalf(v)), Math.abs(v)/1024);
+		}
+		Assert.assertEquals(0x3c00, Half.toHalf(1.0f));
+		Assert.assertEquals(0x7c00, Half.toHalf(1e6f));
+		Assert.assertTrue(Float.isNaN(Half.fromHalf(Half.toHalf(Float.NaN))));
+		Assert.assertTrue(Half.fromHalf(Half.toHalf(Float.NEGATIVE_INFINITY)) == Float.NEGATIVE_INFINITY);
+		
+		Assert.assertEquals(1.0f, Half.fromBFloat(Half.toBFloat(1.0f)), 0.0f);
+		Assert.assertTrue(Float.isNaN(Half.fromBFloat(Half.toBFloat(Float.NaN))));
+	}
+	
+	@Test
+	public void testReadInto() {
+		Tensor t = new Tensor(2, 50);
+		t.rand();
+		
+		TensorSerializer serializer = new TensorSerializer();
+		Output output = new Output(1024, -1);
+		serializer.write(kryo, output, t);
+		
+		Tensor into = new Tensor(100);
+		Tensor r = serializer.read(new Input(output.toBytes()), into);
+		Assert.assertSame(into, r);
+		Assert.assertArrayEquals(t.dims(), r.dims());
+		Assert.assertArrayEquals(t.get(), r.get(), 0.0f);
+		
+		Tensor other = new Tensor(10);
+		r = serializer.read(new Input(output.toBytes()), other);
+		Assert.assertNotSame(other, r);
+		Assert.assertArrayEquals(t.get(), r.get(), 0.0f);
+	}
+	
+	private Tensor roundTrip(Tensor t, byte encoding, int bufferSize){
+		TensorSerializer serializer = new TensorSerializer(encoding);
+		
+		// use small stream buffers to have chunks that cross buffer boundaries
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Output output = new Output(bytes, bufferSize);
+		kryo.writeObject(output, t, serializer);
+		output.close();
+		
+		Input input = new Input(new ByteArrayInputStream(bytes.toByteArray()), bufferSize+3);
+		return kryo.readObject(input, Tensor.class, serializer);
+	}
+}